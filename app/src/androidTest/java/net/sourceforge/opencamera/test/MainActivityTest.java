@@ -47,7 +47,6 @@ import android.os.Build;
 import android.os.Environment;
 //import android.os.Environment;
 import android.preference.PreferenceManager;
-import android.renderscript.Allocation;
 import android.support.annotation.RequiresApi;
 import android.test.ActivityInstrumentationTestCase2;
 import android.test.TouchUtils;
@@ -10906,7 +10905,7 @@ public class MainActivityTest extends ActivityInstrumentationTestCase2<MainActiv
 
 		Bitmap nr_bitmap;
 		try {
-			// initialise allocation from first two bitmaps
+			// initialise image from first two bitmaps
 			//int inSampleSize = mActivity.getApplicationInterface().getHDRProcessor().getAvgSampleSize(inputs.size());
 			int inSampleSize = mActivity.getApplicationInterface().getHDRProcessor().getAvgSampleSize(iso);
 			Bitmap bitmap0 = getBitmapFromFile(inputs.get(0), inSampleSize);
@@ -10918,8 +10917,9 @@ public class MainActivityTest extends ActivityInstrumentationTestCase2<MainActiv
 			List<Long> times = new ArrayList<>();
 			long time_s = System.currentTimeMillis();
 			HDRProcessor.AvgData avg_data = mActivity.getApplicationInterface().getHDRProcessor().processAvg(bitmap0, bitmap1, avg_factor, iso);
-			Allocation allocation = avg_data.allocation_out;
 			times.add(System.currentTimeMillis() - time_s);
+			List<Float> merged_fractions = new ArrayList<>();
+			merged_fractions.add(mActivity.getApplicationInterface().getHDRProcessor().avg_merged_fraction);
 			// processAvg recycles both bitmaps
 			if( cb != null ) {
 				cb.doneProcessAvg(1);
@@ -10933,6 +10933,7 @@ public class MainActivityTest extends ActivityInstrumentationTestCase2<MainActiv
 				time_s = System.currentTimeMillis();
 				mActivity.getApplicationInterface().getHDRProcessor().updateAvg(avg_data, width, height, new_bitmap, avg_factor, iso);
 				times.add(System.currentTimeMillis() - time_s);
+				merged_fractions.add(mActivity.getApplicationInterface().getHDRProcessor().avg_merged_fraction);
 				// updateAvg recycles new_bitmap
 				if( cb != null ) {
 					cb.doneProcessAvg(i);
@@ -10940,7 +10941,7 @@ public class MainActivityTest extends ActivityInstrumentationTestCase2<MainActiv
 			}
 
 			time_s = System.currentTimeMillis();
-            nr_bitmap = mActivity.getApplicationInterface().getHDRProcessor().avgBrighten(allocation, width, height, iso);
+            nr_bitmap = mActivity.getApplicationInterface().getHDRProcessor().avgBrighten(avg_data, width, height, iso);
 			avg_data.destroy();
 			avg_data = null;
 			times.add(System.currentTimeMillis() - time_s);
@@ -10952,6 +10953,10 @@ public class MainActivityTest extends ActivityInstrumentationTestCase2<MainActiv
 				Log.d(TAG, "    " + time);
 			}
 			Log.d(TAG, "    total: " + total_time);
+			Log.d(TAG, "*** fraction of pixels merged for each image:");
+			for(float merged_fraction : merged_fractions) {
+				Log.d(TAG, "    " + merged_fraction);
+			}
 		}
 		catch(HDRProcessorException e) {
 			e.printStackTrace();
@@ -0,0 +1,89 @@
+package net.sourceforge.opencamera;
+
+import android.util.Log;
+
+/** Decides how many images to take for a noise reduction burst, by estimating how much each
+ *  further image would still reduce the noise of the average.
+ *  After each image is merged, the noise of a single image is estimated from the mean squared
+ *  difference between the average so far and the new image (as computed by processAvg(), c.f.
+ *  compute_diff() in process_avg.rs): for n images with independent noise of variance s^2 per
+ *  channel, the average has variance s^2/n, so the expected difference summed over the RGB
+ *  channels is 3 * s^2 * (1 + 1/n). The noise of the average then falls with the square root of
+ *  the effective number of images merged, where images only count for the fraction of pixels they
+ *  contributed to (so images rejected due to motion don't count).
+ */
+public class AdaptiveNoiseReduction {
+	private static final String TAG = "AdaptiveNoiseReduction";
+
+	public static final int min_images_c = 2; // we always need at least 2 images to merge
+	public static final float min_improvement_c = 0.25f; // stop once another image would reduce the noise by less than this, in 8-bit levels
+
+	private int n_merged = 1; // number of images in the average
+	private float n_effective = 1.0f; // number of images in the average, weighted by the fraction of pixels they contributed to
+	private float merged_fraction; // fraction of pixels the last image contributed to
+	private double noise_variance; // estimated variance of the noise of a single image, per channel
+	private int n_estimates;
+
+	/** Updates the estimate after an image has been merged into the average.
+	 * @param merged_fraction The fraction of pixels that the image contributed to.
+	 * @param mean_diff       The mean, over the merged pixels, of the squared difference between the
+	 *                        average and the image, summed over the RGB channels.
+	 */
+	public synchronized void addMerge(float merged_fraction, float mean_diff) {
+		if( merged_fraction > 0.0f ) {
+			double variance = mean_diff / (3.0 * (1.0 + 1.0/n_effective));
+			// average over the images merged so far, as each estimate is noisy
+			noise_variance = (noise_variance * n_estimates + variance) / (n_estimates+1);
+			n_estimates++;
+		}
+		this.n_merged++;
+		this.n_effective += merged_fraction;
+		this.merged_fraction = merged_fraction;
+		if( MyDebug.LOG ) {
+			Log.d(TAG, "addMerge: " + n_merged);
+			Log.d(TAG, "    merged_fraction: " + merged_fraction);
+			Log.d(TAG, "    mean_diff: " + mean_diff);
+			Log.d(TAG, "    noise: " + getNoise());
+			Log.d(TAG, "    n_effective: " + n_effective);
+		}
+	}
+
+	/** Returns whether any images have been merged, so that there's an estimate of the noise.
+	 */
+	public synchronized boolean hasEstimate() {
+		return n_estimates > 0;
+	}
+
+	/** Returns the estimated standard deviation of the noise of a single image, per channel, in
+	 *  8-bit levels.
+	 */
+	public synchronized float getNoise() {
+		return (float)Math.sqrt(noise_variance);
+	}
+
+	/** Returns the estimated reduction in the noise of the average, in 8-bit levels, from taking
+	 *  another image after n_images. Images beyond those merged so far are assumed to contribute
+	 *  to the same fraction of pixels as the last one.
+	 */
+	public synchronized float getImprovement(int n_images) {
+		float n_eff = n_effective + merged_fraction * Math.max(n_images - n_merged, 0);
+		double noise = Math.sqrt(noise_variance);
+		return (float)(noise/Math.sqrt(n_eff) - noise/Math.sqrt(n_eff + merged_fraction));
+	}
+
+	/** Whether a burst of n_images should be extended by another image. Until there's an estimate
+	 *  of the noise, this returns whether n_images is less than n_default.
+	 */
+	public synchronized boolean continueBurst(int n_images, int n_default) {
+		boolean result;
+		if( n_images < min_images_c )
+			result = true;
+		else if( !hasEstimate() )
+			result = n_images < n_default;
+		else
+			result = getImprovement(n_images) >= min_improvement_c;
+		if( MyDebug.LOG )
+			Log.d(TAG, "continueBurst after " + n_images + " images: " + result);
+		return result;
+	}
+}
@@ -0,0 +1,134 @@
+package net.sourceforge.opencamera;
+
+import android.content.ComponentCallbacks2;
+import android.os.Build;
+import android.renderscript.Allocation;
+import android.renderscript.Element;
+import android.renderscript.Type;
+import android.support.annotation.RequiresApi;
+import android.util.Log;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/** A pool of RenderScript allocations, so that the working images for HDR and NR can be reused
+ *  from one photo to the next, rather than allocating new ones for every photo. Allocations are
+ *  only reused for the same width, height (0 for 1D allocations) and element. The pool holds at
+ *  most getMaxBytes(), evicting the least recently released allocations first. See BitmapPool for
+ *  the equivalent for bitmaps.
+ */
+@RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+public class AllocationPool {
+	private static final String TAG = "AllocationPool";
+
+	private final LinkedList<Allocation> allocations = new LinkedList<>(); // least recently released first
+	private long max_bytes;
+	private long bytes;
+	private int hits;
+	private int misses;
+
+	/**
+	 * @param max_bytes The maximum number of bytes of allocations to hold.
+	 */
+	public AllocationPool(long max_bytes) {
+		this.max_bytes = max_bytes;
+	}
+
+	/** Returns an allocation from the pool with the supplied size and element, or null if there
+	 *  isn't one. The contents of the returned allocation are undefined.
+	 */
+	public synchronized Allocation acquire(Element element, int width, int height) {
+		for(Iterator<Allocation> iter = allocations.iterator(); iter.hasNext(); ) {
+			Allocation allocation = iter.next();
+			Type type = allocation.getType();
+			if( type.getX() == width && type.getY() == height && type.getElement().isCompatible(element) ) {
+				iter.remove();
+				bytes -= allocation.getBytesSize();
+				hits++;
+				if( MyDebug.LOG )
+					Log.d(TAG, "reuse allocation " + width + "x" + height + ", pool now " + bytes + " bytes");
+				return allocation;
+			}
+		}
+		misses++;
+		if( MyDebug.LOG )
+			Log.d(TAG, "no allocation " + width + "x" + height + " in pool");
+		return null;
+	}
+
+	/** Returns an allocation to the pool once it's no longer needed. If there isn't room, it's
+	 *  destroyed instead. The caller must not use the allocation afterwards.
+	 */
+	public synchronized void release(Allocation allocation) {
+		if( allocation == null ) {
+			return;
+		}
+		long size = allocation.getBytesSize();
+		if( size > max_bytes ) {
+			allocation.destroy();
+			return;
+		}
+		allocations.add(allocation);
+		bytes += size;
+		trimToSize(max_bytes);
+		if( MyDebug.LOG )
+			Log.d(TAG, "released allocation " + allocation.getType().getX() + "x" + allocation.getType().getY() + ", pool now " + bytes + " bytes");
+	}
+
+	/** Destroys the least recently released allocations until the pool holds at most size bytes.
+	 */
+	private void trimToSize(long size) {
+		while( bytes > size && !allocations.isEmpty() ) {
+			Allocation allocation = allocations.removeFirst();
+			bytes -= allocation.getBytesSize();
+			allocation.destroy();
+		}
+	}
+
+	/** Frees memory in response to ComponentCallbacks2.onTrimMemory().
+	 */
+	public synchronized void trimMemory(int level) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "trimMemory: " + level);
+		if( level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL ) {
+			// includes when the UI is hidden
+			trimToSize(0);
+		}
+		else if( level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW ) {
+			trimToSize(max_bytes/2);
+		}
+	}
+
+	/** Destroys all the allocations in the pool.
+	 */
+	public synchronized void clear() {
+		trimToSize(0);
+	}
+
+	public synchronized void setMaxBytes(long max_bytes) {
+		this.max_bytes = max_bytes;
+		trimToSize(max_bytes);
+	}
+
+	public synchronized long getMaxBytes() {
+		return max_bytes;
+	}
+
+	/** Returns the number of bytes of allocations currently held by the pool.
+	 */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	/** Returns how many times acquire() returned an allocation.
+	 */
+	public synchronized int getHits() {
+		return hits;
+	}
+
+	/** Returns how many times acquire() returned null.
+	 */
+	public synchronized int getMisses() {
+		return misses;
+	}
+}
@@ -0,0 +1,140 @@
+package net.sourceforge.opencamera;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/** A pool of mutable ARGB_8888 bitmaps, so that full resolution bitmaps can be reused when
+ *  decoding (via BitmapFactory.Options.inBitmap), rather than allocating new ones for every image.
+ *  This matters for HDR and NR, which decode several full resolution images per photo.
+ *  Bitmaps are only reused for the same width and height. The pool holds at most getMaxBytes(),
+ *  evicting the least recently released bitmaps first.
+ */
+public class BitmapPool {
+	private static final String TAG = "BitmapPool";
+
+	private final LinkedList<Bitmap> bitmaps = new LinkedList<>(); // least recently released first
+	private long max_bytes;
+	private long bytes;
+	private int hits;
+	private int misses;
+
+	/**
+	 * @param max_bytes The maximum number of bytes of bitmaps to hold.
+	 */
+	public BitmapPool(long max_bytes) {
+		this.max_bytes = max_bytes;
+	}
+
+	/** Returns the default maximum size of the pool, for a device with the supplied large heap
+	 *  memory (in MB). We only pool on devices with a large heap, as otherwise HDR and NR aren't
+	 *  offered anyway.
+	 */
+	public static long computeMaxBytes(int large_heap_memory) {
+		if( large_heap_memory >= 256 ) {
+			// a quarter of the heap is enough for a couple of full resolution images
+			return large_heap_memory*1024L*1024L/4;
+		}
+		return 0;
+	}
+
+	/** Returns a bitmap from the pool with the supplied size, or null if there isn't one. The
+	 *  contents of the returned bitmap are undefined.
+	 */
+	public synchronized Bitmap acquire(int width, int height) {
+		for(Iterator<Bitmap> iter = bitmaps.iterator(); iter.hasNext(); ) {
+			Bitmap bitmap = iter.next();
+			if( bitmap.getWidth() == width && bitmap.getHeight() == height ) {
+				iter.remove();
+				bytes -= bitmap.getByteCount();
+				hits++;
+				if( MyDebug.LOG )
+					Log.d(TAG, "reuse bitmap " + width + "x" + height + ", pool now " + bytes + " bytes");
+				return bitmap;
+			}
+		}
+		misses++;
+		if( MyDebug.LOG )
+			Log.d(TAG, "no bitmap " + width + "x" + height + " in pool");
+		return null;
+	}
+
+	/** Returns a bitmap to the pool once it's no longer needed. If it can't be reused, or there
+	 *  isn't room, it's recycled instead. The caller must not use the bitmap afterwards.
+	 */
+	public synchronized void release(Bitmap bitmap) {
+		if( bitmap == null || bitmap.isRecycled() ) {
+			return;
+		}
+		long size = bitmap.getByteCount();
+		if( !bitmap.isMutable() || bitmap.getConfig() != Bitmap.Config.ARGB_8888 || size > max_bytes ) {
+			bitmap.recycle();
+			return;
+		}
+		bitmaps.add(bitmap);
+		bytes += size;
+		trimToSize(max_bytes);
+		if( MyDebug.LOG )
+			Log.d(TAG, "released bitmap " + bitmap.getWidth() + "x" + bitmap.getHeight() + ", pool now " + bytes + " bytes");
+	}
+
+	/** Recycles the least recently released bitmaps until the pool holds at most size bytes.
+	 */
+	private void trimToSize(long size) {
+		while( bytes > size && !bitmaps.isEmpty() ) {
+			Bitmap bitmap = bitmaps.removeFirst();
+			bytes -= bitmap.getByteCount();
+			bitmap.recycle();
+		}
+	}
+
+	/** Frees memory in response to ComponentCallbacks2.onTrimMemory().
+	 */
+	public synchronized void trimMemory(int level) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "trimMemory: " + level);
+		if( level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL ) {
+			// includes when the UI is hidden
+			trimToSize(0);
+		}
+		else if( level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW ) {
+			trimToSize(max_bytes/2);
+		}
+	}
+
+	/** Recycles all the bitmaps in the pool.
+	 */
+	public synchronized void clear() {
+		trimToSize(0);
+	}
+
+	public synchronized void setMaxBytes(long max_bytes) {
+		this.max_bytes = max_bytes;
+		trimToSize(max_bytes);
+	}
+
+	public synchronized long getMaxBytes() {
+		return max_bytes;
+	}
+
+	/** Returns the number of bytes of bitmaps currently held by the pool.
+	 */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	/** Returns how many times acquire() returned a bitmap.
+	 */
+	public synchronized int getHits() {
+		return hits;
+	}
+
+	/** Returns how many times acquire() returned null.
+	 */
+	public synchronized int getMisses() {
+		return misses;
+	}
+}
@@ -37,6 +37,7 @@ public abstract class CameraController {
 	public static final String NOISE_REDUCTION_MODE_DEFAULT = "default";
 	public static final String ISO_DEFAULT = "auto";
 	public static final long EXPOSURE_TIME_DEFAULT = 1000000000L/30; // note, responsibility of callers to check that this is within the valid min/max range
+	public static final int N_IMAGES_NR_MAX = 12; // the most images taken for a noise reduction burst, see PictureCallback.continueBurst()
 
 	// for testing:
 	int count_camera_parameters_exception;
@@ -221,6 +222,11 @@ public abstract class CameraController {
 		void onStarted(); // called immediately before we start capturing the picture
 		void onCompleted(); // called after all relevant on*PictureTaken() callbacks have been called and returned
 		void onPictureTaken(byte[] data);
+		/** Alternative to onPictureTaken(), only called if setDirectJpeg() was called with a non-zero
+		 *  max_direct_images, for single (i.e., non-burst) images.
+		 *  Caller should call image.close() when done with the image.
+		 */
+		void onJpegImageTaken(JpegImage image);
 		/** Only called if RAW is requested.
 		 *  Caller should call raw_image.close() when done with the image.
 		 */
@@ -233,6 +239,15 @@ public abstract class CameraController {
 		 * The screen flash can be removed when or after onCompleted() is called.
 		 */
 		void onFrontScreenTurnOn();
+		/** Only called for bursts with setBurstForNoiseReduction(true), where the images are taken
+		 *  a few at a time, so that the number of images can depend on how much the noise is
+		 *  still improving. Called before requesting each image.
+		 * @param n_images  The number of images that will have been taken.
+		 * @param n_default The number of images that would have been taken for a fixed burst.
+		 * @return Whether to take another image after n_images. This is ignored once
+		 *         N_IMAGES_NR_MAX images have been taken.
+		 */
+		boolean continueBurst(int n_images, int n_default);
 	}
 	
 	public interface AutoFocusCallback {
@@ -355,7 +370,8 @@ public abstract class CameraController {
 	public abstract void setBurstNImages(int burst_requested_n_images);
 	/** Only relevant if setBurstType() is also called with BURSTTYPE_NORMAL. If this method is
 	 *  called with burst_for_noise_reduction, then the number of burst images, and other settings,
-	 *  will be set for noise reduction mode (and setBurstNImages() is ignored).
+	 *  will be set for noise reduction mode (and setBurstNImages() is ignored). The number of
+	 *  images may be adjusted as the burst is taken, see PictureCallback.continueBurst().
 	 */
 	public abstract void setBurstForNoiseReduction(boolean burst_for_noise_reduction);
 	/** Only relevant if setBurstType() is also called with BURSTTYPE_EXPO. Sets the number of
@@ -382,6 +398,13 @@ public abstract class CameraController {
 	 *                       caught by the callera).
 	 */
 	public abstract void setRaw(boolean want_raw, int max_raw_images);
+	/**
+	 * @param max_direct_images If non-zero, JPEG photos may be passed to the PictureCallback as a JpegImage that
+	 *                          holds the camera's buffer, rather than being copied to a byte array. This is the
+	 *                          maximum number of such images that may be unclosed at any one time; once this many
+	 *                          are held, further photos are copied to a byte array as usual.
+	 */
+	public abstract void setDirectJpeg(int max_direct_images);
 	public abstract void setVideoHighSpeed(boolean setVideoHighSpeed);
 	/**
 	 * setUseCamera2FakeFlash() should be called after creating the CameraController, and before calling getCameraFeatures() or
@@ -825,6 +825,11 @@ public class CameraController1 extends CameraController {
 		// not supported for CameraController1
 	}
 
+	@Override
+	public void setDirectJpeg(int max_direct_images) {
+		// not supported for CameraController1, as the old camera API always gives us a byte array
+	}
+
 	@Override
 	public void setVideoHighSpeed(boolean setVideoHighSpeed) {
 		// not supported for CameraController1
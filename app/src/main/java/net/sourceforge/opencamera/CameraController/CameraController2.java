@@ -106,6 +106,8 @@ public class CameraController2 extends CameraController {
 	private boolean want_raw;
 	//private boolean want_raw = true;
 	private int max_raw_images;
+	private int max_direct_jpeg_images; // if non-zero, we can pass up to this many JPEG images to the callback without copying them
+	private final List<JpegImage> direct_jpeg_images = new ArrayList<>(); // the JpegImages still holding an Image from imageReader
 	private android.util.Size raw_size;
 	private ImageReader imageReaderRaw;
 	private OnRawImageAvailableListener onRawImageAvailableListener;
@@ -117,6 +119,8 @@ public class CameraController2 extends CameraController {
 	private final List<byte []> pending_burst_images = new ArrayList<>(); // burst images that have been captured so far, but not yet sent to the application
 	private List<CaptureRequest> slow_burst_capture_requests; // the set of burst capture requests - used when not using captureBurst() (e.g., when use_expo_fast_burst==false, or for focus bracketing)
 	private long slow_burst_start_ms = 0; // time when burst started (used for measuring performance of captures when not using captureBurst())
+	private AdaptiveBurst adaptive_burst; // for burst_for_noise_reduction, the burst images still to be requested
+	private final static int adaptive_burst_lookahead_c = 3; // how many images of an AdaptiveBurst we request ahead of those received
 	private RawImage pending_raw_image;
 	private ErrorCallback take_picture_error_cb;
 	private boolean want_video_high_speed;
@@ -907,6 +911,43 @@ public class CameraController2 extends CameraController {
 		return temperature;
 	}
 
+	/** For burst_for_noise_reduction, the images are requested a few at a time rather than with a
+	 *  single captureBurst(), so that the burst can be stopped early or extended, depending on
+	 *  PictureCallback.continueBurst(). A new image is requested each time one is received, with
+	 *  the last one tagged with RequestTag.CAPTURE, so that the preview is restarted as for a fixed
+	 *  burst.
+	 */
+	private class AdaptiveBurst {
+		private final CaptureRequest request;
+		private final CaptureRequest last_request;
+		private final int n_default; // the number of images for a fixed burst
+		private final int n_max;
+		private int n_requested;
+		private boolean last_requested;
+
+		AdaptiveBurst(CaptureRequest request, CaptureRequest last_request, int n_default, int n_max) {
+			this.request = request;
+			this.last_request = last_request;
+			this.n_default = n_default;
+			this.n_max = n_max;
+		}
+
+		/** Requests the next image, which is the last one if we've reached n_max or the callback
+		 *  doesn't want any more.
+		 */
+		void requestNext() throws CameraAccessException {
+			int n_images = n_requested+1;
+			boolean is_last = n_images >= n_max || jpeg_cb == null || !jpeg_cb.continueBurst(n_images, n_default);
+			if( MyDebug.LOG )
+				Log.d(TAG, "adaptive burst: request image " + n_images + (is_last ? " (last)" : ""));
+			captureSession.capture(is_last ? last_request : request, previewCaptureCallback, handler);
+			n_requested = n_images;
+			n_burst++;
+			if( is_last )
+				last_requested = true;
+		}
+	}
+
 	private class OnImageAvailableListener implements ImageReader.OnImageAvailableListener {
 		@Override
 		public void onImageAvailable(ImageReader reader) {
@@ -925,12 +966,22 @@ public class CameraController2 extends CameraController {
 				Image image = reader.acquireNextImage();
 				if( MyDebug.LOG )
 					Log.d(TAG, "image timestamp: " + image.getTimestamp());
-				ByteBuffer buffer = image.getPlanes()[0].getBuffer();
-				byte [] bytes = new byte[buffer.remaining()];
-				if( MyDebug.LOG )
-					Log.d(TAG, "read " + bytes.length + " bytes");
-				buffer.get(bytes);
-				image.close();
+				byte [] bytes = null;
+				JpegImage jpeg_image = null;
+				if( !(burst_single_request && n_burst > 1) && canHoldDirectJpeg() ) {
+					// pass on the Image itself, so the JPEG can be saved without copying it to the Java heap
+					jpeg_image = createDirectJpeg(image);
+					if( MyDebug.LOG )
+						Log.d(TAG, "direct jpeg of " + jpeg_image.getByteCount() + " bytes");
+				}
+				else {
+					ByteBuffer buffer = image.getPlanes()[0].getBuffer();
+					bytes = new byte[buffer.remaining()];
+					if( MyDebug.LOG )
+						Log.d(TAG, "read " + bytes.length + " bytes");
+					buffer.get(bytes);
+					image.close();
+				}
 				if( burst_single_request && n_burst > 1 ) {
 					pending_burst_images.add(bytes);
 					if( pending_burst_images.size() >= n_burst ) { // shouldn't ever be greater, but just in case
@@ -1054,11 +1105,35 @@ public class CameraController2 extends CameraController {
 					}
 				}
 				else {
-					jpeg_cb.onPictureTaken(bytes);
+					if( jpeg_image != null )
+						jpeg_cb.onJpegImageTaken(jpeg_image);
+					else
+						jpeg_cb.onPictureTaken(bytes);
 					n_burst--;
 					if( MyDebug.LOG )
 						Log.d(TAG, "n_burst is now " + n_burst);
+					if( adaptive_burst != null && !adaptive_burst.last_requested && camera != null && captureSession != null ) {
+						try {
+							adaptive_burst.requestNext();
+						}
+						catch(CameraAccessException e) {
+							if( MyDebug.LOG ) {
+								Log.e(TAG, "failed to take next adaptive burst image");
+								Log.e(TAG, "reason: " + e.getReason());
+								Log.e(TAG, "message: " + e.getMessage());
+							}
+							e.printStackTrace();
+							adaptive_burst = null;
+							jpeg_cb = null;
+							if( take_picture_error_cb != null ) {
+								take_picture_error_cb.onError();
+								take_picture_error_cb = null;
+							}
+							return;
+						}
+					}
 					if( n_burst == 0 ) {
+						adaptive_burst = null;
 						// need to set jpeg_cb etc to null before calling onCompleted, as that may reenter CameraController to take another photo (if in auto-repeat burst mode) - see testTakePhotoBurst()
 						PictureCallback cb = jpeg_cb;
 						jpeg_cb = null;
@@ -1533,9 +1608,43 @@ public class CameraController2 extends CameraController {
 		}
 	}
 	
+	/** Whether we can pass another JPEG to the callback as a JpegImage. We always leave one of
+	 *  imageReader's images free, as otherwise acquireNextImage() would fail.
+	 */
+	private boolean canHoldDirectJpeg() {
+		synchronized( direct_jpeg_images ) {
+			return direct_jpeg_images.size() < max_direct_jpeg_images;
+		}
+	}
+
+	private JpegImage createDirectJpeg(Image image) {
+		JpegImage jpeg_image = new JpegImage(image, new JpegImage.OnReleasedListener() {
+			@Override
+			public void onReleased(JpegImage image) {
+				synchronized( direct_jpeg_images ) {
+					direct_jpeg_images.remove(image);
+				}
+			}
+		});
+		synchronized( direct_jpeg_images ) {
+			direct_jpeg_images.add(jpeg_image);
+		}
+		return jpeg_image;
+	}
+
 	private void closePictureImageReader() {
 		if( MyDebug.LOG )
 			Log.d(TAG, "closePictureImageReader()");
+		List<JpegImage> held_images;
+		synchronized( direct_jpeg_images ) {
+			held_images = new ArrayList<>(direct_jpeg_images);
+		}
+		for(JpegImage jpeg_image : held_images) {
+			// the images' buffers become invalid once the ImageReader is closed, so copy any that are still waiting to be saved
+			if( MyDebug.LOG )
+				Log.d(TAG, "detach direct jpeg image still held");
+			jpeg_image.detach();
+		}
 		if( imageReader != null ) {
 			imageReader.close();
 			imageReader = null;
@@ -3006,6 +3115,22 @@ public class CameraController2 extends CameraController {
 		this.max_raw_images = max_raw_images;
 	}
 
+	@Override
+	public void setDirectJpeg(int max_direct_images) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "setDirectJpeg: " + max_direct_images);
+		if( this.max_direct_jpeg_images == max_direct_images ) {
+			return;
+		}
+		if( captureSession != null ) {
+			// can only call this when captureSession not created - as it affects how we create the imageReader
+			if( MyDebug.LOG )
+				Log.e(TAG, "can't set direct jpeg when captureSession running!");
+			throw new RuntimeException(); // throw as RuntimeException, as this is a programming error
+		}
+		this.max_direct_jpeg_images = max_direct_images;
+	}
+
 	@Override
 	public void setVideoHighSpeed(boolean want_video_high_speed) {
 		if( MyDebug.LOG )
@@ -3160,8 +3285,9 @@ public class CameraController2 extends CameraController {
 				Log.e(TAG, "application needs to call setPictureSize()");
 			throw new RuntimeException(); // throw as RuntimeException, as this is a programming error
 		}
-		// maxImages only needs to be 2, as we always read the JPEG data and close the image straight away in the imageReader
-		imageReader = ImageReader.newInstance(picture_width, picture_height, ImageFormat.JPEG, 2);
+		// maxImages only needs to be 2, as we always read the JPEG data and close the image straight away in the imageReader -
+		// unless passing images to the callback directly, in which case we need space for those (plus one for the next image)
+		imageReader = ImageReader.newInstance(picture_width, picture_height, ImageFormat.JPEG, Math.max(2, max_direct_jpeg_images+1));
 		//imageReader = ImageReader.newInstance(picture_width, picture_height, ImageFormat.YUV_420_888, 2);
 		if( MyDebug.LOG ) {
 			Log.d(TAG, "created new imageReader: " + imageReader.toString());
@@ -3189,6 +3315,7 @@ public class CameraController2 extends CameraController {
 			onRawImageAvailableListener.clear();
 		}
 		slow_burst_capture_requests = null;
+		adaptive_burst = null;
 		n_burst = 0;
 		burst_single_request = false;
 		slow_burst_start_ms = 0;
@@ -5294,7 +5421,16 @@ public class CameraController2 extends CameraController {
 			final boolean use_burst = true;
 			//final boolean use_burst = false;
 
-			if( use_burst ) {
+			if( burst_for_noise_reduction ) {
+				// n_burst is now the default number of images, but we may take fewer if the noise stops improving
+				// (mainly for bright scenes), or more if it's still improving (mainly for dark scenes)
+				adaptive_burst = new AdaptiveBurst(request, last_request, n_burst, Math.min(2*n_burst, N_IMAGES_NR_MAX));
+				n_burst = 0; // incremented as each image is requested
+				while( !adaptive_burst.last_requested && adaptive_burst.n_requested < adaptive_burst_lookahead_c ) {
+					adaptive_burst.requestNext();
+				}
+			}
+			else if( use_burst ) {
 				List<CaptureRequest> requests = new ArrayList<>();
 				for(int i=0;i<n_burst-1;i++)
 					requests.add(request);
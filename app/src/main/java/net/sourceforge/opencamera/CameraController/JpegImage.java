@@ -0,0 +1,130 @@
+package net.sourceforge.opencamera.CameraController;
+
+import android.annotation.TargetApi;
+import android.media.Image;
+import android.os.Build;
+import android.util.Log;
+
+import net.sourceforge.opencamera.MyDebug;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/** Wrapper class to store a JPEG Image from an ImageReader, so that the JPEG data can be written
+ *  out directly from the Image's buffer, without copying it to the Java heap.
+ *  Whilst open, this holds one of the ImageReader's images, so callers should close it as soon as
+ *  they're done. If the ImageReader is closed first (e.g., the camera is closed), the camera
+ *  controller calls detach(), after which the data is held on the Java heap instead.
+ */
+public class JpegImage {
+	private static final String TAG = "JpegImage";
+
+	/** Called when an image is closed or detached, so it no longer holds an Image.
+	 */
+	public interface OnReleasedListener {
+		void onReleased(JpegImage image);
+	}
+
+	/** Reads the JPEG data, see read(Reader).
+	 */
+	public interface Reader<T> {
+		T read(ByteBuffer data) throws IOException;
+	}
+
+	private Image image;
+	private ByteBuffer buffer; // the Image's data, or a heap copy if detached
+	private final OnReleasedListener listener;
+	private boolean closed;
+
+	@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+	public JpegImage(Image image, OnReleasedListener listener) {
+		this.image = image;
+		this.buffer = image.getPlanes()[0].getBuffer();
+		this.listener = listener;
+	}
+
+	/** Returns the size of the JPEG data in bytes.
+	 */
+	public synchronized int getByteCount() {
+		return closed ? 0 : buffer.remaining();
+	}
+
+	/** Whether the data is still held in the Image, rather than on the Java heap.
+	 */
+	public synchronized boolean isDirect() {
+		return image != null;
+	}
+
+	/** Writes the JPEG data to the supplied channel.
+	 */
+	public synchronized void writeImage(WritableByteChannel channel) throws IOException {
+		if( MyDebug.LOG )
+			Log.d(TAG, "writeImage");
+		if( closed ) {
+			throw new IOException("image already closed");
+		}
+		// use a duplicate, so the image can be written more than once
+		ByteBuffer data = buffer.duplicate();
+		while( data.hasRemaining() ) {
+			channel.write(data);
+		}
+	}
+
+	/** Passes a read-only view of the JPEG data to reader, and returns its result. The Image can't
+	 *  be closed or detached whilst reader runs, so reader can use the view without copying it, but
+	 *  mustn't keep it afterwards.
+	 */
+	public synchronized <T> T read(Reader<T> reader) throws IOException {
+		if( closed ) {
+			throw new IOException("image already closed");
+		}
+		return reader.read(buffer.asReadOnlyBuffer());
+	}
+
+	/** Returns a copy of the JPEG data on the Java heap.
+	 */
+	public synchronized byte [] getBytes() {
+		if( closed ) {
+			return null;
+		}
+		byte [] bytes = new byte[buffer.remaining()];
+		buffer.duplicate().get(bytes);
+		return bytes;
+	}
+
+	/** Copies the JPEG data to the Java heap, and closes the Image. Called by the camera
+	 *  controller if the ImageReader is about to be closed whilst this image is still open.
+	 */
+	@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+	synchronized void detach() {
+		if( MyDebug.LOG )
+			Log.d(TAG, "detach");
+		if( closed || image == null ) {
+			return;
+		}
+		buffer = ByteBuffer.wrap(getBytes());
+		image.close();
+		image = null;
+		listener.onReleased(this);
+	}
+
+	/** Closes the image. Must be called to free up resources when no longer needed. After calling
+	 *  this method, this object should not be used.
+	 */
+	@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+	public synchronized void close() {
+		if( MyDebug.LOG )
+			Log.d(TAG, "close");
+		if( closed ) {
+			return;
+		}
+		closed = true;
+		buffer = null;
+		if( image != null ) {
+			image.close();
+			image = null;
+			listener.onReleased(this);
+		}
+	}
+}
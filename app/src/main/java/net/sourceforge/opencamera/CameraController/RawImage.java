@@ -47,6 +47,17 @@ public class RawImage {
         }
     }
 
+    /** Returns the number of bytes held by the image's buffers.
+     */
+	@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    public long getByteCount() {
+        long n_bytes = 0;
+        for(Image.Plane plane : image.getPlanes()) {
+            n_bytes += plane.getBuffer().capacity();
+        }
+        return n_bytes;
+    }
+
     /** Closes the image. Must be called to free up resources when no longer needed. After calling
      *  this method, this object should not be used.
      */
@@ -0,0 +1,487 @@
+package net.sourceforge.opencamera;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/** Exposure fusion, as described in Mertens, Kautz and Van Reeth, "Exposure Fusion" (2007). Rather
+ *  than estimating response functions to recover radiance and then tonemapping, each pixel of each
+ *  image is weighted by how contrasty, saturated and well exposed it is, and the images are blended
+ *  with those weights through Laplacian pyramids, so that the weights can change quickly without
+ *  leaving seams.
+ *  To keep the memory down, the full resolution level is never stored: it's computed from the input
+ *  images a band of rows at a time when needed. Only the first downsampled level of each image, and
+ *  the blended pyramid, are held at once. The bands of each level are processed in parallel.
+ */
+public class ExposureFusion {
+	private static final String TAG = "ExposureFusion";
+
+	private static final int band_rows_c = 16; // rows of the first downsampled level computed by each task
+	private static final int max_levels_c = 12;
+	private static final float well_exposed_sigma_c = 0.2f;
+	private static final float min_weight_c = 1.0e-12f; // so pixels with zero weight in every image are averaged
+
+	/** Runs tasks in parallel.
+	 */
+	public interface TaskRunner {
+		/** Runs the tasks, and waits for them to complete.
+		 * @return Whether all the tasks completed successfully.
+		 */
+		boolean runTasks(List<Callable<Void>> tasks);
+	}
+
+	private interface RowReader {
+		/** Reads row y of ARGB pixels of the image with the supplied index into buffer.
+		 */
+		void readRow(int [] buffer, int index, int y);
+	}
+
+	private interface BandTask {
+		/** Processes the rows [start_y, stop_y).
+		 */
+		void run(int start_y, int stop_y);
+	}
+
+	private final RowReader reader;
+	private final int n_images;
+	private final int [] offsets_x;
+	private final int [] offsets_y;
+	private final TaskRunner runner;
+	private final int n_levels;
+	private final int [] widths;
+	private final int [] heights;
+
+	/** Fuses the bitmaps, storing the result as ARGB pixels in output.
+	 * @param bitmaps   The images, which must all be the same resolution.
+	 * @param offsets_x The offsets of each image, as computed by HDRProcessor.autoAlignment().
+	 * @param offsets_y The offsets of each image, as computed by HDRProcessor.autoAlignment().
+	 * @param output    Array of width*height pixels, which may not be one of the inputs.
+	 * @return Whether the tasks run by runner were successful.
+	 */
+	public static boolean fuse(final List<Bitmap> bitmaps, int [] offsets_x, int [] offsets_y, int [] output, TaskRunner runner) {
+		final int width = bitmaps.get(0).getWidth();
+		return new ExposureFusion(new RowReader() {
+			@Override
+			public void readRow(int [] buffer, int index, int y) {
+				bitmaps.get(index).getPixels(buffer, 0, width, 0, y, width, 1);
+			}
+		}, bitmaps.size(), width, bitmaps.get(0).getHeight(), offsets_x, offsets_y, runner).fuse(output);
+	}
+
+	/** As fuse(List, int [], int [], int [], TaskRunner), but from arrays of ARGB pixels.
+	 */
+	public static boolean fuse(final int [][] pixels, final int width, int height, int [] offsets_x, int [] offsets_y, int [] output, TaskRunner runner) {
+		return new ExposureFusion(new RowReader() {
+			@Override
+			public void readRow(int [] buffer, int index, int y) {
+				System.arraycopy(pixels[index], y*width, buffer, 0, width);
+			}
+		}, pixels.length, width, height, offsets_x, offsets_y, runner).fuse(output);
+	}
+
+	private ExposureFusion(RowReader reader, int n_images, int width, int height, int [] offsets_x, int [] offsets_y, TaskRunner runner) {
+		this.reader = reader;
+		this.n_images = n_images;
+		this.offsets_x = offsets_x;
+		this.offsets_y = offsets_y;
+		this.runner = runner;
+		// stop once the coarsest level is just a few pixels, so the blending is global at that level
+		int levels = 1;
+		while( levels < max_levels_c && Math.min(levelSize(width, levels-1), levelSize(height, levels-1)) > 8 ) {
+			levels++;
+		}
+		this.n_levels = levels;
+		this.widths = new int[n_levels];
+		this.heights = new int[n_levels];
+		for(int level=0;level<n_levels;level++) {
+			widths[level] = levelSize(width, level);
+			heights[level] = levelSize(height, level);
+		}
+		if( MyDebug.LOG )
+			Log.d(TAG, "fuse " + n_images + " images " + width + "x" + height + ", " + n_levels + " levels");
+	}
+
+	private static int levelSize(int size, int level) {
+		for(int i=0;i<level;i++) {
+			size = (size+1)/2;
+		}
+		return size;
+	}
+
+	/** Runs task over the rows [0, n_rows) in bands of band_rows rows, in parallel.
+	 */
+	private boolean runBands(int n_rows, int band_rows, final BandTask task) {
+		List<Callable<Void>> tasks = new ArrayList<>();
+		for(int y=0;y<n_rows;y+=band_rows) {
+			final int start_y = y;
+			final int stop_y = Math.min(y+band_rows, n_rows);
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					task.run(start_y, stop_y);
+					return null;
+				}
+			});
+		}
+		return runner.runTasks(tasks);
+	}
+
+	private boolean fuse(final int [] output) {
+		long time_s = 0;
+		if( MyDebug.LOG )
+			time_s = System.currentTimeMillis();
+
+		// the first downsampled level of each image and its normalised weights; the weights are only
+		// needed until that image has been added to the blended pyramid
+		final float [][] level1 = new float[n_images][];
+		final float [][] weights1 = new float[n_images][];
+		// the blended Laplacian pyramid, from level 1
+		final float [][] blended = new float[n_levels][];
+		if( n_levels > 1 ) {
+			for(int i=0;i<n_images;i++) {
+				level1[i] = new float[3*widths[1]*heights[1]];
+				weights1[i] = new float[widths[1]*heights[1]];
+			}
+			for(int level=1;level<n_levels;level++) {
+				blended[level] = new float[3*widths[level]*heights[level]];
+			}
+			if( !runBands(heights[1], band_rows_c, new BandTask() {
+				@Override
+				public void run(int start_y, int stop_y) {
+					downsampleFullLevel(level1, weights1, start_y, stop_y);
+				}
+			}) ) {
+				return false;
+			}
+			if( MyDebug.LOG )
+				Log.d(TAG, "time after downsampling full resolution: " + (System.currentTimeMillis() - time_s));
+
+			// the weights are normalised, so each image can be added to the blended pyramid in turn
+			for(int i=0;i<n_images;i++) {
+				if( !addToPyramid(blended, level1[i], weights1[i]) )
+					return false;
+				weights1[i] = null;
+			}
+			if( MyDebug.LOG )
+				Log.d(TAG, "time after blending pyramids: " + (System.currentTimeMillis() - time_s));
+
+			// collapse the blended pyramid down to level 1
+			for(int level=n_levels-2;level>=1;level--) {
+				final int this_level = level;
+				if( !runBands(heights[level], band_rows_c, new BandTask() {
+					@Override
+					public void run(int start_y, int stop_y) {
+						float [] up_row = new float[3*widths[this_level]];
+						float [] temp = new float[3*widths[this_level+1]];
+						int row_size = 3*widths[this_level];
+						for(int y=start_y;y<stop_y;y++) {
+							upsampleRow(blended[this_level+1], widths[this_level+1], heights[this_level+1], 3, y, widths[this_level], up_row, temp);
+							for(int x=0, indx=y*row_size;x<row_size;x++,indx++) {
+								blended[this_level][indx] += up_row[x];
+							}
+						}
+					}
+				}) ) {
+					return false;
+				}
+				blended[level+1] = null;
+			}
+		}
+
+		// finally the full resolution level, which is the weighted sum of each image's difference
+		// from its upsampled level 1, added to the upsampled blended level 1
+		if( !runBands(heights[0], 2*band_rows_c, new BandTask() {
+			@Override
+			public void run(int start_y, int stop_y) {
+				fuseFullLevel(output, level1, n_levels > 1 ? blended[1] : null, start_y, stop_y);
+			}
+		}) ) {
+			return false;
+		}
+		if( MyDebug.LOG )
+			Log.d(TAG, "time for fuse: " + (System.currentTimeMillis() - time_s));
+		return true;
+	}
+
+	/** Computes the full resolution rows [start_y, stop_y) (clamped to the image) of each image as
+	 *  floating point rgb, and their weights normalised over all the images.
+	 * @param rgb     For each image, 3*width*(stop_y-start_y) values.
+	 * @param weights For each image, width*(stop_y-start_y) values.
+	 */
+	private void computeFullRows(float [][] rgb, float [][] weights, int start_y, int stop_y) {
+		final int width = widths[0];
+		final int height = heights[0];
+		final int n_rows = stop_y - start_y;
+		final float well_exposed_scale = 1.0f/(2.0f*well_exposed_sigma_c*well_exposed_sigma_c);
+		int [] row = new int[width];
+		int [] shifted = new int[width];
+		float [] grey = new float[(n_rows+2)*width]; // includes a row either side, for the contrast
+		for(int i=0;i<n_images;i++) {
+			for(int r=0;r<n_rows+2;r++) {
+				int y = Math.max(0, Math.min(height-1, start_y+r-1));
+				readAlignedRow(row, shifted, i, y);
+				for(int x=0;x<width;x++) {
+					int color = shifted[x];
+					int red = (color >> 16) & 0xFF;
+					int green = (color >> 8) & 0xFF;
+					int blue = color & 0xFF;
+					grey[r*width+x] = (red + green + blue)/(3.0f*255.0f);
+					if( r >= 1 && r <= n_rows ) {
+						int indx = 3*((r-1)*width+x);
+						rgb[i][indx] = red;
+						rgb[i][indx+1] = green;
+						rgb[i][indx+2] = blue;
+					}
+				}
+			}
+			float [] image_rgb = rgb[i];
+			float [] image_weights = weights[i];
+			for(int r=0;r<n_rows;r++) {
+				int grey_row = (r+1)*width;
+				for(int x=0;x<width;x++) {
+					float centre = grey[grey_row+x];
+					float left = grey[grey_row+Math.max(x-1, 0)];
+					float right = grey[grey_row+Math.min(x+1, width-1)];
+					float contrast = Math.abs(left + right + grey[grey_row-width+x] + grey[grey_row+width+x] - 4.0f*centre);
+
+					int indx = 3*(r*width+x);
+					float red = image_rgb[indx]/255.0f;
+					float green = image_rgb[indx+1]/255.0f;
+					float blue = image_rgb[indx+2]/255.0f;
+					float d_r = red - centre, d_g = green - centre, d_b = blue - centre;
+					float saturation = (float)Math.sqrt((d_r*d_r + d_g*d_g + d_b*d_b)/3.0f);
+					float e_r = red - 0.5f, e_g = green - 0.5f, e_b = blue - 0.5f;
+					float well_exposed = (float)Math.exp(-(e_r*e_r + e_g*e_g + e_b*e_b)*well_exposed_scale);
+
+					image_weights[r*width+x] = contrast * saturation * well_exposed + min_weight_c;
+				}
+			}
+		}
+		for(int indx=0;indx<n_rows*width;indx++) {
+			float sum = 0.0f;
+			for(int i=0;i<n_images;i++) {
+				sum += weights[i][indx];
+			}
+			for(int i=0;i<n_images;i++) {
+				weights[i][indx] /= sum;
+			}
+		}
+	}
+
+	/** Reads row y of the image with the supplied index, shifted by the image's offset (with pixels
+	 *  outside the image clamped to the edge).
+	 */
+	private void readAlignedRow(int [] buffer, int [] shifted, int index, int y) {
+		final int width = widths[0];
+		int offset_x = offsets_x[index];
+		int src_y = Math.max(0, Math.min(heights[0]-1, y + offsets_y[index]));
+		reader.readRow(buffer, index, src_y);
+		if( offset_x == 0 ) {
+			System.arraycopy(buffer, 0, shifted, 0, width);
+			return;
+		}
+		for(int x=0;x<width;x++) {
+			shifted[x] = buffer[Math.max(0, Math.min(width-1, x + offset_x))];
+		}
+	}
+
+	/** Computes the rows [start_y, stop_y) of level 1 for each image, and of the normalised weights.
+	 */
+	private void downsampleFullLevel(float [][] level1, float [][] weights1, int start_y, int stop_y) {
+		// the full resolution rows that are needed
+		int full_start_y = Math.max(0, 2*start_y-2);
+		int full_stop_y = Math.min(heights[0], 2*stop_y+1);
+		int n_rows = full_stop_y - full_start_y;
+		float [][] rgb = new float[n_images][3*widths[0]*n_rows];
+		float [][] weights = new float[n_images][widths[0]*n_rows];
+		computeFullRows(rgb, weights, full_start_y, full_stop_y);
+		float [] temp = new float[3*widths[0]];
+		for(int i=0;i<n_images;i++) {
+			for(int y=start_y;y<stop_y;y++) {
+				downsampleRow(rgb[i], widths[0], heights[0], full_start_y, 3, y, level1[i], widths[1], temp);
+				downsampleRow(weights[i], widths[0], heights[0], full_start_y, 1, y, weights1[i], widths[1], temp);
+			}
+		}
+	}
+
+	/** Adds an image's Laplacian pyramid, weighted by the Gaussian pyramid of its normalised weights,
+	 *  to the blended pyramid.
+	 * @param image   Level 1 of the image, which isn't modified.
+	 * @param weights Level 1 of the normalised weights.
+	 */
+	private boolean addToPyramid(final float [][] blended, float [] image, float [] weights) {
+		float [] this_image = image;
+		float [] this_weights = weights;
+		for(int level=1;level<n_levels;level++) {
+			final int this_level = level;
+			final float [] level_image = this_image;
+			final float [] level_weights = this_weights;
+			final float [] next_image = level+1 < n_levels ? new float[3*widths[level+1]*heights[level+1]] : null;
+			final float [] next_weights = level+1 < n_levels ? new float[widths[level+1]*heights[level+1]] : null;
+			if( next_image != null ) {
+				if( !runBands(heights[level+1], band_rows_c, new BandTask() {
+					@Override
+					public void run(int start_y, int stop_y) {
+						float [] temp = new float[3*widths[this_level]];
+						for(int y=start_y;y<stop_y;y++) {
+							downsampleRow(level_image, widths[this_level], heights[this_level], 0, 3, y, next_image, widths[this_level+1], temp);
+							downsampleRow(level_weights, widths[this_level], heights[this_level], 0, 1, y, next_weights, widths[this_level+1], temp);
+						}
+					}
+				}) ) {
+					return false;
+				}
+			}
+			if( !runBands(heights[level], band_rows_c, new BandTask() {
+				@Override
+				public void run(int start_y, int stop_y) {
+					int width = widths[this_level];
+					float [] up_row = next_image != null ? new float[3*width] : null;
+					float [] temp = next_image != null ? new float[3*widths[this_level+1]] : null;
+					float [] level_blended = blended[this_level];
+					for(int y=start_y;y<stop_y;y++) {
+						if( next_image != null )
+							upsampleRow(next_image, widths[this_level+1], heights[this_level+1], 3, y, width, up_row, temp);
+						for(int x=0;x<width;x++) {
+							float weight = level_weights[y*width+x];
+							int indx = 3*(y*width+x);
+							for(int c=0;c<3;c++) {
+								// the coarsest level is the Gaussian rather than the Laplacian
+								float laplacian = level_image[indx+c] - (next_image != null ? up_row[3*x+c] : 0.0f);
+								level_blended[indx+c] += weight * laplacian;
+							}
+						}
+					}
+				}
+			}) ) {
+				return false;
+			}
+			this_image = next_image;
+			this_weights = next_weights;
+		}
+		return true;
+	}
+
+	/** Computes the full resolution rows [start_y, stop_y) of the fused image.
+	 * @param blended1 Level 1 of the collapsed blended pyramid, or null if there's only one level.
+	 */
+	private void fuseFullLevel(int [] output, float [][] level1, float [] blended1, int start_y, int stop_y) {
+		final int width = widths[0];
+		int n_rows = stop_y - start_y;
+		float [][] rgb = new float[n_images][3*width*n_rows];
+		float [][] weights = new float[n_images][width*n_rows];
+		computeFullRows(rgb, weights, start_y, stop_y);
+		float [] value = new float[3*width];
+		float [] up_row = new float[3*width];
+		float [] temp = n_levels > 1 ? new float[3*widths[1]] : null;
+		for(int y=start_y;y<stop_y;y++) {
+			int r = y - start_y;
+			if( blended1 != null )
+				upsampleRow(blended1, widths[1], heights[1], 3, y, width, value, temp);
+			else
+				Arrays.fill(value, 0.0f);
+			for(int i=0;i<n_images;i++) {
+				if( level1[i] != null )
+					upsampleRow(level1[i], widths[1], heights[1], 3, y, width, up_row, temp);
+				float [] image_rgb = rgb[i];
+				float [] image_weights = weights[i];
+				for(int x=0;x<width;x++) {
+					float weight = image_weights[r*width+x];
+					int indx = 3*(r*width+x);
+					for(int c=0;c<3;c++) {
+						float laplacian = image_rgb[indx+c] - (level1[i] != null ? up_row[3*x+c] : 0.0f);
+						value[3*x+c] += weight * laplacian;
+					}
+				}
+			}
+			for(int x=0;x<width;x++) {
+				int red = Math.max(0, Math.min(255, (int)(value[3*x]+0.5f)));
+				int green = Math.max(0, Math.min(255, (int)(value[3*x+1]+0.5f)));
+				int blue = Math.max(0, Math.min(255, (int)(value[3*x+2]+0.5f)));
+				output[y*width+x] = (255 << 24) | (red << 16) | (green << 8) | blue;
+			}
+		}
+	}
+
+	/** Computes row y of the level below in, by filtering with the 5 tap binomial kernel and taking
+	 *  every other pixel. Pixels outside the image are clamped to the edge.
+	 * @param in        The level, holding the rows from in_start_y (which must include the rows
+	 *                  needed, 2*y-2 to 2*y+2, clamped to the level).
+	 * @param channels  The number of values per pixel.
+	 * @param temp      Array of at least channels*in_width values.
+	 */
+	private static void downsampleRow(float [] in, int in_width, int in_height, int in_start_y, int channels, int y, float [] out, int out_width, float [] temp) {
+		// vertical filter into temp
+		int row_size = channels*in_width;
+		int row_m2 = (Math.max(0, 2*y-2) - in_start_y)*row_size;
+		int row_m1 = (Math.max(0, 2*y-1) - in_start_y)*row_size;
+		int row_0 = (Math.min(in_height-1, 2*y) - in_start_y)*row_size;
+		int row_p1 = (Math.min(in_height-1, 2*y+1) - in_start_y)*row_size;
+		int row_p2 = (Math.min(in_height-1, 2*y+2) - in_start_y)*row_size;
+		for(int i=0;i<row_size;i++) {
+			temp[i] = (in[row_m2+i] + 4.0f*in[row_m1+i] + 6.0f*in[row_0+i] + 4.0f*in[row_p1+i] + in[row_p2+i]) * (1.0f/16.0f);
+		}
+		// horizontal filter, at every other pixel
+		int out_row = y*channels*out_width;
+		for(int x=0;x<out_width;x++) {
+			int x_m2 = channels*Math.max(0, 2*x-2);
+			int x_m1 = channels*Math.max(0, 2*x-1);
+			int x_0 = channels*Math.min(in_width-1, 2*x);
+			int x_p1 = channels*Math.min(in_width-1, 2*x+1);
+			int x_p2 = channels*Math.min(in_width-1, 2*x+2);
+			for(int c=0;c<channels;c++) {
+				out[out_row+channels*x+c] = (temp[x_m2+c] + 4.0f*temp[x_m1+c] + 6.0f*temp[x_0+c] + 4.0f*temp[x_p1+c] + temp[x_p2+c]) * (1.0f/16.0f);
+			}
+		}
+	}
+
+	/** Computes row y of the level above in, as the expansion matching downsampleRow(): even pixels
+	 *  are (1, 6, 1)/8 of the nearest three coarse pixels, and odd pixels are the average of the
+	 *  nearest two.
+	 * @param out  Array of at least channels*out_width values.
+	 * @param temp Array of at least channels*in_width values.
+	 */
+	private static void upsampleRow(float [] in, int in_width, int in_height, int channels, int y, int out_width, float [] out, float [] temp) {
+		// vertical into temp
+		int row_size = channels*in_width;
+		int cy = y/2;
+		if( y % 2 == 0 ) {
+			int row_m1 = Math.max(0, cy-1)*row_size;
+			int row_0 = cy*row_size;
+			int row_p1 = Math.min(in_height-1, cy+1)*row_size;
+			for(int i=0;i<row_size;i++) {
+				temp[i] = (in[row_m1+i] + 6.0f*in[row_0+i] + in[row_p1+i]) * (1.0f/8.0f);
+			}
+		}
+		else {
+			int row_0 = cy*row_size;
+			int row_p1 = Math.min(in_height-1, cy+1)*row_size;
+			for(int i=0;i<row_size;i++) {
+				temp[i] = (in[row_0+i] + in[row_p1+i]) * 0.5f;
+			}
+		}
+		// horizontal
+		for(int x=0;x<out_width;x++) {
+			int cx = x/2;
+			if( x % 2 == 0 ) {
+				int x_m1 = channels*Math.max(0, cx-1);
+				int x_0 = channels*cx;
+				int x_p1 = channels*Math.min(in_width-1, cx+1);
+				for(int c=0;c<channels;c++) {
+					out[channels*x+c] = (temp[x_m1+c] + 6.0f*temp[x_0+c] + temp[x_p1+c]) * (1.0f/8.0f);
+				}
+			}
+			else {
+				int x_0 = channels*cx;
+				int x_p1 = channels*Math.min(in_width-1, cx+1);
+				for(int c=0;c<channels;c++) {
+					out[channels*x+c] = (temp[x_0+c] + temp[x_p1+c]) * 0.5f;
+				}
+			}
+		}
+	}
+}
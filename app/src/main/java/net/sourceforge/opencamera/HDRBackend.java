@@ -0,0 +1,260 @@
+package net.sourceforge.opencamera;
+
+import android.graphics.Bitmap;
+
+/** The per-pixel image processing used by HDRProcessor for HDR and noise reduction.
+ *  HDRProcessor works out the parameters (alignment offsets, response functions, tonemapping,
+ *  clipped histograms, brightening factors), and a backend runs the kernels that use them.
+ *  Images are held in the backend's own memory, and should be freed with Image.destroy() when no
+ *  longer needed.
+ */
+public interface HDRBackend {
+	/** An image held by the backend. This is either an 8-bit RGBA image (as created from a
+	 *  bitmap), a floating point RGB image (as used for averaging noise reduction images, at full
+	 *  or half precision), an 8-bit single channel image (as used for alignment), or an HDR
+	 *  accumulator.
+	 */
+	interface Image {
+		int getWidth();
+		int getHeight();
+		/** Whether this is a floating point RGB image (at full or half precision).
+		 */
+		boolean isFloatingPoint();
+		void destroy();
+	}
+
+	/** The statistics of an image merged by processAvg().
+	 */
+	class AvgStats {
+		public final float merged_fraction; // the fraction of pixels of avg that new_image contributed to, i.e., that weren't outside new_image or rejected by the Wiener filter
+		public final float mean_diff; // the mean over the merged pixels of the squared difference between avg and new_image, summed over the RGB channels (as used for the Wiener filter)
+
+		AvgStats(float merged_fraction, float mean_diff) {
+			this.merged_fraction = merged_fraction;
+			this.mean_diff = mean_diff;
+		}
+	}
+
+	/** Creates an RGBA image with a copy of the supplied ARGB_8888 bitmap.
+	 */
+	Image createImage(Bitmap bitmap);
+
+	/** Creates an RGBA image with a copy of the region of the supplied ARGB_8888 bitmap with top
+	 *  left corner (start_x, start_y).
+	 */
+	Image createImage(Bitmap bitmap, int start_x, int start_y, int width, int height);
+
+	/** Creates an RGBA image, with undefined contents.
+	 */
+	Image createImage(int width, int height);
+
+	/** Creates a floating point RGB image.
+	 */
+	Image createFloatImage(int width, int height);
+
+	/** Creates a floating point RGB image stored at half precision, which takes half the memory of
+	 *  createFloatImage(). Values are stored with 16 bits per channel, as fixed point with 8
+	 *  fractional bits (see half_scale_c), so values from 0 to 255 are held to within 1/512, but
+	 *  values outside that range are clamped. This can be used wherever a floating point image
+	 *  holding 8-bit values is used.
+	 */
+	Image createHalfPrecisionImage(int width, int height);
+
+	/** The scale of the fixed point values of createHalfPrecisionImage().
+	 */
+	float half_scale_c = 256.0f;
+
+	/** Creates a copy of the region of the image with top left corner (start_x, start_y). The image
+	 *  may be RGBA or floating point, and the copy is of the same format.
+	 */
+	Image cropImage(Image image, int start_x, int start_y, int width, int height);
+
+	/** Copies an RGBA image to the supplied bitmap, which must be the same size.
+	 */
+	void copyTo(Image image, Bitmap bitmap);
+
+	/** Copies a half precision image (see createHalfPrecisionImage()) to pixels, as 3 fixed point
+	 *  values per pixel, row by row. pixels must hold at least 3*width*height values.
+	 */
+	void copyTo(Image image, short [] pixels);
+
+	/** Copies pixels, in the format of copyTo(Image, short []), to a half precision image.
+	 */
+	void copyFrom(Image image, short [] pixels);
+
+	/** Copies the region of an RGBA image with top left corner (start_x, start_y) to the supplied
+	 *  bitmap, with top left corner (dst_x, dst_y).
+	 */
+	void copyTo(Image image, int start_x, int start_y, int width, int height, Bitmap bitmap, int dst_x, int dst_y);
+
+	/** Creates a median threshold bitmap from the region of the image with top left corner (start_x, start_y),
+	 *  with pixels set to 0 if darker than median_value, 255 if brighter, or 127 if close to median_value.
+	 */
+	Image createMTB(Image image, int median_value, int start_x, int start_y, int width, int height);
+
+	/** Creates a greyscale bitmap (taking the maximum of the rgb values) from the region of the image with top
+	 *  left corner (start_x, start_y). The image may be RGBA or floating point.
+	 */
+	Image createGreyscale(Image image, int start_x, int start_y, int width, int height);
+
+	/** Computes the errors for aligning image against the base image, for the 9 offsets
+	 *  (off_x + i*step_size, off_y + j*step_size) for i, j from -1 to 1. The error for offset (i, j) is
+	 *  stored in errors[3*(j+1) + (i+1)]. Pixels are sampled every step_size pixels, for
+	 *  stop_x by stop_y samples.
+	 * @param use_mtb If true, the images are median threshold bitmaps, and the error is the number of
+	 *                differing pixels; otherwise the images are greyscale and the error is the sum of
+	 *                squared differences.
+	 */
+	void alignMTB(int [] errors, Image base, Image image, boolean use_mtb, int off_x, int off_y, int step_size, int stop_x, int stop_y);
+
+	/** Merges a set of RGBA images of differing exposures into output, which may be equal to
+	 *  images[base_bitmap].
+	 * @param images          The images, sorted from darkest to brightest. Between 2 and 7 images are supported.
+	 * @param base_bitmap     The index of the image with the base exposure, which has no offset.
+	 * @param offsets_x       The offsets of each image, as computed by HDRProcessor.autoAlignment().
+	 * @param offsets_y       The offsets of each image, as computed by HDRProcessor.autoAlignment().
+	 * @param parameter_A     The response function for each image.
+	 * @param parameter_B     The response function for each image.
+	 * @param motion_mask     If non-null, pixels are merged towards images[base_bitmap] by
+	 *                        MotionMask.getWeight(), so that moving tiles use only the base exposure.
+	 * @param tonemap         The tonemapping curve, see ToneCurveLUT.createTonemap().
+	 */
+	void processHDR(Image [] images, int base_bitmap, int [] offsets_x, int [] offsets_y, float [] parameter_A, float [] parameter_B, MotionMask motion_mask, ToneCurveLUT tonemap, Image output);
+
+	// values for the exposure parameter of accumulateHDR()
+	int EXPOSURE_CENTRAL = 0; // the base image, or for an even number of images, one of the middle two
+	int EXPOSURE_DARKER = -1;
+	int EXPOSURE_BRIGHTER = 1;
+
+	/** Creates an HDR accumulator, which holds a weighted sum of colours and the sum of the weights
+	 *  for each pixel, all initialised to 0. See accumulateHDR().
+	 */
+	Image createHDRAccumulator(int width, int height);
+
+	/** Adds an RGBA image to an HDR accumulator, for merging images one at a time rather than all at
+	 *  once with processHDR(). The central images should be added first: each pixel is added with a
+	 *  weight based on how well exposed it is. Other images are only used for pixels where the base
+	 *  image isn't well exposed, and only if they're on the right side of the base exposure (brighter
+	 *  images where the base image is dark, darker images where it's bright). They are also merged
+	 *  towards the base image to reduce ghosting.
+	 * @param offset_x    The offset of the image, as computed by HDRProcessor.autoAlignment().
+	 * @param offset_y    The offset of the image, as computed by HDRProcessor.autoAlignment().
+	 * @param parameter_A The response function for the image.
+	 * @param parameter_B The response function for the image.
+	 * @param base        The base image, which has no offset.
+	 * @param base_A      The response function for the base image.
+	 * @param base_B      The response function for the base image.
+	 * @param exposure    One of EXPOSURE_CENTRAL, EXPOSURE_DARKER or EXPOSURE_BRIGHTER.
+	 * @param extreme     Whether this is the darkest or brightest image, in which case it's used
+	 *                    however it's exposed, as there's no better image to use.
+	 * @param motion_mask If non-null, the weight of each pixel is scaled by (1 - MotionMask.getWeight()),
+	 *                    so that the image isn't used for tiles that moved relative to the base image.
+	 *                    This should be null when adding the base image itself.
+	 */
+	void accumulateHDR(Image accumulator, Image image, int offset_x, int offset_y, float parameter_A, float parameter_B, Image base, float base_A, float base_B, int exposure, boolean extreme, MotionMask motion_mask);
+
+	/** Tonemaps an HDR accumulator into the RGBA image output. The parameters are as for processHDR().
+	 */
+	void tonemapHDR(Image accumulator, Image output, ToneCurveLUT tonemap);
+
+	/** Computes a histogram of the image, which may be RGBA or floating point.
+	 * @param avg If true, compute the color value as the average of the rgb values. If false,
+	 *            compute the color value as the maximum of the rgb values.
+	 */
+	int [] computeHistogram(Image image, boolean avg);
+
+	/** Computes a histogram of the maximum of the rgb values, for the region [start_x, stop_x) x
+	 *  [start_y, stop_y) of an RGBA image.
+	 */
+	int [] computeHistogram(Image image, int start_x, int start_y, int stop_x, int stop_y);
+
+	/** Computes the histograms of the maximum of the rgb values for a grid of n_tiles x n_tiles
+	 *  tiles, in a single pass over an RGBA image. Pixel (x, y) is added to the histogram of the
+	 *  tile at column tile_x[x] and row tile_y[y], which is stored at offset
+	 *  256*(tile_x[x]*n_tiles+tile_y[y]); pixels where either index is negative are skipped. The
+	 *  tile indices must be non-decreasing, other than the negative entries.
+	 */
+	int [] computeTileHistograms(Image image, int [] tile_x, int [] tile_y, int n_tiles);
+
+	/** Applies local histogram equalisation (see HDRProcessor.adjustHistogram()) from the RGBA
+	 *  image in to out, which may be equal to in.
+	 * @param equal_values The equalised value for each tile, as computed by HDRProcessor.computeCLAHE()
+	 *                     or HDRProcessor.computeEqualValues(): 256 unsigned values stored at offset
+	 *                     256*(i*n_tiles+j) for the tile at column i and row j.
+	 */
+	void adjustHistogram(Image in, Image out, byte [] equal_values, float hdr_alpha, int n_tiles);
+
+	/** As adjustHistogram(Image, Image, byte [], float, int), but where in and out are a region with
+	 *  top left corner (origin_x, origin_y) of a larger image of size full_width x full_height,
+	 *  which equal_values was computed for. This gives the same results for each pixel as adjusting
+	 *  the full image.
+	 */
+	void adjustHistogram(Image in, Image out, byte [] equal_values, float hdr_alpha, int n_tiles, int origin_x, int origin_y, int full_width, int full_height);
+
+	/** Averages new_image into avg, storing the result in the floating point image out, which may be
+	 *  equal to avg. Each pixel is set to (avg_factor * avg + new)/(avg_factor+1), where new is first
+	 *  merged towards avg with a Wiener filter to reduce ghosting.
+	 * @param avg         The average so far, which may be RGBA (for the first image) or floating point.
+	 * @param new_image   An RGBA image.
+	 * @param tile_alignment If non-null, the pixel (x, y) of avg is merged with the pixel of new_image
+	 *                    offset by tile_alignment.getPixelOffsetX/Y(x, y), rather than by offset_x,
+	 *                    offset_y.
+	 * @return Statistics of the merge.
+	 */
+	AvgStats processAvg(Image avg, Image new_image, int offset_x, int offset_y, TileAlignment tile_alignment, float avg_factor, float wiener_C, float wiener_C_cutoff, Image out);
+
+	/** As processAvg(Image, Image, int, int, TileAlignment, float, float, float, Image), but where avg
+	 *  and out are the region with top left corner (origin_x, origin_y) of the full average, and
+	 *  new_image is the region with top left corner (new_origin_x, new_origin_y) of the full new
+	 *  image. The offsets and tile_alignment are for the full images. Provided that new_image includes
+	 *  every pixel of the full new image that the region of avg is offset to, this gives the same
+	 *  results for each pixel as averaging the full images.
+	 */
+	AvgStats processAvg(Image avg, Image new_image, int offset_x, int offset_y, TileAlignment tile_alignment, float avg_factor, float wiener_C, float wiener_C_cutoff, Image out, int origin_x, int origin_y, int new_origin_x, int new_origin_y);
+
+	/** Averages 8 RGBA images, storing the result in images[0].
+	 */
+	void processAvgMulti(Image [] images);
+
+	/** Final stage of noise reduction: filters and brightens the floating point image input, storing the
+	 *  result in the RGBA image output. See HDRProcessor.avgBrighten().
+	 * @param brighten The gain/gamma brightening curve, see ToneCurveLUT.createBrighten().
+	 */
+	void avgBrighten(Image input, Image output, float black_level, float median_filter_strength, ToneCurveLUT brighten);
+
+	/** Whether the methods of this backend may be called from more than one thread at once (on
+	 *  different images).
+	 */
+	boolean isThreadSafe();
+
+	/** Sets a limit in bytes on the memory that the backend may keep between photos (see warmUp()),
+	 *  so that it can be reused for the next photo. 0 (the default) means nothing is kept.
+	 */
+	void setMaxPoolBytes(long max_bytes);
+
+	/** Returns the memory currently kept between photos, see setMaxPoolBytes(). Like trimMemory(),
+	 *  this may be called while a photo is being processed.
+	 */
+	long getPoolBytes();
+
+	/** Prepares the backend for processing photos of the supplied size, so that the first photo isn't
+	 *  slower than later ones: creates the backend's context and scripts, and (within the limit set by
+	 *  setMaxPoolBytes()) the images that a photo will need.
+	 * @param n_images       The number of RGBA images.
+	 * @param n_float_images The number of floating point images.
+	 * @param half_precision Whether the floating point images are at half precision, see
+	 *                       createHalfPrecisionImage().
+	 */
+	void warmUp(int width, int height, int n_images, int n_float_images, boolean half_precision);
+
+	/** Frees memory kept between photos, in response to ComponentCallbacks2.onTrimMemory(). Unlike
+	 *  the other methods, this may be called while a photo is being processed.
+	 */
+	void trimMemory(int level);
+
+	/** Frees resources that are only needed during the processing of a single HDR or NR photo.
+	 */
+	void freeScripts();
+
+	void onDestroy();
+}
@@ -6,9 +6,16 @@ import java.io.FileWriter;
 import java.io.IOException;
 //import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import android.content.Context;
 import android.graphics.Bitmap;
@@ -17,13 +24,6 @@ import android.graphics.Matrix;
 import android.media.MediaScannerConnection;
 import android.os.Build;
 import android.os.Environment;
-import android.renderscript.Allocation;
-import android.renderscript.Element;
-import android.renderscript.RSInvalidStateException;
-import android.renderscript.RenderScript;
-import android.renderscript.Script;
-import android.renderscript.ScriptIntrinsicHistogram;
-import android.renderscript.Type;
 import android.support.annotation.RequiresApi;
 import android.util.Log;
 
@@ -31,24 +31,62 @@ public class HDRProcessor {
 	private static final String TAG = "HDRProcessor";
 	
 	private final Context context;
-	private RenderScript rs; // lazily created, so we don't take up resources if application isn't using HDR
-
-	// we lazily create and cache scripts that would otherwise have to be repeatedly created in a single
-	// HDR or NR photo
-	// these should be set to null in freeScript(), to help garbage collection
-	/*private ScriptC_process_hdr processHDRScript;*/
-	private ScriptC_process_avg processAvgScript;
-	private ScriptC_create_mtb createMTBScript;
-	private ScriptC_align_mtb alignMTBScript;
-	/*private ScriptC_histogram_adjust histogramAdjustScript;
-	private ScriptC_histogram_compute histogramScript;
-	private ScriptC_avg_brighten avgBrightenScript;
-	private ScriptC_calculate_sharpness sharpnessScript;*/
+	private BitmapPool bitmap_pool; // if non-null, input bitmaps we're finished with are returned here rather than recycled
+
+	public enum Backend {
+		BACKEND_RENDERSCRIPT,
+		BACKEND_JAVA
+	}
+	private Backend backend_type = Backend.BACKEND_RENDERSCRIPT;
+	private HDRBackend backend; // lazily created, so we don't take up resources if application isn't using HDR
+	private ExecutorService executor; // lazily created, for aligning images and processing tiles in parallel
+	private long max_working_memory; // see setMaxWorkingMemory()
+	private long max_pool_bytes; // see setMaxPoolBytes()
+	// the last warm up, see warmUp()
+	private int warm_up_width;
+	private int warm_up_height;
+	private boolean warm_up_noise_reduction;
+	private long warm_up_pool_bytes;
+	private static final int min_processing_tile_size_c = 128; // excluding the halo
+	// the working memory per pixel for averaging noise reduction images at full size: the half precision average, the
+	// first image, and the new image
+	private static final int avg_bytes_per_pixel_c = 8 + 4 + 4;
+	// the working memory per pixel of a band, when the average is held in a MappedAccumulator: the band of the
+	// average (or of the first image), the half precision output, the new image, and the buffers for copying the band
+	private static final int mapped_avg_bytes_per_pixel_c = 8 + 8 + 4 + 6 + 8;
+
+	// Number of samples in each direction, for estimating response functions and median luminance. Rows are read
+	// in bulk into the buffers below, which are kept to be reused for later photos.
+	private static final int n_response_samples_c = 64;
+	private static final int n_luminance_samples_c = 64;
+	private int [] sample_row_in;
+	private int [] sample_row_out;
+	private double [] sample_x;
+	private double [] sample_y;
+	private double [] sample_weights;
+
+	// For local contrast enhancement, histograms are computed for blocks of a grid that is finer than the
+	// n_tiles requested, and each grid point is equalised from the histogram of a window of neighbouring
+	// blocks, see computeCLAHE().
+	private static final int clahe_blocks_per_tile_c = 2;
+	private static final int clahe_window_radius_c = 1; // in blocks
+
+	// constants used for tonemapping, these must match the values in process_hdr.rs
+	static final float tonemap_exposure_c = 1.2f;
+	static final float filmic_exposure_bias_c = 2.0f / 255.0f;
 
 	// public for access by testing
 	public int [] offsets_x = null;
 	public int [] offsets_y = null;
 	public int sharp_index = 0;
+	public MotionMask motion_mask = null; // tiles that moved relative to the base image, for deghosting
+	public boolean sliding_clahe = true; // if false, adjustHistogram() uses the original histograms for each of n_tiles x n_tiles tiles
+	public boolean tile_align_avg = true; // if false, noise reduction aligns each image with a single global offset
+	public boolean half_precision_avg = true; // if true, noise reduction keeps the running average at half precision (see HDRBackend.createHalfPrecisionImage()), which halves its memory
+	public boolean allow_mapped_avg = true; // if true, noise reduction keeps the running average in a file if it doesn't fit in the working memory, see MappedAccumulator
+	public TileAlignment tile_alignment = null; // the per-tile offsets of the last image merged by processAvg() or updateAvg()
+	public float avg_merged_fraction = 0.0f; // the fraction of pixels that the last image merged by processAvg() or updateAvg() contributed to
+	public float avg_mean_diff = 0.0f; // the mean squared difference of the pixels that the last image merged by processAvg() or updateAvg() contributed to, see HDRBackend.AvgStats
 
 	private enum HDRAlgorithm {
 		HDRALGORITHM_STANDARD,
@@ -67,36 +105,184 @@ public class HDRProcessor {
 		this.context = context;
 	}
 
+	/** Sets a pool to return input bitmaps to when they're no longer needed (instead of recycling
+	 *  them), and to take the output bitmap for avgBrighten() from.
+	 */
+	public void setBitmapPool(BitmapPool bitmap_pool) {
+		this.bitmap_pool = bitmap_pool;
+	}
+
+	/** Sets a limit in bytes on the memory used for the backend's working copies of the images, when
+	 *  processing HDR images and brightening noise reduction images (the input and output bitmaps
+	 *  aren't included). If processing the whole image at once would need more than this, the image
+	 *  is instead processed in overlapping tiles, as many at once as fit in the limit, which gives
+	 *  the same result. Similarly the running average of noise reduction images is then held in a
+	 *  file, and merged a band at a time (see MappedAccumulator). 0 (the default) means no limit.
+	 */
+	public void setMaxWorkingMemory(long max_working_memory) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "setMaxWorkingMemory: " + max_working_memory);
+		this.max_working_memory = max_working_memory;
+		if( backend != null )
+			backend.setMaxPoolBytes(getPoolLimit());
+	}
+
+	/** Returns the default limit for setMaxWorkingMemory(), for a device with the supplied large
+	 *  heap memory (in MB).
+	 */
+	public static long computeMaxWorkingMemory(int large_heap_memory) {
+		// half the heap still lets a 16MP 3 image HDR photo be processed in one go, as before - it's the
+		// larger sensors that need tiling
+		return large_heap_memory*1024L*1024L/2;
+	}
+
+	/** Sets a limit in bytes on the memory the backend may keep between photos, so that its working
+	 *  copies of the images can be reused for the next photo rather than created again. 0 (the
+	 *  default) means nothing is kept. The pool is never allowed to exceed the limit set by
+	 *  setMaxWorkingMemory(), as what it holds is taken from the same working memory. Callers
+	 *  budgeting memory for other purposes should allow for getPoolBytes(). See also warmUp().
+	 */
+	public void setMaxPoolBytes(long max_pool_bytes) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "setMaxPoolBytes: " + max_pool_bytes);
+		this.max_pool_bytes = max_pool_bytes;
+		if( backend != null )
+			backend.setMaxPoolBytes(getPoolLimit());
+	}
+
+	/** Returns the limit to pass to the backend, see setMaxPoolBytes().
+	 */
+	private long getPoolLimit() {
+		if( max_working_memory > 0 )
+			return Math.min(max_pool_bytes, max_working_memory);
+		return max_pool_bytes;
+	}
+
+	/** Returns the memory the backend is currently keeping between photos (see setMaxPoolBytes()).
+	 *  Like trimMemory(), this may be called while a photo is being processed.
+	 */
+	public long getPoolBytes() {
+		HDRBackend backend = this.backend;
+		return backend != null ? backend.getPoolBytes() : 0;
+	}
+
+	/** Returns the default limit for setMaxPoolBytes(), for a device with the supplied large heap
+	 *  memory (in MB).
+	 */
+	public static long computeMaxPoolBytes(int large_heap_memory) {
+		if( large_heap_memory >= 256 ) {
+			// with a 512MB heap, enough for the working copies of a 3 image HDR photo at 12MP; this is the
+			// same as the working memory limit, which the pool is capped at anyway
+			return computeMaxWorkingMemory(large_heap_memory);
+		}
+		return 0;
+	}
+
+	/** Prepares for processing HDR or noise reduction photos of the supplied size, so that the first
+	 *  photo after launch (or after switching photo mode) is as fast as later ones. This creates the
+	 *  backend and its scripts, and the working images a photo needs (within the limit set by
+	 *  setMaxPoolBytes()). This may take a while, so should be called on a background thread; it
+	 *  waits for any photo currently being processed. Repeating the last warm up does nothing, unless
+	 *  the pool has since been trimmed.
+	 */
+	@RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+	public synchronized void warmUp(int width, int height, boolean noise_reduction) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "warmUp: " + width + "x" + height + " noise_reduction: " + noise_reduction);
+		if( backend != null && width == warm_up_width && height == warm_up_height && noise_reduction == warm_up_noise_reduction && backend.getPoolBytes() >= warm_up_pool_bytes ) {
+			if( MyDebug.LOG )
+				Log.d(TAG, "already warmed up");
+			return;
+		}
+		if( noise_reduction && useMappedAvg(width, height) ) {
+			// the images are only created a band at a time, so there's nothing worth keeping
+			getBackend().warmUp(width, height, 0, 0, half_precision_avg);
+		}
+		else if( noise_reduction ) {
+			// the running average, and the new image to be merged in
+			getBackend().warmUp(width, height, 2, 1, half_precision_avg);
+		}
+		else {
+			// the input images, the output is written to the base image
+			getBackend().warmUp(width, height, 3, 0, false);
+		}
+		warm_up_width = width;
+		warm_up_height = height;
+		warm_up_noise_reduction = noise_reduction;
+		warm_up_pool_bytes = backend.getPoolBytes();
+	}
+
+	/** Frees memory in response to ComponentCallbacks2.onTrimMemory(). Unlike the other methods, this
+	 *  may be called while a photo is being processed.
+	 */
+	public void trimMemory(int level) {
+		HDRBackend backend = this.backend;
+		if( backend != null )
+			backend.trimMemory(level);
+	}
+
+	/** Frees an input bitmap that's no longer needed.
+	 */
+	private void releaseBitmap(Bitmap bitmap) {
+		if( bitmap_pool != null )
+			bitmap_pool.release(bitmap);
+		else
+			bitmap.recycle();
+	}
+
+	/** Sets which backend is used to run the HDR and noise reduction kernels. The RenderScript
+	 *  backend is the default; the Java backend runs on the CPU with a ForkJoinPool, and doesn't
+	 *  need RenderScript.
+	 */
+	public void setBackend(Backend backend_type) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "setBackend: " + backend_type);
+		if( this.backend_type != backend_type ) {
+			if( backend != null ) {
+				backend.onDestroy();
+				backend = null;
+			}
+			this.backend_type = backend_type;
+		}
+	}
+
+	@RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+	private HDRBackend getBackend() {
+		if( backend == null ) {
+			if( MyDebug.LOG )
+				Log.d(TAG, "create backend: " + backend_type);
+			switch( backend_type ) {
+				case BACKEND_JAVA:
+					backend = new JavaHDRBackend();
+					break;
+				case BACKEND_RENDERSCRIPT:
+				default:
+					backend = new RenderScriptHDRBackend(context);
+					break;
+			}
+			backend.setMaxPoolBytes(getPoolLimit());
+		}
+		return backend;
+	}
+
 	private void freeScripts() {
 		if( MyDebug.LOG )
 			Log.d(TAG, "freeScripts");
-		/*processHDRScript = null;*/
-		processAvgScript = null;
-		createMTBScript = null;
-		alignMTBScript = null;
-		/*histogramAdjustScript = null;
-		histogramScript = null;
-		avgBrightenScript = null;
-		sharpnessScript = null;*/
+		if( backend != null )
+			backend.freeScripts();
 	}
 
 	public void onDestroy() {
 		if( MyDebug.LOG )
 			Log.d(TAG, "onDestroy");
 
-		freeScripts(); // just in case
-
-		if( rs != null ) {
-			// need to destroy context, otherwise this isn't necessarily garbage collected - we had tests failing with out of memory
-			// problems e.g. when running MainTests as a full set with Camera2 API. Although we now reduce the problem by creating
-			// the rs lazily, it's still good to explicitly clear.
-			try {
-				rs.destroy(); // on Android M onwards this is a NOP - instead we call RenderScript.releaseAllContexts(); in MainActivity.onDestroy()
-			}
-			catch(RSInvalidStateException e) {
-				e.printStackTrace();
-	        }
-			rs = null;
+		if( backend != null ) {
+			backend.onDestroy();
+			backend = null;
+		}
+		if( executor != null ) {
+			executor.shutdown();
+			executor = null;
 		}
 	}
 
@@ -119,29 +305,38 @@ public class HDRProcessor {
 			return new ResponseFunction(1.0f, 0.0f);
 		}
 
+		/** Remaps the function, see computeEvenRemap().
+		 */
+		void remap(float a, float b) {
+			float this_A = parameter_A;
+			float this_B = parameter_B;
+			parameter_A = this_A / a;
+			parameter_B = this_B - this_A * b / a;
+			if( MyDebug.LOG ) {
+				Log.d(TAG, "    A: " + this_A + " -> " + parameter_A);
+				Log.d(TAG, "    B: " + this_B + " -> " + parameter_B);
+			}
+		}
+
 		/** Computes the response function.
 		 * We pass the context, so this inner class can be made static.
-		 * @param x_samples List of Xi samples. Must be at least 3 samples.
-		 * @param y_samples List of Yi samples. Must be same length as x_samples.
-		 * @param weights List of weights. Must be same length as x_samples.
+		 * @param x_samples Array of Xi samples.
+		 * @param y_samples Array of Yi samples.
+		 * @param weights Array of weights.
+		 * @param n_samples The number of samples to use from the start of each array. Must be at
+		 *                  least 3 samples.
 		 */
-		ResponseFunction(Context context, int id, List<Double> x_samples, List<Double> y_samples, List<Double> weights) {
+		ResponseFunction(Context context, int id, double [] x_samples, double [] y_samples, double [] weights, int n_samples) {
 			if( MyDebug.LOG )
 				Log.d(TAG, "ResponseFunction");
 
-			if( x_samples.size() != y_samples.size() ) {
-				if( MyDebug.LOG )
-					Log.e(TAG, "unequal number of samples");
-				// throw RuntimeException, as this is a programming error
-				throw new RuntimeException();
-			}
-			else if( x_samples.size() != weights.size() ) {
+			if( x_samples.length < n_samples || y_samples.length < n_samples || weights.length < n_samples ) {
 				if( MyDebug.LOG )
-					Log.e(TAG, "unequal number of samples");
+					Log.e(TAG, "not enough space for samples");
 				// throw RuntimeException, as this is a programming error
 				throw new RuntimeException();
 			}
-			else if( x_samples.size() <= 3 ) {
+			else if( n_samples <= 3 ) {
 				if( MyDebug.LOG )
 					Log.e(TAG, "not enough samples");
 				// throw RuntimeException, as this is a programming error
@@ -155,10 +350,10 @@ public class HDRProcessor {
 			double sum_wxy = 0.0;
 			double sum_wy = 0.0;
 			double sum_w = 0.0;
-			for(int i=0;i<x_samples.size();i++) {
-				double x = x_samples.get(i);
-				double y = y_samples.get(i);
-				double w = weights.get(i);
+			for(int i=0;i<n_samples;i++) {
+				double x = x_samples[i];
+				double y = y_samples[i];
+				double w = weights[i];
 				sum_wx += w * x;
 				sum_wx2 += w * x * x;
 				sum_wxy += w * x * y;
@@ -219,10 +414,10 @@ public class HDRProcessor {
 				// linear Y = AX
 				double numer = 0.0;
 				double denom = 0.0;
-				for(int i=0;i<x_samples.size();i++) {
-					double x = x_samples.get(i);
-					double y = y_samples.get(i);
-					double w = weights.get(i);
+				for(int i=0;i<n_samples;i++) {
+					double x = x_samples[i];
+					double y = y_samples[i];
+					double w = weights[i];
 					numer += w*x*y;
 					denom += w*x*x;
 				}
@@ -268,11 +463,11 @@ public class HDRProcessor {
 					//writer.append("Parameter," + parameter + "\n");
 					writer.append("Parameters," + parameter_A + "," + parameter_B + "\n");
 					writer.append("X,Y,Weight\n");
-					for(int i=0;i<x_samples.size();i++) {
-						//Log.d(TAG, "log: " + i + " / " + x_samples.size());
-						double x = x_samples.get(i);
-						double y = y_samples.get(i);
-						double w = weights.get(i);
+					for(int i=0;i<n_samples;i++) {
+						//Log.d(TAG, "log: " + i + " / " + n_samples);
+						double x = x_samples[i];
+						double y = y_samples[i];
+						double w = weights[i];
 						writer.append(x + "," + y + "," + w + "\n");
 					}
 				}
@@ -305,6 +500,18 @@ public class HDRProcessor {
 		void sortOrder(List<Integer> sort_order);
 	}
 
+	/** Supplies the input images for processHDRStreaming(), so that they can be decoded only when
+	 *  they're needed.
+	 */
+	public interface BitmapProvider {
+		/** Returns the image with the supplied index, where the images are sorted from darkest to
+		 *  brightest, or null if the image couldn't be obtained. HDRProcessor takes ownership of the
+		 *  returned bitmap. The first bitmap requested is the base image, and it must be mutable, as
+		 *  it's used to hold the HDR image.
+		 */
+		Bitmap getBitmap(int index);
+	}
+
 	/** Converts a list of bitmaps into a HDR image, which is then tonemapped to a final RGB image.
 	 * @param bitmaps The list of bitmaps, which should be in order of increasing brightness (exposure).
 	 *                Currently only supports a list of either 1 image, or 3 images (the 2nd should be
@@ -381,6 +588,313 @@ public class HDRProcessor {
 		}
 	}
 
+	/** Converts a set of images into a HDR image as processHDR() does, but rather than needing all
+	 *  the images in memory at once, only the base image, an accumulator, and one other image are
+	 *  held at any time. Each image is aligned against the base image, added to the accumulator (see
+	 *  HDRBackend.accumulateHDR()) and then released. Tonemapping is done once all the images have
+	 *  been added.
+	 *  For 2 or 3 images, this gives the same results as processHDR() (other than the alignment);
+	 *  for more images, each image is merged with the base image rather than with its neighbours.
+	 *  There is no limit on the number of images.
+	 * @param n_bitmaps The number of images, which must be at least 2.
+	 * @param provider  Supplies the images, sorted from darkest to brightest. The images must all be
+	 *                  the same resolution.
+	 * @return The HDR image (which will be the base image supplied by provider), or null if
+	 *         provider failed to supply an image.
+	 */
+	@RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+	public Bitmap processHDRStreaming(int n_bitmaps, BitmapProvider provider, float hdr_alpha, int n_tiles, TonemappingAlgorithm tonemapping_algorithm) throws HDRProcessorException {
+		if( MyDebug.LOG ) {
+			Log.d(TAG, "processHDRStreaming");
+			Log.d(TAG, "n_bitmaps: " + n_bitmaps);
+		}
+		if( n_bitmaps < 2 ) {
+			if( MyDebug.LOG )
+				Log.e(TAG, "n_bitmaps not supported: " + n_bitmaps);
+			throw new HDRProcessorException(HDRProcessorException.INVALID_N_IMAGES);
+		}
+		long time_s = System.currentTimeMillis();
+
+		final int base_bitmap = n_bitmaps % 2 == 0 ? n_bitmaps/2 : (n_bitmaps - 1) / 2; // as for processHDRCore()
+		Bitmap bitmap_base = provider.getBitmap(base_bitmap);
+		if( bitmap_base == null ) {
+			if( MyDebug.LOG )
+				Log.e(TAG, "failed to get base bitmap");
+			return null;
+		}
+		int width = bitmap_base.getWidth();
+		int height = bitmap_base.getHeight();
+		offsets_x = new int[n_bitmaps];
+		offsets_y = new int[n_bitmaps];
+		ResponseFunction [] response_functions = new ResponseFunction[n_bitmaps];
+		response_functions[base_bitmap] = ResponseFunction.createIdentity();
+
+		// as in autoAlignment() with try_harder, compute the median luminance from the centre of the images
+		StreamingAlignment alignment = new StreamingAlignment();
+		alignment.mtb_width = width/2;
+		alignment.mtb_height = height/2;
+		alignment.mtb_x = alignment.mtb_width/2;
+		alignment.mtb_y = alignment.mtb_height/2;
+		LuminanceInfo base_luminance = computeMedianLuminance(bitmap_base, alignment.mtb_x, alignment.mtb_y, alignment.mtb_width, alignment.mtb_height);
+		int median_brightness = base_luminance.median_value;
+		if( MyDebug.LOG )
+			Log.d(TAG, "median_brightness: " + median_brightness);
+		alignment.n_levels = computePyramidLevels(computeInitialStepSize(width, height, true));
+		if( alignment.n_levels > 0 && !base_luminance.noisy ) {
+			alignment.base_pyramid = MTBPyramid.create(bitmap_base, median_brightness, alignment.n_levels);
+		}
+		else if( MyDebug.LOG ) {
+			Log.d(TAG, "base image not suitable for image alignment");
+		}
+		if( MyDebug.LOG )
+			Log.d(TAG, "### time after preparing base image: " + (System.currentTimeMillis() - time_s));
+
+		HDRBackend backend = getBackend();
+		HDRBackend.Image image_base = backend.createImage(bitmap_base);
+		HDRBackend.Image accumulator = backend.createHDRAccumulator(width, height);
+		Bitmap bitmap = null;
+		HDRBackend.Image image = null;
+		boolean ok = false;
+		try {
+			float [] remap = null;
+			if( n_bitmaps % 2 == 0 ) {
+				// we need the response function for the darker of the middle two images before we can add anything
+				bitmap = getStreamingBitmap(provider, base_bitmap-1, width, height);
+				if( bitmap == null )
+					return null;
+				response_functions[base_bitmap-1] = alignStreamingImage(base_bitmap-1, bitmap, bitmap_base, alignment);
+				remap = computeEvenRemap(response_functions[base_bitmap-1]);
+				response_functions[base_bitmap].remap(remap[0], remap[1]);
+				response_functions[base_bitmap-1].remap(remap[0], remap[1]);
+			}
+			float base_A = response_functions[base_bitmap].parameter_A;
+			float base_B = response_functions[base_bitmap].parameter_B;
+			backend.accumulateHDR(accumulator, image_base, 0, 0, base_A, base_B, image_base, base_A, base_B, HDRBackend.EXPOSURE_CENTRAL, false, null);
+			// as we don't have all the images at once, each image is only masked by the tiles where that image
+			// moved, but motion_mask records the union for all images as for processHDR()
+			motion_mask = new MotionMask(width, height);
+			if( bitmap != null ) {
+				ResponseFunction function = response_functions[base_bitmap-1];
+				MotionMask image_mask = MotionMask.create(bitmap_base, bitmap, offsets_x[base_bitmap-1], offsets_y[base_bitmap-1], base_A, base_B, function.parameter_A, function.parameter_B);
+				motion_mask = motion_mask.union(image_mask);
+				image = backend.createImage(bitmap);
+				releaseBitmap(bitmap);
+				bitmap = null;
+				backend.accumulateHDR(accumulator, image, offsets_x[base_bitmap-1], offsets_y[base_bitmap-1], function.parameter_A, function.parameter_B, image_base, base_A, base_B, HDRBackend.EXPOSURE_CENTRAL, false, image_mask);
+				image.destroy();
+				image = null;
+			}
+			if( MyDebug.LOG )
+				Log.d(TAG, "### time after adding central images: " + (System.currentTimeMillis() - time_s));
+
+			for(int i=0;i<n_bitmaps;i++) {
+				if( response_functions[i] != null ) {
+					// already added
+					continue;
+				}
+				bitmap = getStreamingBitmap(provider, i, width, height);
+				if( bitmap == null )
+					return null;
+				ResponseFunction function = alignStreamingImage(i, bitmap, bitmap_base, alignment);
+				if( remap != null )
+					function.remap(remap[0], remap[1]);
+				response_functions[i] = function;
+				MotionMask image_mask = MotionMask.create(bitmap_base, bitmap, offsets_x[i], offsets_y[i], base_A, base_B, function.parameter_A, function.parameter_B);
+				motion_mask = motion_mask.union(image_mask);
+				image = backend.createImage(bitmap);
+				// the backend has its own copy, so we can free the bitmap now
+				releaseBitmap(bitmap);
+				bitmap = null;
+				int exposure = i < base_bitmap ? HDRBackend.EXPOSURE_DARKER : HDRBackend.EXPOSURE_BRIGHTER;
+				boolean extreme = i == 0 || i == n_bitmaps-1;
+				backend.accumulateHDR(accumulator, image, offsets_x[i], offsets_y[i], function.parameter_A, function.parameter_B, image_base, base_A, base_B, exposure, extreme, image_mask);
+				image.destroy();
+				image = null;
+				if( MyDebug.LOG )
+					Log.d(TAG, "### time after adding image " + i + ": " + (System.currentTimeMillis() - time_s));
+			}
+
+			ToneCurveLUT tonemap = computeTonemapLUT(response_functions[0], median_brightness, tonemapping_algorithm);
+			backend.tonemapHDR(accumulator, image_base, tonemap);
+			accumulator.destroy();
+			accumulator = null;
+			if( MyDebug.LOG )
+				Log.d(TAG, "### time after tonemapping: " + (System.currentTimeMillis() - time_s));
+
+			if( hdr_alpha != 0.0f ) {
+				adjustHistogram(image_base, image_base, width, height, hdr_alpha, n_tiles, time_s);
+				if( MyDebug.LOG )
+					Log.d(TAG, "### time after adjustHistogram: " + (System.currentTimeMillis() - time_s));
+			}
+
+			backend.copyTo(image_base, bitmap_base);
+			ok = true;
+		}
+		finally {
+			if( bitmap != null )
+				releaseBitmap(bitmap);
+			if( image != null )
+				image.destroy();
+			if( accumulator != null )
+				accumulator.destroy();
+			image_base.destroy();
+			if( !ok )
+				releaseBitmap(bitmap_base);
+			freeScripts();
+		}
+		if( MyDebug.LOG )
+			Log.d(TAG, "### time for processHDRStreaming: " + (System.currentTimeMillis() - time_s));
+		return bitmap_base;
+	}
+
+	/** Merges a set of images of differing exposures with exposure fusion (see ExposureFusion), as
+	 *  an alternative to processHDR(). No response functions are estimated, and there's no
+	 *  tonemapping: each image is weighted per pixel by how well exposed it is, and the images are
+	 *  blended through Laplacian pyramids. The images are aligned as for processHDR().
+	 *  The parameters are as for processHDR(), except that any number of images (at least 2) is
+	 *  supported, and the result for release_bitmaps is always stored in the base image, which is
+	 *  bitmaps.get(n_bitmaps/2) (once sorted) for an even number of images.
+	 */
+	@RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+	public void processExposureFusion(List<Bitmap> bitmaps, boolean release_bitmaps, Bitmap output_bitmap, boolean assume_sorted, SortCallback sort_cb, float hdr_alpha, int n_tiles) throws HDRProcessorException {
+		if( MyDebug.LOG )
+			Log.d(TAG, "processExposureFusion");
+		if( !assume_sorted && !release_bitmaps ) {
+			// as in processHDR(), take a copy as we'll be sorting
+			bitmaps = new ArrayList<>(bitmaps);
+		}
+		int n_bitmaps = bitmaps.size();
+		if( n_bitmaps < 2 ) {
+			if( MyDebug.LOG )
+				Log.e(TAG, "n_bitmaps not supported: " + n_bitmaps);
+			throw new HDRProcessorException(HDRProcessorException.INVALID_N_IMAGES);
+		}
+		int width = bitmaps.get(0).getWidth();
+		int height = bitmaps.get(0).getHeight();
+		for(int i=1;i<n_bitmaps;i++) {
+			if( bitmaps.get(i).getWidth() != width || bitmaps.get(i).getHeight() != height ) {
+				if( MyDebug.LOG )
+					Log.e(TAG, "bitmaps not of same resolution");
+				throw new HDRProcessorException(HDRProcessorException.UNEQUAL_SIZES);
+			}
+		}
+
+		long time_s = System.currentTimeMillis();
+		offsets_x = new int[n_bitmaps];
+		offsets_y = new int[n_bitmaps];
+		final int base_bitmap = n_bitmaps % 2 == 0 ? n_bitmaps/2 : (n_bitmaps - 1) / 2; // as for processHDRCore()
+		// the backend images are only used for sorting, which is done from the bitmaps
+		autoAlignment(offsets_x, offsets_y, new HDRBackend.Image[n_bitmaps], width, height, bitmaps, base_bitmap, assume_sorted, sort_cb, true, 1, true, true, width, height, time_s);
+		if( MyDebug.LOG )
+			Log.d(TAG, "### time after autoAlignment: " + (System.currentTimeMillis() - time_s));
+
+		int [] pixels = new int[width*height];
+		boolean success = ExposureFusion.fuse(bitmaps, offsets_x, offsets_y, pixels, new ExposureFusion.TaskRunner() {
+			@Override
+			public boolean runTasks(List<Callable<Void>> tasks) {
+				return HDRProcessor.this.runTasks(tasks);
+			}
+		});
+		if( MyDebug.LOG )
+			Log.d(TAG, "### time after fusing: " + (System.currentTimeMillis() - time_s));
+
+		Bitmap bitmap_out = release_bitmaps ? bitmaps.get(base_bitmap) : output_bitmap;
+		if( success ) {
+			bitmap_out.setPixels(pixels, 0, width, 0, 0, width, height);
+		}
+		else {
+			// shouldn't happen, but better to return the base image than garbage
+			Log.e(TAG, "exposure fusion failed");
+			if( !release_bitmaps )
+				copyBitmap(bitmaps.get(base_bitmap), bitmap_out);
+		}
+		pixels = null;
+		if( release_bitmaps ) {
+			for(int i=0;i<n_bitmaps;i++) {
+				if( i != base_bitmap )
+					releaseBitmap(bitmaps.get(i));
+			}
+			bitmaps.set(0, bitmap_out);
+			for(int i=1;i<n_bitmaps;i++) {
+				bitmaps.set(i, null);
+			}
+		}
+
+		if( success && hdr_alpha != 0.0f ) {
+			HDRBackend backend = getBackend();
+			HDRBackend.Image image = backend.createImage(bitmap_out);
+			adjustHistogram(image, image, width, height, hdr_alpha, n_tiles, time_s);
+			backend.copyTo(image, bitmap_out);
+			image.destroy();
+			freeScripts();
+			if( MyDebug.LOG )
+				Log.d(TAG, "### time after adjustHistogram: " + (System.currentTimeMillis() - time_s));
+		}
+		if( MyDebug.LOG )
+			Log.d(TAG, "### time for processExposureFusion: " + (System.currentTimeMillis() - time_s));
+	}
+
+	/** Copies the pixels of src to dst, which must be the same size, a row at a time.
+	 */
+	private static void copyBitmap(Bitmap src, Bitmap dst) {
+		int width = src.getWidth();
+		int [] row = new int[width];
+		for(int y=0;y<src.getHeight();y++) {
+			src.getPixels(row, 0, width, 0, y, width, 1);
+			dst.setPixels(row, 0, width, 0, y, width, 1);
+		}
+	}
+
+	/** State for aligning images against the base image in processHDRStreaming().
+	 */
+	private static class StreamingAlignment {
+		int mtb_x, mtb_y, mtb_width, mtb_height; // region used to compute the median luminance
+		int n_levels;
+		MTBPyramid base_pyramid; // null if the base image isn't suitable for alignment
+	}
+
+	/** Returns the bitmap with the supplied index from provider, or null if it couldn't be obtained.
+	 * @throws HDRProcessorException If the bitmap isn't the supplied resolution.
+	 */
+	private Bitmap getStreamingBitmap(BitmapProvider provider, int index, int width, int height) throws HDRProcessorException {
+		Bitmap bitmap = provider.getBitmap(index);
+		if( bitmap == null ) {
+			if( MyDebug.LOG )
+				Log.e(TAG, "failed to get bitmap " + index);
+			return null;
+		}
+		if( bitmap.getWidth() != width || bitmap.getHeight() != height ) {
+			if( MyDebug.LOG )
+				Log.e(TAG, "bitmap " + index + " is " + bitmap.getWidth() + " x " + bitmap.getHeight() + ", expected " + width + " x " + height);
+			releaseBitmap(bitmap);
+			throw new HDRProcessorException(HDRProcessorException.UNEQUAL_SIZES);
+		}
+		return bitmap;
+	}
+
+	/** For processHDRStreaming(), aligns the bitmap with the supplied index against the base image
+	 *  (setting offsets_x[index], offsets_y[index]), and returns its response function.
+	 */
+	private ResponseFunction alignStreamingImage(int index, Bitmap bitmap, Bitmap bitmap_base, StreamingAlignment alignment) {
+		if( alignment.base_pyramid != null ) {
+			LuminanceInfo luminanceInfo = computeMedianLuminance(bitmap, alignment.mtb_x, alignment.mtb_y, alignment.mtb_width, alignment.mtb_height);
+			if( luminanceInfo.noisy ) {
+				if( MyDebug.LOG )
+					Log.d(TAG, "image " + index + " not suitable for image alignment");
+			}
+			else {
+				MTBPyramid pyramid = MTBPyramid.create(bitmap, luminanceInfo.median_value, alignment.n_levels);
+				int [] offset = new int[2];
+				MTBPyramid.align(offset, alignment.base_pyramid, pyramid, 0, false);
+				offsets_x[index] = offset[0];
+				offsets_y[index] = offset[1];
+				if( MyDebug.LOG )
+					Log.d(TAG, "offsets for image " + index + ": " + offsets_x[index] + " , " + offsets_y[index]);
+			}
+		}
+		return createFunctionFromBitmaps(index, bitmap, bitmap_base, offsets_x[index], offsets_y[index]);
+	}
+
 	/** Creates a ResponseFunction to estimate how pixels from the in_bitmap should be adjusted to
 	 *  match the exposure level of out_bitmap.
 	 *  The supplied offsets offset_x, offset_y give the offset for in_bitmap as computed by
@@ -389,61 +903,74 @@ public class HDRProcessor {
 	private ResponseFunction createFunctionFromBitmaps(int id, Bitmap in_bitmap, Bitmap out_bitmap, int offset_x, int offset_y) {
 		if( MyDebug.LOG )
 			Log.d(TAG, "createFunctionFromBitmaps");
-		List<Double> x_samples = new ArrayList<>();
-		List<Double> y_samples = new ArrayList<>();
-		List<Double> weights = new ArrayList<>();
-
-		final int n_samples_c = 100;
-		final int n_w_samples = (int)Math.sqrt(n_samples_c);
-		final int n_h_samples = n_samples_c/n_w_samples;
+		final int n_w_samples = n_response_samples_c;
+		final int n_h_samples = n_response_samples_c;
+		final int width = in_bitmap.getWidth();
+		final int height = in_bitmap.getHeight();
+
+		double [] x_samples = sample_x = allocateSamples(sample_x, n_w_samples*n_h_samples);
+		double [] y_samples = sample_y = allocateSamples(sample_y, n_w_samples*n_h_samples);
+		double [] weights = sample_weights = allocateSamples(sample_weights, n_w_samples*n_h_samples);
+		int [] row_in = sample_row_in = allocateRow(sample_row_in, width);
+		int [] row_out = sample_row_out = allocateRow(sample_row_out, width);
+		int n_samples = 0;
 
 		double avg_in = 0.0;
 		double avg_out = 0.0;
 		for(int y=0;y<n_h_samples;y++) {
 			double alpha = ((double)y+1.0) / ((double)n_h_samples+1.0);
-			int y_coord = (int)(alpha * in_bitmap.getHeight());
+			int y_coord = (int)(alpha * height);
+			if( y_coord + offset_y < 0 || y_coord + offset_y >= height ) {
+				continue;
+			}
+			// read the whole row at once, rather than calling getPixel() for each sample
+			in_bitmap.getPixels(row_in, 0, width, 0, y_coord + offset_y, width, 1);
+			out_bitmap.getPixels(row_out, 0, width, 0, y_coord, width, 1);
 			for(int x=0;x<n_w_samples;x++) {
 				double beta = ((double)x+1.0) / ((double)n_w_samples+1.0);
-				int x_coord = (int)(beta * in_bitmap.getWidth());
+				int x_coord = (int)(beta * width);
 				/*if( MyDebug.LOG )
 					Log.d(TAG, "sample response from " + x_coord + " , " + y_coord);*/
-				if( x_coord + offset_x < 0 || x_coord + offset_x >= in_bitmap.getWidth() || y_coord + offset_y < 0 || y_coord + offset_y >= in_bitmap.getHeight() ) {
+				if( x_coord + offset_x < 0 || x_coord + offset_x >= width ) {
 					continue;
 				}
-				int in_col = in_bitmap.getPixel(x_coord + offset_x, y_coord + offset_y);
-				int out_col = out_bitmap.getPixel(x_coord, y_coord);
+				int in_col = row_in[x_coord + offset_x];
+				int out_col = row_out[x_coord];
 				double in_value = averageRGB(in_col);
 				double out_value = averageRGB(out_col);
 				avg_in += in_value;
 				avg_out += out_value;
-				x_samples.add(in_value);
-				y_samples.add(out_value);
+				x_samples[n_samples] = in_value;
+				y_samples[n_samples] = out_value;
+				n_samples++;
 			}
 		}
-		if( x_samples.size() == 0 ) {
+		if( n_samples == 0 ) {
 			Log.e(TAG, "no samples for response function!");
 			// shouldn't happen, but could do with a very large offset - just make up a dummy sample
 			double in_value = 255.0;
 			double out_value = 255.0;
 			avg_in += in_value;
 			avg_out += out_value;
-			x_samples.add(in_value);
-			y_samples.add(out_value);
+			x_samples[n_samples] = in_value;
+			y_samples[n_samples] = out_value;
+			n_samples++;
 		}
-		avg_in /= x_samples.size();
-		avg_out /= x_samples.size();
+		avg_in /= n_samples;
+		avg_out /= n_samples;
 		boolean is_dark_exposure = avg_in < avg_out;
 		if( MyDebug.LOG ) {
+			Log.d(TAG, "n_samples: " + n_samples);
 			Log.d(TAG, "avg_in: " + avg_in);
 			Log.d(TAG, "avg_out: " + avg_out);
 			Log.d(TAG, "is_dark_exposure: " + is_dark_exposure);
 		}
 		{
 			// calculate weights
-			double min_value = x_samples.get(0);
-			double max_value = x_samples.get(0);
-			for(int i=1;i<x_samples.size();i++) {
-				double value = x_samples.get(i);
+			double min_value = x_samples[0];
+			double max_value = x_samples[0];
+			for(int i=1;i<n_samples;i++) {
+				double value = x_samples[i];
 				if( value < min_value )
 					min_value = value;
 				if( value > max_value )
@@ -455,10 +982,10 @@ public class HDRProcessor {
 				Log.d(TAG, "max_value: " + max_value);
 				Log.d(TAG, "med_value: " + med_value);
 			}
-			double min_value_y = y_samples.get(0);
-			double max_value_y = y_samples.get(0);
-			for(int i=1;i<y_samples.size();i++) {
-				double value = y_samples.get(i);
+			double min_value_y = y_samples[0];
+			double max_value_y = y_samples[0];
+			for(int i=1;i<n_samples;i++) {
+				double value = y_samples[i];
 				if( value < min_value_y )
 					min_value_y = value;
 				if( value > max_value_y )
@@ -470,25 +997,41 @@ public class HDRProcessor {
 				Log.d(TAG, "max_value_y: " + max_value_y);
 				Log.d(TAG, "med_value_y: " + med_value_y);
 			}
-			for(int i=0;i<x_samples.size();i++) {
-				double value = x_samples.get(i);
-				double value_y = y_samples.get(i);
+			for(int i=0;i<n_samples;i++) {
+				double value = x_samples[i];
+				double value_y = y_samples[i];
 				if( is_dark_exposure ) {
 					// for dark exposure, also need to worry about the y values (which will be brighter than x) being overexposed
 					double weight = (value <= med_value) ? value - min_value : max_value - value;
 					double weight_y = (value_y <= med_value_y) ? value_y - min_value_y : max_value_y - value_y;
 					if( weight_y < weight )
 						weight = weight_y;
-					weights.add(weight);
+					weights[i] = weight;
 				}
 				else {
 					double weight = (value <= med_value) ? value - min_value : max_value - value;
-					weights.add(weight);
+					weights[i] = weight;
 				}
 			}
 		}
 		
-		return new ResponseFunction(context, id, x_samples, y_samples, weights);
+		return new ResponseFunction(context, id, x_samples, y_samples, weights, n_samples);
+	}
+
+	/** Returns samples if it has room for n_samples, otherwise a new array.
+	 */
+	private static double [] allocateSamples(double [] samples, int n_samples) {
+		if( samples == null || samples.length < n_samples )
+			return new double[n_samples];
+		return samples;
+	}
+
+	/** Returns row if it has room for width pixels, otherwise a new array.
+	 */
+	private static int [] allocateRow(int [] row, int width) {
+		if( row == null || row.length < width )
+			return new int[width];
+		return row;
 	}
 
 	/** Calculates average of RGB values for the supplied color.
@@ -529,40 +1072,43 @@ public class HDRProcessor {
 		//float [] hdr = new float[3];
 		//int [] rgb = new int[3];
 
-		initRenderscript();
+		HDRBackend backend = getBackend();
 		if( MyDebug.LOG )
-			Log.d(TAG, "### time after creating renderscript: " + (System.currentTimeMillis() - time_s));
-		// create allocations
-		Allocation [] allocations = new Allocation[n_bitmaps];
-		for(int i=0;i<n_bitmaps;i++) {
-			allocations[i] = Allocation.createFromBitmap(rs, bitmaps.get(i));
+			Log.d(TAG, "### time after creating backend: " + (System.currentTimeMillis() - time_s));
+		// each image, and a buffer for copying the output
+		final boolean use_tiles = useTiles(width, height, 4*(n_bitmaps+1));
+		if( MyDebug.LOG )
+			Log.d(TAG, "use_tiles: " + use_tiles);
+		// create images - if using tiles, these are instead created a tile at a time in processHDRTiled()
+		HDRBackend.Image [] images = new HDRBackend.Image[n_bitmaps];
+		if( !use_tiles ) {
+			for(int i=0;i<n_bitmaps;i++) {
+				images[i] = backend.createImage(bitmaps.get(i));
+			}
 		}
 		if( MyDebug.LOG )
-			Log.d(TAG, "### time after creating allocations from bitmaps: " + (System.currentTimeMillis() - time_s));
+			Log.d(TAG, "### time after creating images from bitmaps: " + (System.currentTimeMillis() - time_s));
 		//final int base_bitmap = (n_bitmaps - 1) / 2; // index of the bitmap with the base exposure and offsets
 		final int base_bitmap = n_bitmaps % 2 == 0 ? n_bitmaps/2 : (n_bitmaps - 1) / 2; // index of the bitmap with the base exposure and offsets
         // for even number of images, round up to brighter image
 
 		// perform auto-alignment
-		// if assume_sorted if false, this function will also sort the allocations and bitmaps from darkest to brightest.
-		BrightnessDetails brightnessDetails = autoAlignment(offsets_x, offsets_y, allocations, width, height, bitmaps, base_bitmap, assume_sorted, sort_cb, true, false, 1, true, true, width, height, time_s);
+		// if assume_sorted if false, this function will also sort the images and bitmaps from darkest to brightest.
+		BrightnessDetails brightnessDetails = autoAlignment(offsets_x, offsets_y, images, width, height, bitmaps, base_bitmap, assume_sorted, sort_cb, true, 1, true, true, width, height, time_s);
 		int median_brightness = brightnessDetails.median_brightness;
 		if( MyDebug.LOG ) {
 			Log.d(TAG, "### time after autoAlignment: " + (System.currentTimeMillis() - time_s));
 			Log.d(TAG, "median_brightness: " + median_brightness);
 		}
 
-		//final boolean use_hdr_n = true; // test always using hdr_n
-		final boolean use_hdr_n = n_bitmaps != 3;
-
 		// compute response_functions
 		for(int i=0;i<n_bitmaps;i++) {
-			ResponseFunction function = null;
+			ResponseFunction function;
 			if( i != base_bitmap ) {
 				function = createFunctionFromBitmaps(i, bitmaps.get(i), bitmaps.get(base_bitmap), offsets_x[i], offsets_y[i]);
 			}
-			else if( use_hdr_n ) {
-				// for hdr_n, need to still create the identity response function
+			else {
+				// the backend still needs the identity response function for the base image
 				function = ResponseFunction.createIdentity();
 			}
 			response_functions[i] = function;
@@ -572,29 +1118,11 @@ public class HDRProcessor {
 
 		if( n_bitmaps % 2 == 0 ) {
 			// need to remap so that we aim for a brightness between the middle two images
-			float a = (float)Math.sqrt(response_functions[base_bitmap-1].parameter_A);
-			float b = response_functions[base_bitmap-1].parameter_B / (a+1.0f);
-			if( MyDebug.LOG ) {
-				Log.d(TAG, "remap for even number of images");
-				Log.d(TAG, "    a: " + a);
-				Log.d(TAG, "    b: " + b);
-			}
-			if( a < 1.0e-5f ) {
-				// avoid risk of division by 0
-				a = 1.0e-5f;
-				if( MyDebug.LOG )
-					Log.e(TAG, "    clamp a to: " + a);
-			}
+			float [] remap = computeEvenRemap(response_functions[base_bitmap-1]);
 			for(int i=0;i<n_bitmaps;i++) {
-				float this_A = response_functions[i].parameter_A;
-				float this_B = response_functions[i].parameter_B;
-				response_functions[i].parameter_A = this_A / a;
-				response_functions[i].parameter_B = this_B - this_A * b / a;
-				if( MyDebug.LOG ) {
+				if( MyDebug.LOG )
 					Log.d(TAG, "remapped: " + i);
-					Log.d(TAG, "    A: " + this_A + " -> " + response_functions[i].parameter_A);
-					Log.d(TAG, "    B: " + this_B + " -> " + response_functions[i].parameter_B);
-				}
+				response_functions[i].remap(remap[0], remap[1]);
 			}
 		}
 
@@ -632,109 +1160,197 @@ public class HDRProcessor {
 
 		// write new hdr image
 
-		// create RenderScript
-		/*if( processHDRScript == null ) {
-			processHDRScript = new ScriptC_process_hdr(rs);
-		}*/
-		ScriptC_process_hdr processHDRScript = new ScriptC_process_hdr(rs);
-
-		// set allocations
-		processHDRScript.set_bitmap0(allocations[0]);
-		if( n_bitmaps > 2 ) {
-			processHDRScript.set_bitmap2(allocations[2]);
-		}
-
-		// set offsets
-		processHDRScript.set_offset_x0(offsets_x[0]);
-		processHDRScript.set_offset_y0(offsets_y[0]);
-		// no offset for middle image
-		if( n_bitmaps > 2 ) {
-			processHDRScript.set_offset_x2(offsets_x[2]);
-			processHDRScript.set_offset_y2(offsets_y[2]);
-		}
-
-		// set response functions
-		processHDRScript.set_parameter_A0(response_functions[0].parameter_A);
-		processHDRScript.set_parameter_B0(response_functions[0].parameter_B);
-		// no response function for middle image
-		if( n_bitmaps > 2 ) {
-            processHDRScript.set_parameter_A2(response_functions[2].parameter_A);
-            processHDRScript.set_parameter_B2(response_functions[2].parameter_B);
-        }
+		float [] parameter_A = new float[n_bitmaps];
+		float [] parameter_B = new float[n_bitmaps];
+		for(int i=0;i<n_bitmaps;i++) {
+			parameter_A[i] = response_functions[i].parameter_A;
+			parameter_B[i] = response_functions[i].parameter_B;
+		}
 
-		if( use_hdr_n ) {
-			// now need to set values for image 1
-			processHDRScript.set_bitmap1(allocations[1]);
-			processHDRScript.set_offset_x1(offsets_x[1]);
-			processHDRScript.set_offset_y1(offsets_y[1]);
-			processHDRScript.set_parameter_A1(response_functions[1].parameter_A);
-			processHDRScript.set_parameter_B1(response_functions[1].parameter_B);
-		}
-
-		if( n_bitmaps > 3 ) {
-			processHDRScript.set_bitmap3(allocations[3]);
-			processHDRScript.set_offset_x3(offsets_x[3]);
-			processHDRScript.set_offset_y3(offsets_y[3]);
-			processHDRScript.set_parameter_A3(response_functions[3].parameter_A);
-			processHDRScript.set_parameter_B3(response_functions[3].parameter_B);
-
-    		if( n_bitmaps > 4 ) {
-                processHDRScript.set_bitmap4(allocations[4]);
-                processHDRScript.set_offset_x4(offsets_x[4]);
-                processHDRScript.set_offset_y4(offsets_y[4]);
-                processHDRScript.set_parameter_A4(response_functions[4].parameter_A);
-                processHDRScript.set_parameter_B4(response_functions[4].parameter_B);
-
-                if( n_bitmaps > 5 ) {
-                    processHDRScript.set_bitmap5(allocations[5]);
-                    processHDRScript.set_offset_x5(offsets_x[5]);
-                    processHDRScript.set_offset_y5(offsets_y[5]);
-                    processHDRScript.set_parameter_A5(response_functions[5].parameter_A);
-                    processHDRScript.set_parameter_B5(response_functions[5].parameter_B);
-
-                    if( n_bitmaps > 6 ) {
-                        processHDRScript.set_bitmap6(allocations[6]);
-                        processHDRScript.set_offset_x6(offsets_x[6]);
-                        processHDRScript.set_offset_y6(offsets_y[6]);
-                        processHDRScript.set_parameter_A6(response_functions[6].parameter_A);
-                        processHDRScript.set_parameter_B6(response_functions[6].parameter_B);
-                    }
-                }
-            }
+		ToneCurveLUT tonemap = computeTonemapLUT(response_functions[0], median_brightness, tonemapping_algorithm);
+
+		motion_mask = computeMotionMask(bitmaps, base_bitmap, parameter_A, parameter_B);
+		if( MyDebug.LOG )
+			Log.d(TAG, "### time after computing motion mask: " + (System.currentTimeMillis() - time_s));
+
+		if( use_tiles ) {
+			// as below, if releasing bitmaps the output is the base bitmap
+			Bitmap bitmap_out = release_bitmaps ? bitmaps.get(base_bitmap) : output_bitmap;
+			processHDRTiled(bitmaps, base_bitmap, parameter_A, parameter_B, motion_mask, tonemap, bitmap_out, hdr_alpha, n_tiles, time_s);
+			if( release_bitmaps ) {
+				for(int i=0;i<bitmaps.size();i++) {
+					if( i != base_bitmap ) {
+						releaseBitmap(bitmaps.get(i));
+					}
+				}
+				bitmaps.set(0, bitmap_out);
+				for(int i=1;i<bitmaps.size();i++) {
+					bitmaps.set(i, null);
+				}
+			}
+			freeScripts();
+			if( MyDebug.LOG )
+				Log.d(TAG, "### time for processHDRCore: " + (System.currentTimeMillis() - time_s));
+			return;
+		}
+
+		if( MyDebug.LOG )
+			Log.d(TAG, "call backend processHDR");
+		HDRBackend.Image output_image;
+		boolean free_output_image = false;
+		if( release_bitmaps ) {
+			// must use images[base_bitmap] as the output, as that's the image guaranteed to have no offset (otherwise we'll have
+			// problems due to the output being equal to one of the inputs)
+			output_image = images[base_bitmap];
+		}
+		else {
+			output_image = backend.createImage(output_bitmap);
+			free_output_image = true;
+		}
+		if( MyDebug.LOG )
+			Log.d(TAG, "### time before processHDR: " + (System.currentTimeMillis() - time_s));
+		backend.processHDR(images, base_bitmap, offsets_x, offsets_y, parameter_A, parameter_B, motion_mask, tonemap, output_image);
+		if( MyDebug.LOG )
+			Log.d(TAG, "### time after processHDR: " + (System.currentTimeMillis() - time_s));
+
+		if( release_bitmaps ) {
+			if( MyDebug.LOG )
+				Log.d(TAG, "release bitmaps");
+			// bitmaps.get(base_bitmap) will store HDR image, so free up the rest of the memory asap - we no longer need the remaining bitmaps
+			for(int i=0;i<bitmaps.size();i++) {
+				if (i != base_bitmap) {
+					Bitmap bitmap = bitmaps.get(i);
+					releaseBitmap(bitmap);
+				}
+			}
+		}
+
+		if( hdr_alpha != 0.0f ) {
+			adjustHistogram(output_image, output_image, width, height, hdr_alpha, n_tiles, time_s);
+			if( MyDebug.LOG )
+				Log.d(TAG, "### time after adjustHistogram: " + (System.currentTimeMillis() - time_s));
+		}
+
+		if( release_bitmaps ) {
+			// must be the base_bitmap we copy to - see note above about using images[base_bitmap] as the output
+			backend.copyTo(images[base_bitmap], bitmaps.get(base_bitmap));
+			if( MyDebug.LOG )
+				Log.d(TAG, "### time after copying to bitmap: " + (System.currentTimeMillis() - time_s));
+
+			// make it so that we store the output bitmap as first in the list
+			bitmaps.set(0, bitmaps.get(base_bitmap));
+			for(int i=1;i<bitmaps.size();i++) {
+				bitmaps.set(i, null);
+			}
+		}
+		else {
+			backend.copyTo(output_image, output_bitmap);
+			if( MyDebug.LOG )
+				Log.d(TAG, "### time after copying to bitmap: " + (System.currentTimeMillis() - time_s));
+		}
+
+		if( free_output_image )
+			output_image.destroy();
+		for(int i=0;i<n_bitmaps;i++) {
+			images[i].destroy();
+			images[i] = null;
+		}
+		freeScripts();
+		if( MyDebug.LOG )
+			Log.d(TAG, "### time for processHDRCore: " + (System.currentTimeMillis() - time_s));
+	}
+
+	/** Merges the images as processHDRCore() does, but a tile at a time, so that we don't need the
+	 *  backend to hold full copies of every image. The result is stored in bitmap_out.
+	 */
+	private void processHDRTiled(final List<Bitmap> bitmaps, final int base_bitmap, final float [] parameter_A, final float [] parameter_B, final MotionMask motion_mask, final ToneCurveLUT tonemap, Bitmap bitmap_out, float hdr_alpha, int n_tiles, long time_s) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "processHDRTiled");
+		final int n_bitmaps = bitmaps.size();
+		final int [] tile_offsets_x = offsets_x;
+		final int [] tile_offsets_y = offsets_y;
+		// each tile needs the pixels its output reads from the other images
+		int halo = 0;
+		for(int i=0;i<n_bitmaps;i++) {
+			halo = Math.max(halo, Math.max(Math.abs(offsets_x[i]), Math.abs(offsets_y[i])));
+		}
+		final HDRBackend backend = getBackend();
+		runTiled(new TileKernel() {
+			@Override
+			public HDRBackend.Image process(ProcessingTile tile) {
+				HDRBackend.Image [] images = new HDRBackend.Image[n_bitmaps];
+				for(int i=0;i<n_bitmaps;i++) {
+					images[i] = backend.createImage(bitmaps.get(i), tile.in_x, tile.in_y, tile.in_width, tile.in_height);
+				}
+				// As for processHDRCore(), the output is the base image, as that has no offset. If bitmap_out is the base
+				// bitmap, neighbouring tiles may already have written their output to our halo, but the output for a pixel
+				// only reads the base image at that pixel.
+				MotionMask tile_motion_mask = motion_mask.translate(tile.in_x, tile.in_y);
+				backend.processHDR(images, base_bitmap, tile_offsets_x, tile_offsets_y, parameter_A, parameter_B, tile_motion_mask, tonemap, images[base_bitmap]);
+				for(int i=0;i<n_bitmaps;i++) {
+					if( i != base_bitmap )
+						images[i].destroy();
+				}
+				return images[base_bitmap];
+			}
+		}, bitmap_out, halo, 4*(n_bitmaps+1), hdr_alpha, n_tiles, time_s);
+	}
+
+	/** Computes the tiles of the base image that contain motion in any of the other images, see
+	 *  MotionMask. The response functions should already have been remapped for an even number of
+	 *  images.
+	 */
+	private MotionMask computeMotionMask(List<Bitmap> bitmaps, int base_bitmap, float [] parameter_A, float [] parameter_B) {
+		long time_s = System.currentTimeMillis();
+		Bitmap bitmap_base = bitmaps.get(base_bitmap);
+		MotionMask mask = new MotionMask(bitmap_base.getWidth(), bitmap_base.getHeight());
+		for(int i=0;i<bitmaps.size();i++) {
+			if( i != base_bitmap ) {
+				MotionMask image_mask = MotionMask.create(bitmap_base, bitmaps.get(i), offsets_x[i], offsets_y[i], parameter_A[base_bitmap], parameter_B[base_bitmap], parameter_A[i], parameter_B[i]);
+				mask = mask.union(image_mask);
+			}
+		}
+		if( MyDebug.LOG ) {
+			Log.d(TAG, "motion mask has " + mask.countMoving() + " moving tiles of " + (mask.getWidth()*mask.getHeight()));
+			Log.d(TAG, "time for computeMotionMask: " + (System.currentTimeMillis() - time_s));
 		}
+		return mask;
+	}
 
-		// set globals
-
-		// set tonemapping algorithm
-		switch( tonemapping_algorithm ) {
-			case TONEMAPALGORITHM_CLAMP:
-				if( MyDebug.LOG )
-					Log.d(TAG, "tonemapping algorithm: clamp");
-				processHDRScript.set_tonemap_algorithm( processHDRScript.get_tonemap_algorithm_clamp_c() );
-				break;
-            case TONEMAPALGORITHM_EXPONENTIAL:
-				if( MyDebug.LOG )
-					Log.d(TAG, "tonemapping algorithm: exponential");
-				processHDRScript.set_tonemap_algorithm( processHDRScript.get_tonemap_algorithm_exponential_c() );
-				break;
-			case TONEMAPALGORITHM_REINHARD:
-				if( MyDebug.LOG )
-					Log.d(TAG, "tonemapping algorithm: reinhard");
-				processHDRScript.set_tonemap_algorithm( processHDRScript.get_tonemap_algorithm_reinhard_c() );
-				break;
-			case TONEMAPALGORITHM_FILMIC:
-				if( MyDebug.LOG )
-					Log.d(TAG, "tonemapping algorithm: filmic");
-				processHDRScript.set_tonemap_algorithm( processHDRScript.get_tonemap_algorithm_filmic_c() );
-				break;
-			case TONEMAPALGORITHM_ACES:
-				if( MyDebug.LOG )
-					Log.d(TAG, "tonemapping algorithm: aces");
-				processHDRScript.set_tonemap_algorithm( processHDRScript.get_tonemap_algorithm_aces_c() );
-				break;
+	/** For an even number of images, the response functions are remapped so that we aim for a
+	 *  brightness between the middle two images. Returns the parameters {a, b} for
+	 *  ResponseFunction.remap().
+	 * @param darker_function The response function for the darker of the middle two images.
+	 */
+	private static float [] computeEvenRemap(ResponseFunction darker_function) {
+		float a = (float)Math.sqrt(darker_function.parameter_A);
+		float b = darker_function.parameter_B / (a+1.0f);
+		if( MyDebug.LOG ) {
+			Log.d(TAG, "remap for even number of images");
+			Log.d(TAG, "    a: " + a);
+			Log.d(TAG, "    b: " + b);
+		}
+		if( a < 1.0e-5f ) {
+			// avoid risk of division by 0
+			a = 1.0e-5f;
+			if( MyDebug.LOG )
+				Log.e(TAG, "    clamp a to: " + a);
 		}
+		return new float[]{a, b};
+	}
 
-		float max_possible_value = response_functions[0].parameter_A * 255 + response_functions[0].parameter_B;
+	/** Computes the parameters for tonemapping an HDR image, and returns the lookup table for
+	 *  the resultant tonemapping curve. This only needs computing once per photo, including when
+	 *  processing in tiles.
+	 * @param darkest_function  The response function for the darkest image, used to estimate the
+	 *                          maximum possible HDR value.
+	 * @param median_brightness The median brightness of the base image.
+	 */
+	private static ToneCurveLUT computeTonemapLUT(ResponseFunction darkest_function, int median_brightness, TonemappingAlgorithm tonemapping_algorithm) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "tonemapping algorithm: " + tonemapping_algorithm);
+
+		float max_possible_value = darkest_function.parameter_A * 255 + darkest_function.parameter_B;
 		//float max_possible_value = response_functions[base_bitmap - 1].parameter_A * 255 + response_functions[base_bitmap - 1].parameter_B;
 		if( MyDebug.LOG )
 			Log.d(TAG, "max_possible_value: " + max_possible_value);
@@ -792,7 +1408,9 @@ public class HDRProcessor {
 		// (tonemap_scale_c==255 means therefore that colours will only be made darker).
 		if( MyDebug.LOG )
 			Log.d(TAG, "tonemap_scale_c: " + tonemap_scale_c);
-		processHDRScript.set_tonemap_scale(tonemap_scale_c);
+
+		float linear_scale = 1.0f;
+		float W = 11.2f; // default, only used for filmic
 
         // algorithm specific parameters
 		switch( tonemapping_algorithm ) {
@@ -805,11 +1423,10 @@ public class HDRProcessor {
                 // so 1 = S . (1 - exp( - E * Vmax ))
                 // => S = 1 / (1 - exp( - E * Vmax ))
                 // Note that Vmax should be set to a minimum of 255, else we'll make darker images brighter.
-                float E = processHDRScript.get_exposure();
-                float linear_scale = (float)(1.0 / (1.0 - Math.exp(-E * max_possible_value / 255.0)));
+                float E = tonemap_exposure_c;
+                linear_scale = (float)(1.0 / (1.0 - Math.exp(-E * max_possible_value / 255.0)));
                 if( MyDebug.LOG )
                     Log.d(TAG, "linear_scale: " + linear_scale);
-                processHDRScript.set_linear_scale(linear_scale);
                 break;
             }
 			case TONEMAPALGORITHM_REINHARD: {
@@ -832,97 +1449,25 @@ public class HDRProcessor {
                 // max_possible_value >= 255.
                 // Note that the original Reinhard tonemapping paper describes a non-linear scaling by (1 + CV/Vmax^2),
                 // though this is poorer performance (in terms of calculation time).
-                float linear_scale = (max_possible_value + tonemap_scale_c) / max_possible_value;
+                linear_scale = (max_possible_value + tonemap_scale_c) / max_possible_value;
                 if( MyDebug.LOG )
                     Log.d(TAG, "linear_scale: " + linear_scale);
-                processHDRScript.set_linear_scale(linear_scale);
                 break;
             }
 			case TONEMAPALGORITHM_FILMIC:
 			{
 				// For filmic, we have f(V) = U(EV) / U(W), where V is the HDR value, U is a function.
 				// We want f(Vmax) = 1, so EVmax = W
-                float E = processHDRScript.get_filmic_exposure_bias();
-				float W = E * max_possible_value;
+                float E = filmic_exposure_bias_c;
+				W = E * max_possible_value;
 				if( MyDebug.LOG )
 					Log.d(TAG, "filmic W: " + W);
-				processHDRScript.set_W(W);
 				break;
 			}
 		}
 
-		if( MyDebug.LOG )
-			Log.d(TAG, "call processHDRScript");
-		Allocation output_allocation;
-		boolean free_output_allocation = false;
-		if( release_bitmaps ) {
-			// must use allocations[base_bitmap] as the output, as that's the image guaranteed to have no offset (otherwise we'll have
-			// problems due to the output being equal to one of the inputs)
-			output_allocation = allocations[base_bitmap];
-		}
-		else {
-			output_allocation = Allocation.createFromBitmap(rs, output_bitmap);
-			free_output_allocation = true;
-		}
-		if( MyDebug.LOG )
-			Log.d(TAG, "### time before processHDRScript: " + (System.currentTimeMillis() - time_s));
-		if( use_hdr_n ) {
-			processHDRScript.set_n_bitmaps_g(n_bitmaps);
-			processHDRScript.forEach_hdr_n(allocations[base_bitmap], output_allocation);
-		}
-		else {
-			processHDRScript.forEach_hdr(allocations[base_bitmap], output_allocation);
-		}
-		/*processHDRScript.set_n_bitmaps_g(n_bitmaps);
-		processHDRScript.forEach_hdr_n(allocations[base_bitmap], output_allocation);*/
-		if( MyDebug.LOG )
-			Log.d(TAG, "### time after processHDRScript: " + (System.currentTimeMillis() - time_s));
-
-		if( release_bitmaps ) {
-			if( MyDebug.LOG )
-				Log.d(TAG, "release bitmaps");
-			// bitmaps.get(base_bitmap) will store HDR image, so free up the rest of the memory asap - we no longer need the remaining bitmaps
-			for(int i=0;i<bitmaps.size();i++) {
-				if (i != base_bitmap) {
-					Bitmap bitmap = bitmaps.get(i);
-					bitmap.recycle();
-				}
-			}
-		}
-
-		if( hdr_alpha != 0.0f ) {
-			adjustHistogram(output_allocation, output_allocation, width, height, hdr_alpha, n_tiles, time_s);
-			if( MyDebug.LOG )
-				Log.d(TAG, "### time after adjustHistogram: " + (System.currentTimeMillis() - time_s));
-		}
-
-		if( release_bitmaps ) {
-			// must be the base_bitmap we copy to - see note above about using allocations[base_bitmap] as the output
-			allocations[base_bitmap].copyTo(bitmaps.get(base_bitmap));
-			if( MyDebug.LOG )
-				Log.d(TAG, "### time after copying to bitmap: " + (System.currentTimeMillis() - time_s));
-
-			// make it so that we store the output bitmap as first in the list
-			bitmaps.set(0, bitmaps.get(base_bitmap));
-			for(int i=1;i<bitmaps.size();i++) {
-				bitmaps.set(i, null);
-			}
-		}
-		else {
-			output_allocation.copyTo(output_bitmap);
-			if( MyDebug.LOG )
-				Log.d(TAG, "### time after copying to bitmap: " + (System.currentTimeMillis() - time_s));
-		}
-
-		if( free_output_allocation )
-			output_allocation.destroy();
-		for(int i=0;i<n_bitmaps;i++) {
-			allocations[i].destroy();
-			allocations[i] = null;
-		}
-		freeScripts();
-		if( MyDebug.LOG )
-			Log.d(TAG, "### time for processHDRCore: " + (System.currentTimeMillis() - time_s));
+		// the table covers the HDR values we expect, up to max_possible_value
+		return ToneCurveLUT.createTonemap(tonemapping_algorithm, tonemap_scale_c, linear_scale, W, max_possible_value);
 	}
 
 	@RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
@@ -935,26 +1480,26 @@ public class HDRProcessor {
 		int width = bitmaps.get(0).getWidth();
 		int height = bitmaps.get(0).getHeight();
 
-		initRenderscript();
+		HDRBackend backend = getBackend();
 		if( MyDebug.LOG )
-			Log.d(TAG, "### time after creating renderscript: " + (System.currentTimeMillis() - time_s));
+			Log.d(TAG, "### time after creating backend: " + (System.currentTimeMillis() - time_s));
 
-		// create allocation
-		Allocation allocation = Allocation.createFromBitmap(rs, bitmaps.get(0));
+		// create image
+		HDRBackend.Image image = backend.createImage(bitmaps.get(0));
 
-		Allocation output_allocation;
-		boolean free_output_allocation = false;
+		HDRBackend.Image output_image;
+		boolean free_output_image = false;
 		if( release_bitmaps ) {
-			output_allocation = allocation;
+			output_image = image;
 		}
 		else {
-			free_output_allocation = true;
-			output_allocation = Allocation.createFromBitmap(rs, output_bitmap);
+			free_output_image = true;
+			output_image = backend.createImage(output_bitmap);
 		}
 
 		/*{
 			// brighten?
-			int [] histo = computeHistogram(allocation, false, false);
+			int [] histo = computeHistogram(image, false);
 			HistogramInfo histogramInfo = getHistogramInfo(histo);
 			int median_brightness = histogramInfo.median_brightness;
 			int max_brightness = histogramInfo.max_brightness;
@@ -982,91 +1527,96 @@ public class HDRProcessor {
 				ScriptC_avg_brighten script = new ScriptC_avg_brighten(rs);
 				script.set_gain(gain);
 				script.forEach_avg_brighten_gain(allocation, output_allocation);
-				allocation = output_allocation; // output is now the input for subsequent operations
+				image = output_image; // output is now the input for subsequent operations
 				if( MyDebug.LOG )
 					Log.d(TAG, "### time after avg_brighten: " + (System.currentTimeMillis() - time_s));
 			}
 		}*/
 
-		adjustHistogram(allocation, output_allocation, width, height, hdr_alpha, n_tiles, time_s);
+		adjustHistogram(image, output_image, width, height, hdr_alpha, n_tiles, time_s);
 
 		if( release_bitmaps ) {
-			allocation.copyTo(bitmaps.get(0));
+			backend.copyTo(image, bitmaps.get(0));
 			if( MyDebug.LOG )
 				Log.d(TAG, "time after copying to bitmap: " + (System.currentTimeMillis() - time_s));
 		}
 		else {
-			output_allocation.copyTo(output_bitmap);
+			backend.copyTo(output_image, output_bitmap);
 			if( MyDebug.LOG )
 				Log.d(TAG, "time after copying to bitmap: " + (System.currentTimeMillis() - time_s));
 		}
 
-		if( free_output_allocation )
-			allocation.destroy();
-		output_allocation.destroy();
+		if( free_output_image )
+			image.destroy();
+		output_image.destroy();
 		freeScripts();
 
 		if( MyDebug.LOG )
 			Log.d(TAG, "time for processSingleImage: " + (System.currentTimeMillis() - time_s));
 	}
 
-	private void initRenderscript() {
-		if( MyDebug.LOG )
-	        Log.d(TAG, "initRenderscript");
-		if( rs == null ) {
-			// initialise renderscript
-			this.rs = RenderScript.create(context);
-			if( MyDebug.LOG )
-				Log.d(TAG, "create renderscript object");
-		}
-	}
-
 	private int cached_avg_sample_size = 1;
 
 	/** As part of the noise reduction process, the caller should scale the input images down by the factor returned
 	 *  by this method. This both provides a spatial smoothing, as well as improving performance and memory usage.
 	 */
 	public int getAvgSampleSize(int capture_result_iso) {
-		// If changing this, may also want to change the radius of the spatial filter in avg_brighten.rs ?
-		//this.cached_avg_sample_size = (n_images>=8) ? 2 : 1;
-		this.cached_avg_sample_size = (capture_result_iso >= 1100) ? 2 : 1;
-		//this.cached_avg_sample_size = 1;
-		//this.cached_avg_sample_size = 2;
+		this.cached_avg_sample_size = computeAvgSampleSize(capture_result_iso);
 		if( MyDebug.LOG )
 			Log.d(TAG, "getAvgSampleSize: " + cached_avg_sample_size);
 		return cached_avg_sample_size;
 	}
 
+	/** Returns the sample size to use for noise reduction, without caching it. This is for callers
+	 *  that need to know the sample size of a request that isn't being processed yet.
+	 */
+	public static int computeAvgSampleSize(int capture_result_iso) {
+		// If changing this, may also want to change the radius of the spatial filter in avg_brighten.rs ?
+		//return (n_images>=8) ? 2 : 1;
+		return (capture_result_iso >= 1100) ? 2 : 1;
+		//return 1;
+		//return 2;
+	}
+
 	public int getAvgSampleSize() {
 		return cached_avg_sample_size;
 	}
 
 	public class AvgData {
-		public Allocation allocation_out;
+		public HDRBackend.Image image_out; // null if the average is held in mapped_avg
+		MappedAccumulator mapped_avg; // null unless useMappedAvg()
 		Bitmap bitmap_avg_align;
-		Allocation allocation_avg_align;
+		HDRBackend.Image image_avg_align;
+		TileAlignment.Pyramid tile_reference; // null if tile_align_avg is false
 
-		AvgData(Allocation allocation_out, Bitmap bitmap_avg_align, Allocation allocation_avg_align) {
-			this.allocation_out = allocation_out;
+		AvgData(HDRBackend.Image image_out, MappedAccumulator mapped_avg, Bitmap bitmap_avg_align, HDRBackend.Image image_avg_align, TileAlignment.Pyramid tile_reference) {
+			this.image_out = image_out;
+			this.mapped_avg = mapped_avg;
 			this.bitmap_avg_align = bitmap_avg_align;
-			this.allocation_avg_align = allocation_avg_align;
+			this.image_avg_align = image_avg_align;
+			this.tile_reference = tile_reference;
 		}
 
 		public void destroy() {
             if( MyDebug.LOG )
                 Log.d(TAG, "AvgData.destroy()");
-		    if( allocation_out != null ) {
-                allocation_out.destroy();
-                allocation_out = null;
+		    if( image_out != null ) {
+                image_out.destroy();
+                image_out = null;
+            }
+            if( mapped_avg != null ) {
+                mapped_avg.close();
+                mapped_avg = null;
             }
             if( bitmap_avg_align != null ) {
 		        bitmap_avg_align.recycle();
 		        bitmap_avg_align = null;
             }
-            if( allocation_avg_align != null ) {
-                allocation_avg_align.destroy();
-                allocation_avg_align = null;
+            if( image_avg_align != null ) {
+                image_avg_align.destroy();
+                image_avg_align = null;
             }
+            tile_reference = null;
         }
 	}
 
@@ -1102,9 +1652,9 @@ public class HDRProcessor {
 		int width = bitmap_avg.getWidth();
 		int height = bitmap_avg.getHeight();
 
-		initRenderscript();
+		getBackend();
 		if( MyDebug.LOG )
-			Log.d(TAG, "### time after creating renderscript: " + (System.currentTimeMillis() - time_s));
+			Log.d(TAG, "### time after creating backend: " + (System.currentTimeMillis() - time_s));
 		// create allocations
 		/*Allocation allocation_avg = Allocation.createFromBitmap(rs, bitmap_avg);
 		//Allocation allocation_new = Allocation.createFromBitmap(rs, bitmap_new);
@@ -1139,7 +1689,7 @@ public class HDRProcessor {
 		if( MyDebug.LOG )
 			Log.d(TAG, "median: " + luminanceInfo.median_value);*/
 
-		AvgData avg_data = processAvgCore(null, null, bitmap_avg, bitmap_new, width, height, avg_factor, iso, null, null, time_s);
+		AvgData avg_data = processAvgCore(null, null, null, bitmap_avg, bitmap_new, width, height, avg_factor, iso, null, null, null, time_s);
 
 		//allocation_avg.copyTo(bitmap_avg);
 
@@ -1178,52 +1728,54 @@ public class HDRProcessor {
 		if( MyDebug.LOG )
 			Log.d(TAG, "### time after creating allocations from bitmaps: " + (System.currentTimeMillis() - time_s));*/
 
-		processAvgCore(avg_data.allocation_out, avg_data.allocation_out, null, bitmap_new, width, height, avg_factor, iso, avg_data.allocation_avg_align, avg_data.bitmap_avg_align, time_s);
+		processAvgCore(avg_data.image_out, avg_data.image_out, avg_data.mapped_avg, null, bitmap_new, width, height, avg_factor, iso, avg_data.image_avg_align, avg_data.bitmap_avg_align, avg_data.tile_reference, time_s);
 
 		if( MyDebug.LOG )
 			Log.d(TAG, "### time for updateAvg: " + (System.currentTimeMillis() - time_s));
 	}
 
 	/** Core algorithm for Noise Reduction algorithm.
-	 * @param allocation_out If non-null, this will be used for the output allocation, otherwise a
+	 * @param image_out      If non-null, this will be used for the output image, otherwise a
 	 *                       new one will be created.
-	 * @param allocation_avg If non-null, an allocation for the averaged image so far. If null, the
+	 * @param image_avg      If non-null, the averaged image so far. If null, the
 	 *                       first bitmap should be supplied as bitmap_avg.
+	 * @param mapped_avg     If non-null, the averaged image so far, held in a file rather than
+	 *                       image_avg (see MappedAccumulator); image_out and image_avg should
+	 *                       then be null.
 	 * @param bitmap_avg     If non-null, the first bitmap (which will be recycled). If null, an
-	 *                       allocation_avg should be supplied.
+	 *                       image_avg should be supplied.
 	 * @param bitmap_new     The new bitmap to combined. The bitmap will be recycled.
 	 * @param width          The width of the bitmaps.
 	 * @param height         The height of the bitmaps.
 	 * @param avg_factor     The averaging factor.
 	 * @param iso            The ISO used for the photos.
-	 * @param allocation_avg_align If non-null, use this allocation for alignment for averaged image.
-	 * @param bitmap_avg_align Should be supplied if allocation_avg_align is non-null, and stores
-	 *                         the bitmap corresponding to the allocation_avg_align.
+	 * @param image_avg_align If non-null, use this image for alignment for averaged image.
+	 * @param bitmap_avg_align Should be supplied if image_avg_align is non-null, and stores
+	 *                         the bitmap corresponding to the image_avg_align.
 	 * @param time_s         Time, for debugging.
 	 * @throws HDRProcessorException
 	 */
 	@RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
-	private AvgData processAvgCore(Allocation allocation_out, Allocation allocation_avg, Bitmap bitmap_avg, Bitmap bitmap_new, int width, int height, float avg_factor, int iso, Allocation allocation_avg_align, Bitmap bitmap_avg_align, long time_s) throws HDRProcessorException {
+	private AvgData processAvgCore(HDRBackend.Image image_out, HDRBackend.Image image_avg, MappedAccumulator mapped_avg, Bitmap bitmap_avg, Bitmap bitmap_new, int width, int height, float avg_factor, int iso, HDRBackend.Image image_avg_align, Bitmap bitmap_avg_align, TileAlignment.Pyramid tile_reference, long time_s) throws HDRProcessorException {
 		if( MyDebug.LOG ) {
 			Log.d(TAG, "processAvgCore");
 			Log.d(TAG, "iso: " + iso);
 		}
 
-		Allocation allocation_new = null;
-		boolean free_allocation_avg = false;
+		HDRBackend backend = getBackend();
+		HDRBackend.Image image_new = null;
+		boolean free_image_avg = false;
 
 		//Allocation allocation_diffs = null;
 
 		offsets_x = new int[2];
 		offsets_y = new int[2];
-		boolean floating_point = bitmap_avg == null;
 		{
-			boolean floating_point_align = floating_point;
 			// perform auto-alignment
 			List<Bitmap> align_bitmaps = new ArrayList<>();
-			Allocation [] allocations = new Allocation[2];
+			HDRBackend.Image [] images = new HDRBackend.Image[2];
 			Bitmap bitmap_new_align = null;
-			Allocation allocation_new_align = null;
+			HDRBackend.Image image_new_align = null;
 			int alignment_width = width;
 			int alignment_height = height;
 			int full_alignment_width = width;
@@ -1266,44 +1818,43 @@ public class HDRProcessor {
 
 				final boolean filter_align = false;
 				//final boolean filter_align = true;
-				if( allocation_avg_align == null ) {
+				if( image_avg_align == null ) {
     				bitmap_avg_align = Bitmap.createBitmap(bitmap_avg, align_x, align_y, align_width, align_height, align_scale_matrix, filter_align);
-					allocation_avg_align = Allocation.createFromBitmap(rs, bitmap_avg_align);
+					image_avg_align = backend.createImage(bitmap_avg_align);
                     if( MyDebug.LOG )
                         Log.d(TAG, "### time after creating avg allocation for autoalignment: " + (System.currentTimeMillis() - time_s));
 				}
                 bitmap_new_align = Bitmap.createBitmap(bitmap_new, align_x, align_y, align_width, align_height, align_scale_matrix, filter_align);
-				allocation_new_align = Allocation.createFromBitmap(rs, bitmap_new_align);
+				image_new_align = backend.createImage(bitmap_new_align);
 
 				alignment_width = bitmap_new_align.getWidth();
 				alignment_height = bitmap_new_align.getHeight();
 
 				align_bitmaps.add(bitmap_avg_align);
 				align_bitmaps.add(bitmap_new_align);
-				allocations[0] = allocation_avg_align;
-				allocations[1] = allocation_new_align;
-				floating_point_align = false;
+				images[0] = image_avg_align;
+				images[1] = image_new_align;
 				if( MyDebug.LOG )
 					Log.d(TAG, "### time after creating allocations for autoalignment: " + (System.currentTimeMillis() - time_s));
             }
 			else {
-				if( allocation_avg == null ) {
-					allocation_avg = Allocation.createFromBitmap(rs, bitmap_avg);
-					free_allocation_avg = true;
+				if( image_avg == null ) {
+					image_avg = backend.createImage(bitmap_avg);
+					free_image_avg = true;
 				}
-				allocation_new = Allocation.createFromBitmap(rs, bitmap_new);
+				image_new = backend.createImage(bitmap_new);
 				if( MyDebug.LOG )
 					Log.d(TAG, "### time after creating allocations from bitmaps: " + (System.currentTimeMillis() - time_s));
 				align_bitmaps.add(bitmap_avg);
 				align_bitmaps.add(bitmap_new);
-				allocations[0] = allocation_avg;
-				allocations[1] = allocation_new;
+				images[0] = image_avg;
+				images[1] = image_new;
 			}
 
 			// need to use try_harder to improve testAvg17, testAvg36
-			//autoAlignment(offsets_x, offsets_y, allocations, alignment_width, alignment_height, align_bitmaps, 0, true, null, false, floating_point_align, 1, crop_to_centre, false, full_alignment_width, full_alignment_height, time_s);
-			autoAlignment(offsets_x, offsets_y, allocations, alignment_width, alignment_height, align_bitmaps, 0, true, null, false, floating_point_align, 1, crop_to_centre, true, full_alignment_width, full_alignment_height, time_s);
-			//autoAlignment(offsets_x, offsets_y, allocations, alignment_width, alignment_height, align_bitmaps, 0, true, null, true, floating_point_align, 1, crop_to_centre, false, full_alignment_width, full_alignment_height, time_s);
+			//autoAlignment(offsets_x, offsets_y, images, alignment_width, alignment_height, align_bitmaps, 0, true, null, false, 1, crop_to_centre, false, full_alignment_width, full_alignment_height, time_s);
+			autoAlignment(offsets_x, offsets_y, images, alignment_width, alignment_height, align_bitmaps, 0, true, null, false, 1, crop_to_centre, true, full_alignment_width, full_alignment_height, time_s);
+			//autoAlignment(offsets_x, offsets_y, images, alignment_width, alignment_height, align_bitmaps, 0, true, null, true, 1, crop_to_centre, false, full_alignment_width, full_alignment_height, time_s);
 
 			/*
 			// compute allocation_diffs
@@ -1335,9 +1886,9 @@ public class HDRProcessor {
 				bitmap_new_align.recycle();
 				bitmap_new_align = null;
 			}
-			if( allocation_new_align != null ) {
-				allocation_new_align.destroy();
-				allocation_new_align = null;
+			if( image_new_align != null ) {
+				image_new_align.destroy();
+				image_new_align = null;
 			}
 
 			if( MyDebug.LOG ) {
@@ -1345,64 +1896,20 @@ public class HDRProcessor {
 			}
 		}
 
-		if( allocation_out == null ) {
-			if( MyDebug.LOG )
-				Log.d(TAG, "need to create allocation_out");
-			allocation_out = Allocation.createTyped(rs, Type.createXY(rs, Element.F32_3(rs), width, height));
-			if( MyDebug.LOG )
-				Log.d(TAG, "### time after create allocation_out: " + (System.currentTimeMillis() - time_s));
-		}
-		if( allocation_avg == null ) {
-			allocation_avg = Allocation.createFromBitmap(rs, bitmap_avg);
-			free_allocation_avg = true;
-			if( MyDebug.LOG )
-				Log.d(TAG, "### time after creating allocation_avg from bitmap: " + (System.currentTimeMillis() - time_s));
-		}
-
-		// write new avg image
-
-		// create RenderScript
-		if( processAvgScript == null ) {
-			processAvgScript = new ScriptC_process_avg(rs);
-		}
-		//ScriptC_process_avg processAvgScript = new ScriptC_process_avg(rs);
-
-		/*final boolean separate_first_pass = false; // whether to convert the first two images in separate passes (reduces memory)
-		if( first && separate_first_pass ) {
-			if( MyDebug.LOG )
-				Log.d(TAG, "### time before convert_to_f: " + (System.currentTimeMillis() - time_s));
-			processAvgScript.forEach_convert_to_f(allocation_avg, allocation_out);
-			if( MyDebug.LOG )
-				Log.d(TAG, "### time after convert_to_f: " + (System.currentTimeMillis() - time_s));
-			if( free_allocation_avg ) {
-				allocation_avg.destroy();
-				free_allocation_avg = false;
+		// refine the global offset for each tile, to allow for rotation and local motion
+		tile_alignment = null;
+		if( tile_align_avg ) {
+			if( tile_reference == null ) {
+				// the first image is the reference for all later images, as the average stays aligned with it
+				tile_reference = TileAlignment.Pyramid.create(bitmap_avg);
+			}
+			tile_alignment = TileAlignment.create(tile_reference, TileAlignment.Pyramid.create(bitmap_new), offsets_x[1], offsets_y[1]);
+			if( MyDebug.LOG ) {
+				Log.d(TAG, "tiles moved by tile alignment: " + tile_alignment.countMoved());
+				Log.d(TAG, "### time after tile alignment: " + (System.currentTimeMillis() - time_s));
 			}
-			if( MyDebug.LOG )
-				Log.d(TAG, "release bitmap_avg");
-			bitmap_avg.recycle();
-			bitmap_avg = null;
-			allocation_avg = allocation_out;
-			first = false;
-		}*/
-
-		if( allocation_new == null ) {
-			allocation_new = Allocation.createFromBitmap(rs, bitmap_new);
-			if( MyDebug.LOG )
-				Log.d(TAG, "### time after creating allocation_new from bitmap: " + (System.currentTimeMillis() - time_s));
 		}
 
-		// set allocations
-		processAvgScript.set_bitmap_new(allocation_new);
-
-		// set offsets
-		processAvgScript.set_offset_x_new(offsets_x[1]);
-		processAvgScript.set_offset_y_new(offsets_y[1]);
-
-		// set globals
-
-		processAvgScript.set_avg_factor(avg_factor);
-
 		// if changing this, pay close attention to tests testAvg6, testAvg8, testAvg17, testAvg23
 		float limited_iso = Math.min(iso, 400);
 		float wiener_cutoff_factor = 1.0f;
@@ -1426,44 +1933,164 @@ public class HDRProcessor {
 			Log.d(TAG, "wiener_C: " + wiener_C);
 			Log.d(TAG, "wiener_cutoff_factor: " + wiener_cutoff_factor);
 		}
-		processAvgScript.set_wiener_C(wiener_C);
-		processAvgScript.set_wiener_C_cutoff(wiener_C_cutoff);
 
-		if( MyDebug.LOG )
-			Log.d(TAG, "call processAvgScript");
-		if( MyDebug.LOG )
-			Log.d(TAG, "### time before processAvgScript: " + (System.currentTimeMillis() - time_s));
-		if( floating_point )
-			processAvgScript.forEach_avg_f(allocation_avg, allocation_out);
-		else
-			processAvgScript.forEach_avg(allocation_avg, allocation_out);
-		if( MyDebug.LOG )
-			Log.d(TAG, "### time after processAvgScript: " + (System.currentTimeMillis() - time_s));
+		if( image_out == null && mapped_avg == null && useMappedAvg(width, height) ) {
+			mapped_avg = createMappedAvg(width, height);
+			if( MyDebug.LOG )
+				Log.d(TAG, "### time after creating mapped_avg: " + (System.currentTimeMillis() - time_s));
+		}
 
-		/*if( allocation_diffs != null ) {
-			allocation_diffs.destroy();
-			allocation_diffs = null;
-		}*/
-		allocation_new.destroy();
-		if( free_allocation_avg ) {
-			allocation_avg.destroy();
+		HDRBackend.AvgStats avg_stats;
+		if( mapped_avg != null ) {
+			avg_stats = processAvgMapped(mapped_avg, bitmap_avg, bitmap_new, offsets_x[1], offsets_y[1], tile_alignment, avg_factor, wiener_C, wiener_C_cutoff);
+		}
+		else {
+			if( image_out == null ) {
+				if( MyDebug.LOG )
+					Log.d(TAG, "need to create image_out");
+				// at half precision, values are rounded to within 1/512 for each image merged, which is well below the 8-bit
+				// precision of the output
+				image_out = half_precision_avg ? backend.createHalfPrecisionImage(width, height) : backend.createFloatImage(width, height);
+				if( MyDebug.LOG )
+					Log.d(TAG, "### time after create image_out: " + (System.currentTimeMillis() - time_s));
+			}
+			if( image_avg == null ) {
+				image_avg = backend.createImage(bitmap_avg);
+				free_image_avg = true;
+				if( MyDebug.LOG )
+					Log.d(TAG, "### time after creating image_avg from bitmap: " + (System.currentTimeMillis() - time_s));
+			}
+
+			// write new avg image
+
+			if( image_new == null ) {
+				image_new = backend.createImage(bitmap_new);
+				if( MyDebug.LOG )
+					Log.d(TAG, "### time after creating image_new from bitmap: " + (System.currentTimeMillis() - time_s));
+			}
+
+			if( MyDebug.LOG )
+				Log.d(TAG, "call backend processAvg");
+			if( MyDebug.LOG )
+				Log.d(TAG, "### time before processAvg: " + (System.currentTimeMillis() - time_s));
+			avg_stats = backend.processAvg(image_avg, image_new, offsets_x[1], offsets_y[1], tile_alignment, avg_factor, wiener_C, wiener_C_cutoff, image_out);
+		}
+		avg_merged_fraction = avg_stats.merged_fraction;
+		avg_mean_diff = avg_stats.mean_diff;
+		if( MyDebug.LOG ) {
+			Log.d(TAG, "fraction of pixels merged: " + avg_merged_fraction);
+			Log.d(TAG, "mean diff of merged pixels: " + avg_mean_diff);
+			Log.d(TAG, "### time after processAvg: " + (System.currentTimeMillis() - time_s));
+		}
+
+		if( image_new != null ) {
+			image_new.destroy();
+		}
+		if( free_image_avg ) {
+			image_avg.destroy();
 		}
         if( bitmap_avg != null ) {
 			if( MyDebug.LOG )
 				Log.d(TAG, "release bitmap_avg");
-			bitmap_avg.recycle();
+			releaseBitmap(bitmap_avg);
 			bitmap_avg = null;
 		}
         if( bitmap_new != null ) {
 			if( MyDebug.LOG )
 				Log.d(TAG, "release bitmap_new");
-			bitmap_new.recycle();
+			releaseBitmap(bitmap_new);
 			bitmap_new = null;
 		}
 
 		if( MyDebug.LOG )
 			Log.d(TAG, "### time for processAvgCore: " + (System.currentTimeMillis() - time_s));
-		return new AvgData(allocation_out, bitmap_avg_align, allocation_avg_align);
+		return new AvgData(image_out, mapped_avg, bitmap_avg_align, image_avg_align, tile_reference);
+	}
+
+	/** Whether noise reduction images of the supplied size should be averaged into a
+	 *  MappedAccumulator, as the full size images wouldn't fit in the limit set by
+	 *  setMaxWorkingMemory().
+	 */
+	public boolean useMappedAvg(int width, int height) {
+		return allow_mapped_avg && half_precision_avg && useTiles(width, height, avg_bytes_per_pixel_c);
+	}
+
+	/** Creates a MappedAccumulator in the cache directory, with bands that fit in the limit set by
+	 *  setMaxWorkingMemory(). Returns null if this fails, in which case the caller should average in
+	 *  memory instead.
+	 */
+	private MappedAccumulator createMappedAvg(int width, int height) {
+		long band_height = max_working_memory / ((long)width*mapped_avg_bytes_per_pixel_c);
+		band_height = Math.max(band_height, min_processing_tile_size_c);
+		try {
+			return MappedAccumulator.create(context.getCacheDir(), width, height, (int)Math.min(band_height, height));
+		}
+		catch(IOException e) {
+			Log.e(TAG, "failed to create mapped accumulator, so average in memory instead");
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/** As HDRBackend.processAvg(), but for an average held in mapped_avg, which is merged a band of
+	 *  rows at a time (in order, so that the file is read and written sequentially). Each band only
+	 *  needs the rows of bitmap_new that the offsets can reach, so the working copies are only ever
+	 *  the size of a band.
+	 * @param bitmap_avg If non-null, the first image, which is averaged with bitmap_new to
+	 *                   initialise mapped_avg.
+	 */
+	@RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+	private HDRBackend.AvgStats processAvgMapped(MappedAccumulator mapped_avg, Bitmap bitmap_avg, Bitmap bitmap_new, int offset_x, int offset_y, TileAlignment tile_alignment, float avg_factor, float wiener_C, float wiener_C_cutoff) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "processAvgMapped: " + mapped_avg.getNBands() + " bands of " + mapped_avg.getBandHeight() + " rows");
+		HDRBackend backend = getBackend();
+		int width = mapped_avg.getWidth();
+		int height = mapped_avg.getHeight();
+		int min_offset_y = offset_y;
+		int max_offset_y = offset_y;
+		if( tile_alignment != null ) {
+			// offsets are interpolated between the tiles, so stay within the range of the tile offsets
+			for(int tile_offset_y : tile_alignment.getOffsetsY()) {
+				min_offset_y = Math.min(min_offset_y, tile_offset_y);
+				max_offset_y = Math.max(max_offset_y, tile_offset_y);
+			}
+		}
+		short [] pixels = new short[3*width*mapped_avg.getBandHeight()];
+		long total_merged = 0;
+		double total_diff = 0.0;
+		for(int band=0;band<mapped_avg.getNBands();band++) {
+			int start_y = mapped_avg.getBandStart(band);
+			int n_rows = mapped_avg.getBandRows(band);
+			// the rows of bitmap_new the band is offset to - at least one row, even if they're all outside the image
+			int new_start_y = Math.max(0, Math.min(start_y + min_offset_y, height-1));
+			int new_stop_y = Math.max(new_start_y+1, Math.min(start_y + n_rows + max_offset_y, height));
+
+			HDRBackend.Image image_avg;
+			HDRBackend.Image image_out;
+			if( bitmap_avg != null ) {
+				image_avg = backend.createImage(bitmap_avg, 0, start_y, width, n_rows);
+				image_out = backend.createHalfPrecisionImage(width, n_rows);
+			}
+			else {
+				mapped_avg.readBand(band, pixels);
+				image_avg = backend.createHalfPrecisionImage(width, n_rows);
+				backend.copyFrom(image_avg, pixels);
+				image_out = image_avg;
+			}
+			HDRBackend.Image image_new = backend.createImage(bitmap_new, 0, new_start_y, width, new_stop_y - new_start_y);
+			HDRBackend.AvgStats band_stats = backend.processAvg(image_avg, image_new, offset_x, offset_y, tile_alignment, avg_factor, wiener_C, wiener_C_cutoff, image_out, 0, start_y, 0, new_start_y);
+			image_new.destroy();
+			backend.copyTo(image_out, pixels);
+			mapped_avg.writeBand(band, pixels);
+			if( image_out != image_avg )
+				image_out.destroy();
+			image_avg.destroy();
+
+			long band_merged = Math.round(band_stats.merged_fraction * width * n_rows);
+			total_merged += band_merged;
+			total_diff += band_stats.mean_diff * band_merged;
+		}
+		return new HDRBackend.AvgStats(total_merged / (float)((long)width*height), total_merged == 0 ? 0.0f : (float)(total_diff/total_merged));
 	}
 
 	/** Combines multiple images by averaging them.
@@ -1500,20 +2127,16 @@ public class HDRProcessor {
 		int width = bitmaps.get(0).getWidth();
 		int height = bitmaps.get(0).getHeight();
 
-		initRenderscript();
+		HDRBackend backend = getBackend();
 		if( MyDebug.LOG )
-			Log.d(TAG, "### time after creating renderscript: " + (System.currentTimeMillis() - time_s));
-		// create allocations
-		Allocation allocation0 = Allocation.createFromBitmap(rs, bitmaps.get(0));
-		Allocation allocation1 = Allocation.createFromBitmap(rs, bitmaps.get(1));
-		Allocation allocation2 = Allocation.createFromBitmap(rs, bitmaps.get(2));
-		Allocation allocation3 = Allocation.createFromBitmap(rs, bitmaps.get(3));
-		Allocation allocation4 = Allocation.createFromBitmap(rs, bitmaps.get(4));
-		Allocation allocation5 = Allocation.createFromBitmap(rs, bitmaps.get(5));
-		Allocation allocation6 = Allocation.createFromBitmap(rs, bitmaps.get(6));
-		Allocation allocation7 = Allocation.createFromBitmap(rs, bitmaps.get(7));
+			Log.d(TAG, "### time after creating backend: " + (System.currentTimeMillis() - time_s));
+		// create images
+		HDRBackend.Image [] images = new HDRBackend.Image[n_bitmaps];
+		for(int i=0;i<n_bitmaps;i++) {
+			images[i] = backend.createImage(bitmaps.get(i));
+		}
 		if( MyDebug.LOG )
-			Log.d(TAG, "### time after creating allocations from bitmaps: " + (System.currentTimeMillis() - time_s));
+			Log.d(TAG, "### time after creating images from bitmaps: " + (System.currentTimeMillis() - time_s));
 
 		// perform auto-alignment
 		/*for(int i=1;i<bitmaps.size();i++) {
@@ -1534,52 +2157,36 @@ public class HDRProcessor {
 
 		// write new avg image
 
-		// create RenderScript
-		/*if( processAvgScript == null ) {
-			processAvgScript = new ScriptC_process_avg(rs);
-		}*/
-		ScriptC_process_avg processAvgScript = new ScriptC_process_avg(rs);
-
-		// set allocations
-		processAvgScript.set_bitmap1(allocation1);
-		processAvgScript.set_bitmap2(allocation2);
-		processAvgScript.set_bitmap3(allocation3);
-		processAvgScript.set_bitmap4(allocation4);
-		processAvgScript.set_bitmap5(allocation5);
-		processAvgScript.set_bitmap6(allocation6);
-		processAvgScript.set_bitmap7(allocation7);
-
-		// set offsets
-		//processAvgScript.set_offset_x_new(offsets_x[1]);
-		//processAvgScript.set_offset_y_new(offsets_y[1]);
-
 		//hdr_alpha = 0.0f; // test
 
-		// set globals
-
 		if( MyDebug.LOG )
-			Log.d(TAG, "call processAvgScript");
+			Log.d(TAG, "call backend processAvgMulti");
 		if( MyDebug.LOG )
-			Log.d(TAG, "### time before processAvgScript: " + (System.currentTimeMillis() - time_s));
-		processAvgScript.forEach_avg_multi(allocation0, allocation0);
+			Log.d(TAG, "### time before processAvgMulti: " + (System.currentTimeMillis() - time_s));
+		backend.processAvgMulti(images);
 		if( MyDebug.LOG )
-			Log.d(TAG, "### time after processAvgScript: " + (System.currentTimeMillis() - time_s));
+			Log.d(TAG, "### time after processAvgMulti: " + (System.currentTimeMillis() - time_s));
 
 		{
 			if( MyDebug.LOG )
 				Log.d(TAG, "release bitmaps");
 			for(int i=1;i<bitmaps.size();i++) {
-				bitmaps.get(i).recycle();
+				releaseBitmap(bitmaps.get(i));
 			}
 		}
 
 		if( hdr_alpha != 0.0f ) {
-			adjustHistogram(allocation0, allocation0, width, height, hdr_alpha, n_tiles, time_s);
+			adjustHistogram(images[0], images[0], width, height, hdr_alpha, n_tiles, time_s);
 			if( MyDebug.LOG )
 				Log.d(TAG, "### time after adjustHistogram: " + (System.currentTimeMillis() - time_s));
 		}
 
-		allocation0.copyTo(bitmaps.get(0));
+		backend.copyTo(images[0], bitmaps.get(0));
+		for(int i=0;i<n_bitmaps;i++) {
+			images[i].destroy();
+			images[i] = null;
+		}
+		freeScripts();
 
 		if( MyDebug.LOG )
 			Log.d(TAG, "### time for processAvgMulti: " + (System.currentTimeMillis() - time_s));
@@ -1599,23 +2206,27 @@ public class HDRProcessor {
 	 * @param base_bitmap   Index of bitmap in bitmaps that should be kept fixed; the other bitmaps
 	 *                      will be aligned relative to this.
 	 * @param assume_sorted If assume_sorted if false, and use_mtb is true, this function will also
-	 *                      sort the allocations and bitmaps from darkest to brightest.
-	 * @param use_mtb       Whether to align based on the median threshold bitmaps or not.
-	 * @param floating_point If true, the first allocation is in floating point (F32_3) format.
+	 *                      sort the images and bitmaps from darkest to brightest.
+	 * @param use_mtb       Whether to align based on the median threshold bitmaps or not. If false,
+	 *                      the images may be floating point.
      */
 	@RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
-	private BrightnessDetails autoAlignment(int [] offsets_x, int [] offsets_y, Allocation [] allocations, int width, int height, List<Bitmap> bitmaps, int base_bitmap, boolean assume_sorted, SortCallback sort_cb, boolean use_mtb, boolean floating_point, int min_step_size, boolean crop_to_centre, boolean try_harder, int full_width, int full_height, long time_s) {
+	private BrightnessDetails autoAlignment(int [] offsets_x, int [] offsets_y, HDRBackend.Image [] images, int width, int height, List<Bitmap> bitmaps, int base_bitmap, boolean assume_sorted, SortCallback sort_cb, boolean use_mtb, int min_step_size, boolean crop_to_centre, boolean try_harder, int full_width, int full_height, long time_s) {
 		if( MyDebug.LOG ) {
 			Log.d(TAG, "autoAlignment");
 			Log.d(TAG, "width: " + width);
 			Log.d(TAG, "height: " + height);
 			Log.d(TAG, "use_mtb: " + use_mtb);
-			Log.d(TAG, "allocations: " + allocations.length);
-			for(Allocation allocation : allocations) {
-				Log.d(TAG, "    allocation:");
-				Log.d(TAG, "    element: " + allocation.getElement());
-				Log.d(TAG, "    type X: " + allocation.getType().getX());
-				Log.d(TAG, "    type Y: " + allocation.getType().getY());
+			Log.d(TAG, "images: " + images.length);
+			for(HDRBackend.Image image : images) {
+				if( image == null ) {
+					// not created yet, if processing in tiles
+					continue;
+				}
+				Log.d(TAG, "    image:");
+				Log.d(TAG, "    floating point: " + image.isFloatingPoint());
+				Log.d(TAG, "    width: " + image.getWidth());
+				Log.d(TAG, "    height: " + image.getHeight());
 			}
 		}
 
@@ -1625,13 +2236,14 @@ public class HDRProcessor {
 			offsets_y[i] = 0;
 		}
 
-		Allocation [] mtb_allocations = new Allocation[allocations.length];
-		if( MyDebug.LOG )
-			Log.d(TAG, "### time after creating mtb_allocations: " + (System.currentTimeMillis() - time_s));
+		HDRBackend backend = getBackend();
+		HDRBackend.Image [] mtb_images = new HDRBackend.Image[images.length];
 
 		// Testing shows that in practice we get good results by only aligning the centre quarter of the images. This gives better
 		// performance, and uses less memory.
 		// If copy_to_centre is false, this has already been done by the caller.
+		// When use_mtb is true, this region is only used to compute the median luminance, as the alignment pyramids
+		// cover the full image.
 		int mtb_width = width;
 		int mtb_height = height;
 		int mtb_x = 0;
@@ -1657,20 +2269,10 @@ public class HDRProcessor {
 			Log.d(TAG, "mtb_height: " + mtb_height);
 		}
 
-		// create RenderScript
-		if( createMTBScript == null ) {
-			createMTBScript = new ScriptC_create_mtb(rs);
-			if( MyDebug.LOG )
-				Log.d(TAG, "### time after creating createMTBScript: " + (System.currentTimeMillis() - time_s));
-		}
-		//ScriptC_create_mtb createMTBScript = new ScriptC_create_mtb(rs);
-		if( MyDebug.LOG )
-			Log.d(TAG, "### time after creating createMTBScript: " + (System.currentTimeMillis() - time_s));
-
 		LuminanceInfo [] luminanceInfos = null;
 		if( use_mtb ) {
-			luminanceInfos = new LuminanceInfo[allocations.length];
-			for(int i = 0; i < allocations.length; i++) {
+			luminanceInfos = new LuminanceInfo[images.length];
+			for(int i = 0; i < images.length; i++) {
 				luminanceInfos[i] = computeMedianLuminance(bitmaps.get(i), mtb_x, mtb_y, mtb_width, mtb_height);
 				if( MyDebug.LOG )
 					Log.d(TAG, i + ": median_value: " + luminanceInfos[i].median_value);
@@ -1685,13 +2287,13 @@ public class HDRProcessor {
 			class BitmapInfo {
 				final LuminanceInfo luminanceInfo;
 				final Bitmap bitmap;
-				final Allocation allocation;
+				final HDRBackend.Image image;
 				final int index;
 
-				BitmapInfo(LuminanceInfo luminanceInfo, Bitmap bitmap, Allocation allocation, int index) {
+				BitmapInfo(LuminanceInfo luminanceInfo, Bitmap bitmap, HDRBackend.Image image, int index) {
 					this.luminanceInfo = luminanceInfo;
 					this.bitmap = bitmap;
-					this.allocation = allocation;
+					this.image = image;
 					this.index = index;
 				}
 
@@ -1699,7 +2301,7 @@ public class HDRProcessor {
 
 			List<BitmapInfo> bitmapInfos = new ArrayList<>(bitmaps.size());
 			for(int i=0;i<bitmaps.size();i++) {
-				BitmapInfo bitmapInfo = new BitmapInfo(luminanceInfos[i], bitmaps.get(i), allocations[i], i);
+				BitmapInfo bitmapInfo = new BitmapInfo(luminanceInfos[i], bitmaps.get(i), images[i], i);
 				bitmapInfos.add(bitmapInfo);
 			}
 			Collections.sort(bitmapInfos, new Comparator<BitmapInfo>() {
@@ -1712,10 +2314,10 @@ public class HDRProcessor {
 			for(int i=0;i<bitmapInfos.size();i++) {
 				bitmaps.add(bitmapInfos.get(i).bitmap);
 				luminanceInfos[i] = bitmapInfos.get(i).luminanceInfo;
-				allocations[i] = bitmapInfos.get(i).allocation;
+				images[i] = bitmapInfos.get(i).image;
 			}
 			if( MyDebug.LOG ) {
-				for(int i=0;i<allocations.length;i++) {
+				for(int i=0;i<images.length;i++) {
 					Log.d(TAG, i + ": median_value: " + luminanceInfos[i].median_value);
 				}
 			}
@@ -1737,7 +2339,21 @@ public class HDRProcessor {
 				Log.d(TAG, "median_brightness: " + median_brightness);
 		}
 
-		for(int i=0;i<allocations.length;i++) {
+		int initial_step_size = computeInitialStepSize(full_width, full_height, try_harder);
+
+		if( use_mtb ) {
+			// align with bit-packed median threshold bitmap pyramids, which is fast enough to use the full image
+			int n_levels = computePyramidLevels(initial_step_size);
+			int finest_level = computePyramidLevels(min_step_size+1)-1;
+			if( n_levels > finest_level ) {
+				alignPyramids(offsets_x, offsets_y, bitmaps, base_bitmap, luminanceInfos, n_levels, finest_level, !try_harder);
+			}
+			if( MyDebug.LOG )
+				Log.d(TAG, "### time after alignPyramids: " + (System.currentTimeMillis() - time_s));
+			return new BrightnessDetails(median_brightness);
+		}
+
+		for(int i=0;i<images.length;i++) {
 			int median_value = -1;
 			if( use_mtb ) {
 				median_value = luminanceInfos[i].median_value;
@@ -1748,7 +2364,7 @@ public class HDRProcessor {
 					// needed for testHDR2, testHDR28
 					if( MyDebug.LOG )
 						Log.d(TAG, "image too dark to do alignment");
-					mtb_allocations[i] = null;
+					mtb_images[i] = null;
 					continue;
 				}*/
 			}
@@ -1756,42 +2372,23 @@ public class HDRProcessor {
 			if( use_mtb && luminanceInfos[i].noisy ) {
 				if( MyDebug.LOG )
 					Log.d(TAG, "unable to compute median luminance safely");
-				mtb_allocations[i] = null;
+				mtb_images[i] = null;
 				continue;
 			}
 
-			mtb_allocations[i] = Allocation.createTyped(rs, Type.createXY(rs, Element.U8(rs), mtb_width, mtb_height));
-
-			// set parameters
-			if( use_mtb )
-				createMTBScript.set_median_value(median_value);
-			createMTBScript.set_start_x(mtb_x);
-			createMTBScript.set_start_y(mtb_y);
-			createMTBScript.set_out_bitmap(mtb_allocations[i]);
-
-			if( MyDebug.LOG )
-				Log.d(TAG, "call createMTBScript");
-			Script.LaunchOptions launch_options = new Script.LaunchOptions();
-			//launch_options.setX((int)(width*0.25), (int)(width*0.75));
-			//launch_options.setY((int)(height*0.25), (int)(height*0.75));
-			//createMTBScript.forEach_create_mtb(allocations[i], mtb_allocations[i], launch_options);
-			launch_options.setX(mtb_x, mtb_x+mtb_width);
-			launch_options.setY(mtb_y, mtb_y+mtb_height);
+			if( MyDebug.LOG )
+				Log.d(TAG, "call createMTB");
 			if( use_mtb )
-				createMTBScript.forEach_create_mtb(allocations[i], launch_options);
-			else {
-				if( floating_point && i == 0 )
-					createMTBScript.forEach_create_greyscale_f(allocations[i], launch_options);
-				else
-					createMTBScript.forEach_create_greyscale(allocations[i], launch_options);
-			}
+				mtb_images[i] = backend.createMTB(images[i], median_value, mtb_x, mtb_y, mtb_width, mtb_height);
+			else
+				mtb_images[i] = backend.createGreyscale(images[i], mtb_x, mtb_y, mtb_width, mtb_height);
 			if( MyDebug.LOG )
-				Log.d(TAG, "time after createMTBScript: " + (System.currentTimeMillis() - time_s));
+				Log.d(TAG, "time after createMTB: " + (System.currentTimeMillis() - time_s));
 
 			/*if( MyDebug.LOG ) {
 				// debugging
 				byte [] mtb_bytes = new byte[mtb_width*mtb_height];
-				mtb_allocations[i].copyTo(mtb_bytes);
+				mtb_images[i].copyTo(mtb_bytes);
 				int [] pixels = new int[mtb_width*mtb_height];
 				for(int j=0;j<mtb_width*mtb_height;j++) {
 					byte b = mtb_bytes[j];
@@ -1813,63 +2410,32 @@ public class HDRProcessor {
 			}*/
 		}
 		if( MyDebug.LOG )
-			Log.d(TAG, "### time after all createMTBScript: " + (System.currentTimeMillis() - time_s));
-
-		// The initial step_size N should be a power of 2; the maximum offset we can achieve by the algorithm is N-1.
-		// For pictures resolution 4160x3120, this gives max_ideal_size 27, and initial_step_size 32.
-		// On tests testHDR1 to testHDR35, the max required offset was 24 pixels (for testHDR33) even when using
-		// inital_step_size of 64.
-		// Note, there isn't really a performance cost in allowing higher initial step sizes (as larger sizes have less
-		// sampling - since we sample every step_size pixels - though there might be some overhead for every extra call
-		// to renderscript that we do). But high step sizes have a risk of producing really bad results if we were
-		// to misidentify cases as needing a large offset.
-		int max_dim = Math.max(full_width, full_height); // n.b., use the full width and height here, not the mtb_width, height
-		int max_ideal_size = max_dim / (try_harder ? 150 : 300);
-		int initial_step_size = 1;
-		while( initial_step_size < max_ideal_size ) {
-			initial_step_size *= 2;
-		}
-		if( MyDebug.LOG ) {
-			Log.d(TAG, "max_dim: " + max_dim);
-			Log.d(TAG, "max_ideal_size: " + max_ideal_size);
-			Log.d(TAG, "initial_step_size: " + initial_step_size);
-		}
+			Log.d(TAG, "### time after all createMTB: " + (System.currentTimeMillis() - time_s));
 
-		if( mtb_allocations[base_bitmap] == null ) {
+		if( mtb_images[base_bitmap] == null ) {
 			if( MyDebug.LOG )
 				Log.d(TAG, "base image not suitable for image alignment");
-			for(int i=0;i<mtb_allocations.length;i++) {
-				if( mtb_allocations[i] != null ) {
-					mtb_allocations[i].destroy();
-					mtb_allocations[i] = null;
+			for(int i=0;i<mtb_images.length;i++) {
+				if( mtb_images[i] != null ) {
+					mtb_images[i].destroy();
+					mtb_images[i] = null;
 				}
 			}
 			return new BrightnessDetails(median_brightness);
 		}
 
-		// create RenderScript
-		if( alignMTBScript == null ) {
-			alignMTBScript = new ScriptC_align_mtb(rs);
-		}
-		//ScriptC_align_mtb alignMTBScript = new ScriptC_align_mtb(rs);
-
-		// set parameters
-		alignMTBScript.set_bitmap0(mtb_allocations[base_bitmap]);
-		// bitmap1 set below
-
-		for(int i=0;i<allocations.length;i++)  {
+		int [] errors = new int[9];
+		for(int i=0;i<images.length;i++)  {
 			if( i == base_bitmap ) {
 				// don't need to align the "base" reference image
 				continue;
 			}
-			if( mtb_allocations[i] == null ) {
+			if( mtb_images[i] == null ) {
 				if( MyDebug.LOG )
 					Log.d(TAG, "image " + i + " not suitable for image alignment");
 				continue;
 			}
 
-			alignMTBScript.set_bitmap1(mtb_allocations[i]);
-
 			//final int pixel_step = use_mtb ? 1 : 4;
 			final int pixel_step = 1;
 			int step_size = initial_step_size;
@@ -1878,46 +2444,28 @@ public class HDRProcessor {
 				int pixel_step_size = step_size * pixel_step;
 				if( pixel_step_size > mtb_width || pixel_step_size > mtb_height )
 					pixel_step_size = step_size;
-				alignMTBScript.set_off_x( offsets_x[i] );
-				alignMTBScript.set_off_y( offsets_y[i] );
-				alignMTBScript.set_step_size( pixel_step_size );
 				if( MyDebug.LOG ) {
-					Log.d(TAG, "call alignMTBScript for image: " + i);
+					Log.d(TAG, "call alignMTB for image: " + i);
 					Log.d(TAG, "    versus base image: " + base_bitmap);
 					Log.d(TAG, "step_size: " + step_size);
 					Log.d(TAG, "pixel_step_size: " + pixel_step_size);
 				}
-				Allocation errorsAllocation = Allocation.createSized(rs, Element.I32(rs), 9);
-				alignMTBScript.bind_errors(errorsAllocation);
-				alignMTBScript.invoke_init_errors();
-
 				// see note inside align_mtb.rs/align_mtb() for why we sample over a subset of the image
-				Script.LaunchOptions launch_options = new Script.LaunchOptions();
 				int stop_x = mtb_width/pixel_step_size;
 				int stop_y = mtb_height/pixel_step_size;
 				if( MyDebug.LOG ) {
 					Log.d(TAG, "stop_x: " + stop_x);
 					Log.d(TAG, "stop_y: " + stop_y);
 				}
-				//launch_options.setX((int)(stop_x*0.25), (int)(stop_x*0.75));
-				//launch_options.setY((int)(stop_y*0.25), (int)(stop_y*0.75));
-				launch_options.setX(0, stop_x);
-				launch_options.setY(0, stop_y);
 				long this_time_s = System.currentTimeMillis();
-				if( use_mtb )
-					alignMTBScript.forEach_align_mtb(mtb_allocations[base_bitmap], launch_options);
-				else
-					alignMTBScript.forEach_align(mtb_allocations[base_bitmap], launch_options);
+				backend.alignMTB(errors, mtb_images[base_bitmap], mtb_images[i], use_mtb, offsets_x[i], offsets_y[i], pixel_step_size, stop_x, stop_y);
 				if( MyDebug.LOG ) {
-					Log.d(TAG, "time for alignMTBScript: " + (System.currentTimeMillis() - this_time_s));
-					Log.d(TAG, "time after alignMTBScript: " + (System.currentTimeMillis() - time_s));
+					Log.d(TAG, "time for alignMTB: " + (System.currentTimeMillis() - this_time_s));
+					Log.d(TAG, "time after alignMTB: " + (System.currentTimeMillis() - time_s));
 				}
 
 				int best_error = -1;
 				int best_id = -1;
-				int [] errors = new int[9];
-				errorsAllocation.copyTo(errors);
-				errorsAllocation.destroy();
 				for(int j=0;j<9;j++) {
 					int this_error = errors[j];
 					if( MyDebug.LOG )
@@ -1953,17 +2501,149 @@ public class HDRProcessor {
 			}
 		}
 
-		/*for(int i=0;i<allocations.length;i++) {
-			offsets_x[i] = 0;
-			offsets_y[i] = 0;
-		}*/
-		for(int i=0;i<mtb_allocations.length;i++) {
-			if( mtb_allocations[i] != null ) {
-				mtb_allocations[i].destroy();
-				mtb_allocations[i] = null;
+		/*for(int i=0;i<images.length;i++) {
+			offsets_x[i] = 0;
+			offsets_y[i] = 0;
+		}*/
+		for(int i=0;i<mtb_images.length;i++) {
+			if( mtb_images[i] != null ) {
+				mtb_images[i].destroy();
+				mtb_images[i] = null;
+			}
+		}
+		return new BrightnessDetails(median_brightness);
+	}
+
+	/** Returns the initial step size for image alignment: the maximum offset that can be found is
+	 *  one less than this.
+	 */
+	private static int computeInitialStepSize(int full_width, int full_height, boolean try_harder) {
+		// The initial step_size N should be a power of 2; the maximum offset we can achieve by the algorithm is N-1.
+		// For pictures resolution 4160x3120, this gives max_ideal_size 27, and initial_step_size 32.
+		// On tests testHDR1 to testHDR35, the max required offset was 24 pixels (for testHDR33) even when using
+		// inital_step_size of 64.
+		// Note, there isn't really a performance cost in allowing higher initial step sizes (as larger sizes have less
+		// sampling - since we sample every step_size pixels - though there might be some overhead for every extra call
+		// to renderscript that we do). But high step sizes have a risk of producing really bad results if we were
+		// to misidentify cases as needing a large offset.
+		int max_dim = Math.max(full_width, full_height); // n.b., use the full width and height here, not the width, height of the region being aligned
+		int max_ideal_size = max_dim / (try_harder ? 150 : 300);
+		int initial_step_size = 1;
+		while( initial_step_size < max_ideal_size ) {
+			initial_step_size *= 2;
+		}
+		if( MyDebug.LOG ) {
+			Log.d(TAG, "max_dim: " + max_dim);
+			Log.d(TAG, "max_ideal_size: " + max_ideal_size);
+			Log.d(TAG, "initial_step_size: " + initial_step_size);
+		}
+		return initial_step_size;
+	}
+
+	/** Returns the number of levels of an MTBPyramid needed to find offsets of up to step_size-1
+	 *  pixels, i.e., the smallest n such that 2^n >= step_size.
+	 */
+	private static int computePyramidLevels(int step_size) {
+		int n_levels = 0;
+		while( (1 << n_levels) < step_size ) {
+			n_levels++;
+		}
+		return n_levels;
+	}
+
+	/** Aligns the bitmaps against the base bitmap using median threshold bitmap pyramids (see
+	 *  MTBPyramid) over the full image. The pyramids are created, and the images aligned, in
+	 *  parallel. Images whose luminance is too noisy to threshold are left with zero offsets.
+	 */
+	private void alignPyramids(int [] offsets_x, int [] offsets_y, final List<Bitmap> bitmaps, final int base_bitmap, final LuminanceInfo [] luminanceInfos, final int n_levels, final int finest_level, final boolean stop_early) {
+		if( MyDebug.LOG ) {
+			Log.d(TAG, "alignPyramids");
+			Log.d(TAG, "n_levels: " + n_levels);
+			Log.d(TAG, "finest_level: " + finest_level);
+			Log.d(TAG, "stop_early: " + stop_early);
+		}
+		final int n_images = bitmaps.size();
+		if( luminanceInfos[base_bitmap].noisy ) {
+			if( MyDebug.LOG )
+				Log.d(TAG, "base image not suitable for image alignment");
+			return;
+		}
+
+		final MTBPyramid [] pyramids = new MTBPyramid[n_images];
+		List<Callable<Void>> tasks = new ArrayList<>();
+		for(int i=0;i<n_images;i++) {
+			if( luminanceInfos[i].noisy ) {
+				if( MyDebug.LOG )
+					Log.d(TAG, "image " + i + " not suitable for image alignment");
+				continue;
+			}
+			final int index = i;
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					pyramids[index] = MTBPyramid.create(bitmaps.get(index), luminanceInfos[index].median_value, n_levels);
+					return null;
+				}
+			});
+		}
+		if( !runTasks(tasks) )
+			return;
+
+		final int [][] offsets = new int[n_images][2];
+		tasks.clear();
+		for(int i=0;i<n_images;i++) {
+			if( i == base_bitmap || pyramids[i] == null ) {
+				// don't need to align the "base" reference image
+				continue;
+			}
+			final int index = i;
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					MTBPyramid.align(offsets[index], pyramids[base_bitmap], pyramids[index], finest_level, stop_early);
+					return null;
+				}
+			});
+		}
+		if( !runTasks(tasks) )
+			return;
+
+		for(int i=0;i<n_images;i++) {
+			offsets_x[i] = offsets[i][0];
+			offsets_y[i] = offsets[i][1];
+			if( MyDebug.LOG ) {
+				Log.d(TAG, "resultant offsets for image: " + i);
+				Log.d(TAG, "resultant offsets_x: " + offsets_x[i]);
+				Log.d(TAG, "resultant offsets_y: " + offsets_y[i]);
+			}
+		}
+	}
+
+	/** Runs the tasks on executor, and waits for them to complete.
+	 * @return Whether all the tasks completed successfully.
+	 */
+	private boolean runTasks(List<Callable<Void>> tasks) {
+		if( executor == null ) {
+			executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		}
+		try {
+			List<Future<Void>> futures = executor.invokeAll(tasks);
+			for(Future<Void> future : futures) {
+				future.get();
 			}
+			return true;
 		}
-		return new BrightnessDetails(median_brightness);
+		catch(InterruptedException e) {
+			if( MyDebug.LOG )
+				Log.e(TAG, "tasks interrupted");
+			e.printStackTrace();
+		}
+		catch(ExecutionException e) {
+			if( MyDebug.LOG )
+				Log.e(TAG, "task failed");
+			e.printStackTrace();
+		}
+		return false;
 	}
 
 	private static class LuminanceInfo {
@@ -1979,9 +2659,10 @@ public class HDRProcessor {
 	private LuminanceInfo computeMedianLuminance(Bitmap bitmap, int mtb_x, int mtb_y, int mtb_width, int mtb_height) {
 		if( MyDebug.LOG )
 			Log.d(TAG, "computeMedianLuminance");
-		final int n_samples_c = 100;
-		final int n_w_samples = (int)Math.sqrt(n_samples_c);
-		final int n_h_samples = n_samples_c/n_w_samples;
+		final int n_w_samples = n_luminance_samples_c;
+		final int n_h_samples = n_luminance_samples_c;
+		// only need to read the part of each row covering the region
+		int [] row = sample_row_in = allocateRow(sample_row_in, mtb_width);
 
 		int [] histo = new int[256];
 		for(int i=0;i<256;i++)
@@ -1992,13 +2673,14 @@ public class HDRProcessor {
 			double alpha = ((double) y + 1.0) / ((double) n_h_samples + 1.0);
 			//int y_coord = (int) (alpha * bitmap.getHeight());
 			int y_coord = mtb_y + (int) (alpha * mtb_height);
+			bitmap.getPixels(row, 0, mtb_width, mtb_x, y_coord, mtb_width, 1);
 			for(int x=0;x<n_w_samples;x++) {
 				double beta = ((double) x + 1.0) / ((double) n_w_samples + 1.0);
 				//int x_coord = (int) (beta * bitmap.getWidth());
-				int x_coord = mtb_x + (int) (beta * mtb_width);
+				int x_coord = (int) (beta * mtb_width);
 				/*if( MyDebug.LOG )
-					Log.d(TAG, "sample value from " + x_coord + " , " + y_coord);*/
-				int color = bitmap.getPixel(x_coord, y_coord);
+					Log.d(TAG, "sample value from " + (mtb_x + x_coord) + " , " + y_coord);*/
+				int color = row[x_coord];
 				int r = (color & 0xFF0000) >> 16;
 				int g = (color & 0xFF00) >> 8;
 				int b = (color & 0xFF);
@@ -2051,22 +2733,249 @@ public class HDRProcessor {
 		return new LuminanceInfo(127, true);
 	}
 
+	/** A tile for processing an image in pieces, see runTiled(). The tile's output is the region
+	 *  with top left corner (x, y). Its input is that region plus a halo of neighbouring pixels
+	 *  (clipped to the image), so that kernels which read nearby pixels give the same results for
+	 *  the output region as when run on the whole image.
+	 */
+	private static class ProcessingTile {
+		final int x, y, width, height;
+		final int in_x, in_y, in_width, in_height;
+
+		ProcessingTile(int x, int y, int width, int height, int halo, int full_width, int full_height) {
+			this.x = x;
+			this.y = y;
+			this.width = width;
+			this.height = height;
+			this.in_x = Math.max(0, x-halo);
+			this.in_y = Math.max(0, y-halo);
+			this.in_width = Math.min(full_width, x+width+halo) - in_x;
+			this.in_height = Math.min(full_height, y+height+halo) - in_y;
+		}
+	}
+
+	/** Processes a single tile for runTiled().
+	 */
+	private interface TileKernel {
+		/** Returns an RGBA image the size of the tile's input region, holding the result for the
+		 *  tile's output region. The caller takes ownership of the returned image.
+		 */
+		HDRBackend.Image process(ProcessingTile tile);
+	}
+
+	/** A task run for each tile by runProcessingTiles().
+	 */
+	private interface TileTask {
+		void run(ProcessingTile tile);
+	}
+
+	/** Whether processing an image of the supplied size at once would exceed the limit set by
+	 *  setMaxWorkingMemory().
+	 * @param bytes_per_pixel The working memory needed per pixel.
+	 */
+	private boolean useTiles(int width, int height, int bytes_per_pixel) {
+		return max_working_memory > 0 && ((long)width)*height*bytes_per_pixel > max_working_memory;
+	}
+
+	/** Returns how many tiles to process at once, within the limit set by setMaxWorkingMemory().
+	 */
+	private int computeParallelTiles(int halo, int bytes_per_pixel) {
+		int n_parallel = getBackend().isThreadSafe() ? Runtime.getRuntime().availableProcessors() : 1;
+		// prefer processing fewer tiles at once, to tiles so small that the halos dominate
+		while( n_parallel > 1 && computeProcessingTileSize(n_parallel, halo, bytes_per_pixel) < min_processing_tile_size_c ) {
+			n_parallel--;
+		}
+		return n_parallel;
+	}
+
+	/** Returns the width and height of the output region of tiles (excluding the halo), such that
+	 *  n_parallel tiles fit within the limit set by setMaxWorkingMemory().
+	 */
+	private int computeProcessingTileSize(int n_parallel, int halo, int bytes_per_pixel) {
+		long max_tile_pixels = max_working_memory / ((long)n_parallel*bytes_per_pixel);
+		return (int)Math.sqrt((double)max_tile_pixels) - 2*halo;
+	}
+
+	/** Splits an image into tiles of roughly equal size, with outputs of at most tile_size x
+	 *  tile_size pixels.
+	 */
+	private static List<ProcessingTile> createProcessingTiles(int width, int height, int halo, int tile_size) {
+		int n_x = (width + tile_size - 1)/tile_size;
+		int n_y = (height + tile_size - 1)/tile_size;
+		List<ProcessingTile> tiles = new ArrayList<>();
+		for(int j=0;j<n_y;j++) {
+			int start_y = (j*height)/n_y;
+			int stop_y = ((j+1)*height)/n_y;
+			for(int i=0;i<n_x;i++) {
+				int start_x = (i*width)/n_x;
+				int stop_x = ((i+1)*width)/n_x;
+				tiles.add(new ProcessingTile(start_x, start_y, stop_x-start_x, stop_y-start_y, halo, width, height));
+			}
+		}
+		return tiles;
+	}
+
+	/** Processes an image a tile at a time, with kernel computing the result for each tile, which is
+	 *  copied to bitmap_out. If hdr_alpha is non-zero, local histogram equalisation is then applied
+	 *  to bitmap_out, with the same results as adjustHistogram() on the whole image. The tiles are
+	 *  processed in parallel (if the backend supports it) as far as the limit set by
+	 *  setMaxWorkingMemory() allows.
+	 * @param halo            The number of pixels around each tile that kernel needs to read.
+	 * @param bytes_per_pixel The working memory kernel needs per pixel of the tile's input region.
+	 */
+	private void runTiled(final TileKernel kernel, final Bitmap bitmap_out, int halo, int bytes_per_pixel, final float hdr_alpha, final int n_tiles, long time_s) {
+		final int width = bitmap_out.getWidth();
+		final int height = bitmap_out.getHeight();
+		final HDRBackend backend = getBackend();
+		int n_parallel = computeParallelTiles(halo, bytes_per_pixel);
+		int tile_size = computeProcessingTileSize(n_parallel, halo, bytes_per_pixel);
+		if( tile_size < min_processing_tile_size_c ) {
+			// the limit is too low for even one tile, so go over it rather than fail
+			if( MyDebug.LOG )
+				Log.e(TAG, "working memory limit too low for tiles: " + max_working_memory);
+			tile_size = min_processing_tile_size_c;
+		}
+		List<ProcessingTile> tiles = createProcessingTiles(width, height, halo, tile_size);
+		if( MyDebug.LOG ) {
+			Log.d(TAG, "runTiled: " + tiles.size() + " tiles of up to " + tile_size + " pixels, halo " + halo + ", " + n_parallel + " at once");
+		}
+
+		// histograms for each histogram tile are summed from the parts in each processing tile, so we don't need the whole image
+		final boolean use_sliding_clahe = sliding_clahe;
+		final int n_grid = use_sliding_clahe ? n_tiles*clahe_blocks_per_tile_c : n_tiles;
+		final int [] histograms = hdr_alpha != 0.0f ? new int[n_grid*n_grid*256] : null;
+		runProcessingTiles(tiles, n_parallel, new TileTask() {
+			@Override
+			public void run(ProcessingTile tile) {
+				HDRBackend.Image image = kernel.process(tile);
+				if( histograms != null ) {
+					if( use_sliding_clahe ) {
+						// only count the output region, not the halo
+						int [] tile_x = createHistogramTileIndices(n_grid, width, tile.in_x, tile.in_width, tile.x, tile.x + tile.width);
+						int [] tile_y = createHistogramTileIndices(n_grid, height, tile.in_y, tile.in_height, tile.y, tile.y + tile.height);
+						int [] tile_histograms = backend.computeTileHistograms(image, tile_x, tile_y, n_grid);
+						synchronized( histograms ) {
+							for(int i=0;i<histograms.length;i++) {
+								histograms[i] += tile_histograms[i];
+							}
+						}
+					}
+					else {
+						addTileHistograms(histograms, image, tile, n_tiles, width, height);
+					}
+				}
+				backend.copyTo(image, tile.x - tile.in_x, tile.y - tile.in_y, tile.width, tile.height, bitmap_out, tile.x, tile.y);
+				image.destroy();
+			}
+		});
+		if( MyDebug.LOG )
+			Log.d(TAG, "### time after processing tiles: " + (System.currentTimeMillis() - time_s));
+
+		if( histograms != null ) {
+			final byte [] equal_values;
+			if( use_sliding_clahe ) {
+				equal_values = computeCLAHE(histograms, n_grid, clahe_window_radius_c);
+			}
+			else {
+				int [] c_histogram = new int[n_tiles*n_tiles*256];
+				for(int i=0;i<n_tiles;i++) {
+					int start_x = getHistogramTileStart(i, n_tiles, width);
+					int stop_x = getHistogramTileStart(i+1, n_tiles, width);
+					for(int j=0;j<n_tiles;j++) {
+						int start_y = getHistogramTileStart(j, n_tiles, height);
+						int stop_y = getHistogramTileStart(j+1, n_tiles, height);
+						if( stop_x == start_x || stop_y == start_y )
+							continue;
+						int histogram_offset = 256*(i*n_tiles+j);
+						int [] histogram = Arrays.copyOfRange(histograms, histogram_offset, histogram_offset+256);
+						setClippedHistogram(c_histogram, histogram_offset, histogram, (stop_x - start_x) * (stop_y - start_y));
+					}
+				}
+				equal_values = computeEqualValues(c_histogram, n_tiles);
+			}
+
+			// adjusting the histogram only reads the pixel itself, so no halo is needed
+			final int adjust_bytes_per_pixel = 8; // the tile, and a buffer for copying it to the bitmap
+			n_parallel = computeParallelTiles(0, adjust_bytes_per_pixel);
+			tile_size = Math.max(min_processing_tile_size_c, computeProcessingTileSize(n_parallel, 0, adjust_bytes_per_pixel));
+			runProcessingTiles(createProcessingTiles(width, height, 0, tile_size), n_parallel, new TileTask() {
+				@Override
+				public void run(ProcessingTile tile) {
+					HDRBackend.Image image = backend.createImage(bitmap_out, tile.x, tile.y, tile.width, tile.height);
+					backend.adjustHistogram(image, image, equal_values, hdr_alpha, n_grid, tile.x, tile.y, width, height);
+					backend.copyTo(image, 0, 0, tile.width, tile.height, bitmap_out, tile.x, tile.y);
+					image.destroy();
+				}
+			});
+			if( MyDebug.LOG )
+				Log.d(TAG, "### time after adjusting histogram of tiles: " + (System.currentTimeMillis() - time_s));
+		}
+	}
+
+	/** Adds the histograms of the parts of each histogram tile (see adjustHistogram()) that lie
+	 *  within the output region of the processing tile to histograms.
+	 * @param image The result for the processing tile, as returned by TileKernel.process().
+	 */
+	private void addTileHistograms(int [] histograms, HDRBackend.Image image, ProcessingTile tile, int n_tiles, int width, int height) {
+		HDRBackend backend = getBackend();
+		for(int i=0;i<n_tiles;i++) {
+			int start_x = Math.max(tile.x, getHistogramTileStart(i, n_tiles, width));
+			int stop_x = Math.min(tile.x + tile.width, getHistogramTileStart(i+1, n_tiles, width));
+			if( stop_x <= start_x )
+				continue;
+			for(int j=0;j<n_tiles;j++) {
+				int start_y = Math.max(tile.y, getHistogramTileStart(j, n_tiles, height));
+				int stop_y = Math.min(tile.y + tile.height, getHistogramTileStart(j+1, n_tiles, height));
+				if( stop_y <= start_y )
+					continue;
+				int [] histogram = backend.computeHistogram(image, start_x - tile.in_x, start_y - tile.in_y, stop_x - tile.in_x, stop_y - tile.in_y);
+				int histogram_offset = 256*(i*n_tiles+j);
+				synchronized( histograms ) {
+					for(int x=0;x<256;x++) {
+						histograms[histogram_offset+x] += histogram[x];
+					}
+				}
+			}
+		}
+	}
+
+	/** Runs task for each of the tiles, with up to n_parallel tiles at once.
+	 */
+	private void runProcessingTiles(final List<ProcessingTile> tiles, int n_parallel, final TileTask task) {
+		final AtomicInteger next_tile = new AtomicInteger();
+		List<Callable<Void>> tasks = new ArrayList<>();
+		for(int i=0;i<Math.min(n_parallel, tiles.size());i++) {
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					for(int indx=next_tile.getAndIncrement();indx<tiles.size();indx=next_tile.getAndIncrement()) {
+						task.run(tiles.get(indx));
+					}
+					return null;
+				}
+			});
+		}
+		if( !runTasks(tasks) ) {
+			// throw RuntimeException, as we've no way to continue without part of the image
+			throw new RuntimeException("failed to process tiles");
+		}
+	}
+
 	@RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
-	private void adjustHistogram(Allocation allocation_in, Allocation allocation_out, int width, int height, float hdr_alpha, int n_tiles, long time_s) {
+	private void adjustHistogram(HDRBackend.Image image_in, HDRBackend.Image image_out, int width, int height, float hdr_alpha, int n_tiles, long time_s) {
 		if( MyDebug.LOG )
 			Log.d(TAG, "adjustHistogram");
+		HDRBackend backend = getBackend();
 		final boolean adjust_histogram = false;
 		//final boolean adjust_histogram = true;
 
 		if( adjust_histogram ) {
 			// create histogram
-			int [] histogram = new int[256];
 			if( MyDebug.LOG )
 				Log.d(TAG, "time before creating histogram: " + (System.currentTimeMillis() - time_s));
-			Allocation histogramAllocation = computeHistogramAllocation(allocation_in, false, false, time_s);
+			int [] histogram = backend.computeHistogram(image_in, false);
 			if( MyDebug.LOG )
 				Log.d(TAG, "time after creating histogram: " + (System.currentTimeMillis() - time_s));
-			histogramAllocation.copyTo(histogram);
 
 				/*if( MyDebug.LOG ) {
 					// compare/adjust
@@ -2107,27 +3016,38 @@ public class HDRProcessor {
 						Log.d(TAG, "histogram[" + x + "] = " + histogram[x] + " cumulative: " + c_histogram[x]);
 					}
 				}*/
-			histogramAllocation.copyFrom(c_histogram);
-
-			/*if( histogramAdjustScript == null ) {
-				histogramAdjustScript = new ScriptC_histogram_adjust(rs);
-			}*/
-			ScriptC_histogram_adjust histogramAdjustScript = new ScriptC_histogram_adjust(rs);
-			histogramAdjustScript.set_c_histogram(histogramAllocation);
-			histogramAdjustScript.set_hdr_alpha(hdr_alpha);
 
 			if( MyDebug.LOG )
-				Log.d(TAG, "call histogramAdjustScript");
-			histogramAdjustScript.forEach_histogram_adjust(allocation_in, allocation_out);
+				Log.d(TAG, "call backend adjustHistogram");
+			backend.adjustHistogram(image_in, image_out, computeEqualValues(c_histogram, 1), hdr_alpha, 1);
 			if( MyDebug.LOG )
-				Log.d(TAG, "time after histogramAdjustScript: " + (System.currentTimeMillis() - time_s));
-			histogramAllocation.destroy();
+				Log.d(TAG, "time after adjustHistogram: " + (System.currentTimeMillis() - time_s));
 		}
 
 		//final boolean adjust_histogram_local = false;
 		final boolean adjust_histogram_local = true;
 
-		if( adjust_histogram_local ) {
+		if( adjust_histogram_local && sliding_clahe ) {
+			// As below, but the histograms for all the blocks are computed in one pass, and each grid point
+			// uses a window of neighbouring blocks, see computeCLAHE(). This is smoother than using
+			// non-overlapping tiles, and the cost doesn't depend on the number of tiles.
+			int n_grid = n_tiles*clahe_blocks_per_tile_c;
+			int [] tile_x = createHistogramTileIndices(n_grid, width, 0, width, 0, width);
+			int [] tile_y = createHistogramTileIndices(n_grid, height, 0, height, 0, height);
+			int [] histograms = backend.computeTileHistograms(image_in, tile_x, tile_y, n_grid);
+			if( MyDebug.LOG )
+				Log.d(TAG, "time after creating histograms: " + (System.currentTimeMillis() - time_s));
+			byte [] equal_values = computeCLAHE(histograms, n_grid, clahe_window_radius_c);
+			if( MyDebug.LOG )
+				Log.d(TAG, "time after computing CLAHE: " + (System.currentTimeMillis() - time_s));
+
+			if( MyDebug.LOG )
+				Log.d(TAG, "call backend adjustHistogram");
+			backend.adjustHistogram(image_in, image_out, equal_values, hdr_alpha, n_grid);
+			if( MyDebug.LOG )
+				Log.d(TAG, "time after adjustHistogram: " + (System.currentTimeMillis() - time_s));
+		}
+		else if( adjust_histogram_local ) {
 			// Contrast Limited Adaptive Histogram Equalisation
 			// Note we don't fully equalise the histogram, rather the resultant image is the mid-point of the non-equalised and fully-equalised images
 			// See https://en.wikipedia.org/wiki/Adaptive_histogram_equalization#Contrast_Limited_AHE
@@ -2135,50 +3055,25 @@ public class HDRProcessor {
 			// Pizer, Amburn, Austin, Cromartie, Geselowitz, Greer, ter Haar Romeny, Zimmerman, Zuiderveld (1987).
 
 			// create histograms
-			Allocation histogramAllocation = Allocation.createSized(rs, Element.I32(rs), 256);
-			/*if( histogramScript == null ) {
-				if( MyDebug.LOG )
-					Log.d(TAG, "create histogramScript");
-				histogramScript = new ScriptC_histogram_compute(rs);
-			}*/
-			if( MyDebug.LOG )
-				Log.d(TAG, "create histogramScript");
-			ScriptC_histogram_compute histogramScript = new ScriptC_histogram_compute(rs);
-			if( MyDebug.LOG )
-				Log.d(TAG, "bind histogram allocation");
-			histogramScript.bind_histogram(histogramAllocation);
-
 			//final int n_tiles_c = 8;
 			//final int n_tiles_c = 4;
 			//final int n_tiles_c = 1;
 			int [] c_histogram = new int[n_tiles*n_tiles*256];
 			for(int i=0;i<n_tiles;i++) {
-				double a0 = ((double)i)/(double)n_tiles;
-				double a1 = ((double)i+1.0)/(double)n_tiles;
-				int start_x = (int)(a0 * width);
-				int stop_x = (int)(a1 * width);
+				int start_x = getHistogramTileStart(i, n_tiles, width);
+				int stop_x = getHistogramTileStart(i+1, n_tiles, width);
 				if( stop_x == start_x )
 					continue;
 				for(int j=0;j<n_tiles;j++) {
-					double b0 = ((double)j)/(double)n_tiles;
-					double b1 = ((double)j+1.0)/(double)n_tiles;
-					int start_y = (int)(b0 * height);
-					int stop_y = (int)(b1 * height);
+					int start_y = getHistogramTileStart(j, n_tiles, height);
+					int stop_y = getHistogramTileStart(j+1, n_tiles, height);
 					if( stop_y == start_y )
 						continue;
 						/*if( MyDebug.LOG )
 							Log.d(TAG, i + " , " + j + " : " + start_x + " , " + start_y + " to " + stop_x + " , " + stop_y);*/
-					Script.LaunchOptions launch_options = new Script.LaunchOptions();
-					launch_options.setX(start_x, stop_x);
-					launch_options.setY(start_y, stop_y);
-
 						/*if( MyDebug.LOG )
-							Log.d(TAG, "call histogramScript");*/
-					histogramScript.invoke_init_histogram();
-					histogramScript.forEach_histogram_compute(allocation_in, launch_options);
-
-					int [] histogram = new int[256];
-					histogramAllocation.copyTo(histogram);
+							Log.d(TAG, "call computeHistogram");*/
+					int [] histogram = backend.computeHistogram(image_in, start_x, start_y, stop_x, stop_y);
 
 						/*if( MyDebug.LOG ) {
 							// compare/adjust
@@ -2209,141 +3104,201 @@ public class HDRProcessor {
 							}
 						}*/
 
-					// clip histogram, for Contrast Limited AHE algorithm
-					int n_pixels = (stop_x - start_x) * (stop_y - start_y);
-					int clip_limit = (5 * n_pixels) / 256;
-						/*if( MyDebug.LOG )
-							Log.d(TAG, "clip_limit: " + clip_limit);*/
-					{
-						// find real clip limit
-						int bottom = 0, top = clip_limit;
-						while( top - bottom > 1 ) {
-							int middle = (top + bottom)/2;
-							int sum = 0;
-							for(int x=0;x<256;x++) {
-								if( histogram[x] > middle ) {
-									sum += (histogram[x] - clip_limit);
-								}
-							}
-							if( sum > (clip_limit - middle) * 256 )
-								top = middle;
-							else
-								bottom = middle;
-						}
-						clip_limit = (top + bottom)/2;
-							/*if( MyDebug.LOG )
-								Log.d(TAG, "updated clip_limit: " + clip_limit);*/
-					}
-					int n_clipped = 0;
-					for(int x=0;x<256;x++) {
-						if( histogram[x] > clip_limit ) {
-							n_clipped += (histogram[x] - clip_limit);
-							histogram[x] = clip_limit;
-						}
-					}
-					int n_clipped_per_bucket = n_clipped / 256;
-						/*if( MyDebug.LOG ) {
-							Log.d(TAG, "n_clipped: " + n_clipped);
-							Log.d(TAG, "n_clipped_per_bucket: " + n_clipped_per_bucket);
-						}*/
-					for(int x=0;x<256;x++) {
-						histogram[x] += n_clipped_per_bucket;
-					}
-
-					int histogram_offset = 256*(i*n_tiles+j);
-					c_histogram[histogram_offset] = histogram[0];
-					for(int x=1;x<256;x++) {
-						c_histogram[histogram_offset+x] = c_histogram[histogram_offset+x-1] + histogram[x];
-					}
-						/*if( MyDebug.LOG ) {
-							for(int x=0;x<256;x++) {
-								Log.d(TAG, "histogram[" + x + "] = " + histogram[x] + " cumulative: " + c_histogram[histogram_offset+x]);
-							}
-						}*/
+					setClippedHistogram(c_histogram, 256*(i*n_tiles+j), histogram, (stop_x - start_x) * (stop_y - start_y));
 				}
 			}
 
 			if( MyDebug.LOG )
 				Log.d(TAG, "time after creating histograms: " + (System.currentTimeMillis() - time_s));
 
-			Allocation c_histogramAllocation = Allocation.createSized(rs, Element.I32(rs), n_tiles*n_tiles*256);
-			c_histogramAllocation.copyFrom(c_histogram);
-			/*if( histogramAdjustScript == null ) {
-				histogramAdjustScript = new ScriptC_histogram_adjust(rs);
-			}*/
-			ScriptC_histogram_adjust histogramAdjustScript = new ScriptC_histogram_adjust(rs);
-			histogramAdjustScript.set_c_histogram(c_histogramAllocation);
-			histogramAdjustScript.set_hdr_alpha(hdr_alpha);
-			histogramAdjustScript.set_n_tiles(n_tiles);
-			histogramAdjustScript.set_width(width);
-			histogramAdjustScript.set_height(height);
-
 			if( MyDebug.LOG )
-				Log.d(TAG, "call histogramAdjustScript");
-			histogramAdjustScript.forEach_histogram_adjust(allocation_in, allocation_out);
+				Log.d(TAG, "call backend adjustHistogram");
+			backend.adjustHistogram(image_in, image_out, computeEqualValues(c_histogram, n_tiles), hdr_alpha, n_tiles);
 			if( MyDebug.LOG )
-				Log.d(TAG, "time after histogramAdjustScript: " + (System.currentTimeMillis() - time_s));
+				Log.d(TAG, "time after adjustHistogram: " + (System.currentTimeMillis() - time_s));
+		}
+	}
+
+	/** Returns the start (and the end of the previous tile) of histogram tile i, for local histogram
+	 *  equalisation with n_tiles tiles across size pixels.
+	 */
+	private static int getHistogramTileStart(int i, int n_tiles, int size) {
+		double alpha = ((double)i)/(double)n_tiles;
+		return (int)(alpha * size);
+	}
 
-			histogramAllocation.destroy();
-			c_histogramAllocation.destroy();
+	/** Returns the histogram tile (see getHistogramTileStart()) for each of the size pixels from
+	 *  origin, for HDRBackend.computeTileHistograms(). Pixels outside of [start, stop) are set to -1,
+	 *  so that they're skipped.
+	 */
+	private static int [] createHistogramTileIndices(int n_tiles, int full_size, int origin, int size, int start, int stop) {
+		int [] indices = new int[size];
+		int tile = 0;
+		int tile_stop = getHistogramTileStart(1, n_tiles, full_size);
+		for(int i=0;i<size;i++) {
+			int pos = origin + i;
+			if( pos < start || pos >= stop ) {
+				indices[i] = -1;
+				continue;
+			}
+			while( pos >= tile_stop ) {
+				tile++;
+				tile_stop = getHistogramTileStart(tile+1, n_tiles, full_size);
+			}
+			indices[i] = tile;
 		}
+		return indices;
 	}
 
-	/**
-	 * @param avg If true, compute the color value as the average of the rgb values. If false,
-	 *            compute the color value as the maximum of the rgb values.
-	 * @param floating_point Whether the allocation_in is in floating point (F32_3) format, or
-	 *                       RGBA_8888 format.
+	/** Contrast Limited AHE from the histograms of a grid of n_tiles x n_tiles blocks (as computed by
+	 *  HDRBackend.computeTileHistograms()). Each grid point is equalised from the histogram of the
+	 *  window of blocks within radius blocks of it, so that neighbouring windows overlap and the
+	 *  equalisation changes smoothly across the image; a radius of 0 gives the original algorithm
+	 *  with non-overlapping tiles.
+	 *  The window histograms are computed with sliding sums, first down each column of blocks and then
+	 *  along each row, adding the blocks that enter the window and subtracting those that leave it,
+	 *  so the cost doesn't depend on radius.
+	 * @return The clipped cumulative histograms, in the compact form of the equalised value for each
+	 *         grid point and value, for HDRBackend.adjustHistogram().
 	 */
-	@RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
-	private Allocation computeHistogramAllocation(Allocation allocation_in, boolean avg, boolean floating_point, long time_s) {
-		if( MyDebug.LOG )
-			Log.d(TAG, "computeHistogramAllocation");
-		Allocation histogramAllocation = Allocation.createSized(rs, Element.I32(rs), 256);
-		//final boolean use_custom_histogram = false;
-		final boolean use_custom_histogram = true;
-		if( use_custom_histogram ) {
-			/*if( histogramScript == null ) {
-				if( MyDebug.LOG )
-					Log.d(TAG, "create histogramScript");
-				histogramScript = new ScriptC_histogram_compute(rs);
-			}*/
-			if( MyDebug.LOG )
-				Log.d(TAG, "create histogramScript");
-			ScriptC_histogram_compute histogramScript = new ScriptC_histogram_compute(rs);
-			if( MyDebug.LOG )
-				Log.d(TAG, "bind histogram allocation");
-			histogramScript.bind_histogram(histogramAllocation);
-			histogramScript.invoke_init_histogram();
-			if( MyDebug.LOG )
-				Log.d(TAG, "call histogramScript");
-			if( MyDebug.LOG )
-				Log.d(TAG, "time before histogramScript: " + (System.currentTimeMillis() - time_s));
-			if( avg ) {
-				if( floating_point )
-					histogramScript.forEach_histogram_compute_avg_f(allocation_in);
-				else
-					histogramScript.forEach_histogram_compute_avg(allocation_in);
+	public static byte [] computeCLAHE(int [] histograms, int n_tiles, int radius) {
+		// sum down each column
+		int [] column_sums = new int[n_tiles*n_tiles*256];
+		int [] sum = new int[256];
+		for(int i=0;i<n_tiles;i++) {
+			Arrays.fill(sum, 0);
+			for(int j=0;j<Math.min(radius, n_tiles);j++) {
+				addHistogram(sum, histograms, 256*(i*n_tiles+j), 1);
+			}
+			for(int j=0;j<n_tiles;j++) {
+				if( j+radius < n_tiles )
+					addHistogram(sum, histograms, 256*(i*n_tiles+j+radius), 1);
+				if( j-radius-1 >= 0 )
+					addHistogram(sum, histograms, 256*(i*n_tiles+j-radius-1), -1);
+				System.arraycopy(sum, 0, column_sums, 256*(i*n_tiles+j), 256);
+			}
+		}
+
+		// then along each row
+		byte [] equal_values = new byte[n_tiles*n_tiles*256];
+		int [] histogram = new int[256];
+		int [] c_histogram = new int[256];
+		for(int j=0;j<n_tiles;j++) {
+			Arrays.fill(sum, 0);
+			for(int i=0;i<Math.min(radius, n_tiles);i++) {
+				addHistogram(sum, column_sums, 256*(i*n_tiles+j), 1);
 			}
-			else {
-				if( floating_point )
-					histogramScript.forEach_histogram_compute_f(allocation_in);
+			for(int i=0;i<n_tiles;i++) {
+				if( i+radius < n_tiles )
+					addHistogram(sum, column_sums, 256*((i+radius)*n_tiles+j), 1);
+				if( i-radius-1 >= 0 )
+					addHistogram(sum, column_sums, 256*((i-radius-1)*n_tiles+j), -1);
+				int n_pixels = 0;
+				for(int x=0;x<256;x++) {
+					n_pixels += sum[x];
+				}
+				int offset = 256*(i*n_tiles+j);
+				if( n_pixels == 0 ) {
+					// can happen for very small images - leave the values unchanged
+					for(int x=0;x<256;x++) {
+						equal_values[offset+x] = (byte)x;
+					}
+					continue;
+				}
+				System.arraycopy(sum, 0, histogram, 0, 256);
+				setClippedHistogram(c_histogram, 0, histogram, n_pixels);
+				setEqualValues(equal_values, offset, c_histogram, 0);
+			}
+		}
+		return equal_values;
+	}
+
+	private static void addHistogram(int [] sum, int [] histograms, int offset, int sign) {
+		for(int x=0;x<256;x++) {
+			sum[x] += sign * histograms[offset+x];
+		}
+	}
+
+	/** Converts cumulative histograms for n_tiles x n_tiles tiles (each stored at offset
+	 *  256*(i*n_tiles+j) as for setClippedHistogram()) into the equalised values for
+	 *  HDRBackend.adjustHistogram().
+	 */
+	public static byte [] computeEqualValues(int [] c_histogram, int n_tiles) {
+		byte [] equal_values = new byte[n_tiles*n_tiles*256];
+		for(int i=0;i<n_tiles*n_tiles;i++) {
+			setEqualValues(equal_values, 256*i, c_histogram, 256*i);
+		}
+		return equal_values;
+	}
+
+	/** Stores the value that fully equalises the cumulative histogram for each of the 256 values.
+	 */
+	private static void setEqualValues(byte [] equal_values, int offset, int [] c_histogram, int histogram_offset) {
+		int cdf_0 = c_histogram[histogram_offset];
+		int n_pixels = c_histogram[histogram_offset+255];
+		float den = (float)(n_pixels - cdf_0);
+		for(int value=0;value<256;value++) {
+			int cdf_v = c_histogram[histogram_offset+value];
+			float num = (float)(cdf_v - cdf_0);
+			int equal_value = (int)( 255.0f * (num/den) );
+			equal_values[offset+value] = (byte)Math.max(0, Math.min(equal_value, 255));
+		}
+	}
+
+	/** Clips the histogram of a histogram tile of n_pixels pixels, for Contrast Limited AHE, and
+	 *  stores its cumulative histogram in c_histogram at histogram_offset. The supplied histogram is
+	 *  modified.
+	 */
+	private static void setClippedHistogram(int [] c_histogram, int histogram_offset, int [] histogram, int n_pixels) {
+		// clip histogram, for Contrast Limited AHE algorithm
+		int clip_limit = (5 * n_pixels) / 256;
+			/*if( MyDebug.LOG )
+				Log.d(TAG, "clip_limit: " + clip_limit);*/
+		{
+			// find real clip limit
+			int bottom = 0, top = clip_limit;
+			while( top - bottom > 1 ) {
+				int middle = (top + bottom)/2;
+				int sum = 0;
+				for(int x=0;x<256;x++) {
+					if( histogram[x] > middle ) {
+						sum += (histogram[x] - clip_limit);
+					}
+				}
+				if( sum > (clip_limit - middle) * 256 )
+					top = middle;
 				else
-					histogramScript.forEach_histogram_compute(allocation_in);
+					bottom = middle;
 			}
-			if( MyDebug.LOG )
-				Log.d(TAG, "time after histogramScript: " + (System.currentTimeMillis() - time_s));
+			clip_limit = (top + bottom)/2;
+				/*if( MyDebug.LOG )
+					Log.d(TAG, "updated clip_limit: " + clip_limit);*/
 		}
-		else {
-			ScriptIntrinsicHistogram histogramScriptIntrinsic = ScriptIntrinsicHistogram.create(rs, Element.U8_4(rs));
-			histogramScriptIntrinsic.setOutput(histogramAllocation);
-			if( MyDebug.LOG )
-				Log.d(TAG, "call histogramScriptIntrinsic");
-			histogramScriptIntrinsic.forEach_Dot(allocation_in); // use forEach_dot(); using forEach would simply compute a histogram for red values!
+		int n_clipped = 0;
+		for(int x=0;x<256;x++) {
+			if( histogram[x] > clip_limit ) {
+				n_clipped += (histogram[x] - clip_limit);
+				histogram[x] = clip_limit;
+			}
+		}
+		int n_clipped_per_bucket = n_clipped / 256;
+			/*if( MyDebug.LOG ) {
+				Log.d(TAG, "n_clipped: " + n_clipped);
+				Log.d(TAG, "n_clipped_per_bucket: " + n_clipped_per_bucket);
+			}*/
+		for(int x=0;x<256;x++) {
+			histogram[x] += n_clipped_per_bucket;
 		}
 
-		//histogramAllocation.setAutoPadding(true);
-		return histogramAllocation;
+		c_histogram[histogram_offset] = histogram[0];
+		for(int x=1;x<256;x++) {
+			c_histogram[histogram_offset+x] = c_histogram[histogram_offset+x-1] + histogram[x];
+		}
+			/*if( MyDebug.LOG ) {
+				for(int x=0;x<256;x++) {
+					Log.d(TAG, "histogram[" + x + "] = " + histogram[x] + " cumulative: " + c_histogram[histogram_offset+x]);
+				}
+			}*/
 	}
 
 	/**
@@ -2355,28 +3310,16 @@ public class HDRProcessor {
 		if( MyDebug.LOG )
 			Log.d(TAG, "computeHistogram");
 		long time_s = System.currentTimeMillis();
-		initRenderscript();
-		Allocation allocation_in = Allocation.createFromBitmap(rs, bitmap);
+		HDRBackend backend = getBackend();
+		HDRBackend.Image image = backend.createImage(bitmap);
 		if( MyDebug.LOG )
-			Log.d(TAG, "time after createFromBitmap: " + (System.currentTimeMillis() - time_s));
-		int [] histogram = computeHistogram(allocation_in, avg, false);
-		allocation_in.destroy();
+			Log.d(TAG, "time after createImage: " + (System.currentTimeMillis() - time_s));
+		int [] histogram = backend.computeHistogram(image, avg);
+		image.destroy();
 		freeScripts();
 		return histogram;
 	}
 
-	@RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
-	private int [] computeHistogram(Allocation allocation, boolean avg, boolean floating_point) {
-		if( MyDebug.LOG )
-			Log.d(TAG, "computeHistogram");
-		long time_s = System.currentTimeMillis();
-		int [] histogram = new int[256];
-		Allocation histogramAllocation = computeHistogramAllocation(allocation, avg, floating_point, time_s);
-		histogramAllocation.copyTo(histogram);
-		histogramAllocation.destroy();
-		return histogram;
-	}
-
 	private static class HistogramInfo {
 		final int total;
 		final int mean_brightness;
@@ -2559,23 +3502,39 @@ public class HDRProcessor {
 
 	/** Final stage of the noise reduction algorithm.
 	 *  Note that the returned bitmap will be scaled up by the factor returned by getAvgSampleSize().
-	 * @param input         The allocation in floating point format.
+	 * @param input         The image in floating point format.
 	 * @param width         Width of the input.
 	 * @param height        Height of the input.
 	 * @param iso           ISO used for the original images.
 	 * @return              Resultant bitmap.
 	 */
 	@RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
-	public Bitmap avgBrighten(Allocation input, int width, int height, int iso) {
+	public Bitmap avgBrighten(HDRBackend.Image input, int width, int height, int iso) {
+		return avgBrighten(input, null, width, height, iso);
+	}
+
+	/** As avgBrighten(HDRBackend.Image, int, int, int), for the average returned by processAvg(),
+	 *  which may be held in a MappedAccumulator rather than in avg_data.image_out.
+	 */
+	@RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+	public Bitmap avgBrighten(AvgData avg_data, int width, int height, int iso) {
+		return avgBrighten(avg_data.image_out, avg_data.mapped_avg, width, height, iso);
+	}
+
+	/**
+	 * @param mapped_input If non-null, the input is held here rather than in input.
+	 */
+	@RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+	private Bitmap avgBrighten(HDRBackend.Image input, MappedAccumulator mapped_input, int width, int height, int iso) {
 		if( MyDebug.LOG ) {
 			Log.d(TAG, "avgBrighten");
 			Log.d(TAG, "iso: " + iso);
 		}
-        initRenderscript();
+		HDRBackend backend = getBackend();
 
     	long time_s = System.currentTimeMillis();
 
-		int [] histo = computeHistogram(input, false, true);
+		int [] histo = mapped_input != null ? computeMappedHistogram(mapped_input) : backend.computeHistogram(input, false);
 		HistogramInfo histogramInfo = getHistogramInfo(histo);
 		int brightness = histogramInfo.median_brightness;
 		int max_brightness = histogramInfo.max_brightness;
@@ -2613,11 +3572,6 @@ public class HDRProcessor {
 			}
 		}*/
 
-		/*if( avgBrightenScript == null ) {
-			avgBrightenScript = new ScriptC_avg_brighten(rs);
-		}*/
-		ScriptC_avg_brighten avgBrightenScript = new ScriptC_avg_brighten(rs);
-		avgBrightenScript.set_bitmap(input);
 		float black_level = 0.0f;
 		{
 			// quick and dirty dehaze algorithm
@@ -2642,19 +3596,11 @@ public class HDRProcessor {
 				Log.d(TAG, "black_level is now: " + black_level);
 			}
 		}
-		avgBrightenScript.invoke_setBlackLevel(black_level);
 
 		// use a lower medial filter strength for pixel binned images, so that we don't blur testAvg46 so much (especially sign text)
 		float median_filter_strength = (cached_avg_sample_size >= 2) ? 0.5f : 1.0f;
 		if( MyDebug.LOG )
 			Log.d(TAG, "median_filter_strength: " + median_filter_strength);
-		avgBrightenScript.set_median_filter_strength(median_filter_strength);
-
-		avgBrightenScript.set_gamma(gamma);
-		avgBrightenScript.set_gain(gain);
-		avgBrightenScript.set_low_x(low_x);
-		avgBrightenScript.set_mid_x(mid_x);
-		avgBrightenScript.set_max_x(max_brightness);
 
 		/* We want A and B s.t.:
 	        float alpha = (value-low_x)/(mid_x-low_x);
@@ -2678,8 +3624,8 @@ public class HDRProcessor {
 			Log.d(TAG, "gain_A: " + gain_A);
 			Log.d(TAG, "gain_B: " + gain_B);
 		}
-		avgBrightenScript.set_gain_A(gain_A);
-		avgBrightenScript.set_gain_B(gain_B);
+		// the curve only depends on these factors, so compute it once rather than per pixel
+		ToneCurveLUT brighten = ToneCurveLUT.createBrighten(gain_A, gain_B, gamma, low_x, mid_x, max_brightness);
 
 		/*float tonemap_scale_c = 255.0f;
 		if( MyDebug.LOG )
@@ -2723,15 +3669,7 @@ public class HDRProcessor {
 			avgBrightenScript.set_linear_scale(linear_scale);
 		}*/
 
-		Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
-		Allocation allocation_out = Allocation.createFromBitmap(rs, bitmap);
-		if( MyDebug.LOG )
-			Log.d(TAG, "### time after creating allocation_out: " + (System.currentTimeMillis() - time_s));
-
-        avgBrightenScript.forEach_avg_brighten_f(input, allocation_out);
-		if( MyDebug.LOG )
-			Log.d(TAG, "### time after avg_brighten: " + (System.currentTimeMillis() - time_s));
-
+		float dro_amount = 0.0f;
 		if( iso <= 150 ) {
 			// for bright scenes, local contrast enhancement helps improve the quality of images (especially where we may have both
 			// dark and bright regions, e.g., testAvg12); but for dark scenes, it just blows up the noise too much
@@ -2747,20 +3685,43 @@ public class HDRProcessor {
 			float alpha = (histogramInfo.median_brightness - median_lo) / (float)(median_hi - median_lo);
 			alpha = Math.max(alpha, 0.0f);
 			alpha = Math.min(alpha, 1.0f);
-			float amount = (1.0f-alpha) * 0.25f + alpha * 0.5f;
+			dro_amount = (1.0f-alpha) * 0.25f + alpha * 0.5f;
 			if( MyDebug.LOG ) {
 				Log.d(TAG, "dro alpha: " + alpha);
-				Log.d(TAG, "dro amount: " + amount);
+				Log.d(TAG, "dro amount: " + dro_amount);
 			}
-			adjustHistogram(allocation_out, allocation_out, width, height, amount, 1, time_s);
-			if( MyDebug.LOG )
-				Log.d(TAG, "### time after adjustHistogram: " + (System.currentTimeMillis() - time_s));
 		}
 
-        allocation_out.copyTo(bitmap);
-		allocation_out.destroy();
-		if( MyDebug.LOG )
-			Log.d(TAG, "### time after copying to bitmap: " + (System.currentTimeMillis() - time_s));
+		Bitmap bitmap = bitmap_pool != null ? bitmap_pool.acquire(width, height) : null;
+		if( bitmap == null )
+			bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+
+		if( mapped_input != null ) {
+			avgBrightenMapped(mapped_input, bitmap, black_level, median_filter_strength, brighten, dro_amount, time_s);
+		}
+		else if( useTiles(width, height, 4) ) {
+			avgBrightenTiled(input, bitmap, black_level, median_filter_strength, brighten, dro_amount, time_s);
+		}
+		else {
+			HDRBackend.Image image_out = backend.createImage(bitmap);
+			if( MyDebug.LOG )
+				Log.d(TAG, "### time after creating image_out: " + (System.currentTimeMillis() - time_s));
+
+			backend.avgBrighten(input, image_out, black_level, median_filter_strength, brighten);
+			if( MyDebug.LOG )
+				Log.d(TAG, "### time after avg_brighten: " + (System.currentTimeMillis() - time_s));
+
+			if( dro_amount != 0.0f ) {
+				adjustHistogram(image_out, image_out, width, height, dro_amount, 1, time_s);
+				if( MyDebug.LOG )
+					Log.d(TAG, "### time after adjustHistogram: " + (System.currentTimeMillis() - time_s));
+			}
+
+			backend.copyTo(image_out, bitmap);
+			image_out.destroy();
+			if( MyDebug.LOG )
+				Log.d(TAG, "### time after copying to bitmap: " + (System.currentTimeMillis() - time_s));
+		}
 
 		/*int sample_size = getAvgSampleSize();
 		if( MyDebug.LOG )
@@ -2779,54 +3740,79 @@ public class HDRProcessor {
 		return bitmap;
     }
 
-	/**
-	 * Computes a value for how sharp the image is perceived to be. The higher the value, the
-	 * sharper the image.
-	 * @param allocation_in The input allocation.
-	 * @param width         The width of the allocation.
+	/** As avgBrighten(), but a tile at a time, so that we don't need a full size output image as well
+	 *  as the input. The result is stored in bitmap.
 	 */
-	@RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
-	private float computeSharpness(Allocation allocation_in, int width, long time_s) {
-		if( MyDebug.LOG )
-			Log.d(TAG, "computeSharpness");
-		if( MyDebug.LOG )
-			Log.d(TAG, "### time: " + (System.currentTimeMillis() - time_s));
-		Allocation sumsAllocation = Allocation.createSized(rs, Element.I32(rs), width);
-		if( MyDebug.LOG )
-			Log.d(TAG, "### time after createSized: " + (System.currentTimeMillis() - time_s));
-		/*if( sharpnessScript == null ) {
-			sharpnessScript = new ScriptC_calculate_sharpness(rs);
-			if( MyDebug.LOG )
-				Log.d(TAG, "### time after create sharpnessScript: " + (System.currentTimeMillis() - time_s));
-		}*/
-		ScriptC_calculate_sharpness sharpnessScript = new ScriptC_calculate_sharpness(rs);
-		if( MyDebug.LOG )
-			Log.d(TAG, "### time after create sharpnessScript: " + (System.currentTimeMillis() - time_s));
-		if( MyDebug.LOG )
-			Log.d(TAG, "bind sums allocation");
-		sharpnessScript.bind_sums(sumsAllocation);
-		sharpnessScript.set_bitmap(allocation_in);
-		sharpnessScript.set_width(width);
-		sharpnessScript.invoke_init_sums();
-		if( MyDebug.LOG )
-			Log.d(TAG, "call sharpnessScript");
-		if( MyDebug.LOG )
-			Log.d(TAG, "### time before sharpnessScript: " + (System.currentTimeMillis() - time_s));
-		sharpnessScript.forEach_calculate_sharpness(allocation_in);
-		if( MyDebug.LOG )
-			Log.d(TAG, "### time after sharpnessScript: " + (System.currentTimeMillis() - time_s));
+	private void avgBrightenTiled(final HDRBackend.Image input, Bitmap bitmap, final float black_level, final float median_filter_strength, final ToneCurveLUT brighten, float dro_amount, long time_s) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "avgBrightenTiled");
+		final HDRBackend backend = getBackend();
+		// the spatial noise reduction filter in avg_brighten.rs reads pixels up to 3 away
+		final int halo = 3;
+		// the cropped input, the output, and a buffer for copying the output
+		final int bytes_per_pixel = 12 + 4 + 4;
+		runTiled(new TileKernel() {
+			@Override
+			public HDRBackend.Image process(ProcessingTile tile) {
+				HDRBackend.Image tile_in = backend.cropImage(input, tile.in_x, tile.in_y, tile.in_width, tile.in_height);
+				HDRBackend.Image tile_out = backend.createImage(tile.in_width, tile.in_height);
+				backend.avgBrighten(tile_in, tile_out, black_level, median_filter_strength, brighten);
+				tile_in.destroy();
+				return tile_out;
+			}
+		}, bitmap, halo, bytes_per_pixel, dro_amount, 1, time_s);
+	}
 
-		int [] sums = new int[width];
-		sumsAllocation.copyTo(sums);
-		sumsAllocation.destroy();
-		float total_sum = 0.0f;
-		for(int i=0;i<width;i++) {
-			/*if( MyDebug.LOG )
-				Log.d(TAG, "sums[" + i + "] = " + sums[i]);*/
-			total_sum += (float)sums[i];
+	/** As avgBrightenTiled(), but reading each tile from a MappedAccumulator. The tiles are processed a
+	 *  row at a time, so mostly read the file in order.
+	 */
+	private void avgBrightenMapped(final MappedAccumulator input, Bitmap bitmap, final float black_level, final float median_filter_strength, final ToneCurveLUT brighten, float dro_amount, long time_s) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "avgBrightenMapped");
+		final HDRBackend backend = getBackend();
+		// the spatial noise reduction filter in avg_brighten.rs reads pixels up to 3 away
+		final int halo = 3;
+		// the input read from the file, a copy of it at half precision (padded to 4 values per pixel for the RenderScript
+		// backend), the output, and a buffer for copying the output
+		final int bytes_per_pixel = 6 + 8 + 8 + 4 + 4;
+		runTiled(new TileKernel() {
+			@Override
+			public HDRBackend.Image process(ProcessingTile tile) {
+				short [] pixels = new short[3*tile.in_width*tile.in_height];
+				input.read(pixels, tile.in_x, tile.in_y, tile.in_width, tile.in_height);
+				HDRBackend.Image tile_in = backend.createHalfPrecisionImage(tile.in_width, tile.in_height);
+				backend.copyFrom(tile_in, pixels);
+				HDRBackend.Image tile_out = backend.createImage(tile.in_width, tile.in_height);
+				backend.avgBrighten(tile_in, tile_out, black_level, median_filter_strength, brighten);
+				tile_in.destroy();
+				return tile_out;
+			}
+		}, bitmap, halo, bytes_per_pixel, dro_amount, 1, time_s);
+	}
+
+	/** Computes the histogram of a MappedAccumulator, as HDRBackend.computeHistogram() with avg
+	 *  false, a band at a time.
+	 */
+	private int [] computeMappedHistogram(MappedAccumulator input) {
+		HDRBackend backend = getBackend();
+		int width = input.getWidth();
+		short [] pixels = new short[3*width*input.getBandHeight()];
+		int [] histogram = null;
+		for(int band=0;band<input.getNBands();band++) {
+			input.readBand(band, pixels);
+			HDRBackend.Image image = backend.createHalfPrecisionImage(width, input.getBandRows(band));
+			backend.copyFrom(image, pixels);
+			int [] band_histogram = backend.computeHistogram(image, false);
+			image.destroy();
+			if( histogram == null ) {
+				histogram = band_histogram;
+			}
+			else {
+				for(int i=0;i<histogram.length;i++) {
+					histogram[i] += band_histogram[i];
+				}
+			}
 		}
-		if( MyDebug.LOG )
-			Log.d(TAG, "total_sum: " + total_sum);
-		return total_sum;
+		return histogram;
 	}
 }
@@ -1,9 +1,13 @@
 package net.sourceforge.opencamera;
 
 import net.sourceforge.opencamera.CameraController.CameraController;
+import net.sourceforge.opencamera.CameraController.JpegImage;
 import net.sourceforge.opencamera.CameraController.RawImage;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -11,14 +15,21 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.text.SimpleDateFormat;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
-import java.util.Locale;
-import java.util.TimeZone;
-import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
 
 import android.annotation.SuppressLint;
 import android.annotation.TargetApi;
@@ -37,7 +48,8 @@ import android.location.Location;
 import android.media.ExifInterface;
 import android.net.Uri;
 import android.os.Build;
-import android.renderscript.Allocation;
+import android.os.ParcelFileDescriptor;
+import android.support.annotation.NonNull;
 import android.support.annotation.RequiresApi;
 import android.util.Log;
 
@@ -52,8 +64,6 @@ public class ImageSaver extends Thread {
 	private static final String TAG_DATETIME_ORIGINAL = "DateTimeOriginal";
 	private static final String TAG_DATETIME_DIGITIZED = "DateTimeDigitized";
 
-	private final Paint p = new Paint();
-
 	private final MainActivity main_activity;
 	private final HDRProcessor hdrProcessor;
 
@@ -68,15 +78,40 @@ public class ImageSaver extends Thread {
 	private int n_images_to_save = 0;
 	private final int queue_capacity;
 	private final BlockingQueue<Request> queue;
+	// Rather than limiting the number of images on the queue, we limit the memory they need, see SaveMemoryBudget.
+	// n_images_to_save and queue_capacity are still used to report how full the queue is in the UI.
+	private final SaveMemoryBudget memory_budget;
+	private final int n_bitmap_workers;
+	private final int max_direct_jpegs; // see computeMaxDirectJpegs()
+	private final BitmapPool bitmap_pool; // reuses full resolution bitmaps when decoding
+	private final static int avg_n_smp_images_c = 4; // how many bitmaps to have decoding or decoded at once for noise reduction
+	// HDR and NR images are decoded on a shared executor, rather than a new thread per image, see computeDecodeThreads().
+	private final ExecutorService decode_executor;
+	// When the memory budget is full, requests are spilled to the journal instead of blocking, and read back by
+	// journal_reader. This is null if the journal couldn't be opened.
+	private final SaveJournal journal;
+	private final JournalReaderThread journal_reader;
+	private int n_journaled; // number of requests in the journal that haven't yet been added to the queue, synchronized on this
+	private final static int journal_settings_version_c = 1;
 	private final static int queue_cost_jpeg_c = 1;
 	private final static int queue_cost_dng_c = 6;
 	//private final static int queue_cost_dng_c = 1;
 
+	// The stages of the save pipeline. Each stage has its own worker threads, so for example one photo can be
+	// compressed whilst the next is being post-processed.
+	public static final int STAGE_DECODE = 0;
+	public static final int STAGE_POST_PROCESS = 1;
+	public static final int STAGE_ENCODE = 2;
+	public static final int STAGE_METADATA = 3;
+	public static final int STAGE_PERSIST = 4;
+	public static final int N_STAGES = 5;
+	private final SavePipeline<SaveJob> pipeline;
+	private int n_saving_image; // number of jobs currently being saved, for the gallery button animation, synchronized on this
+
 	static class Request {
 		enum Type {
 			JPEG,
-			RAW,
-			DUMMY
+			RAW
 		}
 		Type type = Type.JPEG;
 		enum ProcessType {
@@ -94,11 +129,16 @@ public class ImageSaver extends Thread {
 		}
 		final SaveBase save_base; // whether to save the base images, for process_type HDR or AVERAGE
 		/* jpeg_images: for jpeg (may be null otherwise).
-		 * If process_type==HDR, this should be 1 or 3 images, and the images are combined/converted to a HDR image (if there's only 1
+		 * If process_type==HDR, this should be 1 or more images, and the images are combined/converted to a HDR image (if there's only 1
 		 * image, this uses fake HDR or "DRO").
 		 * If process_type==NORMAL, then multiple images are saved sequentially.
 		 */
 		final List<byte []> jpeg_images;
+		/* jpeg_image: for jpeg, may be non-null (with jpeg_images empty) for a single image that doesn't need processing, in which
+		 * case the image is written straight from the camera's buffer. Set to null if the image is instead copied to jpeg_images,
+		 * see copyJpegImage().
+		 */
+		JpegImage jpeg_image;
 		final RawImage raw_image; // for raw
 		final boolean image_capture_intent;
 		final Uri image_capture_intent_uri;
@@ -126,6 +166,12 @@ public class ImageSaver extends Thread {
 		final String custom_tag_artist;
 		final String custom_tag_copyright;
 		int sample_factor = 1; // sampling factor for thumbnail, higher means lower quality
+		// set by addRequest():
+		int cost; // number of slots on the queue, see computeRequestCost()
+		long payload_bytes; // memory charged to memory_budget
+		long working_set_bytes; // memory charged to memory_budget
+		long journal_id = -1; // if the request was read back from the journal, the id of its entry
+		StreamingAvg avg_stream; // for process_type AVERAGE, if the images were averaged as they arrived, see startImageAverage()
 		
 		Request(Type type,
 			ProcessType process_type,
@@ -133,6 +179,7 @@ public class ImageSaver extends Thread {
 			int suffix_offset,
 			SaveBase save_base,
 			List<byte []> jpeg_images,
+			JpegImage jpeg_image,
 			RawImage raw_image,
 			boolean image_capture_intent, Uri image_capture_intent_uri,
 			boolean using_camera2, int image_quality,
@@ -152,6 +199,7 @@ public class ImageSaver extends Thread {
 			this.suffix_offset = suffix_offset;
 			this.save_base = save_base;
 			this.jpeg_images = jpeg_images;
+			this.jpeg_image = jpeg_image;
 			this.raw_image = raw_image;
 			this.image_capture_intent = image_capture_intent;
 			this.image_capture_intent_uri = image_capture_intent_uri;
@@ -182,22 +230,291 @@ public class ImageSaver extends Thread {
 		}
 	}
 
+	/** A single image to be saved, as it moves through the save pipeline. A Request may result in
+	 *  several of these, e.g., the base images and the HDR image for HDR.
+	 */
+	private static class SaveOutput {
+		final byte [] data; // the jpeg data; if the image is re-encoded from a bitmap, this is still used to read exif tags from
+		final String filename_suffix;
+		final boolean update_thumbnail; // whether to update the thumbnail (and show the animation)
+		final boolean share_image; // whether this image should be marked as the one to share, if multiple images are saved from a single shot
+		final boolean is_merged; // whether this is the HDR/NR image, that is created by the post-process stage
+		final boolean counts_for_success; // whether failing to save this image means the request failed
+		File exifTempFile; // pre-Android 7 only, see writeExifTempFile()
+		JpegImage direct; // if non-null, the jpeg is written straight from the camera's buffer, and data is null
+		Bitmap bitmap; // the decoded (and post-processed) image, if post-processing is needed
+		byte [] encoded; // the jpeg data compressed from bitmap, if post-processing was needed
+		JpegExifWriter exif_writer; // if non-null, the exif tags to write out with the image, see metadataStage()
+		ExifInterface exif_source; // the exif tags to transfer to encoded, if exif_writer couldn't be used
+		Bitmap thumbnail;
+		boolean encode_done; // whether encodeOutput() has been called
+		boolean failed;
+
+		SaveOutput(byte [] data, String filename_suffix, boolean update_thumbnail, boolean share_image, boolean is_merged, boolean counts_for_success) {
+			this.data = data;
+			this.filename_suffix = filename_suffix;
+			this.update_thumbnail = update_thumbnail;
+			this.share_image = share_image;
+			this.is_merged = is_merged;
+			this.counts_for_success = counts_for_success;
+		}
+
+		/** Frees any resources still held.
+		 */
+		void recycle(BitmapPool bitmap_pool) {
+			if( direct != null ) {
+				direct.close();
+				direct = null;
+			}
+			if( bitmap != null ) {
+				bitmap_pool.release(bitmap);
+				bitmap = null;
+			}
+			if( thumbnail != null ) {
+				thumbnail.recycle();
+				thumbnail = null;
+			}
+			encoded = null;
+			exif_writer = null;
+			exif_source = null;
+			if( exifTempFile != null && !exifTempFile.delete() ) {
+				if( MyDebug.LOG )
+					Log.e(TAG, "failed to delete temp " + exifTempFile.getAbsolutePath());
+			}
+			exifTempFile = null;
+		}
+	}
+
+	/** A Request as it moves through the save pipeline.
+	 */
+	private static class SaveJob {
+		final Request request;
+		final List<SaveOutput> outputs = new ArrayList<>();
+		boolean raw_only;
+		boolean saving_image; // whether we've called setSavingImage(true) for this job
+		boolean success;
+
+		SaveJob(Request request) {
+			this.request = request;
+		}
+	}
+
 	ImageSaver(MainActivity main_activity) {
+		this(main_activity, computeStageWorkers(Runtime.getRuntime().availableProcessors(), getLargeMemoryClass(main_activity)));
+	}
+
+	/**
+	 * @param stage_workers The number of worker threads to use for each stage of the save pipeline,
+	 *                      indexed by the STAGE_* constants. See computeStageWorkers().
+	 */
+	ImageSaver(MainActivity main_activity, int [] stage_workers) {
 		if( MyDebug.LOG )
 			Log.d(TAG, "ImageSaver");
 		this.main_activity = main_activity;
 
-		ActivityManager activityManager = (ActivityManager) main_activity.getSystemService(Activity.ACTIVITY_SERVICE);
-		this.queue_capacity = computeQueueSize(activityManager.getLargeMemoryClass());
-		this.queue = new ArrayBlockingQueue<>(queue_capacity); // since we remove from the queue and then process in the saver thread, in practice the number of background photos - including the one being processed - is one more than the length of this queue
+		this.queue_capacity = computeQueueSize(getLargeMemoryClass(main_activity));
+		this.max_direct_jpegs = computeMaxDirectJpegs(getLargeMemoryClass(main_activity));
+		this.bitmap_pool = new BitmapPool(BitmapPool.computeMaxBytes(getLargeMemoryClass(main_activity)));
+		// the queue isn't bounded, as addRequest() instead blocks when memory_budget would be exceeded
+		this.queue = new LinkedBlockingQueue<>();
+		this.memory_budget = new SaveMemoryBudget(new SaveMemoryBudget.BudgetSource() {
+			@Override
+			public long getBudget(long charged) {
+				return computeMemoryBudget(charged);
+			}
+		});
+		this.n_bitmap_workers = stage_workers[STAGE_POST_PROCESS];
+		this.decode_executor = Executors.newFixedThreadPool(computeDecodeThreads(Runtime.getRuntime().availableProcessors(), getLargeMemoryClass(main_activity)), new ThreadFactory() {
+			private int n_threads;
+
+			@Override
+			public Thread newThread(@NonNull Runnable runnable) {
+				return new Thread(runnable, "ImageSaver decode " + (n_threads++));
+			}
+		});
+		this.pipeline = createPipeline(stage_workers);
+
+		SaveJournal journal = null;
+		try {
+			journal = new SaveJournal(new File(main_activity.getCacheDir(), "save_journal"));
+		}
+		catch(IOException e) {
+			Log.e(TAG, "failed to open save journal");
+			e.printStackTrace();
+		}
+		this.journal = journal;
+		this.journal_reader = journal == null ? null : new JournalReaderThread();
 
 		this.hdrProcessor = new HDRProcessor(main_activity);
+		this.hdrProcessor.setBitmapPool(bitmap_pool);
+		this.hdrProcessor.setMaxWorkingMemory(HDRProcessor.computeMaxWorkingMemory(getLargeMemoryClass(main_activity)));
+		this.hdrProcessor.setMaxPoolBytes(HDRProcessor.computeMaxPoolBytes(getLargeMemoryClass(main_activity)));
+	}
+
+	private static int getLargeMemoryClass(MainActivity main_activity) {
+		ActivityManager activityManager = (ActivityManager) main_activity.getSystemService(Activity.ACTIVITY_SERVICE);
+		return activityManager.getLargeMemoryClass();
+	}
+
+	/** Returns how much memory the image saver can currently use, see SaveMemoryBudget.computeBudget().
+	 * @param charged The bytes currently charged to requests.
+	 */
+	private long computeMemoryBudget(long charged) {
+		Runtime runtime = Runtime.getRuntime();
+		long max_heap = Math.min(runtime.maxMemory(), getLargeMemoryClass(main_activity)*1024L*1024L);
+		long used_heap = runtime.totalMemory() - runtime.freeMemory();
+		long native_available = 0;
+		// bitmaps held by the pool are reused for the requests' working sets, so count them as available
+		long pooled = bitmap_pool.getBytes();
+		if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.O ) {
+			// bitmap pixels are no longer stored on the Java heap, so we can also use some of the device's free memory
+			ActivityManager activityManager = (ActivityManager) main_activity.getSystemService(Activity.ACTIVITY_SERVICE);
+			ActivityManager.MemoryInfo memoryInfo = new ActivityManager.MemoryInfo();
+			activityManager.getMemoryInfo(memoryInfo);
+			// only take half, to leave room for other apps
+			native_available = Math.max(0, memoryInfo.availMem - memoryInfo.threshold)/2 + pooled;
+		}
+		else {
+			used_heap = Math.max(0, used_heap - pooled);
+		}
+		// allocations kept by the HDRProcessor between photos aren't charged to any request (they're taken out of
+		// its pool while a photo is processed, and are then part of that request's working set)
+		long hdr_pooled = hdrProcessor.getPoolBytes();
+		return Math.max(0, SaveMemoryBudget.computeBudget(max_heap, used_heap, native_available, charged) - hdr_pooled);
+	}
+
+	/** Returns the pool used to reuse bitmaps when decoding images.
+	 */
+	public BitmapPool getBitmapPool() {
+		return bitmap_pool;
+	}
+
+	/** Frees memory in response to ComponentCallbacks2.onTrimMemory().
+	 */
+	void onTrimMemory(int level) {
+		bitmap_pool.trimMemory(level);
+		hdrProcessor.trimMemory(level);
+	}
+
+	/** Returns the memory budget used to limit the images held by the image saver.
+	 */
+	public SaveMemoryBudget getMemoryBudget() {
+		return memory_budget;
+	}
+
+	/** Compute how many worker threads to use for each stage of the save pipeline, based on the
+	 *  number of CPU cores and the device's memory (large heap).
+	 * @return An array of length N_STAGES, indexed by the STAGE_* constants.
+	 */
+	public static int [] computeStageWorkers(int n_cpus, int large_heap_memory) {
+		if( MyDebug.LOG ) {
+			Log.d(TAG, "computeStageWorkers");
+			Log.d(TAG, "n_cpus: " + n_cpus);
+			Log.d(TAG, "large_heap_memory: " + large_heap_memory);
+		}
+		// the decode, post-process and encode stages may each hold a full size bitmap per worker, so are limited by
+		// memory as well as the number of cores
+		int max_bitmap_workers;
+		if( large_heap_memory >= 512 ) {
+			max_bitmap_workers = 3;
+		}
+		else if( large_heap_memory >= 256 ) {
+			max_bitmap_workers = 2;
+		}
+		else {
+			max_bitmap_workers = 1;
+		}
+		// leave a core free for the camera and UI
+		int bitmap_workers = Math.max(1, Math.min(n_cpus-1, max_bitmap_workers));
+		int [] stage_workers = new int[N_STAGES];
+		stage_workers[STAGE_DECODE] = bitmap_workers;
+		stage_workers[STAGE_POST_PROCESS] = bitmap_workers;
+		stage_workers[STAGE_ENCODE] = bitmap_workers;
+		stage_workers[STAGE_METADATA] = 1; // cheap, so no need for more than one
+		stage_workers[STAGE_PERSIST] = 1; // must be 1, so that images are saved in order
+		if( MyDebug.LOG )
+			Log.d(TAG, "bitmap_workers: " + bitmap_workers);
+		return stage_workers;
+	}
+
+	/** Returns the number of threads to decode HDR and NR images on. Each decode holds a full size
+	 *  bitmap, so this is limited by memory as well as the number of cores.
+	 */
+	public static int computeDecodeThreads(int n_cpus, int large_heap_memory) {
+		int max_decode_threads;
+		if( large_heap_memory >= 512 ) {
+			max_decode_threads = avg_n_smp_images_c;
+		}
+		else if( large_heap_memory >= 256 ) {
+			max_decode_threads = 2;
+		}
+		else {
+			max_decode_threads = 1;
+		}
+		int decode_threads = Math.max(1, Math.min(n_cpus, max_decode_threads));
+		if( MyDebug.LOG )
+			Log.d(TAG, "decode_threads: " + decode_threads);
+		return decode_threads;
+	}
 
-		p.setAntiAlias(true);
+	/** Returns the maximum number of requests that can be in the save pipeline at once, for the
+	 *  supplied number of workers per stage (see computeStageWorkers()).
+	 */
+	public static int computeMaxInFlight(int [] stage_workers) {
+		int max_bitmap_workers = Math.max(stage_workers[STAGE_DECODE], Math.max(stage_workers[STAGE_POST_PROCESS], stage_workers[STAGE_ENCODE]));
+		// allow for requests in the metadata and persist stages, which no longer hold bitmaps
+		return max_bitmap_workers + 2;
+	}
+
+	private SavePipeline<SaveJob> createPipeline(int [] stage_workers) {
+		if( stage_workers.length != N_STAGES ) {
+			throw new IllegalArgumentException("stage_workers should have length " + N_STAGES);
+		}
+		else if( stage_workers[STAGE_PERSIST] != 1 ) {
+			// a single persist worker is what keeps filenames and thumbnails in order
+			throw new IllegalArgumentException("persist stage must have a single worker");
+		}
+		List<SavePipeline.Stage<SaveJob>> stages = new ArrayList<>();
+		stages.add(new SavePipeline.Stage<>("decode", new SavePipeline.StageHandler<SaveJob>() {
+			@Override
+			public void process(SaveJob job) {
+				decodeStage(job);
+			}
+		}, stage_workers[STAGE_DECODE], 1, false));
+		stages.add(new SavePipeline.Stage<>("postprocess", new SavePipeline.StageHandler<SaveJob>() {
+			@Override
+			public void process(SaveJob job) {
+				postProcessStage(job);
+			}
+		}, stage_workers[STAGE_POST_PROCESS], 1, false));
+		stages.add(new SavePipeline.Stage<>("encode", new SavePipeline.StageHandler<SaveJob>() {
+			@Override
+			public void process(SaveJob job) {
+				encodeStage(job);
+			}
+		}, stage_workers[STAGE_ENCODE], 1, false));
+		stages.add(new SavePipeline.Stage<>("metadata", new SavePipeline.StageHandler<SaveJob>() {
+			@Override
+			public void process(SaveJob job) {
+				metadataStage(job);
+			}
+		}, stage_workers[STAGE_METADATA], 1, false));
+		stages.add(new SavePipeline.Stage<>("persist", new SavePipeline.StageHandler<SaveJob>() {
+			@Override
+			public void process(SaveJob job) {
+				persistStage(job);
+			}
+		}, stage_workers[STAGE_PERSIST], 1, true));
+		return new SavePipeline<>("ImageSaver", stages, computeMaxInFlight(stage_workers), new SavePipeline.CompletionCallback<SaveJob>() {
+			@Override
+			public void onComplete(SaveJob job) {
+				onJobComplete(job);
+			}
+		});
 	}
 
-	/** Returns the length of the image saver queue. In practice, the number of images that can be taken at once before the UI
-	 *  blocks is 1 more than this, as 1 image will be taken off the queue to process straight away.
+	/** Returns the nominal length of the image saver queue, in slots (see computeRequestCost()). Whether adding an image
+	 *  blocks is now decided by the memory budget (see queueWouldBlock()), but this is still used to size bursts.
 	 */
 	public int getQueueSize() {
 		return this.queue_capacity;
@@ -241,6 +558,37 @@ public class ImageSaver extends Thread {
 		return max_queue_size;
 	}
 
+	/** Returns the maximum number of JPEGs that may be held in the camera's buffers whilst waiting to be
+	 *  saved, see computeMaxDirectJpegs().
+	 */
+	public int getMaxDirectJpegs() {
+		return this.max_direct_jpegs;
+	}
+
+	/** Compute how many JPEGs that don't need processing may be held in the camera's buffers (rather than
+	 *  being copied to the Java heap) whilst waiting to be saved, based on the device's memory (large heap).
+	 *  Each one held takes an image from the camera's ImageReader, so this also limits how many photos can be
+	 *  taken before the camera has to fall back to copying.
+	 */
+	public static int computeMaxDirectJpegs(int large_heap_memory) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "computeMaxDirectJpegs: large max memory = " + large_heap_memory + "MB");
+		int max_direct_jpegs;
+		if( large_heap_memory >= 512 ) {
+			max_direct_jpegs = 5;
+		}
+		else if( large_heap_memory >= 256 ) {
+			max_direct_jpegs = 3;
+		}
+		else {
+			// the ImageReader's buffers are allocated up front, so don't ask for any more on low memory devices
+			max_direct_jpegs = 0;
+		}
+		if( MyDebug.LOG )
+			Log.d(TAG, "max_direct_jpegs = " + max_direct_jpegs);
+		return max_direct_jpegs;
+	}
+
 	/** Computes the cost for a particular request.
 	 *  Note that for RAW+DNG mode, computeRequestCost() is called twice for a given photo (one for each
 	 *  of the two requests: one RAW, one JPEG).
@@ -285,30 +633,62 @@ public class ImageSaver extends Thread {
 		return cost;
 	}
 
-	/** Whether taking an extra photo would overflow the queue, resulting in the UI hanging.
-	 * @param photo_cost The result returned by computePhotoCost().
+	/** Whether taking an extra photo would exceed the memory budget, resulting in the UI hanging.
+	 * @param has_raw Whether this is RAW+JPEG or RAW only.
+	 * @param n_jpegs If has_raw is false, the number of JPEGs that will be taken.
+	 * @param photo_mode The photo mode, which determines how the JPEGs will be processed.
 	 */
-	synchronized boolean queueWouldBlock(int photo_cost) {
+	boolean queueWouldBlock(boolean has_raw, int n_jpegs, MyApplicationInterface.PhotoMode photo_mode) {
 		if( MyDebug.LOG ) {
 			Log.d(TAG, "queueWouldBlock");
-			Log.d(TAG, "photo_cost: " + photo_cost);
-			Log.d(TAG, "n_images_to_save: " + n_images_to_save);
-			Log.d(TAG, "queue_capacity: " + queue_capacity);
-		}
-		// we add one to queue, to account for the image currently being processed; n_images_to_save includes an image
-		// currently being processed
-		if( n_images_to_save == 0 ) {
-			// In theory, we should never have the extra_cost large enough to block the queue even when no images are being
-			// saved - but we have this just in case. This means taking the photo will likely block the UI, but we don't want
-			// to disallow ever taking photos!
+			Log.d(TAG, "has_raw: " + has_raw);
+			Log.d(TAG, "n_jpegs: " + n_jpegs);
+			Log.d(TAG, "photo_mode: " + photo_mode);
+		}
+		synchronized( this ) {
+			if( n_images_to_save == 0 ) {
+				// In theory, we should never have a photo large enough to block the queue even when no images are being
+				// saved - but we have this just in case. Note SaveMemoryBudget always admits a request when nothing else
+				// is held, so taking the photo won't block.
+				return false;
+			}
+		}
+		if( !has_raw && journal != null ) {
+			// if there isn't enough memory, the request will be spilled to the journal rather than blocking (image
+			// capture intents aren't journaled, but they only take a single photo)
 			return false;
 		}
-		else if( n_images_to_save + photo_cost > queue_capacity + 1 ) {
-			if( MyDebug.LOG )
-				Log.d(TAG, "queue would block");
-			return true;
+		CameraController camera_controller = main_activity.getPreview().getCameraController();
+		CameraController.Size size = camera_controller == null ? null : camera_controller.getPictureSize();
+		if( size == null ) {
+			return false;
 		}
-		return false;
+		long payload;
+		long working_set;
+		if( has_raw ) {
+			// even in RAW only mode, we still take a JPEG photo; we assume RAW16, and that the RAW resolution is
+			// about the same as the JPEG
+			payload = 2L * size.width * size.height + SaveMemoryBudget.estimateJpegBytes(size.width, size.height);
+			working_set = SaveMemoryBudget.computeNormalWorkingSet(size.width, size.height, true, 1, n_bitmap_workers);
+		}
+		else {
+			payload = n_jpegs * SaveMemoryBudget.estimateJpegBytes(size.width, size.height);
+			if( photo_mode == MyApplicationInterface.PhotoMode.HDR || photo_mode == MyApplicationInterface.PhotoMode.DRO ) {
+				working_set = SaveMemoryBudget.computeHDRWorkingSet(size.width, size.height, n_jpegs);
+			}
+			else if( photo_mode == MyApplicationInterface.PhotoMode.NoiseReduction ) {
+				// we don't know the ISO yet, so assume the larger working set
+				working_set = SaveMemoryBudget.computeAvgWorkingSet(size.width, size.height, 1, avg_n_smp_images_c, hdrProcessor.half_precision_avg, hdrProcessor.useMappedAvg(size.width, size.height));
+			}
+			else {
+				// we don't check the preferences for post-processing, so be pessimistic
+				working_set = SaveMemoryBudget.computeNormalWorkingSet(size.width, size.height, true, n_jpegs, n_bitmap_workers);
+			}
+		}
+		boolean would_block = memory_budget.wouldBlock(payload, working_set);
+		if( MyDebug.LOG && would_block )
+			Log.d(TAG, "queue would block");
+		return would_block;
 	}
 
 	/** Returns the maximum number of DNG images that might be held by the image saver queue at once, before blocking.
@@ -325,18 +705,53 @@ public class ImageSaver extends Thread {
 		return n_images_to_save;
 	}
 
+	/** Calls MainActivity.savingImage() when the first job starts being saved, or the last one
+	 *  finishes - as several jobs may be saved at once in the pipeline.
+	 */
+	private synchronized void setSavingImage(boolean started) {
+		if( started ) {
+			n_saving_image++;
+			if( n_saving_image == 1 )
+				main_activity.savingImage(true);
+		}
+		else {
+			n_saving_image--;
+			if( n_saving_image == 0 )
+				main_activity.savingImage(false);
+		}
+	}
+
 	void onDestroy() {
 		if( MyDebug.LOG )
 			Log.d(TAG, "onDestroy");
+		// MainActivity.onDestroy() waits until all images are saved before we're called
+		if( pending_image_average_request != null && pending_image_average_request.avg_stream != null ) {
+			// a noise reduction burst that never completed
+			pending_image_average_request.avg_stream.waitForImages();
+			pending_image_average_request.avg_stream.release();
+			pending_image_average_request = null;
+		}
+		pipeline.shutdown();
+		decode_executor.shutdown();
+		if( journal != null ) {
+			// also stops journal_reader
+			journal.close();
+		}
 		if( hdrProcessor != null ) {
 			hdrProcessor.onDestroy();
 		}
+		bitmap_pool.clear();
 	}
+	/** The ImageSaver thread takes requests off the queue, and hands them on to the save pipeline.
+	 */
 	@Override
-
 	public void run() {
 		if( MyDebug.LOG )
 			Log.d(TAG, "starting ImageSaver thread...");
+		pipeline.start();
+		if( journal_reader != null ) {
+			journal_reader.start();
+		}
 		while( true ) {
 			try {
 				if( MyDebug.LOG )
@@ -344,52 +759,22 @@ public class ImageSaver extends Thread {
 				Request request = queue.take(); // if empty, take() blocks until non-empty
 				// Only decrement n_images_to_save after we've actually saved the image! Otherwise waitUntilDone() will return
 				// even though we still have a last image to be saved.
-				if( MyDebug.LOG )
-					Log.d(TAG, "ImageSaver thread found new request from queue, size is now: " + queue.size());
-				boolean success;
-				switch (request.type) {
-					case RAW:
-						if (MyDebug.LOG)
-							Log.d(TAG, "request is raw");
-						success = saveImageNowRaw(request);
-						break;
-					case JPEG:
-						if (MyDebug.LOG)
-							Log.d(TAG, "request is jpeg");
-						success = saveImageNow(request);
-						break;
-					case DUMMY:
-						if (MyDebug.LOG)
-							Log.d(TAG, "request is dummy");
-						success = true;
-						break;
-					default:
-						if (MyDebug.LOG)
-							Log.e(TAG, "request is unknown type!");
-						success = false;
-						break;
-				}
 				if( MyDebug.LOG ) {
-					if( success )
-						Log.d(TAG, "ImageSaver thread successfully saved image");
-					else
-						Log.e(TAG, "ImageSaver thread failed to save image");
+					Log.d(TAG, "ImageSaver thread found new request from queue, size is now: " + queue.size());
+					Log.d(TAG, "request is " + request.type);
 				}
-				synchronized( this ) {
-					n_images_to_save--;
-					if( MyDebug.LOG )
-						Log.d(TAG, "ImageSaver thread processed new request from queue, images to save is now: " + n_images_to_save);
-					if( MyDebug.LOG && n_images_to_save < 0 ) {
-						Log.e(TAG, "images to save has become negative");
-						throw new RuntimeException();
+				SaveJob job = new SaveJob(request);
+				boolean done = false;
+				while( !done ) {
+					try {
+						pipeline.submit(job); // if the pipeline is full, blocks until there is space
+						done = true;
+					}
+					catch(InterruptedException e) {
+						e.printStackTrace();
+						if( MyDebug.LOG )
+							Log.e(TAG, "interrupted while trying to add to the save pipeline");
 					}
-					notifyAll();
-
-					main_activity.runOnUiThread(new Runnable() {
-						public void run() {
-							main_activity.imageQueueChanged();
-						}
-					});
 				}
 			}
 			catch(InterruptedException e) {
@@ -399,6 +784,51 @@ public class ImageSaver extends Thread {
 			}
 		}
 	}
+
+	/** Called on the persist stage's worker thread when a job has been through the whole pipeline.
+	 */
+	private void onJobComplete(SaveJob job) {
+		if( MyDebug.LOG ) {
+			if( job.success )
+				Log.d(TAG, "ImageSaver thread successfully saved image");
+			else
+				Log.e(TAG, "ImageSaver thread failed to save image");
+		}
+		Request request = job.request;
+		memory_budget.release(request.payload_bytes, request.working_set_bytes);
+		if( request.journal_id >= 0 ) {
+			try {
+				journal.markDone(request.journal_id);
+			}
+			catch(IOException e) {
+				// the request may be saved again when the journal is next replayed
+				Log.e(TAG, "failed to mark journal entry as done");
+				e.printStackTrace();
+			}
+		}
+		onRequestDone(request.cost);
+	}
+
+	/** Records that a request of the supplied cost has finished being processed.
+	 */
+	private void onRequestDone(int cost) {
+		synchronized( this ) {
+			n_images_to_save -= cost;
+			if( MyDebug.LOG )
+				Log.d(TAG, "ImageSaver thread processed new request from queue, images to save is now: " + n_images_to_save);
+			if( MyDebug.LOG && n_images_to_save < 0 ) {
+				Log.e(TAG, "images to save has become negative");
+				throw new RuntimeException();
+			}
+			notifyAll();
+
+			main_activity.runOnUiThread(new Runnable() {
+				public void run() {
+					main_activity.imageQueueChanged();
+				}
+			});
+		}
+	}
 	
 	/** Saves a photo.
 	 *  If do_in_background is true, the photo will be saved in a background thread. If the queue is full, the function will wait
@@ -412,6 +842,7 @@ public class ImageSaver extends Thread {
 			int suffix_offset,
 			boolean save_expo,
 			List<byte []> images,
+			JpegImage jpeg_image,
 			boolean image_capture_intent, Uri image_capture_intent_uri,
 			boolean using_camera2, int image_quality,
 			boolean do_auto_stabilise, double level_angle,
@@ -427,7 +858,8 @@ public class ImageSaver extends Thread {
 		if( MyDebug.LOG ) {
 			Log.d(TAG, "saveImageJpeg");
 			Log.d(TAG, "do_in_background? " + do_in_background);
-			Log.d(TAG, "number of images: " + images.size());
+			Log.d(TAG, "number of images: " + (images == null ? 0 : images.size()));
+			Log.d(TAG, "jpeg_image: " + jpeg_image);
 		}
 		return saveImage(do_in_background,
 				false,
@@ -435,7 +867,8 @@ public class ImageSaver extends Thread {
 				force_suffix,
 				suffix_offset,
 				save_expo,
-				images,
+				images == null ? new ArrayList<byte []>() : images,
+				jpeg_image,
 				null,
 				image_capture_intent, image_capture_intent_uri,
 				using_camera2, image_quality,
@@ -471,6 +904,7 @@ public class ImageSaver extends Thread {
 				0,
 				false,
 				null,
+				null,
 				raw_image,
 				false, null,
 				false, 0,
@@ -487,6 +921,139 @@ public class ImageSaver extends Thread {
 
 	private Request pending_image_average_request = null;
 
+	/** Averages the images of a noise reduction request as they arrive from the camera, see
+	 *  NoiseReductionSession. The images are decoded on decode_executor ahead of the session's
+	 *  worker thread, but with at most avg_n_smp_images_c decoding or decoded at once, as for
+	 *  processAvgImage(). The statistics of each merge are passed to convergence, so that the camera
+	 *  can decide how many images to take, see continueImageAverage().
+	 */
+	private class StreamingAvg implements NoiseReductionSession.Accumulator {
+		private final NoiseReductionSession session = new NoiseReductionSession(this);
+		private final AdaptiveNoiseReduction convergence = new AdaptiveNoiseReduction();
+		private final int iso;
+		private final int inSampleSize;
+		private final List<byte []> jpeg_images = new ArrayList<>(); // synchronized on this
+		private final List<Future<Bitmap>> decodes = new ArrayList<>(); // synchronized on this
+		private int n_done; // number of images accumulated or skipped, synchronized on this
+		// only accessed on the session's worker thread, or after session.finish():
+		private Bitmap bitmap0;
+		private HDRProcessor.AvgData avg_data;
+		private int width;
+		private int height;
+		private int n_avg; // number of images averaged so far
+
+		StreamingAvg(int iso) {
+			this.iso = iso;
+			this.inSampleSize = HDRProcessor.computeAvgSampleSize(iso);
+		}
+
+		void addImage(byte [] jpeg) {
+			synchronized( this ) {
+				jpeg_images.add(jpeg);
+				submitDecodes();
+			}
+			session.add();
+		}
+
+		private synchronized void submitDecodes() {
+			while( decodes.size() < jpeg_images.size() && decodes.size() - n_done < avg_n_smp_images_c ) {
+				decodes.add(decode_executor.submit(decodeTask(jpeg_images.get(decodes.size()), false, inSampleSize)));
+			}
+		}
+
+		@Override
+		@RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+		public boolean accumulate(int index) throws HDRProcessorException {
+			Future<Bitmap> future;
+			synchronized( this ) {
+				future = decodes.get(index);
+			}
+			Bitmap new_bitmap = getDecoded(future);
+			synchronized( this ) {
+				decodes.set(index, null);
+				n_done++;
+				submitDecodes();
+			}
+			if( new_bitmap == null ) {
+				Log.e(TAG, "failed to decode bitmap: " + index);
+				// as for processAvgImage(), we can still save the average of the other images, but not if one of the
+				// first two failed
+				return index >= 2;
+			}
+			// HDRProcessor isn't thread safe
+			synchronized( hdrProcessor ) {
+				if( index == 0 ) {
+					bitmap0 = new_bitmap;
+					width = bitmap0.getWidth();
+					height = bitmap0.getHeight();
+				}
+				else if( index == 1 ) {
+					avg_data = hdrProcessor.processAvg(bitmap0, new_bitmap, 1.0f, iso);
+					bitmap0 = null; // processAvg recycles the bitmaps
+					n_avg = 2;
+					convergence.addMerge(hdrProcessor.avg_merged_fraction, hdrProcessor.avg_mean_diff);
+				}
+				else {
+					hdrProcessor.updateAvg(avg_data, width, height, new_bitmap, (float)n_avg, iso);
+					// updateAvg releases new_bitmap
+					n_avg++;
+					convergence.addMerge(hdrProcessor.avg_merged_fraction, hdrProcessor.avg_mean_diff);
+				}
+			}
+			return true;
+		}
+
+		/** Waits for all the images so far to be averaged. This must not be called whilst holding
+		 *  the lock on hdrProcessor, as the session's worker thread needs it.
+		 * @return Whether the averaging was successful; if not, the caller should fall back to
+		 *         processAvgImage() with the request's images.
+		 */
+		boolean waitForImages() {
+			boolean ok = session.finish() && avg_data != null;
+			if( !ok ) {
+				Log.e(TAG, "streaming noise reduction failed");
+				release();
+			}
+			return ok;
+		}
+
+		/** Creates the noise reduction image once waitForImages() has returned true. Should be
+		 *  called whilst holding the lock on hdrProcessor.
+		 */
+		@RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+		Bitmap brighten() {
+			if( MyDebug.LOG )
+				Log.d(TAG, "brighten streamed average of " + n_avg + " images");
+			hdrProcessor.getAvgSampleSize(iso); // so that HDRProcessor caches the sample size for this request
+			Bitmap nr_bitmap = hdrProcessor.avgBrighten(avg_data, width, height, iso);
+			release();
+			return nr_bitmap;
+		}
+
+		/** Frees the memory used for the average. Only call after session.finish().
+		 */
+		void release() {
+			if( bitmap0 != null ) {
+				bitmap0.recycle();
+				bitmap0 = null;
+			}
+			if( avg_data != null ) {
+				avg_data.destroy();
+				avg_data = null;
+			}
+			synchronized( this ) {
+				for(Future<Bitmap> future : decodes) {
+					if( future != null ) {
+						Bitmap bitmap = getDecoded(future);
+						if( bitmap != null )
+							bitmap.recycle();
+					}
+				}
+				decodes.clear();
+			}
+		}
+	}
+
 	void startImageAverage(boolean do_in_background,
 			Request.SaveBase save_base,
 			boolean image_capture_intent, Uri image_capture_intent_uri,
@@ -505,6 +1072,12 @@ public class ImageSaver extends Thread {
 			Log.d(TAG, "startImageAverage");
 			Log.d(TAG, "do_in_background? " + do_in_background);
 		}
+		if( pending_image_average_request != null && pending_image_average_request.avg_stream != null ) {
+			// shouldn't happen, but don't leak the previous average
+			Log.e(TAG, "startImageAverage called with pending streamed average");
+			pending_image_average_request.avg_stream.waitForImages();
+			pending_image_average_request.avg_stream.release();
+		}
 		pending_image_average_request = new Request(Request.Type.JPEG,
 				Request.ProcessType.AVERAGE,
 				false,
@@ -512,6 +1085,7 @@ public class ImageSaver extends Thread {
 				save_base,
 				new ArrayList<byte[]>(),
 				null,
+				null,
 				image_capture_intent, image_capture_intent_uri,
 				using_camera2, image_quality,
 				do_auto_stabilise, level_angle,
@@ -524,6 +1098,20 @@ public class ImageSaver extends Thread {
 				custom_tag_artist,
 				custom_tag_copyright,
 				sample_factor);
+		if( do_in_background && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ) {
+			// Average the images as they arrive, rather than only once the whole burst has been taken. But we only do
+			// this if nothing else is being saved: the average takes memory that isn't charged to memory_budget until
+			// the request is added, and HDRProcessor can only process one photo at a time anyway.
+			boolean idle;
+			synchronized( this ) {
+				idle = n_images_to_save == 0 && n_journaled == 0;
+			}
+			if( MyDebug.LOG )
+				Log.d(TAG, "stream noise reduction? " + idle);
+			if( idle ) {
+				pending_image_average_request.avg_stream = new StreamingAvg(iso);
+			}
+		}
 	}
 
 	void addImageAverage(byte [] image) {
@@ -534,10 +1122,25 @@ public class ImageSaver extends Thread {
 			return;
 		}
 		pending_image_average_request.jpeg_images.add(image);
+		if( pending_image_average_request.avg_stream != null ) {
+			pending_image_average_request.avg_stream.addImage(image);
+		}
 		if( MyDebug.LOG )
 			Log.d(TAG, "image average request images: " + pending_image_average_request.jpeg_images.size());
 	}
 
+	/** Whether a noise reduction burst of n_images should be extended by another image. If the
+	 *  images are being averaged as they arrive, this is decided from how much the noise of the
+	 *  average is still improving, see AdaptiveNoiseReduction; otherwise this returns whether
+	 *  n_images is less than n_default.
+	 */
+	boolean continueImageAverage(int n_images, int n_default) {
+		if( pending_image_average_request != null && pending_image_average_request.avg_stream != null ) {
+			return pending_image_average_request.avg_stream.convergence.continueBurst(n_images, n_default);
+		}
+		return n_images < n_default;
+	}
+
 	void finishImageAverage(boolean do_in_background) {
 		if( MyDebug.LOG )
 			Log.d(TAG, "finishImageAverage");
@@ -569,6 +1172,7 @@ public class ImageSaver extends Thread {
 			int suffix_offset,
 			boolean save_expo,
 			List<byte []> jpeg_images,
+			JpegImage jpeg_image,
 			RawImage raw_image,
 			boolean image_capture_intent, Uri image_capture_intent_uri,
 			boolean using_camera2, int image_quality,
@@ -596,6 +1200,7 @@ public class ImageSaver extends Thread {
 				suffix_offset,
 				save_expo ? Request.SaveBase.SAVEBASE_ALL : Request.SaveBase.SAVEBASE_NONE,
 				jpeg_images,
+				jpeg_image,
 				raw_image,
 				image_capture_intent, image_capture_intent_uri,
 				using_camera2, image_quality,
@@ -609,11 +1214,15 @@ public class ImageSaver extends Thread {
 				custom_tag_artist,
 				custom_tag_copyright,
 				sample_factor);
+		if( request.jpeg_image != null && (!do_in_background || request.process_type != Request.ProcessType.NORMAL || request.image_capture_intent || needsPostProcessing(request)) ) {
+			// can only write the image straight from the camera's buffer if it doesn't need processing
+			copyJpegImage(request);
+		}
 
 		if( do_in_background ) {
 			if( MyDebug.LOG )
 				Log.d(TAG, "add background request");
-			int cost = computeRequestCost(is_raw, is_raw ? 0 : request.jpeg_images.size());
+			int cost = computeRequestCost(is_raw, is_raw ? 0 : Math.max(request.jpeg_images.size(), 1));
 			addRequest(request, cost);
 			success = true; // always return true when done in background
 		}
@@ -633,7 +1242,9 @@ public class ImageSaver extends Thread {
 		return success;
 	}
 	
-	/** Adds a request to the background queue, blocking if the queue is already full
+	/** Adds a request to the background queue, blocking if the memory it needs would exceed the memory budget.
+	 * @param cost The number of slots on the queue, see computeRequestCost(). This no longer affects whether we
+	 *             block, but is still counted in n_images_to_save.
 	 */
 	private void addRequest(Request request, int cost) {
 		if( MyDebug.LOG )
@@ -645,88 +1256,413 @@ public class ImageSaver extends Thread {
 			Log.e(TAG, "application is destroyed, image lost!");
 			return;
 		}
-		// this should not be synchronized on "this": BlockingQueue is thread safe, and if it's blocking in queue.put(), we'll hang because
-		// the saver queue will need to synchronize on "this" in order to notifyAll() the main thread
+		request.cost = cost;
+		computeRequestMemory(request);
+		if( canJournal(request) ) {
+			boolean use_journal;
+			synchronized( this ) {
+				// if there are already requests in the journal, this request must also go via the journal to keep the order
+				use_journal = n_journaled > 0;
+			}
+			if( !use_journal ) {
+				use_journal = memory_budget.wouldBlock(request.payload_bytes, request.working_set_bytes);
+			}
+			if( use_journal && request.jpeg_image != null ) {
+				// the journal needs the data on the Java heap
+				copyJpegImage(request);
+				computeRequestMemory(request);
+			}
+			if( use_journal && journalRequest(request) ) {
+				return;
+			}
+		}
+		// this should not be synchronized on "this": if it's blocking on the memory budget, we'll hang because the
+		// save pipeline will need to synchronize on "this" in order to notifyAll() the main thread
 		boolean done = false;
 		while( !done ) {
 			try {
-				if( MyDebug.LOG )
-					Log.d(TAG, "ImageSaver thread adding to queue, size: " + queue.size());
-				synchronized( this ) {
-					// see above for why we don't synchronize the queue.put call
-					// but we synchronize modification to avoid risk of problems related to compiler optimisation (local caching or reordering)
-					// also see FindBugs warning due to inconsistent synchronisation
-					n_images_to_save++; // increment before adding to the queue, just to make sure the main thread doesn't think we're all done
-
-					main_activity.runOnUiThread(new Runnable() {
-						public void run() {
-							main_activity.imageQueueChanged();
-						}
-					});
-				}
-				if( queue.size() + 1 >= queue_capacity ) {
-					Log.e(TAG, "ImageSaver thread is going to block, queue already full: " + queue.size());
-					//throw new RuntimeException();
-				}
-				queue.put(request); // if queue is full, put() blocks until it isn't full
 				if( MyDebug.LOG ) {
-					synchronized( this ) { // keep FindBugs happy
-						Log.d(TAG, "ImageSaver thread added to queue, size is now: " + queue.size());
-						Log.d(TAG, "images still to save is now: " + n_images_to_save);
-					}
+					if( memory_budget.wouldBlock(request.payload_bytes, request.working_set_bytes) )
+						Log.e(TAG, "ImageSaver thread is going to block, memory budget already full: " + memory_budget.getCharged());
 				}
+				memory_budget.acquire(request.payload_bytes, request.working_set_bytes); // blocks until there's enough memory
 				done = true;
 			}
 			catch(InterruptedException e) {
 				e.printStackTrace();
 				if( MyDebug.LOG )
-					Log.e(TAG, "interrupted while trying to add to ImageSaver queue");
-			}
-		}
-		if( cost > 0 ) {
-			// add "dummy" requests to simulate the cost
-			for(int i=0;i<cost-1;i++) {
-				addDummyRequest();
-			}
-		}
-	}
-
-	private void addDummyRequest() {
-		Request dummy_request = new Request(Request.Type.DUMMY,
-			Request.ProcessType.NORMAL,
-            false,
-            0,
-            Request.SaveBase.SAVEBASE_NONE,
-			null,
-			null,
-			false, null,
-			false, 0,
-			false, 0.0,
-			false,
-			false,
-			null,
-			0,
-			null, null, 0, 0, null, null, null, null, null,
-			false, null, false, 0.0,
-			null, null,
-			1);
+					Log.e(TAG, "interrupted while waiting for ImageSaver memory budget");
+			}
+		}
+		synchronized( this ) {
+			// we synchronize modification to avoid risk of problems related to compiler optimisation (local caching or reordering)
+			// also see FindBugs warning due to inconsistent synchronisation
+			n_images_to_save += cost; // increment before adding to the queue, just to make sure the main thread doesn't think we're all done
+
+			main_activity.runOnUiThread(new Runnable() {
+				public void run() {
+					main_activity.imageQueueChanged();
+				}
+			});
+		}
+		// the queue is unbounded, so this won't block
+		queue.add(request);
+		if( MyDebug.LOG ) {
+			synchronized( this ) { // keep FindBugs happy
+				Log.d(TAG, "ImageSaver thread added to queue, size is now: " + queue.size());
+				Log.d(TAG, "images still to save is now: " + n_images_to_save);
+			}
+		}
+	}
+
+	/** Whether a request can be spilled to the journal. RAW requests aren't, as the RAW image holds a buffer from the
+	 *  camera's ImageReader (which limits how many there can be anyway). Nor are image capture intents, as the calling
+	 *  application won't be around to receive the photo if the journal is replayed later, nor noise reduction requests
+	 *  that have already been averaged in memory.
+	 */
+	private boolean canJournal(Request request) {
+		return journal != null && request.type == Request.Type.JPEG && !request.image_capture_intent && request.avg_stream == null && (request.jpeg_images.size() > 0 || request.jpeg_image != null);
+	}
+
+	/** Copies request.jpeg_image to request.jpeg_images, and closes it, so that the camera's buffer is released and
+	 *  the request can be processed like any other JPEG request.
+	 */
+	private static void copyJpegImage(Request request) {
 		if( MyDebug.LOG )
-			Log.d(TAG, "add dummy request");
-		addRequest(dummy_request, 1); // cost must be 1, so we don't have infinite recursion!
+			Log.d(TAG, "copyJpegImage");
+		request.jpeg_images.add(request.jpeg_image.getBytes());
+		request.jpeg_image.close();
+		request.jpeg_image = null;
 	}
 
-	/** Wait until the queue is empty and all pending images have been saved.
+	/** Appends a request to the journal, rather than adding it to the queue. The request will be added to the queue
+	 *  by journal_reader once there's enough memory.
+	 * @return Whether the request was journaled successfully.
 	 */
-	void waitUntilDone() {
+	private boolean journalRequest(Request request) {
 		if( MyDebug.LOG )
-			Log.d(TAG, "waitUntilDone");
+			Log.d(TAG, "journalRequest");
 		synchronized( this ) {
-			if( MyDebug.LOG ) {
-				Log.d(TAG, "queue is size " + queue.size());
-				Log.d(TAG, "images still to save " + n_images_to_save);
+			// increment first, so requests arriving on another thread also go via the journal, to keep the order
+			n_journaled++;
+		}
+		try {
+			long time_s = System.currentTimeMillis();
+			journal.append(request.cost, writeRequestSettings(request), request.jpeg_images);
+			if( MyDebug.LOG )
+				Log.d(TAG, "time to journal request: " + (System.currentTimeMillis() - time_s));
+		}
+		catch(IOException e) {
+			Log.e(TAG, "failed to journal request");
+			e.printStackTrace();
+			synchronized( this ) {
+				n_journaled--;
 			}
-			while( n_images_to_save > 0 ) {
-				if( MyDebug.LOG )
+			return false;
+		}
+		synchronized( this ) {
+			n_images_to_save += request.cost;
+			main_activity.runOnUiThread(new Runnable() {
+				public void run() {
+					main_activity.imageQueueChanged();
+				}
+			});
+		}
+		return true;
+	}
+
+	/** Saves any requests left in the journal from a previous run, e.g., if the application was killed before they
+	 *  could be saved.
+	 */
+	void replayJournal() {
+		if( MyDebug.LOG )
+			Log.d(TAG, "replayJournal");
+		if( journal == null ) {
+			return;
+		}
+		synchronized( this ) {
+			int cost = journal.getRecoveredCost();
+			int n_replayed = journal.replay();
+			if( MyDebug.LOG )
+				Log.d(TAG, "replaying " + n_replayed + " requests");
+			if( n_replayed == 0 ) {
+				return;
+			}
+			n_journaled += n_replayed;
+			n_images_to_save += cost;
+			main_activity.runOnUiThread(new Runnable() {
+				public void run() {
+					main_activity.imageQueueChanged();
+				}
+			});
+		}
+	}
+
+	/** Reads requests back from the journal, and adds them to the queue once there's enough memory.
+	 */
+	private class JournalReaderThread extends Thread {
+		JournalReaderThread() {
+			setName("ImageSaver-journal");
+		}
+
+		@Override
+		public void run() {
+			while( true ) {
+				SaveJournal.Entry entry;
+				try {
+					entry = journal.take(); // blocks until there's an entry
+				}
+				catch(InterruptedException e) {
+					e.printStackTrace();
+					if( MyDebug.LOG )
+						Log.e(TAG, "interrupted while reading from journal");
+					continue;
+				}
+				if( entry == null ) {
+					if( MyDebug.LOG )
+						Log.d(TAG, "journal closed");
+					return;
+				}
+				Request request = null;
+				if( entry.settings != null ) {
+					try {
+						request = readRequestSettings(entry.settings, entry.payloads);
+					}
+					catch(IOException e) {
+						e.printStackTrace();
+						try {
+							journal.markDone(entry.id);
+						}
+						catch(IOException e2) {
+							e2.printStackTrace();
+						}
+					}
+				}
+				if( request == null ) {
+					// the entry has already been marked as done (see SaveJournal.take())
+					Log.e(TAG, "failed to read request from journal, image lost!");
+					synchronized( ImageSaver.this ) {
+						n_journaled--;
+					}
+					onRequestDone(entry.cost);
+					continue;
+				}
+				request.cost = entry.cost;
+				request.journal_id = entry.id;
+				computeRequestMemory(request);
+				boolean done = false;
+				while( !done ) {
+					try {
+						memory_budget.acquire(request.payload_bytes, request.working_set_bytes); // blocks until there's enough memory
+						done = true;
+					}
+					catch(InterruptedException e) {
+						e.printStackTrace();
+						if( MyDebug.LOG )
+							Log.e(TAG, "interrupted while waiting for ImageSaver memory budget");
+					}
+				}
+				// n_images_to_save was already incremented when the request was journaled
+				queue.add(request);
+				synchronized( ImageSaver.this ) {
+					n_journaled--;
+				}
+				if( MyDebug.LOG )
+					Log.d(TAG, "added journaled request to queue, id: " + entry.id);
+			}
+		}
+	}
+
+	private static void writeString(DataOutputStream stream, String string) throws IOException {
+		stream.writeBoolean(string != null);
+		if( string != null )
+			stream.writeUTF(string);
+	}
+
+	private static String readString(DataInputStream stream) throws IOException {
+		return stream.readBoolean() ? stream.readUTF() : null;
+	}
+
+	/** Serializes the settings of a request (i.e., everything except the images), for the journal.
+	 */
+	private static byte [] writeRequestSettings(Request request) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream stream = new DataOutputStream(bytes);
+		stream.writeInt(journal_settings_version_c);
+		stream.writeUTF(request.process_type.name());
+		stream.writeBoolean(request.force_suffix);
+		stream.writeInt(request.suffix_offset);
+		stream.writeUTF(request.save_base.name());
+		stream.writeBoolean(request.using_camera2);
+		stream.writeInt(request.image_quality);
+		stream.writeBoolean(request.do_auto_stabilise);
+		stream.writeDouble(request.level_angle);
+		stream.writeBoolean(request.is_front_facing);
+		stream.writeBoolean(request.mirror);
+		stream.writeLong(request.current_date.getTime());
+		stream.writeInt(request.iso);
+		writeString(stream, request.preference_stamp);
+		writeString(stream, request.preference_textstamp);
+		stream.writeInt(request.font_size);
+		stream.writeInt(request.color);
+		writeString(stream, request.pref_style);
+		writeString(stream, request.preference_stamp_dateformat);
+		writeString(stream, request.preference_stamp_timeformat);
+		writeString(stream, request.preference_stamp_gpsformat);
+		writeString(stream, request.preference_units_distance);
+		stream.writeBoolean(request.store_location);
+		stream.writeBoolean(request.location != null);
+		if( request.location != null ) {
+			writeString(stream, request.location.getProvider());
+			stream.writeDouble(request.location.getLatitude());
+			stream.writeDouble(request.location.getLongitude());
+			stream.writeBoolean(request.location.hasAltitude());
+			stream.writeDouble(request.location.getAltitude());
+			stream.writeLong(request.location.getTime());
+		}
+		stream.writeBoolean(request.store_geo_direction);
+		stream.writeDouble(request.geo_direction);
+		writeString(stream, request.custom_tag_artist);
+		writeString(stream, request.custom_tag_copyright);
+		stream.writeInt(request.sample_factor);
+		stream.flush();
+		return bytes.toByteArray();
+	}
+
+	/** Recreates a request from the settings written by writeRequestSettings().
+	 */
+	private static Request readRequestSettings(byte [] settings, List<byte []> jpeg_images) throws IOException {
+		DataInputStream stream = new DataInputStream(new ByteArrayInputStream(settings));
+		int version = stream.readInt();
+		if( version != journal_settings_version_c ) {
+			throw new IOException("unknown journal settings version: " + version);
+		}
+		Request.ProcessType process_type;
+		Request.SaveBase save_base;
+		String process_type_name = stream.readUTF();
+		boolean force_suffix = stream.readBoolean();
+		int suffix_offset = stream.readInt();
+		String save_base_name = stream.readUTF();
+		try {
+			process_type = Request.ProcessType.valueOf(process_type_name);
+			save_base = Request.SaveBase.valueOf(save_base_name);
+		}
+		catch(IllegalArgumentException e) {
+			throw new IOException("unknown journal settings value");
+		}
+		boolean using_camera2 = stream.readBoolean();
+		int image_quality = stream.readInt();
+		boolean do_auto_stabilise = stream.readBoolean();
+		double level_angle = stream.readDouble();
+		boolean is_front_facing = stream.readBoolean();
+		boolean mirror = stream.readBoolean();
+		Date current_date = new Date(stream.readLong());
+		int iso = stream.readInt();
+		String preference_stamp = readString(stream);
+		String preference_textstamp = readString(stream);
+		int font_size = stream.readInt();
+		int color = stream.readInt();
+		String pref_style = readString(stream);
+		String preference_stamp_dateformat = readString(stream);
+		String preference_stamp_timeformat = readString(stream);
+		String preference_stamp_gpsformat = readString(stream);
+		String preference_units_distance = readString(stream);
+		boolean store_location = stream.readBoolean();
+		Location location = null;
+		if( stream.readBoolean() ) {
+			location = new Location(readString(stream));
+			location.setLatitude(stream.readDouble());
+			location.setLongitude(stream.readDouble());
+			boolean has_altitude = stream.readBoolean();
+			double altitude = stream.readDouble();
+			if( has_altitude )
+				location.setAltitude(altitude);
+			location.setTime(stream.readLong());
+		}
+		boolean store_geo_direction = stream.readBoolean();
+		double geo_direction = stream.readDouble();
+		String custom_tag_artist = readString(stream);
+		String custom_tag_copyright = readString(stream);
+		int sample_factor = stream.readInt();
+		return new Request(Request.Type.JPEG,
+				process_type,
+				force_suffix,
+				suffix_offset,
+				save_base,
+				jpeg_images,
+				null,
+				null,
+				false, null,
+				using_camera2, image_quality,
+				do_auto_stabilise, level_angle,
+				is_front_facing,
+				mirror,
+				current_date,
+				iso,
+				preference_stamp, preference_textstamp, font_size, color, pref_style, preference_stamp_dateformat, preference_stamp_timeformat, preference_stamp_gpsformat, preference_units_distance,
+				store_location, location, store_geo_direction, geo_direction,
+				custom_tag_artist,
+				custom_tag_copyright,
+				sample_factor);
+	}
+
+	/** Sets the memory that a request will be charged to the memory budget, from the sizes of its images and how it
+	 *  will be processed.
+	 */
+	private void computeRequestMemory(Request request) {
+		long payload = 0;
+		long working_set = 0;
+		if( request.type == Request.Type.RAW ) {
+			// DngCreator writes straight from the raw buffer, so there's no working set
+			payload = request.raw_image.getByteCount();
+		}
+		else if( request.jpeg_image != null ) {
+			// written straight from the camera's buffer, which isn't on the Java heap, and is instead limited by the
+			// ImageReader's maximum number of images
+		}
+		else if( request.jpeg_images.size() > 0 ) {
+			for(byte [] image : request.jpeg_images) {
+				payload += image.length;
+			}
+			BitmapFactory.Options options = new BitmapFactory.Options();
+			options.inJustDecodeBounds = true;
+			byte [] first_image = request.jpeg_images.get(0);
+			BitmapFactory.decodeByteArray(first_image, 0, first_image.length, options);
+			int width = Math.max(options.outWidth, 0);
+			int height = Math.max(options.outHeight, 0);
+			switch( request.process_type ) {
+				case HDR:
+					working_set = SaveMemoryBudget.computeHDRWorkingSet(width, height, request.jpeg_images.size());
+					break;
+				case AVERAGE:
+					int sample_size = HDRProcessor.computeAvgSampleSize(request.iso);
+					working_set = SaveMemoryBudget.computeAvgWorkingSet(width, height, sample_size, Math.min(avg_n_smp_images_c, request.jpeg_images.size()), hdrProcessor.half_precision_avg, hdrProcessor.useMappedAvg(width/sample_size, height/sample_size));
+					break;
+				default:
+					working_set = SaveMemoryBudget.computeNormalWorkingSet(width, height, needsPostProcessing(request), request.jpeg_images.size(), n_bitmap_workers);
+					break;
+			}
+		}
+		request.payload_bytes = payload;
+		request.working_set_bytes = working_set;
+		if( MyDebug.LOG ) {
+			Log.d(TAG, "payload_bytes: " + payload);
+			Log.d(TAG, "working_set_bytes: " + working_set);
+		}
+	}
+
+	/** Wait until the queue is empty and all pending images have been saved.
+	 */
+	void waitUntilDone() {
+		if( MyDebug.LOG )
+			Log.d(TAG, "waitUntilDone");
+		synchronized( this ) {
+			if( MyDebug.LOG ) {
+				Log.d(TAG, "queue is size " + queue.size());
+				Log.d(TAG, "images still to save " + n_images_to_save);
+			}
+			while( n_images_to_save > 0 ) {
+				if( MyDebug.LOG )
 					Log.d(TAG, "wait until done...");
 				try {
 					wait();
@@ -777,462 +1713,817 @@ public class ImageSaver extends Thread {
 			// setting is ignored in Android 5 onwards
 			options.inPurgeable = true;
 		}
-		Bitmap bitmap = BitmapFactory.decodeByteArray(jpeg_image, 0, jpeg_image.length, options);
+		setBitmapOptionsReuse(options, jpeg_image, inSampleSize);
+		Bitmap bitmap = decodeBitmap(jpeg_image, options, bitmap_pool);
 		if( bitmap == null ) {
 			Log.e(TAG, "failed to decode bitmap");
 		}
 		return bitmap;
 	}
 
-	/** Helper class for loadBitmaps().
+	/** Sets options.inBitmap to a bitmap from the pool that the jpeg can be decoded into, if there
+	 *  is one. Such bitmaps are mutable, so this also sets options.inMutable.
 	 */
-	private static class LoadBitmapThread extends Thread {
+	private void setBitmapOptionsReuse(BitmapFactory.Options options, byte [] jpeg, int inSampleSize) {
+		if( Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT || bitmap_pool.getMaxBytes() == 0 ) {
+			// before Android 4.4, inBitmap can't be used with scaling
+			return;
+		}
+		BitmapFactory.Options bounds = new BitmapFactory.Options();
+		bounds.inJustDecodeBounds = true;
+		BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, bounds);
+		if( bounds.outWidth <= 0 || bounds.outHeight <= 0 ) {
+			return;
+		}
+		int width = bounds.outWidth;
+		int height = bounds.outHeight;
+		if( inSampleSize > 1 ) {
+			// see setBitmapOptionsSampleSize() - scaled in the same way as BitmapFactory scales by density
+			float scale = 1.0f/inSampleSize;
+			width = (int)(width * scale + 0.5f);
+			height = (int)(height * scale + 0.5f);
+		}
+		Bitmap bitmap = bitmap_pool.acquire(width, height);
+		if( bitmap != null ) {
+			options.inMutable = true;
+			options.inBitmap = bitmap;
+		}
+	}
+
+	/** Decodes the jpeg with the supplied options. If options.inBitmap is set but can't be
+	 *  reused, it's returned to bitmap_pool, and the jpeg decoded into a new bitmap instead.
+	 */
+	private static Bitmap decodeBitmap(byte [] jpeg, BitmapFactory.Options options, BitmapPool bitmap_pool) {
+		Bitmap in_bitmap = options.inBitmap;
 		Bitmap bitmap;
-		final BitmapFactory.Options options;
-		final byte [] jpeg;
-		LoadBitmapThread(BitmapFactory.Options options, byte [] jpeg) {
-			this.options = options;
-			this.jpeg = jpeg;
+		try {
+			bitmap = BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, options);
+		}
+		catch(IllegalArgumentException e) {
+			// thrown if the image doesn't fit in inBitmap
+			if( in_bitmap == null )
+				throw e;
+			if( MyDebug.LOG )
+				Log.d(TAG, "can't reuse bitmap: " + e.getMessage());
+			options.inBitmap = null;
+			bitmap = BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, options);
+		}
+		if( in_bitmap != null && bitmap != in_bitmap ) {
+			bitmap_pool.release(in_bitmap);
 		}
+		options.inBitmap = null;
+		return bitmap;
+	}
 
-		public void run() {
-			this.bitmap = BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, options);
+	/** Returns a task that decodes a jpeg on the decode executor, see loadBitmap().
+	 */
+	private Callable<Bitmap> decodeTask(final byte [] jpeg_image, final boolean mutable, final int inSampleSize) {
+		return new Callable<Bitmap>() {
+			@Override
+			public Bitmap call() {
+				return loadBitmap(jpeg_image, mutable, inSampleSize);
+			}
+		};
+	}
+
+	/** Waits for a decode submitted to the decode executor.
+	 * @return The bitmap, or null if it failed to decode.
+	 */
+	private static Bitmap getDecoded(Future<Bitmap> future) {
+		try {
+			return future.get();
+		}
+		catch(InterruptedException e) {
+			if( MyDebug.LOG )
+				Log.e(TAG, "decode interrupted");
+			e.printStackTrace();
+			future.cancel(true);
+			Thread.currentThread().interrupt();
+		}
+		catch(ExecutionException e) {
+			if( MyDebug.LOG )
+				Log.e(TAG, "decode failed");
+			e.printStackTrace();
 		}
+		return null;
 	}
 
-	/** Converts the array of jpegs to Bitmaps. The bitmap with index mutable_id will be marked as mutable (or set to -1 to have no mutable bitmaps).
+	/** Converts the array of jpegs to Bitmaps, decoding them on the decode executor. The bitmap with
+	 *  index mutable_id will be marked as mutable (or set to -1 to have no mutable bitmaps).
 	 */
-	@SuppressWarnings("deprecation")
 	private List<Bitmap> loadBitmaps(List<byte []> jpeg_images, int mutable_id, int inSampleSize) {
 		if( MyDebug.LOG ) {
 			Log.d(TAG, "loadBitmaps");
 			Log.d(TAG, "mutable_id: " + mutable_id);
 		}
-		BitmapFactory.Options mutable_options = new BitmapFactory.Options();
-		mutable_options.inMutable = true; // bitmap that needs to be writable
-		setBitmapOptionsSampleSize(mutable_options, inSampleSize);
-		BitmapFactory.Options options = new BitmapFactory.Options();
-		options.inMutable = false; // later bitmaps don't need to be writable
-		setBitmapOptionsSampleSize(options, inSampleSize);
-		if( Build.VERSION.SDK_INT <= Build.VERSION_CODES.KITKAT ) {
-			// setting is ignored in Android 5 onwards
-			mutable_options.inPurgeable = true;
-			options.inPurgeable = true;
-		}
-		LoadBitmapThread [] threads = new LoadBitmapThread[jpeg_images.size()];
+		List<Future<Bitmap>> futures = new ArrayList<>();
 		for(int i=0;i<jpeg_images.size();i++) {
-			threads[i] = new LoadBitmapThread( i==mutable_id ? mutable_options : options, jpeg_images.get(i) );
+			futures.add(decode_executor.submit(decodeTask(jpeg_images.get(i), i==mutable_id, inSampleSize)));
 		}
-		// start threads
+		// wait for the decodes to complete
 		if( MyDebug.LOG )
-			Log.d(TAG, "start threads");
-		for(int i=0;i<jpeg_images.size();i++) {
-			threads[i].start();
-		}
-		// wait for threads to complete
+			Log.d(TAG, "wait for decodes to complete");
 		boolean ok = true;
+		List<Bitmap> bitmaps = new ArrayList<>();
+		for(int i=0;i<futures.size();i++) {
+			Bitmap bitmap = getDecoded(futures.get(i));
+			if( bitmap == null ) {
+				Log.e(TAG, "failed to decode bitmap: " + i);
+				ok = false;
+			}
+			else {
+				if( MyDebug.LOG )
+					Log.d(TAG, "bitmap " + i + ": " + bitmap + " is mutable? " + bitmap.isMutable());
+			}
+			bitmaps.add(bitmap);
+		}
+		if( MyDebug.LOG )
+			Log.d(TAG, "decodes completed");
+
+		if( !ok ) {
+			if( MyDebug.LOG )
+				Log.d(TAG, "cleanup from failure");
+			for(Bitmap bitmap : bitmaps) {
+				if( bitmap != null ) {
+					bitmap_pool.release(bitmap);
+				}
+			}
+			bitmaps.clear();
+	        return null;
+		}
+
+		return bitmaps;
+	}
+	
+	/** Adds a SaveOutput to the job for each of the JPEG images in request.jpeg_images.
+	 * @param job The job to add the outputs to.
+	 * @param suffix If there is more than one image and first_only is false, the i-th image
+	 *               filename will be appended with (suffix+i).
+	 * @param first_only If true, only add the first image.
+	 * @param update_thumbnail Whether to update the thumbnail and show the animation.
+	 * @param share If true, the median image will be marked as the one to share (for pause preview
+	 *              option).
+	 * @param counts_for_success Whether failing to save these images means the job has failed.
+	 */
+	private void addImageOutputs(SaveJob job, String suffix, boolean first_only, boolean update_thumbnail, boolean share, boolean counts_for_success) {
+		Request request = job.request;
+		int mid_image = request.jpeg_images.size()/2;
+		for(int i=0;i<request.jpeg_images.size();i++) {
+			byte [] image = request.jpeg_images.get(i);
+			boolean multiple_jpegs = request.jpeg_images.size() > 1 && !first_only;
+			String filename_suffix = (multiple_jpegs || request.force_suffix) ? suffix + (i + request.suffix_offset) : "";
+			boolean share_image = share && (i == mid_image);
+			job.outputs.add(new SaveOutput(image, filename_suffix, update_thumbnail, share_image, false, counts_for_success));
+			if( first_only )
+				break; // only requested the first
+		}
+	}
+
+	/** Adds a SaveOutput for the images in request.jpeg_images, depending on the save_base option.
+	 */
+	private void addBaseImageOutputs(SaveJob job, String suffix) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "addBaseImageOutputs");
+		Request request = job.request;
+		if( !request.image_capture_intent && request.save_base != Request.SaveBase.SAVEBASE_NONE ) {
+			if( MyDebug.LOG )
+				Log.d(TAG, "save base images");
+			// don't update the thumbnails, only do this for the final image - so user doesn't think it's complete, click gallery, then wonder why the final image isn't there
+			// also don't mark these images as being shared
+			// and failing to save these doesn't count as failure - as for deciding whether to pause preview or not (which is all we use the success return for), all that matters is whether we saved the final HDR image
+			addImageOutputs(job, suffix, request.save_base == Request.SaveBase.SAVEBASE_FIRST, false, false, false);
+		}
+	}
+
+	/** The decode stage of the save pipeline: works out which images need saving for the request,
+	 *  and prepares any that need to be post-processed. The images themselves are decoded later,
+	 *  by the post-process stage, one at a time (or for HDR and NR, a few at a time as they're
+	 *  merged) to limit memory.
+	 */
+	private void decodeStage(SaveJob job) {
+		Request request = job.request;
+		if( MyDebug.LOG )
+			Log.d(TAG, "decodeStage");
+		if( request.type == Request.Type.RAW ) {
+			// RAW images are written directly in the persist stage
+			return;
+		}
+		else if( request.type != Request.Type.JPEG ) {
+			if( MyDebug.LOG )
+				Log.d(TAG, "decodeStage called with non-jpeg request");
+			// throw runtime exception, as this is a programming error
+			throw new RuntimeException();
+		}
+		else if( request.jpeg_images.size() == 0 && request.jpeg_image == null ) {
+			if( MyDebug.LOG )
+				Log.d(TAG, "decodeStage called with zero images");
+			// throw runtime exception, as this is a programming error
+			throw new RuntimeException();
+		}
+
+		job.raw_only = main_activity.getApplicationInterface().isRawOnly();
+		if( MyDebug.LOG )
+			Log.d(TAG, "raw_only: " + job.raw_only);
+		if( job.raw_only ) {
+			// don't save the JPEG
+			if( request.jpeg_image != null ) {
+				request.jpeg_image.close();
+				request.jpeg_image = null;
+			}
+			return;
+		}
+
+		setSavingImage(true);
+		job.saving_image = true;
+
+		if( request.process_type == Request.ProcessType.AVERAGE ) {
+			addBaseImageOutputs(job, "_");
+			job.outputs.add(new SaveOutput(request.jpeg_images.get(0), "_NR", true, true, true, true));
+		}
+		else if( request.process_type == Request.ProcessType.HDR ) {
+			if( request.jpeg_images.size() > 1 ) {
+				// if there's only 1 image, we're in DRO mode, and shouldn't save the base image
+				// note that in earlier Open Camera versions, we used "_EXP" as the suffix. We now use just "_" from 1.42 onwards, so Google
+				// Photos will group them together. (Unfortunately using "_EXP_" doesn't work, the images aren't grouped!)
+				addBaseImageOutputs(job, "_");
+			}
+			int base_image_id = ((request.jpeg_images.size()-1)/2);
+			if( MyDebug.LOG )
+				Log.d(TAG, "base_image_id: " + base_image_id);
+			String suffix = request.jpeg_images.size() == 1 ? "_DRO" : "_HDR";
+			job.outputs.add(new SaveOutput(request.jpeg_images.get(base_image_id), suffix, true, true, true, true));
+		}
+		else if( request.jpeg_image != null ) {
+			// a single image that doesn't need processing, written by the persist stage straight from the camera's buffer
+			String filename_suffix = request.force_suffix ? "_" + request.suffix_offset : "";
+			SaveOutput output = new SaveOutput(null, filename_suffix, true, true, false, true);
+			output.direct = request.jpeg_image;
+			request.jpeg_image = null;
+			job.outputs.add(output);
+		}
+		else {
+			// see note above how we used to use "_EXP" for the suffix for multiple images
+			//String suffix = "_EXP";
+			String suffix = "_";
+			addImageOutputs(job, suffix, false, true, true, true);
+		}
+
+		boolean post_process = needsPostProcessing(request);
+		boolean lossless = post_process && canTransformLosslessly(request);
+		for(SaveOutput output : job.outputs) {
+			if( output.direct != null ) {
+				// saveImage() only leaves images unprocessed if they don't need post-processing
+				continue;
+			}
+			if( output.is_merged || post_process ) {
+				// either we'll have a bitmap, or will need to decode the bitmap to do post-processing
+				// need to rotate the bitmap according to the exif orientation (which some devices use, e.g., Samsung)
+				// so need to write to a temp file for this - we also use this later on to transfer the exif tags
+				// on Android 7+, we can now read exif tags direct from the jpeg data
+				output.exifTempFile = writeExifTempFile(output.data);
+			}
+			if( !output.is_merged && lossless ) {
+				output.encoded = transformLosslessly(output.data);
+				// if this fails, the post-process stage falls back to decoding the bitmap
+			}
+		}
+	}
+
+	/** The post-process stage of the save pipeline: creates the HDR or NR image if required, then
+	 *  applies auto-stabilise, mirror and photo stamp. Where a request has more than one image to
+	 *  post-process, each is decoded, processed and encoded in turn, so that only one full size
+	 *  bitmap is held at once.
+	 */
+	private void postProcessStage(SaveJob job) {
 		if( MyDebug.LOG )
-			Log.d(TAG, "wait for threads to complete");
+			Log.d(TAG, "postProcessStage");
+		Request request = job.request;
+		if( request.type != Request.Type.JPEG || job.raw_only ) {
+			return;
+		}
+		boolean post_process = needsPostProcessing(request);
+		for(int i=0;i<job.outputs.size();i++) {
+			SaveOutput output = job.outputs.get(i);
+			if( output.direct != null || output.encoded != null ) {
+				// images written as they are, or already transformed losslessly
+				continue;
+			}
+			if( !output.is_merged && post_process ) {
+				// bitmap only needs to be mutable if it's the final bitmap for the photo stamp, otherwise auto-stabilise and
+				// mirror create new bitmaps anyway
+				boolean mutable = !(request.do_auto_stabilise || request.mirror);
+				output.bitmap = loadBitmap(output.data, mutable, 1);
+				if( output.bitmap != null ) {
+					// rotate the bitmap if necessary for exif tags
+					if( MyDebug.LOG )
+						Log.d(TAG, "rotate bitmap for exif tags?");
+					output.bitmap = rotateForExif(output.bitmap, output.data, output.exifTempFile);
+				}
+				// if decoding failed, postProcessBitmap() will try again, and report the failure
+			}
+			else if( output.is_merged ) {
+				if( request.avg_stream != null && !request.avg_stream.waitForImages() ) {
+					// fall back to averaging request.jpeg_images
+					request.avg_stream = null;
+				}
+				// HDRProcessor isn't thread safe, and we don't want more than one set of HDR bitmaps in memory at once
+				synchronized( hdrProcessor ) {
+					if( request.process_type == Request.ProcessType.AVERAGE )
+						output.bitmap = processAvgImage(request);
+					else
+						output.bitmap = processHDRImage(request);
+				}
+				if( output.bitmap == null ) {
+					output.failed = true;
+					continue;
+				}
+				// rotate the bitmap if necessary for exif tags
+				if( MyDebug.LOG )
+					Log.d(TAG, "rotate pre-existing bitmap for exif tags?");
+				output.bitmap = rotateForExif(output.bitmap, output.data, output.exifTempFile);
+			}
+			output.bitmap = postProcessBitmap(request, output.data, output.bitmap, output.exifTempFile);
+			if( output.bitmap != null && i < job.outputs.size()-1 ) {
+				// encode now rather than in the encode stage, so the bitmap is freed before we decode the next image
+				encodeOutput(request, output);
+			}
+		}
+	}
+
+	/** The encode stage of the save pipeline: compresses any bitmaps to jpeg, and creates the
+	 *  thumbnails.
+	 */
+	private void encodeStage(SaveJob job) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "encodeStage");
+		Request request = job.request;
+		if( request.type != Request.Type.JPEG || job.raw_only ) {
+			return;
+		}
+		for(SaveOutput output : job.outputs) {
+			if( !output.encode_done ) {
+				encodeOutput(request, output);
+			}
+		}
+	}
+
+	/** Compresses the output's bitmap (if any) to jpeg, creates its thumbnail, and frees the bitmap.
+	 *  Normally called by the encode stage, but also by the post-process stage for requests with
+	 *  more than one image to post-process.
+	 */
+	private void encodeOutput(Request request, SaveOutput output) {
+		output.encode_done = true;
+		boolean parcel_intent = request.image_capture_intent && request.image_capture_intent_uri == null;
+		if( output.failed || parcel_intent ) {
+			// for a capture intent without a uri, the bitmap is returned to the caller in the persist stage
+			return;
+		}
+		if( output.bitmap != null ) {
+			if( MyDebug.LOG )
+				Log.d(TAG, "compress bitmap, quality " + request.image_quality);
+			ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+			output.bitmap.compress(Bitmap.CompressFormat.JPEG, request.image_quality, outputStream);
+			output.encoded = outputStream.toByteArray();
+		}
+		if( output.update_thumbnail ) {
+			// create the thumbnail now, rather than holding up the persist stage - this also means the
+			// persist stage doesn't need a saved file to decode the thumbnail from
+			if( output.bitmap == null && output.encoded != null )
+				output.thumbnail = createThumbnail(request, output.encoded, null, null); // transformed losslessly
+			else if( output.bitmap != null || output.data != null )
+				output.thumbnail = createThumbnail(request, output.data, output.bitmap, output.exifTempFile);
+			else if( output.direct != null )
+				output.thumbnail = createThumbnail(request, output.direct);
+		}
+		if( output.bitmap != null ) {
+			bitmap_pool.release(output.bitmap);
+			output.bitmap = null;
+		}
+	}
+
+	/** The metadata stage of the save pipeline: prepares the exif tags for any re-encoded images
+	 *  (transferred from the original jpeg data), and for any images whose exif tags need changing.
+	 *  The persist stage then writes these out with the image in a single pass, see JpegExifWriter.
+	 *  If the exif tags can't be parsed, we fall back to ExifInterface, which can only modify the file
+	 *  once it's been saved.
+	 */
+	private void metadataStage(SaveJob job) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "metadataStage");
+		Request request = job.request;
+		if( request.type != Request.Type.JPEG || job.raw_only ) {
+			return;
+		}
+		for(SaveOutput output : job.outputs) {
+			if( output.encoded != null ) {
+				output.exif_writer = readExifWriter(output.data, null);
+				if( output.exif_writer != null ) {
+					output.exif_writer.retainTransferTags();
+					// the image was rotated to account for the orientation
+					output.exif_writer.setShort(JpegExifWriter.IFD_0, JpegExifWriter.TAG_ORIENTATION, JpegExifWriter.ORIENTATION_NORMAL);
+					modifyExif(output.exif_writer, request);
+					output.exif_writer = checkExifWriter(output.exif_writer);
+				}
+				if( output.exif_writer == null ) {
+					output.exif_source = readExifSource(output.data, output.exifTempFile);
+				}
+			}
+			else if( needsExifUpdate(request) ) {
+				output.exif_writer = readExifWriter(output.data, output.direct);
+				if( output.exif_writer != null ) {
+					updateExif(request, output.exif_writer);
+					output.exif_writer = checkExifWriter(output.exif_writer);
+				}
+				// if exif_writer is null, the persist stage will fall back to updateExif(Request, File)
+			}
+		}
+	}
+
+	/** Reads the exif tags from the jpeg data, or from direct if non-null.
+	 * @return The exif tags, or null if they couldn't be read.
+	 */
+	private static JpegExifWriter readExifWriter(byte [] data, JpegImage direct) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "readExifWriter");
 		try {
-			for(int i=0;i<jpeg_images.size();i++) {
-				threads[i].join();
+			if( direct != null ) {
+				return direct.read(new JpegImage.Reader<JpegExifWriter>() {
+					@Override
+					public JpegExifWriter read(ByteBuffer data) throws IOException {
+						return JpegExifWriter.read(data);
+					}
+				});
 			}
+			return JpegExifWriter.read(data);
 		}
-		catch(InterruptedException e) {
+		catch(IOException e) {
+			if( MyDebug.LOG )
+				Log.e(TAG, "failed to read exif tags: " + e.getMessage());
+			e.printStackTrace();
+		}
+		return null;
+	}
+
+	/** Checks that the exif tags can be written out (they may be too large for a single jpeg segment).
+	 * @return The supplied exif_writer, or null if it can't be used.
+	 */
+	private static JpegExifWriter checkExifWriter(JpegExifWriter exif_writer) {
+		try {
+			exif_writer.getSegment();
+			return exif_writer;
+		}
+		catch(IOException e) {
 			if( MyDebug.LOG )
-				Log.e(TAG, "threads interrupted");
+				Log.e(TAG, "can't write exif tags: " + e.getMessage());
 			e.printStackTrace();
-			ok = false;
 		}
+		return null;
+	}
+
+	/** The persist stage of the save pipeline: writes the images to storage. There is only ever one
+	 *  worker for this stage, and jobs arrive in the order they were requested, so filenames and
+	 *  thumbnails are in the order photos were taken.
+	 */
+	private void persistStage(SaveJob job) {
 		if( MyDebug.LOG )
-			Log.d(TAG, "threads completed");
+			Log.d(TAG, "persistStage");
+		Request request = job.request;
+		if( request.type == Request.Type.RAW ) {
+			job.success = saveImageNowRaw(request);
+			return;
+		}
+		else if( job.raw_only ) {
+			// no saved image to record
+			job.success = true;
+			return;
+		}
 
-		List<Bitmap> bitmaps = new ArrayList<>();
-		for(int i=0;i<jpeg_images.size() && ok;i++) {
-			Bitmap bitmap = threads[i].bitmap;
-			if( bitmap == null ) {
-				Log.e(TAG, "failed to decode bitmap in thread: " + i);
-				ok = false;
+		boolean success = true;
+		for(SaveOutput output : job.outputs) {
+			// note, even if one image fails, we still try saving the other images - might as well give the user as many images as we can...
+			boolean output_success = !output.failed && persistOutput(request, output);
+			if( !output_success && output.counts_for_success ) {
+				if( MyDebug.LOG )
+					Log.e(TAG, "failed to save image with suffix: " + output.filename_suffix);
+				success = false;
+			}
+			output.recycle(bitmap_pool);
+		}
+		job.outputs.clear();
+        System.gc();
+
+		if( job.saving_image ) {
+			setSavingImage(false);
+			job.saving_image = false;
+		}
+		job.success = success;
+	}
+
+	/** Creates the HDR (or DRO) image for the request, decoding the images in request.jpeg_images.
+	 * @return The HDR bitmap, or null if it couldn't be created.
+	 */
+	private Bitmap processHDRImage(final Request request) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "create HDR image");
+    	long time_s = System.currentTimeMillis();
+
+		if( request.jpeg_images.size() > 1 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && main_activity.getApplicationInterface().isHDRExposureFusionPref() ) {
+			return processHDRImageExposureFusion(request, time_s);
+		}
+
+		if( request.jpeg_images.size() > 3 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ) {
+			// for larger brackets, decode and merge the images one at a time, rather than holding them all in memory
+			return processHDRImageStreaming(request, time_s);
+		}
+
+		// see documentation for HDRProcessor.processHDR() - because we're using release_bitmaps==true, we need to make sure that
+		// the bitmap that will hold the output HDR image is mutable (in case of options like photo stamp)
+		// see test testTakePhotoHDRPhotoStamp.
+		int base_bitmap = (request.jpeg_images.size()-1)/2;
+		if( MyDebug.LOG )
+			Log.d(TAG, "base_bitmap: " + base_bitmap);
+		List<Bitmap> bitmaps = loadBitmaps(request.jpeg_images, base_bitmap, 1);
+		if( bitmaps == null ) {
+			if( MyDebug.LOG )
+				Log.e(TAG, "failed to load bitmaps");
+	        return null;
+		}
+		if( MyDebug.LOG ) {
+			Log.d(TAG, "HDR performance: time after decompressing base exposures: " + (System.currentTimeMillis() - time_s));
+		}
+		if( MyDebug.LOG )
+			Log.d(TAG, "before HDR first bitmap: " + bitmaps.get(0) + " is mutable? " + bitmaps.get(0).isMutable());
+		try {
+			if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ) {
+				hdrProcessor.processHDR(bitmaps, true, null, true, null, 0.5f, 4, HDRProcessor.TonemappingAlgorithm.TONEMAPALGORITHM_REINHARD); // this will recycle all the bitmaps except bitmaps.get(0), which will contain the hdr image
+			}
+			else {
+				Log.e(TAG, "shouldn't have offered HDR as an option if not on Android 5");
+				throw new RuntimeException();
+			}
+		}
+		catch(HDRProcessorException e) {
+			Log.e(TAG, "HDRProcessorException from processHDR: " + e.getCode());
+			e.printStackTrace();
+			if( e.getCode() == HDRProcessorException.UNEQUAL_SIZES ) {
+				// this can happen on OnePlus 3T with old camera API with front camera, seems to be a bug that resolution changes when exposure compensation is set!
+				main_activity.getPreview().showToast(null, R.string.failed_to_process_hdr);
+				Log.e(TAG, "UNEQUAL_SIZES");
+				for(Bitmap bitmap : bitmaps) {
+					bitmap_pool.release(bitmap);
+				}
+				bitmaps.clear();
+		        return null;
+			}
+			else {
+				// throw RuntimeException, as we shouldn't ever get the error INVALID_N_IMAGES, if we do it's a programming error
+				throw new RuntimeException();
+			}
+		}
+		if( MyDebug.LOG ) {
+			Log.d(TAG, "HDR performance: time after creating HDR image: " + (System.currentTimeMillis() - time_s));
+		}
+		Bitmap hdr_bitmap = bitmaps.get(0);
+		if( MyDebug.LOG )
+			Log.d(TAG, "hdr_bitmap: " + hdr_bitmap + " is mutable? " + hdr_bitmap.isMutable());
+		bitmaps.clear();
+        System.gc();
+		return hdr_bitmap;
+	}
+
+	/** As processHDRImage(), but uses HDRProcessor.processExposureFusion().
+	 */
+	@RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+	private Bitmap processHDRImageExposureFusion(final Request request, final long time_s) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "create HDR image, exposure fusion");
+		// the base bitmap will hold the output (see processHDRImage()); note that for an even number of images,
+		// processExposureFusion() uses the brighter of the two middle images
+		int base_bitmap = request.jpeg_images.size()/2;
+		List<Bitmap> bitmaps = loadBitmaps(request.jpeg_images, base_bitmap, 1);
+		if( bitmaps == null ) {
+			if( MyDebug.LOG )
+				Log.e(TAG, "failed to load bitmaps");
+	        return null;
+		}
+		if( MyDebug.LOG )
+			Log.d(TAG, "HDR performance: time after decompressing base exposures: " + (System.currentTimeMillis() - time_s));
+		try {
+			hdrProcessor.processExposureFusion(bitmaps, true, null, true, null, 0.5f, 4); // this will recycle all the bitmaps except bitmaps.get(0), which will contain the hdr image
+		}
+		catch(HDRProcessorException e) {
+			Log.e(TAG, "HDRProcessorException from processExposureFusion: " + e.getCode());
+			e.printStackTrace();
+			if( e.getCode() == HDRProcessorException.UNEQUAL_SIZES ) {
+				// see processHDRImage()
+				main_activity.getPreview().showToast(null, R.string.failed_to_process_hdr);
+				Log.e(TAG, "UNEQUAL_SIZES");
+				for(Bitmap bitmap : bitmaps) {
+					bitmap_pool.release(bitmap);
+				}
+				bitmaps.clear();
+		        return null;
+			}
+			else {
+				// throw RuntimeException, as we shouldn't ever get the error INVALID_N_IMAGES, if we do it's a programming error
+				throw new RuntimeException();
+			}
+		}
+		Bitmap hdr_bitmap = bitmaps.get(0);
+		if( MyDebug.LOG ) {
+			Log.d(TAG, "HDR performance: time after creating HDR image: " + (System.currentTimeMillis() - time_s));
+			Log.d(TAG, "hdr_bitmap: " + hdr_bitmap + " is mutable? " + hdr_bitmap.isMutable());
+		}
+		bitmaps.clear();
+        System.gc();
+		return hdr_bitmap;
+	}
+
+	/** As processHDRImage(), but uses HDRProcessor.processHDRStreaming(), so that each image is only
+	 *  decoded when the HDRProcessor needs it.
+	 */
+	@RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+	private Bitmap processHDRImageStreaming(final Request request, final long time_s) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "create HDR image, streaming");
+		Bitmap hdr_bitmap;
+		try {
+			hdr_bitmap = hdrProcessor.processHDRStreaming(request.jpeg_images.size(), new HDRProcessor.BitmapProvider() {
+				private boolean first = true;
+
+				@Override
+				public Bitmap getBitmap(int index) {
+					// the first bitmap requested is the base image, which will hold the HDR image, so needs to be mutable (see processHDRImage())
+					Bitmap bitmap = loadBitmap(request.jpeg_images.get(index), first, 1);
+					first = false;
+					if( MyDebug.LOG )
+						Log.d(TAG, "HDR performance: time after decompressing image " + index + ": " + (System.currentTimeMillis() - time_s));
+					return bitmap;
+				}
+			}, 0.5f, 4, HDRProcessor.TonemappingAlgorithm.TONEMAPALGORITHM_REINHARD);
+		}
+		catch(HDRProcessorException e) {
+			Log.e(TAG, "HDRProcessorException from processHDRStreaming: " + e.getCode());
+			e.printStackTrace();
+			if( e.getCode() == HDRProcessorException.UNEQUAL_SIZES ) {
+				// see processHDRImage(); the HDRProcessor has already released the bitmaps
+				main_activity.getPreview().showToast(null, R.string.failed_to_process_hdr);
+				Log.e(TAG, "UNEQUAL_SIZES");
+		        return null;
 			}
 			else {
-				if( MyDebug.LOG )
-					Log.d(TAG, "bitmap " + i + ": " + bitmap + " is mutable? " + bitmap.isMutable());
+				// throw RuntimeException, as we shouldn't ever get the error INVALID_N_IMAGES, if we do it's a programming error
+				throw new RuntimeException();
 			}
-			bitmaps.add(bitmap);
 		}
-		
-		if( !ok ) {
+		if( hdr_bitmap == null ) {
 			if( MyDebug.LOG )
-				Log.d(TAG, "cleanup from failure");
-			for(int i=0;i<jpeg_images.size();i++) {
-				if( threads[i].bitmap != null ) {
-					threads[i].bitmap.recycle();
-					threads[i].bitmap = null;
-				}
-			}
-			bitmaps.clear();
-	        System.gc();
+				Log.e(TAG, "failed to load bitmaps");
 	        return null;
 		}
-
-		return bitmaps;
+		if( MyDebug.LOG ) {
+			Log.d(TAG, "HDR performance: time after creating HDR image: " + (System.currentTimeMillis() - time_s));
+			Log.d(TAG, "hdr_bitmap: " + hdr_bitmap + " is mutable? " + hdr_bitmap.isMutable());
+		}
+        System.gc();
+		return hdr_bitmap;
 	}
-	
-	/** May be run in saver thread or picture callback thread (depending on whether running in background).
+
+	/** Creates the noise reduction image for the request, by averaging the images in
+	 *  request.jpeg_images, or from request.avg_stream if they've already been averaged.
 	 */
-	private boolean saveImageNow(final Request request) {
+	private Bitmap processAvgImage(final Request request) {
 		if( MyDebug.LOG )
-			Log.d(TAG, "saveImageNow");
+			Log.d(TAG, "average");
 
-		if( request.type != Request.Type.JPEG ) {
-			if( MyDebug.LOG )
-				Log.d(TAG, "saveImageNow called with non-jpeg request");
-			// throw runtime exception, as this is a programming error
-			throw new RuntimeException();
-		}
-		else if( request.jpeg_images.size() == 0 ) {
-			if( MyDebug.LOG )
-				Log.d(TAG, "saveImageNow called with zero images");
-			// throw runtime exception, as this is a programming error
-			throw new RuntimeException();
+		Bitmap nr_bitmap;
+		if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && request.avg_stream != null ) {
+			long time_s = System.currentTimeMillis();
+			nr_bitmap = request.avg_stream.brighten();
+			request.avg_stream = null;
+			if( MyDebug.LOG ) {
+				Log.d(TAG, "*** time for brighten streamed average: " + (System.currentTimeMillis() - time_s));
+			}
 		}
-
-		boolean success;
-		if( request.process_type == Request.ProcessType.AVERAGE ) {
-			if( MyDebug.LOG )
-				Log.d(TAG, "average");
-
-			saveBaseImages(request, "_");
-			main_activity.savingImage(true);
-
-			/*List<Bitmap> bitmaps = loadBitmaps(request.jpeg_images, 0);
-			if (bitmaps == null) {
-				if (MyDebug.LOG)
-					Log.e(TAG, "failed to load bitmaps");
-				main_activity.savingImage(false);
-				return false;
-			}*/
-			/*Bitmap nr_bitmap = loadBitmap(request.jpeg_images.get(0), true);
-
-			if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ) {
-				try {
-					for(int i = 1; i < request.jpeg_images.size(); i++) {
-						Log.d(TAG, "processAvg for image: " + i);
-						Bitmap new_bitmap = loadBitmap(request.jpeg_images.get(i), false);
-						float avg_factor = (float) i;
-						hdrProcessor.processAvg(nr_bitmap, new_bitmap, avg_factor, true);
-						// processAvg recycles new_bitmap
-					}
-					//hdrProcessor.processAvgMulti(bitmaps, hdr_strength, 4);
-					//hdrProcessor.avgBrighten(nr_bitmap);
+		else if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ) {
+			try {
+				long time_s = System.currentTimeMillis();
+				// initialise image from first two bitmaps
+				//int inSampleSize = hdrProcessor.getAvgSampleSize(request.jpeg_images.size());
+				int inSampleSize = hdrProcessor.getAvgSampleSize(request.iso);
+				// Decode the images on the decode executor, but only keep a limited number in flight at once: e.g., storing
+				// 4 16MP bitmaps takes 256MB of heap (NR requires at least 512MB large heap). Images after the first two are
+				// averaged in the order they finish decoding, so we don't wait for the slowest one.
+				final int n_images = request.jpeg_images.size();
+				final int max_in_flight = avg_n_smp_images_c;
+				long this_time_s = System.currentTimeMillis();
+				Future<Bitmap> future0 = decode_executor.submit(decodeTask(request.jpeg_images.get(0), false, inSampleSize));
+				Future<Bitmap> future1 = decode_executor.submit(decodeTask(request.jpeg_images.get(1), false, inSampleSize));
+				CompletionService<Bitmap> completion_service = new ExecutorCompletionService<>(decode_executor);
+				int n_submitted = 2;
+				while( n_submitted < n_images && n_submitted < max_in_flight ) {
+					completion_service.submit(decodeTask(request.jpeg_images.get(n_submitted), false, inSampleSize));
+					n_submitted++;
 				}
-				catch(HDRProcessorException e) {
-					e.printStackTrace();
+				Bitmap bitmap0 = getDecoded(future0);
+				Bitmap bitmap1 = getDecoded(future1);
+				if( bitmap0 == null || bitmap1 == null ) {
+					Log.e(TAG, "failed to decode first bitmaps");
 					throw new RuntimeException();
 				}
-			}
-			else {
-				Log.e(TAG, "shouldn't have offered NoiseReduction as an option if not on Android 5");
-				throw new RuntimeException();
-			}*/
-			Bitmap nr_bitmap;
-			if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ) {
-				try {
-					long time_s = System.currentTimeMillis();
-					// initialise allocation from first two bitmaps
-					//int inSampleSize = hdrProcessor.getAvgSampleSize(request.jpeg_images.size());
-					int inSampleSize = hdrProcessor.getAvgSampleSize(request.iso);
-					//final boolean use_smp = false;
-					final boolean use_smp = true;
-					// n_smp_images is how many bitmaps to decompress at once if use_smp==true. Beware of setting too high -
-					// e.g., storing 4 16MP bitmaps takes 256MB of heap (NR requires at least 512MB large heap); also need to make
-					// sure there isn't a knock on effect on performance
-					//final int n_smp_images = 2;
-					final int n_smp_images = 4;
-					long this_time_s = System.currentTimeMillis();
-					List<Bitmap> bitmaps = null;
-					Bitmap bitmap0, bitmap1;
-					if( use_smp ) {
-						/*List<byte []> sub_jpeg_list = new ArrayList<>();
-						sub_jpeg_list.add(request.jpeg_images.get(0));
-						sub_jpeg_list.add(request.jpeg_images.get(1));
-						bitmaps = loadBitmaps(sub_jpeg_list, -1, inSampleSize);
-						bitmap0 = bitmaps.get(0);
-						bitmap1 = bitmaps.get(1);*/
-						int n_remaining = request.jpeg_images.size();
-						int n_load = Math.min(n_smp_images, n_remaining);
-						if( MyDebug.LOG ) {
-							Log.d(TAG, "n_remaining: " + n_remaining);
-							Log.d(TAG, "n_load: " + n_load);
-						}
-						List<byte []> sub_jpeg_list = new ArrayList<>();
-						for(int j=0;j<n_load;j++) {
-							sub_jpeg_list.add(request.jpeg_images.get(j));
-						}
-						bitmaps = loadBitmaps(sub_jpeg_list, -1, inSampleSize);
-						if( MyDebug.LOG )
-							Log.d(TAG, "length of bitmaps list is now: " + bitmaps.size());
-						bitmap0 = bitmaps.get(0);
-						bitmap1 = bitmaps.get(1);
-					}
-					else {
-						bitmap0 = loadBitmap(request.jpeg_images.get(0), false, inSampleSize);
-						bitmap1 = loadBitmap(request.jpeg_images.get(1), false, inSampleSize);
+				if( MyDebug.LOG ) {
+					Log.d(TAG, "*** time for loading first bitmaps: " + (System.currentTimeMillis() - this_time_s));
+				}
+				int width = bitmap0.getWidth();
+				int height = bitmap0.getHeight();
+				float avg_factor = 1.0f;
+				this_time_s = System.currentTimeMillis();
+				HDRProcessor.AvgData avg_data = hdrProcessor.processAvg(bitmap0, bitmap1, avg_factor, request.iso);
+				if( MyDebug.LOG ) {
+					Log.d(TAG, "*** time for processing first two bitmaps: " + (System.currentTimeMillis() - this_time_s));
+				}
+				int n_avg = 2; // number of images averaged so far
+				for(int i=2;i<n_images;i++) {
+					this_time_s = System.currentTimeMillis();
+					Bitmap new_bitmap;
+					try {
+						new_bitmap = getDecoded(completion_service.take());
 					}
-					if( MyDebug.LOG ) {
-						Log.d(TAG, "*** time for loading first bitmaps: " + (System.currentTimeMillis() - this_time_s));
+					catch(InterruptedException e) {
+						Log.e(TAG, "interrupted waiting for decode");
+						e.printStackTrace();
+						Thread.currentThread().interrupt();
+						throw new RuntimeException();
 					}
-					int width = bitmap0.getWidth();
-					int height = bitmap0.getHeight();
-					float avg_factor = 1.0f;
-					this_time_s = System.currentTimeMillis();
-					HDRProcessor.AvgData avg_data = hdrProcessor.processAvg(bitmap0, bitmap1, avg_factor, request.iso);
-					if( bitmaps != null ) {
-						bitmaps.set(0, null);
-						bitmaps.set(1, null);
+					if( n_submitted < n_images ) {
+						// keep the decode executor busy while we process this image
+						completion_service.submit(decodeTask(request.jpeg_images.get(n_submitted), false, inSampleSize));
+						n_submitted++;
 					}
 					if( MyDebug.LOG ) {
-						Log.d(TAG, "*** time for processing first two bitmaps: " + (System.currentTimeMillis() - this_time_s));
+						Log.d(TAG, "*** time for loading extra bitmap: " + (System.currentTimeMillis() - this_time_s));
 					}
-					Allocation allocation = avg_data.allocation_out;
-
-					for(int i=2;i<request.jpeg_images.size();i++) {
-						if( MyDebug.LOG )
-							Log.d(TAG, "processAvg for image: " + i);
-
-						this_time_s = System.currentTimeMillis();
-						Bitmap new_bitmap;
-						if( use_smp ) {
-							// check if we already loaded the bitmap
-							if( MyDebug.LOG )
-								Log.d(TAG, "length of bitmaps list: " + bitmaps.size());
-							if( i < bitmaps.size() ) {
-								if( MyDebug.LOG ) {
-									Log.d(TAG, "already loaded bitmap from previous iteration with SMP");
-								}
-								new_bitmap = bitmaps.get(i);
-							}
-							else {
-								int n_remaining = request.jpeg_images.size() - i;
-								int n_load = Math.min(n_smp_images, n_remaining);
-								if( MyDebug.LOG ) {
-									Log.d(TAG, "n_remaining: " + n_remaining);
-									Log.d(TAG, "n_load: " + n_load);
-								}
-								List<byte []> sub_jpeg_list = new ArrayList<>();
-								for(int j=i;j<i+n_load;j++) {
-									sub_jpeg_list.add(request.jpeg_images.get(j));
-								}
-								List<Bitmap> new_bitmaps = loadBitmaps(sub_jpeg_list, -1, inSampleSize);
-								bitmaps.addAll(new_bitmaps);
-								if( MyDebug.LOG )
-									Log.d(TAG, "length of bitmaps list is now: " + bitmaps.size());
-								new_bitmap = bitmaps.get(i);
-							}
-						}
-						else {
-							new_bitmap = loadBitmap(request.jpeg_images.get(i), false, inSampleSize);
-						}
-						if( MyDebug.LOG ) {
-							Log.d(TAG, "*** time for loading extra bitmap: " + (System.currentTimeMillis() - this_time_s));
-						}
-						avg_factor = (float)i;
-						this_time_s = System.currentTimeMillis();
-						hdrProcessor.updateAvg(avg_data, width, height, new_bitmap, avg_factor, request.iso);
-						// updateAvg recycles new_bitmap
-						if( bitmaps != null ) {
-							bitmaps.set(i, null);
-						}
-						if( MyDebug.LOG ) {
-							Log.d(TAG, "*** time for updating extra bitmap: " + (System.currentTimeMillis() - this_time_s));
-						}
+					if( new_bitmap == null ) {
+						// might as well still save the average of the other images
+						Log.e(TAG, "failed to decode bitmap, skip");
+						continue;
 					}
-
+					if( MyDebug.LOG )
+						Log.d(TAG, "processAvg for image: " + n_avg);
+					avg_factor = (float)n_avg;
 					this_time_s = System.currentTimeMillis();
-					nr_bitmap = hdrProcessor.avgBrighten(allocation, width, height, request.iso);
-					if( MyDebug.LOG ) {
-						Log.d(TAG, "*** time for brighten: " + (System.currentTimeMillis() - this_time_s));
-					}
-					avg_data.destroy();
-					avg_data = null;
+					hdrProcessor.updateAvg(avg_data, width, height, new_bitmap, avg_factor, request.iso);
+					// updateAvg releases new_bitmap
+					n_avg++;
 					if( MyDebug.LOG ) {
-						Log.d(TAG, "*** total time for saving NR image: " + (System.currentTimeMillis() - time_s));
+						Log.d(TAG, "*** time for updating extra bitmap: " + (System.currentTimeMillis() - this_time_s));
 					}
 				}
-				catch(HDRProcessorException e) {
-					e.printStackTrace();
-					throw new RuntimeException();
-				}
-			}
-			else {
-				Log.e(TAG, "shouldn't have offered NoiseReduction as an option if not on Android 5");
-				throw new RuntimeException();
-			}
-
-			if( MyDebug.LOG )
-				Log.d(TAG, "nr_bitmap: " + nr_bitmap + " is mutable? " + nr_bitmap.isMutable());
-	        System.gc();
-			main_activity.savingImage(false);
-
-			if( MyDebug.LOG )
-				Log.d(TAG, "save NR image");
-			String suffix = "_NR";
-			success = saveSingleImageNow(request, request.jpeg_images.get(0), nr_bitmap, suffix, true, true);
-			if( MyDebug.LOG && !success )
-				Log.e(TAG, "saveSingleImageNow failed for nr image");
-			nr_bitmap.recycle();
-	        System.gc();
-		}
-		else if( request.process_type == Request.ProcessType.HDR ) {
-			if( MyDebug.LOG )
-				Log.d(TAG, "hdr");
-			if( request.jpeg_images.size() != 1 && request.jpeg_images.size() != 3 ) {
-				if( MyDebug.LOG )
-					Log.d(TAG, "saveImageNow expected either 1 or 3 images for hdr, not " + request.jpeg_images.size());
-				// throw runtime exception, as this is a programming error
-				throw new RuntimeException();
-			}
 
-        	long time_s = System.currentTimeMillis();
-			if( request.jpeg_images.size() > 1 ) {
-				// if there's only 1 image, we're in DRO mode, and shouldn't save the base image
-				// note that in earlier Open Camera versions, we used "_EXP" as the suffix. We now use just "_" from 1.42 onwards, so Google
-				// Photos will group them together. (Unfortunately using "_EXP_" doesn't work, the images aren't grouped!)
-				saveBaseImages(request, "_");
+				this_time_s = System.currentTimeMillis();
+				nr_bitmap = hdrProcessor.avgBrighten(avg_data, width, height, request.iso);
 				if( MyDebug.LOG ) {
-					Log.d(TAG, "HDR performance: time after saving base exposures: " + (System.currentTimeMillis() - time_s));
-				}
-			}
-
-			// note, even if we failed saving some of the expo images, still try to save the HDR image
-			if( MyDebug.LOG )
-				Log.d(TAG, "create HDR image");
-			main_activity.savingImage(true);
-
-			// see documentation for HDRProcessor.processHDR() - because we're using release_bitmaps==true, we need to make sure that
-			// the bitmap that will hold the output HDR image is mutable (in case of options like photo stamp)
-			// see test testTakePhotoHDRPhotoStamp.
-			int base_bitmap = (request.jpeg_images.size()-1)/2;
-			if( MyDebug.LOG )
-				Log.d(TAG, "base_bitmap: " + base_bitmap);
-			List<Bitmap> bitmaps = loadBitmaps(request.jpeg_images, base_bitmap, 1);
-			if( bitmaps == null ) {
-				if( MyDebug.LOG )
-					Log.e(TAG, "failed to load bitmaps");
-				main_activity.savingImage(false);
-		        return false;
-			}
-    		if( MyDebug.LOG ) {
-    			Log.d(TAG, "HDR performance: time after decompressing base exposures: " + (System.currentTimeMillis() - time_s));
-    		}
-			if( MyDebug.LOG )
-				Log.d(TAG, "before HDR first bitmap: " + bitmaps.get(0) + " is mutable? " + bitmaps.get(0).isMutable());
-			try {
-				if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ) {
-					hdrProcessor.processHDR(bitmaps, true, null, true, null, 0.5f, 4, HDRProcessor.TonemappingAlgorithm.TONEMAPALGORITHM_REINHARD); // this will recycle all the bitmaps except bitmaps.get(0), which will contain the hdr image
+					Log.d(TAG, "*** time for brighten: " + (System.currentTimeMillis() - this_time_s));
 				}
-				else {
-					Log.e(TAG, "shouldn't have offered HDR as an option if not on Android 5");
-					throw new RuntimeException();
+				avg_data.destroy();
+				avg_data = null;
+				if( MyDebug.LOG ) {
+					Log.d(TAG, "*** total time for saving NR image: " + (System.currentTimeMillis() - time_s));
 				}
 			}
 			catch(HDRProcessorException e) {
-				Log.e(TAG, "HDRProcessorException from processHDR: " + e.getCode());
 				e.printStackTrace();
-				if( e.getCode() == HDRProcessorException.UNEQUAL_SIZES ) {
-					// this can happen on OnePlus 3T with old camera API with front camera, seems to be a bug that resolution changes when exposure compensation is set!
-					main_activity.getPreview().showToast(null, R.string.failed_to_process_hdr);
-					Log.e(TAG, "UNEQUAL_SIZES");
-					bitmaps.clear();
-					System.gc();
-					main_activity.savingImage(false);
-			        return false;
-				}
-				else {
-					// throw RuntimeException, as we shouldn't ever get the error INVALID_N_IMAGES, if we do it's a programming error
-					throw new RuntimeException();
-				}
+				throw new RuntimeException();
 			}
-			if( MyDebug.LOG ) {
-    			Log.d(TAG, "HDR performance: time after creating HDR image: " + (System.currentTimeMillis() - time_s));
-    		}
-			if( MyDebug.LOG )
-				Log.d(TAG, "after HDR first bitmap: " + bitmaps.get(0) + " is mutable? " + bitmaps.get(0).isMutable());
-			Bitmap hdr_bitmap = bitmaps.get(0);
-			if( MyDebug.LOG )
-				Log.d(TAG, "hdr_bitmap: " + hdr_bitmap + " is mutable? " + hdr_bitmap.isMutable());
-			bitmaps.clear();
-	        System.gc();
-			main_activity.savingImage(false);
-
-			if( MyDebug.LOG )
-				Log.d(TAG, "save HDR image");
-			int base_image_id = ((request.jpeg_images.size()-1)/2);
-			if( MyDebug.LOG )
-				Log.d(TAG, "base_image_id: " + base_image_id);
-			String suffix = request.jpeg_images.size() == 1 ? "_DRO" : "_HDR";
-			success = saveSingleImageNow(request, request.jpeg_images.get(base_image_id), hdr_bitmap, suffix, true, true);
-			if( MyDebug.LOG && !success )
-				Log.e(TAG, "saveSingleImageNow failed for hdr image");
-    		if( MyDebug.LOG ) {
-    			Log.d(TAG, "HDR performance: time after saving HDR image: " + (System.currentTimeMillis() - time_s));
-    		}
-			hdr_bitmap.recycle();
-	        System.gc();
 		}
 		else {
-			// see note above how we used to use "_EXP" for the suffix for multiple images
-			//String suffix = "_EXP";
-			String suffix = "_";
-			success = saveImages(request, suffix, false, true, true);
+			Log.e(TAG, "shouldn't have offered NoiseReduction as an option if not on Android 5");
+			throw new RuntimeException();
 		}
 
-		return success;
-	}
-
-	/** Saves all the JPEG images in request.jpeg_images.
-	 * @param request The request to save.
-	 * @param suffix If there is more than one image and first_only is false, the i-th image
-	 *               filename will be appended with (suffix+i).
-	 * @param first_only If true, only save the first image.
-	 * @param update_thumbnail Whether to update the thumbnail and show the animation.
-	 * @param share If true, the median image will be marked as the one to share (for pause preview
-	 *              option).
-	 * @return Whether all images were successfully saved.
-	 */
-	private boolean saveImages(Request request, String suffix, boolean first_only, boolean update_thumbnail, boolean share) {
-		boolean success = true;
-		int mid_image = request.jpeg_images.size()/2;
-		for(int i=0;i<request.jpeg_images.size();i++) {
-			// note, even if one image fails, we still try saving the other images - might as well give the user as many images as we can...
-			byte [] image = request.jpeg_images.get(i);
-			boolean multiple_jpegs = request.jpeg_images.size() > 1 && !first_only;
-			String filename_suffix = (multiple_jpegs || request.force_suffix) ? suffix + (i + request.suffix_offset) : "";
-			boolean share_image = share && (i == mid_image);
-			if( !saveSingleImageNow(request, image, null, filename_suffix, update_thumbnail, share_image) ) {
-				if( MyDebug.LOG )
-					Log.e(TAG, "saveSingleImageNow failed for image: " + i);
-				success = false;
-			}
-			if( first_only )
-				break; // only requested the first
-		}
-		return success;
+		if( MyDebug.LOG )
+			Log.d(TAG, "nr_bitmap: " + nr_bitmap + " is mutable? " + nr_bitmap.isMutable());
+        System.gc();
+		return nr_bitmap;
 	}
 
-	/** Saves all the images in request.jpeg_images, depending on the save_base option.
+	/** Processes and saves a JPEG request on the current thread, by running it through each stage of
+	 *  the save pipeline in turn.
+	 *  May be run in saver thread or picture callback thread (depending on whether running in background).
 	 */
-	private void saveBaseImages(Request request, String suffix) {
+	private boolean saveImageNow(final Request request) {
 		if( MyDebug.LOG )
-			Log.d(TAG, "saveBaseImages");
-		if( !request.image_capture_intent && request.save_base != Request.SaveBase.SAVEBASE_NONE ) {
+			Log.d(TAG, "saveImageNow");
+
+		if( request.type != Request.Type.JPEG ) {
 			if( MyDebug.LOG )
-				Log.d(TAG, "save base images");
-			// don't update the thumbnails, only do this for the final image - so user doesn't think it's complete, click gallery, then wonder why the final image isn't there
-			// also don't mark these images as being shared
-			saveImages(request, suffix, request.save_base == Request.SaveBase.SAVEBASE_FIRST, false, false);
-			// ignore return of saveImages - as for deciding whether to pause preview or not (which is all we use the success return for), all that matters is whether we saved the final HDR image
+				Log.d(TAG, "saveImageNow called with non-jpeg request");
+			// throw runtime exception, as this is a programming error
+			throw new RuntimeException();
 		}
+		SaveJob job = new SaveJob(request);
+		pipeline.processNow(job);
+		return job.success;
 	}
 
 	/** Performs the auto-stabilise algorithm on the image.
@@ -1329,7 +2620,7 @@ public class ImageSaver extends Thread {
 			Bitmap new_bitmap = Bitmap.createBitmap(bitmap, 0, 0, width, height, matrix, true);
 			// careful, as new_bitmap is sometimes not a copy!
 			if( new_bitmap != bitmap ) {
-				bitmap.recycle();
+				bitmap_pool.release(bitmap);
 				bitmap = new_bitmap;
 			}
 			System.gc();
@@ -1430,7 +2721,7 @@ public class ImageSaver extends Thread {
 			Bitmap new_bitmap = Bitmap.createBitmap(bitmap, 0, 0, width, height, matrix, true);
 			// careful, as new_bitmap is sometimes not a copy!
 			if( new_bitmap != bitmap ) {
-				bitmap.recycle();
+				bitmap_pool.release(bitmap);
 				bitmap = new_bitmap;
 			}
 			if( MyDebug.LOG )
@@ -1489,6 +2780,9 @@ public class ImageSaver extends Thread {
 					Log.d(TAG, "bitmap size: " + width*height*4);
 				}
 				Canvas canvas = new Canvas(bitmap);
+				// use a new Paint each time, as images may be stamped by several post-process workers at once
+				Paint p = new Paint();
+				p.setAntiAlias(true);
 				p.setColor(Color.WHITE);
 				// we don't use the density of the screen, because we're stamping to the image, not drawing on the screen (we don't want the font height to depend on the device's resolution)
 				// instead we go by 1 pt == 1/72 inch height, and scale for an image height (or width if in portrait) of 4" (this means the font height is also independent of the photo resolution)
@@ -1545,141 +2839,364 @@ public class ImageSaver extends Thread {
 						ypos -= diff_y;
 					}
 				}
-				if( text_stamp ) {
-					if( MyDebug.LOG )
-						Log.d(TAG, "stamp text");
-					applicationInterface.drawTextWithBackground(canvas, p, request.preference_textstamp, color, Color.BLACK, width - offset_x, ypos, MyApplicationInterface.Alignment.ALIGNMENT_BOTTOM, null, draw_shadowed);
-					ypos -= diff_y;
+				if( text_stamp ) {
+					if( MyDebug.LOG )
+						Log.d(TAG, "stamp text");
+					applicationInterface.drawTextWithBackground(canvas, p, request.preference_textstamp, color, Color.BLACK, width - offset_x, ypos, MyApplicationInterface.Alignment.ALIGNMENT_BOTTOM, null, draw_shadowed);
+					ypos -= diff_y;
+				}
+			}
+		}
+		return bitmap;
+	}
+
+	/** Performs post-processing (auto-stabilise, mirror, photo stamp) on the data, or bitmap if
+	 *  non-null. Any pre-existing bitmap should already have been rotated according to the exif
+	 *  orientation.
+	 * @param exifTempFile Temporary file that can be used to read exif tags (for orientation), only
+	 *                     needed before Android 7, see writeExifTempFile().
+	 * @return The post-processed bitmap, or null if bitmap was null and no post-processing was
+	 *         needed.
+	 */
+	private Bitmap postProcessBitmap(final Request request, byte [] data, Bitmap bitmap, File exifTempFile) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "postProcessBitmap");
+    	long time_s = System.currentTimeMillis();
+
+		if( request.do_auto_stabilise ) {
+			bitmap = autoStabilise(data, bitmap, request.level_angle, request.is_front_facing, exifTempFile);
+		}
+		if( MyDebug.LOG ) {
+			Log.d(TAG, "Save single image performance: time after auto-stabilise: " + (System.currentTimeMillis() - time_s));
+		}
+		if( request.mirror ) {
+			bitmap = mirrorImage(data, bitmap, exifTempFile);
+		}
+		bitmap = stampImage(request, data, bitmap, exifTempFile);
+		if( MyDebug.LOG ) {
+			Log.d(TAG, "Save single image performance: time after photostamp: " + (System.currentTimeMillis() - time_s));
+		}
+		return bitmap;
+	}
+
+	/** Whether the only post-processing needed is mirroring, which (along with rotating for the exif
+	 *  orientation) can be done losslessly, see transformLosslessly().
+	 */
+	private static boolean canTransformLosslessly(Request request) {
+		boolean dategeo_stamp = request.preference_stamp.equals("preference_stamp_yes");
+		boolean text_stamp = request.preference_textstamp.length() > 0;
+		// for capture intents without a uri, we return a bitmap instead
+		boolean parcel_intent = request.image_capture_intent && request.image_capture_intent_uri == null;
+		return request.mirror && !request.do_auto_stabilise && !dategeo_stamp && !text_stamp && !parcel_intent;
+	}
+
+	/** Mirrors the jpeg, and rotates it according to its exif orientation, without decoding it.
+	 *  This is faster than going via a bitmap, and avoids losing quality from re-encoding. The exif
+	 *  tags are removed, to be transferred later with the orientation reset (as for re-encoded
+	 *  images).
+	 * @return The transformed jpeg, or null if it can't be done losslessly.
+	 */
+	private static byte [] transformLosslessly(byte [] data) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "transformLosslessly");
+		JpegExifWriter exif_writer = readExifWriter(data, null);
+		if( exif_writer == null ) {
+			return null;
+		}
+		JpegTransformer.Transform transform = JpegTransformer.Transform.NONE;
+		long orientation = exif_writer.getInt(JpegExifWriter.IFD_0, JpegExifWriter.TAG_ORIENTATION);
+		if( orientation != -1 ) {
+			transform = JpegTransformer.Transform.fromExifOrientation((int)orientation);
+			if( transform == null ) {
+				if( MyDebug.LOG )
+					Log.e(TAG, "unsupported exif orientation: " + orientation);
+				transform = JpegTransformer.Transform.NONE;
+			}
+		}
+		transform = transform.then(JpegTransformer.Transform.FLIP_HORIZONTAL);
+		try {
+			return JpegTransformer.transform(data, transform);
+		}
+		catch(IOException e) {
+			if( MyDebug.LOG )
+				Log.d(TAG, "can't transform losslessly: " + e.getMessage());
+		}
+		return null;
+	}
+
+	/** Whether the request requires the jpeg to be decoded to a bitmap for post-processing.
+	 */
+	private static boolean needsPostProcessing(Request request) {
+		boolean dategeo_stamp = request.preference_stamp.equals("preference_stamp_yes");
+		boolean text_stamp = request.preference_textstamp.length() > 0;
+		return request.do_auto_stabilise || request.mirror || dategeo_stamp || text_stamp;
+	}
+
+	/** Before Android 7, ExifInterface can only read exif tags from a file. So if we'll need to
+	 *  decode the jpeg to a bitmap (and so need to know the orientation, and later transfer the exif
+	 *  tags to the re-encoded image), we write the jpeg data to a temp file.
+	 * @return The temp file, or null if not needed or it couldn't be written.
+	 */
+	private File writeExifTempFile(byte [] data) {
+		File exifTempFile = null;
+		if( Build.VERSION.SDK_INT < Build.VERSION_CODES.N ) {
+			try {
+				if( MyDebug.LOG )
+					Log.d(TAG, "write temp file to record EXIF data");
+				exifTempFile = File.createTempFile("opencamera_exif", "");
+				OutputStream tempOutputStream = new FileOutputStream(exifTempFile);
+				try {
+					tempOutputStream.write(data);
+				}
+				finally {
+					tempOutputStream.close();
+				}
+			}
+			catch(IOException e) {
+				if (MyDebug.LOG)
+					Log.e(TAG, "exception writing to temp file");
+				e.printStackTrace();
+			}
+		}
+		return exifTempFile;
+	}
+
+	/** Reads the exif tags of the original jpeg data, so they can be transferred to an image that
+	 *  we've re-encoded from a bitmap. On Android 7+ the tags are read directly from the jpeg data,
+	 *  on earlier versions from exifTempFile.
+	 * @return The exif tags, or null if they couldn't be read.
+	 */
+	private ExifInterface readExifSource(byte [] data, File exifTempFile) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "readExifSource");
+		ExifInterface exif = null;
+		InputStream inputStream = null;
+		try {
+			if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.N ) {
+				if( MyDebug.LOG )
+					Log.d(TAG, "read Exif tags from data");
+				inputStream = new ByteArrayInputStream(data);
+				exif = new ExifInterface(inputStream);
+			}
+			else if( exifTempFile != null ) {
+				if( MyDebug.LOG )
+					Log.d(TAG, "read Exif tags from file");
+				exif = new ExifInterface(exifTempFile.getAbsolutePath());
+			}
+			else {
+				if( MyDebug.LOG )
+					Log.d(TAG, "can't set Exif tags without file pre-Android 7");
+			}
+		}
+		catch(IOException e) {
+			if( MyDebug.LOG )
+				Log.e(TAG, "failed to read exif tags");
+			e.printStackTrace();
+		}
+		catch(NoClassDefFoundError exception) {
+			// have had Google Play crashes from new ExifInterface() for Galaxy Ace4 (vivalto3g)
+			if( MyDebug.LOG )
+				Log.e(TAG, "exif orientation NoClassDefFoundError");
+			exception.printStackTrace();
+		}
+		finally {
+			if( inputStream != null ) {
+				try {
+					inputStream.close();
+				}
+				catch(IOException e) {
+					e.printStackTrace();
 				}
 			}
 		}
-		return bitmap;
+		return exif;
 	}
 
-	private static class PostProcessBitmapResult {
-		final Bitmap bitmap;
-		final File exifTempFile;
-
-		PostProcessBitmapResult(Bitmap bitmap, File exifTempFile) {
-			this.bitmap = bitmap;
-			this.exifTempFile = exifTempFile;
+	/** Returns the width to use for thumbnails, or -1 if the camera is no longer open.
+	 */
+	private int computeThumbnailWidth(Request request) {
+		// I have received crashes where camera_controller was null - could perhaps happen if this thread was running just as the camera is closing?
+		CameraController camera_controller = main_activity.getPreview().getCameraController();
+		if( camera_controller == null ) {
+			return -1;
 		}
+		int preview_width = main_activity.getPreview().getView().getWidth();
+		int thumbnail_width = Math.max(preview_width / request.sample_factor, 1);
+		if( MyDebug.LOG ) {
+			Log.d(TAG, "    preview width  : " + preview_width);
+			Log.d(TAG, "    sample_factor  : " + request.sample_factor);
+			Log.d(TAG, "    thumbnail width: " + thumbnail_width);
+		}
+		return thumbnail_width;
 	}
 
-	/** Performs post-processing on the data, or bitmap if non-null, for saveSingleImageNow.
+	/** Creates the thumbnail for a saved image, either by scaling down bitmap if non-null, or
+	 *  otherwise from the jpeg data (or exifFile, if data is null).
+	 * @param exifFile File to read the exif orientation from before Android 7, when decoding from
+	 *                 data (see rotateForExif()).
+	 * @return The thumbnail, or null if it couldn't be created.
 	 */
-	private PostProcessBitmapResult postProcessBitmap(final Request request, byte [] data, Bitmap bitmap) {
+	private Bitmap createThumbnail(Request request, byte [] data, Bitmap bitmap, File exifFile) {
 		if( MyDebug.LOG )
-			Log.d(TAG, "postProcessBitmap");
-    	long time_s = System.currentTimeMillis();
-
-		boolean dategeo_stamp = request.preference_stamp.equals("preference_stamp_yes");
-		boolean text_stamp = request.preference_textstamp.length() > 0;
-		File exifTempFile = null;
-		if( bitmap != null || request.do_auto_stabilise || request.mirror || dategeo_stamp || text_stamp ) {
-			// either we have a bitmap, or will need to decode the bitmap to do post-processing
-			// need to rotate the bitmap according to the exif orientation (which some devices use, e.g., Samsung)
-			// so need to write to a temp file for this - we also use this later on to transfer the exif tags
-			// on Android 7+, we can now read exif tags direct from the jpeg data
-			if( Build.VERSION.SDK_INT < Build.VERSION_CODES.N ) {
-				try {
+			Log.d(TAG, "createThumbnail");
+		int thumbnail_width = computeThumbnailWidth(request);
+		if( thumbnail_width <= 0 ) {
+			return null;
+		}
+		Bitmap thumbnail;
+		if( bitmap == null ) {
+			if( data != null ) {
+				thumbnail = decodeThumbnail(data, null, exifFile, thumbnail_width);
+			}
+			else if( exifFile != null ) {
+				BitmapFactory.Options bounds = new BitmapFactory.Options();
+				bounds.inJustDecodeBounds = true;
+				BitmapFactory.decodeFile(exifFile.getAbsolutePath(), bounds);
+				BitmapFactory.Options options = new BitmapFactory.Options();
+				options.inMutable = false;
+				if( Build.VERSION.SDK_INT <= Build.VERSION_CODES.KITKAT ) {
+					// setting is ignored in Android 5 onwards
+					options.inPurgeable = true;
+				}
+				options.inSampleSize = ThumbnailDecoder.computeSampleSize(bounds.outWidth, thumbnail_width);
+				thumbnail = BitmapFactory.decodeFile(exifFile.getAbsolutePath(), options);
+				if( thumbnail != null ) {
+					// now get the rotation from the Exif data
 					if( MyDebug.LOG )
-						Log.d(TAG, "write temp file to record EXIF data");
-					exifTempFile = File.createTempFile("opencamera_exif", "");
-					OutputStream tempOutputStream = new FileOutputStream(exifTempFile);
-					try {
-						tempOutputStream.write(data);
-					}
-					finally {
-						tempOutputStream.close();
-					}
-					if( MyDebug.LOG ) {
-						Log.d(TAG, "Save single image performance: time after saving temp photo for EXIF: " + (System.currentTimeMillis() - time_s));
-					}
+						Log.d(TAG, "rotate thumbnail for exif tags?");
+					thumbnail = rotateForExif(thumbnail, null, exifFile);
 				}
-				catch(IOException e) {
-					if (MyDebug.LOG)
-						Log.e(TAG, "exception writing to temp file");
-					e.printStackTrace();
+			}
+			else
+				thumbnail = null;
+		}
+		else {
+			int width = bitmap.getWidth();
+			int height = bitmap.getHeight();
+			Matrix matrix = new Matrix();
+			float scale = 1.0f / (float)ThumbnailDecoder.computeSampleSize(width, thumbnail_width);
+			matrix.postScale(scale, scale);
+			if( MyDebug.LOG )
+				Log.d(TAG, "    scale: " + scale);
+			try {
+				thumbnail = Bitmap.createBitmap(bitmap, 0, 0, width, height, matrix, true);
+				if( MyDebug.LOG ) {
+					Log.d(TAG, "thumbnail width: " + thumbnail.getWidth());
+					Log.d(TAG, "thumbnail height: " + thumbnail.getHeight());
+				}
+				// don't need to rotate for exif, as we already did that when creating the bitmap
+				if( thumbnail == bitmap ) {
+					// careful, as createBitmap doesn't always make a copy, and we'll be recycling bitmap
+					thumbnail = bitmap.copy(bitmap.getConfig(), false);
 				}
 			}
+			catch(IllegalArgumentException e) {
+				// received IllegalArgumentException on Google Play from Bitmap.createBitmap; documentation suggests this
+				// means width or height are 0 - but trapping that didn't fix the problem
+				// or "the x, y, width, height values are outside of the dimensions of the source bitmap", but that can't be
+				// true here
+				// crashes seem to all be Android 7.1 or earlier, so maybe this is a bug that's been fixed - but catch it anyway
+				// as it's grown popular
+				Log.e(TAG, "can't create thumbnail bitmap due to IllegalArgumentException?!");
+				e.printStackTrace();
+				thumbnail = null;
+			}
+		}
+		if( thumbnail == null ) {
+			// received crashes on Google Play suggesting that thumbnail could not be created
+			if( MyDebug.LOG )
+				Log.e(TAG, "failed to create thumbnail bitmap");
+		}
+		return thumbnail;
+	}
 
-			if( bitmap != null ) {
-				// rotate the bitmap if necessary for exif tags
+	/** As createThumbnail(Request, byte [], Bitmap, File), but decodes from an image that is still
+	 *  held in the camera's buffer.
+	 */
+	private Bitmap createThumbnail(Request request, JpegImage image) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "createThumbnail: direct");
+		int thumbnail_width = computeThumbnailWidth(request);
+		if( thumbnail_width <= 0 ) {
+			return null;
+		}
+		Bitmap thumbnail = decodeThumbnail(null, image, null, thumbnail_width);
+		if( thumbnail == null ) {
+			if( MyDebug.LOG )
+				Log.e(TAG, "failed to create thumbnail bitmap");
+		}
+		return thumbnail;
+	}
+
+	/** Decodes a thumbnail at least thumbnail_width wide from the jpeg in data or image (see
+	 *  ThumbnailDecoder), and rotates it for the exif orientation. The exif tags are only parsed
+	 *  once, for both the embedded thumbnail and the orientation.
+	 * @param exifFile File to read the exif orientation from before Android 7, if the exif tags
+	 *                 couldn't be parsed from data.
+	 */
+	private Bitmap decodeThumbnail(byte [] data, JpegImage image, File exifFile, final int thumbnail_width) {
+		final JpegExifWriter exif_writer = readExifWriter(data, image);
+		Bitmap thumbnail;
+		if( image != null ) {
+			// decode whilst holding the image, as otherwise the camera thread may close it whilst we're reading from it
+			try {
+				thumbnail = image.read(new JpegImage.Reader<Bitmap>() {
+					@Override
+					public Bitmap read(ByteBuffer buffer) {
+						return ThumbnailDecoder.decode(buffer, exif_writer, thumbnail_width);
+					}
+				});
+			}
+			catch(IOException e) {
 				if( MyDebug.LOG )
-					Log.d(TAG, "rotate pre-existing bitmap for exif tags?");
-				bitmap = rotateForExif(bitmap, data, exifTempFile);
+					Log.e(TAG, "failed to read image: " + e.getMessage());
+				return null;
 			}
 		}
-		if( request.do_auto_stabilise ) {
-			bitmap = autoStabilise(data, bitmap, request.level_angle, request.is_front_facing, exifTempFile);
+		else {
+			thumbnail = ThumbnailDecoder.decode(ByteBuffer.wrap(data), exif_writer, thumbnail_width);
+		}
+		if( thumbnail == null ) {
+			return null;
 		}
 		if( MyDebug.LOG ) {
-			Log.d(TAG, "Save single image performance: time after auto-stabilise: " + (System.currentTimeMillis() - time_s));
+			Log.d(TAG, "thumbnail width: " + thumbnail.getWidth());
+			Log.d(TAG, "thumbnail height: " + thumbnail.getHeight());
 		}
-		if( request.mirror ) {
-			bitmap = mirrorImage(data, bitmap, exifTempFile);
+		if( exif_writer != null ) {
+			long orientation = exif_writer.getInt(JpegExifWriter.IFD_0, JpegExifWriter.TAG_ORIENTATION);
+			if( orientation != -1 )
+				thumbnail = rotateForExifOrientation(thumbnail, (int)orientation);
 		}
-		bitmap = stampImage(request, data, bitmap, exifTempFile);
-		if( MyDebug.LOG ) {
-			Log.d(TAG, "Save single image performance: time after photostamp: " + (System.currentTimeMillis() - time_s));
+		else if( data != null ) {
+			if( MyDebug.LOG )
+				Log.d(TAG, "rotate thumbnail for exif tags?");
+			thumbnail = rotateForExif(thumbnail, data, exifFile);
 		}
-		return new PostProcessBitmapResult(bitmap, exifTempFile);
+		return thumbnail;
 	}
 
-	/** May be run in saver thread or picture callback thread (depending on whether running in background).
-	 *  The requests.images field is ignored, instead we save the supplied data or bitmap.
-	 *  If bitmap is null, then the supplied jpeg data is saved. If bitmap is non-null, then the bitmap is
-	 *  saved, but the supplied data is still used to read EXIF data from.
-	 *  @param update_thumbnail - Whether to update the thumbnail (and show the animation).
-	 *  @param share_image - Whether this image should be marked as the one to share (if multiple images can
-	 *  be saved from a single shot (e.g., saving exposure images with HDR).
+	/** Writes a single image to storage, for the persist stage. Also handles returning the image
+	 *  to the caller for image capture intents, sets the last image, and updates the thumbnail.
+	 *  If output.encoded is non-null, that is saved (with exif tags transferred from
+	 *  output.exif_source); otherwise output.direct or output.data is saved.
 	 */
 	@SuppressLint("SimpleDateFormat")
 	@SuppressWarnings("deprecation")
-	private boolean saveSingleImageNow(final Request request, byte [] data, Bitmap bitmap, String filename_suffix, boolean update_thumbnail, boolean share_image) {
+	private boolean persistOutput(final Request request, SaveOutput output) {
 		if( MyDebug.LOG )
-			Log.d(TAG, "saveSingleImageNow");
-
-		if( request.type != Request.Type.JPEG ) {
-			if( MyDebug.LOG )
-				Log.d(TAG, "saveImageNow called with non-jpeg request");
-			// throw runtime exception, as this is a programming error
-			throw new RuntimeException();
-		}
-		else if( data == null ) {
-			if( MyDebug.LOG )
-				Log.d(TAG, "saveSingleImageNow called with no data");
-			// throw runtime exception, as this is a programming error
-			throw new RuntimeException();
-		}
+			Log.d(TAG, "persistOutput");
     	long time_s = System.currentTimeMillis();
-		
+
         boolean success = false;
 		final MyApplicationInterface applicationInterface = main_activity.getApplicationInterface();
-		boolean raw_only = applicationInterface.isRawOnly();
-		if( MyDebug.LOG )
-			Log.d(TAG, "raw_only: " + raw_only);
 		StorageUtils storageUtils = main_activity.getStorageUtils();
-		
-		main_activity.savingImage(true);
-
-		File exifTempFile = null;
-
-		if( !raw_only ) {
-			PostProcessBitmapResult postProcessBitmapResult = postProcessBitmap(request, data, bitmap);
-			bitmap = postProcessBitmapResult.bitmap;
-			exifTempFile = postProcessBitmapResult.exifTempFile;
-		}
+		byte [] data = output.data;
 
 		File picFile = null;
 		Uri saveUri = null; // if non-null, then picFile is a temporary file, which afterwards we should redirect to saveUri
         try {
-        	if( raw_only ) {
-        		// don't save the JPEG
-				success = true;
-			}
-			else if( request.image_capture_intent ) {
+			if( request.image_capture_intent ) {
     			if( MyDebug.LOG )
     				Log.d(TAG, "image_capture_intent");
     			if( request.image_capture_intent_uri != null )
@@ -1695,17 +3212,15 @@ public class ImageSaver extends Thread {
     			    // (it is a good idea to reduce its size to ~50k pixels before)
         			if( MyDebug.LOG )
         				Log.d(TAG, "sent to intent via parcel");
-    				if( bitmap == null ) {
+        			final int small_size_c = 128;
+        			// the encode stage leaves any post-processed bitmap for us in this case
+        			Bitmap bitmap = output.bitmap;
+        			output.bitmap = null;
+    				if( bitmap == null && (data != null || output.direct != null) ) {
 	        			if( MyDebug.LOG )
 	        				Log.d(TAG, "create bitmap");
-						// bitmap we return doesn't need to be mutable
-						bitmap = loadBitmap(data, false, 1);
-						if( bitmap != null ) {
-							// rotate the bitmap if necessary for exif tags
-							if( MyDebug.LOG )
-								Log.d(TAG, "rotate bitmap for exif tags?");
-							bitmap = rotateForExif(bitmap, data, exifTempFile);
-						}
+						// no need to decode at full resolution, when we only return a small bitmap
+						bitmap = decodeThumbnail(data, output.direct, output.exifTempFile, small_size_c);
     				}
     				if( bitmap != null ) {
 	        			int width = bitmap.getWidth();
@@ -1714,7 +3229,6 @@ public class ImageSaver extends Thread {
 	        				Log.d(TAG, "decoded bitmap size " + width + ", " + height);
 	        				Log.d(TAG, "bitmap size: " + width*height*4);
 	        			}
-	        			final int small_size_c = 128;
 	        			if( width > small_size_c ) {
 	        				float scale = ((float)small_size_c)/(float)width;
 		        			if( MyDebug.LOG )
@@ -1740,42 +3254,54 @@ public class ImageSaver extends Thread {
         			}
         			if( bitmap != null )
         				main_activity.setResult(Activity.RESULT_OK, new Intent("inline-data").putExtra("data", bitmap));
-					if( exifTempFile != null && !exifTempFile.delete() ) {
-						if( MyDebug.LOG )
-							Log.e(TAG, "failed to delete temp " + exifTempFile.getAbsolutePath());
-					}
-					exifTempFile = null;
         			main_activity.finish();
     			}
 			}
 			else if( storageUtils.isUsingSAF() ) {
-				saveUri = storageUtils.createOutputMediaFileSAF(StorageUtils.MEDIA_TYPE_IMAGE, filename_suffix, "jpg", request.current_date);
+				saveUri = storageUtils.createOutputMediaFileSAF(StorageUtils.MEDIA_TYPE_IMAGE, output.filename_suffix, "jpg", request.current_date);
 			}
 			else {
-    			picFile = storageUtils.createOutputMediaFile(StorageUtils.MEDIA_TYPE_IMAGE, filename_suffix, "jpg", request.current_date);
+    			picFile = storageUtils.createOutputMediaFile(StorageUtils.MEDIA_TYPE_IMAGE, output.filename_suffix, "jpg", request.current_date);
 	    		if( MyDebug.LOG )
 	    			Log.d(TAG, "save to: " + picFile.getAbsolutePath());
 			}
 			
-			if( saveUri != null && picFile == null ) {
+			// for SAF, we can write straight to the document, unless we need a file to modify or decode afterwards
+			boolean write_uri = saveUri != null && !request.image_capture_intent && !needsSavedFile(request, output);
+			if( saveUri != null && picFile == null && !write_uri ) {
 	    		if( MyDebug.LOG )
 	    			Log.d(TAG, "saveUri: " + saveUri);
 				picFile = File.createTempFile("picFile", "jpg", main_activity.getCacheDir());
 	    		if( MyDebug.LOG )
 	    			Log.d(TAG, "temp picFile: " + picFile.getAbsolutePath());
 			}
-			
-			if( picFile != null ) {
-				OutputStream outputStream = new FileOutputStream(picFile);
+
+			if( write_uri ) {
+	    		if( MyDebug.LOG )
+	    			Log.d(TAG, "write straight to saveUri: " + saveUri);
+				ParcelFileDescriptor pfd = main_activity.getContentResolver().openFileDescriptor(saveUri, "w");
+				if( pfd == null ) {
+					throw new FileNotFoundException("failed to open file descriptor for " + saveUri);
+				}
+				FileOutputStream outputStream = new ParcelFileDescriptor.AutoCloseOutputStream(pfd);
 				try {
-		            if( bitmap != null ) {
-						if( MyDebug.LOG )
-							Log.d(TAG, "compress bitmap, quality " + request.image_quality);
-	    	            bitmap.compress(Bitmap.CompressFormat.JPEG, request.image_quality, outputStream);
-		            }
-		            else {
-		            	outputStream.write(data);
-		            }
+					writeOutput(output, outputStream);
+				}
+				finally {
+					outputStream.close();
+				}
+	    		if( MyDebug.LOG ) {
+	    			Log.d(TAG, "Save single image performance: time after saving photo: " + (System.currentTimeMillis() - time_s));
+	    		}
+    		    success = true;
+            	// most Gallery apps don't seem to recognise the SAF-format Uri, so just clear the field
+            	storageUtils.clearLastMediaScanned();
+            	broadcastSAF(request, saveUri);
+			}
+			else if( picFile != null ) {
+				FileOutputStream outputStream = new FileOutputStream(picFile);
+				try {
+					writeOutput(output, outputStream);
 				}
 				finally {
 					outputStream.close();
@@ -1789,41 +3315,38 @@ public class ImageSaver extends Thread {
 	    		if( saveUri == null ) { // if saveUri is non-null, then we haven't succeeded until we've copied to the saveUri
 	    			success = true;
 	    		}
-	            if( picFile != null ) {
-	            	if( bitmap != null ) {
-	            		// need to update EXIF data!
-						if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.N ) {
-							if( MyDebug.LOG )
-								Log.d(TAG, "set Exif tags from data");
-							setExifFromData(request, data, picFile);
+            	if( output.exif_writer != null ) {
+            		// exif tags already written with the image
+            	}
+            	else if( output.encoded != null ) {
+            		// need to update EXIF data!
+            		if( output.exif_source != null ) {
+						try {
+							ExifInterface exif_new = new ExifInterface(picFile.getAbsolutePath());
+							setExif(request, output.exif_source, exif_new);
 						}
-						else {
+						catch(NoClassDefFoundError exception) {
+							// have had Google Play crashes from new ExifInterface() for Galaxy Ace4 (vivalto3g)
 							if( MyDebug.LOG )
-								Log.d(TAG, "set Exif tags from file");
-							if( exifTempFile != null ) {
-								setExifFromFile(request, exifTempFile, picFile);
-								if( MyDebug.LOG ) {
-									Log.d(TAG, "Save single image performance: time after copying EXIF: " + (System.currentTimeMillis() - time_s));
-								}
-							}
-							else {
-								if( MyDebug.LOG )
-									Log.d(TAG, "can't set Exif tags without file pre-Android 7");
-							}
+								Log.e(TAG, "exif orientation NoClassDefFoundError");
+							exception.printStackTrace();
 						}
-	            	}
-	            	else {
-	            		updateExif(request, picFile);
 						if( MyDebug.LOG ) {
-							Log.d(TAG, "Save single image performance: time after updateExif: " + (System.currentTimeMillis() - time_s));
+							Log.d(TAG, "Save single image performance: time after copying EXIF: " + (System.currentTimeMillis() - time_s));
 						}
 					}
+            	}
+            	else {
+            		updateExif(request, picFile);
+					if( MyDebug.LOG ) {
+						Log.d(TAG, "Save single image performance: time after updateExif: " + (System.currentTimeMillis() - time_s));
+					}
+				}
 
-    	            if( saveUri == null ) {
-    	            	// broadcast for SAF is done later, when we've actually written out the file
-    	            	storageUtils.broadcastFile(picFile, true, false, update_thumbnail);
-    	            	main_activity.test_last_saved_image = picFile.getAbsolutePath();
-    	            }
+	            if( saveUri == null ) {
+	            	// broadcast for SAF is done later, when we've actually written out the file
+	            	storageUtils.broadcastFile(picFile, true, false, output.update_thumbnail);
+	            	main_activity.test_last_saved_image = picFile.getAbsolutePath();
 	            }
 	            if( request.image_capture_intent ) {
     	    		if( MyDebug.LOG )
@@ -1839,31 +3362,7 @@ public class ImageSaver extends Thread {
 	            if( saveUri != null ) {
 	            	copyFileToUri(main_activity, saveUri, picFile);
 	    		    success = true;
-	    		    /* We still need to broadcastFile for SAF for two reasons:
-	    		    	1. To call storageUtils.announceUri() to broadcast NEW_PICTURE etc.
-	    		           Whilst in theory we could do this directly, it seems external apps that use such broadcasts typically
-	    		           won't know what to do with a SAF based Uri (e.g, Owncloud crashes!) so better to broadcast the Uri
-	    		           corresponding to the real file, if it exists.
-	    		        2. Whilst the new file seems to be known by external apps such as Gallery without having to call media
-	    		           scanner, I've had reports this doesn't happen when saving to external SD cards. So better to explicitly
-	    		           scan.
-	    		    */
-		    	    File real_file = storageUtils.getFileFromDocumentUriSAF(saveUri, false);
-					if( MyDebug.LOG )
-						Log.d(TAG, "real_file: " + real_file);
-                    if( real_file != null ) {
-    					if( MyDebug.LOG )
-    						Log.d(TAG, "broadcast file");
-    	            	storageUtils.broadcastFile(real_file, true, false, true);
-    	            	main_activity.test_last_saved_image = real_file.getAbsolutePath();
-                    }
-                    else if( !request.image_capture_intent ) {
-    					if( MyDebug.LOG )
-    						Log.d(TAG, "announce SAF uri");
-                    	// announce the SAF Uri
-                    	// (shouldn't do this for a capture intent - e.g., causes crash when calling from Google Keep)
-    	    		    storageUtils.announceUri(saveUri, true, false);
-                    }
+	    		    broadcastSAF(request, saveUri);
 	            }
 	        }
 		}
@@ -1887,87 +3386,23 @@ public class ImageSaver extends Thread {
             main_activity.getPreview().showToast(null, R.string.failed_to_save_photo);
         }
 
-		if( exifTempFile != null && !exifTempFile.delete() ) {
-			if( MyDebug.LOG )
-				Log.e(TAG, "failed to delete temp " + exifTempFile.getAbsolutePath());
-		}
-
-		if( raw_only ) {
-        	// no saved image to record
-		}
-        else if( success && saveUri == null ) {
-        	applicationInterface.addLastImage(picFile, share_image);
+        if( success && saveUri == null ) {
+        	applicationInterface.addLastImage(picFile, output.share_image);
         }
         else if( success && storageUtils.isUsingSAF() ){
-        	applicationInterface.addLastImageSAF(saveUri, share_image);
+        	applicationInterface.addLastImageSAF(saveUri, output.share_image);
         }
 
 		// I have received crashes where camera_controller was null - could perhaps happen if this thread was running just as the camera is closing?
-        if( success && main_activity.getPreview().getCameraController() != null && update_thumbnail ) {
+        if( success && main_activity.getPreview().getCameraController() != null && output.update_thumbnail ) {
         	// update thumbnail - this should be done after restarting preview, so that the preview is started asap
-        	CameraController.Size size = main_activity.getPreview().getCameraController().getPictureSize();
-    		int ratio = (int) Math.ceil((double) size.width / main_activity.getPreview().getView().getWidth());
-    		int sample_size = Integer.highestOneBit(ratio);
-    		sample_size *= request.sample_factor;
-    		if( MyDebug.LOG ) {
-    			Log.d(TAG, "    picture width: " + size.width);
-    			Log.d(TAG, "    preview width: " + main_activity.getPreview().getView().getWidth());
-    			Log.d(TAG, "    ratio        : " + ratio);
-    			Log.d(TAG, "    sample_size  : " + sample_size);
-    		}
-    		Bitmap thumbnail;
-			if( bitmap == null ) {
-				BitmapFactory.Options options = new BitmapFactory.Options();
-				options.inMutable = false;
-				if( Build.VERSION.SDK_INT <= Build.VERSION_CODES.KITKAT ) {
-					// setting is ignored in Android 5 onwards
-					options.inPurgeable = true;
-				}
-				options.inSampleSize = sample_size;
-    			thumbnail = BitmapFactory.decodeByteArray(data, 0, data.length, options);
-				if( MyDebug.LOG ) {
-					Log.d(TAG, "thumbnail width: " + thumbnail.getWidth());
-					Log.d(TAG, "thumbnail height: " + thumbnail.getHeight());
-				}
-				// now get the rotation from the Exif data
-				if( MyDebug.LOG )
-					Log.d(TAG, "rotate thumbnail for exif tags?");
-				thumbnail = rotateForExif(thumbnail, data, picFile);
+        	Bitmap thumbnail = output.thumbnail;
+        	output.thumbnail = null;
+        	if( thumbnail == null ) {
+        		// not already created by the encode stage
+        		thumbnail = createThumbnail(request, data, null, picFile);
 			}
-			else {
-    			int width = bitmap.getWidth();
-    			int height = bitmap.getHeight();
-    		    Matrix matrix = new Matrix();
-    		    float scale = 1.0f / (float)sample_size;
-    		    matrix.postScale(scale, scale);
-	    		if( MyDebug.LOG )
-	    			Log.d(TAG, "    scale: " + scale);
-				try {
-					thumbnail = Bitmap.createBitmap(bitmap, 0, 0, width, height, matrix, true);
-					if( MyDebug.LOG ) {
-						Log.d(TAG, "thumbnail width: " + thumbnail.getWidth());
-						Log.d(TAG, "thumbnail height: " + thumbnail.getHeight());
-					}
-					// don't need to rotate for exif, as we already did that when creating the bitmap
-				}
-				catch(IllegalArgumentException e) {
-					// received IllegalArgumentException on Google Play from Bitmap.createBitmap; documentation suggests this
-					// means width or height are 0 - but trapping that didn't fix the problem
-					// or "the x, y, width, height values are outside of the dimensions of the source bitmap", but that can't be
-					// true here
-					// crashes seem to all be Android 7.1 or earlier, so maybe this is a bug that's been fixed - but catch it anyway
-					// as it's grown popular
-					Log.e(TAG, "can't create thumbnail bitmap due to IllegalArgumentException?!");
-					e.printStackTrace();
-					thumbnail = null;
-				}
-			}
-			if( thumbnail == null ) {
-				// received crashes on Google Play suggesting that thumbnail could not be created
-	    		if( MyDebug.LOG )
-	    			Log.e(TAG, "failed to create thumbnail bitmap");
-			}
-			else {
+			if( thumbnail != null ) {
 	    		final Bitmap thumbnail_f = thumbnail;
 		    	main_activity.runOnUiThread(new Runnable() {
 					public void run() {
@@ -1980,10 +3415,6 @@ public class ImageSaver extends Thread {
 			}
         }
 
-        if( bitmap != null ) {
-		    bitmap.recycle();
-        }
-
         if( picFile != null && saveUri != null ) {
     		if( MyDebug.LOG )
     			Log.d(TAG, "delete temp picFile: " + picFile);
@@ -1992,10 +3423,6 @@ public class ImageSaver extends Thread {
         			Log.e(TAG, "failed to delete temp picFile: " + picFile);
         	}
         }
-        
-        System.gc();
-        
-		main_activity.savingImage(false);
 
 		if( MyDebug.LOG ) {
 			Log.d(TAG, "Save single image performance: total time: " + (System.currentTimeMillis() - time_s));
@@ -2003,52 +3430,83 @@ public class ImageSaver extends Thread {
         return success;
 	}
 
-	/** As setExifFromFile, but can read the Exif tags directly from the jpeg data rather than a file.
+	/** Writes the image for output to outputStream, for persistOutput(). If output.direct is set, it
+	 *  is closed afterwards.
 	 */
-    @RequiresApi(api = Build.VERSION_CODES.N)
-    private void setExifFromData(final Request request, byte [] data, File to_file) throws IOException {
-        if( MyDebug.LOG ) {
-            Log.d(TAG, "setExifFromData");
-            Log.d(TAG, "to_file: " + to_file);
-        }
-        InputStream inputStream = null;
-        try {
-			inputStream = new ByteArrayInputStream(data);
-			ExifInterface exif = new ExifInterface(inputStream);
-			ExifInterface exif_new = new ExifInterface(to_file.getAbsolutePath());
-			setExif(request, exif, exif_new);
+	private static void writeOutput(final SaveOutput output, FileOutputStream outputStream) throws IOException {
+		if( output.encoded != null ) {
+			if( output.exif_writer != null )
+				output.exif_writer.writeJpeg(outputStream, output.encoded);
+			else
+				outputStream.write(output.encoded);
 		}
-		finally {
-			if( inputStream != null ) {
-				inputStream.close();
+		else if( output.direct != null ) {
+			// write straight from the camera's buffer, then release it as soon as possible so the camera can reuse it
+			final FileChannel channel = outputStream.getChannel();
+			if( output.exif_writer != null ) {
+				output.direct.read(new JpegImage.Reader<Void>() {
+					@Override
+					public Void read(ByteBuffer data) throws IOException {
+						output.exif_writer.writeJpeg(channel, data);
+						return null;
+					}
+				});
 			}
+			else
+				output.direct.writeImage(channel);
+			output.direct.close();
+			output.direct = null;
 		}
-    }
+		else {
+			if( output.exif_writer != null )
+				output.exif_writer.writeJpeg(outputStream, output.data);
+			else
+				outputStream.write(output.data);
+		}
+	}
 
-	/** Used to transfer exif tags, if we had to convert the jpeg info to a bitmap (for post-processing such as
-	 *  auto-stabilise or photo stamp). Also then applies the Exif tags according to the preferences in the request.
-	 *  Note that we use several ExifInterface tags that are now deprecated in API level 23 and 24. These are replaced with new tags that have
-	 *  the same string value (e.g., TAG_APERTURE replaced with TAG_F_NUMBER, but both have value "FNumber"). We use the deprecated versions
-	 *  to avoid complicating the code (we'd still have to read the deprecated values for older devices).
+	/** Whether persistOutput() needs to save output to a file before it can be written to a SAF
+	 *  uri: if the exif tags have to be changed with ExifInterface (which modifies a saved file), or
+	 *  if the thumbnail still needs to be decoded and the jpeg data isn't available.
 	 */
-	@SuppressWarnings("deprecation")
-	private void setExifFromFile(final Request request, File from_file, File to_file) throws IOException {
-		if( MyDebug.LOG ) {
-			Log.d(TAG, "setExifFromFile");
-			Log.d(TAG, "from_file: " + from_file);
-			Log.d(TAG, "to_file: " + to_file);
-		}
-		try {
-			ExifInterface exif = new ExifInterface(from_file.getAbsolutePath());
-			ExifInterface exif_new = new ExifInterface(to_file.getAbsolutePath());
-            setExif(request, exif, exif_new);
+	private boolean needsSavedFile(Request request, SaveOutput output) {
+		if( output.exif_writer == null ) {
+			if( output.encoded != null ? output.exif_source != null : needsExifUpdate(request) ) {
+				return true;
+			}
 		}
-		catch(NoClassDefFoundError exception) {
-			// have had Google Play crashes from new ExifInterface() for Galaxy Ace4 (vivalto3g)
+		return output.update_thumbnail && output.thumbnail == null && output.data == null;
+	}
+
+	/** Broadcasts an image that has been saved to a SAF uri.
+	 */
+	private void broadcastSAF(Request request, Uri saveUri) {
+		StorageUtils storageUtils = main_activity.getStorageUtils();
+	    /* We still need to broadcastFile for SAF for two reasons:
+	    	1. To call storageUtils.announceUri() to broadcast NEW_PICTURE etc.
+	           Whilst in theory we could do this directly, it seems external apps that use such broadcasts typically
+	           won't know what to do with a SAF based Uri (e.g, Owncloud crashes!) so better to broadcast the Uri
+	           corresponding to the real file, if it exists.
+	        2. Whilst the new file seems to be known by external apps such as Gallery without having to call media
+	           scanner, I've had reports this doesn't happen when saving to external SD cards. So better to explicitly
+	           scan.
+	    */
+	    File real_file = storageUtils.getFileFromDocumentUriSAF(saveUri, false);
+		if( MyDebug.LOG )
+			Log.d(TAG, "real_file: " + real_file);
+        if( real_file != null ) {
 			if( MyDebug.LOG )
-				Log.e(TAG, "exif orientation NoClassDefFoundError");
-			exception.printStackTrace();
-		}
+				Log.d(TAG, "broadcast file");
+        	storageUtils.broadcastFile(real_file, true, false, true);
+        	main_activity.test_last_saved_image = real_file.getAbsolutePath();
+        }
+        else if( !request.image_capture_intent ) {
+			if( MyDebug.LOG )
+				Log.d(TAG, "announce SAF uri");
+        	// announce the SAF Uri
+        	// (shouldn't do this for a capture intent - e.g., causes crash when calling from Google Keep)
+		    storageUtils.announceUri(saveUri, true, false);
+        }
 	}
 
     /** Transfers exif tags from exif to exif_new, and then applies any extra Exif tags according to the preferences in the request.
@@ -2358,7 +3816,7 @@ public class ImageSaver extends Thread {
 		StorageUtils storageUtils = main_activity.getStorageUtils();
 		boolean success = false;
 
-		main_activity.savingImage(true);
+		setSavingImage(true);
 
         OutputStream output = null;
         RawImage raw_image = request.raw_image;
@@ -2467,17 +3925,17 @@ public class ImageSaver extends Thread {
 
     	System.gc();
 
-        main_activity.savingImage(false);
+        setSavingImage(false);
 
         return success;
 	}
 
 	/** Rotates the supplied bitmap according to the orientation tag stored in the exif data. On
-	 *  Android 7 onwards, we use the jpeg data; on earlier versions the supplied exifTimeFile is
-	 *  used. If no rotation is required, the input bitmap is returned.
+	 *  Android 7 onwards, we use the jpeg data; on earlier versions (or if data is null) the supplied
+	 *  exifTimeFile is used. If no rotation is required, the input bitmap is returned.
 	 * @param data Jpeg data containing the Exif information to use.
-	 * @param exifTempFile Ignored on Android 7+. If this is null on older versions, the bitmap is
-	 *                     returned without rotation.
+	 * @param exifTempFile Ignored on Android 7+ if data is non-null. If this is null on older versions,
+	 *                     the bitmap is returned without rotation.
 	 */
     private Bitmap rotateForExif(Bitmap bitmap, byte [] data, File exifTempFile) {
 		if( MyDebug.LOG )
@@ -2486,7 +3944,7 @@ public class ImageSaver extends Thread {
 		try {
 			ExifInterface exif;
 
-			if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.N ) {
+			if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.N && data != null ) {
 				if( MyDebug.LOG )
 					Log.d(TAG, "Android 7: use data stream to read exif tags");
 				inputStream = new ByteArrayInputStream(data);
@@ -2494,10 +3952,20 @@ public class ImageSaver extends Thread {
 			}
 			else {
 				if( MyDebug.LOG )
-					Log.d(TAG, "pre-Android 7: use file to read exif tags: " + exifTempFile);
+					Log.d(TAG, "pre-Android 7 or no data: use file to read exif tags: " + exifTempFile);
 				if( exifTempFile != null ) {
 					exif = new ExifInterface(exifTempFile.getAbsolutePath());
 				}
+				else if( data != null ) {
+					// ExifInterface can't read from the data before Android 7, but JpegExifWriter can
+					if( MyDebug.LOG )
+						Log.d(TAG, "no file available, so parse exif tags from data");
+					JpegExifWriter exif_writer = readExifWriter(data, null);
+					if( exif_writer == null )
+						return bitmap;
+					long orientation = exif_writer.getInt(JpegExifWriter.IFD_0, JpegExifWriter.TAG_ORIENTATION);
+					return rotateForExifOrientation(bitmap, orientation == -1 ? ExifInterface.ORIENTATION_UNDEFINED : (int)orientation);
+				}
 				else {
 					if( MyDebug.LOG )
 						Log.d(TAG, "but no file available to read exif tags from");
@@ -2506,49 +3974,7 @@ public class ImageSaver extends Thread {
 			}
 
 			int exif_orientation_s = exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_UNDEFINED);
-    		if( MyDebug.LOG )
-    			Log.d(TAG, "    exif orientation string: " + exif_orientation_s);
-    		boolean needs_tf = false;
-			int exif_orientation = 0;
-			// from http://jpegclub.org/exif_orientation.html
-			// and http://stackoverflow.com/questions/20478765/how-to-get-the-correct-orientation-of-the-image-selected-from-the-default-image
-			switch (exif_orientation_s) {
-				case ExifInterface.ORIENTATION_UNDEFINED:
-				case ExifInterface.ORIENTATION_NORMAL:
-					// leave unchanged
-					break;
-				case ExifInterface.ORIENTATION_ROTATE_180:
-					needs_tf = true;
-					exif_orientation = 180;
-					break;
-				case ExifInterface.ORIENTATION_ROTATE_90:
-					needs_tf = true;
-					exif_orientation = 90;
-					break;
-				case ExifInterface.ORIENTATION_ROTATE_270:
-					needs_tf = true;
-					exif_orientation = 270;
-					break;
-				default:
-					// just leave unchanged for now
-					if (MyDebug.LOG)
-						Log.e(TAG, "    unsupported exif orientation: " + exif_orientation_s);
-					break;
-			}
-    		if( MyDebug.LOG )
-    			Log.d(TAG, "    exif orientation: " + exif_orientation);
-
-			if( needs_tf ) {
-				if( MyDebug.LOG )
-					Log.d(TAG, "    need to rotate bitmap due to exif orientation tag");
-				Matrix m = new Matrix();
-				m.setRotate(exif_orientation, bitmap.getWidth() * 0.5f, bitmap.getHeight() * 0.5f);
-				Bitmap rotated_bitmap = Bitmap.createBitmap(bitmap, 0, 0,bitmap.getWidth(), bitmap.getHeight(), m, true);
-				if( rotated_bitmap != bitmap ) {
-					bitmap.recycle();
-					bitmap = rotated_bitmap;
-				}
-			}
+			bitmap = rotateForExifOrientation(bitmap, exif_orientation_s);
 		}
 		catch(IOException exception) {
 			if( MyDebug.LOG )
@@ -2575,7 +4001,96 @@ public class ImageSaver extends Thread {
 		return bitmap;
     }
 
+	/** Rotates the supplied bitmap according to the value of an exif orientation tag. If no rotation
+	 *  is required, the input bitmap is returned.
+	 */
+	private Bitmap rotateForExifOrientation(Bitmap bitmap, int exif_orientation_s) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "    exif orientation string: " + exif_orientation_s);
+		boolean needs_tf = false;
+		int exif_orientation = 0;
+		// from http://jpegclub.org/exif_orientation.html
+		// and http://stackoverflow.com/questions/20478765/how-to-get-the-correct-orientation-of-the-image-selected-from-the-default-image
+		switch (exif_orientation_s) {
+			case ExifInterface.ORIENTATION_UNDEFINED:
+			case ExifInterface.ORIENTATION_NORMAL:
+				// leave unchanged
+				break;
+			case ExifInterface.ORIENTATION_ROTATE_180:
+				needs_tf = true;
+				exif_orientation = 180;
+				break;
+			case ExifInterface.ORIENTATION_ROTATE_90:
+				needs_tf = true;
+				exif_orientation = 90;
+				break;
+			case ExifInterface.ORIENTATION_ROTATE_270:
+				needs_tf = true;
+				exif_orientation = 270;
+				break;
+			default:
+				// just leave unchanged for now
+				if (MyDebug.LOG)
+					Log.e(TAG, "    unsupported exif orientation: " + exif_orientation_s);
+				break;
+		}
+		if( MyDebug.LOG )
+			Log.d(TAG, "    exif orientation: " + exif_orientation);
+
+		if( needs_tf ) {
+			if( MyDebug.LOG )
+				Log.d(TAG, "    need to rotate bitmap due to exif orientation tag");
+			Matrix m = new Matrix();
+			m.setRotate(exif_orientation, bitmap.getWidth() * 0.5f, bitmap.getHeight() * 0.5f);
+			Bitmap rotated_bitmap = Bitmap.createBitmap(bitmap, 0, 0,bitmap.getWidth(), bitmap.getHeight(), m, true);
+			if( rotated_bitmap != bitmap ) {
+				bitmap_pool.release(bitmap);
+				bitmap = rotated_bitmap;
+			}
+		}
+		return bitmap;
+	}
+
+	/** Whether the exif tags of an image that isn't re-encoded need changing, see updateExif().
+	 */
+	private boolean needsExifUpdate(Request request) {
+		return request.store_geo_direction || hasCustomExif(request.custom_tag_artist, request.custom_tag_copyright) ||
+				needGPSTimestampHack(request.type == Request.Type.JPEG, request.using_camera2, request.store_location);
+	}
+
+	/** As updateExif(Request, File), but makes the changes to exif, to be written out with the image.
+	 */
+	private void updateExif(Request request, JpegExifWriter exif) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "updateExif: JpegExifWriter");
+		if( request.store_geo_direction || hasCustomExif(request.custom_tag_artist, request.custom_tag_copyright) ) {
+			modifyExif(exif, request);
+		}
+		else if( needGPSTimestampHack(request.type == Request.Type.JPEG, request.using_camera2, request.store_location) ) {
+			exif.setGPSTimestamp(request.current_date);
+		}
+	}
+
+	/** As modifyExif(ExifInterface, ...), but for JpegExifWriter.
+	 */
+	private void modifyExif(JpegExifWriter exif, Request request) {
+		if( request.store_geo_direction ) {
+			exif.setGPSImgDirection(request.geo_direction);
+		}
+		exif.copyDateTimeToOriginal();
+		if( hasCustomExif(request.custom_tag_artist, request.custom_tag_copyright) ) {
+			if( request.custom_tag_artist != null && request.custom_tag_artist.length() > 0 )
+				exif.setAscii(JpegExifWriter.IFD_0, JpegExifWriter.TAG_ARTIST, request.custom_tag_artist);
+			if( request.custom_tag_copyright != null && request.custom_tag_copyright.length() > 0 )
+				exif.setAscii(JpegExifWriter.IFD_0, JpegExifWriter.TAG_COPYRIGHT, request.custom_tag_copyright);
+		}
+		if( needGPSTimestampHack(request.type == Request.Type.JPEG, request.using_camera2, request.store_location) ) {
+			exif.setGPSTimestamp(request.current_date);
+		}
+	}
+
 	/** Makes various modifications to the saved image file, according to the preferences in request.
+	 *  Only used if the exif tags couldn't be written with the image, see metadataStage().
 	 */
     private void updateExif(Request request, File picFile) throws IOException {
 		if( MyDebug.LOG )
@@ -2629,14 +4144,8 @@ public class ImageSaver extends Thread {
 
 	private void setGPSDirectionExif(ExifInterface exif, boolean store_geo_direction, double geo_direction) {
     	if( store_geo_direction ) {
-			float geo_angle = (float)Math.toDegrees(geo_direction);
-			if( geo_angle < 0.0f ) {
-				geo_angle += 360.0f;
-			}
-			if( MyDebug.LOG )
-				Log.d(TAG, "save geo_angle: " + geo_angle);
 			// see http://www.sno.phy.queensu.ca/~phil/exiftool/TagNames/GPS.html
-			String GPSImgDirection_string = Math.round(geo_angle*100) + "/100";
+			String GPSImgDirection_string = JpegExifWriter.computeGPSImgDirection(geo_direction) + "/100";
 			if( MyDebug.LOG )
 				Log.d(TAG, "GPSImgDirection_string: " + GPSImgDirection_string);
 		   	exif.setAttribute(TAG_GPS_IMG_DIRECTION, GPSImgDirection_string);
@@ -2695,13 +4204,8 @@ public class ImageSaver extends Thread {
 		// working , and was simply invalidating it such that Gallery then fell back to looking elsewhere for the datetime?
 		// So now hopefully fixed properly...
 		// Note, this problem also occurs on OnePlus 3T and Gallery ICS, if we don't have this function called
-		SimpleDateFormat date_fmt = new SimpleDateFormat("yyyy:MM:dd", Locale.US);
-		date_fmt.setTimeZone(TimeZone.getTimeZone("UTC")); // needs to be UTC time
-		String datestamp = date_fmt.format(current_date);
-
-		SimpleDateFormat time_fmt = new SimpleDateFormat("HH:mm:ss", Locale.US);
-		time_fmt.setTimeZone(TimeZone.getTimeZone("UTC"));
-		String timestamp = time_fmt.format(current_date);
+		String datestamp = JpegExifWriter.formatGPSDatestamp(current_date);
+		String timestamp = JpegExifWriter.formatGPSTimestamp(current_date);
 
 		if( MyDebug.LOG ) {
 			Log.d(TAG, "datestamp: " + datestamp);
@@ -2729,16 +4233,35 @@ public class ImageSaver extends Thread {
 			Log.d(TAG, "saveUri: " + saveUri);
 			Log.d(TAG, "picFile: " + saveUri);
 		}
-        InputStream inputStream = null;
+        FileInputStream inputStream = null;
 	    OutputStream realOutputStream = null;
 	    try {
             inputStream = new FileInputStream(picFile);
 		    realOutputStream = context.getContentResolver().openOutputStream(saveUri);
-		    // Transfer bytes from in to out
-		    byte [] buffer = new byte[1024];
-		    int len;
-		    while( (len = inputStream.read(buffer)) > 0 ) {
-		    	realOutputStream.write(buffer, 0, len);
+		    if( realOutputStream instanceof FileOutputStream ) {
+		    	// let the kernel copy the data, rather than copying through the Java heap
+		    	FileChannel in_channel = inputStream.getChannel();
+		    	FileChannel out_channel = ((FileOutputStream)realOutputStream).getChannel();
+		    	long size = in_channel.size();
+		    	long position = 0;
+		    	while( position < size ) {
+		    		long transferred = in_channel.transferTo(position, size - position, out_channel);
+		    		if( transferred <= 0 ) {
+		    			throw new IOException("failed to copy to " + saveUri);
+		    		}
+		    		position += transferred;
+		    	}
+		    }
+		    else if( realOutputStream != null ) {
+			    // Transfer bytes from in to out
+			    byte [] buffer = new byte[65536];
+			    int len;
+			    while( (len = inputStream.read(buffer)) > 0 ) {
+			    	realOutputStream.write(buffer, 0, len);
+			    }
+		    }
+		    else {
+		    	throw new FileNotFoundException("failed to open output stream for " + saveUri);
 		    }
 	    }
 	    finally {
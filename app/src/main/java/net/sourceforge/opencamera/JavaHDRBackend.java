@@ -0,0 +1,1210 @@
+package net.sourceforge.opencamera;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+import android.support.annotation.RequiresApi;
+import android.util.Log;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/** Runs the HDR and noise reduction kernels in plain Java, as a port of the RenderScript kernels
+ *  (see the .rs files for the original code and comments). Images are stored as int [] (ARGB, as
+ *  for Bitmap.getPixels()), float [] (RGB), short [] (RGB at half precision) or byte [] arrays,
+ *  and each kernel is run in parallel
+ *  over bands of rows on a ForkJoinPool.
+ *  This doesn't need RenderScript, so can also be run from unit tests on a desktop JVM.
+ */
+@RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+public class JavaHDRBackend implements HDRBackend {
+	private static final String TAG = "JavaHDRBackend";
+
+	private static final int min_rows_per_task_c = 16; // don't split work into bands smaller than this
+	private ForkJoinPool pool; // lazily created
+
+	public static class JavaImage implements Image {
+		private final int width;
+		private final int height;
+		private int [] pixels; // for RGBA images
+		private float [] pixels_f; // for floating point images, 3 floats per pixel
+		private short [] pixels_h; // for half precision floating point images, 3 fixed point values per pixel, see createHalfPrecisionImage()
+		private byte [] pixels_mtb; // for single channel images
+		private float [] pixels_hdr; // for HDR accumulators, 4 floats per pixel (weighted red, green, blue, and the weight)
+
+		private JavaImage(int width, int height) {
+			this.width = width;
+			this.height = height;
+		}
+
+		@Override
+		public int getWidth() {
+			return width;
+		}
+
+		@Override
+		public int getHeight() {
+			return height;
+		}
+
+		@Override
+		public boolean isFloatingPoint() {
+			return pixels_f != null || pixels_h != null;
+		}
+
+		@Override
+		public void destroy() {
+			pixels = null;
+			pixels_f = null;
+			pixels_h = null;
+			pixels_mtb = null;
+			pixels_hdr = null;
+		}
+	}
+
+	/** A kernel that is run over the rows [start_y, stop_y).
+	 */
+	private interface RowKernel {
+		void apply(int start_y, int stop_y);
+	}
+
+	private static class RowTask extends RecursiveAction {
+		private final RowKernel kernel;
+		private final int start_y;
+		private final int stop_y;
+		private final int rows_per_task;
+
+		RowTask(RowKernel kernel, int start_y, int stop_y, int rows_per_task) {
+			this.kernel = kernel;
+			this.start_y = start_y;
+			this.stop_y = stop_y;
+			this.rows_per_task = rows_per_task;
+		}
+
+		@Override
+		protected void compute() {
+			if( stop_y - start_y <= rows_per_task ) {
+				kernel.apply(start_y, stop_y);
+			}
+			else {
+				int mid_y = (start_y + stop_y) >>> 1;
+				invokeAll(new RowTask(kernel, start_y, mid_y, rows_per_task), new RowTask(kernel, mid_y, stop_y, rows_per_task));
+			}
+		}
+	}
+
+	private synchronized ForkJoinPool getPool() {
+		if( pool == null ) {
+			pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+		}
+		return pool;
+	}
+
+	/** Runs the kernel over the rows [start_y, stop_y), split into bands that are run in parallel.
+	 */
+	private void runRows(RowKernel kernel, int start_y, int stop_y) {
+		int n_rows = stop_y - start_y;
+		if( n_rows <= 0 )
+			return;
+		ForkJoinPool pool = getPool();
+		// aim for a few bands per thread, so threads that finish early can steal work
+		int rows_per_task = Math.max(min_rows_per_task_c, n_rows / (4*pool.getParallelism()));
+		pool.invoke(new RowTask(kernel, start_y, stop_y, rows_per_task));
+	}
+
+	/** Creates an RGBA image that uses the supplied array of ARGB pixels directly (so the array is
+	 *  modified if the image is used as an output).
+	 */
+	public Image createImage(int [] pixels, int width, int height) {
+		if( pixels.length != width*height ) {
+			// throw RuntimeException, as this is a programming error
+			throw new RuntimeException("pixels array is wrong size");
+		}
+		JavaImage image = new JavaImage(width, height);
+		image.pixels = pixels;
+		return image;
+	}
+
+	/** Returns the ARGB pixels of an RGBA image.
+	 */
+	public int [] getPixels(Image image) {
+		return ((JavaImage)image).pixels;
+	}
+
+	/** Returns the pixels of a floating point image, as 3 floats (red, green, blue) per pixel.
+	 */
+	public float [] getFloatPixels(Image image) {
+		return ((JavaImage)image).pixels_f;
+	}
+
+	/** Returns the pixels of a half precision floating point image, as 3 fixed point values (red,
+	 *  green, blue) per pixel, see halfToFloat().
+	 */
+	public short [] getHalfPixels(Image image) {
+		return ((JavaImage)image).pixels_h;
+	}
+
+	/** Converts a value of a half precision floating point image to a float.
+	 */
+	public static float halfToFloat(short value) {
+		return (value & 0xFFFF) / half_scale_c;
+	}
+
+	/** Converts a float to the nearest value that can be stored in a half precision floating point
+	 *  image, see createHalfPrecisionImage().
+	 */
+	public static short floatToHalf(float value) {
+		return (short)Math.max(0.0f, Math.min(value * half_scale_c + 0.5f, 65535.0f));
+	}
+
+	/** Returns the value at index i of a floating point image that is either at full (in_f) or
+	 *  half (in_h) precision.
+	 */
+	private static float getFloat(float [] in_f, short [] in_h, int i) {
+		return in_f != null ? in_f[i] : halfToFloat(in_h[i]);
+	}
+
+	/** Returns the pixels of an HDR accumulator, as 4 floats (weighted red, green, blue, and the
+	 *  weight) per pixel.
+	 */
+	public float [] getHDRPixels(Image image) {
+		return ((JavaImage)image).pixels_hdr;
+	}
+
+	/** Returns the pixels of a single channel image, as created by createMTB() or createGreyscale().
+	 */
+	public byte [] getMTBPixels(Image image) {
+		return ((JavaImage)image).pixels_mtb;
+	}
+
+	@Override
+	public Image createImage(Bitmap bitmap) {
+		int width = bitmap.getWidth();
+		int height = bitmap.getHeight();
+		int [] pixels = new int[width*height];
+		bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+		return createImage(pixels, width, height);
+	}
+
+	@Override
+	public Image createImage(Bitmap bitmap, int start_x, int start_y, int width, int height) {
+		int [] pixels = new int[width*height];
+		bitmap.getPixels(pixels, 0, width, start_x, start_y, width, height);
+		return createImage(pixels, width, height);
+	}
+
+	@Override
+	public Image createImage(int width, int height) {
+		return createImage(new int[width*height], width, height);
+	}
+
+	@Override
+	public Image createFloatImage(int width, int height) {
+		JavaImage image = new JavaImage(width, height);
+		image.pixels_f = new float[3*width*height];
+		return image;
+	}
+
+	@Override
+	public Image createHalfPrecisionImage(int width, int height) {
+		JavaImage image = new JavaImage(width, height);
+		image.pixels_h = new short[3*width*height];
+		return image;
+	}
+
+	@Override
+	public Image cropImage(Image image, int start_x, int start_y, int width, int height) {
+		int in_width = image.getWidth();
+		if( getHalfPixels(image) != null ) {
+			short [] in = getHalfPixels(image);
+			Image crop = createHalfPrecisionImage(width, height);
+			short [] out = getHalfPixels(crop);
+			for(int y=0;y<height;y++) {
+				System.arraycopy(in, 3*((start_y+y)*in_width+start_x), out, 3*y*width, 3*width);
+			}
+			return crop;
+		}
+		if( image.isFloatingPoint() ) {
+			float [] in = getFloatPixels(image);
+			Image crop = createFloatImage(width, height);
+			float [] out = getFloatPixels(crop);
+			for(int y=0;y<height;y++) {
+				System.arraycopy(in, 3*((start_y+y)*in_width+start_x), out, 3*y*width, 3*width);
+			}
+			return crop;
+		}
+		int [] in = getPixels(image);
+		int [] out = new int[width*height];
+		for(int y=0;y<height;y++) {
+			System.arraycopy(in, (start_y+y)*in_width+start_x, out, y*width, width);
+		}
+		return createImage(out, width, height);
+	}
+
+	@Override
+	public void copyTo(Image image, Bitmap bitmap) {
+		int width = image.getWidth();
+		int height = image.getHeight();
+		bitmap.setPixels(getPixels(image), 0, width, 0, 0, width, height);
+	}
+
+	@Override
+	public void copyTo(Image image, int start_x, int start_y, int width, int height, Bitmap bitmap, int dst_x, int dst_y) {
+		int stride = image.getWidth();
+		bitmap.setPixels(getPixels(image), start_y*stride+start_x, stride, dst_x, dst_y, width, height);
+	}
+
+	@Override
+	public void copyTo(Image image, short [] pixels) {
+		short [] in = getHalfPixels(image);
+		System.arraycopy(in, 0, pixels, 0, in.length);
+	}
+
+	@Override
+	public void copyFrom(Image image, short [] pixels) {
+		short [] out = getHalfPixels(image);
+		System.arraycopy(pixels, 0, out, 0, out.length);
+	}
+
+	private static int clampToByte(float value) {
+		return (int)Math.max(0.0f, Math.min(value, 255.0f));
+	}
+
+	private static int maxRGB(int color) {
+		int r = (color >> 16) & 0xFF;
+		int g = (color >> 8) & 0xFF;
+		int b = color & 0xFF;
+		return Math.max(Math.max(r, g), b);
+	}
+
+	private static int maxRGB(float [] pixels_f, short [] pixels_h, int indx) {
+		int r = clampToByte(getFloat(pixels_f, pixels_h, indx)+0.5f);
+		int g = clampToByte(getFloat(pixels_f, pixels_h, indx+1)+0.5f);
+		int b = clampToByte(getFloat(pixels_f, pixels_h, indx+2)+0.5f);
+		return Math.max(Math.max(r, g), b);
+	}
+
+	@Override
+	public Image createMTB(Image image, final int median_value, final int start_x, final int start_y, final int width, final int height) {
+		final int [] in = getPixels(image);
+		final int in_width = image.getWidth();
+		final JavaImage mtb = new JavaImage(width, height);
+		final byte [] out = new byte[width*height];
+		mtb.pixels_mtb = out;
+		runRows(new RowKernel() {
+			@Override
+			public void apply(int sy, int ey) {
+				for(int y=sy;y<ey;y++) {
+					int in_indx = (y+start_y)*in_width + start_x;
+					int out_indx = y*width;
+					for(int x=0;x<width;x++) {
+						int value = maxRGB(in[in_indx++]);
+						// ignore small differences to reduce effect of noise - this helps testHDR22
+						int out_value;
+						if( Math.abs(value - median_value) <= 4 )
+							out_value = 127;
+						else if( value <= median_value )
+							out_value = 0;
+						else
+							out_value = 255;
+						out[out_indx++] = (byte)out_value;
+					}
+				}
+			}
+		}, 0, height);
+		return mtb;
+	}
+
+	@Override
+	public Image createGreyscale(Image image, final int start_x, final int start_y, final int width, final int height) {
+		final int [] in = getPixels(image);
+		final float [] in_f = getFloatPixels(image);
+		final short [] in_h = getHalfPixels(image);
+		final boolean floating_point = image.isFloatingPoint();
+		final int in_width = image.getWidth();
+		final JavaImage mtb = new JavaImage(width, height);
+		final byte [] out = new byte[width*height];
+		mtb.pixels_mtb = out;
+		runRows(new RowKernel() {
+			@Override
+			public void apply(int sy, int ey) {
+				for(int y=sy;y<ey;y++) {
+					int in_indx = (y+start_y)*in_width + start_x;
+					int out_indx = y*width;
+					for(int x=0;x<width;x++,in_indx++) {
+						int value = floating_point ? maxRGB(in_f, in_h, 3*in_indx) : maxRGB(in[in_indx]);
+						out[out_indx++] = (byte)value;
+					}
+				}
+			}
+		}, 0, height);
+		return mtb;
+	}
+
+	@Override
+	public void alignMTB(final int [] errors, Image base, Image image, final boolean use_mtb, final int off_x, final int off_y, final int step_size, final int stop_x, final int stop_y) {
+		final byte [] pixels0 = getMTBPixels(base);
+		final byte [] pixels1 = getMTBPixels(image);
+		final int width0 = base.getWidth();
+		final int width1 = image.getWidth();
+		final int height1 = image.getHeight();
+		final long [] sums = new long[9];
+		runRows(new RowKernel() {
+			@Override
+			public void apply(int sy, int ey) {
+				long [] this_sums = new long[9];
+				for(int sample_y=sy;sample_y<ey;sample_y++) {
+					// as in align_mtb.rs, we sample every step_size'th pixel
+					int y = sample_y*step_size;
+					if( y+off_y < step_size || y+off_y >= height1-step_size )
+						continue;
+					for(int sample_x=0;sample_x<stop_x;sample_x++) {
+						int x = sample_x*step_size;
+						if( x+off_x < step_size || x+off_x >= width1-step_size )
+							continue;
+						int pixel0 = pixels0[y*width0+x] & 0xFF;
+						int c = 0;
+						for(int dy=-1;dy<=1;dy++) {
+							int row1 = (y+off_y+dy*step_size)*width1 + x+off_x;
+							for(int dx=-1;dx<=1;dx++) {
+								int pixel1 = pixels1[row1+dx*step_size] & 0xFF;
+								if( use_mtb ) {
+									if( pixel0 != pixel1 && pixel0 != 127 && pixel1 != 127 ) // ignore noise - see create_mtb.rs
+										this_sums[c]++;
+								}
+								else {
+									int diff = pixel1 - pixel0;
+									this_sums[c] += diff*diff;
+								}
+								c++;
+							}
+						}
+					}
+				}
+				synchronized( sums ) {
+					for(int c=0;c<9;c++)
+						sums[c] += this_sums[c];
+				}
+			}
+		}, 0, stop_y);
+		for(int c=0;c<9;c++) {
+			errors[c] = (int)Math.min(sums[c], Integer.MAX_VALUE); // avoid risk of overflow
+		}
+	}
+
+	@Override
+	public void processHDR(Image [] images, int base_bitmap, final int [] offsets_x, final int [] offsets_y, final float [] parameter_A, final float [] parameter_B, MotionMask motion_mask, final ToneCurveLUT tonemap, Image output) {
+		final int n_bitmaps = images.length;
+		final int width = output.getWidth();
+		final int height = output.getHeight();
+		final int [][] pixels = new int[n_bitmaps][];
+		for(int i=0;i<n_bitmaps;i++) {
+			pixels[i] = getPixels(images[i]);
+		}
+		final int [] in = pixels[base_bitmap];
+		final int [] out = getPixels(output);
+		final float base_A = parameter_A[base_bitmap];
+		final float base_B = parameter_B[base_bitmap];
+		final MotionMask mask = motion_mask != null && motion_mask.hasMotion() ? motion_mask : null;
+
+		runRows(new RowKernel() {
+			@Override
+			public void apply(int sy, int ey) {
+				// this is the algorithm of hdr_n() in process_hdr.rs (for 3 images, it gives the same results as hdr())
+				final float safe_range_c = 96.0f;
+				final int mid_indx = (n_bitmaps-1)/2; // round down to dark image for even number of bitmaps
+				final boolean even = n_bitmaps % 2 == 0;
+				final int n_adj = (n_bitmaps-1)/2;
+				int [] colors = new int[n_bitmaps];
+				float [] this_A = new float[n_bitmaps];
+				float [] this_B = new float[n_bitmaps];
+				for(int y=sy;y<ey;y++) {
+					for(int x=0;x<width;x++) {
+						int indx = y*width+x;
+						int in_color = in[indx];
+						for(int i=0;i<n_bitmaps;i++) {
+							int ix = x+offsets_x[i];
+							int iy = y+offsets_y[i];
+							if( ix >= 0 && iy >= 0 && ix < width && iy < height ) {
+								colors[i] = pixels[i][iy*width+ix];
+								this_A[i] = parameter_A[i];
+								this_B[i] = parameter_B[i];
+							}
+							else {
+								colors[i] = in_color;
+								this_A[i] = parameter_A[mid_indx];
+								this_B[i] = parameter_B[mid_indx];
+							}
+						}
+
+						float hdr_r = 0.0f, hdr_g = 0.0f, hdr_b = 0.0f;
+						float sum_weight = 0.0f;
+
+						int color = colors[mid_indx];
+						float r = (color >> 16) & 0xFF;
+						float g = (color >> 8) & 0xFF;
+						float b = color & 0xFF;
+						float avg = (r+g+b) / 3.0f;
+						float diff = Math.abs( avg - 127.5f );
+						float weight = 1.0f;
+						if( diff > safe_range_c ) {
+							// scaling chosen so that 0 and 255 map to a non-zero weight of 0.01
+							weight = 1.0f - 0.99f * (diff - safe_range_c) / (127.5f - safe_range_c);
+						}
+
+						// response function
+						r = this_A[mid_indx] * r + this_B[mid_indx];
+						g = this_A[mid_indx] * g + this_B[mid_indx];
+						b = this_A[mid_indx] * b + this_B[mid_indx];
+
+						hdr_r += weight * r;
+						hdr_g += weight * g;
+						hdr_b += weight * b;
+						sum_weight += weight;
+
+						if( even ) {
+							int color1 = colors[mid_indx+1];
+							float r1 = (color1 >> 16) & 0xFF;
+							float g1 = (color1 >> 8) & 0xFF;
+							float b1 = color1 & 0xFF;
+							float avg1 = (r1+g1+b1) / 3.0f;
+							float diff1 = Math.abs( avg1 - 127.5f );
+							float weight1 = 1.0f;
+							if( diff1 > safe_range_c ) {
+								weight1 = 1.0f - 0.99f * (diff1 - safe_range_c) / (127.5f - safe_range_c);
+							}
+							r1 = this_A[mid_indx+1] * r1 + this_B[mid_indx+1];
+							g1 = this_A[mid_indx+1] * g1 + this_B[mid_indx+1];
+							b1 = this_A[mid_indx+1] * b1 + this_B[mid_indx+1];
+
+							hdr_r += weight1 * r1;
+							hdr_g += weight1 * g1;
+							hdr_b += weight1 * b1;
+							sum_weight += weight1;
+
+							avg = (avg+avg1)/2.0f;
+							weight = (weight+weight1)/2.0f;
+						}
+
+						if( weight < 1.0f ) {
+							float base_r = r, base_g = g, base_b = b;
+							int adj_indx = mid_indx;
+							int step_dir = avg <= 127.5f ? 1 : -1;
+							if( even && step_dir == 1 ) {
+								adj_indx++; // so we move one beyond the middle pair of images (since mid_indx will be the darker of the pair)
+							}
+
+							for(int k=0;k<n_adj;k++) {
+								// now look at a neighbour image
+								weight = 1.0f - weight;
+								adj_indx += step_dir;
+
+								color = colors[adj_indx];
+								r = (color >> 16) & 0xFF;
+								g = (color >> 8) & 0xFF;
+								b = color & 0xFF;
+								if( k+1 < n_adj ) {
+									// there will be at least one more adjacent image to look at
+									avg = (r+g+b) / 3.0f;
+									diff = Math.abs( avg - 127.5f );
+									if( diff > safe_range_c ) {
+										weight *= 1.0f - 0.99f * (diff - safe_range_c) / (127.5f - safe_range_c);
+									}
+								}
+								r = this_A[adj_indx] * r + this_B[adj_indx];
+								g = this_A[adj_indx] * g + this_B[adj_indx];
+								b = this_A[adj_indx] * b + this_B[adj_indx];
+
+								float value = Math.max(Math.max(r, g), b);
+								if( value <= 250.0f ) {
+									// deghosting, see process_hdr.rs
+									final float wiener_C_lo = 2000.0f;
+									final float wiener_C_hi = 8000.0f;
+									float wiener_C = wiener_C_lo; // higher value means more HDR but less ghosting
+									float x_value = Math.abs( value - 127.5f ) - 96.0f;
+									if( x_value > 0.0f ) {
+										final float scale = (wiener_C_hi-wiener_C_lo)/(127.5f-96.0f);
+										wiener_C = wiener_C_lo + x_value*scale;
+									}
+									float diff_r = base_r - r;
+									float diff_g = base_g - g;
+									float diff_b = base_b - b;
+									float L = diff_r*diff_r + diff_g*diff_g + diff_b*diff_b;
+									float ghost_weight = L/(L+wiener_C);
+									r = ghost_weight * base_r + (1.0f-ghost_weight) * r;
+									g = ghost_weight * base_g + (1.0f-ghost_weight) * g;
+									b = ghost_weight * base_b + (1.0f-ghost_weight) * b;
+								}
+
+								hdr_r += weight * r;
+								hdr_g += weight * g;
+								hdr_b += weight * b;
+								sum_weight += weight;
+
+								if( diff <= safe_range_c ) {
+									break;
+								}
+							}
+						}
+
+						hdr_r /= sum_weight;
+						hdr_g /= sum_weight;
+						hdr_b /= sum_weight;
+
+						if( mask != null ) {
+							// fall back to the base exposure for moving tiles, see motion_weight() in process_hdr.rs
+							float m = mask.getWeight(x, y);
+							if( m > 0.0f ) {
+								float base_r = base_A * ((in_color >> 16) & 0xFF) + base_B;
+								float base_g = base_A * ((in_color >> 8) & 0xFF) + base_B;
+								float base_b = base_A * (in_color & 0xFF) + base_B;
+								hdr_r += m * (base_r - hdr_r);
+								hdr_g += m * (base_g - hdr_g);
+								hdr_b += m * (base_b - hdr_b);
+							}
+						}
+
+						// see tonemap() in process_hdr.rs
+						out[indx] = tonemap.apply(hdr_r, hdr_g, hdr_b);
+					}
+				}
+			}
+		}, 0, height);
+	}
+
+	/** Returns the weight for a pixel with the supplied average of rgb values, see hdr_n() in
+	 *  process_hdr.rs.
+	 */
+	private static float exposureWeight(float avg) {
+		final float safe_range_c = 96.0f;
+		float diff = Math.abs( avg - 127.5f );
+		float weight = 1.0f;
+		if( diff > safe_range_c ) {
+			// scaling chosen so that 0 and 255 map to a non-zero weight of 0.01
+			weight = 1.0f - 0.99f * (diff - safe_range_c) / (127.5f - safe_range_c);
+		}
+		return weight;
+	}
+
+	@Override
+	public Image createHDRAccumulator(int width, int height) {
+		JavaImage image = new JavaImage(width, height);
+		image.pixels_hdr = new float[4*width*height];
+		return image;
+	}
+
+	@Override
+	public void accumulateHDR(Image accumulator, Image image, final int offset_x, final int offset_y, final float parameter_A, final float parameter_B, Image base, final float base_A, final float base_B, final int exposure, final boolean extreme, MotionMask motion_mask) {
+		final int width = accumulator.getWidth();
+		final int height = accumulator.getHeight();
+		final float [] acc = getHDRPixels(accumulator);
+		final int [] in = getPixels(image);
+		final int [] in_base = getPixels(base);
+		final MotionMask mask = motion_mask != null && motion_mask.hasMotion() ? motion_mask : null;
+		runRows(new RowKernel() {
+			@Override
+			public void apply(int sy, int ey) {
+				// see accumulate_hdr() in process_hdr.rs
+				for(int y=sy;y<ey;y++) {
+					int iy = y+offset_y;
+					if( iy < 0 || iy >= height )
+						continue;
+					for(int x=0,indx=y*width;x<width;x++,indx++) {
+						int ix = x+offset_x;
+						if( ix < 0 || ix >= width )
+							continue;
+						int color = in[iy*width+ix];
+						float r = (color >> 16) & 0xFF;
+						float g = (color >> 8) & 0xFF;
+						float b = color & 0xFF;
+						float weight;
+						if( exposure == EXPOSURE_CENTRAL ) {
+							weight = exposureWeight((r+g+b)/3.0f);
+							r = parameter_A * r + parameter_B;
+							g = parameter_A * g + parameter_B;
+							b = parameter_A * b + parameter_B;
+						}
+						else {
+							int base_color = in_base[indx];
+							float base_r = (base_color >> 16) & 0xFF;
+							float base_g = (base_color >> 8) & 0xFF;
+							float base_b = base_color & 0xFF;
+							float base_avg = (base_r+base_g+base_b)/3.0f;
+							float base_weight = exposureWeight(base_avg);
+							if( base_weight >= 1.0f ) {
+								// base image is well exposed
+								continue;
+							}
+							if( exposure == EXPOSURE_BRIGHTER ? base_avg > 127.5f : base_avg <= 127.5f ) {
+								// only use brighter images where the base image is dark, and vice versa
+								continue;
+							}
+							weight = 1.0f - base_weight;
+							if( !extreme ) {
+								weight *= exposureWeight((r+g+b)/3.0f);
+							}
+							r = parameter_A * r + parameter_B;
+							g = parameter_A * g + parameter_B;
+							b = parameter_A * b + parameter_B;
+
+							float value = Math.max(Math.max(r, g), b);
+							if( value <= 250.0f ) {
+								// deghosting, see hdr_n() in process_hdr.rs
+								base_r = base_A * base_r + base_B;
+								base_g = base_A * base_g + base_B;
+								base_b = base_A * base_b + base_B;
+								final float wiener_C_lo = 2000.0f;
+								final float wiener_C_hi = 8000.0f;
+								float wiener_C = wiener_C_lo; // higher value means more HDR but less ghosting
+								float x_value = Math.abs( value - 127.5f ) - 96.0f;
+								if( x_value > 0.0f ) {
+									final float scale = (wiener_C_hi-wiener_C_lo)/(127.5f-96.0f);
+									wiener_C = wiener_C_lo + x_value*scale;
+								}
+								float diff_r = base_r - r;
+								float diff_g = base_g - g;
+								float diff_b = base_b - b;
+								float L = diff_r*diff_r + diff_g*diff_g + diff_b*diff_b;
+								float ghost_weight = L/(L+wiener_C);
+								r = ghost_weight * base_r + (1.0f-ghost_weight) * r;
+								g = ghost_weight * base_g + (1.0f-ghost_weight) * g;
+								b = ghost_weight * base_b + (1.0f-ghost_weight) * b;
+							}
+						}
+						if( mask != null ) {
+							weight *= 1.0f - mask.getWeight(x, y);
+						}
+						acc[4*indx] += weight * r;
+						acc[4*indx+1] += weight * g;
+						acc[4*indx+2] += weight * b;
+						acc[4*indx+3] += weight;
+					}
+				}
+			}
+		}, 0, height);
+	}
+
+	@Override
+	public void tonemapHDR(Image accumulator, Image output, final ToneCurveLUT tonemap) {
+		final int width = accumulator.getWidth();
+		final float [] acc = getHDRPixels(accumulator);
+		final int [] out = getPixels(output);
+		runRows(new RowKernel() {
+			@Override
+			public void apply(int sy, int ey) {
+				for(int y=sy;y<ey;y++) {
+					for(int x=0,indx=y*width;x<width;x++,indx++) {
+						float sum_weight = acc[4*indx+3];
+						if( sum_weight <= 0.0f ) {
+							// shouldn't happen, as the base image always has a non-zero weight
+							sum_weight = 1.0f;
+						}
+						out[indx] = tonemap.apply(acc[4*indx]/sum_weight, acc[4*indx+1]/sum_weight, acc[4*indx+2]/sum_weight);
+					}
+				}
+			}
+		}, 0, accumulator.getHeight());
+	}
+
+	@Override
+	public int [] computeHistogram(Image image, final boolean avg) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "computeHistogram");
+		final int width = image.getWidth();
+		final int [] in = getPixels(image);
+		final float [] in_f = getFloatPixels(image);
+		final short [] in_h = getHalfPixels(image);
+		final boolean floating_point = image.isFloatingPoint();
+		final int [] histogram = new int[256];
+		runRows(new RowKernel() {
+			@Override
+			public void apply(int sy, int ey) {
+				int [] this_histogram = new int[256];
+				for(int y=sy;y<ey;y++) {
+					for(int x=0,indx=y*width;x<width;x++,indx++) {
+						int value;
+						if( avg ) {
+							float r, g, b;
+							if( floating_point ) {
+								r = getFloat(in_f, in_h, 3*indx);
+								g = getFloat(in_f, in_h, 3*indx+1);
+								b = getFloat(in_f, in_h, 3*indx+2);
+							}
+							else {
+								int color = in[indx];
+								r = (color >> 16) & 0xFF;
+								g = (color >> 8) & 0xFF;
+								b = color & 0xFF;
+							}
+							value = clampToByte((r + g + b)/3.0f + 0.5f); // round to nearest
+						}
+						else {
+							// We compute a histogram based on the max RGB value, so this matches with the scaling we do in histogram_adjust.rs.
+							value = floating_point ? maxRGB(in_f, in_h, 3*indx) : maxRGB(in[indx]);
+						}
+						this_histogram[value]++;
+					}
+				}
+				synchronized( histogram ) {
+					for(int i=0;i<256;i++)
+						histogram[i] += this_histogram[i];
+				}
+			}
+		}, 0, image.getHeight());
+		return histogram;
+	}
+
+	@Override
+	public int [] computeHistogram(Image image, final int start_x, int start_y, final int stop_x, int stop_y) {
+		final int width = image.getWidth();
+		final int [] in = getPixels(image);
+		final int [] histogram = new int[256];
+		runRows(new RowKernel() {
+			@Override
+			public void apply(int sy, int ey) {
+				int [] this_histogram = new int[256];
+				for(int y=sy;y<ey;y++) {
+					for(int x=start_x,indx=y*width+start_x;x<stop_x;x++,indx++) {
+						this_histogram[maxRGB(in[indx])]++;
+					}
+				}
+				synchronized( histogram ) {
+					for(int i=0;i<256;i++)
+						histogram[i] += this_histogram[i];
+				}
+			}
+		}, start_y, stop_y);
+		return histogram;
+	}
+
+	@Override
+	public int [] computeTileHistograms(Image image, final int [] tile_x, int [] tile_y, final int n_tiles) {
+		final int width = image.getWidth();
+		final int [] in = getPixels(image);
+		final int [] histograms = new int[n_tiles*n_tiles*256];
+		// find the rows of each tile row, so that each task can write to different histograms
+		final int [] row_start = new int[n_tiles];
+		final int [] row_stop = new int[n_tiles];
+		for(int y=0;y<tile_y.length;y++) {
+			int j = tile_y[y];
+			if( j < 0 )
+				continue;
+			if( row_stop[j] == 0 )
+				row_start[j] = y;
+			row_stop[j] = y+1;
+		}
+		// run a task per tile row
+		getPool().invoke(new RowTask(new RowKernel() {
+			@Override
+			public void apply(int start_j, int stop_j) {
+				for(int j=start_j;j<stop_j;j++) {
+					for(int y=row_start[j];y<row_stop[j];y++) {
+						for(int x=0,indx=y*width;x<width;x++,indx++) {
+							int i = tile_x[x];
+							if( i >= 0 )
+								histograms[256*(i*n_tiles+j) + maxRGB(in[indx])]++;
+						}
+					}
+				}
+			}
+		}, 0, n_tiles, 1));
+		return histograms;
+	}
+
+	private static int getEqualValue(byte [] equal_values, int histogram_offset, int value) {
+		return equal_values[histogram_offset+value] & 0xFF;
+	}
+
+	@Override
+	public void adjustHistogram(Image image_in, Image image_out, byte [] equal_values, float hdr_alpha, int n_tiles) {
+		adjustHistogram(image_in, image_out, equal_values, hdr_alpha, n_tiles, 0, 0, image_in.getWidth(), image_in.getHeight());
+	}
+
+	@Override
+	public void adjustHistogram(Image image_in, Image image_out, final byte [] equal_values, final float hdr_alpha, final int n_tiles, final int origin_x, final int origin_y, final int full_width, final int full_height) {
+		final int width = image_in.getWidth();
+		final int height = image_in.getHeight();
+		final int [] in = getPixels(image_in);
+		final int [] out = getPixels(image_out);
+		runRows(new RowKernel() {
+			@Override
+			public void apply(int sy, int ey) {
+				// see histogram_adjust.rs
+				for(int y=sy;y<ey;y++) {
+					float ty = ((float)(y+origin_y)*n_tiles)/(float)full_height - 0.5f;
+					int iy = (int)Math.floor(ty);
+					for(int x=0,indx=y*width;x<width;x++,indx++) {
+						int color = in[indx];
+						int value = maxRGB(color);
+
+						float tx = ((float)(x+origin_x)*n_tiles)/(float)full_width - 0.5f;
+						int ix = (int)Math.floor(tx);
+						int equal_value;
+						if( ix >= 0 && ix < n_tiles-1 && iy >= 0 && iy < n_tiles-1 ) {
+							int equal_value00 = getEqualValue(equal_values, 256*(ix*n_tiles+iy), value);
+							int equal_value10 = getEqualValue(equal_values, 256*((ix+1)*n_tiles+iy), value);
+							int equal_value01 = getEqualValue(equal_values, 256*(ix*n_tiles+iy+1), value);
+							int equal_value11 = getEqualValue(equal_values, 256*((ix+1)*n_tiles+iy+1), value);
+							float alpha = tx - ix;
+							float beta = ty - iy;
+
+							float equal_value0 = (1.0f-alpha)*equal_value00 + alpha*equal_value10;
+							float equal_value1 = (1.0f-alpha)*equal_value01 + alpha*equal_value11;
+							equal_value = (int)((1.0f-beta)*equal_value0 + beta*equal_value1);
+						}
+						else if( ix >= 0 && ix < n_tiles-1 ) {
+							int this_y = (iy<0) ? iy+1 : iy;
+							int equal_value0 = getEqualValue(equal_values, 256*(ix*n_tiles+this_y), value);
+							int equal_value1 = getEqualValue(equal_values, 256*((ix+1)*n_tiles+this_y), value);
+							float alpha = tx - ix;
+							equal_value = (int)((1.0f-alpha)*equal_value0 + alpha*equal_value1);
+						}
+						else if( iy >= 0 && iy < n_tiles-1 ) {
+							int this_x = (ix<0) ? ix+1 : ix;
+							int equal_value0 = getEqualValue(equal_values, 256*(this_x*n_tiles+iy), value);
+							int equal_value1 = getEqualValue(equal_values, 256*(this_x*n_tiles+iy+1), value);
+							float beta = ty - iy;
+							equal_value = (int)((1.0f-beta)*equal_value0 + beta*equal_value1);
+						}
+						else {
+							int this_x = (ix<0) ? ix+1 : ix;
+							int this_y = (iy<0) ? iy+1 : iy;
+							equal_value = getEqualValue(equal_values, 256*(this_x*n_tiles+this_y), value);
+						}
+
+						int new_value = (int)( (1.0f-hdr_alpha) * value + hdr_alpha * equal_value );
+
+						float scale = ((float)new_value) / (float)value;
+
+						// need to add +0.5 so that we round to nearest
+						int r = Math.min(255, (int)(((color >> 16) & 0xFF) * scale + 0.5f));
+						int g = Math.min(255, (int)(((color >> 8) & 0xFF) * scale + 0.5f));
+						int b = Math.min(255, (int)((color & 0xFF) * scale + 0.5f));
+						out[indx] = 0xFF000000 | (r << 16) | (g << 8) | b;
+					}
+				}
+			}
+		}, 0, height);
+	}
+
+	@Override
+	public AvgStats processAvg(Image avg, Image new_image, int offset_x, int offset_y, TileAlignment tile_alignment, float avg_factor, float wiener_C, float wiener_C_cutoff, Image image_out) {
+		return processAvg(avg, new_image, offset_x, offset_y, tile_alignment, avg_factor, wiener_C, wiener_C_cutoff, image_out, 0, 0, 0, 0);
+	}
+
+	@Override
+	public AvgStats processAvg(Image avg, Image new_image, final int offset_x, final int offset_y, final TileAlignment tile_alignment, final float avg_factor, final float wiener_C, final float wiener_C_cutoff, Image image_out, final int origin_x, final int origin_y, final int new_origin_x, final int new_origin_y) {
+		final int width = avg.getWidth();
+		final int height = avg.getHeight();
+		final int new_width = new_image.getWidth();
+		final int new_height = new_image.getHeight();
+		final int [] in = getPixels(avg);
+		final float [] in_f = getFloatPixels(avg);
+		final short [] in_h = getHalfPixels(avg);
+		final int [] pixels_new = getPixels(new_image);
+		final float [] out = getFloatPixels(image_out);
+		final short [] out_h = getHalfPixels(image_out);
+		final int [] merged_count = new int[height]; // number of pixels merged for each row
+		final double [] diff_sum = new double[height]; // sum of L over the pixels merged for each row
+		runRows(new RowKernel() {
+			@Override
+			public void apply(int sy, int ey) {
+				// see avg_f() in process_avg.rs
+				for(int y=sy;y<ey;y++) {
+					int count = 0;
+					double sum = 0.0;
+					for(int x=0,indx=y*width;x<width;x++,indx++) {
+						float avg_r, avg_g, avg_b;
+						if( in_f != null || in_h != null ) {
+							avg_r = getFloat(in_f, in_h, 3*indx);
+							avg_g = getFloat(in_f, in_h, 3*indx+1);
+							avg_b = getFloat(in_f, in_h, 3*indx+2);
+						}
+						else {
+							int color = in[indx];
+							avg_r = (color >> 16) & 0xFF;
+							avg_g = (color >> 8) & 0xFF;
+							avg_b = color & 0xFF;
+						}
+
+						// the pixel of the full images, and then of the region held by new_image
+						int ix = x+origin_x, iy = y+origin_y;
+						if( tile_alignment != null ) {
+							ix += tile_alignment.getPixelOffsetX(x+origin_x, y+origin_y);
+							iy += tile_alignment.getPixelOffsetY(x+origin_x, y+origin_y);
+						}
+						else {
+							ix += offset_x;
+							iy += offset_y;
+						}
+						ix -= new_origin_x;
+						iy -= new_origin_y;
+						if( ix >= 0 && iy >= 0 && ix < new_width && iy < new_height ) {
+							int color_new = pixels_new[iy*new_width+ix];
+							float new_r = (color_new >> 16) & 0xFF;
+							float new_g = (color_new >> 8) & 0xFF;
+							float new_b = color_new & 0xFF;
+
+							// temporal merging
+							// smaller value of wiener_C means stronger filter (i.e., less averaging)
+							float diff_r = avg_r - new_r;
+							float diff_g = avg_g - new_g;
+							float diff_b = avg_b - new_b;
+							float L = diff_r*diff_r + diff_g*diff_g + diff_b*diff_b;
+							// if L > wiener_C_cutoff, error too large, so no contribution for new image pixel
+							if( L <= wiener_C_cutoff ) {
+								float weight = L/(L+wiener_C);
+								new_r = weight * avg_r + (1.0f-weight) * new_r;
+								new_g = weight * avg_g + (1.0f-weight) * new_g;
+								new_b = weight * avg_b + (1.0f-weight) * new_b;
+
+								avg_r = (avg_factor*avg_r + new_r)/(avg_factor+1.0f);
+								avg_g = (avg_factor*avg_g + new_g)/(avg_factor+1.0f);
+								avg_b = (avg_factor*avg_b + new_b)/(avg_factor+1.0f);
+								count++;
+								sum += L;
+							}
+						}
+
+						if( out_h != null ) {
+							out_h[3*indx] = floatToHalf(avg_r);
+							out_h[3*indx+1] = floatToHalf(avg_g);
+							out_h[3*indx+2] = floatToHalf(avg_b);
+						}
+						else {
+							out[3*indx] = avg_r;
+							out[3*indx+1] = avg_g;
+							out[3*indx+2] = avg_b;
+						}
+					}
+					merged_count[y] = count;
+					diff_sum[y] = sum;
+				}
+			}
+		}, 0, height);
+		long total = 0;
+		for(int count : merged_count) {
+			total += count;
+		}
+		double total_diff = 0.0;
+		for(double sum : diff_sum) {
+			total_diff += sum;
+		}
+		return new AvgStats(total / (float)(width*height), total == 0 ? 0.0f : (float)(total_diff/total));
+	}
+
+	@Override
+	public void processAvgMulti(Image [] images) {
+		final int width = images[0].getWidth();
+		final int n_images = images.length;
+		final int [][] pixels = new int[n_images][];
+		for(int i=0;i<n_images;i++) {
+			pixels[i] = getPixels(images[i]);
+		}
+		runRows(new RowKernel() {
+			@Override
+			public void apply(int sy, int ey) {
+				for(int y=sy;y<ey;y++) {
+					for(int x=0,indx=y*width;x<width;x++,indx++) {
+						float r = 0.0f, g = 0.0f, b = 0.0f;
+						for(int i=0;i<n_images;i++) {
+							int color = pixels[i][indx];
+							r += (color >> 16) & 0xFF;
+							g += (color >> 8) & 0xFF;
+							b += color & 0xFF;
+						}
+						r /= n_images;
+						g /= n_images;
+						b /= n_images;
+						pixels[0][indx] = 0xFF000000 | (clampToByte(r+0.5f) << 16) | (clampToByte(g+0.5f) << 8) | clampToByte(b+0.5f);
+					}
+				}
+			}
+		}, 0, images[0].getHeight());
+	}
+
+	private static float maxRGB(float r, float g, float b) {
+		return Math.max(Math.max(r, g), b);
+	}
+
+	@Override
+	public void avgBrighten(Image input, Image output, final float black_level, final float median_filter_strength, final ToneCurveLUT brighten) {
+		final int width = input.getWidth();
+		final int height = input.getHeight();
+		final float [] in_f = getFloatPixels(input);
+		final short [] in_h = getHalfPixels(input);
+		final int [] out = getPixels(output);
+		final float white_level = 255.0f / (255.0f - black_level);
+		runRows(new RowKernel() {
+			@Override
+			public void apply(int sy, int ey) {
+				// see avg_brighten_f() in avg_brighten.rs
+				float [] in = in_f;
+				int base = 0; // index in the input of the first value of in
+				if( in_h != null ) {
+					// half precision input: convert just the rows this band reads, as the filters below read up to 3 rows
+					// above and below
+					int start_row = Math.max(sy-3, 0);
+					int stop_row = Math.min(ey+3, height);
+					base = 3*start_row*width;
+					in = new float[3*(stop_row-start_row)*width];
+					for(int i=0;i<in.length;i++) {
+						in[i] = halfToFloat(in_h[base+i]);
+					}
+				}
+				int [] median_indx = new int[5];
+				float [] median_value = new float[5];
+				for(int y=sy;y<ey;y++) {
+					for(int x=0;x<width;x++) {
+						int indx = 3*(y*width+x) - base;
+						float r = in[indx];
+						float g = in[indx+1];
+						float b = in[indx+2];
+
+						if( x > 0 && x < width-1 && y > 0 && y < height-1 ) {
+							// median filter for noise reduction
+							median_indx[0] = indx - 3*width;
+							median_indx[1] = indx - 3;
+							median_indx[2] = indx;
+							median_indx[3] = indx + 3;
+							median_indx[4] = indx + 3*width;
+							for(int i=0;i<5;i++) {
+								int j = median_indx[i];
+								median_value[i] = maxRGB(in[j], in[j+1], in[j+2]);
+							}
+							// partially sort with the same comparisons as avg_brighten.rs (and UnitTest.findMedian()),
+							// so that ties are resolved the same way
+							for(int i=0;i<3;i++) {
+								for(int j=i+1;j<5;j++) {
+									if( median_value[i] > median_value[j] ) {
+										float temp_value = median_value[i];
+										median_value[i] = median_value[j];
+										median_value[j] = temp_value;
+										int temp_indx = median_indx[i];
+										median_indx[i] = median_indx[j];
+										median_indx[j] = temp_indx;
+									}
+								}
+							}
+							int m = median_indx[2];
+							r = (1.0f - median_filter_strength) * r + median_filter_strength * in[m];
+							g = (1.0f - median_filter_strength) * g + median_filter_strength * in[m+1];
+							b = (1.0f - median_filter_strength) * b + median_filter_strength * in[m+2];
+						}
+
+						{
+							// spatial noise reduction filter, colour only
+							float old_value = maxRGB(r, g, b);
+							float sum_r = 0.0f, sum_g = 0.0f, sum_b = 0.0f;
+							final int radius = 3;
+							int count = 0;
+							int start_x = (x >= radius) ? x-radius : 0;
+							int stop_x = (x < width-radius) ? x+radius : width-1;
+							int start_y = (y >= radius) ? y-radius : 0;
+							int stop_y = (y < height-radius) ? y+radius : height-1;
+							for(int cy=start_y;cy<=stop_y;cy++) {
+								for(int cx=start_x,c_indx=3*(cy*width+start_x)-base;cx<=stop_x;cx++,c_indx+=3) {
+									float this_r = in[c_indx];
+									float this_g = in[c_indx+1];
+									float this_b = in[c_indx+2];
+									float this_value = maxRGB(this_r, this_g, this_b);
+									if( this_value > 0.5f ) {
+										float scale = old_value/this_value;
+										this_r *= scale;
+										this_g *= scale;
+										this_b *= scale;
+									}
+									// use a wiener filter, so that more similar pixels have greater contribution
+									final float C = 64.0f*64.0f/8.0f;
+									float diff_r = r - this_r;
+									float diff_g = g - this_g;
+									float diff_b = b - this_b;
+									float L = diff_r*diff_r + diff_g*diff_g + diff_b*diff_b;
+									float weight = L/(L+C);
+									sum_r += weight * r + (1.0f-weight) * this_r;
+									sum_g += weight * g + (1.0f-weight) * this_g;
+									sum_b += weight * b + (1.0f-weight) * this_b;
+									count++;
+								}
+							}
+							r = sum_r / count;
+							g = sum_g / count;
+							b = sum_b / count;
+						}
+
+						if( x >= 1 && x < width-1 && y >= 1 && y < height-1 ) {
+							// sharpen
+							int above = indx - 3*width;
+							int below = indx + 3*width;
+							float blurred_r = (in[above-3] + in[above] + in[above+3] + in[indx-3] + 8.0f*r + in[indx+3] + in[below-3] + in[below] + in[below+3])/16.0f;
+							float blurred_g = (in[above-2] + in[above+1] + in[above+4] + in[indx-2] + 8.0f*g + in[indx+4] + in[below-2] + in[below+1] + in[below+4])/16.0f;
+							float blurred_b = (in[above-1] + in[above+2] + in[above+5] + in[indx-1] + 8.0f*b + in[indx+5] + in[below-1] + in[below+2] + in[below+5])/16.0f;
+							float shift_r = 1.5f * (r-blurred_r);
+							float shift_g = 1.5f * (g-blurred_g);
+							float shift_b = 1.5f * (b-blurred_b);
+							final float threshold2 = 8*8;
+							if( shift_r*shift_r + shift_g*shift_g + shift_b*shift_b > threshold2 ) {
+								r += shift_r;
+								g += shift_g;
+								b += shift_b;
+							}
+							r = Math.max(0.0f, Math.min(r, 255.0f));
+							g = Math.max(0.0f, Math.min(g, 255.0f));
+							b = Math.max(0.0f, Math.min(b, 255.0f));
+						}
+
+						r = Math.max(0.0f, Math.min((r - black_level) * white_level, 255.0f));
+						g = Math.max(0.0f, Math.min((g - black_level) * white_level, 255.0f));
+						b = Math.max(0.0f, Math.min((b - black_level) * white_level, 255.0f));
+
+						// apply piecewise function of gain vs gamma
+						out[y*width+x] = brighten.apply(r, g, b);
+					}
+				}
+			}
+		}, 0, height);
+	}
+
+	@Override
+	public boolean isThreadSafe() {
+		// kernels only share the ForkJoinPool, which can be invoked from several threads
+		return true;
+	}
+
+	@Override
+	public void setMaxPoolBytes(long max_bytes) {
+		// images are Java arrays, which are left to the garbage collector rather than pooled
+	}
+
+	@Override
+	public long getPoolBytes() {
+		return 0;
+	}
+
+	@Override
+	public void warmUp(int width, int height, int n_images, int n_float_images, boolean half_precision) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "warmUp");
+		// creating the ForkJoinPool is the only setup
+		getPool();
+	}
+
+	@Override
+	public void trimMemory(int level) {
+		// nothing is kept between photos
+	}
+
+	@Override
+	public void freeScripts() {
+		// nothing is cached between kernels
+	}
+
+	@Override
+	public void onDestroy() {
+		if( MyDebug.LOG )
+			Log.d(TAG, "onDestroy");
+		if( pool != null ) {
+			pool.shutdown();
+			pool = null;
+		}
+	}
+}
@@ -0,0 +1,743 @@
+package net.sourceforge.opencamera;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+/** Reads the Exif (APP1) segment of a JPEG, allows tags to be changed, then writes out a JPEG
+ *  with the new Exif segment in a single pass - either the original JPEG, or one that has been
+ *  re-encoded from a bitmap. This avoids ExifInterface.saveAttributes(), which reads and rewrites
+ *  the whole file again after it has been saved.
+ *  Tags are held as their raw bytes, in the byte order of the source, so tags that we don't
+ *  change are written out exactly as they were read.
+ */
+public class JpegExifWriter {
+	private static final String TAG = "JpegExifWriter";
+
+	// the IFDs (image file directories) that we read and write
+	public static final int IFD_0 = 0; // the main image
+	public static final int IFD_EXIF = 1;
+	public static final int IFD_GPS = 2;
+	public static final int IFD_INTEROP = 3;
+	public static final int IFD_1 = 4; // the thumbnail
+	private static final int N_IFDS = 5;
+
+	// tags in IFD_0
+	public static final int TAG_IMAGE_WIDTH = 0x0100;
+	public static final int TAG_IMAGE_LENGTH = 0x0101;
+	public static final int TAG_COMPRESSION = 0x0103;
+	public static final int TAG_PHOTOMETRIC_INTERPRETATION = 0x0106;
+	public static final int TAG_IMAGE_DESCRIPTION = 0x010E;
+	public static final int TAG_MAKE = 0x010F;
+	public static final int TAG_MODEL = 0x0110;
+	public static final int TAG_ORIENTATION = 0x0112;
+	public static final int TAG_SOFTWARE = 0x0131;
+	public static final int TAG_DATETIME = 0x0132;
+	public static final int TAG_ARTIST = 0x013B;
+	public static final int TAG_COPYRIGHT = 0x8298;
+	// tags in IFD_EXIF
+	public static final int TAG_EXPOSURE_TIME = 0x829A;
+	public static final int TAG_F_NUMBER = 0x829D;
+	public static final int TAG_EXPOSURE_PROGRAM = 0x8822;
+	public static final int TAG_ISO_SPEED_RATINGS = 0x8827;
+	public static final int TAG_OECF = 0x8828;
+	public static final int TAG_DATETIME_ORIGINAL = 0x9003;
+	public static final int TAG_DATETIME_DIGITIZED = 0x9004;
+	public static final int TAG_COMPONENTS_CONFIGURATION = 0x9101;
+	public static final int TAG_COMPRESSED_BITS_PER_PIXEL = 0x9102;
+	public static final int TAG_SHUTTER_SPEED_VALUE = 0x9201;
+	public static final int TAG_APERTURE_VALUE = 0x9202;
+	public static final int TAG_BRIGHTNESS_VALUE = 0x9203;
+	public static final int TAG_EXPOSURE_BIAS_VALUE = 0x9204;
+	public static final int TAG_MAX_APERTURE_VALUE = 0x9205;
+	public static final int TAG_METERING_MODE = 0x9207;
+	public static final int TAG_LIGHT_SOURCE = 0x9208;
+	public static final int TAG_FLASH = 0x9209;
+	public static final int TAG_FOCAL_LENGTH = 0x920A;
+	public static final int TAG_MAKER_NOTE = 0x927C;
+	public static final int TAG_USER_COMMENT = 0x9286;
+	public static final int TAG_SUBSEC_TIME = 0x9290;
+	public static final int TAG_SUBSEC_TIME_ORIGINAL = 0x9291;
+	public static final int TAG_SUBSEC_TIME_DIGITIZED = 0x9292;
+	public static final int TAG_COLOR_SPACE = 0xA001;
+	public static final int TAG_PIXEL_X_DIMENSION = 0xA002;
+	public static final int TAG_PIXEL_Y_DIMENSION = 0xA003;
+	public static final int TAG_FLASH_ENERGY = 0xA20B;
+	public static final int TAG_FOCAL_PLANE_X_RESOLUTION = 0xA20E;
+	public static final int TAG_FOCAL_PLANE_Y_RESOLUTION = 0xA20F;
+	public static final int TAG_FOCAL_PLANE_RESOLUTION_UNIT = 0xA210;
+	public static final int TAG_EXPOSURE_INDEX = 0xA215;
+	public static final int TAG_SENSING_METHOD = 0xA217;
+	public static final int TAG_SCENE_TYPE = 0xA301;
+	public static final int TAG_CFA_PATTERN = 0xA302;
+	public static final int TAG_EXPOSURE_MODE = 0xA402;
+	public static final int TAG_WHITE_BALANCE = 0xA403;
+	public static final int TAG_DIGITAL_ZOOM_RATIO = 0xA404;
+	public static final int TAG_FOCAL_LENGTH_IN_35MM_FILM = 0xA405;
+	public static final int TAG_SCENE_CAPTURE_TYPE = 0xA406;
+	public static final int TAG_GAIN_CONTROL = 0xA407;
+	public static final int TAG_CONTRAST = 0xA408;
+	public static final int TAG_SATURATION = 0xA409;
+	public static final int TAG_SHARPNESS = 0xA40A;
+	public static final int TAG_DEVICE_SETTING_DESCRIPTION = 0xA40B;
+	// tags in IFD_GPS
+	public static final int TAG_GPS_VERSION_ID = 0x0000;
+	public static final int TAG_GPS_LATITUDE_REF = 0x0001;
+	public static final int TAG_GPS_LATITUDE = 0x0002;
+	public static final int TAG_GPS_LONGITUDE_REF = 0x0003;
+	public static final int TAG_GPS_LONGITUDE = 0x0004;
+	public static final int TAG_GPS_ALTITUDE_REF = 0x0005;
+	public static final int TAG_GPS_ALTITUDE = 0x0006;
+	public static final int TAG_GPS_TIMESTAMP = 0x0007;
+	public static final int TAG_GPS_MEASURE_MODE = 0x000A;
+	public static final int TAG_GPS_DOP = 0x000B;
+	public static final int TAG_GPS_IMG_DIRECTION_REF = 0x0010;
+	public static final int TAG_GPS_IMG_DIRECTION = 0x0011;
+	public static final int TAG_GPS_PROCESSING_METHOD = 0x001B;
+	public static final int TAG_GPS_AREA_INFORMATION = 0x001C;
+	public static final int TAG_GPS_DATESTAMP = 0x001D;
+	public static final int TAG_GPS_DIFFERENTIAL = 0x001E;
+
+	// pointer tags, which we recompute when writing rather than storing as entries
+	private static final int TAG_EXIF_IFD_POINTER = 0x8769;
+	private static final int TAG_GPS_IFD_POINTER = 0x8825;
+	private static final int TAG_INTEROP_IFD_POINTER = 0xA005;
+	private static final int TAG_JPEG_INTERCHANGE_FORMAT = 0x0201;
+	private static final int TAG_JPEG_INTERCHANGE_FORMAT_LENGTH = 0x0202;
+	private static final int TAG_STRIP_OFFSETS = 0x0111;
+
+	public static final int ORIENTATION_NORMAL = 1;
+
+	// data types
+	private static final int TYPE_ASCII = 2;
+	private static final int TYPE_SHORT = 3;
+	private static final int TYPE_LONG = 4;
+	private static final int TYPE_RATIONAL = 5;
+	private static final int [] type_sizes = {0, 1, 1, 2, 4, 8, 1, 1, 2, 4, 8, 4, 8}; // indexed by type
+
+	private static final byte [] exif_header = {'E', 'x', 'i', 'f', 0, 0};
+	private static final int marker_soi = 0xD8;
+	private static final int marker_app1 = 0xE1;
+	private static final int marker_sos = 0xDA;
+	private static final int marker_eoi = 0xD9;
+	private static final int max_segment_length_c = 0xFFFF; // including the 2 length bytes, but not the marker
+	private static final int max_header_bytes_c = 256*1024; // how much of a buffer to search for the Exif segment
+
+	/** The tags that are transferred to a JPEG that has been re-encoded from a bitmap, see
+	 *  retainTransferTags(). This is the same set of tags that ImageSaver.setExif() transfers using
+	 *  ExifInterface. Note we don't transfer width/height (which may have changed) or orientation
+	 *  (as bitmaps are rotated to account for it).
+	 */
+	private static final int [][] transfer_tags = {
+		// IFD_0
+		{TAG_COMPRESSION, TAG_PHOTOMETRIC_INTERPRETATION, TAG_IMAGE_DESCRIPTION, TAG_MAKE, TAG_MODEL, TAG_SOFTWARE, TAG_DATETIME},
+		// IFD_EXIF
+		{TAG_EXPOSURE_TIME, TAG_F_NUMBER, TAG_EXPOSURE_PROGRAM, TAG_ISO_SPEED_RATINGS, TAG_OECF, TAG_DATETIME_ORIGINAL, TAG_DATETIME_DIGITIZED,
+			TAG_COMPONENTS_CONFIGURATION, TAG_COMPRESSED_BITS_PER_PIXEL, TAG_SHUTTER_SPEED_VALUE, TAG_APERTURE_VALUE, TAG_BRIGHTNESS_VALUE,
+			TAG_EXPOSURE_BIAS_VALUE, TAG_MAX_APERTURE_VALUE, TAG_METERING_MODE, TAG_LIGHT_SOURCE, TAG_FLASH, TAG_FOCAL_LENGTH, TAG_MAKER_NOTE,
+			TAG_USER_COMMENT, TAG_SUBSEC_TIME, TAG_SUBSEC_TIME_ORIGINAL, TAG_SUBSEC_TIME_DIGITIZED, TAG_COLOR_SPACE, TAG_FLASH_ENERGY,
+			TAG_FOCAL_PLANE_X_RESOLUTION, TAG_FOCAL_PLANE_Y_RESOLUTION, TAG_FOCAL_PLANE_RESOLUTION_UNIT, TAG_EXPOSURE_INDEX, TAG_SENSING_METHOD,
+			TAG_SCENE_TYPE, TAG_CFA_PATTERN, TAG_EXPOSURE_MODE, TAG_WHITE_BALANCE, TAG_DIGITAL_ZOOM_RATIO, TAG_FOCAL_LENGTH_IN_35MM_FILM,
+			TAG_SCENE_CAPTURE_TYPE, TAG_GAIN_CONTROL, TAG_CONTRAST, TAG_SATURATION, TAG_SHARPNESS, TAG_DEVICE_SETTING_DESCRIPTION},
+		// IFD_GPS
+		{TAG_GPS_VERSION_ID, TAG_GPS_LATITUDE_REF, TAG_GPS_LATITUDE, TAG_GPS_LONGITUDE_REF, TAG_GPS_LONGITUDE, TAG_GPS_ALTITUDE_REF,
+			TAG_GPS_ALTITUDE, TAG_GPS_TIMESTAMP, TAG_GPS_MEASURE_MODE, TAG_GPS_DOP, TAG_GPS_PROCESSING_METHOD, TAG_GPS_AREA_INFORMATION,
+			TAG_GPS_DATESTAMP, TAG_GPS_DIFFERENTIAL},
+		// IFD_INTEROP
+		{},
+		// IFD_1
+		{}
+	};
+
+	private static class Entry {
+		final int type;
+		final int count;
+		final byte [] value; // in the byte order of the JpegExifWriter
+
+		Entry(int type, int count, byte [] value) {
+			this.type = type;
+			this.count = count;
+			this.value = value;
+		}
+	}
+
+	private final ByteOrder byte_order;
+	private final List<TreeMap<Integer, Entry>> ifds = new ArrayList<>(); // indexed by the IFD_* constants, sorted by tag as TIFF requires
+	private byte [] thumbnail; // the JPEG thumbnail referenced from IFD_1, or null if none
+
+	/** Creates an empty set of Exif tags.
+	 */
+	public JpegExifWriter() {
+		this(ByteOrder.BIG_ENDIAN);
+	}
+
+	private JpegExifWriter(ByteOrder byte_order) {
+		this.byte_order = byte_order;
+		for(int i=0;i<N_IFDS;i++) {
+			ifds.add(new TreeMap<Integer, Entry>());
+		}
+	}
+
+	/** Reads the Exif tags from a JPEG. If the JPEG doesn't have an Exif segment, the returned
+	 *  object has no tags.
+	 * @throws IOException If the data isn't a JPEG, or the Exif segment is corrupt.
+	 */
+	public static JpegExifWriter read(byte [] jpeg) throws IOException {
+		return read(jpeg, jpeg.length);
+	}
+
+	/** As read(byte []), but reads from the remaining bytes of the buffer. The buffer's position
+	 *  isn't changed.
+	 */
+	public static JpegExifWriter read(ByteBuffer jpeg) throws IOException {
+		byte [] header = readHeader(jpeg);
+		return read(header, header.length);
+	}
+
+	private static JpegExifWriter read(byte [] jpeg, int length) throws IOException {
+		int [] segment = findExifSegment(jpeg, length);
+		if( segment == null ) {
+			if( MyDebug.LOG )
+				Log.d(TAG, "no exif segment");
+			return new JpegExifWriter();
+		}
+		// skip the marker, length and exif header
+		int tiff_start = segment[0] + 4 + exif_header.length;
+		ByteBuffer tiff = ByteBuffer.wrap(jpeg, tiff_start, segment[1] - tiff_start).slice();
+		if( tiff.remaining() < 8 ) {
+			throw new IOException("exif segment too short");
+		}
+		ByteOrder byte_order;
+		if( tiff.get(0) == 'I' && tiff.get(1) == 'I' )
+			byte_order = ByteOrder.LITTLE_ENDIAN;
+		else if( tiff.get(0) == 'M' && tiff.get(1) == 'M' )
+			byte_order = ByteOrder.BIG_ENDIAN;
+		else
+			throw new IOException("unknown byte order");
+		tiff.order(byte_order);
+		if( (tiff.getShort(2) & 0xFFFF) != 42 ) {
+			throw new IOException("not a tiff header");
+		}
+		JpegExifWriter exif = new JpegExifWriter(byte_order);
+		Set<Integer> visited = new HashSet<>();
+		int ifd1_offset = exif.readIfd(tiff, IFD_0, tiff.getInt(4), visited);
+		if( ifd1_offset > 0 ) {
+			exif.readIfd(tiff, IFD_1, ifd1_offset, visited);
+			exif.readThumbnail(tiff);
+		}
+		return exif;
+	}
+
+	/** Reads an IFD and any IFDs it points to.
+	 * @return The offset of the next IFD, or 0 if none.
+	 */
+	private int readIfd(ByteBuffer tiff, int ifd, int offset, Set<Integer> visited) throws IOException {
+		if( offset <= 0 || offset + 2 > tiff.limit() ) {
+			throw new IOException("invalid ifd offset: " + offset);
+		}
+		else if( !visited.add(offset) ) {
+			throw new IOException("ifd loop at: " + offset);
+		}
+		int n_entries = tiff.getShort(offset) & 0xFFFF;
+		if( offset + 2 + 12*n_entries > tiff.limit() ) {
+			throw new IOException("ifd extends past end of exif");
+		}
+		TreeMap<Integer, Entry> entries = ifds.get(ifd);
+		for(int i=0;i<n_entries;i++) {
+			int entry_offset = offset + 2 + 12*i;
+			int tag = tiff.getShort(entry_offset) & 0xFFFF;
+			int type = tiff.getShort(entry_offset+2) & 0xFFFF;
+			int count = tiff.getInt(entry_offset+4);
+			if( type <= 0 || type >= type_sizes.length || count < 0 ) {
+				if( MyDebug.LOG )
+					Log.d(TAG, "skip tag " + tag + " with unknown type " + type + " or count " + count);
+				continue;
+			}
+			long size = (long)type_sizes[type] * count;
+			int value_offset = size > 4 ? tiff.getInt(entry_offset+8) : entry_offset+8;
+			if( value_offset < 0 || value_offset + size > tiff.limit() ) {
+				if( MyDebug.LOG )
+					Log.d(TAG, "skip tag " + tag + " with value outside exif");
+				continue;
+			}
+			if( (ifd == IFD_0 && (tag == TAG_EXIF_IFD_POINTER || tag == TAG_GPS_IFD_POINTER)) || (ifd == IFD_EXIF && tag == TAG_INTEROP_IFD_POINTER) ) {
+				int sub_ifd = tag == TAG_EXIF_IFD_POINTER ? IFD_EXIF : tag == TAG_GPS_IFD_POINTER ? IFD_GPS : IFD_INTEROP;
+				readIfd(tiff, sub_ifd, tiff.getInt(value_offset), visited);
+				continue;
+			}
+			byte [] value = new byte[(int)size];
+			for(int j=0;j<value.length;j++) {
+				value[j] = tiff.get(value_offset+j);
+			}
+			entries.put(tag, new Entry(type, count, value));
+		}
+		int next_offset_pos = offset + 2 + 12*n_entries;
+		return next_offset_pos + 4 <= tiff.limit() ? tiff.getInt(next_offset_pos) : 0;
+	}
+
+	/** Extracts the JPEG thumbnail referenced from IFD_1. Thumbnails that aren't JPEG are dropped.
+	 */
+	private void readThumbnail(ByteBuffer tiff) {
+		TreeMap<Integer, Entry> ifd1 = ifds.get(IFD_1);
+		Entry offset_entry = ifd1.remove(TAG_JPEG_INTERCHANGE_FORMAT);
+		Entry length_entry = ifd1.remove(TAG_JPEG_INTERCHANGE_FORMAT_LENGTH);
+		if( ifd1.containsKey(TAG_STRIP_OFFSETS) || offset_entry == null || length_entry == null ) {
+			if( MyDebug.LOG )
+				Log.d(TAG, "no jpeg thumbnail");
+			ifd1.clear();
+			return;
+		}
+		long offset = getLong(offset_entry, 0);
+		long length = getLong(length_entry, 0);
+		if( offset <= 0 || length <= 0 || offset + length > tiff.limit() ) {
+			if( MyDebug.LOG )
+				Log.d(TAG, "thumbnail outside exif");
+			ifd1.clear();
+			return;
+		}
+		thumbnail = new byte[(int)length];
+		for(int i=0;i<length;i++) {
+			thumbnail[i] = tiff.get((int)offset+i);
+		}
+	}
+
+	/** Returns a copy of the start of the buffer, which is enough to find the Exif segment.
+	 */
+	private static byte [] readHeader(ByteBuffer jpeg) {
+		byte [] header = new byte[Math.min(jpeg.remaining(), max_header_bytes_c)];
+		jpeg.duplicate().get(header);
+		return header;
+	}
+
+	/** Finds the Exif segment of a JPEG.
+	 * @param length Only the first length bytes of jpeg are searched.
+	 * @return The offset of the segment's marker, and the offset just after the end of the segment,
+	 *         or null if the JPEG has no Exif segment.
+	 * @throws IOException If the data isn't a JPEG.
+	 */
+	static int [] findExifSegment(byte [] jpeg, int length) throws IOException {
+		if( length < 2 || (jpeg[0] & 0xFF) != 0xFF || (jpeg[1] & 0xFF) != marker_soi ) {
+			throw new IOException("not a jpeg");
+		}
+		int pos = 2;
+		while( pos + 4 <= length ) {
+			if( (jpeg[pos] & 0xFF) != 0xFF ) {
+				throw new IOException("invalid marker at " + pos);
+			}
+			int marker = jpeg[pos+1] & 0xFF;
+			if( marker == 0xFF ) {
+				// fill byte
+				pos++;
+				continue;
+			}
+			else if( marker == marker_sos || marker == marker_eoi ) {
+				// the Exif segment must come before the image data
+				break;
+			}
+			else if( marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7) ) {
+				// no length
+				pos += 2;
+				continue;
+			}
+			int segment_length = ((jpeg[pos+2] & 0xFF) << 8) | (jpeg[pos+3] & 0xFF);
+			int end = pos + 2 + segment_length;
+			if( segment_length < 2 || end > length ) {
+				break;
+			}
+			if( marker == marker_app1 && segment_length >= 2 + exif_header.length ) {
+				boolean is_exif = true;
+				for(int i=0;i<exif_header.length && is_exif;i++) {
+					if( jpeg[pos+4+i] != exif_header[i] )
+						is_exif = false;
+				}
+				if( is_exif ) {
+					return new int[]{pos, end};
+				}
+			}
+			pos = end;
+		}
+		return null;
+	}
+
+	private ByteBuffer wrap(byte [] value) {
+		return ByteBuffer.wrap(value).order(byte_order);
+	}
+
+	private long getLong(Entry entry, int index) {
+		if( entry.type == TYPE_SHORT )
+			return wrap(entry.value).getShort(2*index) & 0xFFFF;
+		else if( entry.type == TYPE_LONG )
+			return wrap(entry.value).getInt(4*index) & 0xFFFFFFFFL;
+		return -1;
+	}
+
+	/** Whether the tag is set in the supplied IFD.
+	 */
+	public boolean hasTag(int ifd, int tag) {
+		return ifds.get(ifd).containsKey(tag);
+	}
+
+	/** Returns the number of tags in the supplied IFD.
+	 */
+	public int getNTags(int ifd) {
+		return ifds.get(ifd).size();
+	}
+
+	/** Returns the value of an ASCII tag, or null if the tag isn't set or isn't ASCII.
+	 */
+	public String getAscii(int ifd, int tag) {
+		Entry entry = ifds.get(ifd).get(tag);
+		if( entry == null || entry.type != TYPE_ASCII ) {
+			return null;
+		}
+		int length = 0;
+		while( length < entry.value.length && entry.value[length] != 0 ) {
+			length++;
+		}
+		return new String(entry.value, 0, length, Charset.forName("US-ASCII"));
+	}
+
+	/** Returns the value of a SHORT or LONG tag, or -1 if the tag isn't set or is another type.
+	 */
+	public long getInt(int ifd, int tag) {
+		Entry entry = ifds.get(ifd).get(tag);
+		if( entry == null || entry.count < 1 ) {
+			return -1;
+		}
+		return getLong(entry, 0);
+	}
+
+	/** Returns the values of a RATIONAL tag, as pairs of numerator and denominator, or null if the
+	 *  tag isn't set or isn't RATIONAL.
+	 */
+	public long [] getRationals(int ifd, int tag) {
+		Entry entry = ifds.get(ifd).get(tag);
+		if( entry == null || entry.type != TYPE_RATIONAL ) {
+			return null;
+		}
+		ByteBuffer buffer = wrap(entry.value);
+		long [] values = new long[2*entry.count];
+		for(int i=0;i<values.length;i++) {
+			values[i] = buffer.getInt(4*i) & 0xFFFFFFFFL;
+		}
+		return values;
+	}
+
+	/** Returns the JPEG thumbnail, or null if there isn't one.
+	 */
+	public byte [] getThumbnail() {
+		return thumbnail;
+	}
+
+	/** Sets an ASCII tag. The terminating null is added.
+	 */
+	public void setAscii(int ifd, int tag, String value) {
+		byte [] bytes = value.getBytes(Charset.forName("US-ASCII"));
+		byte [] terminated = new byte[bytes.length+1];
+		System.arraycopy(bytes, 0, terminated, 0, bytes.length);
+		ifds.get(ifd).put(tag, new Entry(TYPE_ASCII, terminated.length, terminated));
+	}
+
+	/** Sets a tag to a single SHORT value.
+	 */
+	public void setShort(int ifd, int tag, int value) {
+		byte [] bytes = new byte[2];
+		wrap(bytes).putShort(0, (short)value);
+		ifds.get(ifd).put(tag, new Entry(TYPE_SHORT, 1, bytes));
+	}
+
+	/** Sets a tag to one or more RATIONAL values.
+	 * @param values Pairs of numerator and denominator.
+	 */
+	public void setRationals(int ifd, int tag, long... values) {
+		if( values.length == 0 || values.length % 2 != 0 ) {
+			throw new IllegalArgumentException("rationals need a numerator and denominator");
+		}
+		byte [] bytes = new byte[4*values.length];
+		ByteBuffer buffer = wrap(bytes);
+		for(int i=0;i<values.length;i++) {
+			buffer.putInt(4*i, (int)values[i]);
+		}
+		ifds.get(ifd).put(tag, new Entry(TYPE_RATIONAL, values.length/2, bytes));
+	}
+
+	public void removeTag(int ifd, int tag) {
+		ifds.get(ifd).remove(tag);
+	}
+
+	/** Removes all tags except those that should be transferred to a JPEG that has been re-encoded
+	 *  from a bitmap, including the thumbnail.
+	 */
+	public void retainTransferTags() {
+		for(int i=0;i<N_IFDS;i++) {
+			Set<Integer> keep = new HashSet<>();
+			for(int tag : transfer_tags[i]) {
+				keep.add(tag);
+			}
+			ifds.get(i).keySet().retainAll(keep);
+		}
+		thumbnail = null;
+	}
+
+	/** Copies the date/time of the image to the original and digitized date/time tags, as
+	 *  ImageSaver.setDateTimeExif() does.
+	 */
+	public void copyDateTimeToOriginal() {
+		String datetime = getAscii(IFD_0, TAG_DATETIME);
+		if( datetime != null ) {
+			if( MyDebug.LOG )
+				Log.d(TAG, "write datetime tags: " + datetime);
+			setAscii(IFD_EXIF, TAG_DATETIME_ORIGINAL, datetime);
+			setAscii(IFD_EXIF, TAG_DATETIME_DIGITIZED, datetime);
+		}
+	}
+
+	/** Sets the direction the camera was pointing, as a magnetic bearing.
+	 * @param geo_direction The direction in radians, as returned by Preview.getGeoDirection().
+	 */
+	public void setGPSImgDirection(double geo_direction) {
+		setRationals(IFD_GPS, TAG_GPS_IMG_DIRECTION, computeGPSImgDirection(geo_direction), 100);
+		setAscii(IFD_GPS, TAG_GPS_IMG_DIRECTION_REF, "M");
+	}
+
+	/** Sets the GPS date and time stamps to the supplied date, in UTC.
+	 */
+	public void setGPSTimestamp(Date date) {
+		String [] time = formatGPSTimestamp(date).split(":");
+		setAscii(IFD_GPS, TAG_GPS_DATESTAMP, formatGPSDatestamp(date));
+		setRationals(IFD_GPS, TAG_GPS_TIMESTAMP, Long.parseLong(time[0]), 1, Long.parseLong(time[1]), 1, Long.parseLong(time[2]), 1);
+	}
+
+	/** Returns the numerator of the GPSImgDirection tag, which has a denominator of 100.
+	 * @param geo_direction The direction in radians.
+	 */
+	public static long computeGPSImgDirection(double geo_direction) {
+		float geo_angle = (float)Math.toDegrees(geo_direction);
+		if( geo_angle < 0.0f ) {
+			geo_angle += 360.0f;
+		}
+		return Math.round(geo_angle*100);
+	}
+
+	/** Formats the date for the GPSDateStamp tag.
+	 */
+	public static String formatGPSDatestamp(Date date) {
+		SimpleDateFormat date_fmt = new SimpleDateFormat("yyyy:MM:dd", Locale.US);
+		date_fmt.setTimeZone(TimeZone.getTimeZone("UTC")); // needs to be UTC time
+		return date_fmt.format(date);
+	}
+
+	/** Formats the time for the GPSTimeStamp tag, in the form ExifInterface uses for its string
+	 *  value.
+	 */
+	public static String formatGPSTimestamp(Date date) {
+		SimpleDateFormat time_fmt = new SimpleDateFormat("HH:mm:ss", Locale.US);
+		time_fmt.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return time_fmt.format(date);
+	}
+
+	private static int align(int size) {
+		return (size + 1) & ~1;
+	}
+
+	private static int computeIfdSize(Map<Integer, Entry> entries) {
+		int size = 2 + 12*entries.size() + 4;
+		for(Entry entry : entries.values()) {
+			if( entry.value.length > 4 )
+				size += align(entry.value.length);
+		}
+		return size;
+	}
+
+	private Entry createLongEntry(int value) {
+		byte [] bytes = new byte[4];
+		wrap(bytes).putInt(0, value);
+		return new Entry(TYPE_LONG, 1, bytes);
+	}
+
+	/** Creates the complete APP1 segment, including the marker.
+	 */
+	private byte [] createSegment(boolean with_thumbnail) {
+		// copy the IFDs, so we can add the pointer tags
+		List<TreeMap<Integer, Entry>> out_ifds = new ArrayList<>();
+		for(int i=0;i<N_IFDS;i++) {
+			out_ifds.add(new TreeMap<>(ifds.get(i)));
+		}
+		boolean has_interop = out_ifds.get(IFD_INTEROP).size() > 0;
+		boolean has_exif = has_interop || out_ifds.get(IFD_EXIF).size() > 0;
+		boolean has_gps = out_ifds.get(IFD_GPS).size() > 0;
+		boolean has_ifd1 = with_thumbnail && thumbnail != null;
+		// add the pointers with dummy values for now, so we can compute the sizes
+		if( has_exif )
+			out_ifds.get(IFD_0).put(TAG_EXIF_IFD_POINTER, createLongEntry(0));
+		if( has_gps )
+			out_ifds.get(IFD_0).put(TAG_GPS_IFD_POINTER, createLongEntry(0));
+		if( has_interop )
+			out_ifds.get(IFD_EXIF).put(TAG_INTEROP_IFD_POINTER, createLongEntry(0));
+		if( has_ifd1 ) {
+			out_ifds.get(IFD_1).put(TAG_JPEG_INTERCHANGE_FORMAT, createLongEntry(0));
+			out_ifds.get(IFD_1).put(TAG_JPEG_INTERCHANGE_FORMAT_LENGTH, createLongEntry(thumbnail.length));
+		}
+		else {
+			out_ifds.get(IFD_1).clear();
+		}
+		boolean [] write_ifd = {true, has_exif, has_gps, has_interop, has_ifd1};
+
+		// lay out the IFDs in order, after the 8 byte tiff header
+		int [] ifd_offsets = new int[N_IFDS];
+		int offset = 8;
+		for(int i=0;i<N_IFDS;i++) {
+			if( write_ifd[i] ) {
+				ifd_offsets[i] = offset;
+				offset += computeIfdSize(out_ifds.get(i));
+			}
+		}
+		int thumbnail_offset = offset;
+		if( has_ifd1 )
+			offset += thumbnail.length;
+		int tiff_size = offset;
+
+		// now fill in the pointers
+		if( has_exif )
+			out_ifds.get(IFD_0).put(TAG_EXIF_IFD_POINTER, createLongEntry(ifd_offsets[IFD_EXIF]));
+		if( has_gps )
+			out_ifds.get(IFD_0).put(TAG_GPS_IFD_POINTER, createLongEntry(ifd_offsets[IFD_GPS]));
+		if( has_interop )
+			out_ifds.get(IFD_EXIF).put(TAG_INTEROP_IFD_POINTER, createLongEntry(ifd_offsets[IFD_INTEROP]));
+		if( has_ifd1 )
+			out_ifds.get(IFD_1).put(TAG_JPEG_INTERCHANGE_FORMAT, createLongEntry(thumbnail_offset));
+
+		int segment_size = 4 + exif_header.length + tiff_size;
+		ByteBuffer segment = ByteBuffer.allocate(segment_size);
+		segment.order(ByteOrder.BIG_ENDIAN);
+		segment.put((byte)0xFF);
+		segment.put((byte)marker_app1);
+		segment.putShort((short)(segment_size-2));
+		segment.put(exif_header);
+		int tiff_start = segment.position();
+		segment.order(byte_order);
+		if( byte_order == ByteOrder.LITTLE_ENDIAN ) {
+			segment.put((byte)'I');
+			segment.put((byte)'I');
+		}
+		else {
+			segment.put((byte)'M');
+			segment.put((byte)'M');
+		}
+		segment.putShort((short)42);
+		segment.putInt(ifd_offsets[IFD_0]);
+		for(int i=0;i<N_IFDS;i++) {
+			if( !write_ifd[i] )
+				continue;
+			TreeMap<Integer, Entry> entries = out_ifds.get(i);
+			int data_offset = ifd_offsets[i] + 2 + 12*entries.size() + 4;
+			ByteBuffer data = segment.duplicate().order(byte_order);
+			data.position(tiff_start + data_offset);
+			segment.position(tiff_start + ifd_offsets[i]);
+			segment.putShort((short)entries.size());
+			for(Map.Entry<Integer, Entry> map_entry : entries.entrySet()) {
+				Entry entry = map_entry.getValue();
+				segment.putShort((short)(int)map_entry.getKey());
+				segment.putShort((short)entry.type);
+				segment.putInt(entry.count);
+				if( entry.value.length <= 4 ) {
+					segment.put(entry.value);
+					for(int j=entry.value.length;j<4;j++)
+						segment.put((byte)0);
+				}
+				else {
+					segment.putInt(data.position() - tiff_start);
+					data.put(entry.value);
+					if( entry.value.length % 2 != 0 )
+						data.put((byte)0);
+				}
+			}
+			// the next IFD: IFD_0 links to the thumbnail IFD, the others end the chain
+			segment.putInt(i == IFD_0 && has_ifd1 ? ifd_offsets[IFD_1] : 0);
+		}
+		if( has_ifd1 ) {
+			segment.position(tiff_start + thumbnail_offset);
+			segment.put(thumbnail);
+		}
+		return segment.array();
+	}
+
+	/** Returns the complete APP1 segment for the current tags, including the marker. If the
+	 *  segment would be too large, the thumbnail is dropped.
+	 * @throws IOException If the segment is too large even without the thumbnail.
+	 */
+	public byte [] getSegment() throws IOException {
+		byte [] segment = createSegment(true);
+		if( segment.length - 2 > max_segment_length_c && thumbnail != null ) {
+			if( MyDebug.LOG )
+				Log.d(TAG, "exif segment too large with thumbnail: " + segment.length);
+			segment = createSegment(false);
+		}
+		if( segment.length - 2 > max_segment_length_c ) {
+			throw new IOException("exif segment too large: " + segment.length);
+		}
+		return segment;
+	}
+
+	/** Writes jpeg to the stream, with its Exif segment (if any) replaced by the current tags.
+	 */
+	public void writeJpeg(OutputStream out, byte [] jpeg) throws IOException {
+		byte [] segment = getSegment();
+		int [] old_segment = findExifSegment(jpeg, jpeg.length);
+		out.write(jpeg, 0, 2); // SOI
+		out.write(segment);
+		if( old_segment == null ) {
+			out.write(jpeg, 2, jpeg.length-2);
+		}
+		else {
+			out.write(jpeg, 2, old_segment[0]-2);
+			out.write(jpeg, old_segment[1], jpeg.length-old_segment[1]);
+		}
+	}
+
+	/** Writes the remaining bytes of jpeg to the channel, with its Exif segment (if any) replaced by
+	 *  the current tags. The buffer's position isn't changed.
+	 */
+	public void writeJpeg(WritableByteChannel channel, ByteBuffer jpeg) throws IOException {
+		byte [] segment = getSegment();
+		int [] old_segment = findExifSegment(readHeader(jpeg), Math.min(jpeg.remaining(), max_header_bytes_c));
+		int start = jpeg.position();
+		ByteBuffer soi = jpeg.duplicate();
+		soi.limit(start + 2);
+		writeFully(channel, soi);
+		writeFully(channel, ByteBuffer.wrap(segment));
+		ByteBuffer rest = jpeg.duplicate();
+		if( old_segment == null ) {
+			rest.position(start + 2);
+		}
+		else {
+			ByteBuffer before = jpeg.duplicate();
+			before.position(start + 2);
+			before.limit(start + old_segment[0]);
+			writeFully(channel, before);
+			rest.position(start + old_segment[1]);
+		}
+		writeFully(channel, rest);
+	}
+
+	private static void writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+		while( buffer.hasRemaining() ) {
+			channel.write(buffer);
+		}
+	}
+}
@@ -0,0 +1,947 @@
+package net.sourceforge.opencamera;
+
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Rotates and/or mirrors jpeg images losslessly, by rearranging the quantized DCT coefficients
+ *  rather than decoding to pixels and re-encoding (in the same way as jpegtran). Only sequential
+ *  Huffman coded jpegs with 8 bit samples and a single scan are supported, which is what cameras
+ *  produce.
+ *  Transforms are only done if they're "perfect": an image whose width or height isn't a multiple
+ *  of the MCU size has a partial MCU at its right or bottom edge, which can't be moved to the left
+ *  or top edge. Rather than trimming the edge (as "jpegtran -trim" does), such transforms are
+ *  rejected, so the caller can fall back to transforming a decoded bitmap.
+ *  The Huffman tables are regenerated for the transformed image, and any restart markers are
+ *  removed. Exif segments are removed (as the orientation and thumbnail would no longer be
+ *  correct), but other application segments are kept.
+ */
+public class JpegTransformer {
+	private static final String TAG = "JpegTransformer";
+
+	private static final int M_SOF0 = 0xc0;
+	private static final int M_SOF1 = 0xc1;
+	private static final int M_DHT = 0xc4;
+	private static final int M_RST0 = 0xd0;
+	private static final int M_SOI = 0xd8;
+	private static final int M_EOI = 0xd9;
+	private static final int M_SOS = 0xda;
+	private static final int M_DQT = 0xdb;
+	private static final int M_DRI = 0xdd;
+	private static final int M_APP0 = 0xe0;
+	private static final int M_APP1 = 0xe1;
+	private static final int M_APP15 = 0xef;
+	private static final int M_COM = 0xfe;
+
+	// zigzag index to natural (row major) index within an 8x8 block
+	private static final int [] natural_order = {
+		0,  1,  8, 16,  9,  2,  3, 10,
+		17, 24, 32, 25, 18, 11,  4,  5,
+		12, 19, 26, 33, 40, 48, 41, 34,
+		27, 20, 13,  6,  7, 14, 21, 28,
+		35, 42, 49, 56, 57, 50, 43, 36,
+		29, 22, 15, 23, 30, 37, 44, 51,
+		58, 59, 52, 45, 38, 31, 39, 46,
+		53, 60, 61, 54, 47, 55, 62, 63
+	};
+
+	/** A rotation and/or mirroring. Each transform is represented as an optional transpose,
+	 *  followed by optionally flipping the (transposed) image horizontally and/or vertically.
+	 *  Rotations are clockwise.
+	 */
+	public enum Transform {
+		NONE(false, false, false),
+		FLIP_HORIZONTAL(false, true, false),
+		FLIP_VERTICAL(false, false, true),
+		ROTATE_180(false, true, true),
+		TRANSPOSE(true, false, false),
+		ROTATE_90(true, true, false),
+		ROTATE_270(true, false, true),
+		TRANSVERSE(true, true, true);
+
+		final boolean transpose;
+		final boolean flip_x;
+		final boolean flip_y;
+
+		Transform(boolean transpose, boolean flip_x, boolean flip_y) {
+			this.transpose = transpose;
+			this.flip_x = flip_x;
+			this.flip_y = flip_y;
+		}
+
+		private static Transform get(boolean transpose, boolean flip_x, boolean flip_y) {
+			for(Transform transform : values()) {
+				if( transform.transpose == transpose && transform.flip_x == flip_x && transform.flip_y == flip_y )
+					return transform;
+			}
+			throw new RuntimeException(); // can't happen, all combinations are listed
+		}
+
+		/** Returns the transform equivalent to applying this transform, and then next.
+		 */
+		public Transform then(Transform next) {
+			// if next transposes, our flips are swapped to the other axis
+			boolean flip_x = (next.transpose ? this.flip_y : this.flip_x) ^ next.flip_x;
+			boolean flip_y = (next.transpose ? this.flip_x : this.flip_y) ^ next.flip_y;
+			return get(this.transpose ^ next.transpose, flip_x, flip_y);
+		}
+
+		/** Returns the transform needed to display an image with the supplied exif orientation
+		 *  upright, or null if it isn't a valid orientation.
+		 */
+		public static Transform fromExifOrientation(int orientation) {
+			switch( orientation ) {
+				case 1:
+					return NONE;
+				case 2:
+					return FLIP_HORIZONTAL;
+				case 3:
+					return ROTATE_180;
+				case 4:
+					return FLIP_VERTICAL;
+				case 5:
+					return TRANSPOSE;
+				case 6:
+					return ROTATE_90;
+				case 7:
+					return TRANSVERSE;
+				case 8:
+					return ROTATE_270;
+				default:
+					return null;
+			}
+		}
+	}
+
+	private static class Component {
+		int id;
+		int h;
+		int v;
+		int tq;
+		int dc_table;
+		int ac_table;
+		int blocks_w; // width of coefs in blocks, padded to a whole number of MCUs
+		int blocks_h; // height of coefs in blocks, padded to a whole number of MCUs
+		short [] coefs; // quantized coefficients, 64 per block in zigzag order
+	}
+
+	/** The information needed to re-encode an image.
+	 */
+	private static class Image {
+		int sof_marker;
+		int width;
+		int height;
+		final int [][] qtables = new int[4][]; // in zigzag order
+		final int [] qtable_precision = new int[4];
+		final List<Component> components = new ArrayList<>();
+		final List<byte []> app_segments = new ArrayList<>(); // including the marker and length
+		int max_h = 1;
+		int max_v = 1;
+
+		int getMCUWidth() {
+			return 8*max_h;
+		}
+
+		int getMCUHeight() {
+			return 8*max_v;
+		}
+	}
+
+	/** A Huffman table for decoding, see section F.2.2.3 of the jpeg spec.
+	 */
+	private static class DecodeTable {
+		private static final int lookup_bits_c = 9;
+		final int [] lookup = new int[1 << lookup_bits_c]; // (length << 8) | value for codes of up to lookup_bits_c bits, else 0
+		final int [] maxcode = new int[18];
+		final int [] valptr = new int[17];
+		final int [] mincode = new int[17];
+		final int [] huffval;
+
+		DecodeTable(int [] bits, int [] huffval) throws IOException {
+			this.huffval = huffval;
+			int code = 0;
+			int k = 0;
+			for(int l=1;l<=16;l++) {
+				valptr[l] = k;
+				mincode[l] = code;
+				if( l <= lookup_bits_c ) {
+					for(int i=0;i<bits[l];i++) {
+						int shift = lookup_bits_c - l;
+						int first = (code + i) << shift;
+						for(int j=0;j<(1 << shift);j++) {
+							lookup[first + j] = (l << 8) | huffval[k + i];
+						}
+					}
+				}
+				code += bits[l];
+				k += bits[l];
+				maxcode[l] = bits[l] > 0 ? code-1 : -1;
+				if( code > (1 << l) ) {
+					throw new IOException("invalid huffman table");
+				}
+				code <<= 1;
+			}
+			maxcode[17] = Integer.MAX_VALUE;
+		}
+	}
+
+	/** A Huffman table for encoding, see section C.2 of the jpeg spec.
+	 */
+	private static class EncodeTable {
+		final int [] bits; // bits[l] is the number of codes of length l
+		final int [] huffval;
+		final int [] code = new int[256];
+		final int [] size = new int[256];
+
+		EncodeTable(int [] bits, int [] huffval) {
+			this.bits = bits;
+			this.huffval = huffval;
+			int c = 0;
+			int k = 0;
+			for(int l=1;l<=16;l++) {
+				for(int i=0;i<bits[l];i++) {
+					code[huffval[k]] = c;
+					size[huffval[k]] = l;
+					c++;
+					k++;
+				}
+				c <<= 1;
+			}
+		}
+	}
+
+	/** Reads bits from the entropy coded data, removing the byte stuffing.
+	 */
+	private static class BitReader {
+		private final byte [] data;
+		private int pos;
+		private int buffer; // the next bits, starting from the most significant bit
+		private int n_bits;
+		private boolean marker_hit;
+
+		BitReader(byte [] data, int pos) {
+			this.data = data;
+			this.pos = pos;
+		}
+
+		/** Ensures there are at least 25 bits in the buffer. Once a marker is reached, zeroes are
+		 *  read.
+		 */
+		private void fill() {
+			while( n_bits <= 24 ) {
+				int b = 0;
+				if( !marker_hit && pos < data.length ) {
+					b = data[pos] & 0xff;
+					if( b == 0xff ) {
+						int next = pos+1 < data.length ? data[pos+1] & 0xff : 0;
+						if( next == 0 ) {
+							pos += 2;
+						}
+						else {
+							marker_hit = true;
+							b = 0;
+						}
+					}
+					else {
+						pos++;
+					}
+				}
+				buffer |= b << (24 - n_bits);
+				n_bits += 8;
+			}
+		}
+
+		int getBits(int n) {
+			if( n == 0 )
+				return 0;
+			fill();
+			int value = buffer >>> (32 - n);
+			buffer <<= n;
+			n_bits -= n;
+			return value;
+		}
+
+		int decode(DecodeTable table) throws IOException {
+			fill();
+			int entry = table.lookup[buffer >>> (32 - DecodeTable.lookup_bits_c)];
+			if( entry != 0 ) {
+				int length = entry >> 8;
+				buffer <<= length;
+				n_bits -= length;
+				return entry & 0xff;
+			}
+			for(int l=DecodeTable.lookup_bits_c+1;l<=16;l++) {
+				int code = buffer >>> (32 - l);
+				if( code <= table.maxcode[l] ) {
+					buffer <<= l;
+					n_bits -= l;
+					return table.huffval[table.valptr[l] + code - table.mincode[l]];
+				}
+			}
+			throw new IOException("invalid huffman code");
+		}
+
+		/** Skips to the next restart marker.
+		 */
+		void restart() throws IOException {
+			buffer = 0;
+			n_bits = 0;
+			marker_hit = false;
+			if( pos+1 < data.length && (data[pos] & 0xff) == 0xff && ((data[pos+1] & 0xff) & ~7) == M_RST0 ) {
+				pos += 2;
+			}
+			else {
+				throw new IOException("missing restart marker");
+			}
+		}
+	}
+
+	/** Writes bits for the entropy coded data, adding byte stuffing.
+	 */
+	private static class BitWriter {
+		private final ByteArrayOutputStream stream;
+		private int buffer; // pending bits, in the least significant n_bits bits
+		private int n_bits;
+
+		BitWriter(ByteArrayOutputStream stream) {
+			this.stream = stream;
+		}
+
+		void putBits(int value, int n) {
+			buffer = (buffer << n) | (value & ((1 << n) - 1));
+			n_bits += n;
+			while( n_bits >= 8 ) {
+				int b = (buffer >> (n_bits - 8)) & 0xff;
+				stream.write(b);
+				if( b == 0xff ) {
+					stream.write(0);
+				}
+				n_bits -= 8;
+			}
+		}
+
+		void flush() {
+			if( n_bits > 0 ) {
+				// pad with 1 bits
+				putBits(0x7f, 8 - n_bits);
+			}
+		}
+	}
+
+	/** Transforms a jpeg image losslessly.
+	 * @throws IOException If the jpeg couldn't be read, isn't supported, or if the transform can't be
+	 *                     done losslessly for this image (see isPerfect()).
+	 */
+	public static byte [] transform(byte [] jpeg, Transform transform) throws IOException {
+		if( MyDebug.LOG )
+			Log.d(TAG, "transform: " + transform);
+		long time_s = System.currentTimeMillis();
+		Image image = read(jpeg);
+		if( !isPerfect(image.width, image.height, image.getMCUWidth(), image.getMCUHeight(), transform) ) {
+			throw new IOException("can't transform losslessly, partial MCUs would move to the top or left edges");
+		}
+		if( MyDebug.LOG )
+			Log.d(TAG, "time after decoding coefficients: " + (System.currentTimeMillis() - time_s));
+		Image result = transform(image, transform);
+		byte [] bytes = write(result);
+		if( MyDebug.LOG )
+			Log.d(TAG, "total time for transform: " + (System.currentTimeMillis() - time_s));
+		return bytes;
+	}
+
+	/** Whether an image with the supplied dimensions and MCU size can be transformed losslessly,
+	 *  i.e., whether any flipped axis is a whole number of MCUs.
+	 */
+	public static boolean isPerfect(int width, int height, int mcu_width, int mcu_height, Transform transform) {
+		// the destination's x axis is the source's y axis if transposing
+		boolean width_ok = width % mcu_width == 0;
+		boolean height_ok = height % mcu_height == 0;
+		if( transform.flip_x && !(transform.transpose ? height_ok : width_ok) )
+			return false;
+		if( transform.flip_y && !(transform.transpose ? width_ok : height_ok) )
+			return false;
+		return true;
+	}
+
+	private static int readShort(byte [] data, int pos) throws IOException {
+		if( pos+1 >= data.length )
+			throw new IOException("unexpected end of jpeg");
+		return ((data[pos] & 0xff) << 8) | (data[pos+1] & 0xff);
+	}
+
+	/** Parses the jpeg and decodes the quantized coefficients.
+	 */
+	private static Image read(byte [] jpeg) throws IOException {
+		if( jpeg.length < 4 || (jpeg[0] & 0xff) != 0xff || (jpeg[1] & 0xff) != M_SOI )
+			throw new IOException("not a jpeg");
+		Image image = new Image();
+		DecodeTable [] dc_tables = new DecodeTable[4];
+		DecodeTable [] ac_tables = new DecodeTable[4];
+		int restart_interval = 0;
+		boolean have_frame = false;
+		int pos = 2;
+		while( true ) {
+			if( pos+3 >= jpeg.length )
+				throw new IOException("no image data");
+			if( (jpeg[pos] & 0xff) != 0xff )
+				throw new IOException("expected marker at " + pos);
+			int marker = jpeg[pos+1] & 0xff;
+			if( marker == 0xff ) {
+				// fill byte
+				pos++;
+				continue;
+			}
+			int length = readShort(jpeg, pos+2);
+			int start = pos+4;
+			int end = pos+2+length;
+			if( length < 2 || end > jpeg.length )
+				throw new IOException("invalid segment length");
+
+			if( marker == M_SOF0 || marker == M_SOF1 ) {
+				image.sof_marker = marker;
+				if( (jpeg[start] & 0xff) != 8 )
+					throw new IOException("only 8 bit precision supported");
+				image.height = readShort(jpeg, start+1);
+				image.width = readShort(jpeg, start+3);
+				int n_components = jpeg[start+5] & 0xff;
+				if( image.width == 0 || image.height == 0 || n_components == 0 || start+6+3*n_components > end )
+					throw new IOException("invalid frame header");
+				for(int i=0;i<n_components;i++) {
+					Component component = new Component();
+					int p = start+6+3*i;
+					component.id = jpeg[p] & 0xff;
+					component.h = (jpeg[p+1] & 0xff) >> 4;
+					component.v = jpeg[p+1] & 0x0f;
+					component.tq = jpeg[p+2] & 0xff;
+					if( component.h < 1 || component.h > 4 || component.v < 1 || component.v > 4 || component.tq > 3 )
+						throw new IOException("invalid component");
+					if( n_components == 1 ) {
+						// sampling factors are irrelevant for a single component
+						component.h = 1;
+						component.v = 1;
+					}
+					image.max_h = Math.max(image.max_h, component.h);
+					image.max_v = Math.max(image.max_v, component.v);
+					image.components.add(component);
+				}
+				have_frame = true;
+			}
+			else if( marker >= 0xc2 && marker <= 0xcf && marker != M_DHT && marker != 0xc8 && marker != 0xcc ) {
+				throw new IOException("unsupported jpeg process: " + Integer.toHexString(marker));
+			}
+			else if( marker == M_DQT ) {
+				int p = start;
+				while( p < end ) {
+					int precision = (jpeg[p] & 0xff) >> 4;
+					int id = jpeg[p] & 0x0f;
+					if( id > 3 )
+						throw new IOException("invalid quantization table");
+					p++;
+					int [] table = new int[64];
+					for(int i=0;i<64;i++) {
+						if( precision == 0 ) {
+							table[i] = jpeg[p] & 0xff;
+							p++;
+						}
+						else {
+							table[i] = readShort(jpeg, p);
+							p += 2;
+						}
+					}
+					image.qtables[id] = table;
+					image.qtable_precision[id] = precision;
+				}
+			}
+			else if( marker == M_DHT ) {
+				int p = start;
+				while( p < end ) {
+					int table_class = (jpeg[p] & 0xff) >> 4;
+					int id = jpeg[p] & 0x0f;
+					if( id > 3 || table_class > 1 || p+17 > end )
+						throw new IOException("invalid huffman table");
+					int [] bits = new int[17];
+					int n_values = 0;
+					for(int i=1;i<=16;i++) {
+						bits[i] = jpeg[p+i] & 0xff;
+						n_values += bits[i];
+					}
+					p += 17;
+					if( n_values > 256 || p+n_values > end )
+						throw new IOException("invalid huffman table");
+					int [] huffval = new int[n_values];
+					for(int i=0;i<n_values;i++) {
+						huffval[i] = jpeg[p+i] & 0xff;
+					}
+					p += n_values;
+					if( table_class == 0 )
+						dc_tables[id] = new DecodeTable(bits, huffval);
+					else
+						ac_tables[id] = new DecodeTable(bits, huffval);
+				}
+			}
+			else if( marker == M_DRI ) {
+				restart_interval = readShort(jpeg, start);
+			}
+			else if( (marker >= M_APP0 && marker <= M_APP15) || marker == M_COM ) {
+				if( !isExifOrMPF(jpeg, marker, start, end) ) {
+					byte [] segment = new byte[end - pos];
+					System.arraycopy(jpeg, pos, segment, 0, segment.length);
+					image.app_segments.add(segment);
+				}
+			}
+			else if( marker == M_SOS ) {
+				if( !have_frame )
+					throw new IOException("scan before frame header");
+				readScan(jpeg, start, end, image, dc_tables, ac_tables, restart_interval);
+				return image;
+			}
+			else if( marker == M_EOI ) {
+				throw new IOException("no image data");
+			}
+			pos = end;
+		}
+	}
+
+	/** Whether the segment is an Exif segment (whose orientation and thumbnail would no longer be
+	 *  correct), or a multi-picture segment (whose offsets would no longer be correct).
+	 */
+	private static boolean isExifOrMPF(byte [] jpeg, int marker, int start, int end) {
+		if( marker == M_APP1 ) {
+			return end - start >= 6 && jpeg[start] == 'E' && jpeg[start+1] == 'x' && jpeg[start+2] == 'i' && jpeg[start+3] == 'f' && jpeg[start+4] == 0 && jpeg[start+5] == 0;
+		}
+		else if( marker == M_APP0 + 2 ) {
+			return end - start >= 4 && jpeg[start] == 'M' && jpeg[start+1] == 'P' && jpeg[start+2] == 'F' && jpeg[start+3] == 0;
+		}
+		return false;
+	}
+
+	/** Returns the number of MCUs across and down for the image.
+	 */
+	private static int [] getMCUs(Image image) {
+		if( image.components.size() == 1 ) {
+			// non-interleaved, so each MCU is a single block
+			return new int[]{(image.width + 7)/8, (image.height + 7)/8};
+		}
+		return new int[]{(image.width + image.getMCUWidth() - 1)/image.getMCUWidth(), (image.height + image.getMCUHeight() - 1)/image.getMCUHeight()};
+	}
+
+	private static void readScan(byte [] jpeg, int start, int end, Image image, DecodeTable [] dc_tables, DecodeTable [] ac_tables, int restart_interval) throws IOException {
+		int n_scan_components = jpeg[start] & 0xff;
+		if( n_scan_components != image.components.size() || start+1+2*n_scan_components+3 > end )
+			throw new IOException("only single scan jpegs supported");
+		List<Component> scan_components = new ArrayList<>();
+		for(int i=0;i<n_scan_components;i++) {
+			int id = jpeg[start+1+2*i] & 0xff;
+			int tables = jpeg[start+2+2*i] & 0xff;
+			Component component = null;
+			for(Component c : image.components) {
+				if( c.id == id )
+					component = c;
+			}
+			if( component == null || scan_components.contains(component) )
+				throw new IOException("invalid scan component");
+			component.dc_table = tables >> 4;
+			component.ac_table = tables & 0x0f;
+			if( component.dc_table > 3 || component.ac_table > 3 || dc_tables[component.dc_table] == null || ac_tables[component.ac_table] == null )
+				throw new IOException("missing huffman table");
+			scan_components.add(component);
+		}
+		int p = start+1+2*n_scan_components;
+		if( (jpeg[p] & 0xff) != 0 || (jpeg[p+1] & 0xff) != 63 || (jpeg[p+2] & 0xff) != 0 )
+			throw new IOException("not a sequential scan");
+		for(Component component : image.components) {
+			if( image.qtables[component.tq] == null )
+				throw new IOException("missing quantization table");
+		}
+
+		int [] mcus = getMCUs(image);
+		for(Component component : image.components) {
+			component.blocks_w = mcus[0] * component.h;
+			component.blocks_h = mcus[1] * component.v;
+			component.coefs = new short[component.blocks_w * component.blocks_h * 64];
+		}
+		// the order of components in the scan determines the order in the MCU
+		image.components.clear();
+		image.components.addAll(scan_components);
+
+		BitReader reader = new BitReader(jpeg, end);
+		int [] predictors = new int[n_scan_components];
+		int n_mcus = mcus[0] * mcus[1];
+		for(int mcu=0;mcu<n_mcus;mcu++) {
+			if( restart_interval > 0 && mcu > 0 && mcu % restart_interval == 0 ) {
+				reader.restart();
+				for(int i=0;i<n_scan_components;i++)
+					predictors[i] = 0;
+			}
+			int mcu_x = mcu % mcus[0];
+			int mcu_y = mcu / mcus[0];
+			for(int i=0;i<n_scan_components;i++) {
+				Component component = scan_components.get(i);
+				DecodeTable dc_table = dc_tables[component.dc_table];
+				DecodeTable ac_table = ac_tables[component.ac_table];
+				for(int by=0;by<component.v;by++) {
+					for(int bx=0;bx<component.h;bx++) {
+						int block = (mcu_y*component.v + by) * component.blocks_w + mcu_x*component.h + bx;
+						predictors[i] = decodeBlock(reader, dc_table, ac_table, component.coefs, block*64, predictors[i]);
+					}
+				}
+			}
+		}
+	}
+
+	private static int extend(int value, int n_bits) {
+		return value < (1 << (n_bits-1)) ? value - (1 << n_bits) + 1 : value;
+	}
+
+	/** Decodes a block, see section F.2.2 of the jpeg spec.
+	 * @return The new DC predictor.
+	 */
+	private static int decodeBlock(BitReader reader, DecodeTable dc_table, DecodeTable ac_table, short [] coefs, int offset, int predictor) throws IOException {
+		int s = reader.decode(dc_table);
+		if( s > 11 )
+			throw new IOException("invalid dc coefficient");
+		if( s > 0 )
+			predictor += extend(reader.getBits(s), s);
+		coefs[offset] = (short)predictor;
+		for(int k=1;k<64;k++) {
+			int rs = reader.decode(ac_table);
+			int r = rs >> 4;
+			s = rs & 0x0f;
+			if( s == 0 ) {
+				if( r != 15 )
+					break; // end of block
+				k += 15; // run of 16 zeroes
+			}
+			else {
+				k += r;
+				if( k > 63 || s > 10 )
+					throw new IOException("invalid ac coefficient");
+				coefs[offset + k] = (short)extend(reader.getBits(s), s);
+			}
+		}
+		return predictor;
+	}
+
+	/** Returns a transformed copy of the image.
+	 */
+	private static Image transform(Image image, Transform transform) {
+		// for each zigzag index in the destination block, which zigzag index of the source block it comes from, and
+		// whether it's negated
+		int [] inverse_natural_order = new int[64];
+		for(int k=0;k<64;k++) {
+			inverse_natural_order[natural_order[k]] = k;
+		}
+		int [] src_index = new int[64];
+		boolean [] negate = new boolean[64];
+		for(int k=0;k<64;k++) {
+			int row = natural_order[k] / 8; // vertical frequency
+			int col = natural_order[k] % 8; // horizontal frequency
+			src_index[k] = transform.transpose ? inverse_natural_order[col*8 + row] : k;
+			// flipping an axis negates the odd frequencies along that axis
+			negate[k] = (transform.flip_x && (col % 2) == 1) ^ (transform.flip_y && (row % 2) == 1);
+		}
+
+		Image result = new Image();
+		result.sof_marker = image.sof_marker;
+		result.width = transform.transpose ? image.height : image.width;
+		result.height = transform.transpose ? image.width : image.height;
+		result.max_h = transform.transpose ? image.max_v : image.max_h;
+		result.max_v = transform.transpose ? image.max_h : image.max_v;
+		result.app_segments.addAll(image.app_segments);
+		for(int i=0;i<4;i++) {
+			int [] table = image.qtables[i];
+			if( table != null ) {
+				int [] new_table = new int[64];
+				for(int k=0;k<64;k++) {
+					new_table[k] = table[src_index[k]];
+				}
+				result.qtables[i] = new_table;
+				result.qtable_precision[i] = image.qtable_precision[i];
+			}
+		}
+		for(Component component : image.components) {
+			Component new_component = new Component();
+			new_component.id = component.id;
+			new_component.h = transform.transpose ? component.v : component.h;
+			new_component.v = transform.transpose ? component.h : component.v;
+			new_component.tq = component.tq;
+			new_component.dc_table = component.dc_table;
+			new_component.ac_table = component.ac_table;
+			new_component.blocks_w = transform.transpose ? component.blocks_h : component.blocks_w;
+			new_component.blocks_h = transform.transpose ? component.blocks_w : component.blocks_h;
+			short [] coefs = new short[component.coefs.length];
+			for(int y=0;y<new_component.blocks_h;y++) {
+				int v = transform.flip_y ? new_component.blocks_h-1-y : y;
+				for(int x=0;x<new_component.blocks_w;x++) {
+					int u = transform.flip_x ? new_component.blocks_w-1-x : x;
+					int src_block = transform.transpose ? (u * component.blocks_w + v) : (v * component.blocks_w + u);
+					int src_offset = src_block*64;
+					int dst_offset = (y * new_component.blocks_w + x)*64;
+					for(int k=0;k<64;k++) {
+						short value = component.coefs[src_offset + src_index[k]];
+						coefs[dst_offset + k] = negate[k] ? (short)-value : value;
+					}
+				}
+			}
+			component.coefs = null; // allow source to be garbage collected
+			new_component.coefs = coefs;
+			result.components.add(new_component);
+		}
+		return result;
+	}
+
+	private static int getNBits(int value) {
+		return value == 0 ? 0 : 32 - Integer.numberOfLeadingZeros(Math.abs(value));
+	}
+
+	/** Encodes each block of the image in MCU order, either counting the symbols used (if
+	 *  dc_freqs and ac_freqs are non-null) or writing them.
+	 */
+	private static void encodeScan(Image image, long [][] dc_freqs, long [][] ac_freqs, EncodeTable [] dc_tables, EncodeTable [] ac_tables, BitWriter writer) {
+		int [] mcus = getMCUs(image);
+		int n_components = image.components.size();
+		int [] predictors = new int[n_components];
+		for(int mcu_y=0;mcu_y<mcus[1];mcu_y++) {
+			for(int mcu_x=0;mcu_x<mcus[0];mcu_x++) {
+				for(int i=0;i<n_components;i++) {
+					Component component = image.components.get(i);
+					for(int by=0;by<component.v;by++) {
+						for(int bx=0;bx<component.h;bx++) {
+							int offset = ((mcu_y*component.v + by) * component.blocks_w + mcu_x*component.h + bx)*64;
+							short [] coefs = component.coefs;
+							int diff = coefs[offset] - predictors[i];
+							predictors[i] = coefs[offset];
+							int n_bits = getNBits(diff);
+							if( dc_freqs != null ) {
+								dc_freqs[component.dc_table][n_bits]++;
+							}
+							else {
+								EncodeTable table = dc_tables[component.dc_table];
+								writer.putBits(table.code[n_bits], table.size[n_bits]);
+								if( n_bits > 0 )
+									writer.putBits(diff < 0 ? diff-1 : diff, n_bits);
+							}
+							int run = 0;
+							for(int k=1;k<64;k++) {
+								int value = coefs[offset + k];
+								if( value == 0 ) {
+									run++;
+									continue;
+								}
+								while( run > 15 ) {
+									// run of 16 zeroes
+									if( ac_freqs != null ) {
+										ac_freqs[component.ac_table][0xf0]++;
+									}
+									else {
+										EncodeTable table = ac_tables[component.ac_table];
+										writer.putBits(table.code[0xf0], table.size[0xf0]);
+									}
+									run -= 16;
+								}
+								n_bits = getNBits(value);
+								int symbol = (run << 4) | n_bits;
+								if( ac_freqs != null ) {
+									ac_freqs[component.ac_table][symbol]++;
+								}
+								else {
+									EncodeTable table = ac_tables[component.ac_table];
+									writer.putBits(table.code[symbol], table.size[symbol]);
+									writer.putBits(value < 0 ? value-1 : value, n_bits);
+								}
+								run = 0;
+							}
+							if( run > 0 ) {
+								// end of block
+								if( ac_freqs != null ) {
+									ac_freqs[component.ac_table][0]++;
+								}
+								else {
+									EncodeTable table = ac_tables[component.ac_table];
+									writer.putBits(table.code[0], table.size[0]);
+								}
+							}
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/** Generates an optimal Huffman table with codes of at most 16 bits for the supplied symbol
+	 *  frequencies, see section K.2 of the jpeg spec.
+	 */
+	static EncodeTable createOptimalTable(long [] symbol_freqs) {
+		long [] freq = new long[257];
+		System.arraycopy(symbol_freqs, 0, freq, 0, 256);
+		freq[256] = 1; // reserve one code point, so that no code is all ones
+		int [] codesize = new int[257];
+		int [] others = new int[257];
+		for(int i=0;i<257;i++)
+			others[i] = -1;
+		while( true ) {
+			// find the smallest nonzero frequency (preferring the largest symbol), then the next smallest
+			int c1 = -1;
+			long v = Long.MAX_VALUE;
+			for(int i=0;i<257;i++) {
+				if( freq[i] != 0 && freq[i] <= v ) {
+					v = freq[i];
+					c1 = i;
+				}
+			}
+			int c2 = -1;
+			v = Long.MAX_VALUE;
+			for(int i=0;i<257;i++) {
+				if( freq[i] != 0 && freq[i] <= v && i != c1 ) {
+					v = freq[i];
+					c2 = i;
+				}
+			}
+			if( c2 < 0 )
+				break;
+			freq[c1] += freq[c2];
+			freq[c2] = 0;
+			codesize[c1]++;
+			while( others[c1] >= 0 ) {
+				c1 = others[c1];
+				codesize[c1]++;
+			}
+			others[c1] = c2;
+			codesize[c2]++;
+			while( others[c2] >= 0 ) {
+				c2 = others[c2];
+				codesize[c2]++;
+			}
+		}
+		int [] bits = new int[33];
+		for(int i=0;i<257;i++) {
+			if( codesize[i] > 0 )
+				bits[codesize[i]]++;
+		}
+		// limit code lengths to 16 bits
+		for(int i=32;i>16;i--) {
+			while( bits[i] > 0 ) {
+				int j = i-2;
+				while( bits[j] == 0 )
+					j--;
+				bits[i] -= 2;
+				bits[i-1]++;
+				bits[j+1] += 2;
+				bits[j]--;
+			}
+		}
+		// remove the reserved code point
+		int i = 16;
+		while( bits[i] == 0 )
+			i--;
+		bits[i]--;
+
+		int [] final_bits = new int[17];
+		System.arraycopy(bits, 0, final_bits, 0, 17);
+		int n_values = 0;
+		for(int l=1;l<=16;l++)
+			n_values += final_bits[l];
+		int [] huffval = new int[n_values];
+		int p = 0;
+		for(int l=1;l<=32 && p<n_values;l++) {
+			for(int s=0;s<256;s++) {
+				if( codesize[s] == l )
+					huffval[p++] = s;
+			}
+		}
+		return new EncodeTable(final_bits, huffval);
+	}
+
+	private static void writeMarker(ByteArrayOutputStream stream, int marker) {
+		stream.write(0xff);
+		stream.write(marker);
+	}
+
+	private static void writeShort(ByteArrayOutputStream stream, int value) {
+		stream.write(value >> 8);
+		stream.write(value & 0xff);
+	}
+
+	private static void writeHuffmanTable(ByteArrayOutputStream stream, int table_class, int id, EncodeTable table) {
+		writeMarker(stream, M_DHT);
+		writeShort(stream, 2 + 17 + table.huffval.length);
+		stream.write((table_class << 4) | id);
+		for(int l=1;l<=16;l++)
+			stream.write(table.bits[l]);
+		for(int value : table.huffval)
+			stream.write(value);
+	}
+
+	/** Encodes the image as a jpeg, with optimal Huffman tables.
+	 */
+	private static byte [] write(Image image) {
+		// first pass to gather statistics
+		long [][] dc_freqs = new long[4][256];
+		long [][] ac_freqs = new long[4][256];
+		encodeScan(image, dc_freqs, ac_freqs, null, null, null);
+		EncodeTable [] dc_tables = new EncodeTable[4];
+		EncodeTable [] ac_tables = new EncodeTable[4];
+		for(Component component : image.components) {
+			if( dc_tables[component.dc_table] == null )
+				dc_tables[component.dc_table] = createOptimalTable(dc_freqs[component.dc_table]);
+			if( ac_tables[component.ac_table] == null )
+				ac_tables[component.ac_table] = createOptimalTable(ac_freqs[component.ac_table]);
+		}
+
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		writeMarker(stream, M_SOI);
+		for(byte [] segment : image.app_segments) {
+			stream.write(segment, 0, segment.length);
+		}
+		for(int i=0;i<4;i++) {
+			int [] table = image.qtables[i];
+			if( table != null ) {
+				int precision = image.qtable_precision[i];
+				writeMarker(stream, M_DQT);
+				writeShort(stream, 2 + 1 + 64*(precision == 0 ? 1 : 2));
+				stream.write((precision << 4) | i);
+				for(int k=0;k<64;k++) {
+					if( precision == 0 )
+						stream.write(table[k]);
+					else
+						writeShort(stream, table[k]);
+				}
+			}
+		}
+		writeMarker(stream, image.sof_marker);
+		writeShort(stream, 2 + 6 + 3*image.components.size());
+		stream.write(8);
+		writeShort(stream, image.height);
+		writeShort(stream, image.width);
+		stream.write(image.components.size());
+		for(Component component : image.components) {
+			stream.write(component.id);
+			stream.write((component.h << 4) | component.v);
+			stream.write(component.tq);
+		}
+		for(int i=0;i<4;i++) {
+			if( dc_tables[i] != null )
+				writeHuffmanTable(stream, 0, i, dc_tables[i]);
+			if( ac_tables[i] != null )
+				writeHuffmanTable(stream, 1, i, ac_tables[i]);
+		}
+		writeMarker(stream, M_SOS);
+		writeShort(stream, 2 + 1 + 2*image.components.size() + 3);
+		stream.write(image.components.size());
+		for(Component component : image.components) {
+			stream.write(component.id);
+			stream.write((component.dc_table << 4) | component.ac_table);
+		}
+		stream.write(0);
+		stream.write(63);
+		stream.write(0);
+		BitWriter writer = new BitWriter(stream);
+		encodeScan(image, null, null, dc_tables, ac_tables, writer);
+		writer.flush();
+		writeMarker(stream, M_EOI);
+		return stream.toByteArray();
+	}
+}
@@ -0,0 +1,248 @@
+package net.sourceforge.opencamera;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+/** A multi-scale median threshold bitmap, as used for Ward's image alignment algorithm. Each level
+ *  is half the resolution of the previous one, and stores a threshold bitmap (whether each pixel
+ *  is brighter than the median) and an exclusion bitmap (whether each pixel is far enough from the
+ *  median to be counted), packed 64 pixels to a long. The error between two images for a given
+ *  offset is then the number of bits set in (threshold0 XOR threshold1) AND exclusion0 AND
+ *  exclusion1, which can be computed a word at a time.
+ *  The input image is read a couple of rows at a time, so we never hold a full resolution
+ *  greyscale copy.
+ */
+public class MTBPyramid {
+	private static final String TAG = "MTBPyramid";
+
+	private static final int noise_threshold_c = 4; // pixels within this of the median are excluded, see create_mtb.rs
+
+	private final int median_value;
+	private final int n_levels;
+	private final int [] widths;
+	private final int [] heights;
+	private final int [] words_per_row;
+	private final long [][] threshold_bits;
+	private final long [][] exclusion_bits;
+
+	private interface RowReader {
+		/** Reads n_rows rows of ARGB pixels starting at row y into buffer.
+		 */
+		void readRows(int [] buffer, int y, int n_rows);
+	}
+
+	/** Creates a pyramid from the supplied bitmap.
+	 * @param median_value The median of the maximum of the rgb values of the image.
+	 * @param n_levels     The number of levels, including the full resolution level. This is
+	 *                     reduced if the image is too small.
+	 */
+	public static MTBPyramid create(final Bitmap bitmap, int median_value, int n_levels) {
+		final int width = bitmap.getWidth();
+		return new MTBPyramid(new RowReader() {
+			@Override
+			public void readRows(int [] buffer, int y, int n_rows) {
+				bitmap.getPixels(buffer, 0, width, 0, y, width, n_rows);
+			}
+		}, width, bitmap.getHeight(), median_value, n_levels);
+	}
+
+	/** As create(Bitmap, int, int), but from an array of ARGB pixels.
+	 */
+	public static MTBPyramid create(final int [] pixels, final int width, int height, int median_value, int n_levels) {
+		return new MTBPyramid(new RowReader() {
+			@Override
+			public void readRows(int [] buffer, int y, int n_rows) {
+				System.arraycopy(pixels, y*width, buffer, 0, n_rows*width);
+			}
+		}, width, height, median_value, n_levels);
+	}
+
+	private MTBPyramid(RowReader reader, int width, int height, int median_value, int n_levels) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "create pyramid " + width + "x" + height + " median " + median_value + " levels " + n_levels);
+		this.median_value = median_value;
+		// stop once a level would be too small to be useful
+		int max_levels = 1;
+		while( max_levels < n_levels && (width >> max_levels) >= 8 && (height >> max_levels) >= 8 ) {
+			max_levels++;
+		}
+		this.n_levels = max_levels;
+		this.widths = new int[this.n_levels];
+		this.heights = new int[this.n_levels];
+		this.words_per_row = new int[this.n_levels];
+		this.threshold_bits = new long[this.n_levels][];
+		this.exclusion_bits = new long[this.n_levels][];
+		for(int level=0;level<this.n_levels;level++) {
+			widths[level] = width >> level;
+			heights[level] = height >> level;
+			words_per_row[level] = (widths[level] + 63)/64;
+			threshold_bits[level] = new long[words_per_row[level]*heights[level]];
+			exclusion_bits[level] = new long[words_per_row[level]*heights[level]];
+		}
+
+		// full resolution level, read a pair of rows at a time, and downsample to the next level as we go
+		int [] buffer = new int[2*width];
+		byte [] grey_rows = new byte[2*width];
+		byte [] grey_next = this.n_levels > 1 ? new byte[widths[1]*heights[1]] : null;
+		for(int y=0;y<height;y+=2) {
+			int n_rows = Math.min(2, height-y);
+			reader.readRows(buffer, y, n_rows);
+			for(int i=0;i<n_rows*width;i++) {
+				int color = buffer[i];
+				int value = Math.max((color >> 16) & 0xFF, (color >> 8) & 0xFF);
+				value = Math.max(value, color & 0xFF);
+				grey_rows[i] = (byte)value;
+			}
+			for(int r=0;r<n_rows;r++) {
+				packRow(0, y+r, grey_rows, r*width);
+			}
+			if( grey_next != null && y/2 < heights[1] ) {
+				downsampleRows(grey_rows, 0, width, grey_next, (y/2)*widths[1], widths[1]);
+			}
+		}
+
+		// lower resolution levels
+		byte [] grey = grey_next;
+		for(int level=1;level<this.n_levels;level++) {
+			int level_width = widths[level];
+			grey_next = level+1 < this.n_levels ? new byte[widths[level+1]*heights[level+1]] : null;
+			for(int y=0;y<heights[level];y++) {
+				packRow(level, y, grey, y*level_width);
+				if( grey_next != null && y % 2 == 0 && y/2 < heights[level+1] ) {
+					downsampleRows(grey, y*level_width, level_width, grey_next, (y/2)*widths[level+1], widths[level+1]);
+				}
+			}
+			grey = grey_next;
+		}
+	}
+
+	/** Averages each 2x2 block of the two rows of grey starting at in_offset into a row of out.
+	 */
+	private static void downsampleRows(byte [] in, int in_offset, int in_width, byte [] out, int out_offset, int out_width) {
+		for(int x=0;x<out_width;x++) {
+			int indx = in_offset + 2*x;
+			int sum = (in[indx] & 0xFF) + (in[indx+1] & 0xFF) + (in[indx+in_width] & 0xFF) + (in[indx+in_width+1] & 0xFF);
+			out[out_offset+x] = (byte)((sum+2) >> 2);
+		}
+	}
+
+	private void packRow(int level, int y, byte [] grey, int offset) {
+		long [] threshold = threshold_bits[level];
+		long [] exclusion = exclusion_bits[level];
+		int width = widths[level];
+		int indx = y*words_per_row[level];
+		for(int x0=0;x0<width;x0+=64,indx++) {
+			long threshold_word = 0, exclusion_word = 0;
+			int n = Math.min(64, width-x0);
+			for(int i=0;i<n;i++) {
+				int value = grey[offset+x0+i] & 0xFF;
+				if( value > median_value )
+					threshold_word |= 1L << i;
+				if( Math.abs(value - median_value) > noise_threshold_c )
+					exclusion_word |= 1L << i;
+			}
+			threshold[indx] = threshold_word;
+			exclusion[indx] = exclusion_word;
+		}
+	}
+
+	public int getLevels() {
+		return n_levels;
+	}
+
+	/** Returns the 64 pixels of a packed row starting at pixel 64*word+shift, with pixels outside
+	 *  the row set to 0.
+	 */
+	private static long shiftedWord(long [] bits, int row_start, int n_words, int word, int shift) {
+		int pos = (word << 6) + shift;
+		int indx = pos >> 6; // n.b., rounds down for negative pos
+		int bit = pos & 63;
+		long lo = (indx >= 0 && indx < n_words) ? bits[row_start+indx] : 0;
+		if( bit == 0 )
+			return lo;
+		long hi = (indx+1 >= 0 && indx+1 < n_words) ? bits[row_start+indx+1] : 0;
+		return (lo >>> bit) | (hi << (64-bit));
+	}
+
+	/** Returns the number of differing pixels between this pyramid at (x, y) and image at
+	 *  (x+off_x, y+off_y), for the supplied level. Pixels close to the median in either image, or
+	 *  outside the image, are ignored. Once the error exceeds max_error, we stop counting and
+	 *  return the error so far.
+	 */
+	public long computeError(MTBPyramid image, int level, int off_x, int off_y, long max_error) {
+		long [] threshold0 = threshold_bits[level];
+		long [] exclusion0 = exclusion_bits[level];
+		long [] threshold1 = image.threshold_bits[level];
+		long [] exclusion1 = image.exclusion_bits[level];
+		int n_words = words_per_row[level];
+		int n_words1 = image.words_per_row[level];
+		int start_y = Math.max(0, -off_y);
+		int stop_y = Math.min(heights[level], image.heights[level]-off_y);
+		long error = 0;
+		for(int y=start_y;y<stop_y;y++) {
+			int row0 = y*n_words;
+			int row1 = (y+off_y)*n_words1;
+			for(int word=0;word<n_words;word++) {
+				long t1 = shiftedWord(threshold1, row1, n_words1, word, off_x);
+				long e1 = shiftedWord(exclusion1, row1, n_words1, word, off_x);
+				error += Long.bitCount((threshold0[row0+word] ^ t1) & exclusion0[row0+word] & e1);
+			}
+			if( error > max_error ) {
+				// can't be the best offset, so no need to continue
+				break;
+			}
+		}
+		return error;
+	}
+
+	/** Finds the offset such that image at (x+offset_x, y+offset_y) best matches base at (x, y),
+	 *  searching from the coarsest level down to finest_level, and trying offsets of -1, 0, +1
+	 *  (in that level's pixels) at each level. The offset found can be up to 2^n_levels - 1 pixels.
+	 * @param offset      Array of length 2, set to the offset in pixels.
+	 * @param stop_early  If true, stop once the offset is unchanged for two levels in a row,
+	 *                    rather than refining down to finest_level.
+	 */
+	public static void align(int [] offset, MTBPyramid base, MTBPyramid image, int finest_level, boolean stop_early) {
+		int n_levels = Math.min(base.n_levels, image.n_levels);
+		int off_x = 0, off_y = 0;
+		int level = n_levels-1;
+		int n_unchanged = 0;
+		for(;;) {
+			// try the current offset first, so the other offsets can stop counting as soon as they're worse
+			long best_error = base.computeError(image, level, off_x, off_y, Long.MAX_VALUE);
+			int best_dx = 0, best_dy = 0;
+			for(int dy=-1;dy<=1;dy++) {
+				for(int dx=-1;dx<=1;dx++) {
+					if( dx == 0 && dy == 0 )
+						continue;
+					long error = base.computeError(image, level, off_x+dx, off_y+dy, best_error);
+					if( error < best_error ) {
+						best_error = error;
+						best_dx = dx;
+						best_dy = dy;
+					}
+				}
+			}
+			off_x += best_dx;
+			off_y += best_dy;
+			if( MyDebug.LOG )
+				Log.d(TAG, "level " + level + ": offset " + off_x + " , " + off_y + " error " + best_error);
+			if( best_dx == 0 && best_dy == 0 )
+				n_unchanged++;
+			else
+				n_unchanged = 0;
+			if( level <= finest_level || level == 0 )
+				break;
+			if( stop_early && n_unchanged >= 2 ) {
+				if( MyDebug.LOG )
+					Log.d(TAG, "offset is stable, stop at level " + level);
+				break;
+			}
+			level--;
+			off_x *= 2;
+			off_y *= 2;
+		}
+		offset[0] = off_x << level;
+		offset[1] = off_y << level;
+	}
+}
@@ -124,6 +124,14 @@ public class MainActivity extends Activity {
 	private final ToastBoxer audio_control_toast = new ToastBoxer();
 	private boolean block_startup_toast = false; // used when returning from Settings/Popup - if we're displaying a toast anyway, don't want to display the info toast too
 
+	// see warmUpHDRProcessor()
+	private final Object warm_up_lock = new Object();
+	private boolean warm_up_running; // whether the warm up thread is running
+	private boolean warm_up_pending; // whether there's a warm up for the thread to do, with the parameters below
+	private int warm_up_width;
+	private int warm_up_height;
+	private boolean warm_up_noise_reduction;
+
 	// application shortcuts:
 	static private final String ACTION_SHORTCUT_CAMERA = "net.sourceforge.opencamera.SHORTCUT_CAMERA";
 	static private final String ACTION_SHORTCUT_SELFIE = "net.sourceforge.opencamera.SHORTCUT_SELFIE";
@@ -231,6 +239,9 @@ public class MainActivity extends Activity {
 		if( MyDebug.LOG )
 			Log.d(TAG, "onCreate: time after updating folder history: " + (System.currentTimeMillis() - debug_time));
 
+		// save any photos that were journaled but not saved last time, e.g., if we were killed during a long burst
+		applicationInterface.getImageSaver().replayJournal();
+
 		// set up sensors
         mSensorManager = (SensorManager)getSystemService(Context.SENSOR_SERVICE);
 
@@ -724,6 +735,17 @@ public class MainActivity extends Activity {
 		if( MyDebug.LOG )
 			Log.d(TAG, "onDestroy done");
 	}
+
+	@Override
+	public void onTrimMemory(int level) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "onTrimMemory: " + level);
+		super.onTrimMemory(level);
+		if( applicationInterface != null ) {
+			// also frees memory kept by the HDRProcessor
+			applicationInterface.getImageSaver().onTrimMemory(level);
+		}
+	}
 	
 	@Override
 	public boolean onCreateOptionsMenu(Menu menu) {
@@ -1360,6 +1382,7 @@ public class MainActivity extends Activity {
 				case "preference_keep_display_on":
 				case "preference_max_brightness":
 				case "preference_hdr_save_expo":
+				case "preference_hdr_exposure_fusion":
 				case "preference_front_camera_mirror":
 				case "preference_stamp":
 				case "preference_stamp_dateformat":
@@ -3171,10 +3194,64 @@ public class MainActivity extends Activity {
 			this.showPhotoVideoToast(false);
 		}
 		block_startup_toast = false;
+
+		warmUpHDRProcessor();
 		if( MyDebug.LOG )
 			Log.d(TAG, "cameraSetup: total time for cameraSetup: " + (System.currentTimeMillis() - debug_time));
     }
 
+	/** If we're in HDR or noise reduction photo mode, prepares the HDRProcessor for the current
+	 *  picture size on a background thread, so that the first photo isn't slower than later ones.
+	 *  Called from cameraSetup(), which includes when switching photo mode. Only one thread is used,
+	 *  and it only does the latest warm up requested, so switching repeatedly doesn't queue up warm
+	 *  ups for modes we're no longer in.
+	 */
+	private void warmUpHDRProcessor() {
+		if( Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP || preview.isVideo() )
+			return;
+		MyApplicationInterface.PhotoMode photo_mode = applicationInterface.getPhotoMode();
+		if( photo_mode != MyApplicationInterface.PhotoMode.HDR && photo_mode != MyApplicationInterface.PhotoMode.NoiseReduction )
+			return;
+		CameraController.Size size = preview.getCurrentPictureSize();
+		if( size == null )
+			return;
+		final HDRProcessor hdrProcessor = applicationInterface.getHDRProcessor();
+		if( MyDebug.LOG )
+			Log.d(TAG, "warm up HDRProcessor for " + size.width + "x" + size.height);
+		synchronized( warm_up_lock ) {
+			warm_up_width = size.width;
+			warm_up_height = size.height;
+			warm_up_noise_reduction = photo_mode == MyApplicationInterface.PhotoMode.NoiseReduction;
+			warm_up_pending = true;
+			if( warm_up_running ) {
+				// the running thread will do this warm up next, instead of any earlier one it hasn't started
+				return;
+			}
+			warm_up_running = true;
+		}
+		new Thread(new Runnable() {
+			@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+			public void run() {
+				while( true ) {
+					int width;
+					int height;
+					boolean noise_reduction;
+					synchronized( warm_up_lock ) {
+						if( !warm_up_pending ) {
+							warm_up_running = false;
+							return;
+						}
+						warm_up_pending = false;
+						width = warm_up_width;
+						height = warm_up_height;
+						noise_reduction = warm_up_noise_reduction;
+					}
+					hdrProcessor.warmUp(width, height, noise_reduction);
+				}
+			}
+		}).start();
+	}
+
     private void setManualFocusSeekbar(final boolean is_target_distance) {
 		if( MyDebug.LOG )
 			Log.d(TAG, "setManualFocusSeekbar");
@@ -3285,7 +3362,9 @@ public class MainActivity extends Activity {
     public boolean supportsNoiseReduction() {
 		// require at least Android 5, for the Renderscript support in HDRProcessor, but we require
 		// Android 7 to limit to more modern devices (for performance reasons)
-		return( Build.VERSION.SDK_INT >= Build.VERSION_CODES.N && preview.usingCamera2API() && large_heap_memory >= 512 && preview.supportsBurst() && preview.supportsExposureTime() );
+		// with less than 512MB, HDRProcessor keeps the running average in a file if it doesn't fit in the working
+		// memory, see MappedAccumulator
+		return( Build.VERSION.SDK_INT >= Build.VERSION_CODES.N && preview.usingCamera2API() && large_heap_memory >= 256 && preview.supportsBurst() && preview.supportsExposureTime() );
 		//return false; // currently blocked for release
 	}
     
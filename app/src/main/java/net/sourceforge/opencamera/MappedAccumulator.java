@@ -0,0 +1,157 @@
+package net.sourceforge.opencamera;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+
+/** Holds the running average of a noise reduction burst in a memory mapped file, rather than in the
+ *  Java heap or RenderScript memory, for devices that don't have the memory for a full size
+ *  accumulator as well as the images being merged (see HDRProcessor.processAvg()). Pixels are
+ *  stored at half precision (see HDRBackend.createHalfPrecisionImage()), as 3 values per pixel,
+ *  row by row. The pages are backed by the file, so under memory pressure the system can write
+ *  them out and drop them, rather than killing the app.
+ *  The image is divided into bands of rows, each mapped separately, as a single mapping of the
+ *  whole file may not fit in the address space of a 32-bit process. Bands are meant to be
+ *  processed in order, so that the file is accessed sequentially.
+ *  The file is deleted as soon as it's mapped (the mappings remain valid), so it can't be left
+ *  behind if the app is killed; the space is freed once the mappings are garbage collected.
+ */
+public class MappedAccumulator {
+	private static final String TAG = "MappedAccumulator";
+
+	private static final int values_per_pixel_c = 3;
+	private static final int bytes_per_value_c = 2;
+	// space to leave free on the filesystem, as writing to a mapping fails badly (with SIGBUS) if the
+	// filesystem is full
+	private static final long min_free_space_c = 32*1024*1024;
+
+	private final int width;
+	private final int height;
+	private final int band_height;
+	private ShortBuffer [] bands;
+
+	private MappedAccumulator(int width, int height, int band_height, ShortBuffer [] bands) {
+		this.width = width;
+		this.height = height;
+		this.band_height = band_height;
+		this.bands = bands;
+	}
+
+	/** Returns the size of the file for an image of the supplied size, in bytes.
+	 */
+	public static long computeFileBytes(int width, int height) {
+		return ((long)width)*height*values_per_pixel_c*bytes_per_value_c;
+	}
+
+	/** Creates an accumulator for an image of the supplied size, in a file in dir. The initial
+	 *  contents are 0.
+	 * @param band_height The number of rows of each band (other than the last, which may be
+	 *                    smaller).
+	 * @throws IOException If the file couldn't be created or mapped, or there isn't enough space
+	 *                     for it.
+	 */
+	public static MappedAccumulator create(File dir, int width, int height, int band_height) throws IOException {
+		if( MyDebug.LOG )
+			Log.d(TAG, "create: " + width + "x" + height + " band_height: " + band_height);
+		long file_bytes = computeFileBytes(width, height);
+		if( dir.getUsableSpace() < file_bytes + min_free_space_c ) {
+			throw new IOException("not enough space for accumulator: " + dir.getUsableSpace());
+		}
+		band_height = Math.max(1, Math.min(band_height, height));
+		int n_bands = (height + band_height - 1)/band_height;
+		ShortBuffer [] bands = new ShortBuffer[n_bands];
+		File file = File.createTempFile("nr_avg", ".tmp", dir);
+		RandomAccessFile random_access_file = null;
+		try {
+			random_access_file = new RandomAccessFile(file, "rw");
+			random_access_file.setLength(file_bytes);
+			FileChannel channel = random_access_file.getChannel();
+			long band_bytes = ((long)width)*band_height*values_per_pixel_c*bytes_per_value_c;
+			for(int i=0;i<n_bands;i++) {
+				long offset = i*band_bytes;
+				bands[i] = channel.map(FileChannel.MapMode.READ_WRITE, offset, Math.min(band_bytes, file_bytes-offset)).order(ByteOrder.nativeOrder()).asShortBuffer();
+			}
+		}
+		finally {
+			if( random_access_file != null )
+				random_access_file.close();
+			if( !file.delete() ) {
+				if( MyDebug.LOG )
+					Log.e(TAG, "failed to delete accumulator file: " + file);
+			}
+		}
+		return new MappedAccumulator(width, height, band_height, bands);
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public int getNBands() {
+		return bands.length;
+	}
+
+	/** Returns the maximum number of rows of a band.
+	 */
+	public int getBandHeight() {
+		return band_height;
+	}
+
+	/** Returns the first row of the band.
+	 */
+	public int getBandStart(int band) {
+		return band*band_height;
+	}
+
+	/** Returns the number of rows of the band.
+	 */
+	public int getBandRows(int band) {
+		return Math.min(band_height, height - band*band_height);
+	}
+
+	/** Copies the band to pixels, in the format of HDRBackend.copyTo(Image, short []).
+	 */
+	public void readBand(int band, short [] pixels) {
+		ShortBuffer buffer = bands[band].duplicate();
+		buffer.get(pixels, 0, buffer.remaining());
+	}
+
+	/** Copies pixels, in the format of HDRBackend.copyTo(Image, short []), to the band.
+	 */
+	public void writeBand(int band, short [] pixels) {
+		ShortBuffer buffer = bands[band].duplicate();
+		buffer.put(pixels, 0, buffer.remaining());
+	}
+
+	/** Copies the region with top left corner (start_x, start_y) to pixels, which may span more
+	 *  than one band. This may be called from more than one thread at once.
+	 */
+	public void read(short [] pixels, int start_x, int start_y, int region_width, int region_height) {
+		int row_values = values_per_pixel_c*region_width;
+		for(int y=0;y<region_height;y++) {
+			int band = (start_y+y)/band_height;
+			int band_y = (start_y+y) - band*band_height;
+			ShortBuffer buffer = bands[band].duplicate();
+			buffer.position(values_per_pixel_c*(band_y*width + start_x));
+			buffer.get(pixels, y*row_values, row_values);
+		}
+	}
+
+	/** Releases the mappings. The space is freed once they're garbage collected, as there's no way
+	 *  to unmap them explicitly.
+	 */
+	public void close() {
+		if( MyDebug.LOG )
+			Log.d(TAG, "close");
+		bands = null;
+	}
+}
@@ -0,0 +1,287 @@
+package net.sourceforge.opencamera;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import java.util.Arrays;
+
+/** A downsampled mask of which tiles of an HDR image contain motion, for deghosting. Each image
+ *  is compared against the reference (base) exposure, after mapping both through their response
+ *  functions; tiles where they differ by much more than is typical for the image are marked as
+ *  moving, and the HDR merge then falls back to the reference exposure for those tiles.
+ *  Only a subset of pixels is sampled, so that this is cheap compared to the merge itself.
+ */
+public class MotionMask {
+	private static final String TAG = "MotionMask";
+
+	public static final int tile_size_c = 32; // in pixels of the full resolution image
+	private static final int sample_step_c = 4; // we sample every sample_step_c pixels in each direction
+	// pixels that are under or over exposed in either image don't tell us anything about motion
+	private static final int min_valid_value_c = 16;
+	private static final int max_valid_value_c = 239;
+	// a tile is only used if at least this fraction of its samples are well exposed in both images
+	private static final float min_valid_fraction_c = 0.25f;
+	// a tile is moving if its mean difference is more than this multiple of the median for all tiles
+	// (which allows for errors in the response functions and noise), and more than min_threshold_c
+	private static final float median_ratio_c = 3.0f;
+	private static final float min_threshold_c = 10.0f;
+
+	/** Reads a row of ARGB pixels of an image, so that we can support bitmaps or arrays.
+	 */
+	private interface RowReader {
+		void readRow(int [] buffer, int y);
+	}
+
+	private final int width; // in tiles
+	private final int height; // in tiles
+	private final int image_width; // in pixels
+	private final int image_height; // in pixels
+	private final byte [] mask; // 1 for moving tiles, 0 otherwise
+	private final int origin_x; // see translate()
+	private final int origin_y;
+
+	private MotionMask(int image_width, int image_height, byte [] mask, int origin_x, int origin_y) {
+		this.width = (image_width + tile_size_c - 1) / tile_size_c;
+		this.height = (image_height + tile_size_c - 1) / tile_size_c;
+		this.image_width = image_width;
+		this.image_height = image_height;
+		this.mask = mask;
+		this.origin_x = origin_x;
+		this.origin_y = origin_y;
+	}
+
+	/** Creates a mask with no moving tiles, for an image of the supplied size.
+	 */
+	public MotionMask(int image_width, int image_height) {
+		this(image_width, image_height, null, 0, 0);
+	}
+
+	/** Computes the mask for image against base. The parameters are as for HDRBackend.processHDR():
+	 *  the pixel (x, y) of base corresponds to (x+offset_x, y+offset_y) of image, and parameter_A,
+	 *  parameter_B are the response functions.
+	 */
+	public static MotionMask create(final Bitmap base, final Bitmap image, int offset_x, int offset_y, float base_A, float base_B, float parameter_A, float parameter_B) {
+		final int width = base.getWidth();
+		return create(new RowReader() {
+			@Override
+			public void readRow(int [] buffer, int y) {
+				base.getPixels(buffer, 0, width, 0, y, width, 1);
+			}
+		}, new RowReader() {
+			@Override
+			public void readRow(int [] buffer, int y) {
+				image.getPixels(buffer, 0, width, 0, y, width, 1);
+			}
+		}, width, base.getHeight(), offset_x, offset_y, base_A, base_B, parameter_A, parameter_B);
+	}
+
+	/** As create(Bitmap, Bitmap, ...), but from arrays of ARGB pixels of the supplied size.
+	 */
+	public static MotionMask create(final int [] base, final int [] image, final int width, int height, int offset_x, int offset_y, float base_A, float base_B, float parameter_A, float parameter_B) {
+		return create(new RowReader() {
+			@Override
+			public void readRow(int [] buffer, int y) {
+				System.arraycopy(base, y*width, buffer, 0, width);
+			}
+		}, new RowReader() {
+			@Override
+			public void readRow(int [] buffer, int y) {
+				System.arraycopy(image, y*width, buffer, 0, width);
+			}
+		}, width, height, offset_x, offset_y, base_A, base_B, parameter_A, parameter_B);
+	}
+
+	private static MotionMask create(RowReader base, RowReader image, int image_width, int image_height, int offset_x, int offset_y, float base_A, float base_B, float parameter_A, float parameter_B) {
+		long time_s = System.currentTimeMillis();
+		MotionMask motion_mask = new MotionMask(image_width, image_height);
+		final int width = motion_mask.width;
+		final int height = motion_mask.height;
+		float [] sums = new float[width*height];
+		int [] counts = new int[width*height];
+		int [] base_row = new int[image_width];
+		int [] image_row = new int[image_width];
+		// compare in units of the image that's amplified least by its response function, so that we don't
+		// mistake the noise of a dark image for motion
+		final float scale = 1.0f / Math.max(Math.max(base_A, parameter_A), 1.0e-5f);
+		final int start = sample_step_c/2;
+		for(int y=start;y<image_height;y+=sample_step_c) {
+			int image_y = y + offset_y;
+			if( image_y < 0 || image_y >= image_height )
+				continue;
+			base.readRow(base_row, y);
+			image.readRow(image_row, image_y);
+			int tile_row = (y / tile_size_c) * width;
+			for(int x=start;x<image_width;x+=sample_step_c) {
+				int image_x = x + offset_x;
+				if( image_x < 0 || image_x >= image_width )
+					continue;
+				int base_value = averageRGB(base_row[x]);
+				int image_value = averageRGB(image_row[image_x]);
+				if( base_value < min_valid_value_c || base_value > max_valid_value_c || image_value < min_valid_value_c || image_value > max_valid_value_c )
+					continue;
+				float diff = Math.abs( (base_A * base_value + base_B) - (parameter_A * image_value + parameter_B) );
+				int indx = tile_row + x / tile_size_c;
+				sums[indx] += diff * scale;
+				counts[indx]++;
+			}
+		}
+
+		// the threshold is relative to the median tile, see median_ratio_c
+		final int samples_per_tile = (tile_size_c/sample_step_c) * (tile_size_c/sample_step_c);
+		final int min_count = Math.max(1, (int)(min_valid_fraction_c * samples_per_tile));
+		float [] means = new float[width*height];
+		int n_means = 0;
+		for(int i=0;i<width*height;i++) {
+			if( counts[i] >= min_count ) {
+				sums[i] /= counts[i];
+				means[n_means++] = sums[i];
+			}
+		}
+		if( n_means == 0 ) {
+			if( MyDebug.LOG )
+				Log.d(TAG, "no tiles with enough samples");
+			return motion_mask;
+		}
+		Arrays.sort(means, 0, n_means);
+		float median = means[n_means/2];
+		float threshold = Math.max(min_threshold_c, median_ratio_c * median);
+		if( MyDebug.LOG ) {
+			Log.d(TAG, "median tile difference: " + median);
+			Log.d(TAG, "threshold: " + threshold);
+		}
+
+		byte [] moving = new byte[width*height];
+		int n_moving = 0;
+		for(int i=0;i<width*height;i++) {
+			if( counts[i] >= min_count && sums[i] > threshold ) {
+				moving[i] = 1;
+				n_moving++;
+			}
+		}
+		if( n_moving > 0 ) {
+			// ghosts often extend beyond the tiles where we detect them (e.g., into tiles where the moving
+			// object is over exposed), so also mark the neighbouring tiles
+			byte [] dilated = new byte[width*height];
+			for(int ty=0;ty<height;ty++) {
+				for(int tx=0;tx<width;tx++) {
+					if( moving[ty*width+tx] == 0 )
+						continue;
+					for(int dy=Math.max(ty-1, 0);dy<=Math.min(ty+1, height-1);dy++) {
+						for(int dx=Math.max(tx-1, 0);dx<=Math.min(tx+1, width-1);dx++) {
+							dilated[dy*width+dx] = 1;
+						}
+					}
+				}
+			}
+			motion_mask = new MotionMask(image_width, image_height, dilated, 0, 0);
+		}
+		if( MyDebug.LOG ) {
+			Log.d(TAG, "moving tiles: " + n_moving + " of " + (width*height));
+			Log.d(TAG, "time for motion mask: " + (System.currentTimeMillis() - time_s));
+		}
+		return motion_mask;
+	}
+
+	private static int averageRGB(int color) {
+		int r = (color >> 16) & 0xff;
+		int g = (color >> 8) & 0xff;
+		int b = color & 0xff;
+		return (r + g + b)/3;
+	}
+
+	/** Returns a mask that also marks the tiles that are moving in other, which must be for the same
+	 *  image size.
+	 */
+	public MotionMask union(MotionMask other) {
+		if( other.mask == null )
+			return this;
+		else if( this.mask == null )
+			return other;
+		byte [] combined = new byte[mask.length];
+		for(int i=0;i<mask.length;i++) {
+			combined[i] = (byte)(mask[i] | other.mask[i]);
+		}
+		return new MotionMask(image_width, image_height, combined, origin_x, origin_y);
+	}
+
+	/** Returns a mask for the region of the image with top left corner (start_x, start_y), for
+	 *  processing tiles of the image: pixel (x, y) of the returned mask corresponds to pixel
+	 *  (start_x + x, start_y + y) of this mask.
+	 */
+	public MotionMask translate(int start_x, int start_y) {
+		return new MotionMask(image_width, image_height, mask, origin_x + start_x, origin_y + start_y);
+	}
+
+	/** Whether any tiles are moving.
+	 */
+	public boolean hasMotion() {
+		return mask != null;
+	}
+
+	/** Returns the width of the mask in tiles.
+	 */
+	public int getWidth() {
+		return width;
+	}
+
+	/** Returns the height of the mask in tiles.
+	 */
+	public int getHeight() {
+		return height;
+	}
+
+	public int getOriginX() {
+		return origin_x;
+	}
+
+	public int getOriginY() {
+		return origin_y;
+	}
+
+	/** Whether the tile (tile_x, tile_y) is moving.
+	 */
+	public boolean isMoving(int tile_x, int tile_y) {
+		return mask != null && mask[tile_y*width+tile_x] != 0;
+	}
+
+	/** Returns the number of moving tiles.
+	 */
+	public int countMoving() {
+		int count = 0;
+		if( mask != null ) {
+			for(byte value : mask) {
+				count += value;
+			}
+		}
+		return count;
+	}
+
+	/** Returns the mask, of getWidth()*getHeight() values that are 1 for moving tiles and 0
+	 *  otherwise, or null if no tiles are moving. The caller must not modify the mask.
+	 */
+	public byte [] getMask() {
+		return mask;
+	}
+
+	/** Returns how much the pixel (x, y) should fall back to the reference exposure, from 0 (not at
+	 *  all) to 1 (entirely). This is interpolated between the centres of the tiles, so that there
+	 *  aren't visible seams at the tile boundaries; see motion_weight() in process_hdr.rs.
+	 */
+	public float getWeight(int x, int y) {
+		if( mask == null )
+			return 0.0f;
+		float fx = (x + origin_x + 0.5f) / tile_size_c - 0.5f;
+		float fy = (y + origin_y + 0.5f) / tile_size_c - 0.5f;
+		fx = Math.max(0.0f, Math.min(fx, width-1));
+		fy = Math.max(0.0f, Math.min(fy, height-1));
+		int x0 = (int)fx;
+		int y0 = (int)fy;
+		int x1 = Math.min(x0+1, width-1);
+		int y1 = Math.min(y0+1, height-1);
+		float alpha_x = fx - x0;
+		float alpha_y = fy - y0;
+		float m0 = (1.0f-alpha_x) * mask[y0*width+x0] + alpha_x * mask[y0*width+x1];
+		float m1 = (1.0f-alpha_x) * mask[y1*width+x0] + alpha_x * mask[y1*width+x1];
+		return (1.0f-alpha_y) * m0 + alpha_y * m1;
+	}
+}
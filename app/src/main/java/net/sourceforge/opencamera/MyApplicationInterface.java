@@ -13,6 +13,7 @@ import java.util.Timer;
 import java.util.TimerTask;
 
 import net.sourceforge.opencamera.CameraController.CameraController;
+import net.sourceforge.opencamera.CameraController.JpegImage;
 import net.sourceforge.opencamera.CameraController.RawImage;
 import net.sourceforge.opencamera.Preview.ApplicationInterface;
 import net.sourceforge.opencamera.Preview.BasicApplicationInterface;
@@ -957,7 +958,7 @@ public class MyApplicationInterface extends BasicApplicationInterface {
 			else if( main_activity.getPreview().supportsBurst() && this.isCameraBurstPref() ) {
 				n_raw = 0;
 				if( this.getBurstForNoiseReduction() ) {
-					n_jpegs = 8;
+					n_jpegs = CameraController.N_IMAGES_NR_MAX;
 				}
 				else {
 					n_jpegs = this.getBurstNImages();
@@ -965,8 +966,9 @@ public class MyApplicationInterface extends BasicApplicationInterface {
 			}
 		}
 
+		PhotoMode photo_mode = getPhotoMode();
 		int photo_cost = imageSaver.computePhotoCost(n_raw > 0, n_jpegs);
-    	if( imageSaver.queueWouldBlock(photo_cost) ) {
+    	if( imageSaver.queueWouldBlock(n_raw > 0, n_jpegs, main_activity.getPreview().isVideo() ? PhotoMode.Standard : photo_mode) ) {
 			if( MyDebug.LOG )
 				Log.d(TAG, "canTakeNewPhoto: no, as queue would block");
 			return false;
@@ -974,7 +976,6 @@ public class MyApplicationInterface extends BasicApplicationInterface {
 
     	// even if the queue isn't full, we may apply additional limits
 		int n_images_to_save = imageSaver.getNImagesToSave();
-		PhotoMode photo_mode = getPhotoMode();
 		if( photo_mode == PhotoMode.FastBurst ) {
 			// only allow one fast burst at a time, so require queue to be empty
 			if( n_images_to_save > 0 ) {
@@ -1039,6 +1040,13 @@ public class MyApplicationInterface extends BasicApplicationInterface {
 		return photo_mode == PhotoMode.HDR || photo_mode == PhotoMode.ExpoBracketing;
 	}
 
+	/** Whether HDR photo mode should merge the images with exposure fusion (see
+	 *  HDRProcessor.processExposureFusion()), rather than HDRProcessor.processHDR().
+	 */
+	public boolean isHDRExposureFusionPref() {
+		return sharedPreferences.getBoolean(PreferenceKeys.HDRExposureFusionPreferenceKey, false);
+	}
+
     @Override
 	public boolean isFocusBracketingPref() {
     	PhotoMode photo_mode = getPhotoMode();
@@ -1083,8 +1091,8 @@ public class MyApplicationInterface extends BasicApplicationInterface {
 			Log.d(TAG, "getExpoBracketingNImagesPref");
 		int n_images;
     	PhotoMode photo_mode = getPhotoMode();
-    	if( photo_mode == PhotoMode.HDR ) {
-    		// always set 3 images for HDR
+    	if( photo_mode == PhotoMode.HDR && !isHDRExposureFusionPref() ) {
+    		// always set 3 images for HDR, unless using exposure fusion, which supports any number of images
     		n_images = 3;
     	}
     	else {
@@ -1242,6 +1250,11 @@ public class MyApplicationInterface extends BasicApplicationInterface {
     	return imageSaver.getMaxDNG();
 	}
 
+	@Override
+	public int getMaxDirectJpegImages() {
+		return imageSaver.getMaxDirectJpegs();
+	}
+
     @Override
 	public boolean useCamera2FakeFlash() {
 		return sharedPreferences.getBoolean(PreferenceKeys.Camera2FakeFlashPreferenceKey, false);
@@ -1844,6 +1857,11 @@ public class MyApplicationInterface extends BasicApplicationInterface {
     	drawPreview.cameraInOperation(false);
     }
 
+	@Override
+	public boolean continueNoiseReductionBurst(int n_images, int n_default) {
+		return imageSaver.continueImageAverage(n_images, n_default);
+	}
+
 	@Override
 	public void cameraClosed() {
 		if( MyDebug.LOG )
@@ -2189,7 +2207,12 @@ public class MyApplicationInterface extends BasicApplicationInterface {
 		return image_capture_intent;
 	}
 	
-	private boolean saveImage(boolean is_hdr, boolean save_expo, List<byte []> images, Date current_date) {
+	/** Saves the supplied images.
+	 * @param images     The JPEG images, may be null if jpeg_image is non-null.
+	 * @param jpeg_image If non-null, a single JPEG held in the camera's buffer. Only supported for
+	 *                   standard and fast burst photo modes.
+	 */
+	private boolean saveImage(boolean is_hdr, boolean save_expo, List<byte []> images, JpegImage jpeg_image, Date current_date) {
 		if( MyDebug.LOG )
 			Log.d(TAG, "saveImage");
 
@@ -2309,7 +2332,7 @@ public class MyApplicationInterface extends BasicApplicationInterface {
 					// fast burst shots come is as separate requests, so we need to make sure we get the filename suffixes right
 					photo_mode == PhotoMode.FastBurst,
 					photo_mode == PhotoMode.FastBurst ? n_capture_images : 0, // n.b., n_capture_images will be 1 for first image, not 0, but this is fine for naming of burst images
-					save_expo, images,
+					save_expo, images, jpeg_image,
 					image_capture_intent, image_capture_intent_uri,
 					using_camera2, image_quality,
 					do_auto_stabilise, level_angle,
@@ -2354,7 +2377,7 @@ public class MyApplicationInterface extends BasicApplicationInterface {
 		if( photo_mode == PhotoMode.DRO ) {
 			is_hdr = true;
 		}
-		boolean success = saveImage(is_hdr, false, images, current_date);
+		boolean success = saveImage(is_hdr, false, images, null, current_date);
 
 		if( MyDebug.LOG )
 			Log.d(TAG, "onPictureTaken complete, success: " + success);
@@ -2362,6 +2385,37 @@ public class MyApplicationInterface extends BasicApplicationInterface {
 		return success;
 	}
     
+    @Override
+	public boolean onJpegImageTaken(JpegImage image, Date current_date) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "onJpegImageTaken");
+
+		PhotoMode photo_mode = getPhotoMode();
+		if( main_activity.getPreview().isVideo() ) {
+			// must be in photo snapshot while recording video mode, only support standard photo mode
+			photo_mode = PhotoMode.Standard;
+		}
+		if( photo_mode != PhotoMode.Standard && photo_mode != PhotoMode.FastBurst ) {
+			// other photo modes need the data on the Java heap for processing
+			if( MyDebug.LOG )
+				Log.d(TAG, "copy image for photo mode: " + photo_mode);
+			byte [] data = image.getBytes();
+			image.close();
+			return onPictureTaken(data, current_date);
+		}
+
+		n_capture_images++;
+		if( MyDebug.LOG )
+			Log.d(TAG, "n_capture_images is now " + n_capture_images);
+
+		boolean success = saveImage(false, false, null, image, current_date);
+
+		if( MyDebug.LOG )
+			Log.d(TAG, "onJpegImageTaken complete, success: " + success);
+
+		return success;
+	}
+
     @Override
 	public boolean onBurstPictureTaken(List<byte []> images, Date current_date) {
 		if( MyDebug.LOG )
@@ -2382,7 +2436,7 @@ public class MyApplicationInterface extends BasicApplicationInterface {
 			if( MyDebug.LOG )
 				Log.d(TAG, "save_expo: " + save_expo);
 
-			success = saveImage(true, save_expo, images, current_date);
+			success = saveImage(true, save_expo, images, null, current_date);
 		}
 		else {
 			if( MyDebug.LOG ) {
@@ -2391,7 +2445,7 @@ public class MyApplicationInterface extends BasicApplicationInterface {
 					Log.e(TAG, "onBurstPictureTaken called with unexpected photo mode?!: " + photo_mode);
 			}
 			
-			success = saveImage(false, true, images, current_date);
+			success = saveImage(false, true, images, null, current_date);
 		}
 		return success;
     }
@@ -0,0 +1,129 @@
+package net.sourceforge.opencamera;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/** Merges the images of a noise reduction burst as they arrive from the camera, rather than
+ *  waiting for the whole burst before starting. Each image is handed to the Accumulator on a
+ *  single worker thread, strictly in the order the images were added, so most of the averaging is
+ *  done whilst the rest of the burst is still being captured; finish() then only has to wait for
+ *  the last image.
+ *  If the accumulator fails for an image, the remaining images are skipped, and finish() reports
+ *  the failure so that the caller can fall back to processing the whole burst at once.
+ */
+public class NoiseReductionSession {
+	private static final String TAG = "NoiseReductionSession";
+
+	/** Merges an image into the running average. Called on the session's worker thread.
+	 */
+	public interface Accumulator {
+		/**
+		 * @param index The index of the image within the burst, starting from 0.
+		 * @return Whether successful. If false, the remaining images are skipped.
+		 */
+		boolean accumulate(int index) throws HDRProcessorException;
+	}
+
+	private final Accumulator accumulator;
+	private final ExecutorService worker;
+	private int n_added; // synchronized on this
+	private boolean finished; // synchronized on this
+	private volatile boolean failed;
+	private volatile int n_accumulated;
+
+	public NoiseReductionSession(Accumulator accumulator) {
+		this.accumulator = accumulator;
+		this.worker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(@NonNull Runnable runnable) {
+				return new Thread(runnable, "NoiseReductionSession");
+			}
+		});
+	}
+
+	/** Schedules the next image of the burst to be accumulated.
+	 * @return The index of the image, or -1 if the session has already finished.
+	 */
+	public synchronized int add() {
+		if( finished ) {
+			if( MyDebug.LOG )
+				Log.e(TAG, "add called after finish");
+			return -1;
+		}
+		final int index = n_added++;
+		if( MyDebug.LOG )
+			Log.d(TAG, "add image: " + index);
+		worker.execute(new Runnable() {
+			@Override
+			public void run() {
+				if( failed ) {
+					if( MyDebug.LOG )
+						Log.d(TAG, "skip image after failure: " + index);
+					return;
+				}
+				long time_s = System.currentTimeMillis();
+				boolean ok;
+				try {
+					ok = accumulator.accumulate(index);
+				}
+				catch(HDRProcessorException | RuntimeException e) {
+					e.printStackTrace();
+					ok = false;
+				}
+				if( ok ) {
+					n_accumulated++;
+				}
+				else {
+					failed = true;
+					if( MyDebug.LOG )
+						Log.e(TAG, "failed to accumulate image: " + index);
+				}
+				if( MyDebug.LOG )
+					Log.d(TAG, "time to accumulate image " + index + ": " + (System.currentTimeMillis() - time_s));
+			}
+		});
+		return index;
+	}
+
+	/** Waits until all the images added so far have been accumulated, and stops the worker thread.
+	 *  No more images can be added afterwards.
+	 * @return Whether all images were accumulated successfully.
+	 */
+	public boolean finish() {
+		if( MyDebug.LOG )
+			Log.d(TAG, "finish");
+		synchronized( this ) {
+			finished = true;
+		}
+		worker.shutdown();
+		boolean done = false;
+		while( !done ) {
+			try {
+				done = worker.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			}
+			catch(InterruptedException e) {
+				e.printStackTrace();
+				if( MyDebug.LOG )
+					Log.e(TAG, "interrupted while waiting for session to finish");
+			}
+		}
+		if( MyDebug.LOG )
+			Log.d(TAG, "accumulated " + n_accumulated + " of " + getNAdded() + " images, failed? " + failed);
+		return !failed;
+	}
+
+	public synchronized int getNAdded() {
+		return n_added;
+	}
+
+	/** Returns the number of images that were accumulated successfully. Only valid after finish().
+	 */
+	public int getNAccumulated() {
+		return n_accumulated;
+	}
+}
@@ -12,6 +12,7 @@ import android.net.Uri;
 import android.util.Pair;
 import android.view.MotionEvent;
 
+import net.sourceforge.opencamera.CameraController.JpegImage;
 import net.sourceforge.opencamera.CameraController.RawImage;
 
 /** Provides communication between the Preview and the rest of the application
@@ -111,6 +112,7 @@ public interface ApplicationInterface {
 	}
 	RawPref getRawPref(); // whether to enable RAW photos
 	int getMaxRawImages(); // see documentation of CameraController.setRaw(), corresponds to max_raw_images
+	int getMaxDirectJpegImages(); // see documentation of CameraController.setDirectJpeg(), corresponds to max_direct_images; return 0 to always receive JPEGs as byte arrays
 	boolean useCamera2FakeFlash(); // whether to enable CameraController.setUseCamera2FakeFlash() for Camera2 API
 	boolean useCamera2FastBurst(); // whether to enable Camera2's captureBurst() for faster taking of expo-bracketing photos (generally should be true, but some devices have problems with captureBurst())
 	boolean usePhotoVideoRecording(); // whether to enable support for taking photos when recording video (if not supported, this won't be called)
@@ -174,9 +176,11 @@ public interface ApplicationInterface {
 	// callbacks
 	void onDrawPreview(Canvas canvas);
 	boolean onPictureTaken(byte [] data, Date current_date);
+	boolean onJpegImageTaken(JpegImage image, Date current_date); // only called if getMaxDirectJpegImages() is non-zero; the application should close the image when done
 	boolean onBurstPictureTaken(List<byte []> images, Date current_date);
 	boolean onRawPictureTaken(RawImage raw_image, Date current_date);
 	void onCaptureStarted(); // called immediately before we start capturing the picture
 	void onPictureCompleted(); // called after all picture callbacks have been called and returned
+	boolean continueNoiseReductionBurst(int n_images, int n_default); // only called for noise reduction bursts (see getBurstForNoiseReduction()): return whether to take another image after n_images, where n_default is the number of images the burst would take by default
 	void onContinuousFocusMove(boolean start); // called when focusing starts/stop in continuous picture mode (in photo mode only)
 }
@@ -10,6 +10,7 @@ import android.util.Pair;
 import android.view.MotionEvent;
 
 import net.sourceforge.opencamera.CameraController.CameraController;
+import net.sourceforge.opencamera.CameraController.JpegImage;
 import net.sourceforge.opencamera.CameraController.RawImage;
 
 /** A partial implementation of ApplicationInterface that provides "default" implementations. So
@@ -343,6 +344,11 @@ public abstract class BasicApplicationInterface implements ApplicationInterface
 		return 2;
 	}
 
+	@Override
+	public int getMaxDirectJpegImages() {
+		return 0;
+	}
+
 	@Override
 	public boolean useCamera2FakeFlash() {
 		return false;
@@ -588,6 +594,13 @@ public abstract class BasicApplicationInterface implements ApplicationInterface
 		return false;
 	}
 
+	@Override
+	public boolean onJpegImageTaken(JpegImage image, Date current_date) {
+		byte [] data = image.getBytes();
+		image.close();
+		return onPictureTaken(data, current_date);
+	}
+
 	@Override
 	public boolean onRawPictureTaken(RawImage raw_image, Date current_date) {
 		return false;
@@ -603,6 +616,11 @@ public abstract class BasicApplicationInterface implements ApplicationInterface
 
 	}
 
+	@Override
+	public boolean continueNoiseReductionBurst(int n_images, int n_default) {
+		return n_images < n_default;
+	}
+
 	@Override
 	public void onContinuousFocusMove(boolean start) {
 
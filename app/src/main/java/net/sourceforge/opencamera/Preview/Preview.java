@@ -12,6 +12,7 @@ import net.sourceforge.opencamera.CameraController.CameraControllerException;
 import net.sourceforge.opencamera.CameraController.CameraControllerManager;
 import net.sourceforge.opencamera.CameraController.CameraControllerManager1;
 import net.sourceforge.opencamera.CameraController.CameraControllerManager2;
+import net.sourceforge.opencamera.CameraController.JpegImage;
 import net.sourceforge.opencamera.Preview.ApplicationInterface.NoFreeStorageException;
 import net.sourceforge.opencamera.Preview.CameraSurface.CameraSurface;
 import net.sourceforge.opencamera.Preview.CameraSurface.MySurfaceView;
@@ -1751,6 +1752,7 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
 		else {
 			camera_controller.setRaw(false, 0);
 		}
+		camera_controller.setDirectJpeg(applicationInterface.getMaxDirectJpegImages());
 
 		if( this.supports_expo_bracketing && applicationInterface.isExpoBracketingPref() ) {
 			camera_controller.setBurstType(CameraController.BurstType.BURSTTYPE_EXPO);
@@ -5633,6 +5635,21 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
 				}
     	    }
 
+			public void onJpegImageTaken(JpegImage image) {
+				if( MyDebug.LOG )
+					Log.d(TAG, "onJpegImageTaken");
+    	    	// n.b., this is automatically run in a different thread
+				initDate();
+				if( !applicationInterface.onJpegImageTaken(image, current_date) ) {
+					if( MyDebug.LOG )
+						Log.e(TAG, "applicationInterface.onJpegImageTaken failed");
+					success = false;
+				}
+				else {
+					success = true;
+				}
+			}
+
 			public void onRawPictureTaken(RawImage raw_image) {
 				if( MyDebug.LOG )
 					Log.d(TAG, "onRawPictureTaken");
@@ -5662,6 +5679,10 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
 					Log.d(TAG, "onFrontScreenTurnOn");
 				applicationInterface.turnFrontScreenFlashOn();
 			}
+
+			public boolean continueBurst(int n_images, int n_default) {
+				return applicationInterface.continueNoiseReductionBurst(n_images, n_default);
+			}
     	};
 		CameraController.ErrorCallback errorCallback = new CameraController.ErrorCallback() {
 			public void onError() {
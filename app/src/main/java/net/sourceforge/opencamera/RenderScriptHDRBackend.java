@@ -0,0 +1,984 @@
+package net.sourceforge.opencamera;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Build;
+import android.renderscript.Allocation;
+import android.renderscript.Element;
+import android.renderscript.RSInvalidStateException;
+import android.renderscript.RenderScript;
+import android.renderscript.Script;
+import android.renderscript.ScriptIntrinsicHistogram;
+import android.renderscript.Type;
+import android.support.annotation.RequiresApi;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** Runs the HDR and noise reduction kernels with RenderScript.
+ *  Requires Android 4.4 (API level 19, Kitkat), due to using Renderscript without the support libraries.
+ *  And we now need Android 5.0 (API level 21, Lollipop) for forEach_Dot with LaunchOptions.
+ *  Using the support libraries (set via project.properties renderscript.support.mode) would bloat the APK
+ *  by around 1799KB!
+ */
+@RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+public class RenderScriptHDRBackend implements HDRBackend {
+	private static final String TAG = "RenderScriptHDRBackend";
+
+	private final Context context;
+	private RenderScript rs; // lazily created, so we don't take up resources if application isn't using HDR
+	private final AllocationPool allocation_pool = new AllocationPool(0); // reuses allocations between photos, see setMaxPoolBytes()
+
+	// we lazily create and cache scripts, and keep them between photos, as creating a script is slow
+	// (especially the first time after launch), see warmUp(); they're only freed in destroyScripts()
+	// since the scripts are shared, each method must set all of the globals that it uses
+	private ScriptC_process_hdr processHDRScript;
+	private ScriptC_process_hdr accumulateHDRScript;
+	private ScriptC_process_avg processAvgScript;
+	private ScriptC_create_mtb createMTBScript;
+	private ScriptC_align_mtb alignMTBScript;
+	private ScriptC_histogram_compute histogramScript;
+	private ScriptC_histogram_adjust histogramAdjustScript;
+	private ScriptC_avg_brighten avgBrightenScript;
+	private ScriptC_calculate_sharpness sharpnessScript;
+
+	private static class RSImage implements Image {
+		private Allocation allocation;
+		private final boolean floating_point;
+		private final AllocationPool allocation_pool;
+
+		RSImage(Allocation allocation, boolean floating_point, AllocationPool allocation_pool) {
+			this.allocation = allocation;
+			this.floating_point = floating_point;
+			this.allocation_pool = allocation_pool;
+		}
+
+		@Override
+		public int getWidth() {
+			return allocation.getType().getX();
+		}
+
+		@Override
+		public int getHeight() {
+			return allocation.getType().getY();
+		}
+
+		@Override
+		public boolean isFloatingPoint() {
+			return floating_point;
+		}
+
+		@Override
+		public void destroy() {
+			if( allocation != null ) {
+				// return to the pool, so it can be reused for the next photo
+				allocation_pool.release(allocation);
+				allocation = null;
+			}
+		}
+	}
+
+	public RenderScriptHDRBackend(Context context) {
+		this.context = context;
+	}
+
+	private static Allocation getAllocation(Image image) {
+		return ((RSImage)image).allocation;
+	}
+
+	/** Whether the image was created by createHalfPrecisionImage().
+	 */
+	private static boolean isHalfPrecision(Image image) {
+		return getAllocation(image).getElement().getDataType() == Element.DataType.UNSIGNED_16;
+	}
+
+	private void initRenderscript() {
+		if( MyDebug.LOG )
+			Log.d(TAG, "initRenderscript");
+		if( rs == null ) {
+			// initialise renderscript
+			this.rs = RenderScript.create(context);
+			if( MyDebug.LOG )
+				Log.d(TAG, "create renderscript object");
+		}
+	}
+
+	/** Returns an allocation from the pool if possible, otherwise creates a new one. Should be
+	 *  returned to the pool with allocation_pool.release() (or via RSImage.destroy()).
+	 * @param height The height, or 0 for a 1D allocation of width elements.
+	 */
+	private Allocation createAllocation(Element element, int width, int height) {
+		Allocation allocation = allocation_pool.acquire(element, width, height);
+		if( allocation == null ) {
+			if( height == 0 )
+				allocation = Allocation.createSized(rs, element, width);
+			else
+				allocation = Allocation.createTyped(rs, Type.createXY(rs, element, width, height));
+		}
+		return allocation;
+	}
+
+	@Override
+	public Image createImage(Bitmap bitmap) {
+		initRenderscript();
+		// n.b., we don't use Allocation.createFromBitmap(), as that may share memory with the bitmap, and
+		// so couldn't be pooled once the bitmap is reused
+		Allocation allocation = createAllocation(Element.RGBA_8888(rs), bitmap.getWidth(), bitmap.getHeight());
+		allocation.copyFrom(bitmap);
+		return new RSImage(allocation, false, allocation_pool);
+	}
+
+	@Override
+	public Image createImage(Bitmap bitmap, int start_x, int start_y, int width, int height) {
+		initRenderscript();
+		// n.b., createBitmap() may return the same bitmap if the region is the whole bitmap
+		Bitmap region = Bitmap.createBitmap(bitmap, start_x, start_y, width, height);
+		Allocation allocation = createAllocation(Element.RGBA_8888(rs), width, height);
+		allocation.copyFrom(region);
+		if( region != bitmap )
+			region.recycle();
+		return new RSImage(allocation, false, allocation_pool);
+	}
+
+	@Override
+	public Image createImage(int width, int height) {
+		initRenderscript();
+		return new RSImage(createAllocation(Element.RGBA_8888(rs), width, height), false, allocation_pool);
+	}
+
+	@Override
+	public Image createFloatImage(int width, int height) {
+		initRenderscript();
+		return new RSImage(createAllocation(Element.F32_3(rs), width, height), true, allocation_pool);
+	}
+
+	@Override
+	public Image createHalfPrecisionImage(int width, int height) {
+		initRenderscript();
+		// U16_3 allocations are padded to 8 bytes per pixel, rather than 16 for F32_3
+		return new RSImage(createAllocation(Element.U16_3(rs), width, height), true, allocation_pool);
+	}
+
+	@Override
+	public Image cropImage(Image image, int start_x, int start_y, int width, int height) {
+		Allocation allocation_in = getAllocation(image);
+		Allocation allocation = createAllocation(allocation_in.getElement(), width, height);
+		allocation.copy2DRangeFrom(0, 0, width, height, allocation_in, start_x, start_y);
+		return new RSImage(allocation, image.isFloatingPoint(), allocation_pool);
+	}
+
+	@Override
+	public void copyTo(Image image, Bitmap bitmap) {
+		getAllocation(image).copyTo(bitmap);
+	}
+
+	@Override
+	public void copyTo(Image image, short [] pixels) {
+		// U16_3 allocations are padded to 4 values per pixel
+		int n_pixels = image.getWidth()*image.getHeight();
+		short [] padded = new short[4*n_pixels];
+		getAllocation(image).copyTo(padded);
+		for(int i=0;i<n_pixels;i++) {
+			pixels[3*i] = padded[4*i];
+			pixels[3*i+1] = padded[4*i+1];
+			pixels[3*i+2] = padded[4*i+2];
+		}
+	}
+
+	@Override
+	public void copyFrom(Image image, short [] pixels) {
+		int n_pixels = image.getWidth()*image.getHeight();
+		short [] padded = new short[4*n_pixels];
+		for(int i=0;i<n_pixels;i++) {
+			padded[4*i] = pixels[3*i];
+			padded[4*i+1] = pixels[3*i+1];
+			padded[4*i+2] = pixels[3*i+2];
+		}
+		getAllocation(image).copyFrom(padded);
+	}
+
+	@Override
+	public void copyTo(Image image, int start_x, int start_y, int width, int height, Bitmap bitmap, int dst_x, int dst_y) {
+		Bitmap temp = Bitmap.createBitmap(image.getWidth(), image.getHeight(), Bitmap.Config.ARGB_8888);
+		getAllocation(image).copyTo(temp);
+		int [] pixels = new int[width*height];
+		temp.getPixels(pixels, 0, width, start_x, start_y, width, height);
+		temp.recycle();
+		bitmap.setPixels(pixels, 0, width, dst_x, dst_y, width, height);
+	}
+
+	private Image createMTBImage(Image image, boolean use_mtb, int median_value, int start_x, int start_y, int width, int height) {
+		// create RenderScript
+		if( createMTBScript == null ) {
+			createMTBScript = new ScriptC_create_mtb(rs);
+		}
+		//ScriptC_create_mtb createMTBScript = new ScriptC_create_mtb(rs);
+
+		Allocation mtb_allocation = createAllocation(Element.U8(rs), width, height);
+
+		// set parameters
+		if( use_mtb )
+			createMTBScript.set_median_value(median_value);
+		createMTBScript.set_start_x(start_x);
+		createMTBScript.set_start_y(start_y);
+		createMTBScript.set_out_bitmap(mtb_allocation);
+
+		if( MyDebug.LOG )
+			Log.d(TAG, "call createMTBScript");
+		Script.LaunchOptions launch_options = new Script.LaunchOptions();
+		launch_options.setX(start_x, start_x+width);
+		launch_options.setY(start_y, start_y+height);
+		if( use_mtb )
+			createMTBScript.forEach_create_mtb(getAllocation(image), launch_options);
+		else {
+			if( isHalfPrecision(image) )
+				createMTBScript.forEach_create_greyscale_h(getAllocation(image), launch_options);
+			else if( image.isFloatingPoint() )
+				createMTBScript.forEach_create_greyscale_f(getAllocation(image), launch_options);
+			else
+				createMTBScript.forEach_create_greyscale(getAllocation(image), launch_options);
+		}
+		return new RSImage(mtb_allocation, false, allocation_pool);
+	}
+
+	@Override
+	public Image createMTB(Image image, int median_value, int start_x, int start_y, int width, int height) {
+		return createMTBImage(image, true, median_value, start_x, start_y, width, height);
+	}
+
+	@Override
+	public Image createGreyscale(Image image, int start_x, int start_y, int width, int height) {
+		return createMTBImage(image, false, 0, start_x, start_y, width, height);
+	}
+
+	@Override
+	public void alignMTB(int [] errors, Image base, Image image, boolean use_mtb, int off_x, int off_y, int step_size, int stop_x, int stop_y) {
+		// create RenderScript
+		if( alignMTBScript == null ) {
+			alignMTBScript = new ScriptC_align_mtb(rs);
+		}
+		//ScriptC_align_mtb alignMTBScript = new ScriptC_align_mtb(rs);
+
+		// set parameters
+		alignMTBScript.set_bitmap0(getAllocation(base));
+		alignMTBScript.set_bitmap1(getAllocation(image));
+		alignMTBScript.set_off_x(off_x);
+		alignMTBScript.set_off_y(off_y);
+		alignMTBScript.set_step_size(step_size);
+
+		Allocation errorsAllocation = createAllocation(Element.I32(rs), 9, 0);
+		alignMTBScript.bind_errors(errorsAllocation);
+		alignMTBScript.invoke_init_errors();
+
+		// see note inside align_mtb.rs/align_mtb() for why we sample over a subset of the image
+		Script.LaunchOptions launch_options = new Script.LaunchOptions();
+		//launch_options.setX((int)(stop_x*0.25), (int)(stop_x*0.75));
+		//launch_options.setY((int)(stop_y*0.25), (int)(stop_y*0.75));
+		launch_options.setX(0, stop_x);
+		launch_options.setY(0, stop_y);
+		if( use_mtb )
+			alignMTBScript.forEach_align_mtb(getAllocation(base), launch_options);
+		else
+			alignMTBScript.forEach_align(getAllocation(base), launch_options);
+
+		errorsAllocation.copyTo(errors);
+		allocation_pool.release(errorsAllocation);
+	}
+
+	/** Returns a 1D allocation holding the table of lut. This should be returned to the pool with
+	 *  allocation_pool.release() once the kernel that uses it has run.
+	 */
+	private Allocation createLUTAllocation(ToneCurveLUT lut) {
+		float [] table = lut.getTable();
+		Allocation allocation = createAllocation(Element.F32(rs), table.length, 0);
+		allocation.copyFrom(table);
+		return allocation;
+	}
+
+	/** Sets the globals for tonemapping, see tonemap() in process_hdr.rs.
+	 * @return The allocation for the lookup table, which should be returned to the pool once the
+	 *         kernel has run.
+	 */
+	private Allocation setTonemapping(ScriptC_process_hdr script, ToneCurveLUT tonemap) {
+		// set tonemapping algorithm
+		switch( tonemap.getTonemappingAlgorithm() ) {
+			case TONEMAPALGORITHM_CLAMP:
+				script.set_tonemap_algorithm( script.get_tonemap_algorithm_clamp_c() );
+				break;
+			case TONEMAPALGORITHM_EXPONENTIAL:
+				script.set_tonemap_algorithm( script.get_tonemap_algorithm_exponential_c() );
+				break;
+			case TONEMAPALGORITHM_REINHARD:
+				script.set_tonemap_algorithm( script.get_tonemap_algorithm_reinhard_c() );
+				break;
+			case TONEMAPALGORITHM_FILMIC:
+				script.set_tonemap_algorithm( script.get_tonemap_algorithm_filmic_c() );
+				break;
+			case TONEMAPALGORITHM_ACES:
+				script.set_tonemap_algorithm( script.get_tonemap_algorithm_aces_c() );
+				break;
+		}
+		// the parameters are still needed for values outside of the lookup table
+		script.set_tonemap_scale(tonemap.getTonemapScale());
+		script.set_linear_scale(tonemap.getLinearScale());
+		script.set_W(tonemap.getW());
+
+		Allocation lut_allocation = createLUTAllocation(tonemap);
+		script.set_tonemap_lut(lut_allocation);
+		script.set_tonemap_lut_scale(tonemap.getIndexScale());
+		script.set_tonemap_lut_size(tonemap.getTableSize());
+		return lut_allocation;
+	}
+
+	/** Sets the globals for the motion mask, see motion_weight() in process_hdr.rs.
+	 * @return The allocation for the mask, which should be returned to the pool once the kernel has
+	 *         run, or null if motion_mask is null or has no moving tiles.
+	 */
+	private Allocation setMotionMask(ScriptC_process_hdr script, MotionMask motion_mask) {
+		if( motion_mask == null || !motion_mask.hasMotion() ) {
+			script.set_use_motion_mask(0);
+			return null;
+		}
+		Allocation mask_allocation = createAllocation(Element.U8(rs), motion_mask.getWidth(), motion_mask.getHeight());
+		mask_allocation.copyFrom(motion_mask.getMask());
+		script.set_motion_mask(mask_allocation);
+		script.set_use_motion_mask(1);
+		script.set_motion_mask_tile_size(MotionMask.tile_size_c);
+		script.set_motion_mask_origin_x(motion_mask.getOriginX());
+		script.set_motion_mask_origin_y(motion_mask.getOriginY());
+		return mask_allocation;
+	}
+
+	/** Returns the allocation from setMotionMask() to the pool.
+	 */
+	private void releaseMotionMask(ScriptC_process_hdr script, Allocation mask_allocation) {
+		if( mask_allocation != null ) {
+			script.set_motion_mask(null);
+			script.set_use_motion_mask(0);
+			allocation_pool.release(mask_allocation);
+		}
+	}
+
+	@Override
+	public void processHDR(Image [] images, int base_bitmap, int [] offsets_x, int [] offsets_y, float [] parameter_A, float [] parameter_B, MotionMask motion_mask, ToneCurveLUT tonemap, Image output) {
+		int n_bitmaps = images.length;
+		//final boolean use_hdr_n = true; // test always using hdr_n
+		final boolean use_hdr_n = n_bitmaps != 3;
+
+		// create RenderScript
+		if( processHDRScript == null ) {
+			processHDRScript = new ScriptC_process_hdr(rs);
+		}
+		//ScriptC_process_hdr processHDRScript = new ScriptC_process_hdr(rs);
+
+		// set allocations
+		processHDRScript.set_bitmap0(getAllocation(images[0]));
+		if( n_bitmaps > 2 ) {
+			processHDRScript.set_bitmap2(getAllocation(images[2]));
+		}
+
+		// set offsets
+		processHDRScript.set_offset_x0(offsets_x[0]);
+		processHDRScript.set_offset_y0(offsets_y[0]);
+		// no offset for middle image
+		if( n_bitmaps > 2 ) {
+			processHDRScript.set_offset_x2(offsets_x[2]);
+			processHDRScript.set_offset_y2(offsets_y[2]);
+		}
+
+		// set response functions
+		processHDRScript.set_parameter_A0(parameter_A[0]);
+		processHDRScript.set_parameter_B0(parameter_B[0]);
+		// no response function for middle image
+		if( n_bitmaps > 2 ) {
+			processHDRScript.set_parameter_A2(parameter_A[2]);
+			processHDRScript.set_parameter_B2(parameter_B[2]);
+		}
+
+		if( use_hdr_n ) {
+			// now need to set values for image 1
+			processHDRScript.set_bitmap1(getAllocation(images[1]));
+			processHDRScript.set_offset_x1(offsets_x[1]);
+			processHDRScript.set_offset_y1(offsets_y[1]);
+			processHDRScript.set_parameter_A1(parameter_A[1]);
+			processHDRScript.set_parameter_B1(parameter_B[1]);
+		}
+
+		if( n_bitmaps > 3 ) {
+			processHDRScript.set_bitmap3(getAllocation(images[3]));
+			processHDRScript.set_offset_x3(offsets_x[3]);
+			processHDRScript.set_offset_y3(offsets_y[3]);
+			processHDRScript.set_parameter_A3(parameter_A[3]);
+			processHDRScript.set_parameter_B3(parameter_B[3]);
+
+			if( n_bitmaps > 4 ) {
+				processHDRScript.set_bitmap4(getAllocation(images[4]));
+				processHDRScript.set_offset_x4(offsets_x[4]);
+				processHDRScript.set_offset_y4(offsets_y[4]);
+				processHDRScript.set_parameter_A4(parameter_A[4]);
+				processHDRScript.set_parameter_B4(parameter_B[4]);
+
+				if( n_bitmaps > 5 ) {
+					processHDRScript.set_bitmap5(getAllocation(images[5]));
+					processHDRScript.set_offset_x5(offsets_x[5]);
+					processHDRScript.set_offset_y5(offsets_y[5]);
+					processHDRScript.set_parameter_A5(parameter_A[5]);
+					processHDRScript.set_parameter_B5(parameter_B[5]);
+
+					if( n_bitmaps > 6 ) {
+						processHDRScript.set_bitmap6(getAllocation(images[6]));
+						processHDRScript.set_offset_x6(offsets_x[6]);
+						processHDRScript.set_offset_y6(offsets_y[6]);
+						processHDRScript.set_parameter_A6(parameter_A[6]);
+						processHDRScript.set_parameter_B6(parameter_B[6]);
+					}
+				}
+			}
+		}
+
+		Allocation lut_allocation = setTonemapping(processHDRScript, tonemap);
+		Allocation mask_allocation = setMotionMask(processHDRScript, motion_mask);
+
+		if( MyDebug.LOG )
+			Log.d(TAG, "call processHDRScript");
+		if( use_hdr_n ) {
+			processHDRScript.set_n_bitmaps_g(n_bitmaps);
+			processHDRScript.forEach_hdr_n(getAllocation(images[base_bitmap]), getAllocation(output));
+		}
+		else {
+			processHDRScript.forEach_hdr(getAllocation(images[base_bitmap]), getAllocation(output));
+		}
+		processHDRScript.set_tonemap_lut(null);
+		allocation_pool.release(lut_allocation);
+		releaseMotionMask(processHDRScript, mask_allocation);
+	}
+
+	private ScriptC_process_hdr getAccumulateHDRScript() {
+		if( accumulateHDRScript == null ) {
+			accumulateHDRScript = new ScriptC_process_hdr(rs);
+		}
+		return accumulateHDRScript;
+	}
+
+	@Override
+	public Image createHDRAccumulator(int width, int height) {
+		initRenderscript();
+		Allocation allocation = createAllocation(Element.F32_4(rs), width, height);
+		getAccumulateHDRScript().forEach_clear_accumulator(allocation);
+		return new RSImage(allocation, false, allocation_pool);
+	}
+
+	@Override
+	public void accumulateHDR(Image accumulator, Image image, int offset_x, int offset_y, float parameter_A, float parameter_B, Image base, float base_A, float base_B, int exposure, boolean extreme, MotionMask motion_mask) {
+		ScriptC_process_hdr script = getAccumulateHDRScript();
+		script.set_accumulator(getAllocation(accumulator));
+		script.set_bitmap_new(getAllocation(image));
+		script.set_offset_x_new(offset_x);
+		script.set_offset_y_new(offset_y);
+		script.set_parameter_A_new(parameter_A);
+		script.set_parameter_B_new(parameter_B);
+		script.set_parameter_A_base(base_A);
+		script.set_parameter_B_base(base_B);
+		switch( exposure ) {
+			case EXPOSURE_DARKER:
+				script.set_exposure_g(script.get_exposure_darker_c());
+				break;
+			case EXPOSURE_BRIGHTER:
+				script.set_exposure_g(script.get_exposure_brighter_c());
+				break;
+			case EXPOSURE_CENTRAL:
+			default:
+				script.set_exposure_g(script.get_exposure_central_c());
+				break;
+		}
+		script.set_extreme_g(extreme ? 1 : 0);
+		Allocation mask_allocation = setMotionMask(script, motion_mask);
+
+		if( MyDebug.LOG )
+			Log.d(TAG, "call accumulateHDRScript");
+		script.forEach_accumulate_hdr(getAllocation(base));
+		releaseMotionMask(script, mask_allocation);
+	}
+
+	@Override
+	public void tonemapHDR(Image accumulator, Image output, ToneCurveLUT tonemap) {
+		ScriptC_process_hdr script = getAccumulateHDRScript();
+		Allocation lut_allocation = setTonemapping(script, tonemap);
+		if( MyDebug.LOG )
+			Log.d(TAG, "call tonemap_accumulated");
+		script.forEach_tonemap_accumulated(getAllocation(accumulator), getAllocation(output));
+		script.set_tonemap_lut(null);
+		allocation_pool.release(lut_allocation);
+	}
+
+	@Override
+	public int [] computeHistogram(Image image, boolean avg) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "computeHistogram");
+		Allocation allocation_in = getAllocation(image);
+		boolean floating_point = image.isFloatingPoint();
+		boolean half_precision = isHalfPrecision(image);
+		Allocation histogramAllocation = createAllocation(Element.I32(rs), 256, 0);
+		//final boolean use_custom_histogram = false;
+		final boolean use_custom_histogram = true;
+		if( use_custom_histogram ) {
+			if( histogramScript == null ) {
+				if( MyDebug.LOG )
+					Log.d(TAG, "create histogramScript");
+				histogramScript = new ScriptC_histogram_compute(rs);
+			}
+			if( MyDebug.LOG )
+				Log.d(TAG, "bind histogram allocation");
+			histogramScript.bind_histogram(histogramAllocation);
+			histogramScript.invoke_init_histogram();
+			if( MyDebug.LOG )
+				Log.d(TAG, "call histogramScript");
+			if( avg ) {
+				if( half_precision )
+					histogramScript.forEach_histogram_compute_avg_h(allocation_in);
+				else if( floating_point )
+					histogramScript.forEach_histogram_compute_avg_f(allocation_in);
+				else
+					histogramScript.forEach_histogram_compute_avg(allocation_in);
+			}
+			else {
+				if( half_precision )
+					histogramScript.forEach_histogram_compute_h(allocation_in);
+				else if( floating_point )
+					histogramScript.forEach_histogram_compute_f(allocation_in);
+				else
+					histogramScript.forEach_histogram_compute(allocation_in);
+			}
+		}
+		else {
+			ScriptIntrinsicHistogram histogramScriptIntrinsic = ScriptIntrinsicHistogram.create(rs, Element.U8_4(rs));
+			histogramScriptIntrinsic.setOutput(histogramAllocation);
+			if( MyDebug.LOG )
+				Log.d(TAG, "call histogramScriptIntrinsic");
+			histogramScriptIntrinsic.forEach_Dot(allocation_in); // use forEach_dot(); using forEach would simply compute a histogram for red values!
+		}
+
+		int [] histogram = new int[256];
+		histogramAllocation.copyTo(histogram);
+		allocation_pool.release(histogramAllocation);
+		return histogram;
+	}
+
+	@Override
+	public int [] computeHistogram(Image image, int start_x, int start_y, int stop_x, int stop_y) {
+		if( histogramScript == null ) {
+			if( MyDebug.LOG )
+				Log.d(TAG, "create histogramScript");
+			histogramScript = new ScriptC_histogram_compute(rs);
+		}
+		Allocation histogramAllocation = createAllocation(Element.I32(rs), 256, 0);
+		histogramScript.bind_histogram(histogramAllocation);
+
+		Script.LaunchOptions launch_options = new Script.LaunchOptions();
+		launch_options.setX(start_x, stop_x);
+		launch_options.setY(start_y, stop_y);
+
+		histogramScript.invoke_init_histogram();
+		histogramScript.forEach_histogram_compute(getAllocation(image), launch_options);
+
+		int [] histogram = new int[256];
+		histogramAllocation.copyTo(histogram);
+		allocation_pool.release(histogramAllocation);
+		return histogram;
+	}
+
+	@Override
+	public int [] computeTileHistograms(Image image, int [] tile_x, int [] tile_y, int n_tiles) {
+		if( histogramScript == null ) {
+			if( MyDebug.LOG )
+				Log.d(TAG, "create histogramScript");
+			histogramScript = new ScriptC_histogram_compute(rs);
+		}
+		int [] histograms = new int[n_tiles*n_tiles*256];
+		Allocation histogramsAllocation = createAllocation(Element.I32(rs), histograms.length, 0);
+		histogramsAllocation.copyFrom(histograms); // clear to 0
+		Allocation tile_xAllocation = createAllocation(Element.I32(rs), tile_x.length, 0);
+		tile_xAllocation.copyFrom(tile_x);
+		Allocation tile_yAllocation = createAllocation(Element.I32(rs), tile_y.length, 0);
+		tile_yAllocation.copyFrom(tile_y);
+		histogramScript.bind_tile_histograms(histogramsAllocation);
+		histogramScript.bind_tile_x(tile_xAllocation);
+		histogramScript.bind_tile_y(tile_yAllocation);
+		histogramScript.set_n_tiles(n_tiles);
+
+		if( MyDebug.LOG )
+			Log.d(TAG, "call histogram_compute_tiles");
+		histogramScript.forEach_histogram_compute_tiles(getAllocation(image));
+
+		histogramsAllocation.copyTo(histograms);
+		histogramScript.bind_tile_histograms(null);
+		histogramScript.bind_tile_x(null);
+		histogramScript.bind_tile_y(null);
+		allocation_pool.release(histogramsAllocation);
+		allocation_pool.release(tile_xAllocation);
+		allocation_pool.release(tile_yAllocation);
+		return histograms;
+	}
+
+	@Override
+	public void adjustHistogram(Image in, Image out, byte [] equal_values, float hdr_alpha, int n_tiles) {
+		adjustHistogram(in, out, equal_values, hdr_alpha, n_tiles, 0, 0, in.getWidth(), in.getHeight());
+	}
+
+	@Override
+	public void adjustHistogram(Image in, Image out, byte [] equal_values, float hdr_alpha, int n_tiles, int origin_x, int origin_y, int full_width, int full_height) {
+		Allocation equal_valuesAllocation = createAllocation(Element.U8(rs), n_tiles*n_tiles*256, 0);
+		equal_valuesAllocation.copyFrom(equal_values);
+		if( histogramAdjustScript == null ) {
+			histogramAdjustScript = new ScriptC_histogram_adjust(rs);
+		}
+		//ScriptC_histogram_adjust histogramAdjustScript = new ScriptC_histogram_adjust(rs);
+		histogramAdjustScript.set_equal_values(equal_valuesAllocation);
+		histogramAdjustScript.set_hdr_alpha(hdr_alpha);
+		histogramAdjustScript.set_n_tiles(n_tiles);
+		histogramAdjustScript.set_origin_x(origin_x);
+		histogramAdjustScript.set_origin_y(origin_y);
+		histogramAdjustScript.set_width(full_width);
+		histogramAdjustScript.set_height(full_height);
+
+		if( MyDebug.LOG )
+			Log.d(TAG, "call histogramAdjustScript");
+		histogramAdjustScript.forEach_histogram_adjust(getAllocation(in), getAllocation(out));
+
+		histogramAdjustScript.set_equal_values(null);
+		allocation_pool.release(equal_valuesAllocation);
+	}
+
+	@Override
+	public AvgStats processAvg(Image avg, Image new_image, int offset_x, int offset_y, TileAlignment tile_alignment, float avg_factor, float wiener_C, float wiener_C_cutoff, Image out) {
+		return processAvg(avg, new_image, offset_x, offset_y, tile_alignment, avg_factor, wiener_C, wiener_C_cutoff, out, 0, 0, 0, 0);
+	}
+
+	@Override
+	public AvgStats processAvg(Image avg, Image new_image, int offset_x, int offset_y, TileAlignment tile_alignment, float avg_factor, float wiener_C, float wiener_C_cutoff, Image out, int origin_x, int origin_y, int new_origin_x, int new_origin_y) {
+		// create RenderScript
+		if( processAvgScript == null ) {
+			processAvgScript = new ScriptC_process_avg(rs);
+		}
+		//ScriptC_process_avg processAvgScript = new ScriptC_process_avg(rs);
+
+		// set allocations
+		processAvgScript.set_bitmap_new(getAllocation(new_image));
+
+		// set offsets
+		processAvgScript.set_offset_x_new(offset_x);
+		processAvgScript.set_offset_y_new(offset_y);
+		processAvgScript.set_origin_x(origin_x);
+		processAvgScript.set_origin_y(origin_y);
+		processAvgScript.set_new_origin_x(new_origin_x);
+		processAvgScript.set_new_origin_y(new_origin_y);
+
+		// set globals
+		processAvgScript.set_avg_factor(avg_factor);
+		processAvgScript.set_wiener_C(wiener_C);
+		processAvgScript.set_wiener_C_cutoff(wiener_C_cutoff);
+
+		Allocation tile_offsets_xAllocation = null;
+		Allocation tile_offsets_yAllocation = null;
+		if( tile_alignment != null ) {
+			tile_offsets_xAllocation = createAllocation(Element.I32(rs), tile_alignment.getWidth(), tile_alignment.getHeight());
+			tile_offsets_xAllocation.copyFrom(tile_alignment.getOffsetsX());
+			tile_offsets_yAllocation = createAllocation(Element.I32(rs), tile_alignment.getWidth(), tile_alignment.getHeight());
+			tile_offsets_yAllocation.copyFrom(tile_alignment.getOffsetsY());
+			processAvgScript.set_tile_offsets_x(tile_offsets_xAllocation);
+			processAvgScript.set_tile_offsets_y(tile_offsets_yAllocation);
+			processAvgScript.set_tile_size(TileAlignment.tile_size_c);
+		}
+		processAvgScript.set_use_tile_offsets(tile_alignment != null ? 1 : 0);
+
+		int height = avg.getHeight();
+		int [] merged_count = new int[height];
+		Allocation merged_countAllocation = createAllocation(Element.I32(rs), height, 0);
+		merged_countAllocation.copyFrom(merged_count); // clear to 0
+		processAvgScript.bind_merged_count(merged_countAllocation);
+		int [] diff_sum = new int[height];
+		Allocation diff_sumAllocation = createAllocation(Element.I32(rs), height, 0);
+		diff_sumAllocation.copyFrom(diff_sum); // clear to 0
+		processAvgScript.bind_diff_sum(diff_sumAllocation);
+
+		if( MyDebug.LOG )
+			Log.d(TAG, "call processAvgScript");
+		if( isHalfPrecision(out) ) {
+			if( isHalfPrecision(avg) )
+				processAvgScript.forEach_avg_h(getAllocation(avg), getAllocation(out));
+			else if( !avg.isFloatingPoint() )
+				processAvgScript.forEach_avg_to_h(getAllocation(avg), getAllocation(out));
+			else
+				throw new RuntimeException("can't average a full precision image into a half precision one");
+		}
+		else if( isHalfPrecision(avg) )
+			throw new RuntimeException("can't average a half precision image into a full precision one");
+		else if( avg.isFloatingPoint() )
+			processAvgScript.forEach_avg_f(getAllocation(avg), getAllocation(out));
+		else
+			processAvgScript.forEach_avg(getAllocation(avg), getAllocation(out));
+
+		merged_countAllocation.copyTo(merged_count);
+		processAvgScript.bind_merged_count(null);
+		allocation_pool.release(merged_countAllocation);
+		diff_sumAllocation.copyTo(diff_sum);
+		processAvgScript.bind_diff_sum(null);
+		allocation_pool.release(diff_sumAllocation);
+		if( tile_alignment != null ) {
+			processAvgScript.set_tile_offsets_x(null);
+			processAvgScript.set_tile_offsets_y(null);
+			processAvgScript.set_use_tile_offsets(0);
+			allocation_pool.release(tile_offsets_xAllocation);
+			allocation_pool.release(tile_offsets_yAllocation);
+		}
+		long total = 0;
+		for(int count : merged_count) {
+			total += count;
+		}
+		long total_diff = 0;
+		for(int sum : diff_sum) {
+			total_diff += sum;
+		}
+		return new AvgStats(total / (float)(avg.getWidth()*height), total == 0 ? 0.0f : total_diff / (float)total);
+	}
+
+	@Override
+	public void processAvgMulti(Image [] images) {
+		if( processAvgScript == null ) {
+			processAvgScript = new ScriptC_process_avg(rs);
+		}
+		//ScriptC_process_avg processAvgScript = new ScriptC_process_avg(rs);
+
+		// set allocations
+		processAvgScript.set_bitmap1(getAllocation(images[1]));
+		processAvgScript.set_bitmap2(getAllocation(images[2]));
+		processAvgScript.set_bitmap3(getAllocation(images[3]));
+		processAvgScript.set_bitmap4(getAllocation(images[4]));
+		processAvgScript.set_bitmap5(getAllocation(images[5]));
+		processAvgScript.set_bitmap6(getAllocation(images[6]));
+		processAvgScript.set_bitmap7(getAllocation(images[7]));
+
+		if( MyDebug.LOG )
+			Log.d(TAG, "call processAvgScript");
+		processAvgScript.forEach_avg_multi(getAllocation(images[0]), getAllocation(images[0]));
+	}
+
+	@Override
+	public void avgBrighten(Image input, Image output, float black_level, float median_filter_strength, ToneCurveLUT brighten) {
+		if( avgBrightenScript == null ) {
+			avgBrightenScript = new ScriptC_avg_brighten(rs);
+		}
+		//ScriptC_avg_brighten avgBrightenScript = new ScriptC_avg_brighten(rs);
+		avgBrightenScript.set_bitmap(getAllocation(input));
+		avgBrightenScript.invoke_setBlackLevel(black_level);
+		avgBrightenScript.set_median_filter_strength(median_filter_strength);
+		Allocation lut_allocation = createLUTAllocation(brighten);
+		avgBrightenScript.set_brighten_lut(lut_allocation);
+		avgBrightenScript.set_brighten_lut_scale(brighten.getIndexScale());
+		avgBrightenScript.set_brighten_lut_size(brighten.getTableSize());
+
+		if( isHalfPrecision(input) ) {
+			avgBrightenScript.set_half_input(1);
+			avgBrightenScript.forEach_avg_brighten_h(getAllocation(input), getAllocation(output));
+			avgBrightenScript.set_half_input(0);
+		}
+		else
+			avgBrightenScript.forEach_avg_brighten_f(getAllocation(input), getAllocation(output));
+		avgBrightenScript.set_brighten_lut(null);
+		allocation_pool.release(lut_allocation);
+	}
+
+	/**
+	 * Computes a value for how sharp the image is perceived to be. The higher the value, the
+	 * sharper the image.
+	 * @param image The input image.
+	 */
+	float computeSharpness(Image image) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "computeSharpness");
+		Allocation allocation_in = getAllocation(image);
+		int width = image.getWidth();
+		Allocation sumsAllocation = createAllocation(Element.I32(rs), width, 0);
+		if( sharpnessScript == null ) {
+			sharpnessScript = new ScriptC_calculate_sharpness(rs);
+		}
+		//ScriptC_calculate_sharpness sharpnessScript = new ScriptC_calculate_sharpness(rs);
+		if( MyDebug.LOG )
+			Log.d(TAG, "bind sums allocation");
+		sharpnessScript.bind_sums(sumsAllocation);
+		sharpnessScript.set_bitmap(allocation_in);
+		sharpnessScript.set_width(width);
+		sharpnessScript.invoke_init_sums();
+		if( MyDebug.LOG )
+			Log.d(TAG, "call sharpnessScript");
+		sharpnessScript.forEach_calculate_sharpness(allocation_in);
+
+		int [] sums = new int[width];
+		sumsAllocation.copyTo(sums);
+		allocation_pool.release(sumsAllocation);
+		float total_sum = 0.0f;
+		for(int i=0;i<width;i++) {
+			/*if( MyDebug.LOG )
+				Log.d(TAG, "sums[" + i + "] = " + sums[i]);*/
+			total_sum += (float)sums[i];
+		}
+		if( MyDebug.LOG )
+			Log.d(TAG, "total_sum: " + total_sum);
+		return total_sum;
+	}
+
+	@Override
+	public boolean isThreadSafe() {
+		// the cached scripts hold their globals between calls
+		return false;
+	}
+
+	@Override
+	public void setMaxPoolBytes(long max_bytes) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "setMaxPoolBytes: " + max_bytes);
+		allocation_pool.setMaxBytes(max_bytes);
+	}
+
+	@Override
+	public long getPoolBytes() {
+		return allocation_pool.getBytes();
+	}
+
+	@Override
+	public void warmUp(int width, int height, int n_images, int n_float_images, boolean half_precision) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "warmUp: " + width + "x" + height + " n_images " + n_images + " n_float_images " + n_float_images + " half_precision " + half_precision);
+		long time_s = System.currentTimeMillis();
+		initRenderscript();
+		if( processHDRScript == null )
+			processHDRScript = new ScriptC_process_hdr(rs);
+		getAccumulateHDRScript();
+		if( processAvgScript == null )
+			processAvgScript = new ScriptC_process_avg(rs);
+		if( createMTBScript == null )
+			createMTBScript = new ScriptC_create_mtb(rs);
+		if( alignMTBScript == null )
+			alignMTBScript = new ScriptC_align_mtb(rs);
+		if( histogramScript == null )
+			histogramScript = new ScriptC_histogram_compute(rs);
+		if( histogramAdjustScript == null )
+			histogramAdjustScript = new ScriptC_histogram_adjust(rs);
+		if( avgBrightenScript == null )
+			avgBrightenScript = new ScriptC_avg_brighten(rs);
+		if( sharpnessScript == null )
+			sharpnessScript = new ScriptC_calculate_sharpness(rs);
+		if( MyDebug.LOG )
+			Log.d(TAG, "### time after creating scripts: " + (System.currentTimeMillis() - time_s));
+
+		// fill the pool with the allocations that a photo will need, taking any that are already
+		// there first, so that we don't create more than needed
+		List<Allocation> allocations = new ArrayList<>();
+		for(int i=0;i<n_images;i++) {
+			allocations.add(createAllocation(Element.RGBA_8888(rs), width, height));
+		}
+		for(int i=0;i<n_float_images;i++) {
+			allocations.add(createAllocation(half_precision ? Element.U16_3(rs) : Element.F32_3(rs), width, height));
+		}
+		allocations.add(createAllocation(Element.I32(rs), 256, 0));
+		for(Allocation allocation : allocations) {
+			allocation_pool.release(allocation);
+		}
+		if( MyDebug.LOG )
+			Log.d(TAG, "### time after creating allocations: " + (System.currentTimeMillis() - time_s));
+	}
+
+	@Override
+	public void trimMemory(int level) {
+		// n.b., only the pool is trimmed, as this may be called while a photo is being processed; the
+		// scripts themselves are small, and are kept until onDestroy()
+		allocation_pool.trimMemory(level);
+	}
+
+	@Override
+	public void freeScripts() {
+		if( MyDebug.LOG )
+			Log.d(TAG, "freeScripts");
+		// the scripts are kept for the next photo, but we mustn't keep references to this photo's
+		// allocations, otherwise they wouldn't be freed if destroyed rather than returned to the pool
+		if( processHDRScript != null ) {
+			processHDRScript.set_bitmap0(null);
+			processHDRScript.set_bitmap1(null);
+			processHDRScript.set_bitmap2(null);
+			processHDRScript.set_bitmap3(null);
+			processHDRScript.set_bitmap4(null);
+			processHDRScript.set_bitmap5(null);
+			processHDRScript.set_bitmap6(null);
+		}
+		if( accumulateHDRScript != null ) {
+			accumulateHDRScript.set_accumulator(null);
+			accumulateHDRScript.set_bitmap_new(null);
+		}
+		if( processAvgScript != null ) {
+			processAvgScript.set_bitmap_new(null);
+			processAvgScript.set_bitmap1(null);
+			processAvgScript.set_bitmap2(null);
+			processAvgScript.set_bitmap3(null);
+			processAvgScript.set_bitmap4(null);
+			processAvgScript.set_bitmap5(null);
+			processAvgScript.set_bitmap6(null);
+			processAvgScript.set_bitmap7(null);
+		}
+		if( createMTBScript != null )
+			createMTBScript.set_out_bitmap(null);
+		if( alignMTBScript != null ) {
+			alignMTBScript.set_bitmap0(null);
+			alignMTBScript.set_bitmap1(null);
+			alignMTBScript.bind_errors(null);
+		}
+		if( histogramScript != null )
+			histogramScript.bind_histogram(null);
+		if( histogramAdjustScript != null )
+			histogramAdjustScript.set_equal_values(null);
+		if( avgBrightenScript != null )
+			avgBrightenScript.set_bitmap(null);
+		if( sharpnessScript != null ) {
+			sharpnessScript.set_bitmap(null);
+			sharpnessScript.bind_sums(null);
+		}
+	}
+
+	/** Frees the cached scripts. These should be set to null, to help garbage collection.
+	 */
+	private void destroyScripts() {
+		if( MyDebug.LOG )
+			Log.d(TAG, "destroyScripts");
+		processHDRScript = null;
+		accumulateHDRScript = null;
+		processAvgScript = null;
+		createMTBScript = null;
+		alignMTBScript = null;
+		histogramScript = null;
+		histogramAdjustScript = null;
+		avgBrightenScript = null;
+		sharpnessScript = null;
+	}
+
+	@Override
+	public void onDestroy() {
+		if( MyDebug.LOG )
+			Log.d(TAG, "onDestroy");
+
+		destroyScripts();
+		allocation_pool.clear();
+
+		if( rs != null ) {
+			// need to destroy context, otherwise this isn't necessarily garbage collected - we had tests failing with out of memory
+			// problems e.g. when running MainTests as a full set with Camera2 API. Although we now reduce the problem by creating
+			// the rs lazily, it's still good to explicitly clear.
+			try {
+				rs.destroy(); // on Android M onwards this is a NOP - instead we call RenderScript.releaseAllContexts(); in MainActivity.onDestroy()
+			}
+			catch(RSInvalidStateException e) {
+				e.printStackTrace();
+			}
+			rs = null;
+		}
+	}
+}
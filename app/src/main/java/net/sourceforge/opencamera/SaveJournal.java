@@ -0,0 +1,394 @@
+package net.sourceforge.opencamera;
+
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.zip.CRC32;
+
+/** A sequential, append-only journal of requests that are waiting to be saved, so that the image
+ *  saver can spill requests to disk rather than blocking when it's out of memory, and so that
+ *  requests aren't lost if the application is killed before they're saved.
+ *  Each entry holds some opaque settings and a list of payloads (e.g., JPEG images). Once an entry
+ *  has been saved, the caller marks it as done, by appending a small "done" record. On opening a
+ *  journal that already exists, any entries without a "done" record are recovered, and can be
+ *  handed out again after calling replay().
+ *  Records are only ever appended, and a record that was only partly written (e.g., because the
+ *  process was killed) is discarded. Each record has a checksum, which is checked when the entry
+ *  is read back.
+ */
+public class SaveJournal {
+	private static final String TAG = "SaveJournal";
+
+	private static final int magic_c = 0x4f434a31; // "OCJ1"
+	private static final byte record_entry_c = 1;
+	private static final byte record_done_c = 2;
+	private static final int header_size_c = 4 + 1 + 8 + 4 + 4 + 4; // magic, type, id, cost, body length, checksum
+
+	/** An entry read back from the journal. If the entry couldn't be read back (e.g., it failed its
+	 *  checksum), settings and payloads are null.
+	 */
+	public static class Entry {
+		public final long id;
+		public final int cost;
+		public final byte [] settings;
+		public final List<byte []> payloads;
+
+		Entry(long id, int cost, byte [] settings, List<byte []> payloads) {
+			this.id = id;
+			this.cost = cost;
+			this.settings = settings;
+			this.payloads = payloads;
+		}
+	}
+
+	/** Where an entry is stored in the file.
+	 */
+	private static class EntryLocation {
+		final long id;
+		final int cost;
+		final long offset;
+
+		EntryLocation(long id, int cost, long offset) {
+			this.id = id;
+			this.cost = cost;
+			this.offset = offset;
+		}
+	}
+
+	private final File file;
+	private final RandomAccessFile raf;
+	private final RandomAccessFile reader; // used by take() to read entries without holding the lock, so that append() isn't blocked
+	private long next_id;
+	private final Queue<EntryLocation> pending = new ArrayDeque<>(); // entries that can be handed out by take()
+	private final Map<Long, EntryLocation> unfinished = new HashMap<>(); // entries that haven't been marked as done
+	private final List<EntryLocation> recovered = new ArrayList<>(); // unfinished entries from a previous run, until replay() is called
+	private boolean closed;
+
+	/** Opens the journal, creating it if it doesn't exist. Any unfinished entries from a previous
+	 *  run are recovered, see replay().
+	 */
+	public SaveJournal(File file) throws IOException {
+		this.file = file;
+		this.raf = new RandomAccessFile(file, "rw");
+		this.reader = new RandomAccessFile(file, "r");
+		recover();
+	}
+
+	/** Scans the existing records. Only the headers are read, so this is quick even for a large
+	 *  journal.
+	 */
+	private void recover() throws IOException {
+		long length = raf.length();
+		long offset = 0;
+		Map<Long, EntryLocation> entries = new HashMap<>();
+		List<EntryLocation> order = new ArrayList<>();
+		byte [] header = new byte[header_size_c];
+		while( offset + header_size_c <= length ) {
+			raf.seek(offset);
+			raf.readFully(header);
+			ByteBuffer buffer = ByteBuffer.wrap(header);
+			int magic = buffer.getInt();
+			byte type = buffer.get();
+			long id = buffer.getLong();
+			int cost = buffer.getInt();
+			int body_length = buffer.getInt();
+			if( magic != magic_c || body_length < 0 || offset + header_size_c + body_length > length ) {
+				// a partly written record, which can only be at the end
+				break;
+			}
+			if( type == record_entry_c ) {
+				EntryLocation location = new EntryLocation(id, cost, offset);
+				entries.put(id, location);
+				order.add(location);
+			}
+			else if( type == record_done_c ) {
+				entries.remove(id);
+			}
+			next_id = Math.max(next_id, id+1);
+			offset += header_size_c + body_length;
+		}
+		if( offset < length ) {
+			if( MyDebug.LOG )
+				Log.e(TAG, "discarding " + (length - offset) + " bytes at end of journal");
+			raf.setLength(offset);
+		}
+		for(EntryLocation location : order) {
+			if( entries.containsKey(location.id) ) {
+				recovered.add(location);
+				unfinished.put(location.id, location);
+			}
+		}
+		if( MyDebug.LOG )
+			Log.d(TAG, "recovered " + recovered.size() + " unfinished entries from " + file.getAbsolutePath());
+		if( unfinished.isEmpty() ) {
+			reset();
+		}
+	}
+
+	/** Truncates the journal, once there are no unfinished entries.
+	 */
+	private void reset() throws IOException {
+		if( raf.length() > 0 ) {
+			if( MyDebug.LOG )
+				Log.d(TAG, "reset journal");
+			raf.setLength(0);
+		}
+	}
+
+	/** Returns the number of unfinished entries from a previous run, that will be handed out again
+	 *  once replay() is called.
+	 */
+	public synchronized int getNRecovered() {
+		return recovered.size();
+	}
+
+	/** Returns the total cost of the unfinished entries from a previous run.
+	 */
+	public synchronized int getRecoveredCost() {
+		int cost = 0;
+		for(EntryLocation location : recovered) {
+			cost += location.cost;
+		}
+		return cost;
+	}
+
+	/** Makes the unfinished entries from a previous run available to take(), ahead of any entries
+	 *  appended since.
+	 * @return The number of entries replayed.
+	 */
+	public synchronized int replay() {
+		int n_replayed = recovered.size();
+		if( n_replayed > 0 ) {
+			List<EntryLocation> new_pending = new ArrayList<>(recovered);
+			new_pending.addAll(pending);
+			pending.clear();
+			pending.addAll(new_pending);
+			recovered.clear();
+			notifyAll();
+		}
+		return n_replayed;
+	}
+
+	/** Appends an entry to the journal.
+	 * @param cost     A cost for the entry, which is returned unchanged in the Entry.
+	 * @param settings Opaque data to store with the entry.
+	 * @param payloads The payloads to store with the entry.
+	 * @return The id of the new entry.
+	 */
+	public synchronized long append(int cost, byte [] settings, List<byte []> payloads) throws IOException {
+		if( closed ) {
+			throw new IOException("journal is closed");
+		}
+		ByteArrayOutputStream prefix_stream = new ByteArrayOutputStream();
+		DataOutputStream prefix = new DataOutputStream(prefix_stream);
+		prefix.writeInt(settings.length);
+		prefix.writeInt(payloads.size());
+		for(byte [] payload : payloads) {
+			prefix.writeInt(payload.length);
+		}
+		prefix.flush();
+		byte [] body_prefix = prefix_stream.toByteArray();
+		long body_length = body_prefix.length + settings.length;
+		CRC32 crc = new CRC32();
+		crc.update(body_prefix);
+		crc.update(settings);
+		for(byte [] payload : payloads) {
+			body_length += payload.length;
+			crc.update(payload);
+		}
+		if( body_length > Integer.MAX_VALUE ) {
+			throw new IOException("journal entry too large");
+		}
+		long id = next_id++;
+		long offset = raf.length();
+		raf.seek(offset);
+		try {
+			writeHeader(record_entry_c, id, cost, (int)body_length, (int)crc.getValue());
+			// the payloads are written directly, rather than being copied into a single buffer
+			raf.write(body_prefix);
+			raf.write(settings);
+			for(byte [] payload : payloads) {
+				raf.write(payload);
+			}
+		}
+		catch(IOException e) {
+			// don't leave a partial record, as we'd then be appending after it
+			raf.setLength(offset);
+			throw e;
+		}
+		EntryLocation location = new EntryLocation(id, cost, offset);
+		pending.add(location);
+		unfinished.put(id, location);
+		if( MyDebug.LOG )
+			Log.d(TAG, "appended entry " + id + " of " + body_length + " bytes");
+		notifyAll();
+		return id;
+	}
+
+	private void writeHeader(byte type, long id, int cost, int body_length, int checksum) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(header_size_c);
+		header.putInt(magic_c);
+		header.put(type);
+		header.putLong(id);
+		header.putInt(cost);
+		header.putInt(body_length);
+		header.putInt(checksum);
+		raf.write(header.array());
+	}
+
+	/** Returns the number of entries waiting to be handed out by take().
+	 */
+	public synchronized int getNPending() {
+		return pending.size();
+	}
+
+	/** Returns the number of entries that haven't been marked as done (including recovered
+	 *  entries).
+	 */
+	public synchronized int getNUnfinished() {
+		return unfinished.size();
+	}
+
+	/** Whether the journal has entries that have been appended or replayed, but not yet taken.
+	 *  Callers should use this to keep requests in order: if there are pending entries, new
+	 *  requests should also go via the journal.
+	 */
+	public synchronized boolean hasPending() {
+		return !pending.isEmpty();
+	}
+
+	/** Waits until there's a pending entry, then reads it back from the journal. This should only
+	 *  be called from a single thread.
+	 *  Note that the entry is still unfinished until markDone() is called.
+	 * @return The entry, or null if the journal was closed. If the entry couldn't be read, or
+	 *         failed its checksum, it's returned without settings or payloads, and is marked as
+	 *         done, as it can never be read.
+	 */
+	public Entry take() throws InterruptedException {
+		EntryLocation location;
+		synchronized( this ) {
+			while( pending.isEmpty() && !closed ) {
+				wait();
+			}
+			if( closed ) {
+				return null;
+			}
+			location = pending.poll();
+		}
+		// the file can't be truncated whilst we read, as this entry is still unfinished
+		try {
+			return readEntry(location);
+		}
+		catch(IOException e) {
+			if( MyDebug.LOG )
+				Log.e(TAG, "failed to read journal entry " + location.id);
+			e.printStackTrace();
+			try {
+				markDone(location.id);
+			}
+			catch(IOException e2) {
+				e2.printStackTrace();
+			}
+			return new Entry(location.id, location.cost, null, null);
+		}
+	}
+
+	private Entry readEntry(EntryLocation location) throws IOException {
+		reader.seek(location.offset);
+		byte [] header = new byte[header_size_c];
+		reader.readFully(header);
+		ByteBuffer buffer = ByteBuffer.wrap(header);
+		buffer.getInt(); // magic
+		buffer.get(); // type
+		buffer.getLong(); // id
+		buffer.getInt(); // cost
+		int body_length = buffer.getInt();
+		int checksum = buffer.getInt();
+		CRC32 crc = new CRC32();
+		int settings_length = reader.readInt();
+		int n_payloads = reader.readInt();
+		if( settings_length < 0 || n_payloads < 0 || 8 + 4L*n_payloads + settings_length > body_length ) {
+			throw new IOException("corrupt journal entry");
+		}
+		int [] payload_lengths = new int[n_payloads];
+		ByteBuffer prefix = ByteBuffer.allocate(8 + 4*n_payloads);
+		prefix.putInt(settings_length);
+		prefix.putInt(n_payloads);
+		long total_length = 8 + 4L*n_payloads + settings_length;
+		for(int i=0;i<n_payloads;i++) {
+			payload_lengths[i] = reader.readInt();
+			prefix.putInt(payload_lengths[i]);
+			total_length += payload_lengths[i];
+		}
+		if( total_length != body_length ) {
+			throw new IOException("corrupt journal entry");
+		}
+		crc.update(prefix.array());
+		byte [] settings = new byte[settings_length];
+		reader.readFully(settings);
+		crc.update(settings);
+		List<byte []> payloads = new ArrayList<>();
+		for(int i=0;i<n_payloads;i++) {
+			byte [] payload = new byte[payload_lengths[i]];
+			reader.readFully(payload);
+			crc.update(payload);
+			payloads.add(payload);
+		}
+		if( (int)crc.getValue() != checksum ) {
+			throw new IOException("journal entry failed checksum");
+		}
+		return new Entry(location.id, location.cost, settings, payloads);
+	}
+
+	/** Records that an entry has been saved, so it won't be recovered again. Once all entries have
+	 *  been marked as done, the journal is truncated.
+	 */
+	public synchronized void markDone(long id) throws IOException {
+		if( unfinished.remove(id) == null ) {
+			if( MyDebug.LOG )
+				Log.e(TAG, "markDone: unknown entry " + id);
+			return;
+		}
+		if( closed ) {
+			return;
+		}
+		if( unfinished.isEmpty() ) {
+			// nothing left that needs recovering, so no need to record this
+			reset();
+		}
+		else {
+			raf.seek(raf.length());
+			writeHeader(record_done_c, id, 0, 0, 0);
+		}
+		if( MyDebug.LOG )
+			Log.d(TAG, "marked entry " + id + " as done, unfinished: " + unfinished.size());
+	}
+
+	/** Closes the journal. Unfinished entries will be recovered when the journal is next opened.
+	 */
+	public synchronized void close() {
+		if( closed ) {
+			return;
+		}
+		closed = true;
+		try {
+			raf.close();
+			reader.close();
+		}
+		catch(IOException e) {
+			e.printStackTrace();
+		}
+		notifyAll();
+	}
+}
@@ -0,0 +1,213 @@
+package net.sourceforge.opencamera;
+
+import android.util.Log;
+
+import java.util.TreeMap;
+
+/** Admission control for the image saver, based on how much memory each request will need.
+ *  Each request is charged its "payload" (the JPEG or RAW buffers, held from when the request is
+ *  added until it has been saved) and its "working set" (the bitmaps and RenderScript allocations
+ *  needed whilst processing it). Payloads are all held at once, but working sets are not: HDR and NR
+ *  processing is done one request at a time, so we only charge the largest working set of the
+ *  requests that are still to be saved.
+ *  The budget is refreshed from a BudgetSource each time we check it, so that it can track the
+ *  memory actually available.
+ */
+public class SaveMemoryBudget {
+	private static final String TAG = "SaveMemoryBudget";
+
+	private static final long MB = 1024L*1024L;
+	private static final long min_reserve_c = 32*MB; // minimum memory to leave for the rest of the application
+	private static final long wait_interval_ms_c = 200; // how often to recheck the budget when blocked, as memory may be freed by GC
+	private static final long bytes_per_pixel_c = 4; // for ARGB_8888 bitmaps and RGBA allocations
+	private static final long bytes_per_pixel_f32_3_c = 16; // for F32_3 allocations, which are padded to 4 floats
+	private static final long bytes_per_pixel_u16_3_c = 8; // for U16_3 allocations (half precision images, see HDRBackend.createHalfPrecisionImage()), which are padded to 4 values
+	private static final double jpeg_bytes_per_pixel_c = 0.4; // typical size of a high quality JPEG, for estimating photos not yet taken
+
+	/** Supplies the current budget.
+	 */
+	public interface BudgetSource {
+		/** Returns how many bytes the image saver may use in total.
+		 * @param charged The number of bytes currently charged to requests.
+		 */
+		long getBudget(long charged);
+	}
+
+	private final BudgetSource source;
+	private long budget;
+	private long payload_bytes; // total payload of the admitted requests
+	private final TreeMap<Long, Integer> working_sets = new TreeMap<>(); // multiset of the working sets of the admitted requests
+	private int n_requests;
+	private long peak_charged;
+	private int n_blocked; // number of times acquire() had to wait
+
+	public SaveMemoryBudget(BudgetSource source) {
+		this.source = source;
+		this.budget = source.getBudget(0);
+	}
+
+	private void refresh() {
+		budget = source.getBudget(getCharged());
+	}
+
+	private long getMaxWorkingSet() {
+		return working_sets.isEmpty() ? 0 : working_sets.lastKey();
+	}
+
+	private boolean wouldExceed(long payload, long working_set) {
+		if( n_requests == 0 ) {
+			// always admit a request if nothing else is held, even if it's over the budget by itself - otherwise
+			// we'd never be able to save it
+			return false;
+		}
+		long charged = payload_bytes + payload + Math.max(getMaxWorkingSet(), working_set);
+		return charged > budget;
+	}
+
+	/** Charges a request to the budget, blocking while that would exceed the budget.
+	 * @param payload     The bytes held by the request until it's saved.
+	 * @param working_set The extra bytes needed whilst the request is being processed.
+	 */
+	public synchronized void acquire(long payload, long working_set) throws InterruptedException {
+		refresh();
+		if( wouldExceed(payload, working_set) ) {
+			if( MyDebug.LOG )
+				Log.d(TAG, "going to block, charged " + getCharged() + " of budget " + budget);
+			n_blocked++;
+			while( wouldExceed(payload, working_set) ) {
+				wait(wait_interval_ms_c);
+				refresh();
+			}
+		}
+		payload_bytes += payload;
+		Integer count = working_sets.get(working_set);
+		working_sets.put(working_set, count == null ? 1 : count+1);
+		n_requests++;
+		peak_charged = Math.max(peak_charged, getCharged());
+		if( MyDebug.LOG )
+			Log.d(TAG, "acquired " + payload + " + " + working_set + ", charged is now " + getCharged() + " of budget " + budget);
+	}
+
+	/** Whether acquire() would block for a request of the supplied size.
+	 */
+	public synchronized boolean wouldBlock(long payload, long working_set) {
+		refresh();
+		return wouldExceed(payload, working_set);
+	}
+
+	/** Returns a request's charge to the budget, once it has been saved. The arguments must be the
+	 *  same as those passed to acquire().
+	 */
+	public synchronized void release(long payload, long working_set) {
+		Integer count = working_sets.get(working_set);
+		if( count == null || n_requests == 0 ) {
+			throw new IllegalStateException("released a request that wasn't acquired");
+		}
+		if( count == 1 )
+			working_sets.remove(working_set);
+		else
+			working_sets.put(working_set, count-1);
+		payload_bytes -= payload;
+		n_requests--;
+		if( MyDebug.LOG )
+			Log.d(TAG, "released " + payload + " + " + working_set + ", charged is now " + getCharged());
+		notifyAll();
+	}
+
+	/** Returns the number of bytes currently charged to requests.
+	 */
+	public synchronized long getCharged() {
+		return payload_bytes + getMaxWorkingSet();
+	}
+
+	/** Returns the budget, as of the last time it was checked.
+	 */
+	public synchronized long getBudget() {
+		return budget;
+	}
+
+	public synchronized int getNRequests() {
+		return n_requests;
+	}
+
+	public synchronized long getPeakCharged() {
+		return peak_charged;
+	}
+
+	public synchronized int getNBlocked() {
+		return n_blocked;
+	}
+
+	/** Computes the budget from the memory state.
+	 * @param max_heap         The maximum size of the Java heap.
+	 * @param used_heap        The memory currently used on the Java heap.
+	 * @param native_available Memory available outside of the Java heap that we can also use for
+	 *                         bitmaps and allocations, or 0 if these live on the Java heap.
+	 * @param charged          The bytes currently charged to requests. These are assumed to be on
+	 *                         the Java heap, so are not counted against the budget twice.
+	 */
+	public static long computeBudget(long max_heap, long used_heap, long native_available, long charged) {
+		long reserve = Math.max(min_reserve_c, max_heap/4);
+		long used_elsewhere = Math.max(0, used_heap - charged);
+		long budget = max_heap - reserve - used_elsewhere;
+		budget += Math.max(0, native_available);
+		return Math.max(0, budget);
+	}
+
+	/** Returns the bytes needed for a bitmap or RGBA allocation of the supplied size.
+	 */
+	public static long computeBitmapBytes(int width, int height) {
+		return bytes_per_pixel_c * width * height;
+	}
+
+	/** Estimates the size of a JPEG of the supplied resolution, for photos that haven't been taken yet.
+	 */
+	public static long estimateJpegBytes(int width, int height) {
+		return (long)(jpeg_bytes_per_pixel_c * width * height);
+	}
+
+	/** Returns the working set for saving JPEGs without merging them. The images of a request are
+	 *  decoded one at a time (see ImageSaver.postProcessStage()), but each re-encoded JPEG is held
+	 *  until the request is saved.
+	 * @param post_process Whether the images are decoded to bitmaps for post-processing (e.g., auto-level, stamp).
+	 * @param n_images     The number of images in the request.
+	 * @param n_workers    The number of images that may be post-processed in parallel.
+	 */
+	public static long computeNormalWorkingSet(int width, int height, boolean post_process, int n_images, int n_workers) {
+		if( !post_process )
+			return 0;
+		long jpeg_bytes = estimateJpegBytes(width, height);
+		// the decoded bitmap, a second bitmap for rotating or levelling, and the re-encoded JPEG
+		long per_image = 2*computeBitmapBytes(width, height) + jpeg_bytes;
+		// plus the re-encoded JPEGs of the request's other images
+		return n_workers * per_image + Math.max(0, n_images-1) * jpeg_bytes;
+	}
+
+	/** Returns the working set for merging n_images JPEGs into an HDR (or DRO, if n_images is 1) image.
+	 */
+	public static long computeHDRWorkingSet(int width, int height, int n_images) {
+		long bitmap_bytes = computeBitmapBytes(width, height);
+		// the decoded bitmaps, a RenderScript allocation for each input, the output allocation, then a further
+		// bitmap for any post-processing, and the re-encoded JPEG
+		return (2L*n_images + 2) * bitmap_bytes + estimateJpegBytes(width, height);
+	}
+
+	/** Returns the working set for merging JPEGs for noise reduction.
+	 * @param sample_size The sample size the images are merged at, see HDRProcessor.computeAvgSampleSize().
+	 * @param n_decoded   The number of images that are decoded at once.
+	 * @param half_precision Whether the average is kept at half precision, see HDRProcessor.half_precision_avg.
+	 * @param mapped      Whether the average is kept in a file, see HDRProcessor.useMappedAvg(). The
+	 *                    accumulator and the input allocations are then only the size of a band,
+	 *                    which is within HDRProcessor's working memory limit, so aren't counted.
+	 */
+	public static long computeAvgWorkingSet(int width, int height, int sample_size, int n_decoded, boolean half_precision, boolean mapped) {
+		long pixels = ((long)width/sample_size) * ((long)height/sample_size);
+		// the decoded bitmaps, the F32_3 or U16_3 accumulator, the input and alignment allocations, the brightened
+		// bitmap, and a further bitmap for any post-processing
+		long accumulator_bytes_per_pixel = half_precision ? bytes_per_pixel_u16_3_c : bytes_per_pixel_f32_3_c;
+		if( mapped ) {
+			return pixels * (n_decoded*bytes_per_pixel_c + 2*bytes_per_pixel_c) + estimateJpegBytes(width, height);
+		}
+		return pixels * (n_decoded*bytes_per_pixel_c + accumulator_bytes_per_pixel + 4*bytes_per_pixel_c) + estimateJpegBytes(width, height);
+	}
+}
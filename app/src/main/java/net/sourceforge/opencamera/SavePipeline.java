@@ -0,0 +1,294 @@
+package net.sourceforge.opencamera;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.Semaphore;
+
+/** A pipeline of stages that items pass through on worker threads. Each stage has its own bounded
+ *  queue and its own set of worker threads, so different items can be in different stages at the
+ *  same time (and several items can be in the same stage, if that stage has more than one worker).
+ *  A stage can be marked as ordered, in which case items are handed to it strictly in the order
+ *  they were submitted, however earlier stages happened to finish them.
+ *  Used by ImageSaver: the final (persist) stage is ordered, so that filenames and thumbnails keep
+ *  the order in which photos were taken.
+ */
+public class SavePipeline<T> {
+	private static final String TAG = "SavePipeline";
+
+	/** Performs the work of a single stage for an item.
+	 */
+	public interface StageHandler<T> {
+		void process(T item);
+	}
+
+	/** Called on the worker thread of the last stage, once an item has been through all stages.
+	 */
+	public interface CompletionCallback<T> {
+		void onComplete(T item);
+	}
+
+	/** Describes one stage of the pipeline.
+	 */
+	public static class Stage<T> {
+		final String name;
+		final StageHandler<T> handler;
+		final int n_workers;
+		final int capacity;
+		final boolean ordered;
+
+		/**
+		 * @param name      Name of the stage, used for the worker thread names.
+		 * @param handler   The work to do for this stage.
+		 * @param n_workers Number of worker threads for this stage, must be at least 1.
+		 * @param capacity  Maximum number of items that can wait in the queue for this stage; a
+		 *                  previous stage blocks when trying to pass on an item while the queue is
+		 *                  full. Ignored for ordered stages, whose queue must be able to hold items
+		 *                  that are waiting for an earlier item (these are instead bounded by the
+		 *                  pipeline's max_in_flight).
+		 * @param ordered   Whether items must enter this stage in the order they were submitted.
+		 */
+		public Stage(String name, StageHandler<T> handler, int n_workers, int capacity, boolean ordered) {
+			if( n_workers < 1 || capacity < 1 ) {
+				throw new IllegalArgumentException("n_workers and capacity must be at least 1");
+			}
+			this.name = name;
+			this.handler = handler;
+			this.n_workers = n_workers;
+			this.capacity = capacity;
+			this.ordered = ordered;
+		}
+	}
+
+	private static class Entry<T> {
+		final long seq;
+		final T item;
+
+		Entry(long seq, T item) {
+			this.seq = seq;
+			this.item = item;
+		}
+	}
+
+	/** The queue in front of a stage.
+	 *  We don't use a BlockingQueue, as an ordered stage needs to wait until the next item in
+	 *  sequence has arrived, rather than just for any item.
+	 */
+	private static class StageQueue<T> {
+		private final Queue<Entry<T>> entries;
+		private final int capacity;
+		private final boolean ordered;
+		private long next_seq; // for ordered stages, the sequence number of the next item to hand out
+
+		StageQueue(int capacity, boolean ordered) {
+			this.capacity = capacity;
+			this.ordered = ordered;
+			if( ordered ) {
+				this.entries = new PriorityQueue<>(11, new Comparator<Entry<T>>() {
+					@Override
+					public int compare(Entry<T> a, Entry<T> b) {
+						return a.seq < b.seq ? -1 : (a.seq > b.seq ? 1 : 0);
+					}
+				});
+			}
+			else {
+				this.entries = new ArrayDeque<>();
+			}
+		}
+
+		synchronized void put(Entry<T> entry) throws InterruptedException {
+			// ordered queues never block, otherwise we could deadlock waiting for an item that is
+			// itself stuck behind a full queue
+			while( !ordered && entries.size() >= capacity ) {
+				wait();
+			}
+			entries.add(entry);
+			notifyAll();
+		}
+
+		synchronized Entry<T> take() throws InterruptedException {
+			while( entries.isEmpty() || (ordered && entries.peek().seq != next_seq) ) {
+				wait();
+			}
+			Entry<T> entry = entries.poll();
+			if( ordered ) {
+				next_seq++;
+			}
+			notifyAll();
+			return entry;
+		}
+
+		synchronized int size() {
+			return entries.size();
+		}
+	}
+
+	private final String name;
+	private final List<Stage<T>> stages;
+	private final List<StageQueue<T>> queues = new ArrayList<>();
+	private final List<Thread> workers = new ArrayList<>();
+	private final CompletionCallback<T> callback;
+	private final int max_in_flight;
+	private final Semaphore in_flight_permits;
+	private long next_submit_seq;
+	private boolean started;
+	private volatile boolean shutdown;
+
+	/**
+	 * @param name          Name of the pipeline, used for the worker thread names.
+	 * @param stages        The stages, in the order items should pass through them.
+	 * @param max_in_flight Maximum number of items that can be in the pipeline at once (including
+	 *                      ones being processed); submit() blocks while this many are in flight.
+	 * @param callback      Called after an item has passed through the last stage.
+	 */
+	public SavePipeline(String name, List<Stage<T>> stages, int max_in_flight, CompletionCallback<T> callback) {
+		if( stages.size() == 0 ) {
+			throw new IllegalArgumentException("pipeline needs at least one stage");
+		}
+		else if( max_in_flight < 1 ) {
+			throw new IllegalArgumentException("max_in_flight must be at least 1");
+		}
+		this.name = name;
+		this.stages = new ArrayList<>(stages);
+		this.max_in_flight = max_in_flight;
+		this.in_flight_permits = new Semaphore(max_in_flight);
+		this.callback = callback;
+		for(Stage<T> stage : stages) {
+			queues.add(new StageQueue<T>(stage.capacity, stage.ordered));
+		}
+	}
+
+	/** Starts the worker threads. Must be called before submit().
+	 */
+	public synchronized void start() {
+		if( MyDebug.LOG )
+			Log.d(TAG, "start: " + name);
+		if( started ) {
+			throw new RuntimeException("pipeline already started");
+		}
+		started = true;
+		for(int i=0;i<stages.size();i++) {
+			Stage<T> stage = stages.get(i);
+			for(int j=0;j<stage.n_workers;j++) {
+				Thread worker = new Worker(i);
+				worker.setName(name + "-" + stage.name + "-" + j);
+				workers.add(worker);
+				worker.start();
+			}
+		}
+	}
+
+	/** Stops the worker threads. Any items still in the pipeline are discarded, so callers should
+	 *  first make sure all items have completed.
+	 */
+	public synchronized void shutdown() {
+		if( MyDebug.LOG )
+			Log.d(TAG, "shutdown: " + name);
+		shutdown = true;
+		for(Thread worker : workers) {
+			worker.interrupt();
+		}
+		workers.clear();
+	}
+
+	/** Adds an item to the pipeline. Blocks if max_in_flight items are already in the pipeline, or
+	 *  if the queue for the first stage is full.
+	 */
+	public void submit(T item) throws InterruptedException {
+		in_flight_permits.acquire();
+		Entry<T> entry;
+		// the sequence number must be allocated in the same order as entries are added to the
+		// first queue, otherwise an ordered first stage could wait for an entry that's behind it
+		synchronized( this ) {
+			if( !started ) {
+				in_flight_permits.release();
+				throw new RuntimeException("pipeline not started");
+			}
+			entry = new Entry<>(next_submit_seq++, item);
+			try {
+				queues.get(0).put(entry);
+			}
+			catch(InterruptedException e) {
+				next_submit_seq--;
+				in_flight_permits.release();
+				throw e;
+			}
+		}
+	}
+
+	/** Runs an item through all of the stages on the calling thread, bypassing the worker threads
+	 *  and queues. The completion callback is not called.
+	 */
+	public void processNow(T item) {
+		for(Stage<T> stage : stages) {
+			stage.handler.process(item);
+		}
+	}
+
+	/** Returns the number of items that have been submitted but not yet completed.
+	 */
+	public int getNInFlight() {
+		return max_in_flight - in_flight_permits.availablePermits();
+	}
+
+	/** Returns the number of items waiting in the queue for the supplied stage.
+	 */
+	public int getQueueLength(int stage) {
+		return queues.get(stage).size();
+	}
+
+	private class Worker extends Thread {
+		private final int stage_index;
+
+		Worker(int stage_index) {
+			this.stage_index = stage_index;
+		}
+
+		@Override
+		public void run() {
+			Stage<T> stage = stages.get(stage_index);
+			StageQueue<T> queue = queues.get(stage_index);
+			StageQueue<T> next_queue = stage_index+1 < queues.size() ? queues.get(stage_index+1) : null;
+			while( !shutdown ) {
+				Entry<T> entry;
+				try {
+					entry = queue.take();
+				}
+				catch(InterruptedException e) {
+					if( MyDebug.LOG )
+						Log.d(TAG, "worker interrupted while waiting: " + getName());
+					continue;
+				}
+				stage.handler.process(entry.item);
+				if( next_queue != null ) {
+					boolean done = false;
+					while( !done && !shutdown ) {
+						try {
+							next_queue.put(entry);
+							done = true;
+						}
+						catch(InterruptedException e) {
+							if( MyDebug.LOG )
+								Log.e(TAG, "worker interrupted while passing on item: " + getName());
+						}
+					}
+				}
+				else {
+					// release the permit before calling back, so that a callback that leads to a
+					// new submit() can't deadlock
+					in_flight_permits.release();
+					if( callback != null ) {
+						callback.onComplete(entry.item);
+					}
+				}
+			}
+			if( MyDebug.LOG )
+				Log.d(TAG, "worker stopped: " + getName());
+		}
+	}
+}
@@ -0,0 +1,152 @@
+package net.sourceforge.opencamera;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/** Decodes small thumbnails from jpegs, for the gallery icon and thumbnail animation, and for
+ *  image capture intents that want a bitmap returned. Rather than decoding the full image, we use
+ *  the thumbnail embedded in the exif tags (IFD1) if that's large enough; otherwise we decode with
+ *  an inSampleSize, which lets the jpeg decoder scale down the DCT blocks as it decodes, so it's
+ *  much faster than decoding at full resolution and scaling afterwards.
+ *  The returned thumbnails are in the stored orientation of the jpeg, i.e., the caller still needs
+ *  to rotate for the exif orientation.
+ */
+public class ThumbnailDecoder {
+	private static final String TAG = "ThumbnailDecoder";
+
+	private static final float aspect_tolerance_c = 0.02f;
+
+	/** Returns the largest power of two sample size, such that an image of the supplied width
+	 *  scaled down by the sample size is still at least target_width wide (or 1, if the image is
+	 *  already narrower than target_width).
+	 */
+	public static int computeSampleSize(int width, int target_width) {
+		int sample_size = 1;
+		if( target_width <= 0 ) {
+			return sample_size;
+		}
+		while( width / (sample_size*2) >= target_width ) {
+			sample_size *= 2;
+		}
+		return sample_size;
+	}
+
+	/** Whether an embedded thumbnail of size (thumb_width, thumb_height) can stand in for an image
+	 *  of size (width, height), when we want a thumbnail at least target_width wide. Some devices
+	 *  store thumbnails with a fixed aspect ratio, padded with black bars, so we also require the
+	 *  aspect ratios to match.
+	 */
+	public static boolean canUseEmbedded(int thumb_width, int thumb_height, int width, int height, int target_width) {
+		if( thumb_width <= 0 || thumb_height <= 0 || width <= 0 || height <= 0 ) {
+			return false;
+		}
+		if( thumb_width < target_width ) {
+			return false;
+		}
+		float aspect = width / (float)height;
+		float thumb_aspect = thumb_width / (float)thumb_height;
+		return Math.abs(thumb_aspect - aspect) <= aspect_tolerance_c * aspect;
+	}
+
+	/** Decodes a thumbnail at least target_width wide (unless the image itself is smaller).
+	 * @param jpeg The jpeg data. The buffer's position is left unchanged.
+	 * @param exif The exif tags already read from the jpeg, or null if not available, in which case
+	 *             the embedded thumbnail isn't used.
+	 * @return The thumbnail, or null if the jpeg couldn't be decoded.
+	 */
+	public static Bitmap decode(ByteBuffer jpeg, JpegExifWriter exif, int target_width) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "decode, target width: " + target_width);
+		BitmapFactory.Options bounds = new BitmapFactory.Options();
+		bounds.inJustDecodeBounds = true;
+		decode(jpeg, bounds);
+		if( bounds.outWidth <= 0 || bounds.outHeight <= 0 ) {
+			if( MyDebug.LOG )
+				Log.e(TAG, "failed to read jpeg size");
+			return null;
+		}
+		if( MyDebug.LOG )
+			Log.d(TAG, "jpeg size: " + bounds.outWidth + " x " + bounds.outHeight);
+
+		byte [] embedded = exif != null ? exif.getThumbnail() : null;
+		if( embedded != null ) {
+			BitmapFactory.Options thumb_bounds = new BitmapFactory.Options();
+			thumb_bounds.inJustDecodeBounds = true;
+			BitmapFactory.decodeByteArray(embedded, 0, embedded.length, thumb_bounds);
+			if( MyDebug.LOG )
+				Log.d(TAG, "embedded thumbnail size: " + thumb_bounds.outWidth + " x " + thumb_bounds.outHeight);
+			if( canUseEmbedded(thumb_bounds.outWidth, thumb_bounds.outHeight, bounds.outWidth, bounds.outHeight, target_width) ) {
+				BitmapFactory.Options options = createOptions(computeSampleSize(thumb_bounds.outWidth, target_width));
+				Bitmap thumbnail = BitmapFactory.decodeByteArray(embedded, 0, embedded.length, options);
+				if( thumbnail != null ) {
+					if( MyDebug.LOG )
+						Log.d(TAG, "using embedded thumbnail");
+					return thumbnail;
+				}
+				if( MyDebug.LOG )
+					Log.e(TAG, "failed to decode embedded thumbnail");
+			}
+		}
+
+		BitmapFactory.Options options = createOptions(computeSampleSize(bounds.outWidth, target_width));
+		if( MyDebug.LOG )
+			Log.d(TAG, "decoding jpeg with sample size: " + options.inSampleSize);
+		return decode(jpeg, options);
+	}
+
+	@SuppressWarnings("deprecation")
+	private static BitmapFactory.Options createOptions(int sample_size) {
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inMutable = false;
+		if( Build.VERSION.SDK_INT <= Build.VERSION_CODES.KITKAT ) {
+			// setting is ignored in Android 5 onwards
+			options.inPurgeable = true;
+		}
+		options.inSampleSize = sample_size;
+		return options;
+	}
+
+	private static Bitmap decode(ByteBuffer jpeg, BitmapFactory.Options options) {
+		if( jpeg.hasArray() ) {
+			return BitmapFactory.decodeByteArray(jpeg.array(), jpeg.arrayOffset() + jpeg.position(), jpeg.remaining(), options);
+		}
+		return BitmapFactory.decodeStream(new ByteBufferInputStream(jpeg.duplicate()), null, options);
+	}
+
+	/** Reads from a ByteBuffer, so that BitmapFactory can decode from data that isn't on the Java
+	 *  heap.
+	 */
+	private static class ByteBufferInputStream extends InputStream {
+		private final ByteBuffer buffer;
+
+		ByteBufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? (buffer.get() & 0xff) : -1;
+		}
+
+		@Override
+		public int read(@NonNull byte [] b, int off, int len) {
+			if( !buffer.hasRemaining() ) {
+				return -1;
+			}
+			len = Math.min(len, buffer.remaining());
+			buffer.get(b, off, len);
+			return len;
+		}
+
+		@Override
+		public int available() {
+			return buffer.remaining();
+		}
+	}
+}
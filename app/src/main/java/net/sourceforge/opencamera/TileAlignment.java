@@ -0,0 +1,379 @@
+package net.sourceforge.opencamera;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import java.util.Arrays;
+
+/** Per-tile offsets for aligning a noise reduction image with the reference (first) image. A single
+ *  global offset can't compensate for rotation or for local motion, and the Wiener filter in the merge
+ *  then rejects most of the frame. Instead we estimate an offset for each tile of tile_size_c pixels,
+ *  by block matching on greyscale pyramids of the two images: each level is searched around the
+ *  offsets found for the next coarser level, starting from the global offset. The merge then samples
+ *  the new image through these offsets, interpolated between the tile centres, see avg_f() in
+ *  process_avg.rs.
+ *  Tiles only move away from the global offset if that's clearly better, and the offsets are then
+ *  median filtered, so that noise in flat regions doesn't cause random offsets (genuine motion, such
+ *  as from rotation, moves neighbouring tiles together).
+ */
+public class TileAlignment {
+	private static final String TAG = "TileAlignment";
+
+	private static final int block_size_c = 16; // size of the blocks we match at each level of the pyramid, in pixels of that level
+	public static final int tile_size_c = 2*block_size_c; // in pixels of the full resolution image, as level 0 is half resolution
+	private static final int n_levels_c = 3;
+	private static final int coarse_radius_c = 2; // search radius at the coarser levels, in pixels of that level
+	private static final int fine_radius_c = 1; // search radius at level 0
+	// a tile only moves from the global offset if its error is less than this fraction of the error at the global offset
+	private static final float accept_ratio_c = 0.8f;
+
+	/** Reads a row of ARGB pixels of an image, so that we can support bitmaps or arrays.
+	 */
+	private interface RowReader {
+		void readRow(int [] buffer, int y);
+	}
+
+	/** A greyscale pyramid of an image, where level 0 is half the resolution of the image, and each
+	 *  level is half the resolution of the previous one.
+	 */
+	public static class Pyramid {
+		private final int image_width;
+		private final int image_height;
+		private final int [] widths;
+		private final int [] heights;
+		private final byte [][] levels;
+
+		public static Pyramid create(final Bitmap bitmap) {
+			final int width = bitmap.getWidth();
+			return new Pyramid(new RowReader() {
+				@Override
+				public void readRow(int [] buffer, int y) {
+					bitmap.getPixels(buffer, 0, width, 0, y, width, 1);
+				}
+			}, width, bitmap.getHeight());
+		}
+
+		/** As create(Bitmap), but from an array of ARGB pixels.
+		 */
+		public static Pyramid create(final int [] pixels, final int width, int height) {
+			return new Pyramid(new RowReader() {
+				@Override
+				public void readRow(int [] buffer, int y) {
+					System.arraycopy(pixels, y*width, buffer, 0, width);
+				}
+			}, width, height);
+		}
+
+		private Pyramid(RowReader reader, int image_width, int image_height) {
+			long time_s = System.currentTimeMillis();
+			this.image_width = image_width;
+			this.image_height = image_height;
+			int n_levels = 1;
+			while( n_levels < n_levels_c && (image_width >> (n_levels+1)) >= block_size_c && (image_height >> (n_levels+1)) >= block_size_c ) {
+				n_levels++;
+			}
+			this.widths = new int[n_levels];
+			this.heights = new int[n_levels];
+			this.levels = new byte[n_levels][];
+			for(int level=0;level<n_levels;level++) {
+				widths[level] = Math.max(image_width >> (level+1), 1);
+				heights[level] = Math.max(image_height >> (level+1), 1);
+				levels[level] = new byte[widths[level]*heights[level]];
+			}
+
+			// level 0: average 2x2 blocks of the luminance
+			int [] row0 = new int[image_width];
+			int [] row1 = new int[image_width];
+			byte [] out = levels[0];
+			int width = widths[0];
+			for(int y=0;y<heights[0];y++) {
+				reader.readRow(row0, Math.min(2*y, image_height-1));
+				reader.readRow(row1, Math.min(2*y+1, image_height-1));
+				for(int x=0;x<width;x++) {
+					int x0 = Math.min(2*x, image_width-1);
+					int x1 = Math.min(2*x+1, image_width-1);
+					int sum = luminance(row0[x0]) + luminance(row0[x1]) + luminance(row1[x0]) + luminance(row1[x1]);
+					out[y*width+x] = (byte)((sum+2) >> 2);
+				}
+			}
+			// further levels: average 2x2 blocks of the previous level
+			for(int level=1;level<n_levels;level++) {
+				byte [] in = levels[level-1];
+				int in_width = widths[level-1];
+				int in_height = heights[level-1];
+				out = levels[level];
+				width = widths[level];
+				for(int y=0;y<heights[level];y++) {
+					int y0 = Math.min(2*y, in_height-1) * in_width;
+					int y1 = Math.min(2*y+1, in_height-1) * in_width;
+					for(int x=0;x<width;x++) {
+						int x0 = Math.min(2*x, in_width-1);
+						int x1 = Math.min(2*x+1, in_width-1);
+						int sum = (in[y0+x0] & 0xff) + (in[y0+x1] & 0xff) + (in[y1+x0] & 0xff) + (in[y1+x1] & 0xff);
+						out[y*width+x] = (byte)((sum+2) >> 2);
+					}
+				}
+			}
+			if( MyDebug.LOG )
+				Log.d(TAG, "time to create pyramid: " + (System.currentTimeMillis() - time_s));
+		}
+
+		private static int luminance(int color) {
+			int r = (color >> 16) & 0xff;
+			int g = (color >> 8) & 0xff;
+			int b = color & 0xff;
+			return (r + 2*g + b) >> 2;
+		}
+
+		public int getLevels() {
+			return levels.length;
+		}
+
+		/** Returns the mean absolute difference between the block (x, y, w, h) of this pyramid, and
+		 *  the same block of image offset by (off_x, off_y), or Integer.MAX_VALUE if too little of
+		 *  the block overlaps image. This is scaled by 256 to keep some precision.
+		 */
+		private int computeError(Pyramid image, int level, int x, int y, int w, int h, int off_x, int off_y) {
+			int width = widths[level];
+			int height = heights[level];
+			byte [] in0 = levels[level];
+			byte [] in1 = image.levels[level];
+			// the part of the block where the offset pixel is inside the image
+			int sx = Math.max(x, -off_x);
+			int ex = Math.min(x+w, width-off_x);
+			int sy = Math.max(y, -off_y);
+			int ey = Math.min(y+h, height-off_y);
+			int count = (ex-sx)*(ey-sy);
+			if( ex <= sx || ey <= sy || 2*count < w*h ) {
+				return Integer.MAX_VALUE;
+			}
+			int sum = 0;
+			for(int cy=sy;cy<ey;cy++) {
+				int indx0 = cy*width;
+				int indx1 = (cy+off_y)*width + off_x;
+				for(int cx=sx;cx<ex;cx++) {
+					sum += Math.abs((in0[indx0+cx] & 0xff) - (in1[indx1+cx] & 0xff));
+				}
+			}
+			return (int)((256L*sum)/count);
+		}
+	}
+
+	private final int width; // in tiles
+	private final int height; // in tiles
+	private final int [] offsets_x; // in pixels of the full resolution image
+	private final int [] offsets_y;
+	private final int global_offset_x;
+	private final int global_offset_y;
+
+	private TileAlignment(int width, int height, int [] offsets_x, int [] offsets_y, int global_offset_x, int global_offset_y) {
+		this.width = width;
+		this.height = height;
+		this.offsets_x = offsets_x;
+		this.offsets_y = offsets_y;
+		this.global_offset_x = global_offset_x;
+		this.global_offset_y = global_offset_y;
+	}
+
+	/** Computes the offsets for image against reference, which must be for the same image size. The
+	 *  pixel (x, y) of reference corresponds to approximately (x+global_offset_x, y+global_offset_y)
+	 *  of image.
+	 */
+	public static TileAlignment create(Pyramid reference, Pyramid image, int global_offset_x, int global_offset_y) {
+		long time_s = System.currentTimeMillis();
+		final int width = (reference.image_width + tile_size_c - 1) / tile_size_c;
+		final int height = (reference.image_height + tile_size_c - 1) / tile_size_c;
+		final int n_levels = Math.min(reference.getLevels(), image.getLevels());
+
+		// offsets of the previous (coarser) level, in pixels of that level
+		int [] prev_x = null;
+		int [] prev_y = null;
+		int prev_width = 0;
+		int prev_height = 0;
+		int [] best_error = null;
+		for(int level=n_levels-1;level>=0;level--) {
+			int level_width = level == 0 ? width : (reference.widths[level] + block_size_c - 1) / block_size_c;
+			int level_height = level == 0 ? height : (reference.heights[level] + block_size_c - 1) / block_size_c;
+			int [] level_x = new int[level_width*level_height];
+			int [] level_y = new int[level_width*level_height];
+			best_error = new int[level_width*level_height];
+			int radius = level == 0 ? fine_radius_c : coarse_radius_c;
+			for(int ty=0;ty<level_height;ty++) {
+				for(int tx=0;tx<level_width;tx++) {
+					int start_x, start_y;
+					if( prev_x == null ) {
+						// coarsest level: start from the global offset
+						start_x = Math.round(global_offset_x / (float)(2 << level));
+						start_y = Math.round(global_offset_y / (float)(2 << level));
+					}
+					else {
+						int parent = Math.min(ty/2, prev_height-1) * prev_width + Math.min(tx/2, prev_width-1);
+						start_x = 2*prev_x[parent];
+						start_y = 2*prev_y[parent];
+					}
+					int bx = tx*block_size_c;
+					int by = ty*block_size_c;
+					int bw = Math.min(block_size_c, reference.widths[level]-bx);
+					int bh = Math.min(block_size_c, reference.heights[level]-by);
+					int best_x = start_x;
+					int best_y = start_y;
+					int best = Integer.MAX_VALUE;
+					if( bw > 0 && bh > 0 ) {
+						for(int dy=-radius;dy<=radius;dy++) {
+							for(int dx=-radius;dx<=radius;dx++) {
+								int error = reference.computeError(image, level, bx, by, bw, bh, start_x+dx, start_y+dy);
+								// prefer smaller changes when the errors are equal
+								if( error < best || (error == best && Math.abs(dx)+Math.abs(dy) < Math.abs(best_x-start_x)+Math.abs(best_y-start_y)) ) {
+									best = error;
+									best_x = start_x+dx;
+									best_y = start_y+dy;
+								}
+							}
+						}
+					}
+					int indx = ty*level_width+tx;
+					level_x[indx] = best_x;
+					level_y[indx] = best_y;
+					best_error[indx] = best;
+				}
+			}
+			prev_x = level_x;
+			prev_y = level_y;
+			prev_width = level_width;
+			prev_height = level_height;
+		}
+
+		int [] offsets_x = new int[width*height];
+		int [] offsets_y = new int[width*height];
+		int n_moved = 0;
+		int global_x = Math.round(global_offset_x / 2.0f);
+		int global_y = Math.round(global_offset_y / 2.0f);
+		for(int ty=0;ty<height;ty++) {
+			for(int tx=0;tx<width;tx++) {
+				int indx = ty*width+tx;
+				offsets_x[indx] = global_offset_x;
+				offsets_y[indx] = global_offset_y;
+				if( prev_x[indx] == global_x && prev_y[indx] == global_y )
+					continue;
+				int bx = tx*block_size_c;
+				int by = ty*block_size_c;
+				int bw = Math.min(block_size_c, reference.widths[0]-bx);
+				int bh = Math.min(block_size_c, reference.heights[0]-by);
+				if( bw <= 0 || bh <= 0 )
+					continue;
+				int global_error = reference.computeError(image, 0, bx, by, bw, bh, global_x, global_y);
+				if( best_error[indx] < accept_ratio_c * global_error ) {
+					offsets_x[indx] = 2*prev_x[indx];
+					offsets_y[indx] = 2*prev_y[indx];
+					n_moved++;
+				}
+			}
+		}
+		if( n_moved > 0 ) {
+			offsets_x = medianFilter(offsets_x, width, height);
+			offsets_y = medianFilter(offsets_y, width, height);
+		}
+		TileAlignment tile_alignment = new TileAlignment(width, height, offsets_x, offsets_y, global_offset_x, global_offset_y);
+		if( MyDebug.LOG ) {
+			Log.d(TAG, "tiles moved from global offset: " + n_moved + " of " + (width*height));
+			Log.d(TAG, "tiles moved after median filter: " + tile_alignment.countMoved());
+			Log.d(TAG, "time for tile alignment: " + (System.currentTimeMillis() - time_s));
+		}
+		return tile_alignment;
+	}
+
+	/** Returns the median of each 3x3 neighbourhood of values (or the part of it that's inside the
+	 *  array, at the edges).
+	 */
+	private static int [] medianFilter(int [] values, int width, int height) {
+		int [] result = new int[width*height];
+		int [] neighbours = new int[9];
+		for(int ty=0;ty<height;ty++) {
+			for(int tx=0;tx<width;tx++) {
+				int n_neighbours = 0;
+				for(int dy=Math.max(ty-1, 0);dy<=Math.min(ty+1, height-1);dy++) {
+					for(int dx=Math.max(tx-1, 0);dx<=Math.min(tx+1, width-1);dx++) {
+						neighbours[n_neighbours++] = values[dy*width+dx];
+					}
+				}
+				Arrays.sort(neighbours, 0, n_neighbours);
+				result[ty*width+tx] = neighbours[n_neighbours/2];
+			}
+		}
+		return result;
+	}
+
+	/** Returns the width in tiles.
+	 */
+	public int getWidth() {
+		return width;
+	}
+
+	/** Returns the height in tiles.
+	 */
+	public int getHeight() {
+		return height;
+	}
+
+	/** Returns the x offsets of each tile, of getWidth()*getHeight() values. The caller must not
+	 *  modify the array.
+	 */
+	public int [] getOffsetsX() {
+		return offsets_x;
+	}
+
+	/** Returns the y offsets of each tile, of getWidth()*getHeight() values. The caller must not
+	 *  modify the array.
+	 */
+	public int [] getOffsetsY() {
+		return offsets_y;
+	}
+
+	public int getOffsetX(int tile_x, int tile_y) {
+		return offsets_x[tile_y*width+tile_x];
+	}
+
+	public int getOffsetY(int tile_x, int tile_y) {
+		return offsets_y[tile_y*width+tile_x];
+	}
+
+	/** Returns the number of tiles whose offset differs from the global offset.
+	 */
+	public int countMoved() {
+		int count = 0;
+		for(int i=0;i<offsets_x.length;i++) {
+			if( offsets_x[i] != global_offset_x || offsets_y[i] != global_offset_y )
+				count++;
+		}
+		return count;
+	}
+
+	/** Returns the x offset for the pixel (x, y), interpolated between the centres of the tiles, so
+	 *  that there aren't visible seams at the tile boundaries. See tile_offset() in process_avg.rs.
+	 */
+	public int getPixelOffsetX(int x, int y) {
+		return interpolate(offsets_x, x, y);
+	}
+
+	/** As getPixelOffsetX(), but for the y offset.
+	 */
+	public int getPixelOffsetY(int x, int y) {
+		return interpolate(offsets_y, x, y);
+	}
+
+	private int interpolate(int [] offsets, int x, int y) {
+		float fx = (x + 0.5f) / tile_size_c - 0.5f;
+		float fy = (y + 0.5f) / tile_size_c - 0.5f;
+		fx = Math.max(0.0f, Math.min(fx, width-1));
+		fy = Math.max(0.0f, Math.min(fy, height-1));
+		int x0 = (int)fx;
+		int y0 = (int)fy;
+		int x1 = Math.min(x0+1, width-1);
+		int y1 = Math.min(y0+1, height-1);
+		float alpha_x = fx - x0;
+		float alpha_y = fy - y0;
+		float m0 = (1.0f-alpha_x) * offsets[y0*width+x0] + alpha_x * offsets[y0*width+x1];
+		float m1 = (1.0f-alpha_x) * offsets[y1*width+x0] + alpha_x * offsets[y1*width+x1];
+		return Math.round((1.0f-alpha_y) * m0 + alpha_y * m1);
+	}
+}
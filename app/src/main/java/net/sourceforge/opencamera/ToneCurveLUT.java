@@ -0,0 +1,254 @@
+package net.sourceforge.opencamera;
+
+import android.util.Log;
+
+/** A lookup table for the tonemapping curves in process_hdr.rs, and the gain/gamma brightening
+ *  curve in avg_brighten.rs. These only depend on a few parameters that are fixed for a given photo,
+ *  so HDRProcessor creates a table once per photo, and the backends then interpolate from the table
+ *  rather than evaluating exp(), pow() or divisions for every pixel.
+ *  The table is sampled at table_size+1 evenly spaced values from 0 to getMaxValue(), and is linearly
+ *  interpolated. Values outside this range (which shouldn't happen often, if at all) are evaluated
+ *  directly, see evaluate().
+ *  The curve is either applied to each channel separately (for the exponential, filmic, ACES and
+ *  clamp tonemapping), or gives a scale factor for all channels as a function of the maximum channel
+ *  value (for Reinhard tonemapping, and for brightening), see isScaleByMax().
+ */
+public class ToneCurveLUT {
+	private static final String TAG = "ToneCurveLUT";
+
+	static final int tonemap_size_c = 4096;
+	static final int brighten_size_c = 1024;
+
+	private enum Curve {
+		TONEMAP_CLAMP,
+		TONEMAP_EXPONENTIAL,
+		TONEMAP_REINHARD,
+		TONEMAP_FILMIC,
+		TONEMAP_ACES,
+		BRIGHTEN
+	}
+
+	private final Curve curve;
+	private final HDRProcessor.TonemappingAlgorithm tonemapping_algorithm; // null for BRIGHTEN
+	private final float [] table;
+	private final float max_value;
+	private final float index_scale; // table index per unit of input value
+
+	// parameters for tonemapping
+	private float tonemap_scale;
+	private float linear_scale;
+	private float W;
+	private float white_scale; // for filmic
+
+	// parameters for brightening
+	private float gain_A;
+	private float gain_B;
+	private float gamma;
+	private float low_x;
+	private float mid_x;
+	private float max_x;
+
+	private ToneCurveLUT(Curve curve, HDRProcessor.TonemappingAlgorithm tonemapping_algorithm, int table_size, float max_value) {
+		this.curve = curve;
+		this.tonemapping_algorithm = tonemapping_algorithm;
+		this.table = new float[table_size+1];
+		this.max_value = max_value;
+		this.index_scale = table_size / max_value;
+	}
+
+	/** Creates a table for HDR tonemapping, see tonemap() in process_hdr.rs.
+	 * @param max_value The maximum HDR value expected, e.g., the maximum possible value from the
+	 *                  response functions. Larger values are still supported, but are evaluated
+	 *                  directly rather than from the table.
+	 */
+	public static ToneCurveLUT createTonemap(HDRProcessor.TonemappingAlgorithm tonemapping_algorithm, float tonemap_scale, float linear_scale, float W, float max_value) {
+		Curve curve;
+		switch( tonemapping_algorithm ) {
+			case TONEMAPALGORITHM_CLAMP:
+				curve = Curve.TONEMAP_CLAMP;
+				break;
+			case TONEMAPALGORITHM_EXPONENTIAL:
+				curve = Curve.TONEMAP_EXPONENTIAL;
+				break;
+			case TONEMAPALGORITHM_FILMIC:
+				curve = Curve.TONEMAP_FILMIC;
+				break;
+			case TONEMAPALGORITHM_ACES:
+				curve = Curve.TONEMAP_ACES;
+				break;
+			case TONEMAPALGORITHM_REINHARD:
+			default:
+				curve = Curve.TONEMAP_REINHARD;
+				break;
+		}
+		ToneCurveLUT lut = new ToneCurveLUT(curve, tonemapping_algorithm, tonemap_size_c, Math.max(max_value, 255.0f));
+		lut.tonemap_scale = tonemap_scale;
+		lut.linear_scale = linear_scale;
+		lut.W = W;
+		lut.white_scale = 255.0f / Uncharted2Tonemap(W);
+		lut.fillTable();
+		if( MyDebug.LOG )
+			Log.d(TAG, "created tonemap table for " + tonemapping_algorithm + " up to " + lut.max_value);
+		return lut;
+	}
+
+	/** Creates a table for the piecewise gain/gamma brightening in avg_brighten.rs, for values
+	 *  from 0 to 255. See HDRProcessor.avgBrighten() for the parameters.
+	 */
+	public static ToneCurveLUT createBrighten(float gain_A, float gain_B, float gamma, float low_x, float mid_x, float max_x) {
+		ToneCurveLUT lut = new ToneCurveLUT(Curve.BRIGHTEN, null, brighten_size_c, 255.0f);
+		lut.gain_A = gain_A;
+		lut.gain_B = gain_B;
+		lut.gamma = gamma;
+		lut.low_x = low_x;
+		lut.mid_x = mid_x;
+		lut.max_x = max_x;
+		lut.fillTable();
+		if( MyDebug.LOG )
+			Log.d(TAG, "created brighten table");
+		return lut;
+	}
+
+	private void fillTable() {
+		int table_size = table.length-1;
+		for(int i=0;i<=table_size;i++) {
+			table[i] = evaluate((i * max_value) / table_size);
+		}
+	}
+
+	private static float Uncharted2Tonemap(float x) {
+		final float A = 0.15f;
+		final float B = 0.50f;
+		final float C = 0.10f;
+		final float D = 0.20f;
+		final float E = 0.02f;
+		final float F = 0.30f;
+		return ((x*(A*x+C*B)+D*E)/(x*(A*x+B)+D*F))-E/F;
+	}
+
+	/** Evaluates the curve directly, without using the table. For curves where isScaleByMax() is
+	 *  true, this returns the scale factor for the maximum channel value x; otherwise it returns the
+	 *  output channel value (before clamping) for the input channel value x.
+	 */
+	public float evaluate(float x) {
+		switch( curve ) {
+			case TONEMAP_CLAMP:
+			default:
+				return x;
+			case TONEMAP_EXPONENTIAL:
+				return linear_scale * 255.0f * (1.0f - (float)Math.exp( - HDRProcessor.tonemap_exposure_c * x / 255.0f ));
+			case TONEMAP_REINHARD:
+				// shouldn't need to clamp - linear_scale should be such that values don't map to more than 255
+				return linear_scale * 255.0f / ( tonemap_scale + x );
+			case TONEMAP_FILMIC:
+				return white_scale * Uncharted2Tonemap(HDRProcessor.filmic_exposure_bias_c * x);
+			case TONEMAP_ACES:
+			{
+				final float a = 2.51f;
+				final float b = 0.03f;
+				final float c = 2.43f;
+				final float d = 0.59f;
+				final float e = 0.14f;
+				x /= 255.0f;
+				return 255.0f * (x*(a*x+b))/(x*(c*x+d)+e);
+			}
+			case BRIGHTEN:
+				if( x <= low_x ) {
+					// don't scale
+					return 1.0f;
+				}
+				else if( x <= mid_x ) {
+					return gain_A + gain_B/x;
+				}
+				else {
+					float new_value = (float)Math.pow(x/max_x, gamma) * 255.0f;
+					return new_value / x;
+				}
+		}
+	}
+
+	/** As evaluate(), but interpolates from the table where possible.
+	 */
+	public float lookup(float x) {
+		float pos = x * index_scale;
+		if( pos >= 0.0f && pos < table.length-1 ) {
+			int indx = (int)pos;
+			float alpha = pos - indx;
+			return table[indx] + alpha * (table[indx+1] - table[indx]);
+		}
+		return evaluate(x);
+	}
+
+	/** Applies the curve to a colour, returning an ARGB value with alpha 255.
+	 */
+	public int apply(float r, float g, float b) {
+		if( isScaleByMax() ) {
+			float value = Math.max(Math.max(r, g), b);
+			float scale = lookup(value);
+			r *= scale;
+			g *= scale;
+			b *= scale;
+		}
+		else {
+			r = lookup(r);
+			g = lookup(g);
+			b = lookup(b);
+		}
+		return 0xFF000000 | (clampToByte(r+0.5f) << 16) | (clampToByte(g+0.5f) << 8) | clampToByte(b+0.5f);
+	}
+
+	private static int clampToByte(float value) {
+		if( value <= 0.0f )
+			return 0;
+		if( value >= 255.0f )
+			return 255;
+		return (int)value;
+	}
+
+	/** Whether the curve gives a scale factor for all channels as a function of the maximum
+	 *  channel value, rather than being applied to each channel.
+	 */
+	public boolean isScaleByMax() {
+		return curve == Curve.TONEMAP_REINHARD || curve == Curve.BRIGHTEN;
+	}
+
+	/** Returns the tonemapping algorithm, or null if this isn't a tonemapping curve.
+	 */
+	public HDRProcessor.TonemappingAlgorithm getTonemappingAlgorithm() {
+		return tonemapping_algorithm;
+	}
+
+	/** Returns the table, of getTableSize()+1 entries. The caller must not modify the table.
+	 */
+	public float [] getTable() {
+		return table;
+	}
+
+	public int getTableSize() {
+		return table.length-1;
+	}
+
+	/** Returns the largest value covered by the table.
+	 */
+	public float getMaxValue() {
+		return max_value;
+	}
+
+	/** Returns the scale to convert an input value to a (fractional) table index.
+	 */
+	public float getIndexScale() {
+		return index_scale;
+	}
+
+	public float getTonemapScale() {
+		return tonemap_scale;
+	}
+
+	public float getLinearScale() {
+		return linear_scale;
+	}
+
+	public float getW() {
+		return W;
+	}
+}
@@ -14,12 +14,22 @@ void setBlackLevel(float value) {
     white_level = 255.0f / (255.0f - black_level);
 }
 
+int half_input = 0; // whether bitmap is a half precision image, see HDRBackend.createHalfPrecisionImage()
+static const float half_scale = 256.0f; // must match HDRBackend.half_scale_c
+
+static float3 read_pixel(uint32_t x, uint32_t y) {
+    if( half_input )
+        return convert_float3(rsGetElementAt_ushort3(bitmap, x, y))/half_scale;
+    return rsGetElementAt_float3(bitmap, x, y);
+}
+
 float gain;
-float gain_A, gain_B; // see comments below
-float gamma;
-float low_x;
-float mid_x;
-float max_x;
+
+// lookup table for the piecewise gain/gamma brightening, see ToneCurveLUT: brighten_lut_size+1
+// scale factors, for values from 0 to 255
+rs_allocation brighten_lut;
+float brighten_lut_scale;
+int brighten_lut_size;
 
 //float tonemap_scale;
 //float linear_scale;
@@ -51,12 +61,16 @@ uchar4 __attribute__((kernel)) avg_brighten_f(float3 rgb, uint32_t x, uint32_t y
         // performs better than spatial filter; reduces black/white speckles in: testAvg23,
         // testAvg28, testAvg31, testAvg33
         // note that one has to typically zoom to 400% to see the improvement
-        float4 p0 = rsGetElementAt_float4(bitmap, x, y-1);
-        float4 p1 = rsGetElementAt_float4(bitmap, x-1, y);
+        float4 p0 = 0.0;
+        p0.rgb = read_pixel(x, y-1);
+        float4 p1 = 0.0;
+        p1.rgb = read_pixel(x-1, y);
         float4 p2 = 0.0;
         p2.rgb = rgb;
-        float4 p3 = rsGetElementAt_float4(bitmap, x+1, y);
-        float4 p4 = rsGetElementAt_float4(bitmap, x, y+1);
+        float4 p3 = 0.0;
+        p3.rgb = read_pixel(x+1, y);
+        float4 p4 = 0.0;
+        p4.rgb = read_pixel(x, y+1);
 
         // use alpha channel to store luminance
         p0.a = max(max(p0.r, p0.g), p0.b);
@@ -149,7 +163,7 @@ uchar4 __attribute__((kernel)) avg_brighten_f(float3 rgb, uint32_t x, uint32_t y
             for(int cx=sx;cx<=ex;cx++) {
                 //if( cx >= 0 && cx < width && cy >= 0 && cy < height )
                 {
-                    float3 this_pixel = rsGetElementAt_float3(bitmap, cx, cy);
+                    float3 this_pixel = read_pixel(cx, cy);
                     //colour_sum += this_pixel;
                     {
                         /*float this_value = fmax(this_pixel.r, this_pixel.g);
@@ -221,7 +235,7 @@ uchar4 __attribute__((kernel)) avg_brighten_f(float3 rgb, uint32_t x, uint32_t y
             for(int cx=sx;cx<=ex;cx++) {
                 //if( cx >= 0 && cx < width && cy >= 0 && cy < height )
                 {
-                    float3 this_pixel = rsGetElementAt_float3(bitmap, cx, cy);
+                    float3 this_pixel = read_pixel(cx, cy);
                     {
                         float this_value = fmax(this_pixel.r, this_pixel.g);
                         this_value = fmax(this_value, this_pixel.b);
@@ -267,16 +281,16 @@ uchar4 __attribute__((kernel)) avg_brighten_f(float3 rgb, uint32_t x, uint32_t y
         // sharpen
         // helps: testAvg12, testAvg16, testAvg23, testAvg30, testAvg32
         if( x >= 1 && x < width-1 && y >= 1 && y < height-1 ) {
-            float3 p00 = rsGetElementAt_float3(bitmap, x-1, y-1);
-            float3 p10 = rsGetElementAt_float3(bitmap, x, y-1);
-            float3 p20 = rsGetElementAt_float3(bitmap, x+1, y-1);
+            float3 p00 = read_pixel(x-1, y-1);
+            float3 p10 = read_pixel(x, y-1);
+            float3 p20 = read_pixel(x+1, y-1);
 
-            float3 p01 = rsGetElementAt_float3(bitmap, x-1, y);
-            float3 p21 = rsGetElementAt_float3(bitmap, x+1, y);
+            float3 p01 = read_pixel(x-1, y);
+            float3 p21 = read_pixel(x+1, y);
 
-            float3 p02 = rsGetElementAt_float3(bitmap, x-1, y+1);
-            float3 p12 = rsGetElementAt_float3(bitmap, x, y+1);
-            float3 p22 = rsGetElementAt_float3(bitmap, x+1, y+1);
+            float3 p02 = read_pixel(x-1, y+1);
+            float3 p12 = read_pixel(x, y+1);
+            float3 p22 = read_pixel(x+1, y+1);
 
             float3 blurred = (p00 + p10 + p20 + p01 + 8.0f*rgb + p21 + p02 + p12 + p22)/16.0f;
             float3 shift = 1.5f * (rgb-blurred);
@@ -354,42 +368,20 @@ uchar4 __attribute__((kernel)) avg_brighten_f(float3 rgb, uint32_t x, uint32_t y
     */
 
     // apply piecewise function of gain vs gamma
+    // this was computed per pixel with gain_A + gain_B/value for values from low_x to mid_x, and
+    // powr(value/max_x, gamma) * 255.0f / value above mid_x; for performance, we now interpolate the
+    // scale from a lookup table (see ToneCurveLUT.evaluate())
     float3 hdr = rgb;
     float value = fmax(hdr.r, hdr.g);
     value = fmax(value, hdr.b);
-    //hdr *= gain;
-    //hdr *= 2.0f;
-    //const float alpha = 0.7f;
-    //const saturation_level = 10;
-    if( value <= low_x ) {
-        // don't scale
-    }
-    else if( value <= mid_x ) {
-        //float alpha = (value-low_x)/(mid_x-low_x);
-        //float new_value = (1.0-alpha)*low_x + alpha*gain*mid_x;
-        // gain_A and gain_B should be set so that new_value meets the commented out code above
-        // This code is critical for performance!
-        //float new_value = gain_A * value + gain_B;
-        //hdr *= new_value/value;
-
-        hdr *= (gain_A + gain_B/value);
-
-        //float new_value = gain_A * value + gain_B;
-        //float shift = new_value - value;
-        //hdr += shift;
-        //hdr = (1.0f-alpha)*(hdr+shift) + alpha*hdr*new_value/value;
-        //hdr = (hdr+saturation_level)*new_value/(value+saturation_level);
-    }
-    else {
-        float new_value = powr(value/max_x, gamma) * 255.0f;
-
-        float gamma_scale = new_value / value;
-        hdr *= gamma_scale;
-
-        //float shift = new_value - value;
-        //hdr += shift;
-        //hdr = (1.0f-alpha)*(hdr+shift) + alpha*hdr*new_value/value;
-        //hdr = (hdr+saturation_level)*new_value/(value+saturation_level);
+    {
+        // value is in the range 0 to 255, as rgb is clamped above
+        float pos = value * brighten_lut_scale;
+        int indx = min((int)pos, brighten_lut_size-1);
+        float alpha = pos - indx;
+        float scale0 = rsGetElementAt_float(brighten_lut, indx);
+        float scale1 = rsGetElementAt_float(brighten_lut, indx+1);
+        hdr *= scale0 + alpha * (scale1 - scale0);
     }
 
     // apply gamma correction
@@ -401,3 +393,7 @@ uchar4 __attribute__((kernel)) avg_brighten_f(float3 rgb, uint32_t x, uint32_t y
 
     return out;
 }
+
+uchar4 __attribute__((kernel)) avg_brighten_h(ushort3 rgb_h, uint32_t x, uint32_t y) {
+    return avg_brighten_f(convert_float3(rgb_h)/half_scale, x, y);
+}
@@ -47,3 +47,10 @@ void __attribute__((kernel)) create_greyscale_f(float3 in_f, uint32_t x, uint32_
 
     rsSetElementAt_uchar(out_bitmap, value, x - start_x, y - start_y);
 }
+
+// for half precision images, see HDRBackend.createHalfPrecisionImage()
+static const float half_scale = 256.0f; // must match HDRBackend.half_scale_c
+
+void __attribute__((kernel)) create_greyscale_h(ushort3 in_h, uint32_t x, uint32_t y) {
+    create_greyscale_f(convert_float3(in_h)/half_scale, x, y);
+}
@@ -2,7 +2,9 @@
 #pragma rs java_package_name(net.sourceforge.opencamera)
 #pragma rs_fp_relaxed
 
-rs_allocation c_histogram;
+rs_allocation c_histogram; // for the global histogram equalisation below, which is disabled
+// the equalised value for each tile and value, see HDRProcessor.computeCLAHE()
+rs_allocation equal_values;
 
 float hdr_alpha = 0.5f; // 0.0 means no change, 1.0 means fully equalise
 
@@ -37,25 +39,22 @@ float hdr_alpha = 0.5f; // 0.0 means no change, 1.0 means fully equalise
 // Local histogram equalisation:
 
 int n_tiles = 0;
+// the size of the full image that the histograms were computed for, and the position of the image we're adjusting within it
 int width = 0;
 int height = 0;
+int origin_x = 0;
+int origin_y = 0;
 
 static int getEqualValue(int histogram_offset, int value) {
-	int cdf_v = rsGetElementAt_int(c_histogram, histogram_offset+value);
-	int cdf_0 = rsGetElementAt_int(c_histogram, histogram_offset);
-	int n_pixels = rsGetElementAt_int(c_histogram, histogram_offset+255);
-	float num = (float)(cdf_v - cdf_0);
-	float den = (float)(n_pixels - cdf_0);
-	int equal_value = (int)( 255.0f * (num/den) ); // value that we should choose to fully equalise the histogram
-	return equal_value;
+	return rsGetElementAt_uchar(equal_values, histogram_offset+value);
 }
 
 uchar4 __attribute__((kernel)) histogram_adjust(uchar4 in, uint32_t x, uint32_t y) {
 	uchar value = max(in.r, in.g);
 	value = max(value, in.b);
 
-	float tx = ((float)x*n_tiles)/(float)width - 0.5f;
-	float ty = ((float)y*n_tiles)/(float)height - 0.5f;
+	float tx = ((float)(x+origin_x)*n_tiles)/(float)width - 0.5f;
+	float ty = ((float)(y+origin_y)*n_tiles)/(float)height - 0.5f;
 	
 	int ix = (int)floor(tx);
 	int iy = (int)floor(ty);
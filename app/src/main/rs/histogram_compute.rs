@@ -48,3 +48,32 @@ void __attribute__((kernel)) histogram_compute_avg_f(float3 in_f, uint32_t x, ui
 
 	rsAtomicInc(&histogram[value]);
 }
+
+// for half precision images, see HDRBackend.createHalfPrecisionImage()
+static const float half_scale = 256.0f; // must match HDRBackend.half_scale_c
+
+void __attribute__((kernel)) histogram_compute_h(ushort3 in_h, uint32_t x, uint32_t y) {
+    histogram_compute_f(convert_float3(in_h)/half_scale, x, y);
+}
+
+void __attribute__((kernel)) histogram_compute_avg_h(ushort3 in_h, uint32_t x, uint32_t y) {
+    histogram_compute_avg_f(convert_float3(in_h)/half_scale, x, y);
+}
+
+// for computing the histograms of a grid of tiles in one pass, see HDRBackend.computeTileHistograms()
+
+int32_t *tile_histograms;
+int32_t *tile_x; // the tile column for each x coordinate, or -1 to skip
+int32_t *tile_y; // the tile row for each y coordinate, or -1 to skip
+int n_tiles = 0;
+
+void __attribute__((kernel)) histogram_compute_tiles(uchar4 in, uint32_t x, uint32_t y) {
+	int i = tile_x[x];
+	int j = tile_y[y];
+	if( i < 0 || j < 0 )
+		return;
+	uchar value = max(in.r, in.g);
+	value = max(value, in.b);
+
+	rsAtomicInc(&tile_histograms[256*(i*n_tiles+j)+value]);
+}
@@ -14,6 +14,50 @@ float avg_factor = 1.0f;
 float wiener_C = 1024.0f;
 float wiener_C_cutoff = 1024.0f;
 
+// per-tile offsets for bitmap_new, see TileAlignment: an int per tile of tile_size pixels; if
+// use_tile_offsets is set, these are used instead of offset_x_new/offset_y_new
+rs_allocation tile_offsets_x;
+rs_allocation tile_offsets_y;
+int use_tile_offsets = 0;
+int tile_size = 32;
+
+// if the allocations hold regions of the full images, see HDRBackend.processAvg(): pixel (x, y) of the average is
+// pixel (x+origin_x, y+origin_y) of the full average, and bitmap_new has top left corner (new_origin_x, new_origin_y)
+// of the full new image
+int origin_x = 0, origin_y = 0;
+int new_origin_x = 0, new_origin_y = 0;
+
+// the number of pixels of each row that bitmap_new contributed to
+int32_t *merged_count;
+// the sum of the squared differences (rounded to integers) over the pixels of each row that bitmap_new contributed to
+int32_t *diff_sum;
+
+/* Returns the offset of bitmap_new for the pixel, interpolated between the centres of the tiles so that
+ * there aren't seams. See TileAlignment.getPixelOffsetX().
+ */
+static int2 tile_offset(uint32_t x, uint32_t y) {
+    int width = rsAllocationGetDimX(tile_offsets_x);
+    int height = rsAllocationGetDimY(tile_offsets_x);
+    float fx = (x + 0.5f) / tile_size - 0.5f;
+    float fy = (y + 0.5f) / tile_size - 0.5f;
+    fx = clamp(fx, 0.0f, (float)(width-1));
+    fy = clamp(fy, 0.0f, (float)(height-1));
+    int x0 = (int)fx;
+    int y0 = (int)fy;
+    int x1 = min(x0+1, width-1);
+    int y1 = min(y0+1, height-1);
+    float alpha_x = fx - x0;
+    float alpha_y = fy - y0;
+    float ox0 = mix((float)rsGetElementAt_int(tile_offsets_x, x0, y0), (float)rsGetElementAt_int(tile_offsets_x, x1, y0), alpha_x);
+    float ox1 = mix((float)rsGetElementAt_int(tile_offsets_x, x0, y1), (float)rsGetElementAt_int(tile_offsets_x, x1, y1), alpha_x);
+    float oy0 = mix((float)rsGetElementAt_int(tile_offsets_y, x0, y0), (float)rsGetElementAt_int(tile_offsets_y, x1, y0), alpha_x);
+    float oy1 = mix((float)rsGetElementAt_int(tile_offsets_y, x0, y1), (float)rsGetElementAt_int(tile_offsets_y, x1, y1), alpha_x);
+    int2 offset;
+    offset.x = (int)round(mix(ox0, ox1, alpha_y));
+    offset.y = (int)round(mix(oy0, oy1, alpha_y));
+    return offset;
+}
+
 float __attribute__((kernel)) compute_diff(uchar4 pixel_avg, uint32_t x, uint32_t y) {
     int32_t ix = x;
     int32_t iy = y;
@@ -36,9 +80,18 @@ float3 __attribute__((kernel)) avg_f(float3 pixel_avg_f, uint32_t x, uint32_t y)
     int32_t ix = x;
     int32_t iy = y;
     uchar4 pixel_new;
+    int32_t off_x = offset_x_new;
+    int32_t off_y = offset_y_new;
+    if( use_tile_offsets ) {
+        int2 offset = tile_offset(x+origin_x, y+origin_y);
+        off_x = offset.x;
+        off_y = offset.y;
+    }
+    off_x += origin_x - new_origin_x;
+    off_y += origin_y - new_origin_y;
 
-	if( ix+offset_x_new >= 0 && iy+offset_y_new >= 0 && ix+offset_x_new < rsAllocationGetDimX(bitmap_new) && iy+offset_y_new < rsAllocationGetDimY(bitmap_new) ) {
-    	pixel_new = rsGetElementAt_uchar4(bitmap_new, x+offset_x_new, y+offset_y_new);
+	if( ix+off_x >= 0 && iy+off_y >= 0 && ix+off_x < rsAllocationGetDimX(bitmap_new) && iy+off_y < rsAllocationGetDimY(bitmap_new) ) {
+    	pixel_new = rsGetElementAt_uchar4(bitmap_new, ix+off_x, iy+off_y);
 	}
 	else {
 	    return pixel_avg_f;
@@ -110,11 +163,13 @@ float3 __attribute__((kernel)) avg_f(float3 pixel_avg_f, uint32_t x, uint32_t y)
             // reduces ghosting in: testAvg13, testAvg25, testAvg26, testAvg29, testAvg31
             return pixel_avg_f;
         }
+        rsAtomicAdd(&diff_sum[y], (int32_t)(L+0.5f));
         float weight = L/(L+wiener_C);
         pixel_new_f = weight * pixel_avg_f + (1.0-weight) * pixel_new_f;
     }
 
     pixel_avg_f = (avg_factor*pixel_avg_f + pixel_new_f)/(avg_factor+1.0f);
+    rsAtomicInc(&merged_count[y]);
 
 	/*uchar4 out;
     out.r = (uchar)clamp(pixel_avg_f.r+0.5f, 0.0f, 255.0f);
@@ -131,6 +186,23 @@ float3 __attribute__((kernel)) avg(uchar4 pixel_avg, uint32_t x, uint32_t y) {
     return avg_f(pixel_avg_f, x, y);
 }
 
+// for half precision images, see HDRBackend.createHalfPrecisionImage(): 16 bit fixed point values
+static const float half_scale = 256.0f; // must match HDRBackend.half_scale_c
+
+static ushort3 to_half(float3 value) {
+    return convert_ushort3(clamp(value*half_scale + 0.5f, 0.0f, 65535.0f));
+}
+
+ushort3 __attribute__((kernel)) avg_h(ushort3 pixel_avg_h, uint32_t x, uint32_t y) {
+    float3 pixel_avg_f = convert_float3(pixel_avg_h)/half_scale;
+    return to_half(avg_f(pixel_avg_f, x, y));
+}
+
+ushort3 __attribute__((kernel)) avg_to_h(uchar4 pixel_avg, uint32_t x, uint32_t y) {
+    float3 pixel_avg_f = convert_float3(pixel_avg.rgb);
+    return to_half(avg_f(pixel_avg_f, x, y));
+}
+
 /*float3 __attribute__((kernel)) convert_to_f(uchar4 pixel_avg, uint32_t x, uint32_t y) {
     return convert_float3(pixel_avg.rgb);
 }*/
@@ -56,6 +56,12 @@ float W = 11.2f;
 // for various:
 float linear_scale = 1.0f;
 
+// lookup table for the tonemapping curve, see ToneCurveLUT: tonemap_lut_size+1 values, for HDR
+// values from 0 to tonemap_lut_size/tonemap_lut_scale
+rs_allocation tonemap_lut;
+float tonemap_lut_scale;
+int tonemap_lut_size;
+
 static float Uncharted2Tonemap(float x) {
 	const float A = 0.15f;
 	const float B = 0.50f;
@@ -66,7 +72,9 @@ static float Uncharted2Tonemap(float x) {
 	return ((x*(A*x+C*B)+D*E)/(x*(A*x+B)+D*F))-E/F;
 }
 
-static uchar4 tonemap(float3 hdr) {
+/* Evaluates the tonemapping curve directly, used for values outside of the lookup table.
+ */
+static uchar4 tonemap_direct(float3 hdr) {
 	// tonemap
 	uchar4 out;
     switch( tonemap_algorithm )
@@ -171,6 +179,74 @@ static uchar4 tonemap(float3 hdr) {
     return out;
 }
 
+static float lookup_tonemap(float pos) {
+    int indx = (int)pos;
+    float alpha = pos - indx;
+    float v0 = rsGetElementAt_float(tonemap_lut, indx);
+    float v1 = rsGetElementAt_float(tonemap_lut, indx+1);
+    return v0 + alpha * (v1 - v0);
+}
+
+/* Tonemaps using the lookup table, which gives the same results as tonemap_direct(), but avoids
+ * computing exp() or divisions for every pixel.
+ */
+static uchar4 tonemap(float3 hdr) {
+    float value = fmax(hdr.r, hdr.g);
+    value = fmax(value, hdr.b);
+    float min_value = fmin(hdr.r, hdr.g);
+    min_value = fmin(min_value, hdr.b);
+    float pos = value * tonemap_lut_scale;
+    if( min_value < 0.0f || pos >= tonemap_lut_size ) {
+        // outside of the lookup table
+        return tonemap_direct(hdr);
+    }
+
+    float3 out_f;
+    if( tonemap_algorithm == tonemap_algorithm_reinhard_c ) {
+        // for Reinhard, the table holds the scale as a function of the maximum of the rgb values
+        out_f = lookup_tonemap(pos) * hdr;
+    }
+    else {
+        out_f.r = lookup_tonemap(hdr.r * tonemap_lut_scale);
+        out_f.g = lookup_tonemap(hdr.g * tonemap_lut_scale);
+        out_f.b = lookup_tonemap(hdr.b * tonemap_lut_scale);
+    }
+
+	uchar4 out;
+    out.rgb = convert_uchar3(clamp(out_f+0.5f, 0.f, 255.f));
+    out.a = 255;
+    return out;
+}
+
+// motion mask for deghosting, see MotionMask: a uchar per tile of motion_mask_tile_size pixels, 1 for
+// tiles that moved relative to the base image; motion_mask_origin_x/y give the position of this image
+// (which may be a tile of the full image) in the full image
+rs_allocation motion_mask;
+int use_motion_mask = 0;
+int motion_mask_tile_size = 32;
+int motion_mask_origin_x = 0, motion_mask_origin_y = 0;
+
+/* Returns how much the pixel should fall back to the base image, from 0 to 1, interpolated between the
+ * centres of the tiles so that there aren't seams. See MotionMask.getWeight().
+ */
+static float motion_weight(uint32_t x, uint32_t y) {
+    int width = rsAllocationGetDimX(motion_mask);
+    int height = rsAllocationGetDimY(motion_mask);
+    float fx = (x + motion_mask_origin_x + 0.5f) / motion_mask_tile_size - 0.5f;
+    float fy = (y + motion_mask_origin_y + 0.5f) / motion_mask_tile_size - 0.5f;
+    fx = clamp(fx, 0.0f, (float)(width-1));
+    fy = clamp(fy, 0.0f, (float)(height-1));
+    int x0 = (int)fx;
+    int y0 = (int)fy;
+    int x1 = min(x0+1, width-1);
+    int y1 = min(y0+1, height-1);
+    float alpha_x = fx - x0;
+    float alpha_y = fy - y0;
+    float m0 = mix((float)rsGetElementAt_uchar(motion_mask, x0, y0), (float)rsGetElementAt_uchar(motion_mask, x1, y0), alpha_x);
+    float m1 = mix((float)rsGetElementAt_uchar(motion_mask, x0, y1), (float)rsGetElementAt_uchar(motion_mask, x1, y1), alpha_x);
+    return mix(m0, m1, alpha_y);
+}
+
 uchar4 __attribute__((kernel)) hdr(uchar4 in, uint32_t x, uint32_t y) {
     int32_t ix = x;
     int32_t iy = y;
@@ -347,6 +423,15 @@ uchar4 __attribute__((kernel)) hdr(uchar4 in, uint32_t x, uint32_t y) {
 
 	hdr /= sum_weight;
 
+    if( use_motion_mask ) {
+        // fall back to the base exposure for moving tiles
+        float m = motion_weight(x, y);
+        if( m > 0.0f ) {
+            float3 base_rgb = parameter_A[mid_indx] * convert_float3(in.rgb) + parameter_B[mid_indx];
+            hdr = mix(hdr, base_rgb, m);
+        }
+    }
+
     uchar4 out = tonemap(hdr);
 	return out;
 }
@@ -592,6 +677,126 @@ uchar4 __attribute__((kernel)) hdr_n(uchar4 in, uint32_t x, uint32_t y) {
 
 	hdr /= sum_weight;
 
+    if( use_motion_mask ) {
+        // fall back to the base exposure for moving tiles - for an even number of bitmaps, the base
+        // image is the brighter of the middle pair
+        float m = motion_weight(x, y);
+        if( m > 0.0f ) {
+            int base_indx = even ? mid_indx+1 : mid_indx;
+            float3 base_rgb = parameter_A[base_indx] * convert_float3(in.rgb) + parameter_B[base_indx];
+            hdr = mix(hdr, base_rgb, m);
+        }
+    }
+
     uchar4 out = tonemap(hdr);
 	return out;
 }
+
+// for merging images one at a time into an accumulator, see accumulate_hdr() and tonemap_accumulated()
+
+rs_allocation accumulator; // float4 of the weighted rgb sum, and the sum of weights
+rs_allocation bitmap_new; // the image being added
+int offset_x_new = 0, offset_y_new = 0;
+float parameter_A_new = 1.0f;
+float parameter_B_new = 0.0f;
+float parameter_A_base = 1.0f;
+float parameter_B_base = 0.0f;
+
+const int exposure_central_c = 0;
+const int exposure_darker_c = -1;
+const int exposure_brighter_c = 1;
+
+int exposure_g = exposure_central_c;
+int extreme_g = 0; // whether bitmap_new is the darkest or brightest image
+
+static float exposure_weight(float avg) {
+    const float safe_range_c = 96.0f;
+    float diff = fabs( avg - 127.5f );
+    float weight = 1.0f;
+    if( diff > safe_range_c ) {
+        // scaling chosen so that 0 and 255 map to a non-zero weight of 0.01
+        weight = 1.0f - 0.99f * (diff - safe_range_c) / (127.5f - safe_range_c);
+    }
+    return weight;
+}
+
+/* Adds bitmap_new to the accumulator, run over the base image. Central images are added with a weight
+   based on how well exposed they are. Other images follow the algorithm of hdr_n(), but each image only
+   looks at the base image rather than at its neighbours: they're only used where the base image isn't
+   well exposed, and only if they're on the right side of the base exposure. If use_motion_mask is set,
+   the image is also not used for tiles in motion_mask.
+   */
+void __attribute__((kernel)) accumulate_hdr(uchar4 in, uint32_t x, uint32_t y) {
+    int32_t ix = x + offset_x_new;
+    int32_t iy = y + offset_y_new;
+    if( ix < 0 || iy < 0 || ix >= rsAllocationGetDimX(bitmap_new) || iy >= rsAllocationGetDimY(bitmap_new) ) {
+        return;
+    }
+    float3 rgb = convert_float3(rsGetElementAt_uchar4(bitmap_new, ix, iy).rgb);
+    float weight;
+    if( exposure_g == exposure_central_c ) {
+        weight = exposure_weight((rgb.r+rgb.g+rgb.b)/3.0f);
+        rgb = parameter_A_new * rgb + parameter_B_new;
+    }
+    else {
+        float3 base_rgb = convert_float3(in.rgb);
+        float base_avg = (base_rgb.r+base_rgb.g+base_rgb.b)/3.0f;
+        float base_weight = exposure_weight(base_avg);
+        if( base_weight >= 1.0f ) {
+            // base image is well exposed
+            return;
+        }
+        if( exposure_g == exposure_brighter_c ? base_avg > 127.5f : base_avg <= 127.5f ) {
+            // only use brighter images where the base image is dark, and vice versa
+            return;
+        }
+        weight = 1.0f - base_weight;
+        if( !extreme_g ) {
+            weight *= exposure_weight((rgb.r+rgb.g+rgb.b)/3.0f);
+        }
+        rgb = parameter_A_new * rgb + parameter_B_new;
+
+        float value = fmax(rgb.r, rgb.g);
+        value = fmax(value, rgb.b);
+        if( value <= 250.0f ) {
+            // deghosting, see hdr_n()
+            base_rgb = parameter_A_base * base_rgb + parameter_B_base;
+            const float wiener_C_lo = 2000.0f;
+            const float wiener_C_hi = 8000.0f;
+            float wiener_C = wiener_C_lo; // higher value means more HDR but less ghosting
+            float x_value = fabs( value - 127.5f ) - 96.0f;
+            if( x_value > 0.0f ) {
+                const float scale = (wiener_C_hi-wiener_C_lo)/(127.5f-96.0f);
+                wiener_C = wiener_C_lo + x_value*scale;
+            }
+            float3 diff = base_rgb - rgb;
+            float L = dot(diff, diff);
+            float ghost_weight = L/(L+wiener_C);
+            rgb = ghost_weight * base_rgb + (1.0f-ghost_weight) * rgb;
+        }
+    }
+
+    if( use_motion_mask ) {
+        // don't use this image for tiles that moved relative to the base image
+        weight *= 1.0f - motion_weight(x, y);
+    }
+
+    float4 acc = rsGetElementAt_float4(accumulator, x, y);
+    acc.rgb += weight * rgb;
+    acc.a += weight;
+    rsSetElementAt_float4(accumulator, acc, x, y);
+}
+
+uchar4 __attribute__((kernel)) tonemap_accumulated(float4 in) {
+    float sum_weight = in.a;
+    if( sum_weight <= 0.0f ) {
+        // shouldn't happen, as the base image always has a non-zero weight
+        sum_weight = 1.0f;
+    }
+    float3 hdr = in.rgb / sum_weight;
+    return tonemap(hdr);
+}
+
+float4 __attribute__((kernel)) clear_accumulator(uint32_t x, uint32_t y) {
+    return (float4){0.0f, 0.0f, 0.0f, 0.0f};
+}
@@ -2,24 +2,56 @@ package net.sourceforge.opencamera.test;
 
 import android.media.CamcorderProfile;
 
+import net.sourceforge.opencamera.AdaptiveNoiseReduction;
+import net.sourceforge.opencamera.BitmapPool;
 import net.sourceforge.opencamera.CameraController.CameraController;
 import net.sourceforge.opencamera.CameraController.CameraController2;
+import net.sourceforge.opencamera.ExposureFusion;
+import net.sourceforge.opencamera.HDRBackend;
 import net.sourceforge.opencamera.HDRProcessor;
 import net.sourceforge.opencamera.ImageSaver;
+import net.sourceforge.opencamera.JavaHDRBackend;
+import net.sourceforge.opencamera.JpegExifWriter;
+import net.sourceforge.opencamera.JpegTransformer;
 import net.sourceforge.opencamera.LocationSupplier;
+import net.sourceforge.opencamera.MappedAccumulator;
+import net.sourceforge.opencamera.MTBPyramid;
+import net.sourceforge.opencamera.MotionMask;
+import net.sourceforge.opencamera.NoiseReductionSession;
 import net.sourceforge.opencamera.Preview.Preview;
 import net.sourceforge.opencamera.Preview.VideoQualityHandler;
+import net.sourceforge.opencamera.SaveJournal;
+import net.sourceforge.opencamera.SaveMemoryBudget;
+import net.sourceforge.opencamera.SavePipeline;
 import net.sourceforge.opencamera.TextFormatter;
+import net.sourceforge.opencamera.TileAlignment;
+import net.sourceforge.opencamera.ThumbnailDecoder;
+import net.sourceforge.opencamera.ToneCurveLUT;
 import net.sourceforge.opencamera.UI.DrawPreview;
 
 import org.junit.Test;
 
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.Callable;
+
+import javax.imageio.ImageIO;
 
 import static org.junit.Assert.*;
 
@@ -489,6 +521,98 @@ public class UnitTest {
 		assertTrue(ImageSaver.computeQueueSize(512) <= 70);
 	}
 
+	@Test
+	public void testImageSaverMaxDirectJpegs() {
+		Log.d(TAG, "testImageSaverMaxDirectJpegs");
+
+		assertEquals(0, ImageSaver.computeMaxDirectJpegs(64));
+		assertEquals(0, ImageSaver.computeMaxDirectJpegs(128));
+
+		assertTrue(ImageSaver.computeMaxDirectJpegs(256) >= ImageSaver.computeMaxDirectJpegs(128));
+		assertTrue(ImageSaver.computeMaxDirectJpegs(512) >= ImageSaver.computeMaxDirectJpegs(256));
+		// each direct image holds one of the ImageReader's buffers, so shouldn't be too many
+		assertTrue(ImageSaver.computeMaxDirectJpegs(512) <= 8);
+	}
+
+	@Test
+	public void testImageSaverDecodeThreads() {
+		Log.d(TAG, "testImageSaverDecodeThreads");
+
+		// always at least one thread
+		assertEquals(1, ImageSaver.computeDecodeThreads(1, 64));
+		assertEquals(1, ImageSaver.computeDecodeThreads(8, 64));
+		assertEquals(1, ImageSaver.computeDecodeThreads(1, 512));
+
+		// limited by memory
+		assertTrue(ImageSaver.computeDecodeThreads(8, 256) <= 2);
+		assertTrue(ImageSaver.computeDecodeThreads(8, 512) >= ImageSaver.computeDecodeThreads(8, 256));
+		assertTrue(ImageSaver.computeDecodeThreads(8, 512) <= 4);
+		// limited by cores
+		assertEquals(2, ImageSaver.computeDecodeThreads(2, 512));
+	}
+
+	@Test
+	public void testThumbnailSampleSize() {
+		Log.d(TAG, "testThumbnailSampleSize");
+
+		assertEquals(1, ThumbnailDecoder.computeSampleSize(100, 128));
+		assertEquals(1, ThumbnailDecoder.computeSampleSize(128, 128));
+		assertEquals(1, ThumbnailDecoder.computeSampleSize(255, 128));
+		assertEquals(2, ThumbnailDecoder.computeSampleSize(256, 128));
+		assertEquals(16, ThumbnailDecoder.computeSampleSize(4000, 240));
+		assertEquals(32, ThumbnailDecoder.computeSampleSize(4000, 120));
+		assertEquals(1, ThumbnailDecoder.computeSampleSize(4000, 0));
+
+		// 12MP image, 320x240 embedded thumbnail
+		assertTrue(ThumbnailDecoder.canUseEmbedded(320, 240, 4000, 3000, 128));
+		assertTrue(ThumbnailDecoder.canUseEmbedded(320, 240, 4000, 3000, 320));
+		assertFalse(ThumbnailDecoder.canUseEmbedded(320, 240, 4000, 3000, 321));
+		// padded thumbnail for a 16:9 image
+		assertFalse(ThumbnailDecoder.canUseEmbedded(320, 240, 4000, 2250, 128));
+		assertTrue(ThumbnailDecoder.canUseEmbedded(512, 288, 4000, 2250, 128));
+		assertFalse(ThumbnailDecoder.canUseEmbedded(0, 0, 4000, 3000, 128));
+	}
+
+	@Test
+	public void testBitmapPoolMaxBytes() {
+		Log.d(TAG, "testBitmapPoolMaxBytes");
+
+		// no pool on devices that can't do HDR or NR anyway
+		assertEquals(0, BitmapPool.computeMaxBytes(64));
+		assertEquals(0, BitmapPool.computeMaxBytes(128));
+
+		// should hold at least one 16MP ARGB_8888 bitmap on devices that can do NR
+		final long bitmap_16mp = 4L*4608*3456;
+		assertTrue(BitmapPool.computeMaxBytes(512) >= bitmap_16mp);
+		assertTrue(BitmapPool.computeMaxBytes(512) >= BitmapPool.computeMaxBytes(256));
+		// but leave most of the heap for everything else
+		assertTrue(BitmapPool.computeMaxBytes(512) <= 512L*1024*1024/2);
+	}
+
+	@Test
+	public void testHDRProcessorMaxWorkingMemory() {
+		Log.d(TAG, "testHDRProcessorMaxWorkingMemory");
+
+		// working memory for a 3 image HDR photo processed in one go, see HDRProcessor.processHDRCore()
+		final long hdr_16mp = 4L*(3+1)*4608*3456;
+		final long hdr_48mp = 4L*(3+1)*8000*6000;
+		// 16MP should still be processed in one go on devices that can do HDR and NR
+		assertTrue(HDRProcessor.computeMaxWorkingMemory(512) >= hdr_16mp);
+		// but 48MP needs tiles
+		assertTrue(HDRProcessor.computeMaxWorkingMemory(512) < hdr_48mp);
+	}
+
+	@Test
+	public void testHDRProcessorMaxPoolBytes() {
+		Log.d(TAG, "testHDRProcessorMaxPoolBytes");
+
+		// the working copies of the images for a 3 image HDR photo, see HDRProcessor.warmUp()
+		final long hdr_12mp = 4L*3*4000*3000;
+		assertTrue(HDRProcessor.computeMaxPoolBytes(512) >= hdr_12mp);
+		// nothing is kept on devices with a small heap
+		assertEquals(0, HDRProcessor.computeMaxPoolBytes(128));
+	}
+
 	@Test
 	public void testImageSaverRequestCost() {
 		Log.d(TAG, "testImageSaverRequestCost");
@@ -498,6 +622,944 @@ public class UnitTest {
 
 	}
 
+	@Test
+	public void testImageSaverStageWorkers() {
+		Log.d(TAG, "testImageSaverStageWorkers");
+
+		int [] stage_workers = ImageSaver.computeStageWorkers(1, 64);
+		assertEquals(ImageSaver.N_STAGES, stage_workers.length);
+		for(int i=0;i<ImageSaver.N_STAGES;i++) {
+			assertEquals(1, stage_workers[i]);
+		}
+		assertTrue(ImageSaver.computeMaxInFlight(stage_workers) >= 1);
+
+		stage_workers = ImageSaver.computeStageWorkers(8, 512);
+		assertTrue(stage_workers[ImageSaver.STAGE_POST_PROCESS] > 1);
+		assertTrue(stage_workers[ImageSaver.STAGE_ENCODE] > 1);
+		// must always have a single persist worker, to keep images in order
+		assertEquals(1, stage_workers[ImageSaver.STAGE_PERSIST]);
+		assertTrue(ImageSaver.computeMaxInFlight(stage_workers) >= stage_workers[ImageSaver.STAGE_POST_PROCESS]);
+
+		// more memory or cores should never mean fewer workers
+		int [] small_workers = ImageSaver.computeStageWorkers(8, 256);
+		int [] few_cpus_workers = ImageSaver.computeStageWorkers(2, 512);
+		for(int i=0;i<ImageSaver.N_STAGES;i++) {
+			assertTrue(stage_workers[i] >= small_workers[i]);
+			assertTrue(stage_workers[i] >= few_cpus_workers[i]);
+		}
+	}
+
+	/** Tests that items complete in the order they were submitted, even though the middle stage
+	 *  has several workers that finish items out of order.
+	 */
+	@Test
+	public void testSavePipelineOrder() throws InterruptedException {
+		Log.d(TAG, "testSavePipelineOrder");
+
+		final int n_items = 200;
+		final List<Integer> completed = new ArrayList<>();
+		final List<Integer> stage1_order = Collections.synchronizedList(new ArrayList<Integer>());
+		final Random random = new Random(0);
+		final int [] max_concurrent = new int[1];
+		final int [] concurrent = new int[1];
+		List<SavePipeline.Stage<Integer>> stages = new ArrayList<>();
+		stages.add(new SavePipeline.Stage<>("first", new SavePipeline.StageHandler<Integer>() {
+			@Override
+			public void process(Integer item) {
+			}
+		}, 1, 2, false));
+		stages.add(new SavePipeline.Stage<>("slow", new SavePipeline.StageHandler<Integer>() {
+			@Override
+			public void process(Integer item) {
+				synchronized( concurrent ) {
+					concurrent[0]++;
+					max_concurrent[0] = Math.max(max_concurrent[0], concurrent[0]);
+				}
+				int delay;
+				synchronized( random ) {
+					delay = random.nextInt(3);
+				}
+				try {
+					Thread.sleep(delay);
+				}
+				catch(InterruptedException e) {
+					e.printStackTrace();
+				}
+				stage1_order.add(item);
+				synchronized( concurrent ) {
+					concurrent[0]--;
+				}
+			}
+		}, 4, 1, false));
+		stages.add(new SavePipeline.Stage<>("last", new SavePipeline.StageHandler<Integer>() {
+			@Override
+			public void process(Integer item) {
+			}
+		}, 1, 1, true));
+		final int max_in_flight = 6;
+		SavePipeline<Integer> pipeline = new SavePipeline<>("test", stages, max_in_flight, new SavePipeline.CompletionCallback<Integer>() {
+			@Override
+			public void onComplete(Integer item) {
+				synchronized( completed ) {
+					completed.add(item);
+					completed.notifyAll();
+				}
+			}
+		});
+		pipeline.start();
+		for(int i=0;i<n_items;i++) {
+			pipeline.submit(i);
+			assertTrue(pipeline.getNInFlight() <= max_in_flight);
+		}
+		synchronized( completed ) {
+			long time_s = System.currentTimeMillis();
+			while( completed.size() < n_items && System.currentTimeMillis() - time_s < 20000 ) {
+				completed.wait(1000);
+			}
+		}
+		pipeline.shutdown();
+
+		assertEquals(n_items, completed.size());
+		for(int i=0;i<n_items;i++) {
+			assertEquals(i, (int)completed.get(i));
+		}
+		assertEquals(n_items, stage1_order.size());
+		// the slow stage should have processed items in parallel
+		assertTrue(max_concurrent[0] > 1);
+		assertEquals(0, pipeline.getNInFlight());
+	}
+
+	/** Tests that NoiseReductionSession accumulates images in order on a single thread, and skips
+	 *  the remaining images after a failure.
+	 */
+	@Test
+	public void testNoiseReductionSession() throws InterruptedException {
+		Log.d(TAG, "testNoiseReductionSession");
+
+		final int n_images = 8;
+		final List<Integer> accumulated = Collections.synchronizedList(new ArrayList<Integer>());
+		final List<Thread> threads = Collections.synchronizedList(new ArrayList<Thread>());
+		NoiseReductionSession session = new NoiseReductionSession(new NoiseReductionSession.Accumulator() {
+			@Override
+			public boolean accumulate(int index) {
+				threads.add(Thread.currentThread());
+				try {
+					// slower than the images are added, so that the images queue up
+					Thread.sleep(5);
+				}
+				catch(InterruptedException e) {
+					e.printStackTrace();
+				}
+				accumulated.add(index);
+				return true;
+			}
+		});
+		for(int i=0;i<n_images;i++) {
+			assertEquals(i, session.add());
+			Thread.sleep(1);
+		}
+		assertTrue(session.finish());
+		assertEquals(n_images, session.getNAdded());
+		assertEquals(n_images, session.getNAccumulated());
+		assertEquals(n_images, accumulated.size());
+		for(int i=0;i<n_images;i++) {
+			assertEquals(i, (int)accumulated.get(i));
+			assertTrue(threads.get(i) == threads.get(0));
+		}
+		assertTrue(threads.get(0) != Thread.currentThread());
+		// can't add after finishing
+		assertEquals(-1, session.add());
+
+		// fails on the third image
+		accumulated.clear();
+		session = new NoiseReductionSession(new NoiseReductionSession.Accumulator() {
+			@Override
+			public boolean accumulate(int index) {
+				if( index == 2 )
+					throw new RuntimeException();
+				accumulated.add(index);
+				return true;
+			}
+		});
+		for(int i=0;i<n_images;i++) {
+			session.add();
+		}
+		assertFalse(session.finish());
+		assertEquals(2, session.getNAccumulated());
+		assertEquals(2, accumulated.size());
+	}
+
+	/** Tests the number of images that AdaptiveNoiseReduction chooses for noise reduction bursts,
+	 *  and its estimate of the noise from merging noisy images with JavaHDRBackend.
+	 */
+	@Test
+	public void testAdaptiveNoiseReduction() {
+		Log.d(TAG, "testAdaptiveNoiseReduction");
+
+		// no estimate yet, so use the default number of images
+		AdaptiveNoiseReduction adaptive = new AdaptiveNoiseReduction();
+		assertFalse(adaptive.hasEstimate());
+		assertTrue(adaptive.continueBurst(1, 1));
+		assertTrue(adaptive.continueBurst(3, 4));
+		assertFalse(adaptive.continueBurst(4, 4));
+		// an image that didn't merge at all (e.g., due to motion) doesn't give an estimate
+		adaptive.addMerge(0.0f, 0.0f);
+		assertFalse(adaptive.hasEstimate());
+		assertFalse(adaptive.continueBurst(4, 4));
+
+		// low noise: expected diff for noise 2 is 3*2^2*(1+1/1); stop before the default
+		adaptive = new AdaptiveNoiseReduction();
+		adaptive.addMerge(1.0f, 24.0f);
+		assertTrue(adaptive.hasEstimate());
+		assertEquals(2.0f, adaptive.getNoise(), 1.0e-3f);
+		assertTrue(adaptive.continueBurst(2, 4));
+		assertFalse(adaptive.continueBurst(3, 4));
+
+		// high noise: continue beyond the default
+		adaptive = new AdaptiveNoiseReduction();
+		adaptive.addMerge(1.0f, 3.0f*64.0f*2.0f);
+		adaptive.addMerge(1.0f, 3.0f*64.0f*1.5f);
+		assertEquals(8.0f, adaptive.getNoise(), 1.0e-3f);
+		assertTrue(adaptive.continueBurst(4, 4));
+		assertTrue(adaptive.continueBurst(5, 4));
+		assertFalse(adaptive.continueBurst(6, 4));
+		assertTrue(adaptive.getImprovement(6) < adaptive.getImprovement(5));
+
+		// if an image doesn't merge at all (e.g., due to motion), we don't expect further images to help
+		adaptive.addMerge(0.0f, 0.0f);
+		assertEquals(8.0f, adaptive.getNoise(), 1.0e-3f);
+		assertEquals(0.0f, adaptive.getImprovement(4), 1.0e-5f);
+		assertFalse(adaptive.continueBurst(4, 4));
+
+		// estimate from merging images with known noise
+		final int width = 128;
+		final int height = 64;
+		final float noise = 4.0f;
+		Random random = new Random(0);
+		JavaHDRBackend backend = new JavaHDRBackend();
+		HDRBackend.Image image_out = backend.createFloatImage(width, height);
+		HDRBackend.Image image_avg = null;
+		adaptive = new AdaptiveNoiseReduction();
+		for(int n=0;n<4;n++) {
+			int [] pixels = new int[width*height];
+			for(int i=0;i<pixels.length;i++) {
+				int r = Math.round(100.0f + noise*(float)random.nextGaussian());
+				int g = Math.round(100.0f + noise*(float)random.nextGaussian());
+				int b = Math.round(100.0f + noise*(float)random.nextGaussian());
+				pixels[i] = rgb(r, g, b);
+			}
+			HDRBackend.Image image = backend.createImage(pixels, width, height);
+			if( n == 0 ) {
+				image_avg = image;
+				continue;
+			}
+			HDRBackend.AvgStats avg_stats = backend.processAvg(image_avg, image, 0, 0, null, (float)n, 1024.0f, 8*1024.0f, image_out);
+			image.destroy();
+			if( image_avg != image_out ) {
+				image_avg.destroy();
+				image_avg = image_out;
+			}
+			assertEquals(1.0f, avg_stats.merged_fraction, 1.0e-5f);
+			adaptive.addMerge(avg_stats.merged_fraction, avg_stats.mean_diff);
+			Log.d(TAG, "estimated noise after " + (n+1) + " images: " + adaptive.getNoise());
+		}
+		// the Wiener filter pulls the new images towards the average, so the average is a little noisier than for
+		// a plain mean, and the estimate is a little high
+		assertEquals(noise, adaptive.getNoise(), 0.15f*noise);
+		image_out.destroy();
+		backend.onDestroy();
+	}
+
+	@Test
+	public void testSaveMemoryBudget() throws InterruptedException {
+		Log.d(TAG, "testSaveMemoryBudget");
+
+		final long [] budget = new long[]{1000};
+		final SaveMemoryBudget memory_budget = new SaveMemoryBudget(new SaveMemoryBudget.BudgetSource() {
+			@Override
+			public long getBudget(long charged) {
+				return budget[0];
+			}
+		});
+		assertEquals(1000, memory_budget.getBudget());
+		assertEquals(0, memory_budget.getCharged());
+
+		// a request is always admitted when nothing else is held, even if it's over budget
+		assertFalse(memory_budget.wouldBlock(2000, 0));
+
+		memory_budget.acquire(100, 400);
+		assertEquals(500, memory_budget.getCharged());
+		// only the largest working set is charged
+		memory_budget.acquire(100, 300);
+		assertEquals(600, memory_budget.getCharged());
+		assertFalse(memory_budget.wouldBlock(400, 0));
+		assertTrue(memory_budget.wouldBlock(401, 0));
+		assertFalse(memory_budget.wouldBlock(0, 800));
+		assertTrue(memory_budget.wouldBlock(0, 801));
+		assertEquals(2, memory_budget.getNRequests());
+
+		// the budget is refreshed from the source
+		budget[0] = 500;
+		assertTrue(memory_budget.wouldBlock(0, 0));
+		budget[0] = 1000;
+
+		// a request that doesn't fit blocks until enough has been released
+		final boolean [] acquired = new boolean[]{false};
+		Thread thread = new Thread() {
+			@Override
+			public void run() {
+				try {
+					memory_budget.acquire(500, 0);
+					synchronized( acquired ) {
+						acquired[0] = true;
+					}
+				}
+				catch(InterruptedException e) {
+					e.printStackTrace();
+				}
+			}
+		};
+		thread.start();
+		Thread.sleep(300);
+		synchronized( acquired ) {
+			assertFalse(acquired[0]);
+		}
+		memory_budget.release(100, 400);
+		thread.join(5000);
+		synchronized( acquired ) {
+			assertTrue(acquired[0]);
+		}
+		assertEquals(900, memory_budget.getCharged());
+		assertEquals(1, memory_budget.getNBlocked());
+
+		memory_budget.release(100, 300);
+		memory_budget.release(500, 0);
+		assertEquals(0, memory_budget.getCharged());
+		assertEquals(0, memory_budget.getNRequests());
+		assertEquals(900, memory_budget.getPeakCharged());
+	}
+
+	@Test
+	public void testSaveMemoryBudgetEstimates() {
+		Log.d(TAG, "testSaveMemoryBudgetEstimates");
+
+		final long MB = 1024L*1024L;
+		// reserve is a quarter of the heap, and memory used by the rest of the application is excluded
+		assertEquals(512*MB - 128*MB - 50*MB, SaveMemoryBudget.computeBudget(512*MB, 100*MB, 0, 50*MB));
+		// but memory charged to requests isn't counted twice
+		assertEquals(512*MB - 128*MB, SaveMemoryBudget.computeBudget(512*MB, 50*MB, 0, 100*MB));
+		assertEquals(512*MB - 128*MB + 200*MB, SaveMemoryBudget.computeBudget(512*MB, 0, 200*MB, 0));
+		// small heaps keep a minimum reserve
+		assertEquals(64*MB - 32*MB, SaveMemoryBudget.computeBudget(64*MB, 0, 0, 0));
+		assertEquals(0, SaveMemoryBudget.computeBudget(64*MB, 64*MB, 0, 0));
+
+		assertEquals(4L*4000*3000, SaveMemoryBudget.computeBitmapBytes(4000, 3000));
+		assertEquals(0, SaveMemoryBudget.computeNormalWorkingSet(4000, 3000, false, 1, 2));
+		long normal = SaveMemoryBudget.computeNormalWorkingSet(4000, 3000, true, 1, 1);
+		assertTrue(normal >= 2*SaveMemoryBudget.computeBitmapBytes(4000, 3000));
+		assertEquals(2*normal, SaveMemoryBudget.computeNormalWorkingSet(4000, 3000, true, 1, 2));
+		// a post-processed burst is decoded an image at a time, but holds a re-encoded JPEG for each image
+		long burst = SaveMemoryBudget.computeNormalWorkingSet(4000, 3000, true, 5, 1);
+		assertEquals(normal + 4*SaveMemoryBudget.estimateJpegBytes(4000, 3000), burst);
+		assertTrue(burst >= 2*SaveMemoryBudget.computeBitmapBytes(4000, 3000) + 5*SaveMemoryBudget.estimateJpegBytes(4000, 3000));
+		assertEquals(0, SaveMemoryBudget.computeNormalWorkingSet(4000, 3000, false, 5, 1));
+
+		// HDR from 3 images needs at least the 3 decoded bitmaps and their allocations
+		long hdr = SaveMemoryBudget.computeHDRWorkingSet(4000, 3000, 3);
+		assertTrue(hdr >= 6*SaveMemoryBudget.computeBitmapBytes(4000, 3000));
+		assertTrue(hdr > SaveMemoryBudget.computeHDRWorkingSet(4000, 3000, 1));
+		// a 48MP HDR photo costs far more than a 2MP one
+		assertTrue(SaveMemoryBudget.computeHDRWorkingSet(8000, 6000, 3) > 20*SaveMemoryBudget.computeHDRWorkingSet(1600, 1200, 3));
+
+		// noise reduction at a sample size of 2 works on a quarter of the pixels
+		long avg1 = SaveMemoryBudget.computeAvgWorkingSet(4000, 3000, 1, 4, false, false);
+		long avg2 = SaveMemoryBudget.computeAvgWorkingSet(4000, 3000, 2, 4, false, false);
+		long jpeg = SaveMemoryBudget.estimateJpegBytes(4000, 3000);
+		assertEquals(avg1 - jpeg, 4*(avg2 - jpeg));
+		// keeping the average at half precision saves 8 bytes per pixel
+		long avg_half = SaveMemoryBudget.computeAvgWorkingSet(4000, 3000, 1, 4, true, false);
+		assertEquals(avg1 - 8L*4000*3000, avg_half);
+		// keeping the average in a file saves the accumulator and the full size input allocations
+		assertTrue(SaveMemoryBudget.computeAvgWorkingSet(4000, 3000, 1, 4, true, true) < avg_half - 8L*4000*3000);
+	}
+
+	private static List<byte []> makeJournalPayloads(int seed, int n_payloads) {
+		Random random = new Random(seed);
+		List<byte []> payloads = new ArrayList<>();
+		for(int i=0;i<n_payloads;i++) {
+			byte [] payload = new byte[1000 + random.nextInt(5000)];
+			random.nextBytes(payload);
+			payloads.add(payload);
+		}
+		return payloads;
+	}
+
+	private static void checkJournalEntry(SaveJournal.Entry entry, int seed, int n_payloads, int cost) {
+		assertNotNull(entry);
+		assertEquals(cost, entry.cost);
+		assertArrayEquals(new byte[]{(byte)seed, 1, 2}, entry.settings);
+		List<byte []> expected = makeJournalPayloads(seed, n_payloads);
+		assertEquals(expected.size(), entry.payloads.size());
+		for(int i=0;i<expected.size();i++) {
+			assertTrue(Arrays.equals(expected.get(i), entry.payloads.get(i)));
+		}
+	}
+
+	@Test
+	public void testSaveJournal() throws IOException, InterruptedException {
+		Log.d(TAG, "testSaveJournal");
+
+		File file = File.createTempFile("opencamera_journal", "");
+		try {
+			SaveJournal journal = new SaveJournal(file);
+			assertEquals(0, journal.getNRecovered());
+			long id0 = journal.append(1, new byte[]{0, 1, 2}, makeJournalPayloads(0, 1));
+			long id1 = journal.append(3, new byte[]{1, 1, 2}, makeJournalPayloads(1, 3));
+			long id2 = journal.append(8, new byte[]{2, 1, 2}, makeJournalPayloads(2, 8));
+			assertEquals(3, journal.getNPending());
+			assertEquals(3, journal.getNUnfinished());
+
+			// entries are read back in order
+			SaveJournal.Entry entry = journal.take();
+			assertEquals(id0, entry.id);
+			checkJournalEntry(entry, 0, 1, 1);
+			journal.markDone(id0);
+			entry = journal.take();
+			assertEquals(id1, entry.id);
+			checkJournalEntry(entry, 1, 3, 3);
+			assertEquals(1, journal.getNPending());
+			assertEquals(2, journal.getNUnfinished());
+			// id1 has been taken, but not marked as done, as if we were killed whilst saving it
+			journal.close();
+
+			// simulate being killed part way through appending another entry
+			long length = file.length();
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			raf.seek(length);
+			raf.write(new byte[]{0x4f, 0x43, 0x4a, 0x31, 1, 0, 0});
+			raf.close();
+
+			journal = new SaveJournal(file);
+			assertEquals(length, file.length());
+			assertEquals(2, journal.getNRecovered());
+			assertEquals(3+8, journal.getRecoveredCost());
+			assertEquals(0, journal.getNPending());
+			// entries appended before replay() are handed out after the recovered ones
+			long id3 = journal.append(1, new byte[]{3, 1, 2}, makeJournalPayloads(3, 1));
+			assertTrue(id3 > id2);
+			assertEquals(2, journal.replay());
+			assertEquals(3, journal.getNPending());
+			entry = journal.take();
+			assertEquals(id1, entry.id);
+			checkJournalEntry(entry, 1, 3, 3);
+			journal.markDone(entry.id);
+			entry = journal.take();
+			assertEquals(id2, entry.id);
+			checkJournalEntry(entry, 2, 8, 8);
+			journal.markDone(entry.id);
+			entry = journal.take();
+			assertEquals(id3, entry.id);
+			checkJournalEntry(entry, 3, 1, 1);
+			journal.markDone(entry.id);
+			assertEquals(0, journal.getNUnfinished());
+			// once everything is done, the journal is truncated
+			assertEquals(0, file.length());
+			journal.close();
+
+			journal = new SaveJournal(file);
+			assertEquals(0, journal.getNRecovered());
+			journal.close();
+		}
+		finally {
+			if( !file.delete() ) {
+				Log.d(TAG, "failed to delete " + file);
+			}
+		}
+	}
+
+	@Test
+	public void testSaveJournalCorrupt() throws IOException, InterruptedException {
+		Log.d(TAG, "testSaveJournalCorrupt");
+
+		File file = File.createTempFile("opencamera_journal", "");
+		try {
+			SaveJournal journal = new SaveJournal(file);
+			journal.append(1, new byte[]{0, 1, 2}, makeJournalPayloads(0, 2));
+			long length0 = file.length();
+			journal.append(1, new byte[]{1, 1, 2}, makeJournalPayloads(1, 2));
+			journal.close();
+
+			// corrupt a byte in the payload of the first entry
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			raf.seek(length0 - 10);
+			int value = raf.read();
+			raf.seek(length0 - 10);
+			raf.write(value ^ 0xff);
+			raf.close();
+
+			journal = new SaveJournal(file);
+			assertEquals(2, journal.replay());
+			// the corrupt entry is returned without its data, and is already marked as done
+			SaveJournal.Entry entry = journal.take();
+			assertNull(entry.settings);
+			assertNull(entry.payloads);
+			assertEquals(1, entry.cost);
+			assertEquals(1, journal.getNUnfinished());
+			entry = journal.take();
+			checkJournalEntry(entry, 1, 2, 1);
+			journal.markDone(entry.id);
+			assertEquals(0, journal.getNUnfinished());
+
+			// take() returns null once the journal is closed
+			journal.close();
+			assertNull(journal.take());
+		}
+		finally {
+			if( !file.delete() ) {
+				Log.d(TAG, "failed to delete " + file);
+			}
+		}
+	}
+
+	private static void putTiffEntry(ByteBuffer tiff, int pos, int tag, int type, int count, int value) {
+		tiff.putShort(pos, (short)tag);
+		tiff.putShort(pos+2, (short)type);
+		tiff.putInt(pos+4, count);
+		tiff.putInt(pos+8, value);
+	}
+
+	private static final byte [] test_thumbnail = {(byte)0xFF, (byte)0xD8, 1, 2, 3, (byte)0xFF, (byte)0xD9};
+
+	/** Creates a little endian Exif segment (not including the marker and length), with IFD_0, Exif,
+	 *  GPS and thumbnail IFDs, laid out by hand rather than by JpegExifWriter.
+	 */
+	private static byte [] makeTestExif() {
+		ByteBuffer tiff = ByteBuffer.allocate(229).order(ByteOrder.LITTLE_ENDIAN);
+		tiff.put(0, (byte)'I');
+		tiff.put(1, (byte)'I');
+		tiff.putShort(2, (short)42);
+		tiff.putInt(4, 8);
+		// IFD_0 at 8, with 5 entries
+		tiff.putShort(8, (short)5);
+		putTiffEntry(tiff, 10, JpegExifWriter.TAG_MAKE, 2, 5, 74);
+		putTiffEntry(tiff, 22, JpegExifWriter.TAG_ORIENTATION, 3, 1, 6);
+		putTiffEntry(tiff, 34, JpegExifWriter.TAG_DATETIME, 2, 20, 80);
+		putTiffEntry(tiff, 46, 0x8769, 4, 1, 100); // exif ifd
+		putTiffEntry(tiff, 58, 0x8825, 4, 1, 138); // gps ifd
+		tiff.putInt(70, 192); // next ifd is the thumbnail
+		tiff.position(74);
+		tiff.put("Test\0".getBytes());
+		tiff.position(80);
+		tiff.put("2018:01:02 03:04:05\0".getBytes());
+		// Exif IFD at 100
+		tiff.putShort(100, (short)2);
+		putTiffEntry(tiff, 102, JpegExifWriter.TAG_EXPOSURE_TIME, 5, 1, 130);
+		putTiffEntry(tiff, 114, JpegExifWriter.TAG_ISO_SPEED_RATINGS, 3, 1, 100);
+		tiff.putInt(126, 0);
+		tiff.putInt(130, 1);
+		tiff.putInt(134, 50);
+		// GPS IFD at 138
+		tiff.putShort(138, (short)2);
+		putTiffEntry(tiff, 140, JpegExifWriter.TAG_GPS_LATITUDE_REF, 2, 2, 'N');
+		putTiffEntry(tiff, 152, JpegExifWriter.TAG_GPS_LATITUDE, 5, 3, 168);
+		tiff.putInt(164, 0);
+		int [] latitude = {51, 1, 30, 1, 1234, 100};
+		for(int i=0;i<latitude.length;i++) {
+			tiff.putInt(168 + 4*i, latitude[i]);
+		}
+		// thumbnail IFD at 192
+		tiff.putShort(192, (short)2);
+		putTiffEntry(tiff, 194, 0x0201, 4, 1, 222);
+		putTiffEntry(tiff, 206, 0x0202, 4, 1, test_thumbnail.length);
+		tiff.putInt(218, 0);
+		tiff.position(222);
+		tiff.put(test_thumbnail);
+
+		byte [] exif = new byte[6 + tiff.capacity()];
+		System.arraycopy("Exif\0\0".getBytes(), 0, exif, 0, 6);
+		System.arraycopy(tiff.array(), 0, exif, 6, tiff.capacity());
+		return exif;
+	}
+
+	/** Creates a fake JPEG with the supplied segments, followed by some scan data.
+	 */
+	private static byte [] makeTestJpeg(int [] markers, byte [][] segments) throws IOException {
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		stream.write(0xFF);
+		stream.write(0xD8);
+		for(int i=0;i<markers.length;i++) {
+			stream.write(0xFF);
+			stream.write(markers[i]);
+			stream.write((segments[i].length+2) >> 8);
+			stream.write((segments[i].length+2) & 0xFF);
+			stream.write(segments[i]);
+		}
+		// start of scan, then some "image data" (which may include bytes that look like markers)
+		stream.write(new byte[]{(byte)0xFF, (byte)0xDA, 0, 4, 1, 2, 10, (byte)0xFF, 0, (byte)0xFF, (byte)0xE1, 20, 30, (byte)0xFF, (byte)0xD9});
+		return stream.toByteArray();
+	}
+
+	private static byte [] makeTestJfif() {
+		return new byte[]{'J', 'F', 'I', 'F', 0, 1, 1, 0, 0, 1, 0, 1, 0, 0};
+	}
+
+	/** Checks the tags read back from the test exif, other than those that are changed.
+	 */
+	private static void checkTestExif(JpegExifWriter exif) {
+		assertEquals("Test", exif.getAscii(JpegExifWriter.IFD_0, JpegExifWriter.TAG_MAKE));
+		assertEquals("2018:01:02 03:04:05", exif.getAscii(JpegExifWriter.IFD_0, JpegExifWriter.TAG_DATETIME));
+		assertArrayEquals(new long[]{1, 50}, exif.getRationals(JpegExifWriter.IFD_EXIF, JpegExifWriter.TAG_EXPOSURE_TIME));
+		assertEquals(100, exif.getInt(JpegExifWriter.IFD_EXIF, JpegExifWriter.TAG_ISO_SPEED_RATINGS));
+		assertEquals("N", exif.getAscii(JpegExifWriter.IFD_GPS, JpegExifWriter.TAG_GPS_LATITUDE_REF));
+		assertArrayEquals(new long[]{51, 1, 30, 1, 1234, 100}, exif.getRationals(JpegExifWriter.IFD_GPS, JpegExifWriter.TAG_GPS_LATITUDE));
+	}
+
+	/** Returns the jpeg with its first segment of the supplied length removed, which should be the
+	 *  Exif segment.
+	 */
+	private static byte [] removeFirstSegment(byte [] jpeg, int segment_length) {
+		byte [] result = new byte[jpeg.length - segment_length];
+		System.arraycopy(jpeg, 0, result, 0, 2);
+		System.arraycopy(jpeg, 2 + segment_length, result, 2, jpeg.length - 2 - segment_length);
+		return result;
+	}
+
+	/** Tests the changes that ImageSaver makes to the exif tags of a photo that isn't re-encoded,
+	 *  and that everything else is written out unchanged.
+	 */
+	@Test
+	public void testJpegExifWriter() throws IOException, ParseException {
+		Log.d(TAG, "testJpegExifWriter");
+
+		byte [] exif_segment = makeTestExif();
+		byte [] jpeg = makeTestJpeg(new int[]{0xE0, 0xE1, 0xDB}, new byte[][]{makeTestJfif(), exif_segment, new byte[]{0, 1, 2, 3}});
+
+		JpegExifWriter exif = JpegExifWriter.read(jpeg);
+		checkTestExif(exif);
+		assertEquals(6, exif.getInt(JpegExifWriter.IFD_0, JpegExifWriter.TAG_ORIENTATION));
+		assertArrayEquals(test_thumbnail, exif.getThumbnail());
+		assertFalse(exif.hasTag(JpegExifWriter.IFD_EXIF, JpegExifWriter.TAG_DATETIME_ORIGINAL));
+
+		// same changes as ImageSaver.modifyExif()
+		SimpleDateFormat date_fmt = new SimpleDateFormat("yyyy:MM:dd HH:mm:ss Z", Locale.US);
+		Date date = date_fmt.parse("2018:01:02 23:59:58 +0100");
+		exif.setGPSImgDirection(Math.toRadians(-90.0));
+		exif.copyDateTimeToOriginal();
+		exif.setAscii(JpegExifWriter.IFD_0, JpegExifWriter.TAG_ARTIST, "Artist");
+		exif.setGPSTimestamp(date);
+
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		exif.writeJpeg(stream, jpeg);
+		byte [] result = stream.toByteArray();
+
+		// the new exif segment comes first, and the other segments and image data are unchanged
+		assertEquals(0xFF, result[2] & 0xFF);
+		assertEquals(0xE1, result[3] & 0xFF);
+		int new_segment_length = 2 + (((result[4] & 0xFF) << 8) | (result[5] & 0xFF));
+		byte [] expected_rest = new byte[jpeg.length - (4 + exif_segment.length)];
+		int jfif_end = 2 + 4 + makeTestJfif().length;
+		System.arraycopy(jpeg, 0, expected_rest, 0, jfif_end);
+		System.arraycopy(jpeg, jfif_end + 4 + exif_segment.length, expected_rest, jfif_end, jpeg.length - jfif_end - 4 - exif_segment.length);
+		assertArrayEquals(expected_rest, removeFirstSegment(result, new_segment_length));
+
+		// the same result when writing from a buffer to a channel
+		ByteArrayOutputStream channel_stream = new ByteArrayOutputStream();
+		ByteBuffer buffer = ByteBuffer.allocateDirect(jpeg.length);
+		buffer.put(jpeg);
+		buffer.flip();
+		exif.writeJpeg(Channels.newChannel(channel_stream), buffer);
+		assertArrayEquals(result, channel_stream.toByteArray());
+		assertEquals(0, buffer.position());
+
+		JpegExifWriter new_exif = JpegExifWriter.read(result);
+		checkTestExif(new_exif);
+		assertEquals(6, new_exif.getInt(JpegExifWriter.IFD_0, JpegExifWriter.TAG_ORIENTATION));
+		assertArrayEquals(test_thumbnail, new_exif.getThumbnail());
+		assertEquals("Artist", new_exif.getAscii(JpegExifWriter.IFD_0, JpegExifWriter.TAG_ARTIST));
+		assertEquals("2018:01:02 03:04:05", new_exif.getAscii(JpegExifWriter.IFD_EXIF, JpegExifWriter.TAG_DATETIME_ORIGINAL));
+		assertEquals("2018:01:02 03:04:05", new_exif.getAscii(JpegExifWriter.IFD_EXIF, JpegExifWriter.TAG_DATETIME_DIGITIZED));
+		// ImageSaver previously wrote "27000/100" and "M" with ExifInterface
+		assertArrayEquals(new long[]{27000, 100}, new_exif.getRationals(JpegExifWriter.IFD_GPS, JpegExifWriter.TAG_GPS_IMG_DIRECTION));
+		assertEquals("M", new_exif.getAscii(JpegExifWriter.IFD_GPS, JpegExifWriter.TAG_GPS_IMG_DIRECTION_REF));
+		// GPS timestamps are in UTC
+		assertEquals("2018:01:02", new_exif.getAscii(JpegExifWriter.IFD_GPS, JpegExifWriter.TAG_GPS_DATESTAMP));
+		assertEquals("2018:01:02", JpegExifWriter.formatGPSDatestamp(date));
+		assertEquals("22:59:58", JpegExifWriter.formatGPSTimestamp(date));
+		assertArrayEquals(new long[]{22, 1, 59, 1, 58, 1}, new_exif.getRationals(JpegExifWriter.IFD_GPS, JpegExifWriter.TAG_GPS_TIMESTAMP));
+
+		// writing again without changes gives the same file
+		stream = new ByteArrayOutputStream();
+		new_exif.writeJpeg(stream, result);
+		assertArrayEquals(result, stream.toByteArray());
+	}
+
+	/** Tests transferring exif tags to a JPEG that has been re-encoded from a bitmap.
+	 */
+	@Test
+	public void testJpegExifWriterTransfer() throws IOException {
+		Log.d(TAG, "testJpegExifWriterTransfer");
+
+		byte [] jpeg = makeTestJpeg(new int[]{0xE1}, new byte[][]{makeTestExif()});
+		byte [] encoded = makeTestJpeg(new int[]{0xE0}, new byte[][]{makeTestJfif()});
+
+		JpegExifWriter exif = JpegExifWriter.read(jpeg);
+		exif.setAscii(JpegExifWriter.IFD_0, JpegExifWriter.TAG_IMAGE_DESCRIPTION, "Description");
+		exif.setShort(JpegExifWriter.IFD_EXIF, JpegExifWriter.TAG_PIXEL_X_DIMENSION, 4000);
+		exif.retainTransferTags();
+		exif.setShort(JpegExifWriter.IFD_0, JpegExifWriter.TAG_ORIENTATION, JpegExifWriter.ORIENTATION_NORMAL);
+
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		exif.writeJpeg(stream, encoded);
+		byte [] result = stream.toByteArray();
+		int new_segment_length = 2 + (((result[4] & 0xFF) << 8) | (result[5] & 0xFF));
+		assertArrayEquals(encoded, removeFirstSegment(result, new_segment_length));
+
+		JpegExifWriter new_exif = JpegExifWriter.read(result);
+		checkTestExif(new_exif);
+		assertEquals("Description", new_exif.getAscii(JpegExifWriter.IFD_0, JpegExifWriter.TAG_IMAGE_DESCRIPTION));
+		// the bitmap was rotated, and may have been resized
+		assertEquals(JpegExifWriter.ORIENTATION_NORMAL, new_exif.getInt(JpegExifWriter.IFD_0, JpegExifWriter.TAG_ORIENTATION));
+		assertFalse(new_exif.hasTag(JpegExifWriter.IFD_EXIF, JpegExifWriter.TAG_PIXEL_X_DIMENSION));
+		// the thumbnail would be out of date
+		assertNull(new_exif.getThumbnail());
+	}
+
+	/** Tests adding exif tags to a JPEG that doesn't have any, and reading invalid data.
+	 */
+	@Test
+	public void testJpegExifWriterNoExif() throws IOException {
+		Log.d(TAG, "testJpegExifWriterNoExif");
+
+		byte [] jpeg = makeTestJpeg(new int[]{0xE0}, new byte[][]{makeTestJfif()});
+		JpegExifWriter exif = JpegExifWriter.read(jpeg);
+		for(int ifd=JpegExifWriter.IFD_0;ifd<=JpegExifWriter.IFD_1;ifd++) {
+			assertEquals(0, exif.getNTags(ifd));
+		}
+		// no datetime to copy
+		exif.copyDateTimeToOriginal();
+		assertEquals(0, exif.getNTags(JpegExifWriter.IFD_EXIF));
+		exif.setGPSImgDirection(Math.toRadians(45.0));
+
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		exif.writeJpeg(stream, jpeg);
+		JpegExifWriter new_exif = JpegExifWriter.read(stream.toByteArray());
+		assertArrayEquals(new long[]{4500, 100}, new_exif.getRationals(JpegExifWriter.IFD_GPS, JpegExifWriter.TAG_GPS_IMG_DIRECTION));
+		assertEquals(0, new_exif.getNTags(JpegExifWriter.IFD_0));
+		assertEquals(0, new_exif.getNTags(JpegExifWriter.IFD_EXIF));
+		assertEquals(2, new_exif.getNTags(JpegExifWriter.IFD_GPS));
+		assertNull(new_exif.getThumbnail());
+	}
+
+	@Test
+	public void testJpegExifWriterCorrupt() throws IOException {
+		Log.d(TAG, "testJpegExifWriterCorrupt");
+
+		try {
+			JpegExifWriter.read(new byte[]{1, 2, 3, 4});
+			fail();
+		}
+		catch(IOException e) {
+			// expected
+		}
+
+		// IFD_0 points to itself as the thumbnail IFD
+		byte [] exif_segment = makeTestExif();
+		ByteBuffer.wrap(exif_segment).order(ByteOrder.LITTLE_ENDIAN).putInt(6 + 70, 8);
+		try {
+			JpegExifWriter.read(makeTestJpeg(new int[]{0xE1}, new byte[][]{exif_segment}));
+			fail();
+		}
+		catch(IOException e) {
+			// expected
+		}
+
+		// a value offset outside of the segment is skipped
+		exif_segment = makeTestExif();
+		ByteBuffer.wrap(exif_segment).order(ByteOrder.LITTLE_ENDIAN).putInt(6 + 10 + 8, 10000);
+		JpegExifWriter exif = JpegExifWriter.read(makeTestJpeg(new int[]{0xE1}, new byte[][]{exif_segment}));
+		assertFalse(exif.hasTag(JpegExifWriter.IFD_0, JpegExifWriter.TAG_MAKE));
+		assertEquals(6, exif.getInt(JpegExifWriter.IFD_0, JpegExifWriter.TAG_ORIENTATION));
+	}
+
+	@Test
+	public void testJpegTransformerTransforms() {
+		Log.d(TAG, "testJpegTransformerTransforms");
+
+		assertEquals(JpegTransformer.Transform.ROTATE_180, JpegTransformer.Transform.ROTATE_90.then(JpegTransformer.Transform.ROTATE_90));
+		assertEquals(JpegTransformer.Transform.ROTATE_270, JpegTransformer.Transform.ROTATE_180.then(JpegTransformer.Transform.ROTATE_90));
+		assertEquals(JpegTransformer.Transform.NONE, JpegTransformer.Transform.ROTATE_90.then(JpegTransformer.Transform.ROTATE_270));
+		assertEquals(JpegTransformer.Transform.NONE, JpegTransformer.Transform.FLIP_HORIZONTAL.then(JpegTransformer.Transform.FLIP_HORIZONTAL));
+		assertEquals(JpegTransformer.Transform.ROTATE_180, JpegTransformer.Transform.FLIP_HORIZONTAL.then(JpegTransformer.Transform.FLIP_VERTICAL));
+		assertEquals(JpegTransformer.Transform.TRANSPOSE, JpegTransformer.Transform.FLIP_HORIZONTAL.then(JpegTransformer.Transform.ROTATE_270));
+		assertEquals(JpegTransformer.Transform.TRANSPOSE, JpegTransformer.Transform.ROTATE_90.then(JpegTransformer.Transform.FLIP_HORIZONTAL));
+		assertEquals(JpegTransformer.Transform.TRANSVERSE, JpegTransformer.Transform.FLIP_HORIZONTAL.then(JpegTransformer.Transform.ROTATE_90));
+
+		assertEquals(JpegTransformer.Transform.NONE, JpegTransformer.Transform.fromExifOrientation(1));
+		assertEquals(JpegTransformer.Transform.ROTATE_180, JpegTransformer.Transform.fromExifOrientation(3));
+		assertEquals(JpegTransformer.Transform.ROTATE_90, JpegTransformer.Transform.fromExifOrientation(6));
+		assertEquals(JpegTransformer.Transform.ROTATE_270, JpegTransformer.Transform.fromExifOrientation(8));
+		// mirrored orientations
+		assertEquals(JpegTransformer.Transform.FLIP_HORIZONTAL, JpegTransformer.Transform.fromExifOrientation(2));
+		assertEquals(JpegTransformer.Transform.TRANSVERSE, JpegTransformer.Transform.fromExifOrientation(7));
+		assertNull(JpegTransformer.Transform.fromExifOrientation(0));
+		assertNull(JpegTransformer.Transform.fromExifOrientation(9));
+
+		// 4:2:0 images have 16x16 MCUs
+		assertTrue(JpegTransformer.isPerfect(72, 48, 16, 16, JpegTransformer.Transform.NONE));
+		assertTrue(JpegTransformer.isPerfect(72, 48, 16, 16, JpegTransformer.Transform.FLIP_VERTICAL));
+		assertFalse(JpegTransformer.isPerfect(72, 48, 16, 16, JpegTransformer.Transform.FLIP_HORIZONTAL));
+		assertTrue(JpegTransformer.isPerfect(72, 48, 16, 16, JpegTransformer.Transform.ROTATE_90));
+		assertFalse(JpegTransformer.isPerfect(72, 48, 16, 16, JpegTransformer.Transform.ROTATE_270));
+		assertFalse(JpegTransformer.isPerfect(72, 48, 16, 16, JpegTransformer.Transform.ROTATE_180));
+		assertTrue(JpegTransformer.isPerfect(72, 48, 16, 16, JpegTransformer.Transform.TRANSPOSE));
+	}
+
+	/** Creates a baseline jpeg with 4:2:0 chroma subsampling, using ImageIO.
+	 */
+	private static byte [] makeTestImageJpeg(int width, int height) throws IOException {
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		Random random = new Random(123);
+		for(int y=0;y<height;y++) {
+			for(int x=0;x<width;x++) {
+				// gradients plus some noise, so the blocks have plenty of non-zero coefficients
+				int r = Math.min(255, 4*x + random.nextInt(16));
+				int g = Math.min(255, 5*y + random.nextInt(16));
+				int b = ((x/4 + y/4) % 2 == 0) ? 200 : 40;
+				image.setRGB(x, y, (r << 16) | (g << 8) | b);
+			}
+		}
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		assertTrue(ImageIO.write(image, "jpg", stream));
+		return stream.toByteArray();
+	}
+
+	/** Returns the largest difference in any colour channel between the transformed image, and the
+	 *  transformed pixels of the original image.
+	 */
+	private static int compareTransformedImage(BufferedImage image, BufferedImage transformed, JpegTransformer.Transform transform) {
+		int width = image.getWidth();
+		int height = image.getHeight();
+		boolean transpose = transform == JpegTransformer.Transform.ROTATE_90 || transform == JpegTransformer.Transform.ROTATE_270 ||
+				transform == JpegTransformer.Transform.TRANSPOSE || transform == JpegTransformer.Transform.TRANSVERSE;
+		assertEquals(transpose ? height : width, transformed.getWidth());
+		assertEquals(transpose ? width : height, transformed.getHeight());
+		int max_diff = 0;
+		for(int y=0;y<height;y++) {
+			for(int x=0;x<width;x++) {
+				int tx, ty;
+				switch( transform ) {
+					case FLIP_HORIZONTAL: tx = width-1-x; ty = y; break;
+					case FLIP_VERTICAL: tx = x; ty = height-1-y; break;
+					case ROTATE_180: tx = width-1-x; ty = height-1-y; break;
+					case TRANSPOSE: tx = y; ty = x; break;
+					case ROTATE_90: tx = height-1-y; ty = x; break;
+					case ROTATE_270: tx = y; ty = width-1-x; break;
+					case TRANSVERSE: tx = height-1-y; ty = width-1-x; break;
+					default: tx = x; ty = y; break;
+				}
+				int rgb0 = image.getRGB(x, y);
+				int rgb1 = transformed.getRGB(tx, ty);
+				for(int shift=0;shift<24;shift+=8) {
+					int diff = Math.abs(((rgb0 >> shift) & 0xff) - ((rgb1 >> shift) & 0xff));
+					max_diff = Math.max(max_diff, diff);
+				}
+			}
+		}
+		return max_diff;
+	}
+
+	@Test
+	public void testJpegTransformer() throws IOException {
+		Log.d(TAG, "testJpegTransformer");
+
+		byte [] jpeg = makeTestImageJpeg(64, 48);
+		BufferedImage image = ImageIO.read(new ByteArrayInputStream(jpeg));
+
+		// without transforming, the coefficients are unchanged, so decode to exactly the same pixels
+		byte [] copy = JpegTransformer.transform(jpeg, JpegTransformer.Transform.NONE);
+		assertEquals(0, compareTransformedImage(image, ImageIO.read(new ByteArrayInputStream(copy)), JpegTransformer.Transform.NONE));
+
+		for(JpegTransformer.Transform transform : JpegTransformer.Transform.values()) {
+			Log.d(TAG, "transform: " + transform);
+			byte [] result = JpegTransformer.transform(jpeg, transform);
+			// the pixels can differ slightly, due to rounding in the decoder's IDCT and chroma upsampling
+			int max_diff = compareTransformedImage(image, ImageIO.read(new ByteArrayInputStream(result)), transform);
+			Log.d(TAG, "max_diff: " + max_diff);
+			assertTrue(max_diff <= 4);
+
+			// transforming back should give exactly the same coefficients (and so the same file) as not transforming
+			JpegTransformer.Transform inverse = null;
+			for(JpegTransformer.Transform t : JpegTransformer.Transform.values()) {
+				if( transform.then(t) == JpegTransformer.Transform.NONE )
+					inverse = t;
+			}
+			assertNotNull(inverse);
+			assertArrayEquals(copy, JpegTransformer.transform(result, inverse));
+		}
+	}
+
+	@Test
+	public void testJpegTransformerEdges() throws IOException {
+		Log.d(TAG, "testJpegTransformerEdges");
+
+		// width isn't a multiple of the 16 pixel MCUs
+		byte [] jpeg = makeTestImageJpeg(72, 40);
+		BufferedImage image = ImageIO.read(new ByteArrayInputStream(jpeg));
+		for(JpegTransformer.Transform transform : JpegTransformer.Transform.values()) {
+			Log.d(TAG, "transform: " + transform);
+			boolean perfect = JpegTransformer.isPerfect(72, 40, 16, 16, transform);
+			try {
+				byte [] result = JpegTransformer.transform(jpeg, transform);
+				assertTrue(perfect);
+				assertTrue(compareTransformedImage(image, ImageIO.read(new ByteArrayInputStream(result)), transform) <= 4);
+			}
+			catch(IOException e) {
+				assertFalse(perfect);
+			}
+		}
+	}
+
+	@Test
+	public void testJpegTransformerSegments() throws IOException {
+		Log.d(TAG, "testJpegTransformerSegments");
+
+		JpegExifWriter exif = JpegExifWriter.read(makeTestJpeg(new int[]{0xE1}, new byte[][]{makeTestExif()}));
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		exif.writeJpeg(stream, makeTestImageJpeg(32, 32));
+		byte [] jpeg = stream.toByteArray();
+		assertEquals(6, JpegExifWriter.read(jpeg).getInt(JpegExifWriter.IFD_0, JpegExifWriter.TAG_ORIENTATION));
+
+		// the exif tags are removed, as the orientation and thumbnail no longer apply, but the JFIF segment is kept
+		byte [] result = JpegTransformer.transform(jpeg, JpegTransformer.Transform.ROTATE_90);
+		assertFalse(JpegExifWriter.read(result).hasTag(JpegExifWriter.IFD_0, JpegExifWriter.TAG_ORIENTATION));
+		assertEquals(0xE0, result[3] & 0xff);
+		assertEquals('J', result[6]);
+
+		// progressive jpegs aren't supported
+		byte [] progressive = makeTestImageJpeg(32, 32);
+		for(int i=2;i<progressive.length-1;i++) {
+			if( (progressive[i] & 0xff) == 0xff && (progressive[i+1] & 0xff) == 0xc0 ) {
+				progressive[i+1] = (byte)0xc2;
+				break;
+			}
+		}
+		try {
+			JpegTransformer.transform(progressive, JpegTransformer.Transform.ROTATE_90);
+			fail();
+		}
+		catch(IOException e) {
+			// expected
+		}
+
+		try {
+			JpegTransformer.transform(new byte[]{(byte)0xff, (byte)0xd8, (byte)0xff, (byte)0xd9}, JpegTransformer.Transform.ROTATE_90);
+			fail();
+		}
+		catch(IOException e) {
+			// expected
+		}
+	}
+
 	private class float4 {
 		final float r, g, b, a;
 
@@ -710,4 +1772,1046 @@ public class UnitTest {
 		assertEquals(1.0f/(0.369070f*(0.2f-0.1f) + 0.1f), focus_distances.get(1), 1.0e-5);
 		assertEquals(1.0f/0.2f, focus_distances.get(0), 1.0e-5);
 	}
+
+	private static int rgb(int r, int g, int b) {
+		return 0xff000000 | (r << 16) | (g << 8) | b;
+	}
+
+	@Test
+	public void testJavaHDRBackendHistogram() {
+		Log.d(TAG, "testJavaHDRBackendHistogram");
+
+		final int width = 40, height = 50;
+		int [] pixels = new int[width*height];
+		for(int y=0;y<height;y++) {
+			for(int x=0;x<width;x++) {
+				pixels[y*width+x] = y < height/2 ? rgb(10, 20, 30) : rgb(200, 100, 0);
+			}
+		}
+		JavaHDRBackend backend = new JavaHDRBackend();
+		HDRBackend.Image image = backend.createImage(pixels, width, height);
+
+		int [] histogram = backend.computeHistogram(image, false);
+		assertEquals(256, histogram.length);
+		assertEquals(width*height/2, histogram[30]);
+		assertEquals(width*height/2, histogram[200]);
+
+		histogram = backend.computeHistogram(image, true);
+		assertEquals(width*height/2, histogram[20]);
+		assertEquals(width*height/2, histogram[100]);
+
+		// sub-region covering only the bottom half
+		histogram = backend.computeHistogram(image, 5, height/2, 15, height);
+		assertEquals(10*height/2, histogram[200]);
+		assertEquals(0, histogram[30]);
+
+		image.destroy();
+		backend.onDestroy();
+	}
+
+	@Test
+	public void testJavaHDRBackendAlignMTB() {
+		Log.d(TAG, "testJavaHDRBackendAlignMTB");
+
+		final int width = 64, height = 64;
+		final int shift_x = 2, shift_y = -1;
+		Random random = new Random(0);
+		int [] pixels0 = new int[width*height];
+		for(int i=0;i<pixels0.length;i++) {
+			int value = random.nextBoolean() ? 40 : 220;
+			pixels0[i] = rgb(value, value, value);
+		}
+		// pixels1 is pixels0 translated, so that pixels1(x+shift_x, y+shift_y) == pixels0(x, y)
+		int [] pixels1 = new int[width*height];
+		for(int y=0;y<height;y++) {
+			for(int x=0;x<width;x++) {
+				int sx = Math.min(Math.max(x-shift_x, 0), width-1);
+				int sy = Math.min(Math.max(y-shift_y, 0), height-1);
+				pixels1[y*width+x] = pixels0[sy*width+sx];
+			}
+		}
+
+		JavaHDRBackend backend = new JavaHDRBackend();
+		HDRBackend.Image image0 = backend.createImage(pixels0, width, height);
+		HDRBackend.Image image1 = backend.createImage(pixels1, width, height);
+		HDRBackend.Image mtb0 = backend.createMTB(image0, 128, 0, 0, width, height);
+		HDRBackend.Image mtb1 = backend.createMTB(image1, 128, 0, 0, width, height);
+		for(int i=0;i<pixels0.length;i++) {
+			int expected = (pixels0[i] & 0xFF) > 128 ? 255 : 0;
+			assertEquals(expected, backend.getMTBPixels(mtb0)[i] & 0xFF);
+		}
+
+		// search offsets within [-1, 1] of (shift_x-1, shift_y), so the correct offset is at i=1, j=0
+		int [] errors = new int[9];
+		backend.alignMTB(errors, mtb0, mtb1, true, shift_x-1, shift_y, 1, width, height);
+		int best = 0;
+		for(int c=1;c<9;c++) {
+			if( errors[c] < errors[best] )
+				best = c;
+		}
+		Log.d(TAG, "best: " + best + " error: " + errors[best]);
+		assertEquals(3*(0+1) + (1+1), best);
+		assertEquals(0, errors[best]);
+
+		// same with greyscale images and sum of squared differences
+		HDRBackend.Image grey0 = backend.createGreyscale(image0, 0, 0, width, height);
+		HDRBackend.Image grey1 = backend.createGreyscale(image1, 0, 0, width, height);
+		backend.alignMTB(errors, grey0, grey1, false, shift_x, shift_y-1, 1, width, height);
+		best = 0;
+		for(int c=1;c<9;c++) {
+			if( errors[c] < errors[best] )
+				best = c;
+		}
+		assertEquals(3*(1+1) + (0+1), best);
+		assertEquals(0, errors[best]);
+
+		mtb0.destroy();
+		mtb1.destroy();
+		grey0.destroy();
+		grey1.destroy();
+		image0.destroy();
+		image1.destroy();
+		backend.onDestroy();
+	}
+
+	@Test
+	public void testJavaHDRBackendProcessAvg() {
+		Log.d(TAG, "testJavaHDRBackendProcessAvg");
+
+		final int width = 32, height = 20;
+		int [] pixels0 = new int[width*height];
+		int [] pixels1 = new int[width*height];
+		for(int i=0;i<pixels0.length;i++) {
+			pixels0[i] = rgb(100, 100, 100);
+			// the left half is similar, the right half differs by more than the cutoff
+			pixels1[i] = (i % width) < width/2 ? rgb(102, 100, 98) : rgb(250, 0, 0);
+		}
+
+		JavaHDRBackend backend = new JavaHDRBackend();
+		HDRBackend.Image image0 = backend.createImage(pixels0, width, height);
+		HDRBackend.Image image1 = backend.createImage(pixels1, width, height);
+		HDRBackend.Image image_out = backend.createFloatImage(width, height);
+		assertTrue(image_out.isFloatingPoint());
+		assertFalse(image0.isFloatingPoint());
+
+		final float wiener_C = 1024.0f;
+		final float wiener_C_cutoff = 8*wiener_C;
+		HDRBackend.AvgStats avg_stats = backend.processAvg(image0, image1, 0, 0, null, 1.0f, wiener_C, wiener_C_cutoff, image_out);
+		assertEquals(0.5f, avg_stats.merged_fraction, 1.0e-5f);
+		// only the left half is merged, where L = 2^2 + 0^2 + 2^2
+		assertEquals(8.0f, avg_stats.mean_diff, 1.0e-3f);
+		float [] out = backend.getFloatPixels(image_out);
+		// left half: new pixel is merged towards the average (L = 8), then averaged with weight 1
+		float weight = 8.0f/(8.0f + wiener_C);
+		float expected_r = (100.0f + (weight*100.0f + (1.0f-weight)*102.0f))/2.0f;
+		assertEquals(expected_r, out[0], 1.0e-3f);
+		assertEquals(100.0f, out[1], 1.0e-3f);
+		assertEquals(200.0f - expected_r, out[2], 1.0e-3f);
+		// right half: too different, so unchanged
+		int indx = width-1;
+		assertEquals(100.0f, out[3*indx], 1.0e-5f);
+		assertEquals(100.0f, out[3*indx+1], 1.0e-5f);
+		assertEquals(100.0f, out[3*indx+2], 1.0e-5f);
+
+		// now average a third image into the floating point result, offset so the final column has no pixel
+		avg_stats = backend.processAvg(image_out, image0, 1, 0, null, 2.0f, wiener_C, wiener_C_cutoff, image_out);
+		assertEquals((width-1)/(float)width, avg_stats.merged_fraction, 1.0e-5f);
+		assertEquals((2.0f*expected_r + 100.0f)/3.0f, out[0], 1.0e-3f);
+		assertEquals(100.0f, out[3*indx], 1.0e-5f);
+
+		int [] histogram = backend.computeHistogram(image_out, false);
+		int total = 0;
+		for(int value : histogram)
+			total += value;
+		assertEquals(width*height, total);
+
+		image0.destroy();
+		image1.destroy();
+		image_out.destroy();
+		backend.onDestroy();
+	}
+
+	/** Tests that averaging noise reduction images at half precision gives the same results as at
+	 *  full precision, to within the rounding of the half precision format.
+	 */
+	@Test
+	public void testJavaHDRBackendHalfPrecisionAvg() {
+		Log.d(TAG, "testJavaHDRBackendHalfPrecisionAvg");
+
+		assertEquals(0.0f, JavaHDRBackend.halfToFloat(JavaHDRBackend.floatToHalf(0.0f)), 0.0f);
+		assertEquals(255.0f, JavaHDRBackend.halfToFloat(JavaHDRBackend.floatToHalf(255.0f)), 0.0f);
+		assertEquals(123.456f, JavaHDRBackend.halfToFloat(JavaHDRBackend.floatToHalf(123.456f)), 0.5f/HDRBackend.half_scale_c);
+		// out of range values are clamped
+		assertEquals(0.0f, JavaHDRBackend.halfToFloat(JavaHDRBackend.floatToHalf(-3.0f)), 0.0f);
+
+		final int width = 40, height = 30;
+		final int n_images = 6;
+		Random random = new Random(3);
+		int [] base_pixels = new int[width*height];
+		for(int i=0;i<base_pixels.length;i++) {
+			base_pixels[i] = rgb(random.nextInt(256), random.nextInt(256), random.nextInt(256));
+		}
+		JavaHDRBackend backend = new JavaHDRBackend();
+		HDRBackend.Image [] images = new HDRBackend.Image[n_images];
+		for(int i=0;i<n_images;i++) {
+			int [] pixels = new int[width*height];
+			for(int j=0;j<pixels.length;j++) {
+				int r = Math.max(0, Math.min(255, ((base_pixels[j] >> 16) & 0xFF) + random.nextInt(17) - 8));
+				int g = Math.max(0, Math.min(255, ((base_pixels[j] >> 8) & 0xFF) + random.nextInt(17) - 8));
+				int b = Math.max(0, Math.min(255, (base_pixels[j] & 0xFF) + random.nextInt(17) - 8));
+				pixels[j] = rgb(r, g, b);
+			}
+			images[i] = backend.createImage(pixels, width, height);
+		}
+
+		HDRBackend.Image avg_f = backend.createFloatImage(width, height);
+		HDRBackend.Image avg_h = backend.createHalfPrecisionImage(width, height);
+		assertTrue(avg_h.isFloatingPoint());
+		final float wiener_C = 1024.0f;
+		final float wiener_C_cutoff = 8*wiener_C;
+		for(int i=1;i<n_images;i++) {
+			HDRBackend.AvgStats stats_f = backend.processAvg(i == 1 ? images[0] : avg_f, images[i], 0, 0, null, i, wiener_C, wiener_C_cutoff, avg_f);
+			HDRBackend.AvgStats stats_h = backend.processAvg(i == 1 ? images[0] : avg_h, images[i], 0, 0, null, i, wiener_C, wiener_C_cutoff, avg_h);
+			assertEquals(stats_f.merged_fraction, stats_h.merged_fraction, 1.0e-5f);
+			assertEquals(stats_f.mean_diff, stats_h.mean_diff, 0.1f);
+		}
+
+		// each merge rounds the average to within half a unit of the half precision format; the error from
+		// earlier merges is then scaled down by later merges, so this is an upper bound
+		float [] pixels_f = backend.getFloatPixels(avg_f);
+		short [] pixels_h = backend.getHalfPixels(avg_h);
+		assertEquals(pixels_f.length, pixels_h.length);
+		float max_error = 0.0f;
+		for(int i=0;i<pixels_f.length;i++) {
+			max_error = Math.max(max_error, Math.abs(pixels_f[i] - JavaHDRBackend.halfToFloat(pixels_h[i])));
+		}
+		Log.d(TAG, "max_error: " + max_error);
+		assertTrue(max_error <= (n_images-1)*0.5f/HDRBackend.half_scale_c + 1.0e-4f);
+
+		// the brightened outputs should differ by at most a level, due to rounding
+		ToneCurveLUT brighten = ToneCurveLUT.createBrighten(1.2f, 0.1f, 0.9f, 10.0f, 60.0f, 250.0f);
+		HDRBackend.Image out_f = backend.createImage(width, height);
+		HDRBackend.Image out_h = backend.createImage(width, height);
+		backend.avgBrighten(avg_f, out_f, 4.0f, 1.0f, brighten);
+		backend.avgBrighten(avg_h, out_h, 4.0f, 1.0f, brighten);
+		int [] result_f = backend.getPixels(out_f);
+		int [] result_h = backend.getPixels(out_h);
+		for(int i=0;i<result_f.length;i++) {
+			for(int shift=0;shift<=16;shift+=8) {
+				assertEquals((result_f[i] >> shift) & 0xFF, (result_h[i] >> shift) & 0xFF, 1);
+			}
+		}
+
+		for(HDRBackend.Image image : images)
+			image.destroy();
+		avg_f.destroy();
+		avg_h.destroy();
+		out_f.destroy();
+		out_h.destroy();
+		backend.onDestroy();
+	}
+
+	@Test
+	public void testJavaHDRBackendProcessHDR() {
+		Log.d(TAG, "testJavaHDRBackendProcessHDR");
+
+		final int width = 24, height = 24;
+		final int n_images = 3;
+		Random random = new Random(1);
+		int [] base_pixels = new int[width*height];
+		for(int i=0;i<base_pixels.length;i++) {
+			base_pixels[i] = rgb(random.nextInt(256), random.nextInt(256), random.nextInt(256));
+		}
+
+		JavaHDRBackend backend = new JavaHDRBackend();
+		HDRBackend.Image [] images = new HDRBackend.Image[n_images];
+		int [] offsets_x = new int[n_images];
+		int [] offsets_y = new int[n_images];
+		float [] parameter_A = new float[n_images];
+		float [] parameter_B = new float[n_images];
+		for(int i=0;i<n_images;i++) {
+			images[i] = backend.createImage(base_pixels.clone(), width, height);
+			parameter_A[i] = 1.0f;
+			parameter_B[i] = 0.0f;
+		}
+		int [] out_pixels = new int[width*height];
+		HDRBackend.Image output = backend.createImage(out_pixels, width, height);
+
+		// identical images with identity response functions and clamp tonemapping should give the input back
+		ToneCurveLUT clamp = ToneCurveLUT.createTonemap(HDRProcessor.TonemappingAlgorithm.TONEMAPALGORITHM_CLAMP, 1.0f, 1.0f, 11.2f, 255.0f);
+		backend.processHDR(images, 1, offsets_x, offsets_y, parameter_A, parameter_B, null, clamp, output);
+		for(int i=0;i<out_pixels.length;i++) {
+			int expected = base_pixels[i];
+			int actual = out_pixels[i];
+			for(int shift=0;shift<=16;shift+=8) {
+				assertEquals((expected >> shift) & 0xFF, (actual >> shift) & 0xFF, 1);
+			}
+		}
+
+		// the other tonemapping algorithms should give valid output
+		for(HDRProcessor.TonemappingAlgorithm tonemapping_algorithm : HDRProcessor.TonemappingAlgorithm.values()) {
+			ToneCurveLUT tonemap = ToneCurveLUT.createTonemap(tonemapping_algorithm, 1.0f, 1.0f, 11.2f, 255.0f);
+			backend.processHDR(images, 1, offsets_x, offsets_y, parameter_A, parameter_B, null, tonemap, output);
+			for(int pixel : out_pixels) {
+				assertEquals(0xff, (pixel >>> 24));
+			}
+		}
+
+		for(HDRBackend.Image image : images)
+			image.destroy();
+		output.destroy();
+		backend.onDestroy();
+	}
+
+	@Test
+	public void testJavaHDRBackendTiles() {
+		Log.d(TAG, "testJavaHDRBackendTiles");
+
+		final int width = 50, height = 37;
+		final int n_tiles = 4;
+		Random random = new Random(2);
+		int [] pixels = new int[width*height];
+		for(int i=0;i<pixels.length;i++) {
+			pixels[i] = rgb(random.nextInt(256), random.nextInt(256), random.nextInt(256));
+		}
+		JavaHDRBackend backend = new JavaHDRBackend();
+		HDRBackend.Image image = backend.createImage(pixels, width, height);
+		int [] c_histogram = new int[n_tiles*n_tiles*256];
+		for(int i=0;i<n_tiles*n_tiles;i++) {
+			int [] histogram = backend.computeHistogram(image, false);
+			c_histogram[256*i] = histogram[0];
+			for(int x=1;x<256;x++) {
+				c_histogram[256*i+x] = c_histogram[256*i+x-1] + histogram[x] + i;
+			}
+		}
+
+		byte [] equal_values = HDRProcessor.computeEqualValues(c_histogram, n_tiles);
+
+		// adjusting the histogram of a region should give the same results as for the whole image
+		int [] expected = new int[width*height];
+		HDRBackend.Image expected_image = backend.createImage(expected, width, height);
+		backend.adjustHistogram(image, expected_image, equal_values, 0.5f, n_tiles);
+		final int start_x = 13, start_y = 21, tile_width = 30, tile_height = 11;
+		HDRBackend.Image tile = backend.cropImage(image, start_x, start_y, tile_width, tile_height);
+		backend.adjustHistogram(tile, tile, equal_values, 0.5f, n_tiles, start_x, start_y, width, height);
+		int [] tile_pixels = backend.getPixels(tile);
+		for(int y=0;y<tile_height;y++) {
+			for(int x=0;x<tile_width;x++) {
+				assertEquals(expected[(start_y+y)*width+start_x+x], tile_pixels[y*tile_width+x]);
+			}
+		}
+		tile.destroy();
+		expected_image.destroy();
+
+		// brightening a region with a halo of 3 pixels should give the same results as for the whole image
+		HDRBackend.Image float_image = backend.createFloatImage(width, height);
+		float [] float_pixels = backend.getFloatPixels(float_image);
+		for(int i=0;i<float_pixels.length;i++) {
+			float_pixels[i] = 255.0f * random.nextFloat();
+		}
+		expected_image = backend.createImage(width, height);
+		ToneCurveLUT brighten = ToneCurveLUT.createBrighten(1.2f, 0.1f, 0.9f, 10.0f, 60.0f, 250.0f);
+		backend.avgBrighten(float_image, expected_image, 4.0f, 1.0f, brighten);
+		expected = backend.getPixels(expected_image);
+		final int halo = 3;
+		HDRBackend.Image tile_in = backend.cropImage(float_image, start_x-halo, start_y-halo, tile_width+2*halo, tile_height+2*halo);
+		HDRBackend.Image tile_out = backend.createImage(tile_width+2*halo, tile_height+2*halo);
+		backend.avgBrighten(tile_in, tile_out, 4.0f, 1.0f, brighten);
+		tile_pixels = backend.getPixels(tile_out);
+		for(int y=0;y<tile_height;y++) {
+			for(int x=0;x<tile_width;x++) {
+				assertEquals(expected[(start_y+y)*width+start_x+x], tile_pixels[(y+halo)*(tile_width+2*halo)+x+halo]);
+			}
+		}
+		tile_in.destroy();
+		tile_out.destroy();
+		expected_image.destroy();
+		float_image.destroy();
+		image.destroy();
+	}
+
+	@Test
+	public void testCLAHE() {
+		Log.d(TAG, "testCLAHE");
+
+		final int width = 61, height = 47;
+		final int n_tiles = 5;
+		Random random = new Random(5);
+		int [] pixels = new int[width*height];
+		for(int y=0;y<height;y++) {
+			for(int x=0;x<width;x++) {
+				// a gradient, so that the tiles have different histograms
+				int value = Math.min(255, 2*x + random.nextInt(64));
+				pixels[y*width+x] = rgb(value, random.nextInt(value+1), y);
+			}
+		}
+		JavaHDRBackend backend = new JavaHDRBackend();
+		HDRBackend.Image image = backend.createImage(pixels, width, height);
+
+		// the tile histograms computed in one pass should match computing each tile separately, and pixels with
+		// an index of -1 should be skipped
+		int [] tile_x = new int[width];
+		int [] tile_y = new int[height];
+		int [] starts_x = new int[n_tiles+1];
+		int [] starts_y = new int[n_tiles+1];
+		for(int i=0;i<=n_tiles;i++) {
+			starts_x[i] = (i*width)/n_tiles;
+			starts_y[i] = (i*height)/n_tiles;
+		}
+		for(int i=0;i<n_tiles;i++) {
+			for(int x=starts_x[i];x<starts_x[i+1];x++)
+				tile_x[x] = i;
+			for(int y=starts_y[i];y<starts_y[i+1];y++)
+				tile_y[y] = i;
+		}
+		tile_x[0] = -1;
+		tile_y[height-1] = -1;
+		int [] histograms = backend.computeTileHistograms(image, tile_x, tile_y, n_tiles);
+		for(int i=0;i<n_tiles;i++) {
+			for(int j=0;j<n_tiles;j++) {
+				int start_x = Math.max(1, starts_x[i]);
+				int stop_y = Math.min(height-1, starts_y[j+1]);
+				int [] histogram = backend.computeHistogram(image, start_x, starts_y[j], starts_x[i+1], stop_y);
+				for(int x=0;x<256;x++) {
+					assertEquals(histogram[x], histograms[256*(i*n_tiles+j)+x]);
+				}
+			}
+		}
+
+		// the sliding window histograms should match summing the window for each tile
+		final int radius = 1;
+		int [] window_histograms = new int[n_tiles*n_tiles*256];
+		for(int i=0;i<n_tiles;i++) {
+			for(int j=0;j<n_tiles;j++) {
+				for(int wi=Math.max(i-radius, 0);wi<=Math.min(i+radius, n_tiles-1);wi++) {
+					for(int wj=Math.max(j-radius, 0);wj<=Math.min(j+radius, n_tiles-1);wj++) {
+						for(int x=0;x<256;x++) {
+							window_histograms[256*(i*n_tiles+j)+x] += histograms[256*(wi*n_tiles+wj)+x];
+						}
+					}
+				}
+			}
+		}
+		byte [] equal_values = HDRProcessor.computeCLAHE(histograms, n_tiles, radius);
+		assertArrayEquals(HDRProcessor.computeCLAHE(window_histograms, n_tiles, 0), equal_values);
+		// a window larger than the grid is the same for every tile
+		byte [] global_values = HDRProcessor.computeCLAHE(histograms, n_tiles, n_tiles);
+		for(int i=1;i<n_tiles*n_tiles;i++) {
+			for(int x=0;x<256;x++) {
+				assertEquals(global_values[x], global_values[256*i+x]);
+			}
+		}
+
+		// the equalised values should be non-decreasing
+		for(int i=0;i<n_tiles*n_tiles;i++) {
+			for(int x=1;x<256;x++) {
+				assertTrue((equal_values[256*i+x] & 0xFF) >= (equal_values[256*i+x-1] & 0xFF));
+			}
+		}
+
+		// hdr_alpha of 0 should leave the image unchanged
+		int [] out = new int[width*height];
+		HDRBackend.Image out_image = backend.createImage(out, width, height);
+		backend.adjustHistogram(image, out_image, equal_values, 0.0f, n_tiles);
+		for(int i=0;i<width*height;i++) {
+			assertEquals(pixels[i] | 0xFF000000, out[i]);
+		}
+
+		image.destroy();
+		out_image.destroy();
+		backend.onDestroy();
+	}
+
+	@Test
+	public void testJavaHDRBackendAccumulateHDR() {
+		Log.d(TAG, "testJavaHDRBackendAccumulateHDR");
+
+		final int width = 24, height = 24;
+		Random random = new Random(1);
+		int [] base_pixels = new int[width*height];
+		for(int i=0;i<base_pixels.length;i++) {
+			base_pixels[i] = rgb(random.nextInt(256), random.nextInt(256), random.nextInt(256));
+		}
+		// a well exposed pixel, and a dark pixel
+		base_pixels[0] = rgb(128, 128, 128);
+		base_pixels[1] = rgb(0, 0, 0);
+
+		JavaHDRBackend backend = new JavaHDRBackend();
+		HDRBackend.Image base = backend.createImage(base_pixels.clone(), width, height);
+		HDRBackend.Image darker = backend.createImage(base_pixels.clone(), width, height);
+		HDRBackend.Image brighter = backend.createImage(base_pixels.clone(), width, height);
+		HDRBackend.Image accumulator = backend.createHDRAccumulator(width, height);
+		float [] acc = backend.getHDRPixels(accumulator);
+
+		backend.accumulateHDR(accumulator, base, 0, 0, 1.0f, 0.0f, base, 1.0f, 0.0f, HDRBackend.EXPOSURE_CENTRAL, false, null);
+		assertEquals(1.0f, acc[3], 1.0e-5f);
+		assertEquals(0.01f, acc[7], 1.0e-5f);
+		backend.accumulateHDR(accumulator, darker, 0, 0, 1.0f, 0.0f, base, 1.0f, 0.0f, HDRBackend.EXPOSURE_DARKER, true, null);
+		// darker images shouldn't be used where the base image is well exposed or dark
+		assertEquals(1.0f, acc[3], 1.0e-5f);
+		assertEquals(0.01f, acc[7], 1.0e-5f);
+		backend.accumulateHDR(accumulator, brighter, 0, 0, 1.0f, 0.0f, base, 1.0f, 0.0f, HDRBackend.EXPOSURE_BRIGHTER, true, null);
+		// but the brightest image should be used where the base image is dark
+		assertEquals(1.0f, acc[3], 1.0e-5f);
+		assertEquals(1.0f, acc[7], 1.0e-5f);
+
+		// identical images with identity response functions and clamp tonemapping should give the input back
+		int [] out_pixels = new int[width*height];
+		HDRBackend.Image output = backend.createImage(out_pixels, width, height);
+		backend.tonemapHDR(accumulator, output, ToneCurveLUT.createTonemap(HDRProcessor.TonemappingAlgorithm.TONEMAPALGORITHM_CLAMP, 1.0f, 1.0f, 11.2f, 255.0f));
+		for(int i=0;i<out_pixels.length;i++) {
+			int expected = base_pixels[i];
+			int actual = out_pixels[i];
+			for(int shift=0;shift<=16;shift+=8) {
+				assertEquals((expected >> shift) & 0xFF, (actual >> shift) & 0xFF, 1);
+			}
+		}
+
+		base.destroy();
+		darker.destroy();
+		brighter.destroy();
+		accumulator.destroy();
+		output.destroy();
+	}
+
+
+	@Test
+	public void testMotionMask() {
+		Log.d(TAG, "testMotionMask");
+
+		// 6x4 tiles
+		final int width = 6*MotionMask.tile_size_c, height = 4*MotionMask.tile_size_c;
+		Random random = new Random(4);
+		int [] base = new int[width*height];
+		int [] darker = new int[width*height];
+		for(int i=0;i<base.length;i++) {
+			int value = 40 + random.nextInt(160);
+			base[i] = rgb(value, value, value);
+			// a darker exposure, with response function y = 2 x
+			darker[i] = rgb(value/2, value/2, value/2);
+		}
+
+		// identical images, or a darker exposure of the same scene, have no motion
+		MotionMask mask = MotionMask.create(base, base.clone(), width, height, 0, 0, 1.0f, 0.0f, 1.0f, 0.0f);
+		assertEquals(6, mask.getWidth());
+		assertEquals(4, mask.getHeight());
+		assertFalse(mask.hasMotion());
+		assertEquals(0, mask.countMoving());
+		mask = MotionMask.create(base, darker, width, height, 0, 0, 1.0f, 0.0f, 2.0f, 0.0f);
+		assertFalse(mask.hasMotion());
+
+		// an object that moved into tile (2, 1) of the darker image
+		final int tile_size = MotionMask.tile_size_c;
+		for(int y=tile_size;y<2*tile_size;y++) {
+			for(int x=2*tile_size;x<3*tile_size;x++) {
+				darker[y*width+x] = rgb(100, 100, 100);
+			}
+		}
+		mask = MotionMask.create(base, darker, width, height, 0, 0, 1.0f, 0.0f, 2.0f, 0.0f);
+		assertTrue(mask.hasMotion());
+		// the tile and its neighbours should be marked
+		assertEquals(9, mask.countMoving());
+		for(int ty=0;ty<4;ty++) {
+			for(int tx=0;tx<6;tx++) {
+				assertEquals(Math.abs(tx-2) <= 1 && Math.abs(ty-1) <= 1, mask.isMoving(tx, ty));
+			}
+		}
+		assertEquals(1.0f, mask.getWeight(2*tile_size, tile_size), 1.0e-5f);
+		assertEquals(0.0f, mask.getWeight(width-1, height-1), 1.0e-5f);
+		MotionMask translated = mask.translate(tile_size, 5);
+		for(int y=0;y<height-5;y+=7) {
+			for(int x=0;x<width-tile_size;x+=7) {
+				assertEquals(mask.getWeight(x+tile_size, y+5), translated.getWeight(x, y), 1.0e-5f);
+			}
+		}
+		assertEquals(9, mask.union(new MotionMask(width, height)).countMoving());
+
+		// now merge a bright base exposure with a darker exposure: moving tiles should fall back to the base exposure,
+		// and other tiles should be unaffected by the mask
+		int [] bright = new int[width*height];
+		int [] dark = new int[width*height];
+		for(int i=0;i<bright.length;i++) {
+			bright[i] = rgb(250, 250, 250);
+			dark[i] = rgb(100, 100, 100);
+		}
+		JavaHDRBackend backend = new JavaHDRBackend();
+		HDRBackend.Image [] images = new HDRBackend.Image[]{backend.createImage(dark, width, height), backend.createImage(bright, width, height)};
+		int [] offsets = new int[2];
+		float [] parameter_A = new float[]{2.0f, 1.0f};
+		float [] parameter_B = new float[]{0.0f, 0.0f};
+		ToneCurveLUT clamp = ToneCurveLUT.createTonemap(HDRProcessor.TonemappingAlgorithm.TONEMAPALGORITHM_CLAMP, 1.0f, 1.0f, 11.2f, 510.0f);
+		int [] expected = new int[width*height];
+		int [] actual = new int[width*height];
+		backend.processHDR(images, 1, offsets, offsets, parameter_A, parameter_B, null, clamp, backend.createImage(expected, width, height));
+		backend.processHDR(images, 1, offsets, offsets, parameter_A, parameter_B, mask, clamp, backend.createImage(actual, width, height));
+		assertTrue(expected[tile_size*width+2*tile_size] != bright[0]);
+		for(int y=0;y<height;y++) {
+			for(int x=0;x<width;x++) {
+				float weight = mask.getWeight(x, y);
+				if( weight >= 1.0f )
+					assertEquals(bright[0], actual[y*width+x]);
+				else if( weight <= 0.0f )
+					assertEquals(expected[y*width+x], actual[y*width+x]);
+			}
+		}
+
+		// a moving image shouldn't be accumulated in its moving tiles
+		HDRBackend.Image accumulator = backend.createHDRAccumulator(width, height);
+		float [] acc = backend.getHDRPixels(accumulator);
+		backend.accumulateHDR(accumulator, images[1], 0, 0, 1.0f, 0.0f, images[1], 1.0f, 0.0f, HDRBackend.EXPOSURE_CENTRAL, false, null);
+		float base_weight = acc[3];
+		backend.accumulateHDR(accumulator, images[0], 0, 0, 2.0f, 0.0f, images[1], 1.0f, 0.0f, HDRBackend.EXPOSURE_DARKER, true, mask);
+		assertEquals(base_weight, acc[4*(tile_size*width+2*tile_size)+3], 1.0e-5f);
+		assertTrue(acc[4*(height*width-1)+3] > base_weight);
+
+		for(HDRBackend.Image image : images)
+			image.destroy();
+		accumulator.destroy();
+		backend.onDestroy();
+	}
+
+	@Test
+	public void testTileAlignment() {
+		Log.d(TAG, "testTileAlignment");
+
+		// 8x6 tiles
+		final int tile_size = TileAlignment.tile_size_c;
+		final int width = 8*tile_size, height = 6*tile_size;
+		Random random = new Random(5);
+		int [] reference = new int[width*height];
+		for(int i=0;i<reference.length;i++) {
+			int value = 20 + random.nextInt(200);
+			reference[i] = rgb(value, value, value);
+		}
+		// the left half of the new image is offset by (4, 0), and the right half by (-2, 6), e.g., due to local motion;
+		// the pixel (x, y) of the reference is at (x+offset_x, y+offset_y) of the new image
+		int [] image = new int[width*height];
+		for(int y=0;y<height;y++) {
+			for(int x=0;x<width;x++) {
+				int offset_x = x < width/2 ? 4 : -2;
+				int offset_y = x < width/2 ? 0 : 6;
+				int rx = Math.max(0, Math.min(x-offset_x, width-1));
+				int ry = Math.max(0, Math.min(y-offset_y, height-1));
+				image[y*width+x] = reference[ry*width+rx];
+			}
+		}
+
+		TileAlignment.Pyramid reference_pyramid = TileAlignment.Pyramid.create(reference, width, height);
+		TileAlignment identical = TileAlignment.create(reference_pyramid, TileAlignment.Pyramid.create(reference.clone(), width, height), 0, 0);
+		assertEquals(8, identical.getWidth());
+		assertEquals(6, identical.getHeight());
+		assertEquals(0, identical.countMoved());
+
+		// the global offset is correct for the left half
+		TileAlignment alignment = TileAlignment.create(reference_pyramid, TileAlignment.Pyramid.create(image, width, height), 4, 0);
+		for(int ty=1;ty<5;ty++) {
+			for(int tx=1;tx<3;tx++) {
+				assertEquals(4, alignment.getOffsetX(tx, ty));
+				assertEquals(0, alignment.getOffsetY(tx, ty));
+			}
+			for(int tx=5;tx<7;tx++) {
+				assertEquals(-2, alignment.getOffsetX(tx, ty));
+				assertEquals(6, alignment.getOffsetY(tx, ty));
+			}
+		}
+		assertTrue(alignment.countMoved() >= 16);
+		assertEquals(4, alignment.getPixelOffsetX(tile_size + tile_size/2, 2*tile_size));
+		assertEquals(-2, alignment.getPixelOffsetX(5*tile_size + tile_size/2, 2*tile_size));
+
+		// noise in flat images shouldn't move the tiles
+		int [] flat0 = new int[width*height];
+		int [] flat1 = new int[width*height];
+		for(int i=0;i<flat0.length;i++) {
+			int value0 = 100 + random.nextInt(5);
+			int value1 = 100 + random.nextInt(5);
+			flat0[i] = rgb(value0, value0, value0);
+			flat1[i] = rgb(value1, value1, value1);
+		}
+		TileAlignment flat = TileAlignment.create(TileAlignment.Pyramid.create(flat0, width, height), TileAlignment.Pyramid.create(flat1, width, height), 2, 0);
+		assertTrue(flat.countMoved() <= flat.getWidth()*flat.getHeight()/10);
+
+		// merging through the tile offsets should use more of the new image than the global offset
+		final float wiener_C = 1024.0f;
+		final float wiener_C_cutoff = wiener_C;
+		JavaHDRBackend backend = new JavaHDRBackend();
+		HDRBackend.Image image0 = backend.createImage(reference, width, height);
+		HDRBackend.Image image1 = backend.createImage(image, width, height);
+		HDRBackend.Image image_out = backend.createFloatImage(width, height);
+		float global_fraction = backend.processAvg(image0, image1, 4, 0, null, 1.0f, wiener_C, wiener_C_cutoff, image_out).merged_fraction;
+		float tile_fraction = backend.processAvg(image0, image1, 4, 0, alignment, 1.0f, wiener_C, wiener_C_cutoff, image_out).merged_fraction;
+		Log.d(TAG, "global_fraction: " + global_fraction);
+		Log.d(TAG, "tile_fraction: " + tile_fraction);
+		// (the offsets are interpolated between the tile centres, so pixels near the boundary between the two halves
+		// aren't merged)
+		assertTrue(global_fraction < 0.65f);
+		assertTrue(tile_fraction > 0.85f);
+
+		image0.destroy();
+		image1.destroy();
+		image_out.destroy();
+		backend.onDestroy();
+	}
+
+	@Test
+	public void testMappedAccumulator() throws IOException {
+		Log.d(TAG, "testMappedAccumulator");
+
+		File dir = File.createTempFile("opencamera_mapped", "");
+		assertTrue(dir.delete());
+		assertTrue(dir.mkdir());
+		try {
+			final int width = 37, height = 23;
+			MappedAccumulator accumulator = MappedAccumulator.create(dir, width, height, 8);
+			// the file is deleted as soon as it's mapped
+			assertEquals(0, dir.listFiles().length);
+			assertEquals(3, accumulator.getNBands());
+			assertEquals(16, accumulator.getBandStart(2));
+			assertEquals(7, accumulator.getBandRows(2));
+
+			short [] pixels = new short[3*width*accumulator.getBandHeight()];
+			accumulator.readBand(1, pixels);
+			for(short value : pixels)
+				assertEquals(0, value);
+			for(int band=0;band<accumulator.getNBands();band++) {
+				int start_y = accumulator.getBandStart(band);
+				for(int y=0;y<accumulator.getBandRows(band);y++) {
+					for(int i=0;i<3*width;i++) {
+						pixels[3*width*y+i] = (short)((start_y+y)*1000 + i);
+					}
+				}
+				accumulator.writeBand(band, pixels);
+			}
+
+			// a region spanning all the bands
+			final int start_x = 5, start_y = 6, region_width = 20, region_height = 15;
+			short [] region = new short[3*region_width*region_height];
+			accumulator.read(region, start_x, start_y, region_width, region_height);
+			for(int y=0;y<region_height;y++) {
+				for(int i=0;i<3*region_width;i++) {
+					assertEquals((start_y+y)*1000 + 3*start_x + i, region[3*region_width*y+i]);
+				}
+			}
+			accumulator.close();
+		}
+		finally {
+			for(File file : dir.listFiles())
+				file.delete();
+			dir.delete();
+		}
+	}
+
+	/** Tests that averaging images a band at a time into a MappedAccumulator, as
+	 *  HDRProcessor.processAvgMapped() does, gives the same results as averaging the full images.
+	 */
+	@Test
+	public void testJavaHDRBackendProcessAvgBands() throws IOException {
+		Log.d(TAG, "testJavaHDRBackendProcessAvgBands");
+
+		// as testTileAlignment(), the pixel (x, y) of the reference is at (x+offset_x, y+offset_y) of the new image,
+		// where the offsets differ for the left and right halves
+		final int tile_size = TileAlignment.tile_size_c;
+		final int width = 8*tile_size, height = 6*tile_size;
+		final int n_images = 3;
+		Random random = new Random(6);
+		int [] reference = new int[width*height];
+		for(int i=0;i<reference.length;i++) {
+			int value = 20 + random.nextInt(200);
+			reference[i] = rgb(value, value, value);
+		}
+		int [][] pixels = new int[n_images][];
+		pixels[0] = reference;
+		for(int i=1;i<n_images;i++) {
+			pixels[i] = new int[width*height];
+			for(int y=0;y<height;y++) {
+				for(int x=0;x<width;x++) {
+					int offset_x = x < width/2 ? 4 : -2;
+					int offset_y = x < width/2 ? 0 : 6;
+					int rx = Math.max(0, Math.min(x-offset_x, width-1));
+					int ry = Math.max(0, Math.min(y-offset_y, height-1));
+					int value = Math.max(0, Math.min(255, (reference[ry*width+rx] & 0xFF) + random.nextInt(9) - 4));
+					pixels[i][y*width+x] = rgb(value, value, value);
+				}
+			}
+		}
+		TileAlignment.Pyramid reference_pyramid = TileAlignment.Pyramid.create(reference, width, height);
+		TileAlignment alignment = TileAlignment.create(reference_pyramid, TileAlignment.Pyramid.create(pixels[1], width, height), 4, 0);
+		assertTrue(alignment.countMoved() > 0);
+		int min_offset_y = 0, max_offset_y = 0;
+		for(int offset_y : alignment.getOffsetsY()) {
+			min_offset_y = Math.min(min_offset_y, offset_y);
+			max_offset_y = Math.max(max_offset_y, offset_y);
+		}
+
+		final float wiener_C = 1024.0f;
+		final float wiener_C_cutoff = 8*wiener_C;
+		JavaHDRBackend backend = new JavaHDRBackend();
+		HDRBackend.Image [] images = new HDRBackend.Image[n_images];
+		for(int i=0;i<n_images;i++) {
+			images[i] = backend.createImage(pixels[i], width, height);
+		}
+		HDRBackend.Image avg = backend.createHalfPrecisionImage(width, height);
+		float [] expected_fractions = new float[n_images];
+		for(int i=1;i<n_images;i++) {
+			expected_fractions[i] = backend.processAvg(i == 1 ? images[0] : avg, images[i], 4, 0, alignment, i, wiener_C, wiener_C_cutoff, avg).merged_fraction;
+		}
+
+		File dir = File.createTempFile("opencamera_mapped", "");
+		assertTrue(dir.delete());
+		assertTrue(dir.mkdir());
+		try {
+			// bands that don't line up with the alignment tiles
+			MappedAccumulator accumulator = MappedAccumulator.create(dir, width, height, 37);
+			short [] band_pixels = new short[3*width*accumulator.getBandHeight()];
+			for(int i=1;i<n_images;i++) {
+				long merged = 0;
+				for(int band=0;band<accumulator.getNBands();band++) {
+					int start_y = accumulator.getBandStart(band);
+					int n_rows = accumulator.getBandRows(band);
+					int new_start_y = Math.max(0, Math.min(start_y + min_offset_y, height-1));
+					int new_stop_y = Math.max(new_start_y+1, Math.min(start_y + n_rows + max_offset_y, height));
+					HDRBackend.Image band_avg;
+					HDRBackend.Image band_out = backend.createHalfPrecisionImage(width, n_rows);
+					if( i == 1 ) {
+						band_avg = backend.cropImage(images[0], 0, start_y, width, n_rows);
+					}
+					else {
+						accumulator.readBand(band, band_pixels);
+						band_avg = backend.createHalfPrecisionImage(width, n_rows);
+						backend.copyFrom(band_avg, band_pixels);
+					}
+					HDRBackend.Image band_new = backend.cropImage(images[i], 0, new_start_y, width, new_stop_y - new_start_y);
+					HDRBackend.AvgStats stats = backend.processAvg(band_avg, band_new, 4, 0, alignment, i, wiener_C, wiener_C_cutoff, band_out, 0, start_y, 0, new_start_y);
+					merged += Math.round(stats.merged_fraction * width * n_rows);
+					backend.copyTo(band_out, band_pixels);
+					accumulator.writeBand(band, band_pixels);
+					band_avg.destroy();
+					band_new.destroy();
+					band_out.destroy();
+				}
+				assertEquals(expected_fractions[i], merged / (float)(width*height), 1.0e-5f);
+			}
+
+			short [] expected = backend.getHalfPixels(avg);
+			short [] actual = new short[3*width*height];
+			accumulator.read(actual, 0, 0, width, height);
+			assertTrue(Arrays.equals(expected, actual));
+			accumulator.close();
+		}
+		finally {
+			for(File file : dir.listFiles())
+				file.delete();
+			dir.delete();
+		}
+
+		for(HDRBackend.Image image : images)
+			image.destroy();
+		avg.destroy();
+		backend.onDestroy();
+	}
+
+	@Test
+	public void testToneCurveLUT() {
+		Log.d(TAG, "testToneCurveLUT");
+
+		// the interpolated curves should stay within 1 LSB of the analytic curves, including beyond the
+		// range of the table
+		Random random = new Random(4);
+		for(HDRProcessor.TonemappingAlgorithm tonemapping_algorithm : HDRProcessor.TonemappingAlgorithm.values()) {
+			for(float max_value : new float[]{255.0f, 1000.0f, 4000.0f}) {
+				float linear_scale = (max_value + 255.0f) / max_value; // as for Reinhard tonemapping
+				float W = 2.0f / 255.0f * max_value; // as for filmic tonemapping
+				ToneCurveLUT lut = ToneCurveLUT.createTonemap(tonemapping_algorithm, 255.0f, linear_scale, W, max_value);
+				for(int i=0;i<10000;i++) {
+					float r = 1.2f * max_value * random.nextFloat();
+					float g = 1.2f * max_value * random.nextFloat();
+					float b = 1.2f * max_value * random.nextFloat();
+					checkToneCurve(lut, r, g, b);
+				}
+			}
+		}
+
+		// brightening, for factors from computeBrightenFactors() with and without the piecewise gain/gamma
+		int [][] brighten_inputs = {{1600, 20, 170}, {1600, 20, 171}, {100, 40, 250}, {800, 10, 60}, {100, 100, 255}};
+		for(int [] inputs : brighten_inputs) {
+			HDRProcessor.BrightenFactors factors = HDRProcessor.computeBrightenFactors(inputs[0], inputs[1], inputs[2]);
+			// as HDRProcessor.avgBrighten()
+			float gain_A = 1.0f, gain_B = 0.0f;
+			if( factors.mid_x > factors.low_x ) {
+				gain_A = (factors.gain * factors.mid_x - factors.low_x) / (factors.mid_x - factors.low_x);
+				gain_B = factors.low_x*factors.mid_x*(1.0f-factors.gain)/ (factors.mid_x - factors.low_x);
+			}
+			ToneCurveLUT lut = ToneCurveLUT.createBrighten(gain_A, gain_B, factors.gamma, factors.low_x, factors.mid_x, inputs[2]);
+			assertTrue(lut.isScaleByMax());
+			for(int i=0;i<10000;i++) {
+				checkToneCurve(lut, 255.0f * random.nextFloat(), 255.0f * random.nextFloat(), 255.0f * random.nextFloat());
+			}
+			// and near the end points of each piece
+			for(float value : new float[]{0.0f, factors.low_x, factors.mid_x, 255.0f}) {
+				for(float delta=-0.5f;delta<=0.5f;delta+=0.125f) {
+					float v = Math.max(0.0f, Math.min(value + delta, 255.0f));
+					checkToneCurve(lut, v, 0.5f*v, 0.25f*v);
+				}
+			}
+		}
+	}
+
+	/** Checks that ToneCurveLUT.apply() gives the same result as evaluating the curve directly, to
+	 *  within 1 LSB.
+	 */
+	private static void checkToneCurve(ToneCurveLUT lut, float r, float g, float b) {
+		float out_r, out_g, out_b;
+		if( lut.isScaleByMax() ) {
+			float scale = lut.evaluate(Math.max(Math.max(r, g), b));
+			out_r = scale * r;
+			out_g = scale * g;
+			out_b = scale * b;
+		}
+		else {
+			out_r = lut.evaluate(r);
+			out_g = lut.evaluate(g);
+			out_b = lut.evaluate(b);
+		}
+		int expected_r = Math.max(0, Math.min((int)(out_r + 0.5f), 255));
+		int expected_g = Math.max(0, Math.min((int)(out_g + 0.5f), 255));
+		int expected_b = Math.max(0, Math.min((int)(out_b + 0.5f), 255));
+		int color = lut.apply(r, g, b);
+		assertEquals(0xff, (color >>> 24));
+		assertEquals(expected_r, (color >> 16) & 0xff, 1);
+		assertEquals(expected_g, (color >> 8) & 0xff, 1);
+		assertEquals(expected_b, color & 0xff, 1);
+	}
+
+	@Test
+	public void testMTBPyramidAlign() {
+		Log.d(TAG, "testMTBPyramidAlign");
+
+		final int width = 256, height = 192;
+		final int block_size = 8;
+		Random random = new Random(2);
+		int [] block_values = new int[(width/block_size+1)*(height/block_size+1)];
+		for(int i=0;i<block_values.length;i++) {
+			block_values[i] = random.nextInt(256);
+		}
+		final int [][] shifts = {{0, 0}, {13, -7}, {-3, 20}, {1, 1}};
+		int [] pixels0 = new int[width*height];
+		for(int y=0;y<height;y++) {
+			for(int x=0;x<width;x++) {
+				int value = block_values[(y/block_size)*(width/block_size+1) + x/block_size];
+				pixels0[y*width+x] = rgb(value, value/2, value/3);
+			}
+		}
+		MTBPyramid base = MTBPyramid.create(pixels0, width, height, 128, 5);
+		assertEquals(5, base.getLevels());
+
+		for(int [] shift : shifts) {
+			// pixels1 is pixels0 translated, so that pixels1(x+shift_x, y+shift_y) == pixels0(x, y)
+			int [] pixels1 = new int[width*height];
+			for(int y=0;y<height;y++) {
+				for(int x=0;x<width;x++) {
+					int sx = Math.min(Math.max(x-shift[0], 0), width-1);
+					int sy = Math.min(Math.max(y-shift[1], 0), height-1);
+					pixels1[y*width+x] = pixels0[sy*width+sx];
+				}
+			}
+			MTBPyramid image = MTBPyramid.create(pixels1, width, height, 128, 5);
+			assertEquals(0, base.computeError(image, 0, shift[0], shift[1], Long.MAX_VALUE));
+
+			int [] offset = new int[2];
+			MTBPyramid.align(offset, base, image, 0, false);
+			Log.d(TAG, "shift " + shift[0] + " , " + shift[1] + " found " + offset[0] + " , " + offset[1]);
+			assertEquals(shift[0], offset[0]);
+			assertEquals(shift[1], offset[1]);
+		}
+
+		// too small for the requested number of levels
+		MTBPyramid small = MTBPyramid.create(new int[32*16], 32, 16, 128, 5);
+		assertEquals(2, small.getLevels());
+	}
+
+	/** Runs the tasks on the calling thread, for testing ExposureFusion.
+	 */
+	private static final ExposureFusion.TaskRunner inline_task_runner = new ExposureFusion.TaskRunner() {
+		@Override
+		public boolean runTasks(List<Callable<Void>> tasks) {
+			try {
+				for(Callable<Void> task : tasks) {
+					task.call();
+				}
+			}
+			catch(Exception e) {
+				e.printStackTrace();
+				return false;
+			}
+			return true;
+		}
+	};
+
+	@Test
+	public void testExposureFusionIdentical() {
+		Log.d(TAG, "testExposureFusionIdentical");
+
+		// odd sizes, to test the edges of the pyramid levels
+		final int width = 101, height = 67;
+		Random random = new Random(3);
+		int [] pixels = new int[width*height];
+		for(int y=0;y<height;y++) {
+			for(int x=0;x<width;x++) {
+				int noise = random.nextInt(32);
+				pixels[y*width+x] = rgb((x*2 + noise) % 256, (y*3 + noise) % 256, (x+y) % 256);
+			}
+		}
+		// fusing identical images should reproduce the image, as the weights sum to 1
+		int [][] images = new int[][]{pixels, pixels.clone(), pixels.clone()};
+		int [] output = new int[width*height];
+		assertTrue(ExposureFusion.fuse(images, width, height, new int[3], new int[3], output, inline_task_runner));
+		for(int i=0;i<width*height;i++) {
+			assertEquals(0xff, (output[i] >>> 24));
+			for(int shift=0;shift<24;shift+=8) {
+				int expected = (pixels[i] >> shift) & 0xff;
+				int actual = (output[i] >> shift) & 0xff;
+				assertTrue("pixel " + i + " expected " + expected + " actual " + actual, Math.abs(expected - actual) <= 1);
+			}
+		}
+	}
+
+	@Test
+	public void testExposureFusionBracket() {
+		Log.d(TAG, "testExposureFusionBracket");
+
+		// a dark exposure where the left half is well exposed and the right half is black, and a bright
+		// exposure where the left half is blown out and the right half is well exposed
+		final int width = 64, height = 48;
+		int [] dark = new int[width*height];
+		int [] bright = new int[width*height];
+		for(int y=0;y<height;y++) {
+			for(int x=0;x<width;x++) {
+				int detail = ((x/2 + y/2) % 2) * 40;
+				if( x < width/2 ) {
+					dark[y*width+x] = rgb(100 + detail, 90 + detail, 80 + detail);
+					bright[y*width+x] = rgb(255, 255, 255);
+				}
+				else {
+					dark[y*width+x] = rgb(0, 0, 0);
+					bright[y*width+x] = rgb(110 + detail, 100 + detail, 90 + detail);
+				}
+			}
+		}
+		int [] output = new int[width*height];
+		assertTrue(ExposureFusion.fuse(new int[][]{dark, bright}, width, height, new int[2], new int[2], output, inline_task_runner));
+
+		// away from the boundary between the halves, each half should come from the well exposed image
+		for(int y=0;y<height;y++) {
+			for(int x=0;x<width;x++) {
+				if( Math.abs(x - width/2) < 8 )
+					continue;
+				int expected = x < width/2 ? dark[y*width+x] : bright[y*width+x];
+				int actual = output[y*width+x];
+				for(int shift=0;shift<24;shift+=8) {
+					int diff = Math.abs(((expected >> shift) & 0xff) - ((actual >> shift) & 0xff));
+					assertTrue("pixel " + x + " , " + y + " diff " + diff, diff <= 24);
+				}
+			}
+		}
+	}
+
 }